@@ -29,6 +29,7 @@ import org.mapsforge.core.model.GeoPoint;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
@@ -230,25 +231,26 @@ public class DaoBookmarks {
 
     /**
      * @param marker the marker to use.
-     * @return the list of {@link OverlayItem}s
+     * @return the {@link OverlayItem}s by bookmark id, in id order.
      * @throws IOException  if something goes wrong.
      */
-    public static List<OverlayItem> getBookmarksOverlays( Drawable marker ) throws IOException {
+    public static LinkedHashMap<Long, OverlayItem> getBookmarksOverlays( Drawable marker ) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
-        String query = "SELECT lon, lat, text FROM " + TABLE_BOOKMARKS;
+        String query = "SELECT lon, lat, text, " + COLUMN_ID + " FROM " + TABLE_BOOKMARKS + " ORDER BY " + COLUMN_ID;
 
         Cursor c = null;
         try {
             c = sqliteDatabase.rawQuery(query, null);
-            List<OverlayItem> bookmarks = new ArrayList<>();
+            LinkedHashMap<Long, OverlayItem> bookmarks = new LinkedHashMap<>();
             c.moveToFirst();
             while( !c.isAfterLast() ) {
                 double lon = c.getDouble(0);
                 double lat = c.getDouble(1);
                 String text = c.getString(2);
                 text = text + "\n";
+                long id = c.getLong(3);
                 OverlayItem bookmark = new OverlayItem(new GeoPoint(lat, lon), null, text, marker);
-                bookmarks.add(bookmark);
+                bookmarks.put(id, bookmark);
                 c.moveToNext();
             }
             return bookmarks;
@@ -22,7 +22,6 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.graphics.Paint;
-import android.location.Location;
 import android.util.Log;
 
 import com.vividsolutions.jts.geom.Coordinate;
@@ -40,7 +39,9 @@ import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.database.IGpsLogDbHelper;
+import eu.geopaparazzi.library.gps.TrackStatistics;
 import eu.geopaparazzi.library.gpx.GpxItem;
+import eu.geopaparazzi.library.gpx.parser.GpxParser;
 import eu.geopaparazzi.library.gpx.parser.GpxParser.Route;
 import eu.geopaparazzi.library.gpx.parser.GpxParser.TrackSegment;
 import eu.geopaparazzi.library.gpx.parser.RoutePoint;
@@ -70,6 +71,19 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     private static SimpleDateFormat dateFormatter = TimeUtilities.INSTANCE.TIME_FORMATTER_SQLITE_UTC;
     private static SimpleDateFormat dateFormatterForLabelInLocalTime = TimeUtilities.INSTANCE.TIMESTAMPFORMATTER_LOCAL;
 
+    private static final String INSERT_DATA_POINT = "INSERT INTO " + TABLE_GPSLOG_DATA + " (" +
+            GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + ", " +
+            GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName() + ", " +
+            GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName() + ", " +
+            GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName() + ", " +
+            GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + ") VALUES (?, ?, ?, ?, ?)";
+
+    /**
+     * The database the cached insert statement has been compiled against.
+     */
+    private SQLiteDatabase insertDataPointDatabase;
+    private SQLiteStatement insertDataPointStmt;
+
     /**
      * Create log tables.
      *
@@ -136,36 +150,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         sB.append(" );");
         String CREATE_INDEX_GPSLOG_TS = sB.toString();
 
-        sB = new StringBuilder();
-        sB.append("CREATE INDEX gpslog_x_by_y_idx ON ");
-        sB.append(TABLE_GPSLOG_DATA);
-        sB.append(" ( ");
-        sB.append(GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName());
-        sB.append(", ");
-        sB.append(GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName());
-        sB.append(" );");
-        String CREATE_INDEX_GPSLOG_X_BY_Y = sB.toString();
-
-        sB = new StringBuilder();
-        sB.append("CREATE INDEX gpslog_logid_x_y_idx ON ");
-        sB.append(TABLE_GPSLOG_DATA);
-        sB.append(" ( ");
-        sB.append(GpsLogsDataTableFields.COLUMN_LOGID.getFieldName());
-        sB.append(", ");
-        sB.append(GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName());
-        sB.append(", ");
-        sB.append(GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName());
-        sB.append(" );");
-        String CREATE_INDEX_GPSLOG_LOGID_X_Y = sB.toString();
-
 
         if (GPLog.LOG_ANDROID)
             Log.i("DAOGPSLOG", "Create the gpslogdata table with: \n" + CREATE_TABLE_GPSLOG_DATA);
         sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_DATA);
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_ID);
         sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_TS);
-        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_X_BY_Y);
-        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_LOGID_X_Y);
 
 
         /*
@@ -256,6 +246,8 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             return;
         }
 
+        DaoGpsLogOverviews.appendPoint(sqliteDatabase, gpslogId, lon, lat, timestamp);
+
         ContentValues values = new ContentValues();
         values.put(GpsLogsDataTableFields.COLUMN_LOGID.getFieldName(), (int) gpslogId);
         values.put(GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), lon);
@@ -265,6 +257,70 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         sqliteDatabase.insertOrThrow(TABLE_GPSLOG_DATA, null, values);
     }
 
+    /**
+     * Adds a block of gps log points to the gps table.
+     * <p/>
+     * <p>The insert statement is compiled once per database and reused for the following blocks.
+     * Transactions have to be opened and closed by the caller, which allows several blocks
+     * to be committed together.</p>
+     *
+     * @param sqliteDatabase the database to use.
+     * @param gpslogId       the ID from the GPS log table.
+     * @param lons           the longitudes.
+     * @param lats           the latitudes.
+     * @param altims         the altitudes/elevations.
+     * @param timestamps     the UTC timestamps.
+     * @param from           the index of the first point to add.
+     * @param count          the number of points to add.
+     * @throws IOException if something goes wrong.
+     */
+    public synchronized void addGpsLogDataPoints(SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+                                                 double[] altims, long[] timestamps, int from, int count) throws IOException {
+        DaoGpsLogOverviews.appendPoints(sqliteDatabase, gpslogId, lons, lats, timestamps, from, count);
+
+        try {
+            SQLiteStatement insertStmt = getInsertDataPointStatement(sqliteDatabase);
+            int to = from + count;
+            for (int i = from; i < to; i++) {
+                double lon = lons[i];
+                double lat = lats[i];
+                // same check done by the GeoPoint in the single point insert
+                if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+                    continue;
+                }
+                insertStmt.bindLong(1, (int) gpslogId);
+                insertStmt.bindDouble(2, lon);
+                insertStmt.bindDouble(3, lat);
+                insertStmt.bindDouble(4, altims[i]);
+                insertStmt.bindLong(5, timestamps[i]);
+                insertStmt.executeInsert();
+                insertStmt.clearBindings();
+            }
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Get the insert statement of the gps table, compiling it only if the database changed or was closed.
+     *
+     * @param sqliteDatabase the database to use.
+     * @return the compiled statement.
+     */
+    private SQLiteStatement getInsertDataPointStatement(SQLiteDatabase sqliteDatabase) {
+        if (insertDataPointStmt != null) {
+            if (insertDataPointDatabase == sqliteDatabase && sqliteDatabase.isOpen()) {
+                return insertDataPointStmt;
+            }
+            insertDataPointStmt.close();
+            insertDataPointStmt = null;
+        }
+        insertDataPointStmt = sqliteDatabase.compileStatement(INSERT_DATA_POINT);
+        insertDataPointDatabase = sqliteDatabase;
+        return insertDataPointStmt;
+    }
+
     /**
      * Delete a gps log by its id.
      *
@@ -293,6 +349,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            // delete overviews
+            DaoGpsLogOverviews.deleteOverviews(sqliteDatabase, id);
+
+            // delete statistics
+            DaoGpsLogStats.deleteStats(sqliteDatabase, id);
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DOAGPSLOG", e.getLocalizedMessage(), e);
@@ -367,6 +429,37 @@ public class DaoGpsLog implements IGpsLogDbHelper {
         }
     }
 
+    /**
+     * Stores the statistics of a log, also re-setting its length.
+     *
+     * @param logid the id of the log.
+     * @param stats the statistics to store.
+     * @throws IOException if something goes wrong.
+     */
+    public void setTrackStatistics(long logid, TrackStatistics stats) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        sqliteDatabase.beginTransaction();
+        try {
+            DaoGpsLogStats.saveStats(sqliteDatabase, logid, stats);
+            setTrackLengthm(logid, stats.lengthM);
+            sqliteDatabase.setTransactionSuccessful();
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Reads the statistics of a log, for example to continue it.
+     *
+     * @param logid the id of the log.
+     * @param stats the statistics to fill.
+     * @throws IOException if something goes wrong.
+     */
+    public void getTrackStatistics(long logid, TrackStatistics stats) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        DaoGpsLogStats.getStats(sqliteDatabase, logid, stats);
+    }
+
     /**
      * Get the gps logs.
      *
@@ -717,6 +810,12 @@ public class DaoGpsLog implements IGpsLogDbHelper {
             sqlUpdate.execute();
             sqlUpdate.close();
 
+            // the merged log is rebuilt the next time it is requested
+            DaoGpsLogOverviews.deleteOverviews(sqliteDatabase, logidToRemove);
+            DaoGpsLogOverviews.deleteOverviews(sqliteDatabase, destinationLogId);
+            DaoGpsLogStats.deleteStats(sqliteDatabase, logidToRemove);
+            DaoGpsLogStats.deleteStats(sqliteDatabase, destinationLogId);
+
             sqliteDatabase.setTransactionSuccessful();
         } catch (Exception e) {
             GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
@@ -849,6 +948,29 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     }
 
 
+    /**
+     * Get a cursor over the points of a log, ordered by time.
+     * <p/>
+     * <p>The columns are lon, lat, elevation and timestamp. The cursor has to be
+     * closed by the caller.</p>
+     *
+     * @param logId the id of the log.
+     * @return the cursor.
+     * @throws IOException if something goes wrong.
+     */
+    public static Cursor getGpslogDataCursor(long logId) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        String asColumnsToReturn[] = {//
+                GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(),//
+                GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(),//
+                GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName(),//
+                GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName()//
+        };
+        String where = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + " = " + logId;
+        String strSortOrder = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+        return sqliteDatabase.query(TABLE_GPSLOG_DATA, asColumnsToReturn, where, null, null, null, strSortOrder);
+    }
+
     /**
      * Get a tree index of gps points in a defined area.
      *
@@ -880,9 +1002,11 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                 ", g." + nameField + ", p." + colorField + ", p." + visibleField +
                 " from " + TableDescriptions.TABLE_GPSLOG_DATA + " d, " + TableDescriptions.TABLE_GPSLOGS +
                 " g, " + TableDescriptions.TABLE_GPSLOG_PROPERTIES + " p where " +
-                "d." + idField1 + "=g." + idField + " and p." + idField2 + "=g." + idField + " and " +
-                "d." + lonField + " > " + w + " and d." + lonField + " < " + e + " and " +
-                "d." + latField + " > " + s + " and d." + latField + " < " + n;
+                "d." + idField1 + "=g." + idField + " and p." + idField2 + "=g." + idField + " and ";
+        StringBuilder sB = new StringBuilder(sql);
+        DaoSpatialIndex.appendBoundsFilter(sB, sqliteDatabase, TableDescriptions.TABLE_GPSLOG_DATA_RTREE,
+                "d." + GpsLogsDataTableFields.COLUMN_ID.getFieldName(), "d." + lonField, "d." + latField, n, s, e, w);
+        sql = sB.toString();
 
         STRtree tree = new STRtree();
         Cursor c = null;
@@ -1105,7 +1229,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     List<TrackPoint> points = trackSegment.getPoints();
                     for (int i = 0; i < points.size(); i++) {
                         TrackPoint point = points.get(i);
-                        if (point.getTime() > 0) {
+                        if (point.getTime() != GpxParser.INVALID_TIME) {
                             date = point.getTime();
                         } else {
                             date = currentTimeMillis + i * 1000l;
@@ -1154,7 +1278,7 @@ public class DaoGpsLog implements IGpsLogDbHelper {
                     for (int i = 0; i < points.size(); i++) {
                         RoutePoint point = points.get(i);
                         long date;
-                        if (point.getTime() > 0) {
+                        if (point.getTime() != GpxParser.INVALID_TIME) {
                             date = point.getTime();
                         } else {
                             date = currentTimeMillis + i * 1000l;
@@ -1245,86 +1369,25 @@ public class DaoGpsLog implements IGpsLogDbHelper {
     }
 
     /**
-     * update the length of a log
+     * Recompute the statistics of a log from its data and update its length.
      *
      * @param logId the id of the log.
      * @return log length as double
      * @throws IOException if something goes wrong.
      */
     public static double updateLogLength(long logId) throws IOException {
-
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        TrackStatistics stats = new TrackStatistics();
         try {
-            // get the log data, sum up the distances
-            SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
-            String asColumnsToReturn[] = { //
-                    GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
-                    GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), //
-                    GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() //
-            };
-            String strSortOrder = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
-            String strWhere = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
-            Cursor c = null;
-            double summedDistance = 0.0;
-            double lon = 0.0;
-            double lat = 0.0;
-            double prevLon = 0.0;
-            double prevLat = 0.0;
-
-            if (GPLog.LOG_ABSURD)
-                GPLog.addLogEntry("DAOGPSLOG", strWhere);
-            try {
-                c = sqliteDatabase.query(TABLE_GPSLOG_DATA, asColumnsToReturn, strWhere, null, null, null, strSortOrder);
-                c.moveToFirst();
-                while (!c.isAfterLast()) {
-                    lon = c.getDouble(0);
-                    lat = c.getDouble(1);
-
-                    Location newLoc = new Location("tempLoc1"); //$NON-NLS-1$
-                    newLoc.setLongitude(lon);
-                    newLoc.setLatitude(lat);
-                    Location prevLoc = new Location("tempLoc2"); //$NON-NLS-1$
-
-                    if (GPLog.LOG_ABSURD) {
-                        GPLog.addLogEntry("DAOGPSLOG", "lon: " + String.valueOf(lon));
-                        GPLog.addLogEntry("DAOGPSLOG", "lat: " + String.valueOf(lat));
-                        GPLog.addLogEntry("DAOGPSLOG", "prevlon: " + String.valueOf(prevLon));
-                        GPLog.addLogEntry("DAOGPSLOG", "prevlat: " + String.valueOf(prevLat));
-                    }
-                    if (prevLon == 0.0) {
-                        prevLon = lon;
-                        prevLat = lat;
-                    }
-                    prevLoc.setLongitude(prevLon);
-                    prevLoc.setLatitude(prevLat);
-                    double lastDistance = newLoc.distanceTo(prevLoc);
-                    if (GPLog.LOG_ABSURD) {
-                        GPLog.addLogEntry("DAOGPSLOG", "distance: " + String.valueOf(lastDistance));
-                    }
-                    summedDistance = summedDistance + lastDistance;
-                    prevLon = lon;
-                    prevLat = lat;
-
-                    c.moveToNext();
-                }
-            } finally {
-                if (c != null)
-                    c.close();
-            }
-
-            // update the gpslogs table with the summed distance
-            sqliteDatabase.beginTransaction();
-            String query = "update " + TABLE_GPSLOGS + " set lengthm = " + summedDistance + " where " + GpsLogsTableFields.COLUMN_ID.getFieldName() + " = " + logId;
-            SQLiteStatement sqlUpdate = sqliteDatabase.compileStatement(query);
-            sqlUpdate.execute();
-            sqlUpdate.close();
-            sqliteDatabase.setTransactionSuccessful();
-            sqliteDatabase.endTransaction();
-
-            // send the summed distance back so we don't have to query the table again
-            return (summedDistance);
-        } catch (IOException e) {
-            GPLog.error("DAOMAPS", e.getLocalizedMessage(), e);
+            // compute the statistics from the log data and store them with the length
+            DaoGpsLogStats.computeStats(sqliteDatabase, logId, stats);
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOG", e.getLocalizedMessage(), e);
             throw new IOException(e.getLocalizedMessage());
         }
+        new DaoGpsLog().setTrackStatistics(logId, stats);
+
+        // send the summed distance back so we don't have to query the table again
+        return stats.lengthM;
     }
 }
@@ -0,0 +1,773 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import eu.geopaparazzi.core.GeopaparazziApplication;
+import eu.geopaparazzi.core.database.objects.GpsLogOverview;
+import eu.geopaparazzi.library.database.GPLog;
+
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsDataTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsExtentsTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsOverviewsTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsPropertiesTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_DATA;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_EXTENTS;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_OVERVIEWS;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_PROPERTIES;
+
+/**
+ * Simplified overview levels of the gps logs.
+ * <p/>
+ * <p>Every log is kept simplified at a few levels, each one with a tolerance of one pixel
+ * at the zoom level of {@link #LEVEL_ZOOMS}. The levels are built incrementally while the
+ * points are added to the log, in the same transaction, and the extents of the logs are
+ * kept to load only the logs that intersect the viewport.</p>
+ * <p/>
+ * <p>Logs created before the overviews existed are built in the background the first time
+ * they are requested, until then their full data is returned.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class DaoGpsLogOverviews {
+
+    /**
+     * The zoom levels the overview levels are built for. Above the last one the full log is used.
+     */
+    public static final int[] LEVEL_ZOOMS = {8, 11, 14};
+
+    private static final String INSERT_OVERVIEW = "INSERT INTO " + TABLE_GPSLOG_OVERVIEWS + " (" +
+            GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName() + ", " +
+            GpsLogsOverviewsTableFields.COLUMN_LEVEL.getFieldName() + ", " +
+            GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName() + ", " +
+            GpsLogsOverviewsTableFields.COLUMN_LON.getFieldName() + ", " +
+            GpsLogsOverviewsTableFields.COLUMN_LAT.getFieldName() + ") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String UPSERT_EXTENTS = "INSERT OR REPLACE INTO " + TABLE_GPSLOG_EXTENTS + " (" +
+            GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_MINLON.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_MINLAT.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_MAXLON.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_MAXLAT.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_LASTLON.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_LASTLAT.getFieldName() + ", " +
+            GpsLogsExtentsTableFields.COLUMN_LASTTS.getFieldName() + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SELECT_LASTTS = "SELECT " + GpsLogsExtentsTableFields.COLUMN_LASTTS.getFieldName() +
+            " FROM " + TABLE_GPSLOG_EXTENTS + " WHERE " + GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName() + " = ?";
+
+    /*
+     * the append state of the logs and the statements compiled against statementsDatabase,
+     * guarded by LOCK. The lock is always taken inside a db transaction, never the other way around.
+     */
+    private static final Object LOCK = new Object();
+    private static final Map<Long, LogState> STATES = new HashMap<>();
+    private static SQLiteDatabase statementsDatabase;
+    private static SQLiteStatement insertStmt;
+    private static SQLiteStatement upsertStmt;
+    private static SQLiteStatement lastTsStmt;
+
+    /*
+     * the legacy logs waiting to be built, guarded by itself.
+     */
+    private static final Set<Long> QUEUED_LOGS = new HashSet<>();
+    private static final ExecutorService REBUILD_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "DaoGpsLogOverviews");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The simplifiers and extents of a log that is appended to.
+     */
+    private static class LogState {
+        final long logId;
+        final GpsLogSimplifier[] simplifiers = new GpsLogSimplifier[LEVEL_ZOOMS.length];
+        boolean hasExtents = false;
+        double minLon;
+        double minLat;
+        double maxLon;
+        double maxLat;
+        double lastLon;
+        double lastLat;
+        long lastTs;
+
+        LogState(long logId) {
+            this.logId = logId;
+            for (int i = 0; i < LEVEL_ZOOMS.length; i++) {
+                // one pixel at the zoom level of the overview
+                simplifiers[i] = new GpsLogSimplifier(360.0 / (256L << LEVEL_ZOOMS[i]));
+            }
+        }
+    }
+
+    /**
+     * Create the overview tables, if they do not exist.
+     *
+     * @param sqliteDatabase the db to use.
+     * @throws IOException if something goes wrong.
+     */
+    public static void createTables(SQLiteDatabase sqliteDatabase) throws IOException {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_GPSLOG_OVERVIEWS);
+        sB.append(" (");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName()).append(" INTEGER NOT NULL, ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LEVEL.getFieldName()).append(" INTEGER NOT NULL, ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName()).append(" LONG NOT NULL, ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LAT.getFieldName()).append(" REAL NOT NULL");
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_OVERVIEWS = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE INDEX IF NOT EXISTS gpslogoverviews_logid_level_ts_idx ON ");
+        sB.append(TABLE_GPSLOG_OVERVIEWS);
+        sB.append(" ( ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_LEVEL.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName());
+        sB.append(" );");
+        String CREATE_INDEX_GPSLOG_OVERVIEWS = sB.toString();
+
+        sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_GPSLOG_EXTENTS);
+        sB.append(" (");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName()).append(" INTEGER PRIMARY KEY, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MINLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MINLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MAXLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MAXLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LASTLON.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LASTLAT.getFieldName()).append(" REAL NOT NULL, ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LASTTS.getFieldName()).append(" LONG NOT NULL");
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_EXTENTS = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOGOVERVIEWS", "Create the gpslog overviews table with: \n" + CREATE_TABLE_GPSLOG_OVERVIEWS);
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_OVERVIEWS);
+        sqliteDatabase.execSQL(CREATE_INDEX_GPSLOG_OVERVIEWS);
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOGOVERVIEWS", "Create the gpslog extents table with: \n" + CREATE_TABLE_GPSLOG_EXTENTS);
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_EXTENTS);
+    }
+
+    /**
+     * Get the overview level to use for a zoom level.
+     *
+     * @param zoom the map zoom level.
+     * @return the overview level or -1 if the full log should be used.
+     */
+    public static int getLevelForZoom(int zoom) {
+        for (int i = 0; i < LEVEL_ZOOMS.length; i++) {
+            if (zoom <= LEVEL_ZOOMS[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add points to the overviews of a log.
+     * <p/>
+     * <p>Has to be called with the points that are about to be added to the log data table,
+     * in the same transaction. If that transaction is rolled back, the state of the log is
+     * resumed from the stored overviews at the next call.</p>
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param lons           the longitudes.
+     * @param lats           the latitudes.
+     * @param timestamps     the UTC timestamps.
+     * @param from           the index of the first point to add.
+     * @param count          the number of points to add.
+     * @throws IOException if something goes wrong.
+     */
+    public static void appendPoints(SQLiteDatabase sqliteDatabase, long logId, double[] lons, double[] lats,
+                                    long[] timestamps, int from, int count) throws IOException {
+        sqliteDatabase.beginTransaction();
+        try {
+            synchronized (LOCK) {
+                try {
+                    LogState state = getState(sqliteDatabase, logId);
+                    int to = from + count;
+                    for (int i = from; i < to; i++) {
+                        double lon = lons[i];
+                        double lat = lats[i];
+                        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+                            continue;
+                        }
+                        feed(state, lon, lat, timestamps[i]);
+                    }
+                    writeExtents(state);
+                } catch (Exception e) {
+                    STATES.remove(logId);
+                    GPLog.error("DAOGPSLOGOVERVIEWS", e.getLocalizedMessage(), e);
+                    throw new IOException(e.getLocalizedMessage());
+                }
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Add a point to the overviews of a log.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param lon            the longitude.
+     * @param lat            the latitude.
+     * @param timestamp      the UTC timestamp.
+     * @throws IOException if something goes wrong.
+     * @see #appendPoints(SQLiteDatabase, long, double[], double[], long[], int, int)
+     */
+    public static void appendPoint(SQLiteDatabase sqliteDatabase, long logId, double lon, double lat, long timestamp)
+            throws IOException {
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+            return;
+        }
+        sqliteDatabase.beginTransaction();
+        try {
+            synchronized (LOCK) {
+                try {
+                    LogState state = getState(sqliteDatabase, logId);
+                    feed(state, lon, lat, timestamp);
+                    writeExtents(state);
+                } catch (Exception e) {
+                    STATES.remove(logId);
+                    GPLog.error("DAOGPSLOGOVERVIEWS", e.getLocalizedMessage(), e);
+                    throw new IOException(e.getLocalizedMessage());
+                }
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Rebuild the overviews of a log from its data.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @throws IOException if something goes wrong.
+     */
+    public static void rebuild(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        build(sqliteDatabase, logId, false);
+    }
+
+    /**
+     * Delete the overviews of a log.
+     * <p/>
+     * <p>A log without overviews is rebuilt from its data the next time it is requested.</p>
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @throws IOException if something goes wrong.
+     */
+    public static void deleteOverviews(SQLiteDatabase sqliteDatabase, long logId) throws IOException {
+        sqliteDatabase.beginTransaction();
+        try {
+            synchronized (LOCK) {
+                STATES.remove(logId);
+                deleteRows(sqliteDatabase, logId);
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOGOVERVIEWS", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Get the visible logs intersecting the given bounds, at an overview level.
+     * <p/>
+     * <p>The logs that have no overviews yet are returned with their full data, whatever the
+     * bounds, and their overviews are built in the background.</p>
+     *
+     * @param n     north bound.
+     * @param s     south bound.
+     * @param e     east bound.
+     * @param w     west bound.
+     * @param level the overview level as given by {@link #getLevelForZoom(int)}, -1 for the full logs.
+     * @return the list of logs.
+     * @throws IOException if something goes wrong.
+     */
+    public static List<GpsLogOverview> getOverviewLogs(double n, double s, double e, double w, int level)
+            throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        List<GpsLogOverview> logsList = new ArrayList<>();
+
+        // the logs that have no overviews yet
+        StringBuilder sB = new StringBuilder();
+        sB.append("select ");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName());
+        sB.append(", ");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_WIDTH.getFieldName());
+        sB.append(" from ");
+        sB.append(TABLE_GPSLOG_PROPERTIES);
+        sB.append(" where ");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_VISIBLE.getFieldName());
+        sB.append(" = 1 and ");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" not in (select ");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" from ");
+        sB.append(TABLE_GPSLOG_EXTENTS);
+        sB.append(")");
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.rawQuery(sB.toString(), null);
+            while (c.moveToNext()) {
+                GpsLogOverview log = new GpsLogOverview();
+                log.logId = c.getLong(0);
+                log.color = c.getString(1);
+                log.width = (float) c.getDouble(2);
+                log.lons = new double[64];
+                log.lats = new double[64];
+                readDataPoints(sqliteDatabase, log);
+                if (log.pointsCount > 1) {
+                    logsList.add(log);
+                }
+                scheduleBuild(sqliteDatabase, log.logId);
+            }
+        } catch (Exception ex) {
+            GPLog.error("DAOGPSLOGOVERVIEWS", ex.getLocalizedMessage(), ex);
+            throw new IOException(ex.getLocalizedMessage());
+        } finally {
+            if (c != null)
+                c.close();
+        }
+
+        sB = new StringBuilder();
+        sB.append("select x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(", p.");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_COLOR.getFieldName());
+        sB.append(", p.");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_WIDTH.getFieldName());
+        sB.append(", x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LASTLON.getFieldName());
+        sB.append(", x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LASTLAT.getFieldName());
+        sB.append(" from ");
+        sB.append(TABLE_GPSLOG_EXTENTS);
+        sB.append(" x, ");
+        sB.append(TABLE_GPSLOG_PROPERTIES);
+        sB.append(" p where x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" = p.");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_LOGID.getFieldName());
+        sB.append(" and p.");
+        sB.append(GpsLogsPropertiesTableFields.COLUMN_PROPERTIES_VISIBLE.getFieldName());
+        sB.append(" = 1 and x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MINLON.getFieldName()).append(" <= ").append(e);
+        sB.append(" and x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MAXLON.getFieldName()).append(" >= ").append(w);
+        sB.append(" and x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MINLAT.getFieldName()).append(" <= ").append(n);
+        sB.append(" and x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_MAXLAT.getFieldName()).append(" >= ").append(s);
+        sB.append(" order by x.");
+        sB.append(GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName());
+
+        c = null;
+        try {
+            c = sqliteDatabase.rawQuery(sB.toString(), null);
+            while (c.moveToNext()) {
+                GpsLogOverview log = new GpsLogOverview();
+                log.logId = c.getLong(0);
+                log.color = c.getString(1);
+                log.width = (float) c.getDouble(2);
+                log.lons = new double[64];
+                log.lats = new double[64];
+                if (level >= 0) {
+                    readOverviewPoints(sqliteDatabase, log, level);
+                    // the points after the last kept one are not part of the level
+                    addPoint(log, c.getDouble(3), c.getDouble(4));
+                } else {
+                    readDataPoints(sqliteDatabase, log);
+                }
+                if (log.pointsCount > 1) {
+                    logsList.add(log);
+                }
+            }
+        } catch (Exception ex) {
+            GPLog.error("DAOGPSLOGOVERVIEWS", ex.getLocalizedMessage(), ex);
+            throw new IOException(ex.getLocalizedMessage());
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        return logsList;
+    }
+
+    /**
+     * Queue the build of the overviews of a log that has none, unless it is queued already.
+     */
+    private static void scheduleBuild(final SQLiteDatabase sqliteDatabase, final long logId) {
+        synchronized (QUEUED_LOGS) {
+            if (!QUEUED_LOGS.add(logId)) {
+                return;
+            }
+        }
+        REBUILD_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build(sqliteDatabase, logId, true);
+                } catch (IOException e) {
+                    // already logged, the build is retried the next time the log is requested
+                } finally {
+                    synchronized (QUEUED_LOGS) {
+                        QUEUED_LOGS.remove(logId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Build the overviews of a log from all its data.
+     *
+     * @param onlyIfMissing if <code>true</code>, a log that has overviews already is left untouched.
+     */
+    private static void build(SQLiteDatabase sqliteDatabase, long logId, boolean onlyIfMissing) throws IOException {
+        sqliteDatabase.beginTransaction();
+        try {
+            synchronized (LOCK) {
+                try {
+                    prepareStatements(sqliteDatabase);
+                    if (!onlyIfMissing || readLastTs(logId) == null) {
+                        // the state is not kept, a log that is appended to resumes from the stored overviews
+                        STATES.remove(logId);
+                        deleteRows(sqliteDatabase, logId);
+                        buildFrom(sqliteDatabase, new LogState(logId));
+                    }
+                } catch (Exception e) {
+                    STATES.remove(logId);
+                    GPLog.error("DAOGPSLOGOVERVIEWS", e.getLocalizedMessage(), e);
+                    throw new IOException(e.getLocalizedMessage());
+                }
+            }
+            sqliteDatabase.setTransactionSuccessful();
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+    }
+
+    private static void readOverviewPoints(SQLiteDatabase sqliteDatabase, GpsLogOverview log, int level) {
+        String[] columns = {GpsLogsOverviewsTableFields.COLUMN_LON.getFieldName(), GpsLogsOverviewsTableFields.COLUMN_LAT.getFieldName()};
+        String where = GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName() + "=" + log.logId + " and "
+                + GpsLogsOverviewsTableFields.COLUMN_LEVEL.getFieldName() + "=" + level;
+        String order = GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName() + " ASC";
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_OVERVIEWS, columns, where, null, null, null, order);
+            while (c.moveToNext()) {
+                addPoint(log, c.getDouble(0), c.getDouble(1));
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    private static void readDataPoints(SQLiteDatabase sqliteDatabase, GpsLogOverview log) {
+        String[] columns = {GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName()};
+        String where = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + log.logId;
+        String order = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_DATA, columns, where, null, null, null, order);
+            while (c.moveToNext()) {
+                addPoint(log, c.getDouble(0), c.getDouble(1));
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    private static void addPoint(GpsLogOverview log, double lon, double lat) {
+        int count = log.pointsCount;
+        if (count > 0 && log.lons[count - 1] == lon && log.lats[count - 1] == lat) {
+            return;
+        }
+        if (count == log.lons.length) {
+            log.lons = Arrays.copyOf(log.lons, count * 2);
+            log.lats = Arrays.copyOf(log.lats, count * 2);
+        }
+        log.lons[count] = lon;
+        log.lats[count] = lat;
+        log.pointsCount = count + 1;
+    }
+
+    /**
+     * Get the append state of a log, compiling the statements if needed.
+     * <p/>
+     * <p>A kept state is used only if it matches the stored extents, it does not if the
+     * transaction it was advanced in has been rolled back. In that case, or if there is
+     * no state, it is resumed from the stored overviews.</p>
+     */
+    private static LogState getState(SQLiteDatabase sqliteDatabase, long logId) throws Exception {
+        prepareStatements(sqliteDatabase);
+        LogState state = STATES.get(logId);
+        if (state != null) {
+            Long storedTs = readLastTs(logId);
+            boolean matches = state.hasExtents ? storedTs != null && storedTs == state.lastTs : storedTs == null;
+            if (matches) {
+                return state;
+            }
+            STATES.remove(logId);
+        }
+        state = resume(sqliteDatabase, logId);
+        STATES.put(logId, state);
+        return state;
+    }
+
+    /**
+     * Compile the statements, only if the database changed or was closed.
+     */
+    private static void prepareStatements(SQLiteDatabase sqliteDatabase) {
+        if (insertStmt != null) {
+            if (statementsDatabase == sqliteDatabase && sqliteDatabase.isOpen()) {
+                return;
+            }
+            insertStmt.close();
+            upsertStmt.close();
+            lastTsStmt.close();
+            insertStmt = null;
+            // the kept states may come from a different database
+            STATES.clear();
+        }
+        upsertStmt = sqliteDatabase.compileStatement(UPSERT_EXTENTS);
+        lastTsStmt = sqliteDatabase.compileStatement(SELECT_LASTTS);
+        insertStmt = sqliteDatabase.compileStatement(INSERT_OVERVIEW);
+        statementsDatabase = sqliteDatabase;
+    }
+
+    /**
+     * @return the stored timestamp of the last point of a log or <code>null</code> if the log has no extents.
+     */
+    private static Long readLastTs(long logId) {
+        lastTsStmt.bindLong(1, logId);
+        try {
+            return lastTsStmt.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            lastTsStmt.clearBindings();
+        }
+    }
+
+    /**
+     * Set up the state to append to a log, continuing from what is stored.
+     */
+    private static LogState resume(SQLiteDatabase sqliteDatabase, long logId) throws Exception {
+        String[] columns = {GpsLogsExtentsTableFields.COLUMN_MINLON.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_MINLAT.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_MAXLON.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_MAXLAT.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_LASTLON.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_LASTLAT.getFieldName(),
+                GpsLogsExtentsTableFields.COLUMN_LASTTS.getFieldName()};
+        String where = GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
+        LogState state = new LogState(logId);
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_EXTENTS, columns, where, null, null, null, null);
+            if (c.moveToFirst()) {
+                state.hasExtents = true;
+                state.minLon = c.getDouble(0);
+                state.minLat = c.getDouble(1);
+                state.maxLon = c.getDouble(2);
+                state.maxLat = c.getDouble(3);
+                state.lastLon = c.getDouble(4);
+                state.lastLat = c.getDouble(5);
+                state.lastTs = c.getLong(6);
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        if (!state.hasExtents) {
+            deleteRows(sqliteDatabase, logId);
+            buildFrom(sqliteDatabase, state);
+            return state;
+        }
+
+        // anchor every level to its last kept point and refeed the points buffered after it
+        long[] anchorTs = new long[LEVEL_ZOOMS.length];
+        long minAnchorTs = Long.MAX_VALUE;
+        for (int level = 0; level < LEVEL_ZOOMS.length; level++) {
+            anchorTs[level] = Long.MIN_VALUE;
+            String[] overviewColumns = {GpsLogsOverviewsTableFields.COLUMN_LON.getFieldName(),
+                    GpsLogsOverviewsTableFields.COLUMN_LAT.getFieldName(), GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName()};
+            String overviewWhere = GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName() + "=" + logId + " and "
+                    + GpsLogsOverviewsTableFields.COLUMN_LEVEL.getFieldName() + "=" + level;
+            String order = GpsLogsOverviewsTableFields.COLUMN_TS.getFieldName() + " DESC";
+            c = null;
+            try {
+                c = sqliteDatabase.query(TABLE_GPSLOG_OVERVIEWS, overviewColumns, overviewWhere, null, null, null, order, "1");
+                if (c.moveToFirst()) {
+                    state.simplifiers[level].setAnchor(c.getDouble(0), c.getDouble(1));
+                    anchorTs[level] = c.getLong(2);
+                }
+            } finally {
+                if (c != null)
+                    c.close();
+            }
+            minAnchorTs = Math.min(minAnchorTs, anchorTs[level]);
+        }
+
+        String[] dataColumns = {GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(),
+                GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName()};
+        String dataWhere = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + logId + " and "
+                + GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + ">" + minAnchorTs;
+        String order = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+        c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_DATA, dataColumns, dataWhere, null, null, null, order);
+            while (c.moveToNext()) {
+                long ts = c.getLong(2);
+                for (int level = 0; level < LEVEL_ZOOMS.length; level++) {
+                    if (ts > anchorTs[level] && state.simplifiers[level].add(c.getDouble(0), c.getDouble(1), ts)) {
+                        insertKept(state, level);
+                    }
+                }
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        return state;
+    }
+
+    /**
+     * Build the overviews of a log from all its data, the log has no overview rows.
+     */
+    private static void buildFrom(SQLiteDatabase sqliteDatabase, LogState state) {
+        Cursor c = null;
+        try {
+            String[] columns = {GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(),
+                    GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName()};
+            String where = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + state.logId;
+            String order = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+            c = sqliteDatabase.query(TABLE_GPSLOG_DATA, columns, where, null, null, null, order);
+            while (c.moveToNext()) {
+                feed(state, c.getDouble(0), c.getDouble(1), c.getLong(2));
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+        writeExtents(state);
+    }
+
+    private static void feed(LogState state, double lon, double lat, long ts) {
+        for (int level = 0; level < state.simplifiers.length; level++) {
+            if (state.simplifiers[level].add(lon, lat, ts)) {
+                insertKept(state, level);
+            }
+        }
+        if (!state.hasExtents) {
+            state.hasExtents = true;
+            state.minLon = state.maxLon = lon;
+            state.minLat = state.maxLat = lat;
+        } else {
+            state.minLon = Math.min(state.minLon, lon);
+            state.maxLon = Math.max(state.maxLon, lon);
+            state.minLat = Math.min(state.minLat, lat);
+            state.maxLat = Math.max(state.maxLat, lat);
+        }
+        state.lastLon = lon;
+        state.lastLat = lat;
+        state.lastTs = ts;
+    }
+
+    private static void insertKept(LogState state, int level) {
+        GpsLogSimplifier simplifier = state.simplifiers[level];
+        insertStmt.bindLong(1, state.logId);
+        insertStmt.bindLong(2, level);
+        insertStmt.bindLong(3, simplifier.keptTs);
+        insertStmt.bindDouble(4, simplifier.keptLon);
+        insertStmt.bindDouble(5, simplifier.keptLat);
+        insertStmt.executeInsert();
+        insertStmt.clearBindings();
+    }
+
+    private static void writeExtents(LogState state) {
+        if (!state.hasExtents) {
+            return;
+        }
+        upsertStmt.bindLong(1, state.logId);
+        upsertStmt.bindDouble(2, state.minLon);
+        upsertStmt.bindDouble(3, state.minLat);
+        upsertStmt.bindDouble(4, state.maxLon);
+        upsertStmt.bindDouble(5, state.maxLat);
+        upsertStmt.bindDouble(6, state.lastLon);
+        upsertStmt.bindDouble(7, state.lastLat);
+        upsertStmt.bindLong(8, state.lastTs);
+        upsertStmt.executeInsert();
+        upsertStmt.clearBindings();
+    }
+
+    private static void deleteRows(SQLiteDatabase sqliteDatabase, long logId) {
+        String query = "delete from " + TABLE_GPSLOG_OVERVIEWS + " where " + GpsLogsOverviewsTableFields.COLUMN_LOGID.getFieldName() + " = " + logId;
+        SQLiteStatement sqlUpdate = sqliteDatabase.compileStatement(query);
+        sqlUpdate.execute();
+        sqlUpdate.close();
+
+        query = "delete from " + TABLE_GPSLOG_EXTENTS + " where " + GpsLogsExtentsTableFields.COLUMN_LOGID.getFieldName() + " = " + logId;
+        sqlUpdate = sqliteDatabase.compileStatement(query);
+        sqlUpdate.execute();
+        sqlUpdate.close();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.io.IOException;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gps.TrackStatistics;
+
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsDataTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsStatsTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_DATA;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_STATS;
+
+/**
+ * Persisted {@link TrackStatistics} of the gps logs.
+ * <p/>
+ * <p>The statistics are written when a log is closed and computed once from the
+ * log data for logs that have none, so that they never need to be computed again
+ * from the points.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class DaoGpsLogStats {
+
+    /*
+     * the stored columns, in the order they are read and written
+     */
+    private static final GpsLogsStatsTableFields[] COLUMNS = GpsLogsStatsTableFields.values();
+
+    /**
+     * Create the statistics table, if it does not exist.
+     *
+     * @param sqliteDatabase the db to use.
+     * @throws IOException if something goes wrong.
+     */
+    public static void createTables(SQLiteDatabase sqliteDatabase) throws IOException {
+        StringBuilder sB = new StringBuilder();
+        sB.append("CREATE TABLE IF NOT EXISTS ");
+        sB.append(TABLE_GPSLOG_STATS);
+        sB.append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            GpsLogsStatsTableFields field = COLUMNS[i];
+            if (i > 0) {
+                sB.append(", ");
+            }
+            sB.append(field.getFieldName());
+            if (field == GpsLogsStatsTableFields.COLUMN_LOGID) {
+                sB.append(" INTEGER PRIMARY KEY");
+            } else if (field.getFieldClass() == Long.class) {
+                sB.append(" LONG NOT NULL");
+            } else {
+                sB.append(" REAL NOT NULL");
+            }
+        }
+        sB.append(");");
+        String CREATE_TABLE_GPSLOG_STATS = sB.toString();
+
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOGPSLOGSTATS", "Create the gpslog stats table with: \n" + CREATE_TABLE_GPSLOG_STATS);
+        sqliteDatabase.execSQL(CREATE_TABLE_GPSLOG_STATS);
+    }
+
+    /**
+     * Store the statistics of a log.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param stats          the statistics.
+     * @throws IOException if something goes wrong.
+     */
+    public static void saveStats(SQLiteDatabase sqliteDatabase, long logId, TrackStatistics stats) throws IOException {
+        StringBuilder sB = new StringBuilder();
+        sB.append("INSERT OR REPLACE INTO ").append(TABLE_GPSLOG_STATS).append(" (");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                sB.append(", ");
+            }
+            sB.append(COLUMNS[i].getFieldName());
+        }
+        sB.append(") VALUES (?");
+        for (int i = 1; i < COLUMNS.length; i++) {
+            sB.append(", ?");
+        }
+        sB.append(")");
+
+        SQLiteStatement insertStmt = sqliteDatabase.compileStatement(sB.toString());
+        try {
+            int i = 1;
+            insertStmt.bindLong(i++, logId);
+            insertStmt.bindLong(i++, stats.pointsCount);
+            insertStmt.bindLong(i++, stats.startTs);
+            insertStmt.bindLong(i++, stats.endTs);
+            insertStmt.bindDouble(i++, stats.lengthM);
+            insertStmt.bindLong(i++, stats.movingMillis);
+            insertStmt.bindDouble(i++, stats.movingLengthM);
+            insertStmt.bindDouble(i++, stats.minSpeed);
+            insertStmt.bindDouble(i++, stats.maxSpeed);
+            insertStmt.bindDouble(i++, stats.elevationGain);
+            insertStmt.bindDouble(i++, stats.elevationLoss);
+            insertStmt.bindDouble(i++, stats.minElevation);
+            insertStmt.bindDouble(i++, stats.maxElevation);
+            insertStmt.bindDouble(i++, stats.minLon);
+            insertStmt.bindDouble(i++, stats.minLat);
+            insertStmt.bindDouble(i++, stats.maxLon);
+            insertStmt.bindDouble(i++, stats.maxLat);
+            insertStmt.bindDouble(i++, stats.lastLon);
+            insertStmt.bindDouble(i++, stats.lastLat);
+            insertStmt.bindDouble(i, stats.lastElevation);
+            insertStmt.executeInsert();
+        } catch (Exception e) {
+            GPLog.error("DAOGPSLOGSTATS", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            insertStmt.close();
+        }
+    }
+
+    /**
+     * Read the stored statistics of a log.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param stats          the statistics to fill.
+     * @return <code>true</code> if the log has stored statistics.
+     */
+    public static boolean readStats(SQLiteDatabase sqliteDatabase, long logId, TrackStatistics stats) {
+        String[] columns = new String[COLUMNS.length - 1];
+        for (int i = 1; i < COLUMNS.length; i++) {
+            columns[i - 1] = COLUMNS[i].getFieldName();
+        }
+        String where = GpsLogsStatsTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_STATS, columns, where, null, null, null, null);
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            int i = 0;
+            stats.pointsCount = c.getLong(i++);
+            stats.startTs = c.getLong(i++);
+            stats.endTs = c.getLong(i++);
+            stats.lengthM = c.getDouble(i++);
+            stats.movingMillis = c.getLong(i++);
+            stats.movingLengthM = c.getDouble(i++);
+            stats.minSpeed = c.getDouble(i++);
+            stats.maxSpeed = c.getDouble(i++);
+            stats.elevationGain = c.getDouble(i++);
+            stats.elevationLoss = c.getDouble(i++);
+            stats.minElevation = c.getDouble(i++);
+            stats.maxElevation = c.getDouble(i++);
+            stats.minLon = c.getDouble(i++);
+            stats.minLat = c.getDouble(i++);
+            stats.maxLon = c.getDouble(i++);
+            stats.maxLat = c.getDouble(i++);
+            stats.lastLon = c.getDouble(i++);
+            stats.lastLat = c.getDouble(i++);
+            stats.lastElevation = c.getDouble(i);
+            return true;
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    /**
+     * Compute the statistics of a log from its data.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param stats          the statistics to fill, they are reset first.
+     */
+    public static void computeStats(SQLiteDatabase sqliteDatabase, long logId, TrackStatistics stats) {
+        stats.reset();
+        String[] columns = { //
+                GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName(), //
+                GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName(), //
+                GpsLogsDataTableFields.COLUMN_DATA_ALTIM.getFieldName(), //
+                GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() //
+        };
+        String where = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName() + "=" + logId;
+        String order = GpsLogsDataTableFields.COLUMN_DATA_TS.getFieldName() + " ASC";
+        Cursor c = null;
+        try {
+            c = sqliteDatabase.query(TABLE_GPSLOG_DATA, columns, where, null, null, null, order);
+            while (c.moveToNext()) {
+                stats.addPoint(c.getDouble(0), c.getDouble(1), c.getDouble(2), c.getLong(3));
+            }
+        } finally {
+            if (c != null)
+                c.close();
+        }
+    }
+
+    /**
+     * Get the statistics of a log, computing and storing them if the log has none.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     * @param stats          the statistics to fill.
+     * @throws IOException if something goes wrong.
+     */
+    public static void getStats(SQLiteDatabase sqliteDatabase, long logId, TrackStatistics stats) throws IOException {
+        if (!readStats(sqliteDatabase, logId, stats)) {
+            computeStats(sqliteDatabase, logId, stats);
+            saveStats(sqliteDatabase, logId, stats);
+        }
+    }
+
+    /**
+     * Delete the statistics of a log.
+     *
+     * @param sqliteDatabase the db to use.
+     * @param logId          the id of the log.
+     */
+    public static void deleteStats(SQLiteDatabase sqliteDatabase, long logId) {
+        String query = "delete from " + TABLE_GPSLOG_STATS + " where " + GpsLogsStatsTableFields.COLUMN_LOGID.getFieldName() + " = " + logId;
+        SQLiteStatement sqlUpdate = sqliteDatabase.compileStatement(query);
+        sqlUpdate.execute();
+        sqlUpdate.close();
+    }
+}
@@ -29,7 +29,9 @@ import org.mapsforge.core.model.GeoPoint;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
@@ -51,6 +53,11 @@ import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_IMAGE_DATA;
 @SuppressWarnings("nls")
 public class DaoImages implements IImagesDbHelper {
 
+    /**
+     * Size of the chunks image data are read in when streamed.
+     */
+    private static final int IMAGE_CHUNK_SIZE = 256 * 1024;
+
     /**
      * Create the image tables.
      *
@@ -462,6 +469,49 @@ public class DaoImages implements IImagesDbHelper {
         return null;
     }
 
+    public void writeImageData(long imageId, OutputStream outputStream) throws IOException {
+        SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        StringBuilder sB = new StringBuilder();
+        sB.append("SELECT d.").append(ImageDataTableFields.COLUMN_ID.getFieldName());
+        sB.append(", length(d.").append(ImageDataTableFields.COLUMN_IMAGE.getFieldName()).append(")");
+        sB.append(" FROM ").append(TABLE_IMAGES).append(" i, ").append(TABLE_IMAGE_DATA).append(" d");
+        sB.append(" WHERE i.").append(ImageTableFields.COLUMN_IMAGEDATA_ID.getFieldName());
+        sB.append(" = d.").append(ImageDataTableFields.COLUMN_ID.getFieldName());
+        sB.append(" AND i.").append(ImageTableFields.COLUMN_ID.getFieldName()).append(" = ").append(imageId);
+        long imageDataId = -1;
+        long blobSize = 0;
+        Cursor c = sqliteDatabase.rawQuery(sB.toString(), null);
+        try {
+            if (c.moveToFirst()) {
+                imageDataId = c.getLong(0);
+                blobSize = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+        if (imageDataId == -1) {
+            return;
+        }
+
+        // read in chunks, a single blob might not even fit in a cursor window
+        for (long from = 1; from <= blobSize; from = from + IMAGE_CHUNK_SIZE) {
+            long size = Math.min(IMAGE_CHUNK_SIZE, blobSize - from + 1);
+            String chunkQuery = "SELECT substr(" + ImageDataTableFields.COLUMN_IMAGE.getFieldName() + ", " + from + ", " + size
+                    + ") FROM " + TABLE_IMAGE_DATA + " WHERE " + ImageDataTableFields.COLUMN_ID.getFieldName() + " = " + imageDataId;
+            Cursor chunkCursor = sqliteDatabase.rawQuery(chunkQuery, null);
+            try {
+                if (chunkCursor.moveToFirst()) {
+                    byte[] chunk = chunkCursor.getBlob(0);
+                    if (chunk != null) {
+                        outputStream.write(chunk);
+                    }
+                }
+            } finally {
+                chunkCursor.close();
+            }
+        }
+    }
+
     public byte[] getImageDataById(long imageDataId, SQLiteDatabase sqliteDatabase) throws IOException {
         if (sqliteDatabase == null) {
             sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
@@ -582,17 +632,18 @@ public class DaoImages implements IImagesDbHelper {
      * @param onlyStandalone if true, only pure image notes are returned.
      *                       One example of non pure image notes is the image
      *                       that belongs to a form based note.
-     * @return the list of {@link OverlayItem}s.
+     * @return the {@link OverlayItem}s by image id, in id order.
      * @throws IOException if something goes wrong.
      */
-    public static List<OverlayItem> getImagesOverlayList(Drawable marker, boolean onlyStandalone) throws IOException {
+    public static LinkedHashMap<Long, OverlayItem> getImagesOverlays(Drawable marker, boolean onlyStandalone) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
-        List<OverlayItem> images = new ArrayList<>();
+        LinkedHashMap<Long, OverlayItem> images = new LinkedHashMap<>();
         String asColumnsToReturn[] = {//
                 ImageTableFields.COLUMN_LON.getFieldName(),//
                 ImageTableFields.COLUMN_LAT.getFieldName(), //
                 ImageTableFields.COLUMN_IMAGEDATA_ID.getFieldName(),//
-                ImageTableFields.COLUMN_TEXT.getFieldName()//
+                ImageTableFields.COLUMN_TEXT.getFieldName(),//
+                ImageTableFields.COLUMN_ID.getFieldName()//
         };
         String strSortOrder = "_id ASC";
         String whereString = null;
@@ -606,9 +657,10 @@ public class DaoImages implements IImagesDbHelper {
             double lat = c.getDouble(1);
             long imageDataId = c.getLong(2);
             String text = c.getString(3);
+            long id = c.getLong(4);
 
             OverlayItem image = new OverlayItem(new GeoPoint(lat, lon), text, imageDataId + "", marker);
-            images.add(image);
+            images.put(id, image);
             c.moveToNext();
         }
         c.close();
@@ -30,6 +30,7 @@ import org.mapsforge.core.model.GeoPoint;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
@@ -42,6 +43,7 @@ import eu.geopaparazzi.core.database.objects.NoteOverlayItem;
 
 import static eu.geopaparazzi.core.database.TableDescriptions.NotesTableFields;
 import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_NOTES;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_NOTES_RTREE;
 
 /**
  * @author Andrea Antonello (www.hydrologis.com)
@@ -81,16 +83,6 @@ public class DaoNotes {
         sB.append(" );");
         String CREATE_INDEX_NOTES_TS = sB.toString();
 
-        sB = new StringBuilder();
-        sB.append("CREATE INDEX notes_x_by_y_idx ON ");
-        sB.append(TABLE_NOTES);
-        sB.append(" ( ");
-        sB.append(NotesTableFields.COLUMN_LON.getFieldName());
-        sB.append(", ");
-        sB.append(NotesTableFields.COLUMN_LAT.getFieldName());
-        sB.append(" );");
-        String CREATE_INDEX_NOTES_X_BY_Y = sB.toString();
-
         sB = new StringBuilder();
         sB.append("CREATE INDEX notes_isdirty_idx ON ");
         sB.append(TABLE_NOTES);
@@ -107,7 +99,6 @@ public class DaoNotes {
         try {
             sqliteDatabase.execSQL(CREATE_TABLE_NOTES);
             sqliteDatabase.execSQL(CREATE_INDEX_NOTES_TS);
-            sqliteDatabase.execSQL(CREATE_INDEX_NOTES_X_BY_Y);
             sqliteDatabase.execSQL(CREATE_INDEX_NOTES_ISDIRTY);
 
             sqliteDatabase.setTransactionSuccessful();
@@ -293,11 +284,12 @@ public class DaoNotes {
                 NotesTableFields.COLUMN_ISDIRTY.getFieldName() +//
                 " FROM " + TABLE_NOTES;
         if (nswe != null) {
-            query = query + " WHERE (lon BETWEEN XXX AND XXX) AND (lat BETWEEN XXX AND XXX)";
-            query = query.replaceFirst("XXX", String.valueOf(nswe[2]));
-            query = query.replaceFirst("XXX", String.valueOf(nswe[3]));
-            query = query.replaceFirst("XXX", String.valueOf(nswe[1]));
-            query = query.replaceFirst("XXX", String.valueOf(nswe[0]));
+            StringBuilder sB = new StringBuilder(query);
+            sB.append(" WHERE ");
+            DaoSpatialIndex.appendBoundsFilter(sB, sqliteDatabase, TABLE_NOTES_RTREE, NotesTableFields.COLUMN_ID.getFieldName(),
+                    NotesTableFields.COLUMN_LON.getFieldName(), NotesTableFields.COLUMN_LAT.getFieldName(),
+                    nswe[0], nswe[1], nswe[3], nswe[2]);
+            query = sB.toString();
         }
         if (onlyDirty)
             query = query + " AND " + NotesTableFields.COLUMN_ISDIRTY.getFieldName() + " = 1";
@@ -377,20 +369,21 @@ public class DaoNotes {
     }
 
     /**
-     * Get the list of notes from the db as OverlayItems.
+     * Get the notes from the db as OverlayItems.
      *
      * @param marker the marker to use.
-     * @return list of notes.
+     * @return the notes by id, in id order.
      * @throws IOException if something goes wrong.
      */
-    public static List<OverlayItem> getNoteOverlaysList(Drawable marker) throws IOException {
+    public static LinkedHashMap<Long, OverlayItem> getNoteOverlays(Drawable marker) throws IOException {
         SQLiteDatabase sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
-        List<OverlayItem> notesList = new ArrayList<>();
+        LinkedHashMap<Long, OverlayItem> notesMap = new LinkedHashMap<>();
         String asColumnsToReturn[] = { //
                 NotesTableFields.COLUMN_LON.getFieldName(), //
                 NotesTableFields.COLUMN_LAT.getFieldName(), //
                 NotesTableFields.COLUMN_TS.getFieldName(), //
-                NotesTableFields.COLUMN_TEXT.getFieldName() //
+                NotesTableFields.COLUMN_TEXT.getFieldName(), //
+                NotesTableFields.COLUMN_ID.getFieldName() //
         };// ,
         String strSortOrder = "_id ASC";
         Cursor c = sqliteDatabase.query(TABLE_NOTES, asColumnsToReturn, null, null, null, null, strSortOrder);
@@ -401,11 +394,13 @@ public class DaoNotes {
 
 
             if(!PositionUtilities.isValidCoordinateLL(lon, lat)){
+                c.moveToNext();
                 continue;
             }
 
             long date = c.getLong(2);
             String text = c.getString(3);
+            long id = c.getLong(4);
 
             StringBuilder description = new StringBuilder();
             description.append(text);
@@ -413,12 +408,12 @@ public class DaoNotes {
             description.append(TimeUtilities.INSTANCE.TIME_FORMATTER_LOCAL.format(new Date(date)));
 
             NoteOverlayItem item1 = new NoteOverlayItem(new GeoPoint(lat, lon), text, description.toString(), marker);
-            notesList.add(item1);
+            notesMap.put(id, item1);
 
             c.moveToNext();
         }
         c.close();
-        return notesList;
+        return notesMap;
     }
 
 
@@ -0,0 +1,262 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.io.IOException;
+
+import eu.geopaparazzi.library.database.GPLog;
+
+import static eu.geopaparazzi.core.database.TableDescriptions.GpsLogsDataTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.NotesTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.RtreeTableFields;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_DATA;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_GPSLOG_DATA_RTREE;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_NOTES;
+import static eu.geopaparazzi.core.database.TableDescriptions.TABLE_NOTES_RTREE;
+
+/**
+ * R*Tree spatial indexes of the gps log points and the notes.
+ * <p/>
+ * <p>The indexes are kept up to date by triggers, so every insert path is covered. The
+ * gps log points are indexed by the bounding box of the segment that ends in them,
+ * which contains the point itself, so the index is always a valid prefilter for point
+ * queries. Queries still check the coordinates of the rows.</p>
+ * <p/>
+ * <p>If the sqlite build has no R*Tree module, no index is created and the queries fall
+ * back to the coordinate ranges on the tables.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class DaoSpatialIndex {
+
+    /**
+     * The coordinate indexes of databases created before the R*Tree indexes, and of those
+     * whose sqlite build has no R*Tree module.
+     */
+    private static final String[] COORDINATE_INDEXES = {"gpslog_x_by_y_idx", "gpslog_logid_x_y_idx", "notes_x_by_y_idx"};
+
+    private static SQLiteDatabase checkedDatabase;
+    private static boolean checkedAvailable;
+
+    /**
+     * Create the R*Tree indexes and fill them with the existing data.
+     * <p/>
+     * <p>If R*Tree is not supported, the coordinate indexes are created instead.</p>
+     *
+     * @param sqliteDatabase the db to use.
+     * @return <code>true</code> if the indexes have been created, <code>false</code> if R*Tree is not supported.
+     * @throws IOException if something goes wrong.
+     */
+    public static synchronized boolean createTables(SQLiteDatabase sqliteDatabase) throws IOException {
+        try {
+            sqliteDatabase.execSQL(createRtreeSql(TABLE_GPSLOG_DATA_RTREE));
+        } catch (SQLException e) {
+            GPLog.error("DAOSPATIALINDEX", "R*Tree not supported, coordinate indexes are created instead.", e);
+            checkedDatabase = sqliteDatabase;
+            checkedAvailable = false;
+            createCoordinateIndexes(sqliteDatabase);
+            return false;
+        }
+
+        String id = GpsLogsDataTableFields.COLUMN_ID.getFieldName();
+        String logId = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName();
+        String lon = GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName();
+        String lat = GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName();
+
+        sqliteDatabase.beginTransaction();
+        try {
+            sqliteDatabase.execSQL(createRtreeSql(TABLE_NOTES_RTREE));
+
+            /*
+             * gps log points, indexed by the box of the segment from the previous point of the log
+             */
+            StringBuilder sB = new StringBuilder();
+            sB.append("CREATE TRIGGER IF NOT EXISTS gpslogsdata_rtree_insert AFTER INSERT ON ");
+            sB.append(TABLE_GPSLOG_DATA);
+            sB.append(" BEGIN INSERT INTO ").append(TABLE_GPSLOG_DATA_RTREE);
+            sB.append(" SELECT NEW.").append(id);
+            sB.append(", min(p.").append(lon).append("), max(p.").append(lon);
+            sB.append("), min(p.").append(lat).append("), max(p.").append(lat).append(")");
+            sB.append(" FROM (SELECT NEW.").append(lon).append(" AS ").append(lon);
+            sB.append(", NEW.").append(lat).append(" AS ").append(lat);
+            sB.append(" UNION ALL SELECT * FROM (SELECT ").append(lon).append(", ").append(lat);
+            sB.append(" FROM ").append(TABLE_GPSLOG_DATA);
+            sB.append(" WHERE ").append(logId).append(" = NEW.").append(logId);
+            sB.append(" AND ").append(id).append(" < NEW.").append(id);
+            sB.append(" ORDER BY ").append(id).append(" DESC LIMIT 1)) p; END;");
+            sqliteDatabase.execSQL(sB.toString());
+            sqliteDatabase.execSQL(createDeleteTriggerSql("gpslogsdata_rtree_delete", TABLE_GPSLOG_DATA, TABLE_GPSLOG_DATA_RTREE, id));
+
+            sB = new StringBuilder();
+            sB.append("INSERT OR REPLACE INTO ").append(TABLE_GPSLOG_DATA_RTREE);
+            sB.append(" SELECT d.").append(id);
+            sB.append(", min(d.").append(lon).append(", coalesce(p.").append(lon).append(", d.").append(lon).append("))");
+            sB.append(", max(d.").append(lon).append(", coalesce(p.").append(lon).append(", d.").append(lon).append("))");
+            sB.append(", min(d.").append(lat).append(", coalesce(p.").append(lat).append(", d.").append(lat).append("))");
+            sB.append(", max(d.").append(lat).append(", coalesce(p.").append(lat).append(", d.").append(lat).append("))");
+            sB.append(" FROM ").append(TABLE_GPSLOG_DATA).append(" d LEFT JOIN ").append(TABLE_GPSLOG_DATA);
+            sB.append(" p ON p.").append(id).append(" = (SELECT max(").append(id).append(") FROM ").append(TABLE_GPSLOG_DATA);
+            sB.append(" WHERE ").append(logId).append(" = d.").append(logId);
+            sB.append(" AND ").append(id).append(" < d.").append(id).append(")");
+            sqliteDatabase.execSQL(sB.toString());
+
+            /*
+             * notes, indexed by their position
+             */
+            createPointIndex(sqliteDatabase, "notes", TABLE_NOTES, TABLE_NOTES_RTREE, NotesTableFields.COLUMN_ID.getFieldName(),
+                    NotesTableFields.COLUMN_LON.getFieldName(), NotesTableFields.COLUMN_LAT.getFieldName());
+
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            GPLog.error("DAOSPATIALINDEX", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+        }
+        if (GPLog.LOG_ANDROID)
+            Log.i("DAOSPATIALINDEX", "Created the R*Tree spatial indexes.");
+        checkedDatabase = null;
+        return true;
+    }
+
+    /**
+     * Create the R*Tree indexes in an existing database and drop the coordinate indexes they replace.
+     *
+     * @param sqliteDatabase the db to upgrade.
+     * @return <code>true</code> if the indexes have been created, <code>false</code> if R*Tree is not supported.
+     * @throws IOException if something goes wrong.
+     */
+    public static synchronized boolean upgradeTables(SQLiteDatabase sqliteDatabase) throws IOException {
+        if (!createTables(sqliteDatabase)) {
+            return false;
+        }
+        try {
+            for (String index : COORDINATE_INDEXES) {
+                sqliteDatabase.execSQL("DROP INDEX IF EXISTS " + index);
+            }
+        } catch (SQLException e) {
+            GPLog.error("DAOSPATIALINDEX", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Check if the spatial indexes are available in a database.
+     *
+     * @param sqliteDatabase the db to check.
+     * @return <code>true</code> if the R*Tree indexes exist.
+     */
+    public static synchronized boolean isAvailable(SQLiteDatabase sqliteDatabase) {
+        if (sqliteDatabase != checkedDatabase) {
+            Cursor c = null;
+            try {
+                c = sqliteDatabase.rawQuery("SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name IN ('"
+                        + TABLE_GPSLOG_DATA_RTREE + "', '" + TABLE_NOTES_RTREE + "')", null);
+                checkedAvailable = c.moveToFirst() && c.getInt(0) == 2;
+            } finally {
+                if (c != null)
+                    c.close();
+            }
+            checkedDatabase = sqliteDatabase;
+        }
+        return checkedAvailable;
+    }
+
+    /**
+     * Append a bounds filter on a table to a where clause.
+     * <p/>
+     * <p>The filter uses the R*Tree index, if available, and always checks the coordinates.</p>
+     *
+     * @param sB             the builder of the where clause.
+     * @param sqliteDatabase the db to use.
+     * @param rtreeTable     the R*Tree index table of the filtered table.
+     * @param idExpr         the expression of the row id in the query.
+     * @param lonExpr        the expression of the longitude in the query.
+     * @param latExpr        the expression of the latitude in the query.
+     * @param n              north bound.
+     * @param s              south bound.
+     * @param e              east bound.
+     * @param w              west bound.
+     */
+    public static void appendBoundsFilter(StringBuilder sB, SQLiteDatabase sqliteDatabase, String rtreeTable, String idExpr,
+                                          String lonExpr, String latExpr, double n, double s, double e, double w) {
+        if (isAvailable(sqliteDatabase)) {
+            sB.append(idExpr).append(" IN (SELECT ").append(RtreeTableFields.COLUMN_ID.getFieldName());
+            sB.append(" FROM ").append(rtreeTable).append(" WHERE ");
+            sB.append(RtreeTableFields.COLUMN_MINX.getFieldName()).append(" <= ").append(e).append(" AND ");
+            sB.append(RtreeTableFields.COLUMN_MAXX.getFieldName()).append(" >= ").append(w).append(" AND ");
+            sB.append(RtreeTableFields.COLUMN_MINY.getFieldName()).append(" <= ").append(n).append(" AND ");
+            sB.append(RtreeTableFields.COLUMN_MAXY.getFieldName()).append(" >= ").append(s).append(") AND ");
+        }
+        sB.append("(").append(lonExpr).append(" BETWEEN ").append(w).append(" AND ").append(e).append(") AND ");
+        sB.append("(").append(latExpr).append(" BETWEEN ").append(s).append(" AND ").append(n).append(")");
+    }
+
+    private static void createCoordinateIndexes(SQLiteDatabase sqliteDatabase) throws IOException {
+        String logId = GpsLogsDataTableFields.COLUMN_LOGID.getFieldName();
+        String lon = GpsLogsDataTableFields.COLUMN_DATA_LON.getFieldName();
+        String lat = GpsLogsDataTableFields.COLUMN_DATA_LAT.getFieldName();
+        String notesLon = NotesTableFields.COLUMN_LON.getFieldName();
+        String notesLat = NotesTableFields.COLUMN_LAT.getFieldName();
+        try {
+            sqliteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + COORDINATE_INDEXES[0] + " ON " + TABLE_GPSLOG_DATA //
+                    + " ( " + lon + ", " + lat + " );");
+            sqliteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + COORDINATE_INDEXES[1] + " ON " + TABLE_GPSLOG_DATA //
+                    + " ( " + logId + ", " + lon + ", " + lat + " );");
+            sqliteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + COORDINATE_INDEXES[2] + " ON " + TABLE_NOTES //
+                    + " ( " + notesLon + ", " + notesLat + " );");
+        } catch (SQLException e) {
+            GPLog.error("DAOSPATIALINDEX", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    private static String createRtreeSql(String rtreeTable) {
+        return "CREATE VIRTUAL TABLE IF NOT EXISTS " + rtreeTable + " USING rtree(" //
+                + RtreeTableFields.COLUMN_ID.getFieldName() + ", " //
+                + RtreeTableFields.COLUMN_MINX.getFieldName() + ", " //
+                + RtreeTableFields.COLUMN_MAXX.getFieldName() + ", " //
+                + RtreeTableFields.COLUMN_MINY.getFieldName() + ", " //
+                + RtreeTableFields.COLUMN_MAXY.getFieldName() + ")";
+    }
+
+    private static String createDeleteTriggerSql(String triggerName, String table, String rtreeTable, String id) {
+        return "CREATE TRIGGER IF NOT EXISTS " + triggerName + " AFTER DELETE ON " + table //
+                + " BEGIN DELETE FROM " + rtreeTable + " WHERE " + RtreeTableFields.COLUMN_ID.getFieldName() //
+                + " = OLD." + id + "; END;";
+    }
+
+    private static void createPointIndex(SQLiteDatabase sqliteDatabase, String prefix, String table, String rtreeTable,
+                                         String id, String lon, String lat) {
+        String values = "NEW." + id + ", NEW." + lon + ", NEW." + lon + ", NEW." + lat + ", NEW." + lat;
+        sqliteDatabase.execSQL("CREATE TRIGGER IF NOT EXISTS " + prefix + "_rtree_insert AFTER INSERT ON " + table //
+                + " BEGIN INSERT INTO " + rtreeTable + " VALUES (" + values + "); END;");
+        sqliteDatabase.execSQL("CREATE TRIGGER IF NOT EXISTS " + prefix + "_rtree_update AFTER UPDATE OF " + lon + ", " + lat //
+                + " ON " + table + " BEGIN INSERT OR REPLACE INTO " + rtreeTable + " VALUES (" + values + "); END;");
+        sqliteDatabase.execSQL(createDeleteTriggerSql(prefix + "_rtree_delete", table, rtreeTable, id));
+        sqliteDatabase.execSQL("INSERT OR REPLACE INTO " + rtreeTable + " SELECT " + id + ", " + lon + ", " + lon + ", " //
+                + lat + ", " + lat + " FROM " + table);
+    }
+}
@@ -40,7 +40,7 @@ public class DatabaseManager {
     /**
      * The db version.
      */
-    public static final int DATABASE_VERSION = 9;
+    public static final int DATABASE_VERSION = 12;
 
     private static final String DEBUG_TAG = "DATABASEMANAGER";
 
@@ -148,8 +148,11 @@ public class DatabaseManager {
             DaoMetadata.initProjectMetadata(null, null, null, null);
             DaoNotes.createTables();
             DaoGpsLog.createTables();
+            DaoGpsLogOverviews.createTables(db);
+            DaoGpsLogStats.createTables(db);
             DaoBookmarks.createTables();
             DaoImages.createTables();
+            DaoSpatialIndex.createTables(db);
         }
 
         /**
@@ -203,6 +206,22 @@ public class DatabaseManager {
 //            } finally {
 //                db.endTransaction();
 //            }
+            if (oldDbVersion <= 9) {
+                Log.i(DEBUG_TAG, "Db upgrade to 10");
+                // the overviews of the existing logs are built in the background when first requested
+                DaoGpsLogOverviews.createTables(db);
+            }
+            if (oldDbVersion <= 10) {
+                Log.i(DEBUG_TAG, "Db upgrade to 11");
+                // replaces the coordinate indexes, if R*Tree is supported
+                DaoSpatialIndex.upgradeTables(db);
+            }
+            if (oldDbVersion <= 11) {
+                Log.i(DEBUG_TAG, "Db upgrade to 12");
+                // the statistics of the existing logs are computed when first requested
+                DaoGpsLogStats.createTables(db);
+            }
+            db.setVersion(newDbVersion);
         }
 
         public SQLiteDatabase getWritableDatabase( Context context ) throws IOException {
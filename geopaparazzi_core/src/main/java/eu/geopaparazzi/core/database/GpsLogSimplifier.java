@@ -0,0 +1,150 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database;
+
+/**
+ * Streaming line simplifier used to build the gps log overview levels.
+ * <p/>
+ * <p>It is a sliding window variant of Douglas-Peucker: the last kept point is the anchor
+ * and the points after it are buffered as long as all of them are within the tolerance
+ * of the segment from the anchor to the newest point. When that is no longer true, the
+ * previous point is kept and becomes the new anchor. Every point is handled once, as it
+ * is logged, and the result never deviates more than the tolerance from the track.</p>
+ * <p/>
+ * <p>Distances are computed in mercator degrees (longitude and mercator latitude), so that
+ * a tolerance maps to the same number of pixels everywhere on the map.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class GpsLogSimplifier {
+    private static final int MAX_BUFFERED = 64;
+    private static final double LATITUDE_MAX = 85.05112877980659;
+
+    private final double tolerance2;
+
+    private boolean hasAnchor = false;
+    private double anchorX;
+    private double anchorY;
+
+    private int size = 0;
+    private final double[] xs = new double[MAX_BUFFERED];
+    private final double[] ys = new double[MAX_BUFFERED];
+    private final double[] lons = new double[MAX_BUFFERED];
+    private final double[] lats = new double[MAX_BUFFERED];
+    private final long[] timestamps = new long[MAX_BUFFERED];
+
+    /*
+     * the point kept by the last add
+     */
+    double keptLon;
+    double keptLat;
+    long keptTs;
+
+    /**
+     * @param tolerance the max distance in mercator degrees the simplified line can have from the original.
+     */
+    GpsLogSimplifier(double tolerance) {
+        this.tolerance2 = tolerance * tolerance;
+    }
+
+    /**
+     * Start from an already kept point, for example after a restart.
+     */
+    void setAnchor(double lon, double lat) {
+        hasAnchor = true;
+        anchorX = lon;
+        anchorY = mercatorY(lat);
+        size = 0;
+    }
+
+    /**
+     * Add a point.
+     *
+     * @return <code>true</code> if a point has been kept, available in
+     * {@link #keptLon}, {@link #keptLat} and {@link #keptTs}.
+     */
+    boolean add(double lon, double lat, long ts) {
+        double x = lon;
+        double y = mercatorY(lat);
+        if (!hasAnchor) {
+            hasAnchor = true;
+            anchorX = x;
+            anchorY = y;
+            keptLon = lon;
+            keptLat = lat;
+            keptTs = ts;
+            return true;
+        }
+
+        boolean keep = size == MAX_BUFFERED || !allWithinTolerance(x, y);
+        if (keep) {
+            // the previous point becomes the new anchor
+            int last = size - 1;
+            keptLon = lons[last];
+            keptLat = lats[last];
+            keptTs = timestamps[last];
+            anchorX = xs[last];
+            anchorY = ys[last];
+            size = 0;
+        }
+        xs[size] = x;
+        ys[size] = y;
+        lons[size] = lon;
+        lats[size] = lat;
+        timestamps[size] = ts;
+        size++;
+        return keep;
+    }
+
+    private boolean allWithinTolerance(double x, double y) {
+        double dx = x - anchorX;
+        double dy = y - anchorY;
+        double length2 = dx * dx + dy * dy;
+        for (int i = 0; i < size; i++) {
+            double px = xs[i] - anchorX;
+            double py = ys[i] - anchorY;
+            double distance2;
+            if (length2 == 0) {
+                distance2 = px * px + py * py;
+            } else {
+                double t = (px * dx + py * dy) / length2;
+                if (t < 0) {
+                    t = 0;
+                } else if (t > 1) {
+                    t = 1;
+                }
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                distance2 = ex * ex + ey * ey;
+            }
+            if (distance2 > tolerance2) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double mercatorY(double lat) {
+        if (lat > LATITUDE_MAX) {
+            lat = LATITUDE_MAX;
+        } else if (lat < -LATITUDE_MAX) {
+            lat = -LATITUDE_MAX;
+        }
+        return Math.toDegrees(Math.log(Math.tan(Math.PI / 4 + Math.toRadians(lat) / 2)));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.IOException;
+
+import eu.geopaparazzi.core.GeopaparazziApplication;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gps.TrackStatistics;
+import eu.geopaparazzi.library.gpx.parser.GpxParser;
+import eu.geopaparazzi.library.gpx.parser.IGpxStreamHandler;
+import eu.geopaparazzi.library.style.ColorUtilities;
+
+import static eu.geopaparazzi.library.util.LibraryConstants.DEFAULT_LOG_WIDTH;
+
+/**
+ * Imports a gpx file into the database while it is parsed.
+ * <p/>
+ * <p>Waypoints become notes, track segments and routes become gps logs. The points
+ * are inserted in batches and committed every {@link #COMMIT_INTERVAL} points, so
+ * that the memory used does not depend on the size of the file.</p>
+ * <p/>
+ * <p>Override {@link #onProgress(long, long)} to follow the import and to cancel it.
+ * The log being imported when the import is cancelled or fails is removed, the
+ * already imported ones are kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpxStreamImporter implements IGpxStreamHandler {
+    private static final int BATCH_SIZE = 1000;
+    private static final int COMMIT_INTERVAL = 20000;
+
+    private final String baseName;
+    private final DaoGpsLog helper = new DaoGpsLog();
+    private final TrackStatistics stats = new TrackStatistics();
+    private final double[] lons = new double[BATCH_SIZE];
+    private final double[] lats = new double[BATCH_SIZE];
+    private final double[] elevs = new double[BATCH_SIZE];
+    private final long[] timestamps = new long[BATCH_SIZE];
+    private int batchCount;
+
+    private SQLiteDatabase sqliteDatabase;
+    private long importTime;
+    private int uncommitted;
+
+    private boolean lineIsRoute;
+    private String lineName;
+    private int linePointIndex;
+    private long logId = -1;
+
+    private int importedLogs;
+    private int importedNotes;
+
+    /**
+     * Constructor.
+     *
+     * @param baseName the name used for the imported logs, usually the file name.
+     */
+    public GpxStreamImporter(String baseName) {
+        this.baseName = baseName;
+    }
+
+    /**
+     * Import a gpx file.
+     *
+     * @param gpxPath the path to the file.
+     * @return <code>false</code> if the import has been cancelled.
+     * @throws IOException if something goes wrong.
+     */
+    public boolean importGpx(String gpxPath) throws IOException {
+        sqliteDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        importTime = System.currentTimeMillis();
+        boolean done = false;
+        sqliteDatabase.beginTransaction();
+        try {
+            done = new GpxParser(gpxPath).parse(this);
+            if (done) {
+                sqliteDatabase.setTransactionSuccessful();
+            } else {
+                // keep what was completed before the cancel
+                commitCompletedLines();
+            }
+        } catch (Exception e) {
+            commitCompletedLines();
+            GPLog.error("GPXSTREAMIMPORTER", e.getLocalizedMessage(), e);
+            throw new IOException(e.getLocalizedMessage());
+        } finally {
+            sqliteDatabase.endTransaction();
+            if (!done && logId != -1) {
+                // the points of the interrupted log might already be partially committed
+                helper.deleteGpslog(logId);
+                importedLogs--;
+                logId = -1;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the number of imported logs.
+     */
+    public int getImportedLogsCount() {
+        return importedLogs;
+    }
+
+    /**
+     * @return the number of imported notes.
+     */
+    public int getImportedNotesCount() {
+        return importedNotes;
+    }
+
+    @Override
+    public void onWayPoint(double lon, double lat, double elevation, String name, String description) throws Exception {
+        String nameDescr = "";
+        if (name != null) {
+            nameDescr = name;
+        }
+        if (name != null && description != null) {
+            nameDescr = nameDescr + ":\n";
+        }
+        if (description != null) {
+            nameDescr = nameDescr + description;
+        }
+        DaoNotes.addNoteNoTransaction(lon, lat, elevation, importTime, nameDescr, "GPX", null, null, sqliteDatabase);
+        importedNotes++;
+        pointAdded();
+    }
+
+    @Override
+    public void onLineStart(boolean isRoute, String name) throws Exception {
+        lineIsRoute = isRoute;
+        lineName = name;
+        linePointIndex = 0;
+        batchCount = 0;
+        stats.reset();
+    }
+
+    @Override
+    public void onLinePoint(double lon, double lat, double elevation, long time) throws Exception {
+        if (lat < -90 || lat > 90 || lon < -180 || lon > 180) {
+            return;
+        }
+        if (time == GpxParser.INVALID_TIME) {
+            time = importTime + linePointIndex * 1000l;
+        }
+        linePointIndex++;
+
+        if (logId == -1) {
+            String name;
+            if (lineIsRoute) {
+                name = lineName != null ? lineName : baseName;
+            } else {
+                name = lineName != null ? baseName + " - " + lineName : baseName;
+            }
+            String color = lineIsRoute ? ColorUtilities.GREEN.getHex() : ColorUtilities.BLUE.getHex();
+            logId = helper.addGpsLog(time, time, 0, name, DEFAULT_LOG_WIDTH, color, true);
+            importedLogs++;
+        }
+
+        stats.addPoint(lon, lat, elevation, time);
+        lons[batchCount] = lon;
+        lats[batchCount] = lat;
+        elevs[batchCount] = elevation;
+        timestamps[batchCount] = time;
+        batchCount++;
+        if (batchCount == BATCH_SIZE) {
+            flushBatch();
+        }
+        pointAdded();
+    }
+
+    @Override
+    public void onLineEnd() throws Exception {
+        if (logId == -1) {
+            // no valid points
+            return;
+        }
+        flushBatch();
+        helper.setEndTs(logId, stats.endTs);
+        helper.setTrackStatistics(logId, stats);
+        logId = -1;
+    }
+
+    @Override
+    public boolean onProgress(long bytesRead, long bytesTotal) {
+        return true;
+    }
+
+    private void flushBatch() throws IOException {
+        if (batchCount > 0) {
+            helper.addGpsLogDataPoints(sqliteDatabase, logId, lons, lats, elevs, timestamps, 0, batchCount);
+            batchCount = 0;
+        }
+    }
+
+    private void pointAdded() throws IOException {
+        if (++uncommitted >= COMMIT_INTERVAL) {
+            flushBatch();
+            sqliteDatabase.setTransactionSuccessful();
+            sqliteDatabase.endTransaction();
+            sqliteDatabase.beginTransaction();
+            uncommitted = 0;
+        }
+    }
+
+    /**
+     * Mark the current transaction as successful, the interrupted log is removed afterwards.
+     */
+    private void commitCompletedLines() {
+        try {
+            sqliteDatabase.setTransactionSuccessful();
+        } catch (Exception e) {
+            // the transaction is already marked
+        }
+    }
+}
@@ -52,6 +52,26 @@ public class TableDescriptions {
      * gpslog properties table name.
      */
     public static final String TABLE_GPSLOG_PROPERTIES = "gpslogsproperties";
+    /**
+     * gpslog simplified overview levels table name.
+     */
+    public static final String TABLE_GPSLOG_OVERVIEWS = "gpslogsoverviews";
+    /**
+     * gpslog extents table name.
+     */
+    public static final String TABLE_GPSLOG_EXTENTS = "gpslogsextents";
+    /**
+     * gpslog statistics table name.
+     */
+    public static final String TABLE_GPSLOG_STATS = "gpslogsstats";
+    /**
+     * gpslog data segments R*Tree index table name.
+     */
+    public static final String TABLE_GPSLOG_DATA_RTREE = "gpslogsdata_rtree";
+    /**
+     * notes R*Tree index table name.
+     */
+    public static final String TABLE_NOTES_RTREE = "notes_rtree";
 
     public enum MetadataTableFields {
         /**
@@ -411,4 +431,232 @@ public class TableDescriptions {
             return fieldClass;
         }
     }
+
+    public static enum GpsLogsOverviewsTableFields {
+        /**
+         * the id of the parent gps log.
+         */
+        COLUMN_LOGID("logid", Long.class),
+        /**
+         * the overview level, 0 being the most simplified.
+         */
+        COLUMN_LEVEL("level", Integer.class),
+        /**
+         * the UTC timestamp of the original point.
+         */
+        COLUMN_TS("ts", Long.class),
+        /**
+         * the longitude of the point.
+         */
+        COLUMN_LON("lon", Double.class),
+        /**
+         * the latitude of the point.
+         */
+        COLUMN_LAT("lat", Double.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        GpsLogsOverviewsTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
+
+    public static enum GpsLogsExtentsTableFields {
+        /**
+         * the id of the parent gps log.
+         */
+        COLUMN_LOGID("logid", Long.class),
+        /**
+         * the min longitude of the log.
+         */
+        COLUMN_MINLON("minlon", Double.class),
+        /**
+         * the min latitude of the log.
+         */
+        COLUMN_MINLAT("minlat", Double.class),
+        /**
+         * the max longitude of the log.
+         */
+        COLUMN_MAXLON("maxlon", Double.class),
+        /**
+         * the max latitude of the log.
+         */
+        COLUMN_MAXLAT("maxlat", Double.class),
+        /**
+         * the longitude of the last point of the log.
+         */
+        COLUMN_LASTLON("lastlon", Double.class),
+        /**
+         * the latitude of the last point of the log.
+         */
+        COLUMN_LASTLAT("lastlat", Double.class),
+        /**
+         * the UTC timestamp of the last point of the log.
+         */
+        COLUMN_LASTTS("lastts", Long.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        GpsLogsExtentsTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
+
+    public static enum RtreeTableFields {
+        /**
+         * the id of the indexed row.
+         */
+        COLUMN_ID("id", Long.class),
+        /**
+         * the min longitude of the box.
+         */
+        COLUMN_MINX("minx", Double.class),
+        /**
+         * the max longitude of the box.
+         */
+        COLUMN_MAXX("maxx", Double.class),
+        /**
+         * the min latitude of the box.
+         */
+        COLUMN_MINY("miny", Double.class),
+        /**
+         * the max latitude of the box.
+         */
+        COLUMN_MAXY("maxy", Double.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        RtreeTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
+
+    public static enum GpsLogsStatsTableFields {
+        /**
+         * the id of the parent gps log.
+         */
+        COLUMN_LOGID("logid", Long.class),
+        /**
+         * the number of points.
+         */
+        COLUMN_POINTS("points", Long.class),
+        /**
+         * the UTC timestamp of the first point.
+         */
+        COLUMN_STARTTS("startts", Long.class),
+        /**
+         * the UTC timestamp of the last point.
+         */
+        COLUMN_ENDTS("endts", Long.class),
+        /**
+         * the length in meters.
+         */
+        COLUMN_LENGTHM("lengthm", Double.class),
+        /**
+         * the time spent moving in milliseconds.
+         */
+        COLUMN_MOVINGTIME("movingtime", Long.class),
+        /**
+         * the length covered while moving in meters.
+         */
+        COLUMN_MOVINGLENGTHM("movinglengthm", Double.class),
+        /**
+         * the min speed in m/s.
+         */
+        COLUMN_MINSPEED("minspeed", Double.class),
+        /**
+         * the max speed in m/s.
+         */
+        COLUMN_MAXSPEED("maxspeed", Double.class),
+        /**
+         * the elevation gain in meters.
+         */
+        COLUMN_ELEVGAIN("elevgain", Double.class),
+        /**
+         * the elevation loss in meters.
+         */
+        COLUMN_ELEVLOSS("elevloss", Double.class),
+        /**
+         * the min elevation.
+         */
+        COLUMN_MINELEV("minelev", Double.class),
+        /**
+         * the max elevation.
+         */
+        COLUMN_MAXELEV("maxelev", Double.class),
+        /**
+         * the min longitude.
+         */
+        COLUMN_MINLON("minlon", Double.class),
+        /**
+         * the min latitude.
+         */
+        COLUMN_MINLAT("minlat", Double.class),
+        /**
+         * the max longitude.
+         */
+        COLUMN_MAXLON("maxlon", Double.class),
+        /**
+         * the max latitude.
+         */
+        COLUMN_MAXLAT("maxlat", Double.class),
+        /**
+         * the longitude of the last point.
+         */
+        COLUMN_LASTLON("lastlon", Double.class),
+        /**
+         * the latitude of the last point.
+         */
+        COLUMN_LASTLAT("lastlat", Double.class),
+        /**
+         * the elevation of the last point.
+         */
+        COLUMN_LASTELEV("lastelev", Double.class);
+
+        private String fieldName;
+        private Class fieldClass;
+
+        GpsLogsStatsTableFields(String fieldName, Class fieldClass) {
+            this.fieldName = fieldName;
+            this.fieldClass = fieldClass;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+
+        public Class getFieldClass() {
+            return fieldClass;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database.objects;
+
+/**
+ * The geometry of a gps log at an overview level, with its drawing properties.
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogOverview {
+    public long logId;
+    public String color;
+    public float width;
+    /**
+     * The longitudes of the points, only the first {@link #pointsCount} are valid.
+     */
+    public double[] lons;
+    /**
+     * The latitudes of the points, only the first {@link #pointsCount} are valid.
+     */
+    public double[] lats;
+    public int pointsCount;
+}
@@ -17,14 +17,13 @@
  */
 package eu.geopaparazzi.core.database.objects;
 
-import android.location.Location;
-
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
+import eu.geopaparazzi.library.gps.TrackStatistics;
 import eu.geopaparazzi.library.gpx.GpxRepresenter;
 import eu.geopaparazzi.library.gpx.GpxUtilities;
 import eu.geopaparazzi.library.kml.KmlRepresenter;
@@ -168,7 +167,6 @@ public class Line implements KmlRepresenter, GpxRepresenter, Serializable {
      * @return the length of the line in meters.
      */
     public double getLength() {
-        final float[] dist = new float[3];
         double length = 0;
         for( int i = 0; i < latList.size() - 1; i++ ) {
             double lat1 = latList.get(i);
@@ -177,10 +175,10 @@ public class Line implements KmlRepresenter, GpxRepresenter, Serializable {
             double lat2 = latList.get(i + 1);
             double lon2 = lonList.get(i + 1);
             double altim2 = altimList.get(i + 1);
-            Location.distanceBetween(lat1, lon1, lat2, lon2, dist);
+            double distance = TrackStatistics.distance(lat1, lon1, lat2, lon2);
 
             double deltaAltim = abs(altim2 - altim1);
-            double deltaLength = sqrt(pow(deltaAltim, 2.0) + pow(dist[0], 2.0));
+            double deltaLength = sqrt(pow(deltaAltim, 2.0) + pow(distance, 2.0));
             length = length + deltaLength;
 
         }
@@ -0,0 +1,200 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.database.objects;
+
+import android.database.Cursor;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import eu.geopaparazzi.core.database.DaoGpsLog;
+import eu.geopaparazzi.library.gps.TrackStatistics;
+import eu.geopaparazzi.library.gpx.GpxStreamRepresenter;
+import eu.geopaparazzi.library.gpx.GpxUtilities;
+import eu.geopaparazzi.library.kml.KmlStreamRepresenter;
+import eu.geopaparazzi.library.style.ColorUtilities;
+import eu.geopaparazzi.library.util.TimeUtilities;
+import eu.geopaparazzi.library.util.Utilities;
+
+/**
+ * A gps log to export, which reads its points from the database only while being written.
+ * <p/>
+ * <p>Writes the same kml and gpx as {@link Line}, without holding the points in memory.
+ * The bounds are taken from the stored {@link TrackStatistics}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class LogExportLine implements KmlStreamRepresenter, GpxStreamRepresenter {
+
+    private final long logId;
+    private final String name;
+    private final float width;
+    private final String color;
+    private final double minLat;
+    private final double minLon;
+    private final double maxLat;
+    private final double maxLon;
+
+    /**
+     * Constructor.
+     *
+     * @param logId the id of the log.
+     * @param name  the name of the log.
+     * @param width the width of the line.
+     * @param color the color of the line.
+     * @param stats the statistics of the log, for the bounds.
+     */
+    public LogExportLine(long logId, String name, float width, String color, TrackStatistics stats) {
+        this.logId = logId;
+        this.name = name;
+        this.width = width;
+        this.color = color;
+        this.minLat = stats.minLat;
+        this.minLon = stats.minLon;
+        this.maxLat = stats.maxLat;
+        this.maxLon = stats.maxLon;
+    }
+
+    /**
+     * @return the id of the log.
+     */
+    public long getLogId() {
+        return logId;
+    }
+
+    @Override
+    public void writeKml(Writer writer) throws Exception {
+        writer.write("<Placemark>\n");
+        writer.write("<name>" + Utilities.makeXmlSafe(name) + "</name>\n");
+        writer.write("<visibility>1</visibility>\n");
+        writer.write("<LineString>\n");
+        writer.write("<tessellate>1</tessellate>\n");
+        writer.write("<coordinates>\n");
+        Cursor c = DaoGpsLog.getGpslogDataCursor(logId);
+        try {
+            while (c.moveToNext()) {
+                double lon = c.getDouble(0);
+                double lat = c.getDouble(1);
+                if (isNullIsland(lon, lat)) {
+                    continue;
+                }
+                writer.write(String.valueOf(lon));
+                writer.write(",");
+                writer.write(String.valueOf(lat));
+                writer.write(",1 \n");
+            }
+        } finally {
+            c.close();
+        }
+        writer.write("</coordinates>\n");
+        writer.write("</LineString>\n");
+        writer.write("<Style>\n");
+        writer.write("<LineStyle>\n");
+        int parsedColor = ColorUtilities.toColor(color);
+        writer.write("<color>#" + Integer.toHexString(parsedColor) + "</color>\n");
+        writer.write("<width>" + width + "</width>\n");
+        writer.write("</LineStyle>\n");
+        writer.write("</Style>\n");
+        writer.write("</Placemark>\n");
+    }
+
+    @Override
+    public void writeGpx(Writer writer) throws Exception {
+        writer.write(GpxUtilities.GPX_TRACK_START);
+        writer.write("\n");
+        writer.write(GpxUtilities.getTrackNameString(Utilities.makeXmlSafe(name)));
+        writer.write("\n");
+        writer.write(GpxUtilities.GPX_TRACKSEGMENT_START);
+        writer.write("\n");
+        Date date = new Date();
+        Cursor c = DaoGpsLog.getGpslogDataCursor(logId);
+        try {
+            while (c.moveToNext()) {
+                double lon = c.getDouble(0);
+                double lat = c.getDouble(1);
+                if (isNullIsland(lon, lat)) {
+                    continue;
+                }
+                date.setTime(c.getLong(3));
+                String dateString = TimeUtilities.INSTANCE.TIME_FORMATTER_GPX_UTC.format(date);
+                writer.write(GpxUtilities.getTrackPointString(lat, lon, c.getDouble(2), dateString));
+            }
+        } finally {
+            c.close();
+        }
+        writer.write(GpxUtilities.GPX_TRACKSEGMENT_END);
+        writer.write("\n");
+        writer.write(GpxUtilities.GPX_TRACK_END);
+        writer.write("\n");
+    }
+
+    /*
+     * same filter applied by Line#addPoint
+     */
+    private static boolean isNullIsland(double lon, double lat) {
+        return lat < 0.0001 && lon < 0.0001;
+    }
+
+    @Override
+    public String toKmlString() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeKml(writer);
+        return writer.toString();
+    }
+
+    @Override
+    public String toGpxString() throws Exception {
+        StringWriter writer = new StringWriter();
+        writeGpx(writer);
+        return writer.toString();
+    }
+
+    @Override
+    public boolean hasImages() {
+        return false;
+    }
+
+    @Override
+    public List<String> getImageIds() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public double getMinLat() {
+        return minLat;
+    }
+
+    @Override
+    public double getMinLon() {
+        return minLon;
+    }
+
+    @Override
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    @Override
+    public double getMaxLon() {
+        return maxLon;
+    }
+}
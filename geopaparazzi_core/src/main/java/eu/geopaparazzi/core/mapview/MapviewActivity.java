@@ -75,7 +75,6 @@ import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayItem;
-import org.mapsforge.android.maps.overlay.OverlayWay;
 import org.mapsforge.core.model.GeoPoint;
 
 import java.io.File;
@@ -83,8 +82,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import eu.geopaparazzi.library.core.ResourcesManager;
 import eu.geopaparazzi.library.core.activities.GeocodeActivity;
@@ -179,6 +182,12 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
     private SharedPreferences mPeferences;
 
     private ArrayGeopaparazziOverlay mDataOverlay;
+    /*
+     * the items of the data shown in the overlay, by id
+     */
+    private final HashMap<Long, OverlayItem> shownImageItems = new HashMap<>();
+    private final HashMap<Long, OverlayItem> shownNoteItems = new HashMap<>();
+    private final HashMap<Long, OverlayItem> shownBookmarkItems = new HashMap<>();
 
     private List<String> smsString;
     private Drawable notesDrawable;
@@ -269,6 +278,8 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
         /*
          * create main mapview
         */
+        boolean packFileTileCache = mPeferences.getBoolean(Constants.PREFS_KEY_PACKFILE_TILECACHE, false);
+        MapView.setPackFileTileCacheEnabled(packFileTileCache);
         mMapView = new MapView(this);
         mMapView.setClickable(true);
         mMapView.setBuiltInZoomControls(false);
@@ -436,6 +447,9 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
         }
 
         mDataOverlay = new ArrayGeopaparazziOverlay(this);
+        shownImageItems.clear();
+        shownNoteItems.clear();
+        shownBookmarkItems.clear();
         List<Overlay> overlays = mMapView.getOverlays();
         overlays.clear();
         overlays.add(mDataOverlay);
@@ -484,37 +498,37 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
 
     private void readData() {
         try {
-            mDataOverlay.clearItems();
             mDataOverlay.clearWays();
 
-            List<OverlayWay> logOverlaysList = DaoGpsLog.getGpslogOverlays();
-            mDataOverlay.addWays(logOverlaysList);
+            mDataOverlay.reloadGpsLogs();
 
             boolean imagesVisible = mPeferences.getBoolean(Constants.PREFS_KEY_IMAGES_VISIBLE, true);
             boolean notesVisible = mPeferences.getBoolean(Constants.PREFS_KEY_NOTES_VISIBLE, true);
 
             /* images */
+            Map<Long, OverlayItem> imagesOverlays = Collections.emptyMap();
             if (imagesVisible) {
                 Drawable imageMarker = Compat.getDrawable(this, R.drawable.ic_images_48dp);
                 Drawable newImageMarker = ArrayGeopaparazziOverlay.boundCenter(imageMarker);
-                List<OverlayItem> imagesOverlaysList = DaoImages.getImagesOverlayList(newImageMarker, true);
-                mDataOverlay.addItems(imagesOverlaysList);
+                imagesOverlays = DaoImages.getImagesOverlays(newImageMarker, true);
             }
+            updateItems(shownImageItems, imagesOverlays);
 
             /* gps notes */
+            Map<Long, OverlayItem> noteOverlays = Collections.emptyMap();
             if (notesVisible) {
                 notesDrawable.setBounds(notesDrawable.getIntrinsicWidth(), notesDrawable.getIntrinsicHeight() / -2, notesDrawable.getIntrinsicWidth() / 2,
                         notesDrawable.getIntrinsicHeight() / 2);
                 Drawable newNotesMarker = ArrayGeopaparazziOverlay.boundCenter(notesDrawable);
-                List<OverlayItem> noteOverlaysList = DaoNotes.getNoteOverlaysList(newNotesMarker);
-                mDataOverlay.addItems(noteOverlaysList);
+                noteOverlays = DaoNotes.getNoteOverlays(newNotesMarker);
             }
+            updateItems(shownNoteItems, noteOverlays);
 
             /* bookmarks */
             Drawable bookmarkMarker = Compat.getDrawable(this, R.drawable.ic_bookmarks_48dp);
             Drawable newBookmarkMarker = ArrayGeopaparazziOverlay.boundCenter(bookmarkMarker);
-            List<OverlayItem> bookmarksOverlays = DaoBookmarks.getBookmarksOverlays(newBookmarkMarker);
-            mDataOverlay.addItems(bookmarksOverlays);
+            Map<Long, OverlayItem> bookmarksOverlays = DaoBookmarks.getBookmarksOverlays(newBookmarkMarker);
+            updateItems(shownBookmarkItems, bookmarksOverlays);
 
             // read last known gps position
             if (lastGpsPosition != null) {
@@ -530,6 +544,50 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
         }
     }
 
+    /**
+     * Bring the items of one kind of data in the overlay up to date with the database.
+     * <p/>
+     * <p>Only the added, deleted, moved and edited items are passed to the overlay, so that
+     * its marker index is updated incrementally instead of being rebuilt.</p>
+     *
+     * @param shownItems the items of the kind in the overlay by id, updated.
+     * @param items      the items of the kind as read from the database by id.
+     */
+    private void updateItems(HashMap<Long, OverlayItem> shownItems, Map<Long, OverlayItem> items) {
+        List<OverlayItem> removedItems = new ArrayList<>();
+        Iterator<Map.Entry<Long, OverlayItem>> shownIterator = shownItems.entrySet().iterator();
+        while (shownIterator.hasNext()) {
+            Map.Entry<Long, OverlayItem> shownEntry = shownIterator.next();
+            if (!items.containsKey(shownEntry.getKey())) {
+                removedItems.add(shownEntry.getValue());
+                shownIterator.remove();
+            }
+        }
+        if (!removedItems.isEmpty()) {
+            mDataOverlay.removeItems(removedItems);
+        }
+
+        List<OverlayItem> addedItems = new ArrayList<>();
+        for (Map.Entry<Long, OverlayItem> entry : items.entrySet()) {
+            OverlayItem item = entry.getValue();
+            OverlayItem shownItem = shownItems.get(entry.getKey());
+            if (shownItem == null) {
+                addedItems.add(item);
+                shownItems.put(entry.getKey(), item);
+            } else {
+                if (!item.getPoint().equals(shownItem.getPoint())) {
+                    mDataOverlay.moveItem(shownItem, item.getPoint());
+                }
+                // the texts are not indexed
+                shownItem.setTitle(item.getTitle());
+                shownItem.setSnippet(item.getSnippet());
+            }
+        }
+        if (!addedItems.isEmpty()) {
+            mDataOverlay.addItems(addedItems);
+        }
+    }
+
     public boolean onTouch(View v, MotionEvent event) {
         int action = event.getAction();
         if (GPLog.LOG_ABSURD)
@@ -886,6 +944,8 @@ public class MapviewActivity extends MapActivity implements OnTouchListener, OnC
                     double lon = data.getDoubleExtra(LONGITUDE, 0d);
                     double lat = data.getDoubleExtra(LATITUDE, 0d);
                     int zoom = data.getIntExtra(ZOOMLEVEL, 1);
+                    // a bookmark or note, load the map file index of the area before the tiles are requested
+                    mMapView.warmIndexCache(new GeoPoint(lat, lon), (byte) zoom);
                     setCenterAndZoomForMapWindowFocus(lon, lat, zoom);
                 }
                 break;
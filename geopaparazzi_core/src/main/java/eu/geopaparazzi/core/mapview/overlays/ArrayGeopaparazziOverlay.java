@@ -21,22 +21,36 @@ import android.content.Context;
 
 import org.mapsforge.android.maps.overlay.OverlayItem;
 import org.mapsforge.android.maps.overlay.OverlayWay;
+import org.mapsforge.core.model.GeoPoint;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * ArrayGeopaparazziOverlay is a thread-safe implementation of the {@link GeopaparazziOverlay} class using an {@link ArrayList} as
  * internal data structure. Default paints for all {@link OverlayWay OverlayWays} without individual paints can be
  * defined via the constructor.
+ * <p/>
+ * The positions of the items are kept in a {@link MarkerIndex}, which is updated with every change of the items,
+ * so that drawing only visits the items around the viewport. Every item gets an id when it is added, which is the
+ * index passed to {@link #createItem(int)} and does not change when other items are removed.
  */
 public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
     private static final int INITIAL_CAPACITY = 8;
     private static final String THREAD_NAME = "ArrayGeopaparazziOverlay"; //$NON-NLS-1$
 
     private final List<OverlayWay> overlayWays;
-    private final List<OverlayItem> overlayItems;
+    /**
+     * The items by their stable id, guarding all item fields.
+     */
+    private final Map<Integer, OverlayItem> overlayItems;
+    private final Map<OverlayItem, Integer> itemIds;
+    private final MarkerIndex markerIndex = new MarkerIndex();
+    private int nextItemId = 0;
 
     /**
      * @param context  the context to use.
@@ -44,7 +58,8 @@ public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
     public ArrayGeopaparazziOverlay( Context context ) {
         super(context);
         this.overlayWays = new ArrayList<>(INITIAL_CAPACITY);
-        this.overlayItems = new ArrayList<>(INITIAL_CAPACITY);
+        this.overlayItems = new HashMap<>();
+        this.itemIds = new IdentityHashMap<>();
     }
 
     /**
@@ -119,27 +134,30 @@ public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
     }
 
     /**
-     * Adds the given item to the overlay.
+     * Adds the given item to the overlay, an item which is already in the overlay is not added again.
      * 
      * @param overlayItem
      *            the item that should be added to the overlay.
      */
     public void addItem( OverlayItem overlayItem ) {
         synchronized (this.overlayItems) {
-            this.overlayItems.add(overlayItem);
+            indexItem(overlayItem);
         }
         populate();
     }
 
     /**
-     * Adds all items of the given collection to the overlay.
+     * Adds all items of the given collection to the overlay, items which are already in the overlay are not added
+     * again.
      * 
      * @param c
      *            collection whose items should be added to the overlay.
      */
     public void addItems( Collection<OverlayItem> c ) {
         synchronized (this.overlayItems) {
-            this.overlayItems.addAll(c);
+            for( OverlayItem overlayItem : c ) {
+                indexItem(overlayItem);
+            }
         }
         populate();
     }
@@ -150,6 +168,9 @@ public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
     public void clearItems() {
         synchronized (this.overlayItems) {
             this.overlayItems.clear();
+            this.itemIds.clear();
+            this.markerIndex.clear();
+            this.nextItemId = 0;
         }
         populate();
     }
@@ -161,8 +182,54 @@ public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
      *            the item that should be removed from the overlay.
      */
     public void removeItem( OverlayItem overlayItem ) {
+        boolean removed;
+        synchronized (this.overlayItems) {
+            removed = unindexItem(overlayItem);
+        }
+        if (removed) {
+            populate();
+        }
+    }
+
+    /**
+     * Removes all items of the given collection from the overlay.
+     * 
+     * @param c
+     *            collection whose items should be removed from the overlay.
+     */
+    public void removeItems( Collection<OverlayItem> c ) {
+        boolean removed = false;
         synchronized (this.overlayItems) {
-            this.overlayItems.remove(overlayItem);
+            for( OverlayItem overlayItem : c ) {
+                removed |= unindexItem(overlayItem);
+            }
+        }
+        if (removed) {
+            populate();
+        }
+    }
+
+    /**
+     * Moves the given item of the overlay to a new position.
+     * 
+     * @param overlayItem
+     *            the item that should be moved.
+     * @param point
+     *            the new position of the item.
+     */
+    public void moveItem( OverlayItem overlayItem, GeoPoint point ) {
+        synchronized (this.overlayItems) {
+            Integer id = this.itemIds.get(overlayItem);
+            if (id == null) {
+                return;
+            }
+            GeoPoint oldPoint = overlayItem.getPoint();
+            overlayItem.setPoint(point);
+            if (oldPoint != null) {
+                this.markerIndex.move(id, oldPoint, point);
+            } else {
+                this.markerIndex.add(id, point);
+            }
         }
         populate();
     }
@@ -174,14 +241,55 @@ public class ArrayGeopaparazziOverlay extends GeopaparazziOverlay {
         }
     }
 
+    @Override
+    protected void selectItems( int left, int top, int right, int bottom, byte zoomLevel, MarkerIndex.Selection selection ) {
+        this.markerIndex.query(left, top, right, bottom, zoomLevel, selection);
+    }
+
+    /**
+     * @param index
+     *            the id under which the item has been indexed, it does not change when other items are removed.
+     */
     @Override
     protected OverlayItem createItem( int index ) {
         synchronized (this.overlayItems) {
-            if (index >= this.overlayItems.size()) {
-                return null;
-            }
             return this.overlayItems.get(index);
         }
     }
 
+    /**
+     * Must be called holding the lock of the items.
+     */
+    private void indexItem( OverlayItem overlayItem ) {
+        if (this.itemIds.containsKey(overlayItem)) {
+            return;
+        }
+        // the ids grow with every added item, so that they keep the drawing order
+        int id = this.nextItemId++;
+        this.overlayItems.put(id, overlayItem);
+        this.itemIds.put(overlayItem, id);
+        GeoPoint point = overlayItem.getPoint();
+        if (point != null) {
+            this.markerIndex.add(id, point);
+        }
+    }
+
+    /**
+     * Must be called holding the lock of the items.
+     *
+     * @return true if the item was in the overlay.
+     */
+    private boolean unindexItem( OverlayItem overlayItem ) {
+        Integer id = this.itemIds.remove(overlayItem);
+        if (id == null) {
+            return false;
+        }
+        this.overlayItems.remove(id);
+        GeoPoint point = overlayItem.getPoint();
+        if (point != null) {
+            this.markerIndex.remove(id, point);
+        }
+        return true;
+    }
+
 }
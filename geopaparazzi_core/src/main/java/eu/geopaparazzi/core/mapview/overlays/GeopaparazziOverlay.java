@@ -23,22 +23,12 @@ import android.content.SharedPreferences;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Paint.Align;
 import android.graphics.Path;
 import android.graphics.Point;
-import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.preference.PreferenceManager;
 
-import com.vividsolutions.jts.android.PointTransformation;
-import com.vividsolutions.jts.android.ShapeWriter;
-import com.vividsolutions.jts.android.geom.DrawableShape;
-import com.vividsolutions.jts.android.geom.PathShape;
-import com.vividsolutions.jts.geom.Coordinate;
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.Projection;
 import org.mapsforge.android.maps.overlay.ItemizedOverlay;
@@ -49,11 +39,11 @@ import org.mapsforge.core.model.GeoPoint;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import eu.geopaparazzi.library.core.maps.SpatialiteMap;
 import eu.geopaparazzi.library.core.maps.SpatialiteMapOrderComparator;
@@ -70,8 +60,6 @@ import eu.geopaparazzi.library.util.GPDialogs;
 import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.spatialite.database.spatial.SpatialiteSourcesManager;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
-import eu.geopaparazzi.spatialite.database.spatial.core.enums.GeometryType;
-import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
 import eu.geopaparazzi.library.style.Style;
 import eu.geopaparazzi.core.GeopaparazziApplication;
@@ -96,6 +84,16 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     private static final String THREAD_NAME = "GeopaparazziOverlay"; //$NON-NLS-1$
 
+    /*
+     * margin around the canvas in which items are selected, so that markers crossing the border are drawn
+     */
+    private static final int ITEM_MARGIN = 128;
+    /*
+     * up to this zoom level items sharing a cell of the cluster grid are drawn as one marker with their count
+     */
+    private static final byte CLUSTER_MAX_ZOOM = 14;
+    private static final int CLUSTER_CELL_SHIFT = 6;
+
     /**
      * Sets the bounds of the given drawable so that (0,0) is the center of the bottom row.
      *
@@ -119,6 +117,28 @@ public abstract class GeopaparazziOverlay extends Overlay {
     private Point itemPosition;
     private final List<Integer> visibleItems = new ArrayList<>();
     private final List<Integer> visibleItemsRedraw = new ArrayList<>();
+    private final MarkerIndex.Selection itemSelection = new MarkerIndex.Selection();
+
+    /*
+     * cluster grid of the current frame: cell of each selected item, item count and first item of each cell
+     */
+    private int[] clusterCells = new int[64];
+    private int[] clusterCounts = new int[0];
+    private int[] clusterFirsts = new int[0];
+    private Paint clusterFillPaint;
+    private Paint clusterTextPaint;
+
+    /*
+     * spatialite labels
+     */
+    private final SpatialiteLabelBuffer spatialiteLabelBuffer = new SpatialiteLabelBuffer();
+    private final SpatialiteGeometryCache spatialiteGeometryCache = new SpatialiteGeometryCache(
+            Runtime.getRuntime().maxMemory() / 16);
+
+    /*
+     * gps logs, read by viewport at the overview level of the zoom
+     */
+    private final GpsLogsLayer gpsLogsLayer = new GpsLogsLayer();
 
     /*
      * gps stuff
@@ -225,6 +245,15 @@ public abstract class GeopaparazziOverlay extends Overlay {
             textHaloPaint.setTextSize(notesTextSize);
         }
 
+        clusterFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterFillPaint.setStyle(Paint.Style.FILL);
+        clusterFillPaint.setColor(Color.rgb(183, 28, 28));
+        clusterTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        clusterTextPaint.setStyle(Paint.Style.FILL);
+        clusterTextPaint.setColor(Color.WHITE);
+        clusterTextPaint.setTextAlign(Paint.Align.CENTER);
+        clusterTextPaint.setTextSize(isHighDensity ? 28 : 14);
+
         gpsMarker = ItemizedOverlay.boundCenter(gpsMarker);
         gpslogOverlay = new OverlayWay(null, gpsOutline);
 
@@ -382,6 +411,15 @@ public abstract class GeopaparazziOverlay extends Overlay {
          */
         drawFromSpatialite(canvas, drawPosition, projection, drawZoomLevel);
 
+        /*
+         * GPS LOGS
+         */
+        try {
+            gpsLogsLayer.draw(canvas, drawPosition, drawZoomLevel);
+        } catch (IOException e) {
+            GPLog.error(this, "GeopaparazziOverlay.drawOverlayBitmap [gps logs failed]", e); //$NON-NLS-1$
+        }
+
         /*
          * WAYS
          */
@@ -427,29 +465,40 @@ public abstract class GeopaparazziOverlay extends Overlay {
         int canvasHeight = canvas.getHeight();
         int canvasWidth = canvas.getWidth();
 
-        int numberOfItems = itemSize();
-        for (int itemIndex = 0; itemIndex < numberOfItems; ++itemIndex) {
+        // only the items around the canvas
+        selectItems(drawPosition.x - ITEM_MARGIN, drawPosition.y - ITEM_MARGIN, drawPosition.x + canvasWidth + ITEM_MARGIN,
+                drawPosition.y + canvasHeight + ITEM_MARGIN, drawZoomLevel, itemSelection);
+        int numberOfItems = itemSelection.size();
+        boolean doCluster = drawZoomLevel <= CLUSTER_MAX_ZOOM && numberOfItems > 1;
+        if (doCluster) {
+            clusterItems(drawPosition, projection, drawZoomLevel, canvasWidth, canvasHeight);
+        }
+        for (int i = 0; i < numberOfItems; ++i) {
             if (stopDrawing()) {
                 // stop working
                 return;
             }
 
             // get the current item
+            int itemIndex = itemSelection.get(i);
             OverlayItem overlayItem = createItem(itemIndex);
             if (overlayItem == null) {
                 continue;
             }
 
             // make sure that the current item has a position
-            if (overlayItem.getPoint() == null) {
+            if (!updateItemPosition(overlayItem, projection, drawZoomLevel)) {
                 continue;
             }
 
-            // make sure that the cached item position is valid
-            if (drawZoomLevel != overlayItem.cachedZoomLevel) {
-                overlayItem.cachedMapPosition = projection.toPoint(overlayItem.getPoint(), overlayItem.cachedMapPosition,
-                        drawZoomLevel);
-                overlayItem.cachedZoomLevel = drawZoomLevel;
+            // only the first item of a cluster is drawn
+            int clusterCount = 1;
+            if (doCluster && clusterCells[i] >= 0) {
+                int cell = clusterCells[i];
+                if (clusterFirsts[cell] != i) {
+                    continue;
+                }
+                clusterCount = clusterCounts[cell];
             }
 
             // calculate the relative item position on the canvas
@@ -496,7 +545,9 @@ public abstract class GeopaparazziOverlay extends Overlay {
                 // add the current item index to the list of visible items
                 this.visibleItemsRedraw.add(itemIndex);
 
-                if (isNotesTextVisible && overlayItem instanceof NoteOverlayItem) {
+                if (clusterCount > 1) {
+                    drawClusterCount(canvas, right, top, clusterCount);
+                } else if (isNotesTextVisible && overlayItem instanceof NoteOverlayItem) {
                     String title = overlayItem.getTitle();
                     float delta = markerBounds.width() / 4f;
                     float x = right - delta;
@@ -609,25 +660,83 @@ public abstract class GeopaparazziOverlay extends Overlay {
 
     }
 
+    /**
+     * Updates the cached map position of an item.
+     *
+     * @return <code>false</code> if the item has no position.
+     */
+    private boolean updateItemPosition(OverlayItem overlayItem, Projection projection, byte drawZoomLevel) {
+        GeoPoint point = overlayItem.getPoint();
+        if (point == null) {
+            return false;
+        }
+        // make sure that the cached item position is valid
+        if (drawZoomLevel != overlayItem.cachedZoomLevel) {
+            overlayItem.cachedMapPosition = projection.toPoint(point, overlayItem.cachedMapPosition, drawZoomLevel);
+            overlayItem.cachedZoomLevel = drawZoomLevel;
+        }
+        return true;
+    }
+
+    /**
+     * Assigns the selected items to the cells of a grid in map pixels, so that the clusters
+     * do not change while the map is moved.
+     */
+    private void clusterItems(Point drawPosition, Projection projection, byte drawZoomLevel, int canvasWidth, int canvasHeight) {
+        int numberOfItems = itemSelection.size();
+        if (clusterCells.length < numberOfItems) {
+            clusterCells = new int[Math.max(numberOfItems, clusterCells.length * 2)];
+        }
+        int firstColumn = (drawPosition.x - ITEM_MARGIN) >> CLUSTER_CELL_SHIFT;
+        int firstRow = (drawPosition.y - ITEM_MARGIN) >> CLUSTER_CELL_SHIFT;
+        int columns = ((drawPosition.x + canvasWidth + ITEM_MARGIN) >> CLUSTER_CELL_SHIFT) - firstColumn + 1;
+        int rows = ((drawPosition.y + canvasHeight + ITEM_MARGIN) >> CLUSTER_CELL_SHIFT) - firstRow + 1;
+        int numberOfCells = columns * rows;
+        if (clusterCounts.length < numberOfCells) {
+            clusterCounts = new int[numberOfCells];
+            clusterFirsts = new int[numberOfCells];
+        }
+        Arrays.fill(clusterCounts, 0, numberOfCells, 0);
+
+        for (int i = 0; i < numberOfItems; i++) {
+            clusterCells[i] = -1;
+            OverlayItem overlayItem = createItem(itemSelection.get(i));
+            if (overlayItem == null || overlayItem.getMarker() == null
+                    || !updateItemPosition(overlayItem, projection, drawZoomLevel)) {
+                continue;
+            }
+            int column = (overlayItem.cachedMapPosition.x >> CLUSTER_CELL_SHIFT) - firstColumn;
+            int row = (overlayItem.cachedMapPosition.y >> CLUSTER_CELL_SHIFT) - firstRow;
+            if (column < 0 || column >= columns || row < 0 || row >= rows) {
+                continue;
+            }
+            int cell = row * columns + column;
+            if (clusterCounts[cell] == 0) {
+                clusterFirsts[cell] = i;
+            }
+            clusterCounts[cell]++;
+            clusterCells[i] = cell;
+        }
+    }
+
+    private void drawClusterCount(Canvas canvas, int right, int top, int count) {
+        String countText = String.valueOf(count);
+        float textSize = clusterTextPaint.getTextSize();
+        float radius = Math.max(textSize * 0.8f, clusterTextPaint.measureText(countText) / 2f + textSize * 0.3f);
+        canvas.drawCircle(right, top, radius, clusterFillPaint);
+        canvas.drawText(countText, right, top + textSize / 3f, clusterTextPaint);
+    }
+
     private void drawFromSpatialite(Canvas canvas, Point drawPosition, Projection projection, byte drawZoomLevel) {
         /*
          * draw from spatialite
+         *
+         * geometries are taken from the cache, which reads from the database only the
+         * parts of the view that are not cached yet. They are drawn and their labels are
+         * queued, then the labels are placed on top of all layers
          */
-        double n = 90;
-        double w = -180;
-        double s = -90;
-        double e = 180;
-        try {
-            GeoPoint zeroPoint = projection.fromPixels(0, 0);
-            GeoPoint whPoint = projection.fromPixels(canvas.getWidth(), canvas.getHeight());
-            n = zeroPoint.getLatitude();
-            w = zeroPoint.getLongitude();
-            s = whPoint.getLatitude();
-            e = whPoint.getLongitude();
-        } catch (java.lang.Exception e2) {
-            GPLog.error(this, "Problems retrieving viewport bounds", e2); //$NON-NLS-1$
-        }
-        Envelope canvasEnvelope = new Envelope(w, e, s, n);
+        spatialiteLabelBuffer.clear();
+        spatialiteGeometryCache.startFrame();
         try {
             HashMap<SpatialiteMap, SpatialVectorTable> spatialiteMaps2TablesMap = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps2TablesMap();
             HashMap<SpatialiteMap, SpatialiteDatabaseHandler> spatialiteMaps2DbHandlersMap = SpatialiteSourcesManager.INSTANCE.getSpatialiteMaps2DbHandlersMap();
@@ -650,179 +759,46 @@ public abstract class GeopaparazziOverlay extends Overlay {
                         // we do not draw outside of the zoom levels
                         continue;
                     }
+                    if (spatialDatabaseHandler.isClosed()) {
+                        // handlers taken from the catalog connect on the first draw
+                        continue;
+                    }
 
-                    GeometryIterator geometryIterator = null;
-                    try {
-                        Paint fill = null;
-                        Paint stroke = null;
-                        if (style.fillcolor != null && style.fillcolor.trim().length() > 0)
-                            fill = spatialDatabaseHandler.getFillPaint4Style(style);
-                        if (style.strokecolor != null && style.strokecolor.trim().length() > 0)
-                            stroke = spatialDatabaseHandler.getStrokePaint4Style(style);
-                        PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                                drawZoomLevel);
-                        ShapeWriter shapeWriter;
-                        ShapeWriter shape_writer_point = null;
-                        if (spatialTable.isPoint()) {
-                            shapeWriter = new ShapeWriter(pointTransformer, style.shape,
-                                    style.size);
-                        } else {
-                            shapeWriter = new ShapeWriter(pointTransformer);
-                            if (spatialTable.isGeometryCollection()) {
-                                shape_writer_point = new ShapeWriter(pointTransformer, style.shape,
-                                        style.size);
-                            }
+                    int labelLayer = -1;
+                    float labelDelta = 0;
+                    if (style.labelvisible != 0) {
+                        labelLayer = spatialiteLabelBuffer.addLayer(style.labelsize, spatialTable.isLine());
+                        labelDelta = style.size / 2f;
+                        if (labelDelta < 2) {
+                            labelDelta = 2;
                         }
-                        shapeWriter.setRemoveDuplicatePoints(true);
-                        shapeWriter.setDecimation(style.decimationFactor);
-                        geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds(
-                                LibraryConstants.SRID_WGS84_4326, spatialTable, n, s, e, w);
-                        while (geometryIterator.hasNext()) {
-                            Geometry geom = geometryIterator.next();
-                            if (geom != null) {
-                                if (!canvasEnvelope.intersects(geom.getEnvelopeInternal())) {
-                                    // TODO check the performance impact of this
-                                    continue;
-                                }
-                                if (spatialTable.isGeometryCollection()) {
-                                    int geometriesCount = geom.getNumGeometries();
-                                    for (int j = 0; j < geometriesCount; j++) {
-                                        Geometry geom_collect = geom.getGeometryN(j);
-                                        if (geom_collect != null) {
-                                            String geometryType = geom_collect.getGeometryType();
-                                            if (geometryType.toUpperCase().contains("POINT")) {
-                                                drawGeometry(geom_collect, canvas, shape_writer_point, fill, stroke);
-                                            } else {
-                                                drawGeometry(geom_collect, canvas, shapeWriter, fill, stroke);
-                                            }
-                                            if (stopDrawing()) { // stop working
-                                                return;
-                                            }
-                                        }
-                                    }
-                                } else {
-                                    drawGeometry(geom, canvas, shapeWriter, fill, stroke);
-                                    if (stopDrawing()) { // stop working
-                                        return;
-                                    }
-                                }
-                            } else {
-                                GPLog.error(this, "GeopaparazziOverlay.drawFromSpatialite  [geom == null] description["
-                                        + spatialTable.getTableName() + "]", new NullPointerException());
-                            }
-                        }
-                    } finally {
-                        if (geometryIterator != null)
-                            geometryIterator.close();
                     }
 
-
+                    Paint fill = null;
+                    Paint stroke = null;
+                    if (style.fillcolor != null && style.fillcolor.trim().length() > 0)
+                        fill = spatialDatabaseHandler.getFillPaint4Style(style);
+                    if (style.strokecolor != null && style.strokecolor.trim().length() > 0)
+                        stroke = spatialDatabaseHandler.getStrokePaint4Style(style);
+                    spatialiteGeometryCache.draw(canvas, drawPosition, drawZoomLevel, spatialDatabaseHandler, spatialTable,
+                            fill, stroke, spatialiteLabelBuffer, labelLayer, labelDelta);
                 }
             } catch (ConcurrentModificationException cme) {
                 GPLog.error(this, "Error while looping on spatialite maps, skipped rendering.", cme);
                 return;
             }
 
-
             /*
              * draw labels
              */
-            for (Map.Entry<SpatialiteMap, SpatialiteDatabaseHandler> entry : spatialiteMaps2DbHandlersMap.entrySet()) {
-                if (stopDrawing()) {
-                    // stop working
-                    return;
-                }
-                SpatialiteMap spatialiteMap = entry.getKey();
-                if (!spatialiteMap.isVisible) {
-                    continue;
-                }
-
-                SpatialiteDatabaseHandler spatialDatabaseHandler = entry.getValue();
-
-                SpatialVectorTable spatialTable = spatialiteMaps2TablesMap.get(spatialiteMap);
-                Style style = spatialTable.getStyle();
-
-                if (style.labelvisible == 0) {
-                    continue;
-                }
-                if (drawZoomLevel < style.minZoom || drawZoomLevel > style.maxZoom) {
-                    // we do not draw outside of the zoom levels
-                    continue;
-                }
-
-                float delta = style.size / 2f;
-                if (delta < 2) {
-                    delta = 2;
-                }
-
-                Paint dbTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-                dbTextPaint.setStyle(Paint.Style.FILL);
-                dbTextPaint.setColor(Color.BLACK);
-                dbTextPaint.setTextSize(style.labelsize);
-                Paint dbTextHaloPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-                dbTextHaloPaint.setStyle(Paint.Style.STROKE);
-                dbTextHaloPaint.setStrokeWidth(3);
-                dbTextHaloPaint.setColor(Color.WHITE);
-                dbTextHaloPaint.setTextSize(style.labelsize);
-
-                GeometryIterator geometryIterator = null;
-                try {
-                    PointTransformation pointTransformer = new MapsforgePointTransformation(projection, drawPosition,
-                            drawZoomLevel);
-                    ShapeWriter linesWriter = null;
-                    if (spatialTable.isLine()) {
-                        linesWriter = new ShapeWriter(pointTransformer, spatialTable.getStyle().shape,
-                                spatialTable.getStyle().size);
-                        dbTextHaloPaint.setTextAlign(Align.CENTER);
-                        dbTextPaint.setTextAlign(Align.CENTER);
-                    } else {
-                        dbTextHaloPaint.setTextAlign(Align.LEFT);
-                        dbTextPaint.setTextAlign(Align.LEFT);
-                    }
-
-                    if (spatialDatabaseHandler.isOpen()) {
-                        geometryIterator = spatialDatabaseHandler.getGeometryIteratorInBounds(
-                                LibraryConstants.SRID_WGS84_4326, spatialTable, n, s, e, w);
-                        while (geometryIterator.hasNext()) {
-                            Geometry geom = geometryIterator.next();
-                            if (geom != null) {
-                                if (!canvasEnvelope.intersects(geom.getEnvelopeInternal())) {
-                                    // TODO check the performance impact of this
-                                    continue;
-                                }
-                                String labelText = geometryIterator.getLabelText();
-                                if (labelText == null || labelText.length() == 0) {
-                                    continue;
-                                }
-                                if (spatialTable.isGeometryCollection()) {
-                                    int geometriesCount = geom.getNumGeometries();
-                                    for (int j = 0; j < geometriesCount; j++) {
-                                        Geometry geom_collect = geom.getGeometryN(j);
-                                        if (geom_collect != null) {
-                                            drawLabel(pointTransformer, geom_collect, labelText, canvas, dbTextPaint,
-                                                    dbTextHaloPaint, delta, linesWriter);
-                                            if (stopDrawing()) { // stop working
-                                                return;
-                                            }
-                                        }
-                                    }
-                                } else {
-                                    drawLabel(pointTransformer, geom, labelText, canvas, dbTextPaint, dbTextHaloPaint, delta,
-                                            linesWriter);
-                                    if (stopDrawing()) { // stop working
-                                        return;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } finally {
-                    if (geometryIterator != null)
-                        geometryIterator.close();
-                }
+            if (spatialiteLabelBuffer.size() > 0 && !stopDrawing()) {
+                spatialiteLabelBuffer.placeAndDraw(canvas);
             }
         } catch (Exception e1) {
             GPLog.error(this, "GeopaparazziOverlay.drawFromSpatialite [failed]", e1); //$NON-NLS-1$
+        } finally {
+            spatialiteLabelBuffer.clear();
+            spatialiteGeometryCache.trim();
         }
     }
 
@@ -830,93 +806,19 @@ public abstract class GeopaparazziOverlay extends Overlay {
         return isInterrupted() || sizeHasChanged() || needRedraw();
     }
 
-    private static void drawGeometry(Geometry geom, Canvas canvas, ShapeWriter shape_writer, Paint fill, Paint stroke) {
-        String s_geometry_type = geom.getGeometryType();
-        int i_geometry_type = GeometryType.forValue(s_geometry_type);
-        GeometryType geometry_type = GeometryType.forValue(i_geometry_type);
-        DrawableShape shape = shape_writer.toShape(geom);
-        switch (geometry_type) {
-            case POINT_XY:
-            case POINT_XYM:
-            case POINT_XYZ:
-            case POINT_XYZM:
-            case MULTIPOINT_XY:
-            case MULTIPOINT_XYM:
-            case MULTIPOINT_XYZ:
-            case MULTIPOINT_XYZM: {
-                if (fill != null)
-                    shape.fill(canvas, fill);
-                if (stroke != null)
-                    shape.draw(canvas, stroke);
-                // GPLog.androidLog(-1,"GeopaparazziOverlay.drawGeometry geometry_type["+s_geometry_type+"]: ["+i_geometry_type+"]");
-            }
-            break;
-            case LINESTRING_XY:
-            case LINESTRING_XYM:
-            case LINESTRING_XYZ:
-            case LINESTRING_XYZM:
-            case MULTILINESTRING_XY:
-            case MULTILINESTRING_XYM:
-            case MULTILINESTRING_XYZ:
-            case MULTILINESTRING_XYZM: {
-                if (stroke != null)
-                    shape.draw(canvas, stroke);
-            }
-            break;
-            case POLYGON_XY:
-            case POLYGON_XYM:
-            case POLYGON_XYZ:
-            case POLYGON_XYZM:
-            case MULTIPOLYGON_XY:
-            case MULTIPOLYGON_XYM:
-            case MULTIPOLYGON_XYZ:
-            case MULTIPOLYGON_XYZM: {
-                if (fill != null)
-                    shape.fill(canvas, fill);
-                if (stroke != null)
-                    shape.draw(canvas, stroke);
-            }
-            break;
-            default:
-                break;
-        }
-    }
-
-    private static void drawLabel(PointTransformation pointTransformer, Geometry geom, String label, Canvas canvas,
-                                  Paint dbTextPaint, Paint dbTextHaloPaint, float delta, ShapeWriter linesWriter) {
-
-        if (linesWriter == null) {
-            /*
-             * for points and polygons for now just use the centroid
-             */
-            com.vividsolutions.jts.geom.Point centroid = geom.getCentroid();
-            Coordinate coordinate = centroid.getCoordinate();
-            PointF dest = new PointF();
-            pointTransformer.transform(coordinate, dest);
-            float x = dest.x + delta;
-            float y = dest.y - delta;
-            // if (doNotesTextHalo)
-            canvas.drawText(label, x, y, dbTextHaloPaint);
-            canvas.drawText(label, x, y, dbTextPaint);
-        } else {
-            DrawableShape shape = linesWriter.toShape(geom);
-            if (shape instanceof PathShape) {
-                PathShape lineShape = (PathShape) shape;
-                Path linePath = lineShape.getPath();
-                // if (doNotesTextHalo)
-                int hOffset = 15;
-                int vOffset = -5;
-                canvas.drawTextOnPath(label, linePath, hOffset, vOffset, dbTextHaloPaint);
-                canvas.drawTextOnPath(label, linePath, hOffset, vOffset, dbTextPaint);
-            }
-        }
-    }
-
     @Override
     protected String getThreadName() {
         return THREAD_NAME;
     }
 
+    /**
+     * Reload the gps logs from the database and redraw.
+     */
+    public void reloadGpsLogs() {
+        gpsLogsLayer.invalidate();
+        super.requestRedraw();
+    }
+
     /**
      * This method should be called after ways have been added to the overlay.
      */
@@ -924,11 +826,32 @@ public abstract class GeopaparazziOverlay extends Overlay {
         super.requestRedraw();
     }
 
+    /**
+     * Collects the indexes of the items which may be visible in the given area of the map.
+     * <p/>
+     * The default implementation selects all items by their position, subclasses can use a
+     * spatial index and their own stable item indexes.
+     *
+     * @param left      the left map pixel of the area.
+     * @param top       the top map pixel of the area.
+     * @param right     the right map pixel of the area.
+     * @param bottom    the bottom map pixel of the area.
+     * @param zoomLevel the zoom level of the map pixels.
+     * @param selection the selection to fill with the item indexes, in drawing order.
+     */
+    protected void selectItems(int left, int top, int right, int bottom, byte zoomLevel, MarkerIndex.Selection selection) {
+        selection.clear();
+        int numberOfItems = itemSize();
+        for (int itemIndex = 0; itemIndex < numberOfItems; ++itemIndex) {
+            selection.add(itemIndex);
+        }
+    }
+
     /**
      * Creates an item in this overlay.
      *
-     * @param index the index of the item.
-     * @return the item.
+     * @param index the index of the item, as selected by {@link #selectItems}.
+     * @return the item, or null if there is none with this index.
      */
     protected abstract OverlayItem createItem(int index);
 
@@ -0,0 +1,192 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.mapview.overlays;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.geopaparazzi.core.database.DaoGpsLogOverviews;
+import eu.geopaparazzi.core.database.objects.GpsLogOverview;
+import eu.geopaparazzi.library.style.ColorUtilities;
+
+/**
+ * Draws the visible gps logs, reading from the database only the logs in the
+ * area of the map, at the overview level that fits the zoom level.
+ * <p/>
+ * <p>The logs are read for an area larger than the view, so that small pans do not
+ * hit the database, and are read again when the view leaves it, when the overview
+ * level changes or when the layer is invalidated.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogsLayer {
+
+    private volatile boolean invalid = true;
+
+    private int loadedLevel = Integer.MIN_VALUE;
+    private double loadedN;
+    private double loadedS;
+    private double loadedE;
+    private double loadedW;
+    private List<LogPath> logPaths = new ArrayList<>();
+    private byte projectedZoom = -1;
+
+    private final Paint linePaint;
+    private final Paint startEndPaint;
+
+    /**
+     * Constructor.
+     */
+    public GpsLogsLayer() {
+        linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeJoin(Paint.Join.ROUND);
+        startEndPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        startEndPaint.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Reload the logs from the database at the next draw.
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * Draw the logs.
+     *
+     * @param canvas       the canvas to draw on.
+     * @param drawPosition the world pixel position of the top left corner of the canvas.
+     * @param zoom         the zoom level.
+     * @throws IOException if something goes wrong.
+     */
+    public void draw(Canvas canvas, Point drawPosition, byte zoom) throws IOException {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        double w = MercatorProjection.pixelXToLongitude(drawPosition.x, zoom);
+        double e = MercatorProjection.pixelXToLongitude(drawPosition.x + width, zoom);
+        double n = MercatorProjection.pixelYToLatitude(drawPosition.y, zoom);
+        double s = MercatorProjection.pixelYToLatitude(drawPosition.y + height, zoom);
+
+        int level = DaoGpsLogOverviews.getLevelForZoom(zoom);
+        if (invalid || level != loadedLevel || n > loadedN || s < loadedS || e > loadedE || w < loadedW) {
+            invalid = false;
+            double deltaLon = (e - w) / 2;
+            double deltaLat = (n - s) / 2;
+            loadedN = n + deltaLat;
+            loadedS = s - deltaLat;
+            loadedE = e + deltaLon;
+            loadedW = w - deltaLon;
+            loadedLevel = level;
+
+            List<GpsLogOverview> logs = DaoGpsLogOverviews.getOverviewLogs(loadedN, loadedS, loadedE, loadedW, level);
+            List<LogPath> newLogPaths = new ArrayList<>(logs.size());
+            for (GpsLogOverview log : logs) {
+                newLogPaths.add(new LogPath(log));
+            }
+            logPaths = newLogPaths;
+            projectedZoom = -1;
+        }
+
+        if (zoom != projectedZoom) {
+            for (LogPath logPath : logPaths) {
+                logPath.project(zoom);
+            }
+            projectedZoom = zoom;
+        }
+
+        for (LogPath logPath : logPaths) {
+            float dx = (float) (logPath.originX - drawPosition.x);
+            float dy = (float) (logPath.originY - drawPosition.y);
+            if (dx + logPath.maxX < 0 || dx + logPath.minX > width || dy + logPath.maxY < 0 || dy + logPath.minY > height) {
+                continue;
+            }
+            canvas.save();
+            canvas.translate(dx, dy);
+            linePaint.setColor(logPath.color);
+            linePaint.setStrokeWidth(logPath.width);
+            canvas.drawPath(logPath.path, linePaint);
+
+            // start and end markers, as for the overlay ways
+            startEndPaint.setColor(logPath.color);
+            float size = logPath.width * 2;
+            canvas.drawRect(-size, -size, size, size, startEndPaint);
+            canvas.drawCircle(logPath.lastX, logPath.lastY, size, startEndPaint);
+            canvas.restore();
+        }
+    }
+
+    private static class LogPath {
+        final GpsLogOverview log;
+        final int color;
+        final float width;
+        final Path path = new Path();
+        double originX;
+        double originY;
+        float lastX;
+        float lastY;
+        float minX;
+        float minY;
+        float maxX;
+        float maxY;
+
+        LogPath(GpsLogOverview log) {
+            this.log = log;
+            this.color = ColorUtilities.toColor(log.color);
+            this.width = log.width;
+        }
+
+        /**
+         * Project the log at a zoom level, relative to its first point to keep float precision.
+         */
+        void project(byte zoom) {
+            path.rewind();
+            originX = MercatorProjection.longitudeToPixelX(log.lons[0], zoom);
+            originY = MercatorProjection.latitudeToPixelY(log.lats[0], zoom);
+            path.moveTo(0, 0);
+            minX = minY = maxX = maxY = 0;
+            float x = 0;
+            float y = 0;
+            for (int i = 1; i < log.pointsCount; i++) {
+                x = (float) (MercatorProjection.longitudeToPixelX(log.lons[i], zoom) - originX);
+                y = (float) (MercatorProjection.latitudeToPixelY(log.lats[i], zoom) - originY);
+                path.lineTo(x, y);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+            lastX = x;
+            lastY = y;
+            // make room for the width of the line and the markers
+            float pad = width * 2;
+            minX -= pad;
+            minY -= pad;
+            maxX += pad;
+            maxY += pad;
+        }
+    }
+}
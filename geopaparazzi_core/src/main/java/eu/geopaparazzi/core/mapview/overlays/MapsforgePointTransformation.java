@@ -25,7 +25,7 @@ import com.vividsolutions.jts.android.PointTransformation;
 import com.vividsolutions.jts.geom.Coordinate;
 
 import org.mapsforge.android.maps.Projection;
-import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
 
 /**
  * Transformation that handles mapsforge transforms.
@@ -35,7 +35,6 @@ import org.mapsforge.core.model.GeoPoint;
 public class MapsforgePointTransformation implements PointTransformation {
     private byte drawZoom;
     private Projection projection;
-    private final Point tmpPoint = new Point();
     private Point drawPosition;
 
     /**
@@ -52,7 +51,9 @@ public class MapsforgePointTransformation implements PointTransformation {
     }
 
     public void transform( Coordinate model, PointF view ) {
-        projection.toPoint(new GeoPoint(model.y, model.x), tmpPoint, drawZoom);
-        view.set(tmpPoint.x - drawPosition.x, tmpPoint.y - drawPosition.y);
+        // same as projection.toPoint, without a GeoPoint for every vertex
+        int x = (int) MercatorProjection.longitudeToPixelX(model.x, drawZoom);
+        int y = (int) MercatorProjection.latitudeToPixelY(model.y, drawZoom);
+        view.set(x - drawPosition.x, y - drawPosition.y);
     }
 }
\ No newline at end of file
@@ -0,0 +1,296 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.mapview.overlays;
+
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A grid index of the positions of the overlay items, so that only the items
+ * around the drawn area have to be projected and drawn.
+ * <p/>
+ * <p>Positions are kept as map pixels at a fixed reference zoom level, from which
+ * the pixels of every lower zoom level follow by a shift. Only the cells which
+ * contain items are allocated.</p>
+ * <p/>
+ * <p>Items are identified by an id which does not change while the item is in the
+ * index, so that removing an item only touches its own cell. Queries return the
+ * ids in ascending order, which is the drawing order if the ids are assigned
+ * in the order the items are added.</p>
+ * <p/>
+ * <p>The index is thread-safe: it is changed by the ui thread and queried by the
+ * drawing thread of the overlay.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class MarkerIndex {
+    private static final byte REFERENCE_ZOOM = 22;
+    private static final int WORLD_SIZE = 256 << REFERENCE_ZOOM;
+    // a cell has the size of a tile at zoom level 12
+    private static final int CELL_SHIFT = 18;
+    private static final int CELLS_PER_SIDE = WORLD_SIZE >>> CELL_SHIFT;
+    private static final int INITIAL_CELL_CAPACITY = 4;
+
+    /**
+     * The item ids with their positions in a cell of the grid.
+     */
+    private static class Cell {
+        int size = 0;
+        int[] items = new int[INITIAL_CELL_CAPACITY];
+        int[] xs = new int[INITIAL_CELL_CAPACITY];
+        int[] ys = new int[INITIAL_CELL_CAPACITY];
+
+        void add(int item, int x, int y) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            items[size] = item;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        boolean remove(int item) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == item) {
+                    size--;
+                    items[i] = items[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The result of a query, reused for every frame.
+     */
+    public static class Selection {
+        private int size = 0;
+        private int[] items = new int[64];
+
+        /**
+         * Add an item id.
+         *
+         * @param item the id of the item.
+         */
+        public void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+
+        /**
+         * Remove all item ids.
+         */
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * @param i the position in the selection.
+         * @return the id of the item.
+         */
+        public int get(int i) {
+            return items[i];
+        }
+
+        /**
+         * @return the number of selected items.
+         */
+        public int size() {
+            return size;
+        }
+
+        private void sort() {
+            Arrays.sort(items, 0, size);
+        }
+    }
+
+    private final HashMap<Integer, Cell> cells = new HashMap<>();
+    private int size = 0;
+
+    private static int toPixelX(GeoPoint point) {
+        int x = (int) MercatorProjection.longitudeToPixelX(point.getLongitude(), REFERENCE_ZOOM);
+        return Math.max(0, Math.min(x, WORLD_SIZE - 1));
+    }
+
+    private static int toPixelY(GeoPoint point) {
+        double latitude = MercatorProjection.limitLatitude(point.getLatitude());
+        int y = (int) MercatorProjection.latitudeToPixelY(latitude, REFERENCE_ZOOM);
+        return Math.max(0, Math.min(y, WORLD_SIZE - 1));
+    }
+
+    private static int toCell(long referencePixel) {
+        return (int) Math.max(0, Math.min(referencePixel >> CELL_SHIFT, CELLS_PER_SIDE - 1));
+    }
+
+    /**
+     * Add an item.
+     *
+     * @param item  the id of the item.
+     * @param point the position of the item.
+     */
+    public synchronized void add(int item, GeoPoint point) {
+        int x = toPixelX(point);
+        int y = toPixelY(point);
+        Integer key = (y >> CELL_SHIFT) * CELLS_PER_SIDE + (x >> CELL_SHIFT);
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            cells.put(key, cell);
+        }
+        cell.add(item, x, y);
+        size++;
+    }
+
+    /**
+     * Remove an item. Only the cell of the position is visited, nothing happens if
+     * the item is not found there.
+     *
+     * @param item  the id of the item.
+     * @param point the position the item was added with.
+     * @return <code>true</code> if the item has been removed.
+     */
+    public synchronized boolean remove(int item, GeoPoint point) {
+        return removeFromCell(item, point);
+    }
+
+    /**
+     * Move an item to a new position.
+     *
+     * @param item     the id of the item.
+     * @param oldPoint the position the item was added with.
+     * @param newPoint the new position of the item.
+     */
+    public synchronized void move(int item, GeoPoint oldPoint, GeoPoint newPoint) {
+        if (removeFromCell(item, oldPoint)) {
+            add(item, newPoint);
+        }
+    }
+
+    /**
+     * Remove all items.
+     */
+    public synchronized void clear() {
+        cells.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of items.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Select the items inside an area of the map, sorted by id.
+     *
+     * @param left      the left map pixel of the area.
+     * @param top       the top map pixel of the area.
+     * @param right     the right map pixel of the area.
+     * @param bottom    the bottom map pixel of the area.
+     * @param zoomLevel the zoom level of the map pixels.
+     * @param selection the selection to fill.
+     */
+    public synchronized void query(int left, int top, int right, int bottom, byte zoomLevel, Selection selection) {
+        selection.clear();
+        if (size == 0) {
+            return;
+        }
+        long minX;
+        long minY;
+        long maxX;
+        long maxY;
+        if (zoomLevel <= REFERENCE_ZOOM) {
+            int shift = REFERENCE_ZOOM - zoomLevel;
+            minX = (long) left << shift;
+            minY = (long) top << shift;
+            maxX = (((long) right + 1) << shift) - 1;
+            maxY = (((long) bottom + 1) << shift) - 1;
+        } else {
+            int shift = zoomLevel - REFERENCE_ZOOM;
+            minX = left >> shift;
+            minY = top >> shift;
+            maxX = right >> shift;
+            maxY = bottom >> shift;
+        }
+
+        int fromColumn = toCell(minX);
+        int toColumn = toCell(maxX);
+        int fromRow = toCell(minY);
+        int toRow = toCell(maxY);
+        if ((long) (toColumn - fromColumn + 1) * (toRow - fromRow + 1) > cells.size()) {
+            // large area, only visit the cells with items
+            for (Map.Entry<Integer, Cell> entry : cells.entrySet()) {
+                int key = entry.getKey();
+                int column = key % CELLS_PER_SIDE;
+                int row = key / CELLS_PER_SIDE;
+                if (column >= fromColumn && column <= toColumn && row >= fromRow && row <= toRow) {
+                    select(entry.getValue(), minX, minY, maxX, maxY, selection);
+                }
+            }
+        } else {
+            for (int row = fromRow; row <= toRow; row++) {
+                for (int column = fromColumn; column <= toColumn; column++) {
+                    Cell cell = cells.get(row * CELLS_PER_SIDE + column);
+                    if (cell != null) {
+                        select(cell, minX, minY, maxX, maxY, selection);
+                    }
+                }
+            }
+        }
+        // keep the drawing order of the items
+        selection.sort();
+    }
+
+    private static void select(Cell cell, long minX, long minY, long maxX, long maxY, Selection selection) {
+        for (int i = 0; i < cell.size; i++) {
+            int x = cell.xs[i];
+            int y = cell.ys[i];
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                selection.add(cell.items[i]);
+            }
+        }
+    }
+
+    private boolean removeFromCell(int item, GeoPoint point) {
+        int x = toPixelX(point);
+        int y = toPixelY(point);
+        Integer key = (y >> CELL_SHIFT) * CELLS_PER_SIDE + (x >> CELL_SHIFT);
+        Cell cell = cells.get(key);
+        if (cell != null && cell.remove(item)) {
+            if (cell.size == 0) {
+                cells.remove(key);
+            }
+            size--;
+            return true;
+        }
+        return false;
+    }
+}
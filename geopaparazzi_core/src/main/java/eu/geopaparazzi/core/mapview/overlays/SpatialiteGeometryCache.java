@@ -0,0 +1,606 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.mapview.overlays;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Point;
+import android.graphics.PointF;
+
+import com.vividsolutions.jts.android.ShapeWriter;
+import com.vividsolutions.jts.android.geom.DrawableShape;
+
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.style.Style;
+import eu.geopaparazzi.library.util.LibraryConstants;
+import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.WkbPathDecoder;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+import jsqlite.Exception;
+
+/**
+ * Cache of the decoded and projected geometries of the spatialite vector layers.
+ * <p/>
+ * <p>Geometries are decoded from WKB straight into paths projected to the zoom level
+ * they are drawn at (see {@link WkbPathDecoder}) and cached per table in cells of its
+ * tile grid. Panning only queries the database for the cells that entered the view,
+ * using a single query for all of them. A feature crossing several cells is decoded
+ * once and shared by the cells.</p>
+ * <p/>
+ * <p>The least recently used cells are evicted once the estimated size of the cached
+ * shapes exceeds the memory budget. The cells of a table are dropped when the table
+ * is edited (see {@link SpatialVectorTable#notifyModified()}) or its style changes.</p>
+ * <p/>
+ * <p>The cache is meant to be used by the drawing thread only.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteGeometryCache {
+    private static final int CELL_SIZE = Tile.TILE_SIZE;
+    /**
+     * Rough size of a cached feature without its coordinates.
+     */
+    static final int FEATURE_OVERHEAD_BYTES = 160;
+    /**
+     * Rough size of a projected coordinate in a path.
+     */
+    static final int COORDINATE_BYTES = 16;
+
+    private final long maxBytes;
+    private long cachedBytes = 0;
+
+    private final LinkedHashMap<CellKey, Cell> cells = new LinkedHashMap<>(64, 0.75f, true);
+    private final HashMap<String, TableCache> tableCaches = new HashMap<>();
+    private final CellKey probeKey = new CellKey();
+    private final WkbPathDecoder decoder = new WkbPathDecoder();
+    // created on the first decoded geometry
+    private Path scratchAreaPath;
+    private Path scratchLinePath;
+    private final float[] labelPosition = new float[2];
+    private int frame = 0;
+
+    private long hitsCount = 0;
+    private long missesCount = 0;
+    private long evictionsCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes the memory budget of the cached shapes.
+     */
+    public SpatialiteGeometryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Start drawing a new frame.
+     * <p/>
+     * <p>Features shared by several cells are drawn only once per frame.</p>
+     */
+    public void startFrame() {
+        frame++;
+    }
+
+    /**
+     * Draw the geometries of a table that fall into the view, loading the missing cells.
+     *
+     * @param canvas       the canvas to draw on.
+     * @param drawPosition the top-left position of the canvas in world pixels.
+     * @param zoom         the zoom level.
+     * @param handler      the handler of the database of the table.
+     * @param table        the table to draw.
+     * @param fill         the fill paint or <code>null</code>.
+     * @param stroke       the stroke paint or <code>null</code>.
+     * @param labelBuffer  the buffer to queue the labels in.
+     * @param labelLayer   the label layer or -1 if labels are not shown.
+     * @param labelDelta   the offset of point and polygon labels.
+     * @throws Exception if something goes wrong.
+     */
+    public void draw(Canvas canvas, Point drawPosition, byte zoom, SpatialiteDatabaseHandler handler, SpatialVectorTable table,
+                     Paint fill, Paint stroke, SpatialiteLabelBuffer labelBuffer, int labelLayer, float labelDelta)
+            throws Exception {
+        Cell[] viewCells = getCells(handler, table, zoom, drawPosition.x, drawPosition.y, canvas.getWidth(),
+                canvas.getHeight());
+        if (viewCells == null) {
+            return;
+        }
+        boolean isLineLabel = table.isLine();
+
+        for (Cell cell : viewCells) {
+            for (Feature feature : cell.features) {
+                if (feature.drawnFrame == frame) {
+                    continue;
+                }
+                feature.drawnFrame = frame;
+                // the offset is computed in double precision, world pixels overflow a float at high zoom levels
+                float dx = (float) (feature.originX - drawPosition.x);
+                float dy = (float) (feature.originY - drawPosition.y);
+                canvas.save();
+                canvas.translate(dx, dy);
+                if (feature.areaPath != null) {
+                    if (fill != null) {
+                        fill.setStyle(Paint.Style.FILL);
+                        canvas.drawPath(feature.areaPath, fill);
+                    }
+                    if (stroke != null) {
+                        stroke.setStyle(Paint.Style.STROKE);
+                        canvas.drawPath(feature.areaPath, stroke);
+                    }
+                }
+                if (feature.linePath != null && stroke != null) {
+                    stroke.setStyle(Paint.Style.STROKE);
+                    canvas.drawPath(feature.linePath, stroke);
+                }
+                if (feature.points != null) {
+                    DrawableShape marker = cell.tableCache.getMarker();
+                    float[] points = feature.points;
+                    for (int i = 0; i < points.length; i += 2) {
+                        canvas.translate(points[i], points[i + 1]);
+                        if (fill != null)
+                            marker.fill(canvas, fill);
+                        if (stroke != null)
+                            marker.draw(canvas, stroke);
+                        canvas.translate(-points[i], -points[i + 1]);
+                    }
+                }
+                canvas.restore();
+
+                if (labelLayer != -1 && feature.label != null) {
+                    if (isLineLabel) {
+                        if (feature.linePath != null)
+                            labelBuffer.addLineLabel(labelLayer, feature.label, feature.linePath, dx, dy);
+                    } else {
+                        labelBuffer.addLabel(labelLayer, feature.label, feature.labelX + dx + labelDelta,
+                                feature.labelY + dy - labelDelta);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the cells of a table that fall into the view, loading the missing ones.
+     *
+     * @param handler the handler of the database of the table.
+     * @param table   the table.
+     * @param zoom    the zoom level.
+     * @param left    the left of the view in world pixels.
+     * @param top     the top of the view in world pixels.
+     * @param width   the width of the view.
+     * @param height  the height of the view.
+     * @return the cells row by row or <code>null</code> if the view is outside of the world.
+     * @throws Exception if something goes wrong.
+     */
+    Cell[] getCells(SpatialiteDatabaseHandler handler, SpatialVectorTable table, byte zoom, long left, long top, int width,
+                    int height) throws Exception {
+        TableCache tableCache = getTableCache(table, zoom);
+
+        long minCellX = Math.max(0, (long) Math.floor((double) left / CELL_SIZE));
+        long minCellY = Math.max(0, (long) Math.floor((double) top / CELL_SIZE));
+        long maxCell = (1L << zoom) - 1;
+        long maxCellX = Math.min(maxCell, (left + width) / CELL_SIZE);
+        long maxCellY = Math.min(maxCell, (top + height) / CELL_SIZE);
+        if (minCellX > maxCellX || minCellY > maxCellY) {
+            return null;
+        }
+
+        int cols = (int) (maxCellX - minCellX + 1);
+        int rows = (int) (maxCellY - minCellY + 1);
+        Cell[] viewCells = new Cell[cols * rows];
+        boolean hasMissing = false;
+        probeKey.table = tableCache.key;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                probeKey.x = minCellX + c;
+                probeKey.y = minCellY + r;
+                Cell cell = cells.get(probeKey);
+                if (cell != null) {
+                    hitsCount++;
+                    cell.usedFrame = frame;
+                    viewCells[r * cols + c] = cell;
+                } else {
+                    missesCount++;
+                    hasMissing = true;
+                }
+            }
+        }
+        if (hasMissing) {
+            loadCells(tableCache, handler, table, zoom, viewCells, minCellX, minCellY, cols, rows);
+        }
+        return viewCells;
+    }
+
+    /**
+     * Evict the least recently used cells until the cache fits its budget.
+     * <p/>
+     * <p>Cells used in the current frame are kept.</p>
+     */
+    public void trim() {
+        Iterator<Cell> iterator = cells.values().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            Cell cell = iterator.next();
+            if (cell.usedFrame == frame) {
+                // the rest is more recent
+                break;
+            }
+            iterator.remove();
+            release(cell);
+            evictionsCount++;
+        }
+    }
+
+    /**
+     * Remove all cached geometries.
+     */
+    public void clear() {
+        cells.clear();
+        tableCaches.clear();
+        cachedBytes = 0;
+    }
+
+    /**
+     * @return the number of cell lookups that were found in the cache.
+     */
+    public long getHitsCount() {
+        return hitsCount;
+    }
+
+    /**
+     * @return the number of cell lookups that had to be read from the database.
+     */
+    public long getMissesCount() {
+        return missesCount;
+    }
+
+    /**
+     * @return the number of evicted cells.
+     */
+    public long getEvictionsCount() {
+        return evictionsCount;
+    }
+
+    /**
+     * @return the ratio of cell lookups found in the cache or 0 if nothing was looked up yet.
+     */
+    public double getHitRate() {
+        long total = hitsCount + missesCount;
+        return total == 0 ? 0 : (double) hitsCount / total;
+    }
+
+    /**
+     * @return the estimated size of the cached shapes.
+     */
+    public long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private TableCache getTableCache(SpatialVectorTable table, byte zoom) {
+        String key = table.getUniqueNameBasedOnDbFilePath() + "@" + zoom;
+        int styleSignature = getStyleSignature(table.getStyle());
+        TableCache tableCache = tableCaches.get(key);
+        if (tableCache != null && (tableCache.table != table || tableCache.modificationCount != table.getModificationCount()
+                || tableCache.styleSignature != styleSignature)) {
+            // the data or the way they are drawn changed
+            removeTableCache(tableCache);
+            tableCache = null;
+        }
+        if (tableCache == null) {
+            tableCache = new TableCache(key, table, styleSignature);
+            tableCaches.put(key, tableCache);
+        }
+        return tableCache;
+    }
+
+    private void removeTableCache(TableCache tableCache) {
+        Iterator<Cell> iterator = cells.values().iterator();
+        while (iterator.hasNext()) {
+            Cell cell = iterator.next();
+            if (cell.tableCache == tableCache) {
+                iterator.remove();
+                release(cell);
+            }
+        }
+        tableCaches.remove(tableCache.key);
+    }
+
+    private void release(Cell cell) {
+        for (Feature feature : cell.features) {
+            if (--feature.refCount == 0) {
+                cell.tableCache.features.remove(feature.id);
+                cachedBytes -= feature.bytes;
+            }
+        }
+    }
+
+    /**
+     * Reads the features of all missing cells with a single query over their bounds.
+     */
+    private void loadCells(TableCache tableCache, SpatialiteDatabaseHandler handler, SpatialVectorTable table, byte zoom,
+                           Cell[] viewCells, long minCellX, long minCellY, int cols, int rows) throws Exception {
+        int missingMinC = cols;
+        int missingMaxC = -1;
+        int missingMinR = rows;
+        int missingMaxR = -1;
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                if (viewCells[r * cols + c] == null) {
+                    missingMinC = Math.min(missingMinC, c);
+                    missingMaxC = Math.max(missingMaxC, c);
+                    missingMinR = Math.min(missingMinR, r);
+                    missingMaxR = Math.max(missingMaxR, r);
+                }
+            }
+        }
+        ArrayList<ArrayList<Feature>> loading = new ArrayList<>(viewCells.length);
+        for (int i = 0; i < viewCells.length; i++) {
+            loading.add(viewCells[i] == null ? new ArrayList<Feature>() : null);
+        }
+
+        double w = MercatorProjection.tileXToLongitude(minCellX + missingMinC, zoom);
+        double e = MercatorProjection.tileXToLongitude(minCellX + missingMaxC + 1, zoom);
+        double n = MercatorProjection.tileYToLatitude(minCellY + missingMinR, zoom);
+        double s = MercatorProjection.tileYToLatitude(minCellY + missingMaxR + 1, zoom);
+
+        Style style = table.getStyle();
+        decoder.setZoom(zoom);
+        decoder.setOriginAtFirstVertex();
+        decoder.setRemoveDuplicatePoints(true);
+        decoder.setDecimation(style.decimationFactor);
+        boolean withLabels = style.labelvisible != 0;
+
+        GeometryIterator geometryIterator = null;
+        try {
+            geometryIterator = getGeometryIterator(handler, table, n, s, e, w);
+            while (geometryIterator.hasNext()) {
+                byte[] wkb = geometryIterator.nextWkb();
+                if (wkb == null) {
+                    continue;
+                }
+                Long id = geometryIterator.getRowId();
+                Feature feature = tableCache.features.get(id);
+                if (feature == null) {
+                    // features already cached for other cells are not decoded again
+                    String label = null;
+                    if (withLabels) {
+                        label = geometryIterator.getLabelText();
+                        if (label != null && label.length() == 0) {
+                            label = null;
+                        }
+                    }
+                    try {
+                        feature = decodeFeature(id, wkb, label, zoom);
+                    } catch (IllegalArgumentException ex) {
+                        GPLog.error(this, "Could not decode a geometry of " + table.getTableName(), ex);
+                        continue;
+                    }
+                    if (feature == null) {
+                        continue;
+                    }
+                    tableCache.features.put(id, feature);
+                    cachedBytes += feature.bytes;
+                }
+
+                // assign the feature to the missing cells its envelope overlaps
+                int c0 = (int) Math.max(missingMinC, feature.minCellX - minCellX);
+                int c1 = (int) Math.min(missingMaxC, feature.maxCellX - minCellX);
+                int r0 = (int) Math.max(missingMinR, feature.minCellY - minCellY);
+                int r1 = (int) Math.min(missingMaxR, feature.maxCellY - minCellY);
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        ArrayList<Feature> cellFeatures = loading.get(r * cols + c);
+                        if (cellFeatures != null) {
+                            cellFeatures.add(feature);
+                            feature.refCount++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (geometryIterator != null)
+                geometryIterator.close();
+        }
+
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                int index = r * cols + c;
+                ArrayList<Feature> cellFeatures = loading.get(index);
+                if (cellFeatures == null) {
+                    continue;
+                }
+                // empty cells are cached too, they are the most common ones
+                Cell cell = new Cell(tableCache, cellFeatures.toArray(new Feature[cellFeatures.size()]));
+                cell.usedFrame = frame;
+                cells.put(new CellKey(tableCache.key, minCellX + c, minCellY + r), cell);
+                viewCells[index] = cell;
+            }
+        }
+    }
+
+    /**
+     * Get the geometries of a table in wgs84, with their row ids, that intersect the given bounds.
+     *
+     * @param handler the handler of the database of the table.
+     * @param table   the table.
+     * @param n       north bound.
+     * @param s       south bound.
+     * @param e       east bound.
+     * @param w       west bound.
+     * @return the geometries iterator.
+     */
+    GeometryIterator getGeometryIterator(SpatialiteDatabaseHandler handler, SpatialVectorTable table, double n, double s,
+                                         double e, double w) {
+        return handler.getGeometryIteratorInBounds(LibraryConstants.SRID_WGS84_4326, table, n, s, e, w, true);
+    }
+
+    /**
+     * Decode a geometry into a feature projected to the zoom level.
+     *
+     * @param id    the row id of the geometry.
+     * @param wkb   the geometry in wgs84.
+     * @param label the label of the feature or <code>null</code>.
+     * @param zoom  the zoom level.
+     * @return the feature or <code>null</code> if there is nothing to draw.
+     * @throws IllegalArgumentException if the geometry can't be decoded.
+     */
+    Feature decodeFeature(long id, byte[] wkb, String label, byte zoom) {
+        if (scratchAreaPath == null) {
+            scratchAreaPath = new Path();
+            scratchLinePath = new Path();
+        }
+        int kinds = decoder.decode(wkb, scratchAreaPath, scratchLinePath);
+        if (kinds == 0) {
+            return null;
+        }
+        Feature feature = new Feature(id);
+        feature.originX = decoder.getOriginX();
+        feature.originY = decoder.getOriginY();
+        feature.minCellX = MercatorProjection.longitudeToTileX(decoder.getMinLon(), zoom);
+        feature.maxCellX = MercatorProjection.longitudeToTileX(decoder.getMaxLon(), zoom);
+        feature.minCellY = MercatorProjection.latitudeToTileY(decoder.getMaxLat(), zoom);
+        feature.maxCellY = MercatorProjection.latitudeToTileY(decoder.getMinLat(), zoom);
+        // the scratch paths are reused, only the parts present are copied
+        if ((kinds & WkbPathDecoder.KIND_AREA) != 0) {
+            feature.areaPath = new Path(scratchAreaPath);
+        }
+        if ((kinds & WkbPathDecoder.KIND_LINE) != 0) {
+            feature.linePath = new Path(scratchLinePath);
+        }
+        if ((kinds & WkbPathDecoder.KIND_POINT) != 0) {
+            feature.points = Arrays.copyOf(decoder.getPoints(), decoder.getPointsCount() * 2);
+        }
+        if (label != null) {
+            feature.label = label;
+            decoder.getLabelPosition(labelPosition);
+            feature.labelX = labelPosition[0];
+            feature.labelY = labelPosition[1];
+        }
+        feature.bytes = FEATURE_OVERHEAD_BYTES + (long) decoder.getVertexCount() * COORDINATE_BYTES;
+        return feature;
+    }
+
+    private static int getStyleSignature(Style style) {
+        int hash = Float.floatToIntBits(style.size);
+        hash = 31 * hash + (style.shape == null ? 0 : style.shape.hashCode());
+        hash = 31 * hash + Float.floatToIntBits(style.decimationFactor);
+        hash = 31 * hash + style.labelvisible;
+        hash = 31 * hash + (style.labelfield == null ? 0 : style.labelfield.hashCode());
+        return hash;
+    }
+
+    private static class TableCache {
+        final String key;
+        final SpatialVectorTable table;
+        final int modificationCount;
+        final int styleSignature;
+        final HashMap<Long, Feature> features = new HashMap<>();
+        // the marker of point geometries, centered at 0,0
+        DrawableShape marker;
+
+        TableCache(String key, SpatialVectorTable table, int styleSignature) {
+            this.key = key;
+            this.table = table;
+            this.modificationCount = table.getModificationCount();
+            this.styleSignature = styleSignature;
+        }
+
+        DrawableShape getMarker() {
+            if (marker == null) {
+                Style style = table.getStyle();
+                marker = ShapeWriter.getShape(style.shape, style.size).createPoint(new PointF(0, 0));
+            }
+            return marker;
+        }
+    }
+
+    static class Feature {
+        final long id;
+        double originX;
+        double originY;
+        // the cells the envelope of the feature overlaps
+        long minCellX;
+        long maxCellX;
+        long minCellY;
+        long maxCellY;
+        Path areaPath;
+        Path linePath;
+        float[] points;
+        String label;
+        float labelX;
+        float labelY;
+        long bytes;
+        int refCount = 0;
+        int drawnFrame = -1;
+
+        Feature(long id) {
+            this.id = id;
+        }
+    }
+
+    static class Cell {
+        final TableCache tableCache;
+        final Feature[] features;
+        int usedFrame;
+
+        Cell(TableCache tableCache, Feature[] features) {
+            this.tableCache = tableCache;
+            this.features = features;
+        }
+    }
+
+    private static class CellKey {
+        String table;
+        long x;
+        long y;
+
+        CellKey() {
+        }
+
+        CellKey(String table, long x, long y) {
+            this.table = table;
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CellKey)) return false;
+            CellKey other = (CellKey) o;
+            return x == other.x && y == other.y && table.equals(other.table);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = table.hashCode();
+            result = 31 * result + (int) (x ^ (x >>> 32));
+            result = 31 * result + (int) (y ^ (y >>> 32));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.mapview.overlays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PathMeasure;
+
+import java.util.Arrays;
+
+/**
+ * Collects the label candidates of the spatialite layers while their geometries are drawn
+ * and places them afterwards in a single step, skipping labels that would overlap.
+ * <p/>
+ * <p>The buffer is meant to be reused for every frame: the candidates are kept in
+ * primitive arrays and the paints of the layers are recycled.</p>
+ * <p/>
+ * <p>Labels are placed in the order they were added, so that the first added label
+ * wins in case of collision.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class SpatialiteLabelBuffer {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int CELL_SIZE = 64;
+    private static final float LINE_LABEL_H_OFFSET = 15;
+    private static final float LINE_LABEL_V_OFFSET = -5;
+
+    /*
+     * label candidates
+     */
+    private int size = 0;
+    private String[] texts = new String[INITIAL_CAPACITY];
+    private float[] xs = new float[INITIAL_CAPACITY];
+    private float[] ys = new float[INITIAL_CAPACITY];
+    private Path[] paths = new Path[INITIAL_CAPACITY];
+    private float[] pathDxs = new float[INITIAL_CAPACITY];
+    private float[] pathDys = new float[INITIAL_CAPACITY];
+    private int[] layers = new int[INITIAL_CAPACITY];
+
+    /*
+     * paints of the layers of the current frame
+     */
+    private int layersCount = 0;
+    private Paint[] textPaints = new Paint[8];
+    private Paint[] haloPaints = new Paint[8];
+
+    /*
+     * placed label boxes and the grid of cells they are registered in
+     */
+    private int placedCount = 0;
+    private float[] placedBoxes = new float[INITIAL_CAPACITY * 4];
+    private int[] cellHeads = new int[0];
+    private int entriesCount = 0;
+    private int[] entryBoxes = new int[INITIAL_CAPACITY];
+    private int[] entryNext = new int[INITIAL_CAPACITY];
+    private int cols;
+    private int rows;
+
+    private final PathMeasure pathMeasure = new PathMeasure();
+    private final float[] position = new float[2];
+
+    /**
+     * Start a new layer of labels.
+     *
+     * @param textSize    the size of the labels.
+     * @param isLineLabel if <code>true</code>, the labels are drawn along the line paths.
+     * @return the index of the layer to use in {@link #addLabel(int, String, float, float)}
+     * and {@link #addLineLabel(int, String, Path)}.
+     */
+    public int addLayer(float textSize, boolean isLineLabel) {
+        if (layersCount == textPaints.length) {
+            textPaints = Arrays.copyOf(textPaints, layersCount * 2);
+            haloPaints = Arrays.copyOf(haloPaints, layersCount * 2);
+        }
+        Paint textPaint = textPaints[layersCount];
+        Paint haloPaint = haloPaints[layersCount];
+        if (textPaint == null) {
+            textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            textPaint.setStyle(Paint.Style.FILL);
+            textPaint.setColor(Color.BLACK);
+            textPaints[layersCount] = textPaint;
+            haloPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            haloPaint.setStyle(Paint.Style.STROKE);
+            haloPaint.setStrokeWidth(3);
+            haloPaint.setColor(Color.WHITE);
+            haloPaints[layersCount] = haloPaint;
+        }
+        Paint.Align align = isLineLabel ? Paint.Align.CENTER : Paint.Align.LEFT;
+        textPaint.setTextSize(textSize);
+        textPaint.setTextAlign(align);
+        haloPaint.setTextSize(textSize);
+        haloPaint.setTextAlign(align);
+        return layersCount++;
+    }
+
+    /**
+     * Add a label drawn at a position.
+     *
+     * @param layer the layer index.
+     * @param text  the label text.
+     * @param x     the x of the baseline start.
+     * @param y     the y of the baseline.
+     */
+    public void addLabel(int layer, String text, float x, float y) {
+        add(layer, text, x, y, null, 0, 0);
+    }
+
+    /**
+     * Add a label drawn along a line.
+     *
+     * @param layer the layer index.
+     * @param text  the label text.
+     * @param path  the line path in screen coordinates. It is referenced until {@link #clear()}.
+     */
+    public void addLineLabel(int layer, String text, Path path) {
+        add(layer, text, 0, 0, path, 0, 0);
+    }
+
+    /**
+     * Add a label drawn along a line whose path is relative to an offset.
+     *
+     * @param layer the layer index.
+     * @param text  the label text.
+     * @param path  the line path. It is referenced until {@link #clear()}.
+     * @param dx    the x offset of the path on the screen.
+     * @param dy    the y offset of the path on the screen.
+     */
+    public void addLineLabel(int layer, String text, Path path, float dx, float dy) {
+        add(layer, text, 0, 0, path, dx, dy);
+    }
+
+    private void add(int layer, String text, float x, float y, Path path, float dx, float dy) {
+        if (size == texts.length) {
+            int capacity = size * 2;
+            texts = Arrays.copyOf(texts, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            paths = Arrays.copyOf(paths, capacity);
+            pathDxs = Arrays.copyOf(pathDxs, capacity);
+            pathDys = Arrays.copyOf(pathDys, capacity);
+            layers = Arrays.copyOf(layers, capacity);
+        }
+        texts[size] = text;
+        xs[size] = x;
+        ys[size] = y;
+        paths[size] = path;
+        pathDxs[size] = dx;
+        pathDys[size] = dy;
+        layers[size] = layer;
+        size++;
+    }
+
+    /**
+     * @return the number of label candidates.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Draw the labels that do not overlap the already placed ones.
+     *
+     * @param canvas the canvas to draw on.
+     * @return the number of drawn labels.
+     */
+    public int placeAndDraw(Canvas canvas) {
+        resetGrid(canvas.getWidth(), canvas.getHeight());
+        int drawn = 0;
+        for (int i = 0; i < size; i++) {
+            Paint textPaint = textPaints[layers[i]];
+            Paint haloPaint = haloPaints[layers[i]];
+            float textWidth = textPaint.measureText(texts[i]);
+            float textSize = textPaint.getTextSize();
+
+            float left;
+            float top;
+            float right;
+            float bottom;
+            Path path = paths[i];
+            if (path == null) {
+                left = xs[i];
+                right = left + textWidth;
+                top = ys[i] - textSize;
+                bottom = ys[i] + textSize / 4f;
+            } else {
+                // bounds of the part of the line the text is drawn on
+                pathMeasure.setPath(path, false);
+                float length = pathMeasure.getLength();
+                if (length <= 0) {
+                    continue;
+                }
+                float dx = pathDxs[i];
+                float dy = pathDys[i];
+                pathMeasure.getPosTan(Math.min(LINE_LABEL_H_OFFSET, length), position, null);
+                left = right = position[0];
+                top = bottom = position[1];
+                pathMeasure.getPosTan(Math.min(LINE_LABEL_H_OFFSET + textWidth, length), position, null);
+                left = Math.min(left, position[0]) - textSize + dx;
+                right = Math.max(right, position[0]) + textSize + dx;
+                top = Math.min(top, position[1]) - textSize + dy;
+                bottom = Math.max(bottom, position[1]) + textSize + dy;
+            }
+
+            if (right < 0 || bottom < 0 || left > canvas.getWidth() || top > canvas.getHeight()) {
+                continue;
+            }
+            if (collides(left, top, right, bottom)) {
+                continue;
+            }
+            place(left, top, right, bottom);
+
+            if (path == null) {
+                canvas.drawText(texts[i], xs[i], ys[i], haloPaint);
+                canvas.drawText(texts[i], xs[i], ys[i], textPaint);
+            } else {
+                canvas.save();
+                canvas.translate(pathDxs[i], pathDys[i]);
+                canvas.drawTextOnPath(texts[i], path, LINE_LABEL_H_OFFSET, LINE_LABEL_V_OFFSET, haloPaint);
+                canvas.drawTextOnPath(texts[i], path, LINE_LABEL_H_OFFSET, LINE_LABEL_V_OFFSET, textPaint);
+                canvas.restore();
+            }
+            drawn++;
+        }
+        return drawn;
+    }
+
+    /**
+     * Remove all candidates and layers, releasing the referenced texts and paths.
+     */
+    public void clear() {
+        Arrays.fill(texts, 0, size, null);
+        Arrays.fill(paths, 0, size, null);
+        size = 0;
+        layersCount = 0;
+    }
+
+    private void resetGrid(int width, int height) {
+        cols = Math.max(1, (width + CELL_SIZE - 1) / CELL_SIZE);
+        rows = Math.max(1, (height + CELL_SIZE - 1) / CELL_SIZE);
+        int cellsCount = cols * rows;
+        if (cellHeads.length < cellsCount) {
+            cellHeads = new int[cellsCount];
+        }
+        Arrays.fill(cellHeads, 0, cellsCount, -1);
+        placedCount = 0;
+        entriesCount = 0;
+    }
+
+    private int col(float x) {
+        return Math.max(0, Math.min(cols - 1, (int) (x / CELL_SIZE)));
+    }
+
+    private int row(float y) {
+        return Math.max(0, Math.min(rows - 1, (int) (y / CELL_SIZE)));
+    }
+
+    private boolean collides(float left, float top, float right, float bottom) {
+        int colMax = col(right);
+        int rowMax = row(bottom);
+        for (int r = row(top); r <= rowMax; r++) {
+            for (int c = col(left); c <= colMax; c++) {
+                for (int e = cellHeads[r * cols + c]; e != -1; e = entryNext[e]) {
+                    int b = entryBoxes[e] * 4;
+                    if (left < placedBoxes[b + 2] && right > placedBoxes[b] && top < placedBoxes[b + 3]
+                            && bottom > placedBoxes[b + 1]) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private void place(float left, float top, float right, float bottom) {
+        if ((placedCount + 1) * 4 > placedBoxes.length) {
+            placedBoxes = Arrays.copyOf(placedBoxes, placedBoxes.length * 2);
+        }
+        int b = placedCount * 4;
+        placedBoxes[b] = left;
+        placedBoxes[b + 1] = top;
+        placedBoxes[b + 2] = right;
+        placedBoxes[b + 3] = bottom;
+
+        int colMax = col(right);
+        int rowMax = row(bottom);
+        for (int r = row(top); r <= rowMax; r++) {
+            for (int c = col(left); c <= colMax; c++) {
+                if (entriesCount == entryBoxes.length) {
+                    entryBoxes = Arrays.copyOf(entryBoxes, entriesCount * 2);
+                    entryNext = Arrays.copyOf(entryNext, entriesCount * 2);
+                }
+                int cell = r * cols + c;
+                entryBoxes[entriesCount] = placedCount;
+                entryNext[entriesCount] = cellHeads[cell];
+                cellHeads[cell] = entriesCount;
+                entriesCount++;
+            }
+        }
+        placedCount++;
+    }
+}
@@ -23,7 +23,6 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Paint.Align;
 import android.graphics.PointF;
-import android.location.Location;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.design.widget.FloatingActionButton;
@@ -52,6 +51,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gps.TrackStatistics;
 import eu.geopaparazzi.library.util.Compat;
 import eu.geopaparazzi.library.util.DynamicDoubleArray;
 import eu.geopaparazzi.library.util.GPDialogs;
@@ -397,13 +397,7 @@ public class ProfileChartActivity extends Activity implements View.OnTouchListen
             double distance = 0.0;
             double speedKmH = 0.0;
             if (i > 0) {
-                Location thisLoc = new Location("dummy1"); //$NON-NLS-1$
-                thisLoc.setLongitude(lon);
-                thisLoc.setLatitude(lat);
-                Location thatLoc = new Location("dummy2"); //$NON-NLS-1$
-                thatLoc.setLongitude(previousLon);
-                thatLoc.setLatitude(previousLat);
-                distance = thisLoc.distanceTo(thatLoc);
+                distance = TrackStatistics.distance(previousLat, previousLon, lat, lon);
 
                 double timeSeconds = (time - previousTime) / 1000.0;
                 speedKmH = 3.6 * distance / timeSeconds;
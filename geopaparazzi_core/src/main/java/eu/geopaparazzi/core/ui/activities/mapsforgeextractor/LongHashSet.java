@@ -0,0 +1,89 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.ui.activities.mapsforgeextractor;
+
+/**
+ * A set of primitive longs with open addressing, no boxing and no entry objects.
+ * <p/>
+ * <p>Not thread safe.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class LongHashSet {
+    /**
+     * The value marking empty slots, stored apart since it can't be put in the table.
+     */
+    private static final long EMPTY = 0;
+
+    private long[] table;
+    private int size;
+    private boolean containsEmpty;
+
+    LongHashSet() {
+        table = new long[1024];
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value the value.
+     * @return <code>true</code> if the value was not in the set yet.
+     */
+    boolean add(long value) {
+        if (value == EMPTY) {
+            if (containsEmpty) {
+                return false;
+            }
+            containsEmpty = true;
+            return true;
+        }
+        int mask = table.length - 1;
+        int index = hash(value) & mask;
+        while (table[index] != EMPTY) {
+            if (table[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = value;
+        if (++size * 2 > table.length) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        long[] oldTable = table;
+        table = new long[oldTable.length * 2];
+        int mask = table.length - 1;
+        for (long value : oldTable) {
+            if (value != EMPTY) {
+                int index = hash(value) & mask;
+                while (table[index] != EMPTY) {
+                    index = (index + 1) & mask;
+                }
+                table[index] = value;
+            }
+        }
+    }
+
+    private static int hash(long value) {
+        value *= 0x9E3779B97F4A7C15L;
+        return (int) (value ^ (value >>> 32));
+    }
+}
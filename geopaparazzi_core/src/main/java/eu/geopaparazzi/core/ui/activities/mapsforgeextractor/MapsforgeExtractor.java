@@ -0,0 +1,575 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.core.ui.activities.mapsforgeextractor;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.MapReadResult;
+import org.mapsforge.map.reader.PointOfInterest;
+import org.mapsforge.map.reader.Way;
+import org.mapsforge.map.reader.header.FileOpenResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import eu.geopaparazzi.core.GeopaparazziApplication;
+import eu.geopaparazzi.core.database.DaoNotes;
+import eu.geopaparazzi.library.database.GPLog;
+import jsqlite.Database;
+import jsqlite.Stmt;
+
+/**
+ * Extracts pois, ways, waterlines and contours of an area from a mapsforge map file.
+ * <p/>
+ * <p>The tiles are read and decoded in parallel by a pool of reader threads, sharing the
+ * same {@link MapDatabase}. The calling thread writes the results: pois become notes,
+ * lines are inserted in the mapsforge extraction database as WKB through prepared
+ * statements. Both databases are written in large transactions.</p>
+ * <p/>
+ * <p>Override {@link #onProgress(int, int)} to follow the extraction, call {@link #cancel()}
+ * from any thread to stop it. What has been extracted before is kept.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class MapsforgeExtractor {
+    /**
+     * Number of zoom levels below the requested one that are read for pois.
+     */
+    private static final int ZOOM_LIMIT = 4;
+    private static final int MAX_ZOOM = 22;
+    private static final int FIELDS_COUNT = 20;
+    private static final int COMMIT_INTERVAL = 5000;
+    private static final int MAX_READERS = 4;
+
+    private static final int TABLE_WAYS = 0;
+    private static final int TABLE_CONTOURS = 1;
+    private static final int TABLE_WATERLINES = 2;
+    private static final String[] TABLES = { //
+            MapsforgeExtractorUtilities.TABLENAME_WAYS, //
+            MapsforgeExtractorUtilities.TABLENAME_CONTOURS, //
+            MapsforgeExtractorUtilities.TABLENAME_WATERLINES //
+    };
+
+    private final File mapFile;
+    private final double n;
+    private final double s;
+    private final double w;
+    private final double e;
+    private final boolean doPois;
+    private final boolean doLines;
+    private final boolean doWays;
+    private final boolean doWater;
+    private final boolean doContours;
+    private final String filter;
+    private final boolean filterExcludes;
+    private final long timestamp;
+
+    /*
+     * the tile ranges to read, one per zoom level, the first one also for lines
+     */
+    private final byte[] zooms;
+    private final long[] startXTiles;
+    private final long[] endXTiles;
+    private final long[] startYTiles;
+    private final long[] endYTiles;
+    private final int tilesCount;
+
+    private volatile boolean cancelled;
+
+    /*
+     * writer state, used by the calling thread only
+     */
+    private final LongHashSet poisSet = new LongHashSet();
+    private final LongHashSet waysSet = new LongHashSet();
+    private final HashMap<String, Integer> fieldsMap = new HashMap<>();
+    private final String[] fieldValues = new String[FIELDS_COUNT];
+    private final Stmt[] insertStmts = new Stmt[TABLES.length];
+    private int poisCount;
+    private int linesCount;
+
+    /**
+     * Constructor.
+     *
+     * @param mapFile        the mapsforge map file.
+     * @param nswe           the area to extract.
+     * @param zoomLevel      the zoom level to read, pois are also read from more detailed levels.
+     * @param doPois         extract pois.
+     * @param doWays         extract roads, railways and other ways.
+     * @param doWater        extract waterlines.
+     * @param doContours     extract contours.
+     * @param filter         a lowercase text the poi forms have to contain, or an empty string.
+     * @param filterExcludes if <code>true</code>, the pois containing the filter are excluded instead.
+     * @param timestamp      the timestamp of the created notes.
+     */
+    public MapsforgeExtractor(File mapFile, float[] nswe, int zoomLevel, boolean doPois, boolean doWays, boolean doWater,
+                              boolean doContours, String filter, boolean filterExcludes, long timestamp) {
+        this.mapFile = mapFile;
+        n = nswe[0];
+        s = nswe[1];
+        w = nswe[2];
+        e = nswe[3];
+        this.doPois = doPois;
+        this.doWays = doWays;
+        this.doWater = doWater;
+        this.doContours = doContours;
+        doLines = doWays || doWater || doContours;
+        this.filter = filter;
+        this.filterExcludes = filterExcludes;
+        this.timestamp = timestamp;
+
+        // pois are read a few levels into detail, lines only at the requested level
+        int levels = 0;
+        for (int i = 0; i <= (doPois ? ZOOM_LIMIT : 0) && zoomLevel + i <= MAX_ZOOM; i++) {
+            levels++;
+        }
+        zooms = new byte[levels];
+        startXTiles = new long[levels];
+        endXTiles = new long[levels];
+        startYTiles = new long[levels];
+        endYTiles = new long[levels];
+        int count = 0;
+        for (int i = 0; i < levels; i++) {
+            byte zoom = (byte) (zoomLevel + i);
+            zooms[i] = zoom;
+            startXTiles[i] = MercatorProjection.longitudeToTileX(w, zoom);
+            endXTiles[i] = MercatorProjection.longitudeToTileX(e, zoom);
+            startYTiles[i] = MercatorProjection.latitudeToTileY(n, zoom);
+            endYTiles[i] = MercatorProjection.latitudeToTileY(s, zoom);
+            count += (endXTiles[i] - startXTiles[i] + 1) * (endYTiles[i] - startYTiles[i] + 1);
+        }
+        tilesCount = count;
+    }
+
+    /**
+     * @return the number of tiles that will be read.
+     */
+    public int getTilesCount() {
+        return tilesCount;
+    }
+
+    /**
+     * @return the number of extracted pois.
+     */
+    public int getPoisCount() {
+        return poisCount;
+    }
+
+    /**
+     * @return the number of extracted ways, waterlines and contours.
+     */
+    public int getLinesCount() {
+        return linesCount;
+    }
+
+    /**
+     * Stop the extraction, can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Called on the extracting thread after every tile.
+     *
+     * @param tilesDone  the tiles processed so far.
+     * @param tilesTotal the tiles to process.
+     * @return <code>false</code> to cancel the extraction.
+     */
+    public boolean onProgress(int tilesDone, int tilesTotal) {
+        return true;
+    }
+
+    /**
+     * Run the extraction on the calling thread, which is blocked until it is done.
+     *
+     * @param database the mapsforge extraction database.
+     * @return <code>false</code> if the extraction has been cancelled.
+     * @throws Exception if something goes wrong.
+     */
+    public boolean extract(Database database) throws Exception {
+        final MapDatabase mapDatabase = new MapDatabase();
+        FileOpenResult result = mapDatabase.openFile(mapFile);
+        if (!result.isSuccess()) {
+            throw new IOException(result.getErrorMessage());
+        }
+
+        int readers = Math.max(1, Math.min(MAX_READERS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        CompletionService<TileData> completionService = new ExecutorCompletionService<>(executor);
+        SQLiteDatabase notesDatabase = GeopaparazziApplication.getInstance().getDatabase();
+        boolean inTransaction = false;
+        try {
+            database.exec("BEGIN", null);
+            notesDatabase.beginTransaction();
+            inTransaction = true;
+
+            // keep a few tiles per reader in flight, so that the memory used does not depend on the area
+            int maxInFlight = readers * 4;
+            int level = 0;
+            long tileX = startXTiles[0];
+            long tileY = startYTiles[0];
+            int submitted = 0;
+            int done = 0;
+            int uncommitted = 0;
+            while (done < tilesCount) {
+                while (submitted - done < maxInFlight && submitted < tilesCount) {
+                    final Tile tile = new Tile(tileX, tileY, zooms[level]);
+                    final boolean readLines = doLines && level == 0;
+                    completionService.submit(new Callable<TileData>() {
+                        @Override
+                        public TileData call() throws Exception {
+                            return readTile(mapDatabase, tile, readLines);
+                        }
+                    });
+                    submitted++;
+
+                    // move to the next tile of the ranges
+                    if (++tileY > endYTiles[level]) {
+                        tileY = startYTiles[level];
+                        if (++tileX > endXTiles[level] && ++level < zooms.length) {
+                            tileX = startXTiles[level];
+                            tileY = startYTiles[level];
+                        }
+                    }
+                }
+
+                TileData tileData = completionService.take().get();
+                done++;
+                uncommitted += write(database, notesDatabase, tileData);
+                if (uncommitted >= COMMIT_INTERVAL) {
+                    notesDatabase.setTransactionSuccessful();
+                    notesDatabase.endTransaction();
+                    database.exec("COMMIT", null);
+                    database.exec("BEGIN", null);
+                    notesDatabase.beginTransaction();
+                    uncommitted = 0;
+                }
+
+                if (!onProgress(done, tilesCount)) {
+                    cancelled = true;
+                }
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            // keep what has been extracted so far
+            if (inTransaction) {
+                try {
+                    notesDatabase.setTransactionSuccessful();
+                    notesDatabase.endTransaction();
+                    database.exec("COMMIT", null);
+                } catch (Exception e) {
+                    GPLog.error("MAPSFORGEEXTRACTOR", e.getLocalizedMessage(), e);
+                }
+            }
+            for (Stmt stmt : insertStmts) {
+                if (stmt != null) {
+                    try {
+                        stmt.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+            executor.shutdownNow();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+            mapDatabase.closeFile();
+        }
+    }
+
+    /**
+     * Read and prepare the data of a tile, on a reader thread.
+     */
+    private TileData readTile(MapDatabase mapDatabase, Tile tile, boolean readLines) {
+        TileData tileData = new TileData();
+        if (cancelled) {
+            return tileData;
+        }
+        MapReadResult mapReadResult = mapDatabase.readMapData(tile);
+        if (mapReadResult == null) {
+            return tileData;
+        }
+
+        if (doPois) {
+            for (PointOfInterest pointOfInterest : mapReadResult.pointOfInterests) {
+                PoiData poiData = readPoi(pointOfInterest.position, pointOfInterest.tags);
+                if (poiData != null) {
+                    tileData.pois.add(poiData);
+                }
+            }
+        }
+
+        if (readLines) {
+            for (Way way : mapReadResult.ways) {
+                LineData lineData = readLine(way.tags, way.wayNodes);
+                if (lineData != null) {
+                    tileData.lines.add(lineData);
+                }
+            }
+        }
+        return tileData;
+    }
+
+    /**
+     * Prepare a poi of a tile.
+     *
+     * @return the poi data or <code>null</code>, if the poi is outside of the area or filtered.
+     */
+    PoiData readPoi(GeoPoint position, List<Tag> tags) {
+        double longitude = position.getLongitude();
+        double latitude = position.getLatitude();
+        if (longitude < w || longitude > e || latitude < s || latitude > n) {
+            // ignore external points
+            return null;
+        }
+
+        MapsforgeExtractedFormHelper mapsforgeHelper = new MapsforgeExtractedFormHelper();
+        double elev = -1.0;
+        for (Tag tag : tags) {
+            if (tag.key.equals(MapsforgeExtractorUtilities.tagPoiElevation)) {
+                try {
+                    elev = Double.parseDouble(tag.value);
+                } catch (Exception e1) {
+                    // ignore
+                }
+            }
+            mapsforgeHelper.addTag(tag.key, tag.value);
+        }
+        String form = mapsforgeHelper.toForm();
+
+        // check if the complete text contains the thing
+        if (filter.length() > 0) {
+            boolean contains = form.toLowerCase().contains(filter);
+            if (contains == filterExcludes) {
+                return null;
+            }
+        }
+
+        PoiData poiData = new PoiData();
+        poiData.lon = longitude;
+        poiData.lat = latitude;
+        poiData.elev = elev;
+        poiData.label = mapsforgeHelper.getLabelValue();
+        poiData.form = form;
+        // the same poi is read from several tiles and levels
+        poiData.key = hash(hash(0xCBF29CE484222325L, ((long) position.longitudeE6 << 32) | (position.latitudeE6 & 0xFFFFFFFFL)),
+                form);
+        return poiData;
+    }
+
+    /**
+     * Prepare a way of a tile.
+     *
+     * @return the line data or <code>null</code>, if the way is not extracted.
+     */
+    LineData readLine(List<Tag> tags, float[][] wayNodes) {
+        int table = -1;
+        for (Tag tag : tags) {
+            if (MapsforgeExtractorUtilities.isWay(tag.key) && doWays) {
+                table = TABLE_WAYS;
+                break;
+            } else if (MapsforgeExtractorUtilities.isContour(tag.key) && doContours) {
+                table = TABLE_CONTOURS;
+                break;
+            } else if (MapsforgeExtractorUtilities.isWaterline(tag.key) && doWater) {
+                table = TABLE_WATERLINES;
+                break;
+            }
+        }
+        if (table == -1) {
+            return null;
+        }
+
+        LineData lineData = new LineData();
+        lineData.table = table;
+        lineData.tags = tags;
+        // ways crossing tiles are read more than once, they are identified by their first node
+        lineData.key = ((long) Float.floatToIntBits(wayNodes[0][0]) << 32)
+                | (Float.floatToIntBits(wayNodes[0][1]) & 0xFFFFFFFFL);
+        lineData.wkb = toWkbLineString(wayNodes);
+        return lineData;
+    }
+
+    /**
+     * Remove the pois and lines of a tile that have been written with a previous tile,
+     * on the calling thread.
+     */
+    void removeWritten(TileData tileData) {
+        int kept = 0;
+        for (PoiData poiData : tileData.pois) {
+            if (poisSet.add(poiData.key)) {
+                tileData.pois.set(kept++, poiData);
+            }
+        }
+        tileData.pois.subList(kept, tileData.pois.size()).clear();
+
+        kept = 0;
+        for (LineData lineData : tileData.lines) {
+            if (waysSet.add(lineData.key)) {
+                tileData.lines.set(kept++, lineData);
+            }
+        }
+        tileData.lines.subList(kept, tileData.lines.size()).clear();
+    }
+
+    /**
+     * Write the data of a tile, on the calling thread.
+     *
+     * @return the number of inserted records.
+     */
+    private int write(Database database, SQLiteDatabase notesDatabase, TileData tileData) throws Exception {
+        removeWritten(tileData);
+        int inserted = 0;
+        for (PoiData poiData : tileData.pois) {
+            DaoNotes.addNoteNoTransaction(poiData.lon, poiData.lat, poiData.elev, timestamp, poiData.label, "POI",
+                    poiData.form, null, notesDatabase);
+            poisCount++;
+            inserted++;
+        }
+
+        for (LineData lineData : tileData.lines) {
+            for (int i = 0; i < FIELDS_COUNT; i++) {
+                fieldValues[i] = "";
+            }
+            for (Tag tag : lineData.tags) {
+                Integer field = fieldsMap.get(tag.key);
+                if (field == null) {
+                    if (fieldsMap.size() == FIELDS_COUNT) {
+                        // no field left for this key
+                        continue;
+                    }
+                    // get next available field
+                    field = fieldsMap.size();
+                    fieldsMap.put(tag.key, field);
+                }
+                fieldValues[field] = tag.value;
+            }
+
+            Stmt stmt = getInsertStmt(database, lineData.table);
+            try {
+                stmt.bind(1, lineData.wkb);
+                for (int i = 0; i < FIELDS_COUNT; i++) {
+                    stmt.bind(i + 2, fieldValues[i]);
+                }
+                stmt.step();
+                linesCount++;
+                inserted++;
+            } catch (jsqlite.Exception e1) {
+                // ignore only the one unable to import
+            } finally {
+                stmt.reset();
+            }
+        }
+        return inserted;
+    }
+
+    private Stmt getInsertStmt(Database database, int table) throws jsqlite.Exception {
+        if (insertStmts[table] == null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("insert into ").append(TABLES[table]).append(" (geometry");
+            for (int i = 1; i <= FIELDS_COUNT; i++) {
+                sb.append(",field").append(i);
+            }
+            sb.append(") values (CastToSingle(CastToXY(CastToLineString(GeomFromWKB(?, 4326))))");
+            for (int i = 1; i <= FIELDS_COUNT; i++) {
+                sb.append(",?");
+            }
+            sb.append(")");
+            insertStmts[table] = database.prepare(sb.toString());
+        }
+        return insertStmts[table];
+    }
+
+    /**
+     * Encode all the way nodes as a single WKB linestring in degrees.
+     */
+    private static byte[] toWkbLineString(float[][] wayNodes) {
+        int pointsCount = 0;
+        for (float[] wayNode : wayNodes) {
+            pointsCount += wayNode.length / 2;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + pointsCount * 16);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 1); // little endian
+        buffer.putInt(2); // linestring
+        buffer.putInt(pointsCount);
+        for (float[] wayNode : wayNodes) {
+            for (int j = 0; j < wayNode.length - 1; j = j + 2) {
+                buffer.putDouble(wayNode[j] / 1000000.0);
+                buffer.putDouble(wayNode[j + 1] / 1000000.0);
+            }
+        }
+        return buffer.array();
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    static class TileData {
+        final List<PoiData> pois = new ArrayList<>();
+        final List<LineData> lines = new ArrayList<>();
+    }
+
+    static class PoiData {
+        double lon;
+        double lat;
+        double elev;
+        String label;
+        String form;
+        long key;
+    }
+
+    static class LineData {
+        int table;
+        List<Tag> tags;
+        byte[] wkb;
+        long key;
+    }
+}
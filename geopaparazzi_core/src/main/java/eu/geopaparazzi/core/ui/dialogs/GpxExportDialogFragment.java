@@ -32,13 +32,12 @@ import android.widget.ProgressBar;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 
 import eu.geopaparazzi.library.core.ResourcesManager;
 import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.gps.TrackStatistics;
 import eu.geopaparazzi.library.gpx.GpxExport;
 import eu.geopaparazzi.library.gpx.GpxRepresenter;
 import eu.geopaparazzi.library.util.FileTypes;
@@ -46,7 +45,8 @@ import eu.geopaparazzi.library.util.TimeUtilities;
 import eu.geopaparazzi.core.R;
 import eu.geopaparazzi.core.database.DaoGpsLog;
 import eu.geopaparazzi.core.database.DaoNotes;
-import eu.geopaparazzi.core.database.objects.Line;
+import eu.geopaparazzi.core.database.objects.LogExportLine;
+import eu.geopaparazzi.core.database.objects.LogMapItem;
 import eu.geopaparazzi.core.database.objects.Note;
 
 
@@ -133,10 +133,15 @@ public class GpxExportDialogFragment extends DialogFragment {
                     /*
                      * add gps logs
                      */
-                    HashMap<Long, Line> linesMap = DaoGpsLog.getLinesMap();
-                    Collection<Line> linesCollection = linesMap.values();
-                    for (Line line : linesCollection) {
+                    // the logs are read from the database only while they are written
+                    List<LogMapItem> gpslogs = DaoGpsLog.getGpslogs();
+                    DaoGpsLog daoGpsLog = new DaoGpsLog();
+                    TrackStatistics stats = new TrackStatistics();
+                    for (LogMapItem log : gpslogs) {
                         if (isInterrupted) break;
+                        daoGpsLog.getTrackStatistics(log.getId(), stats);
+                        if (stats.pointsCount == 0) continue;
+                        LogExportLine line = new LogExportLine(log.getId(), "log_" + log.getId(), log.getWidth(), log.getColor(), stats);
                         gpxRepresenterList.add(line);
                         hasAtLeastOne = true;
                     }
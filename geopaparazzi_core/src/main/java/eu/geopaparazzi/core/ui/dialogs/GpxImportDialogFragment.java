@@ -29,17 +29,12 @@ import android.widget.ProgressBar;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
 
-import eu.geopaparazzi.library.style.ColorUtilities;
 import eu.geopaparazzi.library.database.GPLog;
-import eu.geopaparazzi.library.gpx.GpxItem;
-import eu.geopaparazzi.library.gpx.parser.GpxParser;
-import eu.geopaparazzi.library.gpx.parser.WayPoint;
 import eu.geopaparazzi.library.util.FileUtilities;
 import eu.geopaparazzi.library.util.StringAsyncTask;
 import eu.geopaparazzi.core.R;
-import eu.geopaparazzi.core.database.DaoGpsLog;
+import eu.geopaparazzi.core.database.GpxStreamImporter;
 
 
 /**
@@ -103,6 +98,7 @@ public class GpxImportDialogFragment extends DialogFragment {
         );
 
         progressBar.setIndeterminate(true);
+        progressBar.setMax(100);
 
         alertDialog = builder.create();
         return alertDialog;
@@ -114,63 +110,20 @@ public class GpxImportDialogFragment extends DialogFragment {
                 try {
                     File file = new File(gpxPath);
                     String fileName = FileUtilities.getNameWithoutExtention(file);
-                    GpxParser parser = new GpxParser(gpxPath);
-                    if (parser.parse()) {
-                        List<WayPoint> wayPoints = parser.getWayPoints();
-                        if (wayPoints.size() > 0) {
-                            GpxItem item = new GpxItem();
-                            item.setName(fileName);
-                            item.setWidth("2"); //$NON-NLS-1$
-                            item.setVisible(false);
-                            item.setColor(ColorUtilities.BLUE.getHex()); //$NON-NLS-1$
-                            item.setData(wayPoints);
-                            DaoGpsLog.importGpxToMap(item);
-                        }
-                        List<GpxParser.TrackSegment> tracks = parser.getTracks();
-                        if (tracks.size() > 0) {
-                            for (GpxParser.TrackSegment trackSegment : tracks) {
-                                if (isInterrupted) break;
-                                String tName = trackSegment.getName();
-                                if (tName == null) {
-                                    tName = ""; //$NON-NLS-1$
-                                } else {
-                                    tName = " - " + tName; //$NON-NLS-1$
-                                }
-                                String name = fileName + tName;
-                                GpxItem item = new GpxItem();
-                                item.setName(name);
-                                item.setWidth("2"); //$NON-NLS-1$
-                                item.setVisible(false);
-                                item.setColor("red"); //$NON-NLS-1$
-                                item.setData(trackSegment);
-                                DaoGpsLog.importGpxToMap(item);
-                            }
-                        }
-                        List<GpxParser.Route> routes = parser.getRoutes();
-                        if (routes.size() > 0) {
-                            for (GpxParser.Route route : routes) {
-                                if (isInterrupted) break;
-                                String rName = route.getName();
-                                if (rName == null) {
-                                    rName = ""; //$NON-NLS-1$
-                                } else {
-                                    rName = " - " + rName; //$NON-NLS-1$
-                                }
-                                String name = fileName + rName;
-                                GpxItem item = new GpxItem();
-                                item.setName(name);
-                                item.setWidth("2"); //$NON-NLS-1$
-                                item.setVisible(false);
-                                item.setColor(ColorUtilities.GREEN.getHex()); //$NON-NLS-1$
-                                item.setData(route);
-                                DaoGpsLog.importGpxToMap(item);
+                    // stream the file into the database, big files do not fit in memory
+                    GpxStreamImporter importer = new GpxStreamImporter(fileName) {
+                        @Override
+                        public boolean onProgress(long bytesRead, long bytesTotal) {
+                            if (bytesTotal > 0) {
+                                publishProgress((int) (bytesRead * 100 / bytesTotal));
                             }
+                            return !isInterrupted;
                         }
-                    } else {
+                    };
+                    if (!importer.importGpx(gpxPath)) {
                         if (GPLog.LOG)
-                            GPLog.addLogEntry(this, "ERROR"); //$NON-NLS-1$
+                            GPLog.addLogEntry(this, "Gpx import cancelled: " + gpxPath); //$NON-NLS-1$
                     }
-
                 } catch (IOException e) {
                     GPLog.error(this, e.getLocalizedMessage(), e);
                     return "ERROR: " + e.getLocalizedMessage();
@@ -179,6 +132,11 @@ public class GpxImportDialogFragment extends DialogFragment {
                 return "";
             }
 
+            protected void onProgressUpdate(Integer... progress) {
+                progressBar.setIndeterminate(false);
+                progressBar.setProgress(progress[0]);
+            }
+
             protected void doUiPostWork(String response) {
                 progressBar.setVisibility(View.GONE);
                 if (response.length() != 0) {
@@ -32,15 +32,13 @@ import android.widget.ProgressBar;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import eu.geopaparazzi.library.core.ResourcesManager;
 import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.database.Image;
+import eu.geopaparazzi.library.gps.TrackStatistics;
 import eu.geopaparazzi.library.kml.KmlRepresenter;
 import eu.geopaparazzi.library.kml.KmzExport;
 import eu.geopaparazzi.library.util.TimeUtilities;
@@ -50,7 +48,7 @@ import eu.geopaparazzi.core.database.DaoGpsLog;
 import eu.geopaparazzi.core.database.DaoImages;
 import eu.geopaparazzi.core.database.DaoNotes;
 import eu.geopaparazzi.core.database.objects.Bookmark;
-import eu.geopaparazzi.core.database.objects.Line;
+import eu.geopaparazzi.core.database.objects.LogExportLine;
 import eu.geopaparazzi.core.database.objects.LogMapItem;
 import eu.geopaparazzi.core.database.objects.Note;
 
@@ -139,26 +137,15 @@ public class KmzExportDialogFragment extends DialogFragment {
                     /*
                      * add gps logs
                      */
+                    // the logs are read from the database only while they are written
                     List<LogMapItem> gpslogs = DaoGpsLog.getGpslogs();
-                    HashMap<Long, LogMapItem> mapitemsMap = new HashMap<>();
+                    DaoGpsLog daoGpsLog = new DaoGpsLog();
+                    TrackStatistics stats = new TrackStatistics();
                     for (LogMapItem log : gpslogs) {
                         if (isInterrupted) break;
-                        mapitemsMap.put(log.getId(), log);
-                        hasAtLeastOne = true;
-                    }
-
-                    HashMap<Long, Line> linesMap = DaoGpsLog.getLinesMap();
-                    Collection<Map.Entry<Long, Line>> linesSet = linesMap.entrySet();
-                    for (Map.Entry<Long, Line> lineEntry : linesSet) {
-                        if (isInterrupted) break;
-                        Long id = lineEntry.getKey();
-                        Line line = lineEntry.getValue();
-                        LogMapItem mapItem = mapitemsMap.get(id);
-                        if (mapItem == null) continue;
-                        float width = mapItem.getWidth();
-                        String color = mapItem.getColor();
-                        line.setStyle(width, color);
-                        line.setName(mapItem.getName());
+                        daoGpsLog.getTrackStatistics(log.getId(), stats);
+                        if (stats.pointsCount == 0) continue;
+                        LogExportLine line = new LogExportLine(log.getId(), log.getName(), log.getWidth(), log.getColor(), stats);
                         kmlRepresenterList.add(line);
                         hasAtLeastOne = true;
                     }
@@ -40,6 +40,8 @@ public interface Constants {
 
     String PREFS_KEY_RETINA = "PREFS_KEY_RETINA";
 
+    String PREFS_KEY_PACKFILE_TILECACHE = "PREFS_KEY_PACKFILE_TILECACHE";
+
     String PREFS_KEY_IMAGES_VISIBLE = "PREFS_KEY_IMAGES_VISIBLE";
 
     String PREFS_KEY_NOTES_VISIBLE = "PREFS_KEY_NOTES_VISIBLE";
@@ -0,0 +1,170 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.core.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the tolerance guarantee, the buffer limit and the restart of the {@link GpsLogSimplifier}.
+ */
+public class GpsLogSimplifierTest {
+    private static final double TOLERANCE = 1e-4;
+
+    /**
+     * A random walk with turns, stops and straight stretches, the timestamp is the index of the point.
+     */
+    private static double[][] createTrack(int pointsCount, long seed) {
+        Random random = new Random(seed);
+        double[][] track = new double[pointsCount][];
+        double lon = 11.3;
+        double lat = 46.5;
+        double heading = 0;
+        for (int i = 0; i < pointsCount; i++) {
+            if (random.nextInt(20) == 0) {
+                heading += random.nextGaussian();
+            }
+            double step = random.nextInt(30) == 0 ? 0 : 2e-5 * random.nextDouble();
+            lon += step * Math.cos(heading) + random.nextGaussian() * 5e-6;
+            lat += step * Math.sin(heading) + random.nextGaussian() * 5e-6;
+            track[i] = new double[]{lon, lat};
+        }
+        return track;
+    }
+
+    /**
+     * @return the indexes of the kept points.
+     */
+    private static List<Integer> simplify(GpsLogSimplifier simplifier, double[][] track, int from) {
+        List<Integer> kept = new ArrayList<>();
+        for (int i = from; i < track.length; i++) {
+            if (simplifier.add(track[i][0], track[i][1], i)) {
+                assertEquals(track[(int) simplifier.keptTs][0], simplifier.keptLon, 0);
+                assertEquals(track[(int) simplifier.keptTs][1], simplifier.keptLat, 0);
+                kept.add((int) simplifier.keptTs);
+            }
+        }
+        return kept;
+    }
+
+    private static double mercatorY(double lat) {
+        return Math.toDegrees(Math.log(Math.tan(Math.PI / 4 + Math.toRadians(lat) / 2)));
+    }
+
+    private static double distanceToSegment(double[] p, double[] a, double[] b) {
+        double ax = a[0];
+        double ay = mercatorY(a[1]);
+        double dx = b[0] - ax;
+        double dy = mercatorY(b[1]) - ay;
+        double px = p[0] - ax;
+        double py = mercatorY(p[1]) - ay;
+        double length2 = dx * dx + dy * dy;
+        double t = length2 == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / length2));
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+    @Test
+    public void testMaximumDeviation() {
+        for (long seed = 1; seed <= 5; seed++) {
+            double[][] track = createTrack(5000, seed);
+            List<Integer> kept = simplify(new GpsLogSimplifier(TOLERANCE), track, 0);
+            assertEquals(0, (int) kept.get(0));
+            // the last point is not kept by the simplifier, the overview is closed with it
+            kept.add(track.length - 1);
+            assertTrue("kept " + kept.size(), kept.size() < track.length / 4);
+
+            double maxDeviation = 0;
+            for (int k = 1; k < kept.size(); k++) {
+                int from = kept.get(k - 1);
+                int to = kept.get(k);
+                assertTrue(to > from);
+                for (int i = from + 1; i < to; i++) {
+                    maxDeviation = Math.max(maxDeviation, distanceToSegment(track[i], track[from], track[to]));
+                }
+            }
+            assertTrue("deviation " + maxDeviation, maxDeviation <= TOLERANCE);
+            // the tolerance is used, not just respected by keeping everything
+            assertTrue("deviation " + maxDeviation, maxDeviation > TOLERANCE / 2);
+        }
+    }
+
+    @Test
+    public void testCorner() {
+        GpsLogSimplifier simplifier = new GpsLogSimplifier(TOLERANCE);
+        assertTrue(simplifier.add(0, 0, 0));
+        assertFalse(simplifier.add(0.001, 0, 1));
+        assertFalse(simplifier.add(0.002, 0, 2));
+        // the turn keeps the corner
+        assertTrue(simplifier.add(0.002, 0.001, 3));
+        assertEquals(2, simplifier.keptTs);
+        assertEquals(0.002, simplifier.keptLon, 0);
+        assertEquals(0, simplifier.keptLat, 0);
+        assertFalse(simplifier.add(0.002, 0.002, 4));
+    }
+
+    @Test
+    public void testBufferLimit() {
+        // a straight line never exceeds the tolerance, a point is kept when 64 are buffered
+        double[][] track = new double[300][];
+        for (int i = 0; i < track.length; i++) {
+            track[i] = new double[]{11 + i * 1e-5, 46};
+        }
+        List<Integer> kept = simplify(new GpsLogSimplifier(TOLERANCE), track, 0);
+        assertEquals(5, kept.size());
+        for (int k = 0; k < kept.size(); k++) {
+            assertEquals(k * 64, (int) kept.get(k));
+        }
+    }
+
+    @Test
+    public void testRestartFromAnchor() {
+        double[][] track = createTrack(3000, 7);
+        List<Integer> kept = simplify(new GpsLogSimplifier(TOLERANCE), track, 0);
+        assertTrue(kept.size() > 10);
+
+        // restart after a kept point, like after reopening a log, and refeed the points after it
+        for (int k : new int[]{1, kept.size() / 2, kept.size() - 1}) {
+            int anchor = kept.get(k);
+            GpsLogSimplifier simplifier = new GpsLogSimplifier(TOLERANCE);
+            simplifier.setAnchor(track[anchor][0], track[anchor][1]);
+            List<Integer> resumed = simplify(simplifier, track, anchor + 1);
+            assertEquals(kept.subList(k + 1, kept.size()), resumed);
+        }
+    }
+
+    @Test
+    public void testPolarLatitudes() {
+        // latitudes beyond the mercator limit are clamped and do not break the distances
+        GpsLogSimplifier simplifier = new GpsLogSimplifier(TOLERANCE);
+        assertTrue(simplifier.add(0, 89.5, 0));
+        // along the clamped latitude
+        assertFalse(simplifier.add(0.001, 89.9, 1));
+        assertFalse(simplifier.add(0.002, 90, 2));
+        assertFalse(simplifier.add(0.003, 85.06, 3));
+        assertTrue(simplifier.add(0.003, 80, 4));
+        assertEquals(3, simplifier.keptTs);
+        // the original latitude is kept
+        assertEquals(85.06, simplifier.keptLat, 0);
+    }
+}
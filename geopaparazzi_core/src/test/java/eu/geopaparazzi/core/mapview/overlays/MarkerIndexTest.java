@@ -0,0 +1,176 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.core.mapview.overlays;
+
+import org.junit.Test;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the queries of the {@link MarkerIndex} against a brute force filter of the item positions.
+ */
+public class MarkerIndexTest {
+
+    private static GeoPoint randomPoint(Random random) {
+        return new GeoPoint(46 + random.nextDouble() * 0.5, 11 + random.nextDouble() * 0.5);
+    }
+
+    private static List<Integer> select(MarkerIndex index, int left, int top, int right, int bottom, byte zoomLevel) {
+        MarkerIndex.Selection selection = new MarkerIndex.Selection();
+        index.query(left, top, right, bottom, zoomLevel, selection);
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < selection.size(); i++) {
+            items.add(selection.get(i));
+        }
+        return items;
+    }
+
+    private static List<Integer> bruteForce(Map<Integer, GeoPoint> points, int left, int top, int right, int bottom, byte zoomLevel) {
+        List<Integer> items = new ArrayList<>();
+        for (Map.Entry<Integer, GeoPoint> entry : points.entrySet()) {
+            GeoPoint point = entry.getValue();
+            long x = (long) MercatorProjection.longitudeToPixelX(point.getLongitude(), zoomLevel);
+            long y = (long) MercatorProjection.latitudeToPixelY(point.getLatitude(), zoomLevel);
+            if (x >= left && x <= right && y >= top && y <= bottom) {
+                items.add(entry.getKey());
+            }
+        }
+        return items;
+    }
+
+    @Test
+    public void testAgainstBruteForce() {
+        Random random = new Random(1);
+        MarkerIndex index = new MarkerIndex();
+        // sorted by id, as the query
+        TreeMap<Integer, GeoPoint> points = new TreeMap<>();
+        for (int i = 0; i < 20000; i++) {
+            GeoPoint point = randomPoint(random);
+            points.put(i, point);
+            index.add(i, point);
+        }
+        // deleted and moved items, as when notes are edited
+        for (int k = 0; k < 50; k++) {
+            int i = random.nextInt(20000);
+            GeoPoint point = points.remove(i);
+            if (point != null) {
+                assertTrue(index.remove(i, point));
+            }
+        }
+        for (int k = 0; k < 50; k++) {
+            int i = random.nextInt(20000);
+            if (points.containsKey(i)) {
+                GeoPoint point = randomPoint(random);
+                index.move(i, points.get(i), point);
+                points.put(i, point);
+            }
+        }
+        assertEquals(points.size(), index.size());
+
+        for (byte zoomLevel = 3; zoomLevel <= 22; zoomLevel++) {
+            int centerX = (int) MercatorProjection.longitudeToPixelX(11.25, zoomLevel);
+            int centerY = (int) MercatorProjection.latitudeToPixelY(46.25, zoomLevel);
+            for (int q = 0; q < 20; q++) {
+                int x = centerX + random.nextInt(2000) - 1000;
+                int y = centerY + random.nextInt(2000) - 1000;
+                int left = x - 400;
+                int top = y - 300;
+                int right = x + 400;
+                int bottom = y + 300;
+                assertEquals("zoom " + zoomLevel, bruteForce(points, left, top, right, bottom, zoomLevel),
+                        select(index, left, top, right, bottom, zoomLevel));
+            }
+        }
+    }
+
+    @Test
+    public void testWholeWorld() {
+        MarkerIndex index = new MarkerIndex();
+        assertTrue(select(index, 0, 0, 255, 255, (byte) 0).isEmpty());
+
+        // the poles and the date line are clamped into the world
+        GeoPoint[] points = {new GeoPoint(89.9, 179.9), new GeoPoint(-89.9, -180), new GeoPoint(0, 0),
+                new GeoPoint(46.5, 11.3)};
+        for (int i = 0; i < points.length; i++) {
+            index.add(i, points[i]);
+        }
+        // few cells with items are visited directly
+        List<Integer> all = select(index, 0, 0, 255, 255, (byte) 0);
+        assertEquals(4, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, (int) all.get(i));
+        }
+        assertEquals(4, select(index, -1000, -1000, 100000, 100000, (byte) 2).size());
+        assertEquals(0, select(index, 0, 0, 100, 100, (byte) 2).size());
+    }
+
+    @Test
+    public void testRemoveAndMove() {
+        MarkerIndex index = new MarkerIndex();
+        GeoPoint a = new GeoPoint(46.0, 11.0);
+        GeoPoint b = new GeoPoint(46.1, 11.1);
+        GeoPoint c = new GeoPoint(46.2, 11.2);
+        index.add(0, a);
+        index.add(1, b);
+        index.add(2, c);
+
+        byte zoomLevel = 10;
+        int left = (int) MercatorProjection.longitudeToPixelX(10.9, zoomLevel);
+        int top = (int) MercatorProjection.latitudeToPixelY(46.3, zoomLevel);
+        int right = (int) MercatorProjection.longitudeToPixelX(11.3, zoomLevel);
+        int bottom = (int) MercatorProjection.latitudeToPixelY(45.9, zoomLevel);
+
+        // the following items keep their ids
+        assertTrue(index.remove(0, a));
+        assertEquals(2, index.size());
+        List<Integer> items = select(index, left, top, right, bottom, zoomLevel);
+        assertEquals(2, items.size());
+        assertEquals(1, (int) items.get(0));
+        assertEquals(2, (int) items.get(1));
+
+        // move c out of the area
+        index.move(2, c, new GeoPoint(50, 20));
+        items = select(index, left, top, right, bottom, zoomLevel);
+        assertEquals(1, items.size());
+        assertEquals(1, (int) items.get(0));
+        assertEquals(2, index.size());
+
+        // moving or removing with a wrong position or id does nothing
+        index.move(1, c, a);
+        assertFalse(index.remove(5, a));
+        assertFalse(index.remove(0, a));
+        assertFalse(index.remove(1, c));
+        assertEquals(2, index.size());
+        items = select(index, left, top, right, bottom, zoomLevel);
+        assertEquals(1, items.size());
+        assertEquals(1, (int) items.get(0));
+
+        index.clear();
+        assertEquals(0, index.size());
+        assertTrue(select(index, left, top, right, bottom, zoomLevel).isEmpty());
+    }
+}
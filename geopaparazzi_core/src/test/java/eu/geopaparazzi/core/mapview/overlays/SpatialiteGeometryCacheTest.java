@@ -0,0 +1,333 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.core.mapview.overlays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.util.MercatorProjection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.geopaparazzi.library.style.Style;
+import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.SpatialiteDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.geometry.GeometryIterator;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the tile grid and the least recently used accounting of the {@link SpatialiteGeometryCache}.
+ * <p/>
+ * <p>The geometries are not decoded into paths, the features get the size of a square.</p>
+ */
+public class SpatialiteGeometryCacheTest {
+    private static final byte ZOOM = 10;
+    private static final int CELL_X = 540;
+    private static final int CELL_Y = 360;
+    /**
+     * A square is drawn with 4 vertices.
+     */
+    private static final long SQUARE_BYTES = SpatialiteGeometryCache.FEATURE_OVERHEAD_BYTES
+            + 4 * SpatialiteGeometryCache.COORDINATE_BYTES;
+
+    /**
+     * A table feature with its envelope.
+     */
+    private static class Row {
+        final long id;
+        final double w, e, s, n;
+
+        Row(long id, double w, double e, double s, double n) {
+            this.id = id;
+            this.w = w;
+            this.e = e;
+            this.s = s;
+            this.n = n;
+        }
+    }
+
+    /**
+     * Iterates over the rows of the table intersecting the query bounds, as the spatial index would.
+     */
+    private static class RowIterator extends GeometryIterator {
+        private final List<Row> rows = new ArrayList<>();
+        private int index = -1;
+
+        RowIterator(List<Row> table, double n, double s, double e, double w) {
+            for (Row row : table) {
+                if (row.w <= e && row.e >= w && row.s <= n && row.n >= s) {
+                    rows.add(row);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ++index < rows.size();
+        }
+
+        @Override
+        public byte[] nextWkb() {
+            return new byte[0];
+        }
+
+        @Override
+        public long getRowId() {
+            return rows.get(index).id;
+        }
+
+        @Override
+        public String getLabelText() {
+            return "";
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A cache reading from the rows instead of a database.
+     */
+    private class TestCache extends SpatialiteGeometryCache {
+        final List<double[]> queries = new ArrayList<>();
+        int decodedCount = 0;
+
+        TestCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        GeometryIterator getGeometryIterator(SpatialiteDatabaseHandler handler, SpatialVectorTable table, double n, double s,
+                                             double e, double w) {
+            queries.add(new double[]{n, s, e, w});
+            return new RowIterator(rows, n, s, e, w);
+        }
+
+        @Override
+        Feature decodeFeature(long id, byte[] wkb, String label, byte zoom) {
+            decodedCount++;
+            Row row = rowsById.get(id);
+            Feature feature = new Feature(id);
+            feature.minCellX = MercatorProjection.longitudeToTileX(row.w, zoom);
+            feature.maxCellX = MercatorProjection.longitudeToTileX(row.e, zoom);
+            feature.minCellY = MercatorProjection.latitudeToTileY(row.n, zoom);
+            feature.maxCellY = MercatorProjection.latitudeToTileY(row.s, zoom);
+            feature.bytes = SQUARE_BYTES;
+            return feature;
+        }
+    }
+
+    private final List<Row> rows = new ArrayList<>();
+    private final Map<Long, Row> rowsById = new HashMap<>();
+    private SpatialVectorTable table;
+
+    @Before
+    public void setUp() {
+        table = new SpatialVectorTable("/sdcard/test.sqlite", "areas", "geometry", 3, "4326", new double[]{0, 0},
+                new double[]{-180, -85, 180, 85}, "SpatialTable");
+        Style style = new Style();
+        style.shape = "square";
+        style.size = 5;
+        table.setStyle(style);
+    }
+
+    /**
+     * Adds a square from inside a cell to inside another one.
+     */
+    private void addSquare(long id, int fromCellX, int fromCellY, int toCellX, int toCellY) {
+        double w = MercatorProjection.pixelXToLongitude((fromCellX + 0.25) * 256, ZOOM);
+        double e = MercatorProjection.pixelXToLongitude((toCellX + 0.75) * 256, ZOOM);
+        double n = MercatorProjection.pixelYToLatitude((fromCellY + 0.25) * 256, ZOOM);
+        double s = MercatorProjection.pixelYToLatitude((toCellY + 0.75) * 256, ZOOM);
+        Row row = new Row(id, w, e, s, n);
+        rows.add(row);
+        rowsById.put(id, row);
+    }
+
+    private static void view(SpatialiteGeometryCache cache, SpatialVectorTable table, long x, long y, int width, int height)
+            throws Exception {
+        cache.getCells(null, table, ZOOM, x, y, width, height);
+    }
+
+    /**
+     * Views the single cell at the given grid position.
+     */
+    private void viewCell(SpatialiteGeometryCache cache, int cellX, int cellY) throws Exception {
+        cache.startFrame();
+        view(cache, table, cellX * 256L, cellY * 256L, 255, 255);
+        cache.trim();
+    }
+
+    @Test
+    public void testGridLookups() throws Exception {
+        addSquare(1, CELL_X, CELL_Y, CELL_X, CELL_Y);
+        // shared by three cells
+        addSquare(2, CELL_X, CELL_Y + 1, CELL_X + 2, CELL_Y + 1);
+        TestCache cache = new TestCache(Long.MAX_VALUE);
+
+        // a 512 pixels view from a cell corner overlaps 3x3 cells
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 512, 512);
+        assertEquals(0, cache.getHitsCount());
+        assertEquals(9, cache.getMissesCount());
+        assertEquals(1, cache.queries.size());
+        assertQuery(cache.queries.get(0), CELL_X, CELL_Y, CELL_X + 3, CELL_Y + 3);
+        // the shared square is decoded once
+        assertEquals(2, cache.decodedCount);
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 512, 512);
+        assertEquals(9, cache.getHitsCount());
+        assertEquals(9, cache.getMissesCount());
+        assertEquals(1, cache.queries.size());
+
+        // panning by a cell only reads the new column
+        cache.startFrame();
+        view(cache, table, (CELL_X + 1) * 256L, CELL_Y * 256L, 512, 512);
+        assertEquals(15, cache.getHitsCount());
+        assertEquals(12, cache.getMissesCount());
+        assertEquals(2, cache.queries.size());
+        assertQuery(cache.queries.get(1), CELL_X + 3, CELL_Y, CELL_X + 4, CELL_Y + 3);
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+        assertEquals(15.0 / 27.0, cache.getHitRate(), 1e-9);
+        assertEquals(0, cache.getEvictionsCount());
+    }
+
+    @Test
+    public void testViewOutsideOfTheWorld() throws Exception {
+        addSquare(1, 0, 0, 0, 0);
+        TestCache cache = new TestCache(Long.MAX_VALUE);
+        cache.startFrame();
+        // only the cells inside the world are looked up
+        view(cache, table, -300, -300, 512, 512);
+        assertEquals(1, cache.getMissesCount());
+        assertQuery(cache.queries.get(0), 0, 0, 1, 1);
+        assertEquals(SQUARE_BYTES, cache.getCachedBytes());
+
+        long worldSize = 256L << ZOOM;
+        cache.startFrame();
+        view(cache, table, worldSize, worldSize, 512, 512);
+        assertEquals(1, cache.getMissesCount());
+        assertEquals(1, cache.queries.size());
+    }
+
+    @Test
+    public void testTrimKeepsSharedFeatures() throws Exception {
+        addSquare(1, CELL_X, CELL_Y, CELL_X, CELL_Y);
+        addSquare(2, CELL_X + 1, CELL_Y + 1, CELL_X + 2, CELL_Y + 1);
+        TestCache cache = new TestCache(0);
+
+        // the cells of the current frame are kept, whatever the budget
+        viewCell(cache, CELL_X, CELL_Y);
+        assertEquals(SQUARE_BYTES, cache.getCachedBytes());
+        assertEquals(0, cache.getEvictionsCount());
+
+        viewCell(cache, CELL_X + 1, CELL_Y + 1);
+        assertEquals(1, cache.getEvictionsCount());
+        assertEquals(SQUARE_BYTES, cache.getCachedBytes());
+
+        // the second cell of the shared square neither decodes nor counts it again
+        viewCell(cache, CELL_X + 2, CELL_Y + 1);
+        assertEquals(2, cache.getEvictionsCount());
+        assertEquals(SQUARE_BYTES, cache.getCachedBytes());
+
+        viewCell(cache, CELL_X, CELL_Y);
+        assertEquals(3, cache.getEvictionsCount());
+        assertEquals(SQUARE_BYTES, cache.getCachedBytes());
+        assertEquals(4, cache.getMissesCount());
+
+        cache.startFrame();
+        cache.trim();
+        assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        addSquare(1, CELL_X, CELL_Y, CELL_X, CELL_Y);
+        addSquare(2, CELL_X + 5, CELL_Y, CELL_X + 5, CELL_Y);
+        addSquare(3, CELL_X + 6, CELL_Y, CELL_X + 6, CELL_Y);
+        TestCache cache = new TestCache(2 * SQUARE_BYTES);
+
+        viewCell(cache, CELL_X, CELL_Y);
+        viewCell(cache, CELL_X + 5, CELL_Y);
+        // a hit makes the first cell the most recently used one
+        viewCell(cache, CELL_X, CELL_Y);
+        assertEquals(1, cache.getHitsCount());
+        viewCell(cache, CELL_X + 6, CELL_Y);
+        assertEquals(1, cache.getEvictionsCount());
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+
+        viewCell(cache, CELL_X, CELL_Y);
+        assertEquals(2, cache.getHitsCount());
+        assertEquals(3, cache.getMissesCount());
+        viewCell(cache, CELL_X + 5, CELL_Y);
+        assertEquals(4, cache.getMissesCount());
+    }
+
+    @Test
+    public void testTableChangesDropCells() throws Exception {
+        addSquare(1, CELL_X, CELL_Y, CELL_X, CELL_Y);
+        addSquare(2, CELL_X, CELL_Y + 1, CELL_X + 1, CELL_Y + 1);
+        TestCache cache = new TestCache(Long.MAX_VALUE);
+
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 511, 511);
+        assertEquals(4, cache.getMissesCount());
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+
+        // an edit of the table
+        table.notifyModified();
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 511, 511);
+        assertEquals(8, cache.getMissesCount());
+        assertEquals(2, cache.queries.size());
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+
+        // a style change
+        table.getStyle().size = 10;
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 511, 511);
+        assertEquals(12, cache.getMissesCount());
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+
+        // the reloaded cells are used again
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 511, 511);
+        assertEquals(4, cache.getHitsCount());
+
+        cache.clear();
+        assertEquals(0, cache.getCachedBytes());
+        cache.startFrame();
+        view(cache, table, CELL_X * 256L, CELL_Y * 256L, 511, 511);
+        assertEquals(16, cache.getMissesCount());
+        assertEquals(2 * SQUARE_BYTES, cache.getCachedBytes());
+    }
+
+    private static void assertQuery(double[] query, int minCellX, int minCellY, int maxCellX, int maxCellY) {
+        assertEquals(MercatorProjection.tileYToLatitude(minCellY, ZOOM), query[0], 1e-9);
+        assertEquals(MercatorProjection.tileYToLatitude(maxCellY, ZOOM), query[1], 1e-9);
+        assertEquals(MercatorProjection.tileXToLongitude(maxCellX, ZOOM), query[2], 1e-9);
+        assertEquals(MercatorProjection.tileXToLongitude(minCellX, ZOOM), query[3], 1e-9);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.core.ui.activities.mapsforgeextractor;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link LongHashSet} against {@link HashSet}.
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void testDuplicates() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.add(-42));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MAX_VALUE));
+        assertFalse(set.add(-42));
+    }
+
+    @Test
+    public void testEmptyValue() {
+        // zero marks the empty slots of the table
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.add(1));
+        assertTrue(set.add(0));
+        assertFalse(set.add(0));
+        assertFalse(set.add(1));
+        for (int i = 2; i < 5000; i++) {
+            assertTrue(set.add(i));
+        }
+        assertFalse(set.add(0));
+    }
+
+    @Test
+    public void testGrowth() {
+        // well past the initial table and several rehashes
+        LongHashSet set = new LongHashSet();
+        int count = 100000;
+        for (int i = 1; i <= count; i++) {
+            assertTrue(set.add(i));
+        }
+        for (int i = 1; i <= count; i++) {
+            assertFalse(set.add(i));
+        }
+        assertTrue(set.add(count + 1));
+    }
+
+    @Test
+    public void testClusteredValues() {
+        // values differing only in the high bits, as the packed coordinates of the extractor
+        LongHashSet set = new LongHashSet();
+        for (int i = 1; i < 4096; i++) {
+            assertTrue(set.add((long) i << 32));
+            assertTrue(set.add((long) i << 52));
+            assertTrue(set.add(-((long) i << 40)));
+        }
+        for (int i = 1; i < 4096; i++) {
+            assertFalse(set.add((long) i << 32));
+            assertFalse(set.add((long) i << 52));
+            assertFalse(set.add(-((long) i << 40)));
+        }
+    }
+
+    @Test
+    public void testRandomValues() {
+        Random random = new Random(19);
+        LongHashSet set = new LongHashSet();
+        HashSet<Long> expected = new HashSet<>();
+        for (int i = 0; i < 200000; i++) {
+            // a small range gives many duplicates, the full range many distinct values
+            long value = random.nextBoolean() ? random.nextInt(20000) - 10000 : random.nextLong();
+            assertEquals(String.valueOf(value), expected.add(value), set.add(value));
+        }
+    }
+}
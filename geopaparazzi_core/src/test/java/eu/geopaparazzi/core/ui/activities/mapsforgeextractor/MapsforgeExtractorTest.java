@@ -0,0 +1,135 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.core.ui.activities.mapsforgeextractor;
+
+import org.junit.Test;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tag;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the pois and ways read from several tiles are written once by the {@link MapsforgeExtractor}.
+ */
+public class MapsforgeExtractorTest {
+    private static final List<Tag> HUT = Arrays.asList(new Tag("tourism", "alpine_hut"), new Tag("name", "Rifugio"),
+            new Tag("elev", "2250"));
+    private static final List<Tag> ROAD = Arrays.asList(new Tag("highway", "secondary"), new Tag("name", "Via Roma"));
+    private static final List<Tag> RIVER = Arrays.asList(new Tag("waterway", "river"));
+
+    private static MapsforgeExtractor createExtractor(String filter, boolean filterExcludes) {
+        return new MapsforgeExtractor(new File("test.map"), new float[]{47f, 46f, 11f, 12f}, 14, true, true, true, true,
+                filter, filterExcludes, 0);
+    }
+
+    private static float[][] nodes(float... coordinates) {
+        return new float[][]{coordinates};
+    }
+
+    @Test
+    public void testPoisAcrossTiles() {
+        MapsforgeExtractor extractor = createExtractor("", false);
+        GeoPoint position = new GeoPoint(46.5, 11.5);
+
+        // the same poi read from a tile and from a tile of a more detailed level
+        MapsforgeExtractor.TileData tile = new MapsforgeExtractor.TileData();
+        tile.pois.add(extractor.readPoi(position, HUT));
+        tile.pois.add(extractor.readPoi(new GeoPoint(46.6, 11.6), HUT));
+        MapsforgeExtractor.TileData detailTile = new MapsforgeExtractor.TileData();
+        detailTile.pois.add(extractor.readPoi(new GeoPoint(position.latitudeE6, position.longitudeE6), HUT));
+        // same position, different tags
+        detailTile.pois.add(extractor.readPoi(position, Arrays.asList(new Tag("amenity", "bench"))));
+
+        assertEquals(tile.pois.get(0).key, detailTile.pois.get(0).key);
+        assertEquals(2250, tile.pois.get(0).elev, 0);
+        assertEquals("Rifugio (MF)", tile.pois.get(0).label);
+
+        extractor.removeWritten(tile);
+        assertEquals(2, tile.pois.size());
+        extractor.removeWritten(detailTile);
+        assertEquals(1, detailTile.pois.size());
+        assertTrue(detailTile.pois.get(0).form.contains("bench"));
+
+        // a tile read again is empty
+        MapsforgeExtractor.TileData again = new MapsforgeExtractor.TileData();
+        again.pois.add(extractor.readPoi(position, HUT));
+        extractor.removeWritten(again);
+        assertTrue(again.pois.isEmpty());
+    }
+
+    @Test
+    public void testPoisFilter() {
+        MapsforgeExtractor extractor = createExtractor("hut", false);
+        assertNotNull(extractor.readPoi(new GeoPoint(46.5, 11.5), HUT));
+        assertNull(extractor.readPoi(new GeoPoint(46.5, 11.5), RIVER));
+        // outside of the area
+        assertNull(extractor.readPoi(new GeoPoint(45.5, 11.5), HUT));
+
+        extractor = createExtractor("hut", true);
+        assertNull(extractor.readPoi(new GeoPoint(46.5, 11.5), HUT));
+        assertNotNull(extractor.readPoi(new GeoPoint(46.5, 11.5), RIVER));
+    }
+
+    @Test
+    public void testWaysAcrossTiles() {
+        MapsforgeExtractor extractor = createExtractor("", false);
+
+        // a road crossing two tiles, read from both
+        MapsforgeExtractor.TileData tile = new MapsforgeExtractor.TileData();
+        tile.lines.add(extractor.readLine(ROAD, nodes(11500000f, 46500000f, 11510000f, 46510000f)));
+        tile.lines.add(extractor.readLine(RIVER, nodes(11400000f, 46400000f, 11410000f, 46410000f)));
+        MapsforgeExtractor.TileData nextTile = new MapsforgeExtractor.TileData();
+        nextTile.lines.add(extractor.readLine(RIVER, nodes(11700000f, 46700000f, 11710000f, 46710000f)));
+        nextTile.lines.add(extractor.readLine(ROAD, nodes(11500000f, 46500000f, 11510000f, 46510000f)));
+        // not a way, a waterline or a contour
+        assertNull(extractor.readLine(Arrays.asList(new Tag("building", "yes")), nodes(11.5f, 46.5f, 11.6f, 46.6f)));
+
+        extractor.removeWritten(tile);
+        assertEquals(2, tile.lines.size());
+        extractor.removeWritten(nextTile);
+        assertEquals(1, nextTile.lines.size());
+        assertSame(RIVER, nextTile.lines.get(0).tags);
+        // 1 + 4 + 4 header bytes and two points
+        assertEquals(9 + 2 * 16, nextTile.lines.get(0).wkb.length);
+    }
+
+    @Test
+    public void testManyTiles() {
+        MapsforgeExtractor extractor = createExtractor("", false);
+        int written = 0;
+        // a grid of pois, each read from four overlapping tiles
+        for (int tileX = 0; tileX < 40; tileX++) {
+            for (int tileY = 0; tileY < 40; tileY++) {
+                MapsforgeExtractor.TileData tileData = new MapsforgeExtractor.TileData();
+                for (int x = tileX; x < tileX + 2; x++) {
+                    for (int y = tileY; y < tileY + 2; y++) {
+                        tileData.pois.add(extractor.readPoi(new GeoPoint(46.1 + y * 0.01, 11.1 + x * 0.01), HUT));
+                    }
+                }
+                extractor.removeWritten(tileData);
+                written += tileData.pois.size();
+            }
+        }
+        assertEquals(41 * 41, written);
+    }
+}
@@ -19,18 +19,17 @@ package eu.geopaparazzi.library.database;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.Map.Entry;
-import java.util.Set;
 
-import android.content.ContentValues;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
-import eu.geopaparazzi.library.GPApplication;
 import eu.geopaparazzi.library.util.TimeUtilities;
 
 /**
  * The class that handles logging to the database.
  *
+ * <p>Entries are written to the database by a background writer, so logging never
+ * waits on the database. Under heavy load entries may be sampled or dropped.</p>
+ *
  * @author Andrea Antonello (www.hydrologis.com)
  */
 @SuppressWarnings("nls")
@@ -86,6 +85,16 @@ public class GPLog {
      */
     public static int GLOBAL_LOG_LEVEL = 0;
 
+    /**
+     * Max number of entries kept in the log table, <code>0</code> for no limit.
+     */
+    public static int MAX_LOG_ROWS = 50000;
+
+    /**
+     * Max age in milliseconds of the entries kept in the log table, <code>0</code> for no limit.
+     */
+    public static long MAX_LOG_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
     /**
      * Create the default log table.
      *
@@ -139,16 +148,13 @@ public class GPLog {
      * @param logMessage the message to insert in the log.
      */
     public static void addLogEntry( String logMessage ) {
+        addLogEntry(logMessage, false);
+    }
+
+    private static void addLogEntry( String logMessage, boolean isError ) {
         try {
             Date date = new Date();
-            SQLiteDatabase sqliteDatabase = GPApplication.getInstance().getDatabase();
-            if (sqliteDatabase != null && sqliteDatabase.isOpen()) {
-                ContentValues values = new ContentValues();
-                long time = date.getTime();
-                values.put(COLUMN_DATAORA, time);
-                values.put(COLUMN_LOGMSG, logMessage);
-                insertOrThrow(sqliteDatabase, TABLE_LOG, values);
-            }
+            GPLogWriter.offer(date.getTime(), logMessage, isError);
 
             if (LOG_ANDROID) {
                 StringBuilder sb = new StringBuilder();
@@ -202,7 +208,7 @@ public class GPLog {
         }
         sb.append(logMessage);
         try {
-            addLogEntry(sb.toString());
+            addLogEntry(sb.toString(), ERROR_TAG.equals(tag));
         } catch (Exception e) {
             Log.e(ERROR_TAG, "Error inserting in log.", e);
         }
@@ -245,32 +251,6 @@ public class GPLog {
             log("GPLOG_ERROR", stackTrace);
         }
     }
-    /**
-     * Do an insert or throw with the proper error handling.
-     * @param table
-     * @param values
-     *
-     * @return
-     * @throws IOException
-     */
-    private static long insertOrThrow( SQLiteDatabase sqliteDatabase, String table, ContentValues values ) throws Exception {
-        if (sqliteDatabase == null || !sqliteDatabase.isOpen()) {
-            throw new Exception("Database not ready!");
-        }
-        long id = sqliteDatabase.insertOrThrow(table, null, values);
-        if (id == -1) {
-            Set<Entry<String, Object>> valueSet = values.valueSet();
-            StringBuilder sb = new StringBuilder();
-            sb.append("Insert failed with: \n");
-            for( Entry<String, Object> entry : valueSet ) {
-                sb.append("(").append(entry.getKey()).append(",");
-                sb.append(entry.getValue()).append(")\n");
-            }
-            String message = sb.toString();
-            throw new IOException(message);
-        }
-        return id;
-    }
 
     /**
      * Clear the log table.
@@ -0,0 +1,234 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.database;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import eu.geopaparazzi.library.GPApplication;
+
+/**
+ * The background writer of the {@link GPLog} table.
+ *
+ * <p>Log entries are put in a bounded queue without locking and without touching
+ * the database, a single daemon thread drains the queue and inserts the entries
+ * in batches, one transaction per batch.</p>
+ * <p>When the queue fills up, normal entries are sampled and then dropped, errors
+ * are kept until the queue is full. The number of dropped entries is written to
+ * the log as soon as there is room again.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+class GPLogWriter implements Runnable {
+    /**
+     * Max number of entries waiting to be written.
+     */
+    private static final int QUEUE_CAPACITY = 2000;
+    /**
+     * Above this number of waiting entries only one normal entry out of {@link #SAMPLE_RATE} is kept.
+     */
+    private static final int SAMPLE_THRESHOLD = QUEUE_CAPACITY / 2;
+    private static final int SAMPLE_RATE = 8;
+    /**
+     * Max number of entries inserted in one transaction.
+     */
+    private static final int BATCH_SIZE = 200;
+    /**
+     * Time the writer waits after waking up, to collect bursts of entries in one batch.
+     */
+    private static final long BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Number of written entries after which the table is trimmed.
+     */
+    private static final int TRIM_INTERVAL = 1000;
+
+    private static final GPLogWriter INSTANCE = new GPLogWriter();
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger sampleCounter = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean waiting;
+
+    private SQLiteDatabase statementDb;
+    private SQLiteStatement insertStatement;
+    private int writtenSinceTrim = TRIM_INTERVAL;
+
+    private GPLogWriter() {
+        thread = new Thread(this, "GPLogWriter");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Queue an entry to be written to the log table.
+     *
+     * <p>Never blocks.</p>
+     *
+     * @param time       the time of the entry.
+     * @param logMessage the message.
+     * @param isError    if <code>true</code>, the entry is not sampled away under load.
+     * @return <code>false</code> if the entry was dropped.
+     */
+    static boolean offer( long time, String logMessage, boolean isError ) {
+        return INSTANCE.add(time, logMessage, isError);
+    }
+
+    private boolean add( long time, String logMessage, boolean isError ) {
+        int size = queueSize.incrementAndGet();
+        if (size > QUEUE_CAPACITY || (!isError && size > SAMPLE_THRESHOLD && sampleCounter.incrementAndGet() % SAMPLE_RATE != 0)) {
+            queueSize.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.offer(new Entry(time, logMessage));
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        while( true ) {
+            if (queue.isEmpty()) {
+                waiting = true;
+                // check again, an entry might have been added before the flag was visible
+                if (queue.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                LockSupport.parkNanos(BATCH_DELAY_NANOS);
+            }
+            try {
+                writeBatch();
+            } catch (Throwable e) {
+                Log.e(GPLog.ERROR_TAG, "Error writing the log.", e);
+                // do not spin on a broken database
+                discard(BATCH_SIZE);
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void writeBatch() throws Exception {
+        SQLiteDatabase db = GPApplication.getInstance().getDatabase();
+        if (db == null || !db.isOpen()) {
+            // nowhere to write, the entries have already gone to the android log
+            discard(BATCH_SIZE);
+            return;
+        }
+        if (db != statementDb) {
+            if (insertStatement != null) {
+                closeStatement();
+            }
+            String insert = "insert into " + GPLog.TABLE_LOG + " (" + GPLog.COLUMN_DATAORA + ", " + GPLog.COLUMN_LOGMSG
+                    + ") values (?, ?)";
+            insertStatement = db.compileStatement(insert);
+            statementDb = db;
+        }
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            int droppedCount = dropped.getAndSet(0);
+            if (droppedCount > 0) {
+                insert(System.currentTimeMillis(), "UU;" + GPLog.ERROR_TAG + ";GPLOG: " + droppedCount
+                        + " log entries dropped, the log was overloaded.");
+            }
+            Entry entry;
+            while( count < BATCH_SIZE && (entry = queue.poll()) != null ) {
+                queueSize.decrementAndGet();
+                insert(entry.time, entry.message);
+                count++;
+            }
+            writtenSinceTrim += count;
+            if (writtenSinceTrim >= TRIM_INTERVAL) {
+                writtenSinceTrim = 0;
+                trim(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void insert( long time, String message ) {
+        insertStatement.bindLong(1, time);
+        if (message == null) {
+            insertStatement.bindNull(2);
+        } else {
+            insertStatement.bindString(2, message);
+        }
+        insertStatement.executeInsert();
+    }
+
+    /**
+     * Remove the entries older than {@link GPLog#MAX_LOG_AGE_MILLIS} and the oldest beyond {@link GPLog#MAX_LOG_ROWS}.
+     */
+    private static void trim( SQLiteDatabase db ) {
+        long maxAge = GPLog.MAX_LOG_AGE_MILLIS;
+        if (maxAge > 0) {
+            long limit = System.currentTimeMillis() - maxAge;
+            db.execSQL("delete from " + GPLog.TABLE_LOG + " where " + GPLog.COLUMN_DATAORA + " < " + limit);
+        }
+        int maxRows = GPLog.MAX_LOG_ROWS;
+        if (maxRows > 0) {
+            // the ids are autoincrement, so the oldest entries have the lowest ids
+            db.execSQL("delete from " + GPLog.TABLE_LOG + " where " + GPLog.COLUMN_ID + " <= (select max("
+                    + GPLog.COLUMN_ID + ") from " + GPLog.TABLE_LOG + ") - " + maxRows);
+        }
+    }
+
+    private void discard( int max ) {
+        for( int i = 0; i < max && queue.poll() != null; i++ ) {
+            queueSize.decrementAndGet();
+        }
+        closeStatement();
+    }
+
+    private void closeStatement() {
+        if (insertStatement != null) {
+            try {
+                insertStatement.close();
+            } catch (Exception e) {
+                // the database might already be closed
+            }
+            insertStatement = null;
+            statementDb = null;
+        }
+    }
+
+    private static class Entry {
+        final long time;
+        final String message;
+
+        Entry( long time, String message ) {
+            this.time = time;
+            this.message = message;
+        }
+    }
+}
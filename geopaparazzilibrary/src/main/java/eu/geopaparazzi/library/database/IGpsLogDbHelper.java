@@ -22,6 +22,8 @@ import java.io.IOException;
 
 import android.database.sqlite.SQLiteDatabase;
 
+import eu.geopaparazzi.library.gps.TrackStatistics;
+
 /**
  * Interface that helps adding points to external databases. 
  * 
@@ -69,6 +71,26 @@ public interface IGpsLogDbHelper {
     public void addGpsLogDataPoint(SQLiteDatabase sqliteDatabase, long gpslogId, double lon, double lat, double altim,
                                    long timestamp) throws IOException;
 
+    /**
+     * Adds a block of gps log points to a log.
+     *
+     * <p>The points are read from the parallel arrays starting at index <code>from</code>.
+     * Transactions have to be opened and closed by the caller, which allows
+     * several blocks to be committed together.</p>
+     *
+     * @param sqliteDatabase the db to use.
+     * @param gpslogId the log id to which to add to.
+     * @param lons the lon coordinates.
+     * @param lats the lat coordinates.
+     * @param altims the elevations of the points.
+     * @param timestamps the timestamps of the points.
+     * @param from the index of the first point to add.
+     * @param count the number of points to add.
+     * @throws IOException  if something goes wrong.
+     */
+    public void addGpsLogDataPoints(SQLiteDatabase sqliteDatabase, long gpslogId, double[] lons, double[] lats,
+                                    double[] altims, long[] timestamps, int from, int count) throws IOException;
+
     /**
      * Deletes a gps log from the database. 
      * 
@@ -95,6 +117,24 @@ public interface IGpsLogDbHelper {
      */
     public void setTrackLengthm(long logid, double length) throws IOException;
 
+    /**
+     * Stores the statistics of a log, also re-setting its length.
+     *
+     * @param logid the log to change.
+     * @param stats the statistics of the whole log.
+     * @throws IOException  if something goes wrong.
+     */
+    public void setTrackStatistics(long logid, TrackStatistics stats) throws IOException;
+
+    /**
+     * Reads the statistics of a log, for example to continue it.
+     *
+     * @param logid the log to read.
+     * @param stats the statistics to fill.
+     * @throws IOException  if something goes wrong.
+     */
+    public void getTrackStatistics(long logid, TrackStatistics stats) throws IOException;
+
     /**
      * Get the last available log id.
      * <p/>
@@ -20,6 +20,7 @@ package eu.geopaparazzi.library.database;
 import android.database.sqlite.SQLiteDatabase;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Interface that helps handling images in the database.
@@ -64,6 +65,15 @@ public interface IImagesDbHelper {
      */
     public byte[] getImageData(long imageId) throws Exception;
 
+    /**
+     * Write the image data to a stream, in chunks, without holding the whole image in memory.
+     *
+     * @param imageId      the image id.
+     * @param outputStream the stream to write to, it is not closed.
+     * @throws IOException if something goes wrong.
+     */
+    public void writeImageData(long imageId, OutputStream outputStream) throws Exception;
+
     /**
      * Get an image from the db by its <b>data</b> id.
      *
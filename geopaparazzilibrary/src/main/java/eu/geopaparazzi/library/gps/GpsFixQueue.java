@@ -0,0 +1,113 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded handoff of fixes from the location callbacks to a single logging thread.
+ * <p/>
+ * <p>Adding a fix never takes a lock and never blocks: if the consumer lags behind by more than
+ * the capacity, the oldest fixes are dropped. The consumer parks while the queue is empty and is
+ * unparked by the next fix or by {@link #wakeUp()}.</p>
+ *
+ * @param <E> the type of the fixes.
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+class GpsFixQueue<E> {
+    private final ConcurrentLinkedQueue<E> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final int capacity;
+    private volatile Thread consumer;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of fixes kept.
+     */
+    GpsFixQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity needs to be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a fix and wake up the consumer.
+     *
+     * @param fix the fix to add.
+     */
+    void offer(E fix) {
+        queue.offer(fix);
+        if (size.incrementAndGet() > capacity) {
+            // the consumer lags behind, drop the oldest fix
+            if (queue.poll() != null) {
+                size.decrementAndGet();
+                droppedCount.incrementAndGet();
+            }
+        }
+        wakeUp();
+    }
+
+    /**
+     * Take the oldest fix, waiting for one if the queue is empty.
+     * <p/>
+     * <p>Must always be called by the same thread. The wait can end early, for example
+     * through {@link #wakeUp()}, in which case <code>null</code> is returned.</p>
+     *
+     * @param timeoutMillis the maximum time to wait, a negative value waits until woken up.
+     * @return the oldest fix or <code>null</code> if there was none.
+     */
+    E poll(long timeoutMillis) {
+        consumer = Thread.currentThread();
+        E fix = queue.poll();
+        if (fix == null) {
+            if (timeoutMillis < 0) {
+                LockSupport.park(this);
+            } else if (timeoutMillis > 0) {
+                LockSupport.parkNanos(this, timeoutMillis * 1000000L);
+            }
+            fix = queue.poll();
+        }
+        if (fix != null) {
+            size.decrementAndGet();
+        }
+        return fix;
+    }
+
+    /**
+     * Make a waiting {@link #poll(long)} return, for example to stop or to flush.
+     */
+    void wakeUp() {
+        Thread thread = consumer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return the number of fixes dropped because the consumer lagged behind.
+     */
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import android.location.Location;
+
+/**
+ * Decides which incoming fixes are recorded in a gps log.
+ * <p/>
+ * <p>A fix is accepted if it is at least the minimum interval and the minimum distance
+ * away from the last accepted fix and, if set, its accuracy is good enough.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class GpsLogFixFilter {
+
+    private final float minDistance;
+    private final long minIntervalMillis;
+    private final float maxAccuracy;
+
+    private boolean hasLast = false;
+    private double lastLon;
+    private double lastLat;
+    private long lastTime;
+    private final float[] distanceResult = new float[1];
+
+    /**
+     * Constructor.
+     *
+     * @param minDistance       the minimum distance in meters between recorded fixes.
+     * @param minIntervalMillis the minimum time between recorded fixes.
+     * @param maxAccuracy       the maximum accuracy radius in meters a fix can have to be recorded.
+     *                          Values <= 0 disable the check.
+     */
+    public GpsLogFixFilter(float minDistance, long minIntervalMillis, float maxAccuracy) {
+        this.minDistance = minDistance;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxAccuracy = maxAccuracy;
+    }
+
+    /**
+     * Check a fix against the filter.
+     * <p/>
+     * <p>If the fix is accepted, it becomes the reference for the next checks.</p>
+     *
+     * @param location the fix to check.
+     * @return the distance from the last accepted fix or -1 if the fix is rejected. The
+     * first accepted fix has distance 0.
+     */
+    public float accept(Location location) {
+        if (maxAccuracy > 0 && location.hasAccuracy() && location.getAccuracy() > maxAccuracy) {
+            return -1;
+        }
+        double lon = location.getLongitude();
+        double lat = location.getLatitude();
+        long time = location.getTime();
+        float distance = 0;
+        if (hasLast) {
+            if (time - lastTime < minIntervalMillis) {
+                return -1;
+            }
+            Location.distanceBetween(lastLat, lastLon, lat, lon, distanceResult);
+            distance = distanceResult[0];
+            if (distance < minDistance) {
+                return -1;
+            }
+        }
+        hasLast = true;
+        lastLon = lon;
+        lastLat = lat;
+        lastTime = time;
+        return distance;
+    }
+}
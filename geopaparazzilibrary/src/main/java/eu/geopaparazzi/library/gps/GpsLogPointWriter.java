@@ -0,0 +1,256 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+
+import java.io.IOException;
+
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.library.database.IGpsLogDbHelper;
+
+/**
+ * A buffered writer for gps log points.
+ * <p/>
+ * <p>Points are collected in a primitive ring buffer and written to the
+ * database in a single transaction every {@link #getFlushPointsCount()} points
+ * or {@link #getFlushIntervalMillis()} milliseconds, whatever comes first.</p>
+ * <p/>
+ * <p>If a flush fails, also because of a database error, the points are kept and retried at
+ * the next flush. If the buffer is full and can't be emptied, the oldest points are overwritten.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class GpsLogPointWriter {
+    /**
+     * Default number of points after which the buffer is flushed.
+     */
+    public static final int DEFAULT_FLUSH_POINTS = 30;
+    /**
+     * Default time after which the buffer is flushed.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 30000L;
+
+    private final IGpsLogDbHelper dbHelper;
+    private final SQLiteDatabase sqliteDatabase;
+    private final long gpsLogId;
+    private final int flushPointsCount;
+    private final long flushIntervalMillis;
+
+    private final double[] lons;
+    private final double[] lats;
+    private final double[] altims;
+    private final long[] timestamps;
+    /**
+     * Index of the oldest buffered point.
+     */
+    private int head = 0;
+    /**
+     * Number of buffered points.
+     */
+    private int size = 0;
+
+    private long lastFlushMillis;
+    private long lastCommitDurationMillis = -1;
+    private long writtenPointsCount = 0;
+    private long droppedPointsCount = 0;
+    private volatile boolean flushRequested = false;
+
+    /**
+     * Constructor.
+     *
+     * @param dbHelper            the helper to write the points with.
+     * @param sqliteDatabase      the database to write to.
+     * @param gpsLogId            the id of the log the points belong to.
+     * @param flushPointsCount    the number of points after which to flush.
+     * @param flushIntervalMillis the time after which to flush.
+     */
+    public GpsLogPointWriter(IGpsLogDbHelper dbHelper, SQLiteDatabase sqliteDatabase, long gpsLogId, int flushPointsCount,
+                             long flushIntervalMillis) {
+        if (flushPointsCount < 1) {
+            throw new IllegalArgumentException("The flush points count needs to be positive: " + flushPointsCount);
+        }
+        this.dbHelper = dbHelper;
+        this.sqliteDatabase = sqliteDatabase;
+        this.gpsLogId = gpsLogId;
+        this.flushPointsCount = flushPointsCount;
+        this.flushIntervalMillis = flushIntervalMillis;
+
+        // leave room to keep points in case of a failing flush
+        int capacity = flushPointsCount * 4;
+        lons = new double[capacity];
+        lats = new double[capacity];
+        altims = new double[capacity];
+        timestamps = new long[capacity];
+        lastFlushMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Add a point to the buffer, flushing if necessary.
+     *
+     * @param lon       the lon coordinate.
+     * @param lat       the lat coordinate.
+     * @param altim     the elevation of the point.
+     * @param timestamp the timestamp of the point.
+     */
+    public synchronized void addPoint(double lon, double lat, double altim, long timestamp) {
+        int capacity = lons.length;
+        if (size == 0) {
+            // the interval is counted from the oldest buffered point
+            lastFlushMillis = SystemClock.elapsedRealtime();
+        }
+        int index;
+        if (size == capacity) {
+            // overwrite the oldest point
+            index = head;
+            head = (head + 1) % capacity;
+            droppedPointsCount++;
+        } else {
+            index = (head + size) % capacity;
+            size++;
+        }
+        lons[index] = lon;
+        lats[index] = lat;
+        altims[index] = altim;
+        timestamps[index] = timestamp;
+
+        flushIfDue();
+    }
+
+    /**
+     * Flushes the buffer if enough points were collected, if the flush interval passed
+     * or if a flush has been requested.
+     *
+     * @return <code>true</code> if the buffer is empty after the call.
+     */
+    public synchronized boolean flushIfDue() {
+        if (size == 0) {
+            flushRequested = false;
+            return true;
+        }
+        if (flushRequested || size >= flushPointsCount
+                || SystemClock.elapsedRealtime() - lastFlushMillis >= flushIntervalMillis) {
+            return flush();
+        }
+        return false;
+    }
+
+    /**
+     * @return the milliseconds until the flush interval passes or -1 if there is nothing to flush.
+     */
+    public synchronized long getMillisUntilFlushDue() {
+        if (size == 0) {
+            return -1;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - lastFlushMillis;
+        return Math.max(0, flushIntervalMillis - elapsed);
+    }
+
+    /**
+     * Ask for a flush to happen at the next {@link #flushIfDue()}.
+     * <p/>
+     * <p>This can be called from any thread, for example when the battery runs low.</p>
+     */
+    public void requestFlush() {
+        flushRequested = true;
+    }
+
+    /**
+     * Write all buffered points in one transaction.
+     *
+     * @return <code>true</code> if the flush succeeded.
+     */
+    public synchronized boolean flush() {
+        flushRequested = false;
+        lastFlushMillis = SystemClock.elapsedRealtime();
+        if (size == 0) {
+            return true;
+        }
+        int capacity = lons.length;
+        int firstCount = Math.min(size, capacity - head);
+        int secondCount = size - firstCount;
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            sqliteDatabase.beginTransaction();
+            try {
+                dbHelper.addGpsLogDataPoints(sqliteDatabase, gpsLogId, lons, lats, altims, timestamps, head, firstCount);
+                if (secondCount > 0) {
+                    dbHelper.addGpsLogDataPoints(sqliteDatabase, gpsLogId, lons, lats, altims, timestamps, 0, secondCount);
+                }
+                sqliteDatabase.setTransactionSuccessful();
+            } finally {
+                // the commit happens here and can fail too, for example on a full disk
+                sqliteDatabase.endTransaction();
+            }
+        } catch (IOException | SQLiteException e) {
+            GPLog.error(this, "Could not write " + size + " gps log points, keeping them for the next flush.", e);
+            return false;
+        }
+        lastCommitDurationMillis = SystemClock.elapsedRealtime() - start;
+        writtenPointsCount += size;
+        head = 0;
+        size = 0;
+        return true;
+    }
+
+    /**
+     * @return the number of points that are buffered and not yet committed.
+     */
+    public synchronized int getPointsInFlight() {
+        return size;
+    }
+
+    /**
+     * @return the duration in milliseconds of the last commit or -1 if nothing was committed yet.
+     */
+    public synchronized long getLastCommitDurationMillis() {
+        return lastCommitDurationMillis;
+    }
+
+    /**
+     * @return the number of points committed so far.
+     */
+    public synchronized long getWrittenPointsCount() {
+        return writtenPointsCount;
+    }
+
+    /**
+     * @return the number of points overwritten because the buffer could not be flushed.
+     */
+    public synchronized long getDroppedPointsCount() {
+        return droppedPointsCount;
+    }
+
+    /**
+     * @return the number of points after which the buffer is flushed.
+     */
+    public int getFlushPointsCount() {
+        return flushPointsCount;
+    }
+
+    /**
+     * @return the time after which the buffer is flushed.
+     */
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+}
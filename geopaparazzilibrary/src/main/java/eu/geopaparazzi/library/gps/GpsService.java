@@ -19,8 +19,10 @@ package eu.geopaparazzi.library.gps;
 
 import android.Manifest;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.database.sqlite.SQLiteDatabase;
@@ -45,11 +47,15 @@ import eu.geopaparazzi.library.util.LibraryConstants;
 import eu.geopaparazzi.library.util.PositionUtilities;
 import eu.geopaparazzi.library.util.debug.TestMock;
 
+import java.io.IOException;
+
 import static eu.geopaparazzi.library.util.LibraryConstants.DEFAULT_LOG_WIDTH;
 import static eu.geopaparazzi.library.util.LibraryConstants.GPS_LOGGING_DISTANCE;
 import static eu.geopaparazzi.library.util.LibraryConstants.GPS_LOGGING_INTERVAL;
+import static eu.geopaparazzi.library.util.LibraryConstants.GPS_LOGGING_MAX_ACCURACY;
 import static eu.geopaparazzi.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGDISTANCE;
 import static eu.geopaparazzi.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGINTERVAL;
+import static eu.geopaparazzi.library.util.LibraryConstants.PREFS_KEY_GPSLOGGINGMAXACCURACY;
 
 /**
  * A service to handle the GPS data.
@@ -174,11 +180,36 @@ public class GpsService extends Service implements LocationListener, Listener {
     private GpsStatus mStatus;
     private long currentRecordedLogId = -1;
     private volatile boolean gotFix;
-    private boolean isDatabaseLogging = false;
+    private volatile boolean isDatabaseLogging = false;
     private boolean isListeningForUpdates = false;
     private boolean isProviderEnabled;
     private Handler toastHandler;
 
+    /**
+     * The buffered writer of the currently recorded log or null if not logging.
+     */
+    private volatile GpsLogPointWriter gpsLogPointWriter;
+
+    /**
+     * Size of the queue through which fixes are passed to the logging thread.
+     */
+    private static final int LOGGING_QUEUE_SIZE = 256;
+
+    /**
+     * The queue fixes are pushed into while logging or null if not logging.
+     */
+    private volatile GpsFixQueue<GpsLocation> loggingQueue;
+
+    /**
+     * The thread consuming the {@link #loggingQueue}.
+     */
+    private volatile Thread loggingThread;
+
+    /**
+     * Forces a flush of the buffered log points when the battery runs low.
+     */
+    private BroadcastReceiver batteryLowReceiver;
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
 
@@ -196,6 +227,15 @@ public class GpsService extends Service implements LocationListener, Listener {
 
             toastHandler = new Handler();
             log("onStartCommand: Preferences created");
+
+            batteryLowReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    log("Battery low, flushing buffered log points.");
+                    requestLogFlush();
+                }
+            };
+            registerReceiver(batteryLowReceiver, new IntentFilter(Intent.ACTION_BATTERY_LOW));
         }
         if (locationManager == null) {
             locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
@@ -259,8 +299,13 @@ public class GpsService extends Service implements LocationListener, Listener {
     public void onDestroy() {
         log("onDestroy Gpsservice.");
         if (isDatabaseLogging) {
+            // the logging thread writes the last points and closes the log on its own
             stopDatabaseLogging();
         }
+        if (batteryLowReceiver != null) {
+            unregisterReceiver(batteryLowReceiver);
+            batteryLowReceiver = null;
+        }
 
         if (locationManager != null && isListeningForUpdates) {
             if (ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
@@ -319,12 +364,17 @@ public class GpsService extends Service implements LocationListener, Listener {
             // we do not start twice
             return;
         }
-        isDatabaseLogging = true;
+        // a stopped log may still be closing, the new thread waits for it
+        final Thread previousThread = loggingThread;
+        final GpsFixQueue<GpsLocation> queue = new GpsFixQueue<>(LOGGING_QUEUE_SIZE);
 
         Thread t = new Thread() {
 
             public void run() {
                 try {
+                    if (previousThread != null) {
+                        previousThread.join();
+                    }
 
                     SQLiteDatabase sqliteDatabase = dbHelper.getDatabase();
 
@@ -347,6 +397,16 @@ public class GpsService extends Service implements LocationListener, Listener {
                     currentRecordedLogId = gpsLogId;
                     log("GPS Start logging. Logid: " + gpsLogId);
 
+                    TrackStatistics trackStatistics = new TrackStatistics();
+                    if (continueLastLog) {
+                        try {
+                            dbHelper.getTrackStatistics(gpsLogId, trackStatistics);
+                        } catch (Exception e) {
+                            GPLog.error(this, null, e);
+                            trackStatistics.reset();
+                        }
+                    }
+
                     // get preferences
                     String minDistanceStr = preferences.getString(PREFS_KEY_GPSLOGGINGDISTANCE,
                             String.valueOf(GPS_LOGGING_DISTANCE));
@@ -364,119 +424,57 @@ public class GpsService extends Service implements LocationListener, Listener {
                     } catch (Exception e) {
                         GPLog.error(this, null, e);
                     }
+                    String maxAccuracyStr = preferences.getString(PREFS_KEY_GPSLOGGINGMAXACCURACY,
+                            String.valueOf(GPS_LOGGING_MAX_ACCURACY));
+                    float maxAccuracy = 0f;
+                    try {
+                        maxAccuracy = Float.parseFloat(maxAccuracyStr);
+                    } catch (Exception e) {
+                        GPLog.error(this, null, e);
+                    }
                     if (DO_WHILE_LOOP_LOG) {
                         GPLog.addLogEntry(GpsService.this, "GPS waiting interval: " + waitForSecs);
                         GPLog.addLogEntry(GpsService.this, "GPS min distance: " + minDistance);
+                        GPLog.addLogEntry(GpsService.this, "GPS max accuracy: " + maxAccuracy);
+                    }
+
+                    GpsLogFixFilter fixFilter = new GpsLogFixFilter(minDistance, waitForSecs * 1000L, maxAccuracy);
+                    GpsLogPointWriter pointWriter = new GpsLogPointWriter(dbHelper, sqliteDatabase, gpsLogId,
+                            GpsLogPointWriter.DEFAULT_FLUSH_POINTS, GpsLogPointWriter.DEFAULT_FLUSH_INTERVAL_MILLIS);
+                    synchronized (GpsService.this) {
+                        if (isCurrentSession()) {
+                            gpsLogPointWriter = pointWriter;
+                        }
                     }
 
-                    long previousGpsLocationTime = -1;
                     currentPointsNum = 0;
                     currentDistance = 0;
-                    while (isDatabaseLogging) {
-                        if (gotFix || isMockMode) {
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while at: " + System.nanoTime());
-                            if (lastGpsLocation == null) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: lastGpsLocation == null");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            long time = lastGpsLocation.getTime();
-                            if (previousGpsLocationTime == time) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this,
-                                            "GPS JUMP POINT: lastGpsLocation == previous (no new point incoming)");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            previousGpsLocationTime = time;
-                            if (lastGpsLocation.getPreviousLoc() == null) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this,
-                                            "GPS JUMP POINT: waiting for second valid point to come in.");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
-                            }
-                            double recLon = lastGpsLocation.getLongitude();
-                            double recLat = lastGpsLocation.getLatitude();
-                            double recAlt = lastGpsLocation.getAltitude();
-
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 1: " + System.nanoTime());
-                            double lastDistance = lastGpsLocation.distanceToPrevious();
-                            if (DO_WHILE_LOOP_LOG) {
-                                StringBuilder sb = new StringBuilder();
-                                sb.append("GPS\ngpsloc: ");
-                                sb.append(lastGpsLocation.getLatitude());
-                                sb.append("/");
-                                sb.append(lastGpsLocation.getLongitude());
-                                sb.append("\n");
-                                if (lastGpsLocation.getPreviousLoc() != null) {
-                                    sb.append("previousLoc: ");
-                                    sb.append(lastGpsLocation.getPreviousLoc().getLatitude());
-                                    sb.append("/");
-                                    sb.append(lastGpsLocation.getPreviousLoc().getLongitude());
-                                    sb.append("\n");
-                                }
-                                sb.append("distance: ");
-                                sb.append(lastDistance);
-                                sb.append(" - mindistance: ");
-                                sb.append(minDistance);
-                                logABS(sb.toString());
+                    try {
+                        while (isCurrentSession()) {
+                            // with nothing buffered, sleep until the next fix arrives or until woken up
+                            // to stop or to flush
+                            GpsLocation location = queue.poll(pointWriter.getMillisUntilFlushDue());
+                            if (!isCurrentSession()) {
+                                break;
                             }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 2: " + System.nanoTime());
-                            // ignore near points
-                            if (lastDistance < minDistance) {
-                                if (DO_WHILE_LOOP_LOG)
-                                    GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: distance from previous");
-                                if (!holdABitAndCheckLogging(waitForSecs)) {
-                                    break;
-                                }
-                                continue;
+                            if (location != null) {
+                                recordLocation(location, fixFilter, pointWriter, trackStatistics);
                             }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 3: " + System.nanoTime());
-                            try {
-                                if (isDatabaseLogging) {
-                                    dbHelper.addGpsLogDataPoint(sqliteDatabase, gpsLogId, recLon, recLat, recAlt,
-                                            lastGpsLocation.getTime());
-                                }
-                            } catch (Exception e) {
-                                // we log the exception and try to go on
-                                GPLog.error(this, "Point in db writing error!", e);
+                            pointWriter.flushIfDue();
+                        }
+                    } finally {
+                        // close the log also if the loop failed
+                        synchronized (GpsService.this) {
+                            if (loggingThread == this) {
+                                gpsLogPointWriter = null;
                             }
-                            if (DO_WHILE_LOOP_LOG)
-                                GPLog.addLogEntry(GpsService.this, "GPS DEBUG: loop while 4: " + System.nanoTime());
-                            currentPointsNum++;
-                            currentDistance = currentDistance + lastDistance;
                         }
-                        if (!holdABitAndCheckLogging(waitForSecs)) {
-                            break;
+                        closeLog(gpsLogId, pointWriter, trackStatistics);
+                        if (queue.getDroppedCount() > 0) {
+                            GPLog.addLogEntry(GpsService.this, "Gps fixes dropped by a lagging logging thread: "
+                                    + queue.getDroppedCount());
                         }
                     }
-
-                    if (currentPointsNum < 4 && !continueLastLog) {
-                        log("Removing gpslog, since too few points were added. Logid: " + gpsLogId);
-                        dbHelper.deleteGpslog(gpsLogId);
-                    } else {
-                        // set the end time stamp and the total distance for the track
-                        long end = System.currentTimeMillis();
-                        dbHelper.setEndTs(gpsLogId, end);
-                        dbHelper.setTrackLengthm(gpsLogId, currentDistance);
-                    }
-
-                    currentPointsNum = 0;
-                    currentDistance = 0;
-                    currentRecordedLogId = -1;
-
                 } catch (SQLiteFullException e) {
                     e.printStackTrace();
                     String msg = getResources().getString(R.string.error_disk_full);
@@ -487,40 +485,141 @@ public class GpsService extends Service implements LocationListener, Listener {
                     GPLog.error(this, msg, e);
                     toastHandler.post(new ToastRunnable(msg));
                 } finally {
-                    isDatabaseLogging = false;
+                    // a new log may already have been started, leave its state alone
+                    synchronized (GpsService.this) {
+                        if (loggingThread == this) {
+                            loggingQueue = null;
+                            loggingThread = null;
+                            gpsLogPointWriter = null;
+                            isDatabaseLogging = false;
+                        }
+                    }
                 }
                 log("GPS Exit logging...");
             }
 
             /**
-             * Waits a bit before next gps query.
+             * Write what is still buffered and set the end timestamp and the statistics of the log,
+             * or remove it if too few points were added.
              *
-             * @param waitForSecs seconds to wait.
-             * @return <code>false</code> if the gps got interrupted, <code>true</code> else.
+             * @param gpsLogId    the id of the log.
+             * @param pointWriter the writer of the log.
+             * @param stats       the statistics of the log.
+             * @throws IOException if something goes wrong.
              */
-            private boolean holdABitAndCheckLogging(int waitForSecs) {
+            private void closeLog(long gpsLogId, GpsLogPointWriter pointWriter, TrackStatistics stats) throws IOException {
                 try {
-                    for (int i = 0; i < waitForSecs; i++) {
-                        Thread.sleep(1000L);
-                        if (!isDatabaseLogging) {
-                            return false;
+                    if (!pointWriter.flush()) {
+                        GPLog.addLogEntry(GpsService.this, "Lost " + pointWriter.getPointsInFlight() + " buffered gps log points.");
+                    }
+                    log("Gps log points written: " + pointWriter.getWrittenPointsCount() + ", last commit took "
+                            + pointWriter.getLastCommitDurationMillis() + "ms");
+
+                    if (currentPointsNum < 4 && !continueLastLog) {
+                        log("Removing gpslog, since too few points were added. Logid: " + gpsLogId);
+                        dbHelper.deleteGpslog(gpsLogId);
+                    } else {
+                        // set the end time stamp and the statistics for the track
+                        try {
+                            dbHelper.setEndTs(gpsLogId, System.currentTimeMillis());
+                        } finally {
+                            dbHelper.setTrackStatistics(gpsLogId, stats);
                         }
                     }
-                    return true;
-                } catch (InterruptedException e) {
-                    String msg = getResources().getString(R.string.cantwrite_gpslog);
-                    GPLog.error(this, msg, e);
-                    return true;
+                } finally {
+                    currentPointsNum = 0;
+                    currentDistance = 0;
+                    if (currentRecordedLogId == gpsLogId) {
+                        currentRecordedLogId = -1;
+                    }
                 }
             }
+
+            /**
+             * @return <code>true</code> as long as this thread logs the current session.
+             */
+            private boolean isCurrentSession() {
+                return isDatabaseLogging && loggingThread == this;
+            }
+
+            /**
+             * Filter a fix and, if it qualifies, add it to the log.
+             *
+             * @param location    the fix.
+             * @param fixFilter   the filter to apply.
+             * @param pointWriter the writer to add the point to.
+             * @param stats       the statistics of the log to update.
+             */
+            private void recordLocation(GpsLocation location, GpsLogFixFilter fixFilter, GpsLogPointWriter pointWriter,
+                                        TrackStatistics stats) {
+                if (location.getPreviousLoc() == null) {
+                    if (DO_WHILE_LOOP_LOG)
+                        GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: waiting for second valid point to come in.");
+                    return;
+                }
+                float distance = fixFilter.accept(location);
+                if (distance < 0) {
+                    if (DO_WHILE_LOOP_LOG)
+                        GPLog.addLogEntry(GpsService.this, "GPS JUMP POINT: filtered by distance, interval or accuracy");
+                    return;
+                }
+                if (DO_WHILE_LOOP_LOG) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("GPS\ngpsloc: ");
+                    sb.append(location.getLatitude());
+                    sb.append("/");
+                    sb.append(location.getLongitude());
+                    sb.append("\n");
+                    sb.append("distance: ");
+                    sb.append(distance);
+                    logABS(sb.toString());
+                }
+                try {
+                    pointWriter.addPoint(location.getLongitude(), location.getLatitude(), location.getAltitude(),
+                            location.getTime());
+                } catch (Exception e) {
+                    // we log the exception and try to go on
+                    GPLog.error(this, "Point in db writing error!", e);
+                }
+                stats.addPoint(location.getLongitude(), location.getLatitude(), location.getAltitude(), location.getTime());
+                currentPointsNum++;
+                currentDistance = currentDistance + distance;
+            }
         };
+        synchronized (this) {
+            loggingQueue = queue;
+            loggingThread = t;
+            isDatabaseLogging = true;
+        }
         t.start();
 
         Toast.makeText(GpsService.this, R.string.gpsloggingon, Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * Signals the logging thread to stop.
+     * <p/>
+     * <p>The thread writes the last points and closes the log in the background, the caller
+     * does not wait for it.</p>
+     */
     private void stopDatabaseLogging() {
         isDatabaseLogging = false;
+        GpsFixQueue<GpsLocation> queue = loggingQueue;
+        if (queue != null) {
+            queue.wakeUp();
+        }
+    }
+
+    /**
+     * Makes the logging thread write the buffered points as soon as possible.
+     */
+    private void requestLogFlush() {
+        GpsLogPointWriter writer = gpsLogPointWriter;
+        GpsFixQueue<GpsLocation> queue = loggingQueue;
+        if (writer != null && queue != null) {
+            writer.requestFlush();
+            queue.wakeUp();
+        }
     }
 
     private static void log(String msg) {
@@ -579,6 +678,11 @@ public class GpsService extends Service implements LocationListener, Listener {
             PositionUtilities.putGpsLocationInPreferences(preferences, recLon, recLat, recAlt);
             previousLoc = loc;
 
+            GpsFixQueue<GpsLocation> queue = loggingQueue;
+            if (queue != null) {
+                queue.offer(lastGpsLocation);
+            }
+
             broadcast("triggered by onLocationChanged");
         }
     }
@@ -599,6 +703,8 @@ public class GpsService extends Service implements LocationListener, Listener {
 
     public void onProviderDisabled(String provider) {
         isProviderEnabled = false;
+        // logging pauses until the provider comes back
+        requestLogFlush();
         broadcast("triggered by onProviderDisabled");
     }
 
@@ -629,6 +735,10 @@ public class GpsService extends Service implements LocationListener, Listener {
 
         if (tmpGotFix != gotFix) {
             gotFix = tmpGotFix;
+            if (!gotFix) {
+                // logging pauses until the fix comes back
+                requestLogFlush();
+            }
             broadcast("triggered by onGpsStatusChanged on fix change: " + gotFix);
         } else {
             gotFix = tmpGotFix;
@@ -642,6 +752,13 @@ public class GpsService extends Service implements LocationListener, Listener {
         }
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // the service could be killed soon, better have the points on disk
+        requestLogFlush();
+    }
+
     /**
      * @param message a message that can be used for logging.
      */
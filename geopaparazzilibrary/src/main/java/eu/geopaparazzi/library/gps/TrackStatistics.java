@@ -0,0 +1,276 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gps;
+
+/**
+ * Statistics of a track, updated point by point.
+ * <p/>
+ * <p>The same instance can be fed while the points are logged or while reading a
+ * log from the database, it does not allocate anything per point. The fields hold
+ * the current state and are meant to be read, or restored from a stored state before
+ * continuing a track.</p>
+ * <p/>
+ * <p>Distances are computed on the WGS84 ellipsoid, as {@link android.location.Location#distanceBetween}
+ * does, and are planar, i.e. the elevation is not considered.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public class TrackStatistics {
+    /**
+     * Speed in m/s below which the track is considered stopped.
+     */
+    public static final double DEFAULT_MOVING_SPEED = 0.5;
+
+    private static final double WGS84_A = 6378137.0;
+    private static final double WGS84_B = 6356752.3142;
+    private static final double WGS84_F = (WGS84_A - WGS84_B) / WGS84_A;
+    private static final double MEAN_RADIUS = 6371008.8;
+
+    private final double movingSpeed;
+
+    /**
+     * The number of points.
+     */
+    public long pointsCount;
+    /**
+     * The UTC timestamp of the first point.
+     */
+    public long startTs;
+    /**
+     * The UTC timestamp of the last point.
+     */
+    public long endTs;
+    /**
+     * The length in meters.
+     */
+    public double lengthM;
+    /**
+     * The time in milliseconds spent moving faster than the moving speed.
+     */
+    public long movingMillis;
+    /**
+     * The length in meters covered while moving.
+     */
+    public double movingLengthM;
+    /**
+     * The min speed in m/s between two points.
+     */
+    public double minSpeed;
+    /**
+     * The max speed in m/s between two points.
+     */
+    public double maxSpeed;
+    /**
+     * The summed up elevation differences in meters.
+     */
+    public double elevationGain;
+    /**
+     * The summed down elevation differences in meters, as a positive value.
+     */
+    public double elevationLoss;
+    public double minElevation;
+    public double maxElevation;
+    public double minLon;
+    public double minLat;
+    public double maxLon;
+    public double maxLat;
+    /*
+     * the last point, needed to continue the track
+     */
+    public double lastLon;
+    public double lastLat;
+    public double lastElevation;
+
+    /**
+     * Constructor with {@link #DEFAULT_MOVING_SPEED}.
+     */
+    public TrackStatistics() {
+        this(DEFAULT_MOVING_SPEED);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param movingSpeed the speed in m/s below which the track is considered stopped.
+     */
+    public TrackStatistics(double movingSpeed) {
+        this.movingSpeed = movingSpeed;
+    }
+
+    /**
+     * Clear the statistics to start a new track.
+     */
+    public void reset() {
+        pointsCount = 0;
+        startTs = endTs = 0;
+        lengthM = movingLengthM = 0;
+        movingMillis = 0;
+        minSpeed = maxSpeed = 0;
+        elevationGain = elevationLoss = 0;
+        minElevation = maxElevation = 0;
+        minLon = minLat = maxLon = maxLat = 0;
+        lastLon = lastLat = lastElevation = 0;
+    }
+
+    /**
+     * Add the next point of the track.
+     *
+     * @param lon       the longitude.
+     * @param lat       the latitude.
+     * @param elevation the elevation.
+     * @param ts        the UTC timestamp in milliseconds.
+     * @return the distance in meters from the previous point.
+     */
+    public double addPoint(double lon, double lat, double elevation, long ts) {
+        if (pointsCount == 0) {
+            pointsCount = 1;
+            startTs = endTs = ts;
+            minElevation = maxElevation = elevation;
+            minLon = maxLon = lon;
+            minLat = maxLat = lat;
+            lastLon = lon;
+            lastLat = lat;
+            lastElevation = elevation;
+            return 0;
+        }
+
+        double distance = distance(lastLat, lastLon, lat, lon);
+        lengthM += distance;
+
+        long deltaMillis = ts - endTs;
+        if (deltaMillis > 0) {
+            double speed = distance * 1000.0 / deltaMillis;
+            if (pointsCount == 1) {
+                minSpeed = maxSpeed = speed;
+            } else {
+                if (speed < minSpeed) minSpeed = speed;
+                if (speed > maxSpeed) maxSpeed = speed;
+            }
+            if (speed >= movingSpeed) {
+                movingMillis += deltaMillis;
+                movingLengthM += distance;
+            }
+        }
+
+        double deltaElevation = elevation - lastElevation;
+        if (deltaElevation > 0) {
+            elevationGain += deltaElevation;
+        } else {
+            elevationLoss -= deltaElevation;
+        }
+        if (elevation < minElevation) minElevation = elevation;
+        if (elevation > maxElevation) maxElevation = elevation;
+        if (lon < minLon) minLon = lon;
+        if (lon > maxLon) maxLon = lon;
+        if (lat < minLat) minLat = lat;
+        if (lat > maxLat) maxLat = lat;
+
+        pointsCount++;
+        if (ts > endTs) endTs = ts;
+        lastLon = lon;
+        lastLat = lat;
+        lastElevation = elevation;
+        return distance;
+    }
+
+    /**
+     * @return the time in milliseconds from the first to the last point.
+     */
+    public long getElapsedMillis() {
+        return endTs - startTs;
+    }
+
+    /**
+     * @return the average speed in m/s over the elapsed time.
+     */
+    public double getAverageSpeed() {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? lengthM * 1000.0 / elapsed : 0;
+    }
+
+    /**
+     * @return the average speed in m/s over the moving time.
+     */
+    public double getAverageMovingSpeed() {
+        return movingMillis > 0 ? movingLengthM * 1000.0 / movingMillis : 0;
+    }
+
+    /**
+     * Calculate the distance between two points on the WGS84 ellipsoid (Vincenty inverse formula).
+     * <p/>
+     * <p>Gives the same result as {@link android.location.Location#distanceBetween} without
+     * allocating. Nearly antipodal points, for which the formula does not converge, fall
+     * back to the spherical distance.</p>
+     *
+     * @param lat1 the latitude of the first point.
+     * @param lon1 the longitude of the first point.
+     * @param lat2 the latitude of the second point.
+     * @param lon2 the longitude of the second point.
+     * @return the distance in meters.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        if (lat1 == lat2 && lon1 == lon2) {
+            return 0;
+        }
+        double L = Math.toRadians(lon2 - lon1);
+        double U1 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(lat1)));
+        double U2 = Math.atan((1.0 - WGS84_F) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(U1);
+        double cosU1 = Math.cos(U1);
+        double sinU2 = Math.sin(U2);
+        double cosU2 = Math.cos(U2);
+
+        double lambda = L;
+        for (int iter = 0; iter < 20; iter++) {
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+            if (sinSigma == 0) {
+                return 0;
+            }
+            double cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            double sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            double cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            double cos2SigmaM = cosSqAlpha == 0 ? 0 : cosSigma - 2.0 * sinU1 * sinU2 / cosSqAlpha;
+            double C = WGS84_F / 16.0 * cosSqAlpha * (4.0 + WGS84_F * (4.0 - 3.0 * cosSqAlpha));
+            double lambdaPrev = lambda;
+            lambda = L + (1.0 - C) * WGS84_F * sinAlpha
+                    * (sigma + C * sinSigma * (cos2SigmaM + C * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+            if (Math.abs(lambda - lambdaPrev) < 1.0e-12) {
+                double uSq = cosSqAlpha * (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+                double A = 1 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+                double B = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+                double deltaSigma = B * sinSigma * (cos2SigmaM + B / 4.0
+                        * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM) - B / 6.0 * cos2SigmaM
+                        * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+                return WGS84_B * A * (sigma - deltaSigma);
+            }
+        }
+
+        // haversine
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double sinDLat = Math.sin(dLat / 2);
+        double sinDLon = Math.sin(dLon / 2);
+        double a = sinDLat * sinDLat + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinDLon * sinDLon;
+        return 2 * MEAN_RADIUS * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
@@ -19,8 +19,9 @@ package eu.geopaparazzi.library.gpx;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.Date;
 import java.util.List;
 
@@ -29,7 +30,10 @@ import eu.geopaparazzi.library.database.GPLog;
 import eu.geopaparazzi.library.util.TimeUtilities;
 
 /**
- * A kmz exporter for notes, logs and pics.
+ * A gpx exporter for notes and logs.
+ * 
+ * <p>Objects implementing {@link GpxStreamRepresenter} are written directly
+ * to the file, without building their gpx string.</p>
  * 
  * @author Andrea Antonello (www.hydrologis.com)
  */
@@ -57,14 +61,14 @@ public class GpxExport {
      * @param gpxRepresenters list of data representers.
      * @throws IOException  if something goes wrong.
      */
-    public void export( Context context, List<GpxRepresenter> gpxRepresenters ) throws IOException {
+    public void export( Context context, List<? extends GpxRepresenter> gpxRepresenters ) throws IOException {
         if (name == null) {
             name = "Geopaparazzi Gpx Export";
         }
 
         BufferedWriter bW = null;
         try {
-            bW = new BufferedWriter(new FileWriter(outputFile));
+            bW = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"));
             bW.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
             bW.write("<gpx\n");
             bW.write("  version=\"1.0\"\n");
@@ -91,7 +95,11 @@ public class GpxExport {
                     + "\"/>\n");
             for( GpxRepresenter gpxRepresenter : gpxRepresenters ) {
                 try {
-                    bW.write(gpxRepresenter.toGpxString());
+                    if (gpxRepresenter instanceof GpxStreamRepresenter) {
+                        ((GpxStreamRepresenter) gpxRepresenter).writeGpx(bW);
+                    } else {
+                        bW.write(gpxRepresenter.toGpxString());
+                    }
                 } catch (Exception e) {
                     GPLog.error(this, e.getLocalizedMessage(), e);
                 }
@@ -18,13 +18,15 @@
 
 package eu.geopaparazzi.library.gpx.parser;
 
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
 import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -42,6 +44,9 @@ import eu.geopaparazzi.library.database.GPLog;
  * <p/>
  * It parses basic waypoint information, and tracks (merging segments).
  * 
+ * <p>Big files should be parsed with {@link #parse(IGpxStreamHandler)}, which streams
+ * the content instead of keeping it in memory.</p>
+ *
  * <p>Modified to also handle routes and multiple segments by Andrea Antonello (www.hydrologis.com)
  */
 public class GpxParser {
@@ -58,6 +63,11 @@ public class GpxParser {
     private final static String ATTR_LONGITUDE = "lon"; //$NON-NLS-1$
     private final static String ATTR_LATITUDE = "lat"; //$NON-NLS-1$
 
+    /**
+     * The time of points without a time or with a time that can't be parsed.
+     */
+    public final static long INVALID_TIME = Long.MIN_VALUE;
+
     private static SAXParserFactory sParserFactory;
 
     static {
@@ -69,10 +79,10 @@ public class GpxParser {
 
     private GpxHandler mHandler;
 
-    /** Pattern to parse time with optional sub-second precision, and optional
-     * Z indicating the time is in UTC. */
-    private final static Pattern ISO8601_TIME = Pattern
-            .compile("(\\d{4})-(\\d\\d)-(\\d\\d)T(\\d\\d):(\\d\\d):(\\d\\d)(?:(\\.\\d+))?(Z)?"); //$NON-NLS-1$
+    /**
+     * Number of parsed points after which the progress is notified to the stream handler.
+     */
+    private final static int PROGRESS_INTERVAL = 1000;
 
     /**
      * Handler for the SAX parser.
@@ -189,50 +199,10 @@ public class GpxParser {
         /**
          * Converts the string description of the time into milliseconds since epoch.
          * @param timeString the string data.
-         * @return date in milliseconds.
+         * @return date in milliseconds or {@link #INVALID_TIME}.
          */
         private static long computeTime( String timeString ) {
-            // Time looks like: 2008-04-05T19:24:50Z
-            Matcher m = ISO8601_TIME.matcher(timeString);
-            if (m.matches()) {
-                // get the various elements and reconstruct time as a long.
-                try {
-                    int year = Integer.parseInt(m.group(1));
-                    int month = Integer.parseInt(m.group(2));
-                    int date = Integer.parseInt(m.group(3));
-                    int hourOfDay = Integer.parseInt(m.group(4));
-                    int minute = Integer.parseInt(m.group(5));
-                    int second = Integer.parseInt(m.group(6));
-
-                    // handle the optional parameters.
-                    int milliseconds = 0;
-
-                    String subSecondGroup = m.group(7);
-                    if (subSecondGroup != null) {
-                        milliseconds = (int) (1000 * Double.parseDouble(subSecondGroup));
-                    }
-
-                    boolean utcTime = m.group(8) != null;
-
-                    // now we convert into milliseconds since epoch.
-                    Calendar c;
-                    if (utcTime) {
-                        c = Calendar.getInstance(TimeZone.getTimeZone("GMT")); //$NON-NLS-1$
-                    } else {
-                        c = Calendar.getInstance();
-                    }
-
-                    c.set(year, month, date, hourOfDay, minute, second);
-
-                    return c.getTimeInMillis() + milliseconds;
-                } catch (NumberFormatException e) {
-                    // format is invalid, we'll return -1 below.
-                }
-
-            }
-
-            // invalid time!
-            return -1;
+            return parseTime(timeString, TimeZone.getDefault());
         }
 
         /**
@@ -269,6 +239,230 @@ public class GpxParser {
         }
     }
 
+    /**
+     * Handler for the SAX parser that passes the content on to an {@link IGpxStreamHandler}
+     * without keeping it.
+     */
+    private static class GpxStreamHandler extends DefaultHandler {
+        private final IGpxStreamHandler mHandler;
+        private final CountingInputStream mInputStream;
+        private final long mFileSize;
+        private final TimeZone mTimeZone = TimeZone.getDefault();
+        private final StringBuilder mStringAccumulator = new StringBuilder();
+
+        // --------- state for parsing ---------
+        private boolean mInWayPoint;
+        private boolean mInTrack;
+        private boolean mInTrackSegment;
+        private boolean mInRoute;
+        private boolean mInLinePoint;
+        private boolean mLineStarted;
+        private String mTrackName;
+        private String mSegmentName;
+        private String mRouteName;
+
+        private boolean mPointValid;
+        private double mLon;
+        private double mLat;
+        private double mElevation;
+        private long mTime;
+        private String mName;
+        private String mDescription;
+
+        private int mPointsSinceProgress;
+
+        GpxStreamHandler( IGpxStreamHandler handler, CountingInputStream inputStream, long fileSize ) {
+            mHandler = handler;
+            mInputStream = inputStream;
+            mFileSize = fileSize;
+        }
+
+        @Override
+        public void startElement( String uri, String localName, String name, Attributes attributes ) throws SAXException {
+            if (NODE_WAYPOINT.equals(localName)) {
+                mInWayPoint = true;
+                startPoint(attributes);
+            } else if (NODE_TRACK.equals(localName)) {
+                mInTrack = true;
+                mTrackName = null;
+            } else if (NODE_TRACK_SEGMENT.equals(localName)) {
+                mInTrackSegment = true;
+                mSegmentName = null;
+                mLineStarted = false;
+            } else if (NODE_TRACK_POINT.equals(localName)) {
+                if (mInTrackSegment) {
+                    mInLinePoint = true;
+                    startPoint(attributes);
+                }
+            } else if (NODE_ROUTE.equals(localName)) {
+                mInRoute = true;
+                mRouteName = null;
+                mLineStarted = false;
+            } else if (NODE_ROUTE_POINT.equals(localName)) {
+                if (mInRoute) {
+                    mInLinePoint = true;
+                    startPoint(attributes);
+                }
+            }
+            mStringAccumulator.setLength(0);
+        }
+
+        @Override
+        public void characters( char[] ch, int start, int length ) throws SAXException {
+            mStringAccumulator.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement( String uri, String localName, String name ) throws SAXException {
+            try {
+                if (NODE_WAYPOINT.equals(localName)) {
+                    if (mPointValid) {
+                        mHandler.onWayPoint(mLon, mLat, mElevation, mName, mDescription);
+                        pointDone();
+                    }
+                    mInWayPoint = false;
+                } else if (NODE_TRACK.equals(localName)) {
+                    mInTrack = false;
+                } else if (NODE_TRACK_SEGMENT.equals(localName)) {
+                    endLine();
+                    mInTrackSegment = false;
+                } else if (NODE_ROUTE.equals(localName)) {
+                    endLine();
+                    mInRoute = false;
+                } else if (NODE_TRACK_POINT.equals(localName) || NODE_ROUTE_POINT.equals(localName)) {
+                    if (mInLinePoint && mPointValid) {
+                        if (!mLineStarted) {
+                            String lineName;
+                            if (mInRoute) {
+                                lineName = mRouteName;
+                            } else {
+                                lineName = mSegmentName != null ? mSegmentName : mTrackName;
+                            }
+                            mHandler.onLineStart(mInRoute, lineName);
+                            mLineStarted = true;
+                        }
+                        mHandler.onLinePoint(mLon, mLat, mElevation, mTime);
+                        pointDone();
+                    }
+                    mInLinePoint = false;
+                } else if (NODE_NAME.equals(localName)) {
+                    String value = mStringAccumulator.toString();
+                    if (mInWayPoint) {
+                        mName = value;
+                    } else if (mInLinePoint) {
+                        // point names are not used
+                    } else if (mInTrackSegment) {
+                        mSegmentName = value;
+                    } else if (mInTrack) {
+                        mTrackName = value;
+                    } else if (mInRoute) {
+                        mRouteName = value;
+                    }
+                } else if (NODE_TIME.equals(localName)) {
+                    if (mInLinePoint) {
+                        mTime = parseTime(mStringAccumulator, mTimeZone);
+                    }
+                } else if (NODE_ELEVATION.equals(localName)) {
+                    if (mInLinePoint || mInWayPoint) {
+                        try {
+                            mElevation = Double.parseDouble(mStringAccumulator.toString());
+                        } catch (NumberFormatException e) {
+                            // wrong data, keep the default
+                        }
+                    }
+                } else if (NODE_DESCRIPTION.equals(localName)) {
+                    if (mInWayPoint) {
+                        mDescription = mStringAccumulator.toString();
+                    }
+                }
+            } catch (SAXException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SAXException(e);
+            }
+        }
+
+        private void startPoint( Attributes attributes ) {
+            mElevation = 0;
+            mTime = INVALID_TIME;
+            mName = null;
+            mDescription = null;
+            try {
+                mLon = Double.parseDouble(attributes.getValue(ATTR_LONGITUDE));
+                mLat = Double.parseDouble(attributes.getValue(ATTR_LATITUDE));
+                mPointValid = true;
+            } catch (Exception e) {
+                // wrong data, the point is skipped
+                mPointValid = false;
+            }
+        }
+
+        private void pointDone() throws SAXException {
+            if (++mPointsSinceProgress >= PROGRESS_INTERVAL) {
+                mPointsSinceProgress = 0;
+                if (!mHandler.onProgress(mInputStream.getCount(), mFileSize)) {
+                    throw new CancelledException();
+                }
+            }
+        }
+
+        private void endLine() throws Exception {
+            if (mLineStarted) {
+                mHandler.onLineEnd();
+                mLineStarted = false;
+            }
+        }
+    }
+
+    /**
+     * Thrown to stop the parser when the stream handler cancels.
+     */
+    private static class CancelledException extends SAXException {
+        CancelledException() {
+            super("Gpx parsing cancelled."); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Counts the bytes read, for the progress.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long mCount;
+
+        CountingInputStream( InputStream in ) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read( byte[] buffer, int offset, int length ) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                mCount += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
     /**
      * A GPS track.
      * <p/>A track is composed of a list of {@link TrackPoint} and optional name and comment.
@@ -414,21 +608,176 @@ public class GpxParser {
      * @return <code>true</code> if success.
      */
     public boolean parse() {
+        InputStream inputStream = null;
         try {
             SAXParser parser = sParserFactory.newSAXParser();
 
             mHandler = new GpxHandler();
 
-            parser.parse(new InputSource(new FileReader(mFileName)), mHandler);
+            inputStream = new BufferedInputStream(new FileInputStream(mFileName));
+            parser.parse(new InputSource(inputStream), mHandler);
 
             return mHandler.getSuccess();
         } catch (Exception e) {
             GPLog.error(this, null, e);
+        } finally {
+            closeQuietly(inputStream);
         }
 
         return false;
     }
 
+    /**
+     * Parses the GPX file passing its content to a handler, without keeping it in memory.
+     *
+     * @param handler the handler to notify.
+     * @return <code>false</code> if the handler cancelled the parsing.
+     * @throws Exception if the file could not be parsed or the handler threw an exception.
+     */
+    public boolean parse( IGpxStreamHandler handler ) throws Exception {
+        File file = new File(mFileName);
+        CountingInputStream inputStream = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            SAXParser parser = sParserFactory.newSAXParser();
+            parser.parse(new InputSource(inputStream), new GpxStreamHandler(handler, inputStream, file.length()));
+            handler.onProgress(file.length(), file.length());
+            return true;
+        } catch (CancelledException e) {
+            return false;
+        } catch (SAXException e) {
+            Exception cause = e.getException();
+            if (cause != null) {
+                throw cause;
+            }
+            throw e;
+        } finally {
+            closeQuietly(inputStream);
+        }
+    }
+
+    private static void closeQuietly( InputStream inputStream ) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Converts an ISO8601 time into milliseconds since epoch.
+     *
+     * <p>Handles times like <code>2008-04-05T19:24:50Z</code>, with optional fraction of
+     * seconds and optional Z or numeric offset. Times without zone are in the given time zone.</p>
+     *
+     * @param time the time string.
+     * @param localTimeZone the time zone for times without zone.
+     * @return the UTC time in milliseconds or {@link #INVALID_TIME} if the time is not valid.
+     */
+    public static long parseTime( CharSequence time, TimeZone localTimeZone ) {
+        int start = 0;
+        int end = time.length();
+        while( start < end && time.charAt(start) <= ' ' ) {
+            start++;
+        }
+        while( end > start && time.charAt(end - 1) <= ' ' ) {
+            end--;
+        }
+        if (end - start < 19) {
+            return INVALID_TIME;
+        }
+        int year = parseDigits(time, start, 4);
+        int month = parseDigits(time, start + 5, 2);
+        int day = parseDigits(time, start + 8, 2);
+        int hour = parseDigits(time, start + 11, 2);
+        int minute = parseDigits(time, start + 14, 2);
+        int second = parseDigits(time, start + 17, 2);
+        char dateTimeSeparator = time.charAt(start + 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 60 || time.charAt(start + 4) != '-'
+                || time.charAt(start + 7) != '-' || (dateTimeSeparator != 'T' && dateTimeSeparator != ' ')
+                || time.charAt(start + 13) != ':' || time.charAt(start + 16) != ':') {
+            return INVALID_TIME;
+        }
+
+        int i = start + 19;
+        int millis = 0;
+        if (i < end && time.charAt(i) == '.') {
+            i++;
+            int scale = 100;
+            while( i < end && isDigit(time.charAt(i)) ) {
+                millis += (time.charAt(i) - '0') * scale;
+                scale /= 10;
+                i++;
+            }
+        }
+
+        boolean hasZone = false;
+        long offsetMillis = 0;
+        if (i < end) {
+            char c = time.charAt(i);
+            if (c == 'Z' || c == 'z') {
+                hasZone = true;
+                i++;
+            } else if (c == '+' || c == '-') {
+                int offsetHours = parseDigits(time, i + 1, 2);
+                int offsetMinutesIndex = i + 3;
+                if (offsetMinutesIndex < end && time.charAt(offsetMinutesIndex) == ':') {
+                    offsetMinutesIndex++;
+                }
+                int offsetMinutes = offsetMinutesIndex < end ? parseDigits(time, offsetMinutesIndex, 2) : 0;
+                if (offsetHours < 0 || offsetMinutes < 0) {
+                    return INVALID_TIME;
+                }
+                offsetMillis = (offsetHours * 60L + offsetMinutes) * 60000L;
+                if (c == '-') {
+                    offsetMillis = -offsetMillis;
+                }
+                hasZone = true;
+                i = offsetMinutesIndex < end ? offsetMinutesIndex + 2 : end;
+            }
+        }
+        if (i != end) {
+            return INVALID_TIME;
+        }
+
+        // days from 1970-01-01 of the proleptic gregorian date
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        long utcTime = (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+        if (hasZone) {
+            return utcTime - offsetMillis;
+        }
+        // the offset at the local time is a good guess of the offset at the utc time, correct it once
+        long guess = utcTime - localTimeZone.getOffset(utcTime);
+        return utcTime - localTimeZone.getOffset(guess);
+    }
+
+    private static int parseDigits( CharSequence string, int index, int count ) {
+        if (index + count > string.length()) {
+            return -1;
+        }
+        int value = 0;
+        for( int i = index; i < index + count; i++ ) {
+            char c = string.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit( char c ) {
+        return c >= '0' && c <= '9';
+    }
+
     /**
      * Returns the parsed {@link WayPoint} objects, or <code>null</code> if none were found (or
      * if the parsing failed.
@@ -0,0 +1,78 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gpx.parser;
+
+/**
+ * Receives the content of a gpx file while it is parsed by {@link GpxParser#parse(IGpxStreamHandler)}.
+ * <p/>
+ * <p>Nothing is kept in memory by the parser, track segments and routes are
+ * notified as lines, point by point.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface IGpxStreamHandler {
+
+    /**
+     * A waypoint.
+     *
+     * @param lon         the longitude.
+     * @param lat         the latitude.
+     * @param elevation   the elevation, <code>0</code> if missing.
+     * @param name        the name or <code>null</code>.
+     * @param description the description or <code>null</code>.
+     * @throws Exception if something goes wrong, which stops the parsing.
+     */
+    void onWayPoint(double lon, double lat, double elevation, String name, String description) throws Exception;
+
+    /**
+     * A track segment or a route starts, called just before its first point.
+     *
+     * @param isRoute <code>true</code> for a route, <code>false</code> for a track segment.
+     * @param name    the name of the track or route, or <code>null</code>.
+     * @throws Exception if something goes wrong, which stops the parsing.
+     */
+    void onLineStart(boolean isRoute, String name) throws Exception;
+
+    /**
+     * A point of the current line.
+     *
+     * @param lon       the longitude.
+     * @param lat       the latitude.
+     * @param elevation the elevation, <code>0</code> if missing.
+     * @param time      the UTC timestamp in milliseconds, {@link GpxParser#INVALID_TIME} if missing or invalid.
+     * @throws Exception if something goes wrong, which stops the parsing.
+     */
+    void onLinePoint(double lon, double lat, double elevation, long time) throws Exception;
+
+    /**
+     * The current line ends. Not called for lines without points.
+     *
+     * @throws Exception if something goes wrong, which stops the parsing.
+     */
+    void onLineEnd() throws Exception;
+
+    /**
+     * Called regularly while parsing.
+     *
+     * @param bytesRead  the bytes of the file read so far.
+     * @param bytesTotal the size of the file.
+     * @return <code>false</code> to cancel the parsing.
+     */
+    boolean onProgress(long bytesRead, long bytesTotal);
+}
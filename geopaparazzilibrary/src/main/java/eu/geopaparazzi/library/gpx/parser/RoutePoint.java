@@ -24,14 +24,14 @@ package eu.geopaparazzi.library.gpx.parser;
  * <p>A Route point is a point in time and space.
  */
 public class RoutePoint extends LocationPoint {
-    private long mTime;
+    private long mTime = GpxParser.INVALID_TIME;
 
     void setTime( long time ) {
         mTime = time;
     }
 
     /**
-     * @return time.
+     * @return time or {@link GpxParser#INVALID_TIME} if missing.
      */
     public long getTime() {
         return mTime;
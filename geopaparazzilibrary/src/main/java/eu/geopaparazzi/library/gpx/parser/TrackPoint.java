@@ -23,14 +23,14 @@ package eu.geopaparazzi.library.gpx.parser;
  * <p/>A track point is a point in time and space.
  */
 public class TrackPoint extends LocationPoint {
-    private long mTime;
+    private long mTime = GpxParser.INVALID_TIME;
 
     void setTime( long time ) {
         mTime = time;
     }
 
     /**
-     * @return time.
+     * @return time or {@link GpxParser#INVALID_TIME} if missing.
      */
     public long getTime() {
         return mTime;
@@ -0,0 +1,39 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.kml;
+
+import java.io.Writer;
+
+/**
+ * A {@link KmlRepresenter} that writes its kml representation directly,
+ * without building it in memory first.
+ * <p/>
+ * <p>Used by {@link KmzExport} for objects too big to be held as a string,
+ * like long gps logs.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public interface KmlStreamRepresenter extends KmlRepresenter {
+    /**
+     * Writes the kml representation of the object.
+     *
+     * @param writer the writer to write to.
+     * @throws Exception if something goes wrong.
+     */
+    public void writeKml(Writer writer) throws Exception;
+}
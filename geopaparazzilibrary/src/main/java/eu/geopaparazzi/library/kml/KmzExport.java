@@ -17,13 +17,17 @@
  */
 package eu.geopaparazzi.library.kml;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.TreeSet;
-import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -36,6 +40,10 @@ import eu.geopaparazzi.library.database.Image;
 
 /**
  * A kmz exporter for notes, logs and pics.
+ * <p/>
+ * <p>The kml and the images are written straight into deflated zip entries, so
+ * nothing but the object being written is held in memory. Objects implementing
+ * {@link KmlStreamRepresenter} are written without building their kml string.</p>
  *
  * @author Andrea Antonello (www.hydrologis.com)
  */
@@ -60,106 +68,97 @@ public class KmzExport {
      * Export.
      *
      * @param context         the context to use.
-     * @param kmlRepresenters the list of data representers.
-     * @throws Exception if something goes wrong.
+     * @param kmlRepresenters the data representers, iterated once.
+     * @throws Exception if something goes wrong, also if a {@link KmlStreamRepresenter}
+     *                   fails, in which case the output file is incomplete.
      */
-    public void export(Context context, List<KmlRepresenter> kmlRepresenters) throws Exception {
+    public void export(Context context, Iterable<? extends KmlRepresenter> kmlRepresenters) throws Exception {
         if (name == null) {
             name = "Geopaparazzi Export";
         }
 
-        /*
-         * write the internal kml file
-         */
-        StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        stringBuilder.append("<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\"\n");
-        stringBuilder.append("xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\">\n");
-        stringBuilder.append("<Document>\n");
-        stringBuilder.append("<name>");
-        stringBuilder.append(name);
-        stringBuilder.append("</name>\n");
-        addMarker(stringBuilder, "red-pushpin", "http://maps.google.com/mapfiles/kml/pushpin/red-pushpin.png", 20, 2);
-        addMarker(stringBuilder, "yellow-pushpin", "http://maps.google.com/mapfiles/kml/pushpin/ylw-pushpin.png", 20, 2);
-        addMarker(stringBuilder, "bookmark-icon", "http://maps.google.com/mapfiles/kml/pal4/icon39.png", 16, 16);
-        addMarker(stringBuilder, "camera-icon", "http://maps.google.com/mapfiles/kml/pal4/icon38.png", 16, 16);
-        addMarker(stringBuilder, "info-icon", "http://maps.google.com/mapfiles/kml/pal3/icon35.png", 16, 16);
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+        try {
+            /*
+             * write the internal kml file
+             */
+            zos.putNextEntry(new ZipEntry("kml.kml"));
+            // not closed, that would close the zip
+            Writer writer = new BufferedWriter(new OutputStreamWriter(zos, "UTF-8"));
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<kml xmlns=\"http://www.opengis.net/kml/2.2\" xmlns:gx=\"http://www.google.com/kml/ext/2.2\"\n");
+            writer.write("xmlns:kml=\"http://www.opengis.net/kml/2.2\" xmlns:atom=\"http://www.w3.org/2005/Atom\">\n");
+            writer.write("<Document>\n");
+            writer.write("<name>");
+            writer.write(name);
+            writer.write("</name>\n");
+            addMarker(writer, "red-pushpin", "http://maps.google.com/mapfiles/kml/pushpin/red-pushpin.png", 20, 2);
+            addMarker(writer, "yellow-pushpin", "http://maps.google.com/mapfiles/kml/pushpin/ylw-pushpin.png", 20, 2);
+            addMarker(writer, "bookmark-icon", "http://maps.google.com/mapfiles/kml/pal4/icon39.png", 16, 16);
+            addMarker(writer, "camera-icon", "http://maps.google.com/mapfiles/kml/pal4/icon38.png", 16, 16);
+            addMarker(writer, "info-icon", "http://maps.google.com/mapfiles/kml/pal3/icon35.png", 16, 16);
 
-        for (KmlRepresenter kmlRepresenter : kmlRepresenters) {
-            try {
-                stringBuilder.append(kmlRepresenter.toKmlString());
-            } catch (Exception e) {
-                GPLog.error(this, e.getLocalizedMessage(), e);
-                e.printStackTrace();
-            }
-        }
-        stringBuilder.append("</Document>\n");
-        stringBuilder.append("</kml>\n");
-
-        byte[] kmlBytes = stringBuilder.toString().getBytes(Charset.forName("UTF-8"));
-
-        /*
-         * start adding the kml part
-         */
-        FileOutputStream fos = new FileOutputStream(outputFile);
-        ZipOutputStream zos = new ZipOutputStream(fos);
-        CRC32 crc = new CRC32();
-        String kmlName = "kml.kml";
-        crc.update(kmlBytes);
-        ZipEntry entry = new ZipEntry(kmlName);
-        entry.setMethod(ZipEntry.STORED);
-        entry.setCompressedSize(kmlBytes.length);
-        entry.setSize(kmlBytes.length);
-        entry.setCrc(crc.getValue());
-        zos.putNextEntry(entry);
-        zos.write(kmlBytes);
-
-        /*
-         * now add all images
-         */
-        IImagesDbHelper imagesDbHelper = DefaultHelperClasses.getDefaulfImageHelper();
-        TreeSet<String> addedImages = new TreeSet<String>();
-        for (KmlRepresenter kmlRepresenter : kmlRepresenters) {
-            if (kmlRepresenter.hasImages()) {
-                List<String> imageIds = kmlRepresenter.getImageIds();
-                for (String imageId : imageIds) {
-                    long id = Long.parseLong(imageId);
-                    Image image = imagesDbHelper.getImage(id);
-                    String imageName = image.getName();
-
-                    if (!addedImages.add(imageName)){
-                        // don't add double images
+            LinkedHashSet<String> imageIds = new LinkedHashSet<String>();
+            for (KmlRepresenter kmlRepresenter : kmlRepresenters) {
+                if (kmlRepresenter instanceof KmlStreamRepresenter) {
+                    // a failure may have written part of the object already, the kml can't be completed
+                    ((KmlStreamRepresenter) kmlRepresenter).writeKml(writer);
+                } else {
+                    String kml;
+                    try {
+                        kml = kmlRepresenter.toKmlString();
+                    } catch (Exception e) {
+                        // nothing has been written, skip the object
+                        GPLog.error(this, e.getLocalizedMessage(), e);
                         continue;
                     }
-                    byte[] imageData = imagesDbHelper.getImageData(id);
+                    writer.write(kml);
+                }
+                if (kmlRepresenter.hasImages()) {
+                    imageIds.addAll(kmlRepresenter.getImageIds());
+                }
+            }
+            writer.write("</Document>\n");
+            writer.write("</kml>\n");
+            writer.flush();
+            zos.closeEntry();
+
+            /*
+             * now add all images, they are already compressed
+             */
+            zos.setLevel(Deflater.NO_COMPRESSION);
+            IImagesDbHelper imagesDbHelper = DefaultHelperClasses.getDefaulfImageHelper();
+            TreeSet<String> addedImages = new TreeSet<String>();
+            for (String imageId : imageIds) {
+                long id = Long.parseLong(imageId);
+                Image image = imagesDbHelper.getImage(id);
+                String imageName = image.getName();
 
-                    crc.reset();
-                    crc.update(imageData);
-                    ZipEntry imageEntry = new ZipEntry(imageName);
-                    imageEntry.setMethod(ZipEntry.STORED);
-                    imageEntry.setCompressedSize(imageData.length);
-                    imageEntry.setSize(imageData.length);
-                    imageEntry.setCrc(crc.getValue());
-                    zos.putNextEntry(imageEntry);
-                    zos.write(imageData);
+                if (!addedImages.add(imageName)) {
+                    // don't add double images
+                    continue;
                 }
+                zos.putNextEntry(new ZipEntry(imageName));
+                imagesDbHelper.writeImageData(id, zos);
+                zos.closeEntry();
             }
+        } finally {
+            zos.close();
         }
-        zos.close();
     }
 
-    private void addMarker(StringBuilder sb, String alias, String url, int x, int y) throws IOException {
-        sb.append("<Style id=\"" + alias + "\">\n");
-        sb.append("<IconStyle>\n");
-        sb.append("<scale>1.1</scale>\n");
-        sb.append("<Icon>\n");
-        sb.append("<href>" + url + "\n");
-        sb.append("</href>\n");
-        sb.append("</Icon>\n");
-        sb.append("<hotSpot x=\"" + x + "\" y=\"" + y + "\" xunits=\"pixels\" yunits=\"pixels\" />\n");
-        sb.append("</IconStyle>\n");
-        sb.append("<ListStyle>\n");
-        sb.append("</ListStyle>\n");
-        sb.append("</Style>\n");
+    private void addMarker(Writer writer, String alias, String url, int x, int y) throws IOException {
+        writer.write("<Style id=\"" + alias + "\">\n");
+        writer.write("<IconStyle>\n");
+        writer.write("<scale>1.1</scale>\n");
+        writer.write("<Icon>\n");
+        writer.write("<href>" + url + "\n");
+        writer.write("</href>\n");
+        writer.write("</Icon>\n");
+        writer.write("<hotSpot x=\"" + x + "\" y=\"" + y + "\" xunits=\"pixels\" yunits=\"pixels\" />\n");
+        writer.write("</IconStyle>\n");
+        writer.write("<ListStyle>\n");
+        writer.write("</ListStyle>\n");
+        writer.write("</Style>\n");
     }
 }
@@ -208,6 +208,11 @@ public interface LibraryConstants {
      */
     String PREFS_KEY_GPSLOGGINGDISTANCE = "PREFS_KEY_GPS_LOGGING_DISTANCE"; //$NON-NLS-1$
 
+    /**
+     * Key used to store and retrieve the maximum accuracy radius a fix can have to be logged.
+     */
+    String PREFS_KEY_GPSLOGGINGMAXACCURACY = "PREFS_KEY_GPS_LOGGING_MAX_ACCURACY"; //$NON-NLS-1$
+
     /**
      * Key used to store and retrieve the gps mode to use (apply on android listener or just on application base).
      */
@@ -311,6 +316,11 @@ public interface LibraryConstants {
      * Default gps logging distance.
      */
     float GPS_LOGGING_DISTANCE = 1f;
+
+    /**
+     * Default gps logging max accuracy (0 disables the accuracy check).
+     */
+    float GPS_LOGGING_MAX_ACCURACY = 0f;
     /**
      * Key for tilesource in preferences. 
      */
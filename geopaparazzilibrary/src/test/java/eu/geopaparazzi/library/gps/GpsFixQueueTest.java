@@ -0,0 +1,112 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gps;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bounded handoff of {@link GpsFixQueue}.
+ */
+public class GpsFixQueueTest {
+
+    @Test
+    public void testDropsOldestWhenFull() {
+        GpsFixQueue<Integer> queue = new GpsFixQueue<>(3);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(i);
+        }
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(2), queue.poll(0));
+        assertEquals(Integer.valueOf(3), queue.poll(0));
+        assertEquals(Integer.valueOf(4), queue.poll(0));
+        assertNull(queue.poll(0));
+
+        // the freed room is usable again
+        queue.offer(5);
+        queue.offer(6);
+        queue.offer(7);
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Integer.valueOf(5), queue.poll(0));
+    }
+
+    @Test
+    public void testWaitEndsWithTimeout() {
+        GpsFixQueue<Integer> queue = new GpsFixQueue<>(3);
+        assertNull(queue.poll(0));
+        assertNull(queue.poll(20));
+        queue.offer(1);
+        assertEquals(Integer.valueOf(1), queue.poll(20));
+    }
+
+    @Test
+    public void testWakeUp() throws Exception {
+        final GpsFixQueue<Integer> queue = new GpsFixQueue<>(3);
+        final Integer[] result = {-1};
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                // waits without a timeout until woken up
+                result[0] = queue.poll(-1);
+            }
+        };
+        consumer.start();
+        while (consumer.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        queue.wakeUp();
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertNull(result[0]);
+    }
+
+    @Test
+    public void testHandoffBetweenThreads() throws Exception {
+        final int count = 200000;
+        final GpsFixQueue<Integer> queue = new GpsFixQueue<>(count);
+        final long[] sum = {0};
+        final int[] received = {0};
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                int last = -1;
+                while (received[0] < count) {
+                    Integer fix = queue.poll(-1);
+                    if (fix != null) {
+                        // the order of the fixes is kept
+                        assertTrue(fix > last);
+                        last = fix;
+                        sum[0] += fix;
+                        received[0]++;
+                    }
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < count; i++) {
+            queue.offer(i);
+        }
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+        assertEquals(count, received[0]);
+        assertEquals((long) count * (count - 1) / 2, sum[0]);
+        assertEquals(0, queue.getDroppedCount());
+    }
+}
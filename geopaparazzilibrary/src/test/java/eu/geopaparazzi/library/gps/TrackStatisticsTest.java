@@ -0,0 +1,188 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gps;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link TrackStatistics} against known geodesic distances and hand computed tracks.
+ */
+public class TrackStatisticsTest {
+    /**
+     * One thousandth of a degree of longitude on the equator, the iteration of the
+     * distance stops at about 10 micrometers.
+     */
+    private static final double EQUATOR_STEP_M = 111.31949079327357;
+
+    private static double dms(int degrees, int minutes, double seconds) {
+        double value = Math.abs(degrees) + minutes / 60.0 + seconds / 3600.0;
+        return degrees < 0 ? -value : value;
+    }
+
+    @Test
+    public void testGeodesicDistances() {
+        // the example of Vincenty's paper, Flinders Peak to Buninyong
+        double flindersLat = dms(-37, 57, 3.72030);
+        double flindersLon = dms(144, 25, 29.52440);
+        double buninyongLat = dms(-37, 39, 10.15610);
+        double buninyongLon = dms(143, 55, 35.38390);
+        assertEquals(54972.271, TrackStatistics.distance(flindersLat, flindersLon, buninyongLat, buninyongLon), 1e-3);
+        assertEquals(54972.271, TrackStatistics.distance(buninyongLat, buninyongLon, flindersLat, flindersLon), 1e-3);
+
+        // a degree along the equator and the quarter meridian
+        assertEquals(111319.491, TrackStatistics.distance(0, 0, 0, 1), 1e-3);
+        assertEquals(10001965.729, TrackStatistics.distance(0, 0, 90, 0), 1e-3);
+        assertEquals(10001965.729, TrackStatistics.distance(0, 30, -90, 0), 1e-3);
+
+        assertEquals(0, TrackStatistics.distance(46.5, 11.3, 46.5, 11.3), 0);
+        assertEquals(EQUATOR_STEP_M / 1000, TrackStatistics.distance(0, 11, 0, 11.000001), 1e-5);
+    }
+
+    @Test
+    public void testNearlyAntipodalFallback() {
+        // Vincenty does not converge here, the geodesic is 19936288.579m long
+        double distance = TrackStatistics.distance(0, 0, 0.5, 179.5);
+        double lat2 = Math.toRadians(0.5);
+        double dLon = Math.toRadians(179.5);
+        double a = Math.sin(lat2 / 2) * Math.sin(lat2 / 2) + Math.cos(lat2) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        double haversine = 2 * 6371008.8 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        assertEquals(haversine, distance, 1e-6);
+        assertEquals(19936288.579, distance, 19936288.579 * 1e-4);
+    }
+
+    @Test
+    public void testTrack() {
+        TrackStatistics statistics = new TrackStatistics();
+        assertEquals(0, statistics.addPoint(11.0, 0, 100, 1000), 0);
+        assertEquals(1, statistics.pointsCount);
+
+        // 10 steps east in 10 seconds each
+        for (int i = 1; i <= 10; i++) {
+            double elevation = i % 2 == 0 ? 100 : 103;
+            assertEquals(EQUATOR_STEP_M, statistics.addPoint(11.0 + i * 0.001, 0, elevation, 1000 + i * 10000L), 1e-4);
+        }
+        // a stop of a minute, then one step north in 5 seconds
+        statistics.addPoint(11.010, 0, 100, 161000);
+        statistics.addPoint(11.010, 0, 100, 221000);
+        double northStep = TrackStatistics.distance(0, 11.010, 0.001, 11.010);
+        statistics.addPoint(11.010, 0.001, 90, 226000);
+
+        assertEquals(14, statistics.pointsCount);
+        assertEquals(1000, statistics.startTs);
+        assertEquals(226000, statistics.endTs);
+        assertEquals(225000, statistics.getElapsedMillis());
+        assertEquals(10 * EQUATOR_STEP_M + northStep, statistics.lengthM, 1e-3);
+        assertEquals(10 * 10000 + 5000, statistics.movingMillis);
+        assertEquals(statistics.lengthM, statistics.movingLengthM, 1e-9);
+        assertEquals(0, statistics.minSpeed, 0);
+        assertEquals(northStep / 5, statistics.maxSpeed, 1e-9);
+        assertEquals(statistics.lengthM / 225, statistics.getAverageSpeed(), 1e-9);
+        assertEquals(statistics.lengthM / 105, statistics.getAverageMovingSpeed(), 1e-9);
+
+        assertEquals(5 * 3, statistics.elevationGain, 1e-9);
+        assertEquals(4 * 3 + 3 + 10, statistics.elevationLoss, 1e-9);
+        assertEquals(90, statistics.minElevation, 0);
+        assertEquals(103, statistics.maxElevation, 0);
+        assertEquals(11.0, statistics.minLon, 0);
+        assertEquals(11.010, statistics.maxLon, 1e-12);
+        assertEquals(0, statistics.minLat, 0);
+        assertEquals(0.001, statistics.maxLat, 0);
+
+        statistics.reset();
+        assertEquals(0, statistics.pointsCount);
+        assertEquals(0, statistics.lengthM, 0);
+        assertEquals(0, statistics.getAverageSpeed(), 0);
+        assertEquals(0, statistics.getAverageMovingSpeed(), 0);
+    }
+
+    @Test
+    public void testMovingSpeed() {
+        // 111m in 100 seconds is moving at 1m/s but stopped at 2m/s
+        TrackStatistics slow = new TrackStatistics(2.0);
+        TrackStatistics fast = new TrackStatistics(1.0);
+        for (int i = 0; i < 5; i++) {
+            slow.addPoint(i * 0.001, 0, 0, i * 100000L);
+            fast.addPoint(i * 0.001, 0, 0, i * 100000L);
+        }
+        assertEquals(0, slow.movingMillis);
+        assertEquals(0, slow.movingLengthM, 0);
+        assertEquals(400000, fast.movingMillis);
+        assertEquals(fast.lengthM, fast.movingLengthM, 1e-9);
+
+        // points with the same or an older timestamp add length but no speed
+        fast.addPoint(0.005, 0, 0, 400000);
+        assertEquals(5 * EQUATOR_STEP_M, fast.lengthM, 1e-3);
+        assertEquals(400000, fast.movingMillis);
+        assertEquals(400000, fast.endTs);
+    }
+
+    @Test
+    public void testContinueFromStoredState() {
+        TrackStatistics whole = new TrackStatistics();
+        TrackStatistics first = new TrackStatistics();
+        for (int i = 0; i < 50; i++) {
+            double lon = 11 + Math.sin(i / 5.0) * 0.01;
+            double lat = 46 + i * 0.0005;
+            double elevation = 1000 + 30 * Math.cos(i / 3.0);
+            whole.addPoint(lon, lat, elevation, i * 7000L);
+            if (i < 20) {
+                first.addPoint(lon, lat, elevation, i * 7000L);
+            }
+        }
+
+        // restore the fields as they are stored at the end of a log and go on
+        TrackStatistics resumed = new TrackStatistics();
+        resumed.pointsCount = first.pointsCount;
+        resumed.startTs = first.startTs;
+        resumed.endTs = first.endTs;
+        resumed.lengthM = first.lengthM;
+        resumed.movingMillis = first.movingMillis;
+        resumed.movingLengthM = first.movingLengthM;
+        resumed.minSpeed = first.minSpeed;
+        resumed.maxSpeed = first.maxSpeed;
+        resumed.elevationGain = first.elevationGain;
+        resumed.elevationLoss = first.elevationLoss;
+        resumed.minElevation = first.minElevation;
+        resumed.maxElevation = first.maxElevation;
+        resumed.minLon = first.minLon;
+        resumed.minLat = first.minLat;
+        resumed.maxLon = first.maxLon;
+        resumed.maxLat = first.maxLat;
+        resumed.lastLon = first.lastLon;
+        resumed.lastLat = first.lastLat;
+        resumed.lastElevation = first.lastElevation;
+        for (int i = 20; i < 50; i++) {
+            resumed.addPoint(11 + Math.sin(i / 5.0) * 0.01, 46 + i * 0.0005, 1000 + 30 * Math.cos(i / 3.0), i * 7000L);
+        }
+
+        assertEquals(whole.pointsCount, resumed.pointsCount);
+        assertEquals(whole.lengthM, resumed.lengthM, 1e-9);
+        assertEquals(whole.movingMillis, resumed.movingMillis);
+        assertEquals(whole.minSpeed, resumed.minSpeed, 1e-12);
+        assertEquals(whole.maxSpeed, resumed.maxSpeed, 1e-12);
+        assertEquals(whole.elevationGain, resumed.elevationGain, 1e-9);
+        assertEquals(whole.elevationLoss, resumed.elevationLoss, 1e-9);
+        assertEquals(whole.getElapsedMillis(), resumed.getElapsedMillis());
+        assertEquals(whole.minLon, resumed.minLon, 0);
+        assertEquals(whole.maxLon, resumed.maxLon, 0);
+        assertEquals(whole.maxLat, resumed.maxLat, 0);
+    }
+}
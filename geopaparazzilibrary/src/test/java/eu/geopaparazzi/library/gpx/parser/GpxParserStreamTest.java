@@ -0,0 +1,153 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.library.gpx.parser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams a gpx file through {@link GpxParser#parse(IGpxStreamHandler)}, the
+ * part of the gpx import that does not need the database.
+ */
+public class GpxParserStreamTest {
+    private static final int POINTS_COUNT = 25000;
+    private static final int POINTS_PER_SEGMENT = 10000;
+
+    private static class CountingHandler implements IGpxStreamHandler {
+        long points;
+        long lines;
+        long invalidTimes;
+        long lastTime = GpxParser.INVALID_TIME;
+        long lastBytesRead;
+        int progressCount;
+        int cancelAtProgress = -1;
+
+        @Override
+        public void onWayPoint(double lon, double lat, double elevation, String name, String description) {
+        }
+
+        @Override
+        public void onLineStart(boolean isRoute, String name) {
+            lines++;
+        }
+
+        @Override
+        public void onLinePoint(double lon, double lat, double elevation, long time) {
+            if (time == GpxParser.INVALID_TIME) {
+                invalidTimes++;
+            }
+            assertTrue(time > lastTime);
+            lastTime = time;
+            points++;
+        }
+
+        @Override
+        public void onLineEnd() {
+        }
+
+        @Override
+        public boolean onProgress(long bytesRead, long bytesTotal) {
+            assertTrue(bytesRead >= lastBytesRead);
+            assertTrue(bytesRead <= bytesTotal);
+            lastBytesRead = bytesRead;
+            return ++progressCount != cancelAtProgress;
+        }
+    }
+
+    private File gpxFile;
+
+    @Before
+    public void setUp() throws Exception {
+        gpxFile = File.createTempFile("stream", ".gpx");
+        writeGpx(gpxFile, POINTS_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(gpxFile.delete());
+    }
+
+    @Test
+    public void testStreamingParse() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        assertTrue(new GpxParser(gpxFile.getAbsolutePath()).parse(handler));
+
+        assertEquals(POINTS_COUNT, handler.points);
+        assertEquals(0, handler.invalidTimes);
+        assertEquals((POINTS_COUNT + POINTS_PER_SEGMENT - 1) / POINTS_PER_SEGMENT, handler.lines);
+        // the last progress covers the whole file
+        assertEquals(gpxFile.length(), handler.lastBytesRead);
+        assertTrue(handler.progressCount > 1);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CountingHandler handler = new CountingHandler();
+        handler.cancelAtProgress = 2;
+        assertFalse(new GpxParser(gpxFile.getAbsolutePath()).parse(handler));
+
+        assertEquals(2, handler.progressCount);
+        assertTrue(handler.points < POINTS_COUNT);
+        assertTrue(handler.lastBytesRead < gpxFile.length());
+    }
+
+    private static void writeGpx(File file, int pointsCount) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long start = format.parse("2016-06-01T08:00:00Z").getTime();
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<gpx version=\"1.1\" creator=\"test\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+            writer.write("<trk><name>test</name>\n");
+            for (int i = 0; i < pointsCount; i++) {
+                if (i % POINTS_PER_SEGMENT == 0) {
+                    if (i > 0) {
+                        writer.write("</trkseg>\n");
+                    }
+                    writer.write("<trkseg>\n");
+                }
+                double lon = 11.0 + (i % 100000) * 1e-5;
+                double lat = 46.0 + (i / 100000) * 1e-3;
+                writer.write("<trkpt lat=\"" + lat + "\" lon=\"" + lon + "\"><ele>" + (200 + i % 1000) + ".5</ele><time>");
+                writer.write(format.format(new Date(start + i * 1000L)));
+                writer.write("</time></trkpt>\n");
+            }
+            if (pointsCount > 0) {
+                writer.write("</trkseg>\n");
+            }
+            writer.write("</trk>\n</gpx>\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
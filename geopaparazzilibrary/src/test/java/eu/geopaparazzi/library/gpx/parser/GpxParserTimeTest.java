@@ -0,0 +1,151 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.library.gpx.parser;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import eu.geopaparazzi.library.util.TimeUtilities;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link GpxParser#parseTime(CharSequence, TimeZone)} against {@link SimpleDateFormat}.
+ */
+public class GpxParserTimeTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone ROME = TimeZone.getTimeZone("Europe/Rome");
+
+    private static long parse(String pattern, TimeZone timeZone, String time) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(timeZone);
+        return format.parse(time).getTime();
+    }
+
+    private static String format(String pattern, TimeZone timeZone, long time) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(timeZone);
+        return format.format(new Date(time));
+    }
+
+    @Test
+    public void testUtcTimes() throws Exception {
+        String time = "2008-04-05T19:24:50Z";
+        long expected = TimeUtilities.INSTANCE.TIME_FORMATTER_GPX_UTC.parse(time).getTime();
+        assertEquals(expected, GpxParser.parseTime(time, ROME));
+        assertEquals(expected, GpxParser.parseTime("2008-04-05T19:24:50z", ROME));
+        assertEquals(expected, GpxParser.parseTime("  2008-04-05T19:24:50Z\n", ROME));
+    }
+
+    @Test
+    public void testFractionsOfSeconds() throws Exception {
+        long seconds = parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "2008-04-05T19:24:50Z");
+        assertEquals(seconds + 500, GpxParser.parseTime("2008-04-05T19:24:50.5Z", UTC));
+        assertEquals(seconds + 120, GpxParser.parseTime("2008-04-05T19:24:50.12Z", UTC));
+        assertEquals(seconds + 123, GpxParser.parseTime("2008-04-05T19:24:50.123Z", UTC));
+        // digits beyond milliseconds are truncated
+        assertEquals(seconds + 123, GpxParser.parseTime("2008-04-05T19:24:50.123999Z", UTC));
+        assertEquals(seconds, GpxParser.parseTime("2008-04-05T19:24:50.Z", UTC));
+        assertEquals(seconds + 7, GpxParser.parseTime("2008-04-05T19:24:50.007+00:00", UTC));
+    }
+
+    @Test
+    public void testNumericOffsets() throws Exception {
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssXXX", UTC, "2008-04-05T19:24:50+02:00"),
+                GpxParser.parseTime("2008-04-05T19:24:50+02:00", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssXX", UTC, "2008-04-05T19:24:50-0530"),
+                GpxParser.parseTime("2008-04-05T19:24:50-0530", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "2008-04-05T19:24:50+09"),
+                GpxParser.parseTime("2008-04-05T19:24:50+09", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", UTC, "2008-04-05T01:02:03.250-10:00"),
+                GpxParser.parseTime("2008-04-05T01:02:03.25-10:00", ROME));
+    }
+
+    @Test
+    public void testLocalTimes() throws Exception {
+        // the space separator of the sqlite timestamps
+        String time = "2008-04-05 19:24:50";
+        TimeUtilities.INSTANCE.TIME_FORMATTER_SQLITE_UTC.setTimeZone(UTC);
+        assertEquals(TimeUtilities.INSTANCE.TIME_FORMATTER_SQLITE_UTC.parse(time).getTime(), GpxParser.parseTime(time, UTC));
+        assertEquals(parse("yyyy-MM-dd HH:mm:ss", ROME, time), GpxParser.parseTime(time, ROME));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ss", ROME, "2008-01-05T19:24:50"),
+                GpxParser.parseTime("2008-01-05T19:24:50", ROME));
+
+        // around the daylight saving time changes
+        String[] times = {"2016-03-27T01:59:59", "2016-03-27T03:00:00", "2016-10-30T01:59:59", "2016-10-30T03:00:00"};
+        for (String t : times) {
+            assertEquals(t, parse("yyyy-MM-dd'T'HH:mm:ss", ROME, t), GpxParser.parseTime(t, ROME));
+        }
+    }
+
+    @Test
+    public void testLeapSecond() throws Exception {
+        // like a lenient SimpleDateFormat, the leap second rolls over into the next minute
+        long expected = parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "2017-01-01T00:00:00Z");
+        assertEquals(expected, GpxParser.parseTime("2016-12-31T23:59:60Z", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "2016-12-31T23:59:60Z"), GpxParser.parseTime("2016-12-31T23:59:60Z", UTC));
+        assertEquals(expected + 500, GpxParser.parseTime("2016-12-31T23:59:60.5Z", UTC));
+    }
+
+    @Test
+    public void testTimesBeforeEpoch() throws Exception {
+        // -1 is a valid time and must not be confused with an invalid one
+        assertEquals(-1L, GpxParser.parseTime("1969-12-31T23:59:59.999Z", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "1901-07-14T12:00:00Z"),
+                GpxParser.parseTime("1901-07-14T12:00:00Z", UTC));
+        assertEquals(parse("yyyy-MM-dd'T'HH:mm:ssX", UTC, "1600-02-29T12:00:00Z"),
+                GpxParser.parseTime("1600-02-29T12:00:00Z", UTC));
+    }
+
+    @Test
+    public void testInvalidTimes() throws Exception {
+        String[] invalidTimes = {"", "   ", "2008-04-05", "2008-04-05T19:24", "2008/04/05T19:24:50Z", "2008-04-05X19:24:50Z",
+                "2008-13-05T19:24:50Z", "2008-00-05T19:24:50Z", "2008-04-32T19:24:50Z", "2008-04-05T24:24:50Z",
+                "2008-04-05T19:60:50Z", "2008-04-05T19:24:61Z", "2008-04-05T19:24:50Q", "2008-04-05T19:24:50Zulu",
+                "2008-04-05T19:24:50+", "2008-04-05T19:24:50+2", "2008-04-05T19:24:50+02:0x", "2008-04-O5T19:24:50Z",
+                "not a time at all, but long enough"};
+        for (String time : invalidTimes) {
+            assertEquals("'" + time + "'", GpxParser.INVALID_TIME, GpxParser.parseTime(time, UTC));
+        }
+    }
+
+    @Test
+    public void testRandomTimes() throws Exception {
+        Random random = new Random(7);
+        // 1800-01-01 to 2200-01-01
+        long from = -5364662400000L;
+        long to = 7258118400000L;
+        for (int i = 0; i < 20000; i++) {
+            long time = from + (long) (random.nextDouble() * (to - from));
+            String utc = format("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", UTC, time);
+            assertEquals(utc, time, GpxParser.parseTime(utc, ROME));
+
+            String offset = format("yyyy-MM-dd'T'HH:mm:ss.SSSXXX", ROME, time);
+            assertEquals(offset, time, GpxParser.parseTime(offset, UTC));
+
+            String local = format("yyyy-MM-dd HH:mm:ss", ROME, time);
+            assertEquals(local, parse("yyyy-MM-dd HH:mm:ss", ROME, local), GpxParser.parseTime(local, ROME));
+        }
+    }
+}
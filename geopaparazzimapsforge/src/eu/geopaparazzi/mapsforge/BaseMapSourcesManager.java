@@ -22,7 +22,9 @@ import android.content.SharedPreferences.Editor;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 
@@ -31,6 +33,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -56,6 +59,7 @@ import eu.geopaparazzi.library.util.types.ESpatialDataSources;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.VectorLayerQueryModes;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialRasterTable;
+import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteCatalog;
 import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteLibraryConstants;
 import jsqlite.Exception;
 
@@ -76,6 +80,8 @@ public enum BaseMapSourcesManager {
     private AbstractSpatialTable selectedBaseMapTable = null;
 
     private HashMap<BaseMap, AbstractSpatialTable> mBaseMaps2TablesMap = new HashMap<>();
+    // the database files that have been read into mBaseMaps2TablesMap
+    private HashSet<String> mReadDatabasePaths = new HashSet<>();
 
     private File mMapnikFile;
 
@@ -120,14 +126,14 @@ public enum BaseMapSourcesManager {
                         selectedTileSourceType = baseMap.mapType;
 
                         setTileSource(selectedTileSourceType, selectedTableDatabasePath, selectedTableTitle);
-                        selectedBaseMapTable = mBaseMaps2TablesMap.get(baseMap);
+                        selectedBaseMapTable = getTable4BaseMap(baseMap);
                         break;
                     }
                 }
             } else {
                 for (BaseMap baseMap : baseMaps) {
                     if (baseMap.databasePath.equals(selectedTableDatabasePath)) {
-                        selectedBaseMapTable = mBaseMaps2TablesMap.get(baseMap);
+                        selectedBaseMapTable = getTable4BaseMap(baseMap);
                         break;
                     }
                 }
@@ -167,13 +173,17 @@ public enum BaseMapSourcesManager {
     }
 
     /**
-     * Reads the maps from preferences and extracts the tables necessary.
+     * Reads the maps from preferences.
+     * <p/>
+     * <p>The tables are not read here, but on first use through {@link #getTable4BaseMap(BaseMap)},
+     * so that only the files of the maps actually shown are opened.</p>
      *
      * @return the list of available BaseMaps.
      * @throws java.lang.Exception
      */
     private List<BaseMap> getBaseMapsFromPreferences() throws java.lang.Exception {
         mBaseMaps2TablesMap.clear();
+        mReadDatabasePaths.clear();
 
         List<BaseMap> baseMaps;
         if (ProfilesHandler.INSTANCE.getActiveProfile() == null) {
@@ -182,17 +192,31 @@ public enum BaseMapSourcesManager {
         } else {
             baseMaps = ProfilesHandler.INSTANCE.getBaseMaps();
         }
+        return baseMaps;
+    }
 
-        // TODO this is ugly right now, needs to be changed
-        for (BaseMap baseMap : baseMaps) {
-            List<AbstractSpatialTable> tables = collectTablesFromFile(new File(baseMap.databasePath));
-            for (AbstractSpatialTable table : tables) {
-                BaseMap tmpBaseMap = table2BaseMap(table);
-                if (!mBaseMaps2TablesMap.containsKey(tmpBaseMap))
-                    mBaseMaps2TablesMap.put(tmpBaseMap, table);
+    /**
+     * Get the table of a basemap, reading the tables of its file on first use.
+     *
+     * @param baseMap the basemap.
+     * @return the table or null if the file doesn't contain it.
+     */
+    private AbstractSpatialTable getTable4BaseMap(BaseMap baseMap) {
+        AbstractSpatialTable table = mBaseMaps2TablesMap.get(baseMap);
+        if (table == null && mReadDatabasePaths.add(baseMap.databasePath)) {
+            try {
+                List<AbstractSpatialTable> tables = collectTablesFromFile(new File(baseMap.databasePath));
+                for (AbstractSpatialTable fileTable : tables) {
+                    BaseMap tmpBaseMap = table2BaseMap(fileTable);
+                    if (!mBaseMaps2TablesMap.containsKey(tmpBaseMap))
+                        mBaseMaps2TablesMap.put(tmpBaseMap, fileTable);
+                }
+            } catch (java.lang.Exception e) {
+                GPLog.error(this, null, e);
             }
+            table = mBaseMaps2TablesMap.get(baseMap);
         }
-        return baseMaps;
+        return table;
     }
 
     public void saveBaseMapsToPreferences(List<BaseMap> baseMaps) throws JSONException {
@@ -237,7 +261,11 @@ public enum BaseMapSourcesManager {
     @NonNull
     private List<AbstractSpatialTable> collectTablesFromFile(File file) throws IOException, Exception {
 //        GPLog.addLogEntry(this, "Processing file: " + file);
-        List<AbstractSpatialTable> collectedTables = new ArrayList<>();
+        List<AbstractSpatialTable> collectedTables = getCatalogedTables(file);
+        if (collectedTables != null) {
+            return collectedTables;
+        }
+        collectedTables = new ArrayList<>();
             /*
              * add MAPURL TABLES
              */
@@ -291,9 +319,91 @@ public enum BaseMapSourcesManager {
             GPLog.error(this, "error reading file: " + file, e);
         }
 
+        catalogTables(file, collectedTables);
         return collectedTables;
     }
 
+    /**
+     * Checks if the tables of a file are kept in the {@link SpatialiteCatalog}.
+     * <p/>
+     * <p>Only map and mbtiles files are, the spatialite based databases are cataloged by their handler.</p>
+     *
+     * @param file the file.
+     * @return <code>true</code> if the file tables are cataloged.
+     */
+    private static boolean isCatalogedFile(File file) {
+        String name = file.getName();
+        return name.endsWith(ESpatialDataSources.MAP.getExtension()) || name.endsWith(ESpatialDataSources.MBTILES.getExtension());
+    }
+
+    /**
+     * Get the cataloged tables of a file, with their zoom range and bounds, without opening it.
+     *
+     * @param file the file.
+     * @return the tables or null if the file needs to be read.
+     */
+    private List<AbstractSpatialTable> getCatalogedTables(File file) {
+        if (!isCatalogedFile(file)) {
+            return null;
+        }
+        JSONArray tablesJson = SpatialiteCatalog.INSTANCE.getTables(file, SpatialiteCatalog.RASTER_TABLES);
+        if (tablesJson == null) {
+            return null;
+        }
+        List<AbstractSpatialTable> tables = new ArrayList<>();
+        try {
+            String databasePath = file.getAbsolutePath();
+            for (int i = 0; i < tablesJson.length(); i++) {
+                JSONObject tableJson = tablesJson.getJSONObject(i);
+                if (ESpatialDataSources.MAP.getTypeName().equals(tableJson.getString(SpatialiteCatalog.MAP_TYPE))) {
+                    // the style file is found next to the map file by the table
+                    MapTable table = new MapTable(databasePath, tableJson.getString(SpatialiteCatalog.TABLE_NAME),
+                            tableJson.getString(SpatialiteCatalog.SRID), tableJson.getInt(SpatialiteCatalog.MIN_ZOOM),
+                            tableJson.getInt(SpatialiteCatalog.MAX_ZOOM), tableJson.getDouble(SpatialiteCatalog.CENTER_X),
+                            tableJson.getDouble(SpatialiteCatalog.CENTER_Y), tableJson.getString(SpatialiteCatalog.TILE_QUERY),
+                            SpatialiteCatalog.boundsFromJson(tableJson));
+                    table.setDefaultZoom(tableJson.getInt(SpatialiteCatalog.DEFAULT_ZOOM));
+                    tables.add(table);
+                } else {
+                    tables.add(SpatialiteCatalog.rasterTableFromJson(databasePath, tableJson));
+                }
+            }
+        } catch (JSONException e) {
+            GPLog.error(this, "Ignoring catalog tables of: " + file, e);
+            return null;
+        }
+        return tables;
+    }
+
+    /**
+     * Store the tables read from a file in the {@link SpatialiteCatalog}.
+     *
+     * @param file   the file.
+     * @param tables the tables read from it.
+     */
+    private void catalogTables(File file, List<AbstractSpatialTable> tables) {
+        if (!isCatalogedFile(file) || tables.size() == 0) {
+            return;
+        }
+        try {
+            JSONArray tablesJson = new JSONArray();
+            for (AbstractSpatialTable table : tables) {
+                String tileQuery;
+                if (table instanceof MapTable) {
+                    tileQuery = ((MapTable) table).getTileQuery();
+                } else if (table instanceof SpatialRasterTable) {
+                    tileQuery = ((SpatialRasterTable) table).getTileQuery();
+                } else {
+                    return;
+                }
+                tablesJson.put(SpatialiteCatalog.tableToJson(table, tileQuery));
+            }
+            SpatialiteCatalog.INSTANCE.putRasterTables(file, tablesJson);
+        } catch (JSONException e) {
+            GPLog.error(this, null, e);
+        }
+    }
+
     /**
      * Create a raster handler for the given file.
      *
@@ -313,7 +423,8 @@ public enum BaseMapSourcesManager {
                     if (name.endsWith(ESpatialDataSources.MBTILES.getExtension())) {
                         sdb = new MbtilesDatabaseHandler(file.getAbsolutePath(), null);
                     } else {
-                        sdb = new SpatialiteDatabaseHandler(file.getAbsolutePath());
+                        // cataloged databases connect on first tile request
+                        sdb = new SpatialiteDatabaseHandler(file.getAbsolutePath(), true);
                     }
                     if (sdb.isValid()) {
                         return sdb;
@@ -356,17 +467,11 @@ public enum BaseMapSourcesManager {
      */
     public AbstractSpatialTable getSelectedBaseMapTable() {
         if (selectedBaseMapTable == null) {
-            if (mBaseMaps2TablesMap.size() == 0) {
-                try {
-                    getBaseMaps();
-                } catch (java.lang.Exception e) {
-                    GPLog.error(this, null, e);
-                }
-            }
             try {
                 BaseMap baseMap = null;
-                if (mBaseMaps2TablesMap.size() > 0) {
-                    baseMap = mBaseMaps2TablesMap.keySet().iterator().next();
+                List<BaseMap> availableBaseMaps = getBaseMaps();
+                if (availableBaseMaps.size() > 0) {
+                    baseMap = availableBaseMaps.get(0);
                 } else {
                     List<BaseMap> baseMaps = addBaseMapsFromFile(mMapnikFile);
                     if (baseMaps != null && baseMaps.size() > 0)
@@ -407,7 +512,7 @@ public enum BaseMapSourcesManager {
             selectedTileSourceType = baseMap.mapType;
             selectedTableDatabasePath = baseMap.databasePath;
             selectedTableTitle = baseMap.title;
-            selectedBaseMapTable = mBaseMaps2TablesMap.get(baseMap);
+            selectedBaseMapTable = getTable4BaseMap(baseMap);
         } catch (java.lang.Exception e) {
             GPLog.error(this, null, e);
             // fallback on mapnik
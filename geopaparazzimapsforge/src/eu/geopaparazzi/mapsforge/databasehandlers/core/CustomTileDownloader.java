@@ -18,11 +18,16 @@ import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
+import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
+import org.mapsforge.android.maps.mapgenerator.MultiWorkerMapGenerator;
 import org.mapsforge.android.maps.mapgenerator.tiledownloader.TileDownloader;
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tile;
@@ -40,12 +45,16 @@ import eu.geopaparazzi.library.network.NetworkUtilities;
 import eu.geopaparazzi.library.util.FileUtilities;
 import eu.geopaparazzi.library.util.MercatorUtils;
 import eu.geopaparazzi.spatialite.database.spatial.core.databasehandlers.MbtilesDatabaseHandler;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.TileRecord;
 
 /**
  * A MapGenerator that downloads tiles from the Mapnik server at OpenStreetMap.
+ * <p/>
+ * <p>Tiles can be downloaded by several MapWorkers at once, the worker instances
+ * share the configuration and the mbtiles database of this downloader.</p>
  */
 @SuppressWarnings("nls")
-public class CustomTileDownloader extends TileDownloader {
+public class CustomTileDownloader extends TileDownloader implements MultiWorkerMapGenerator {
 
     private static final int ZOOM_LEVEL_DIFF = 1;
 
@@ -116,15 +125,42 @@ public class CustomTileDownloader extends TileDownloader {
     private String description; // mbtiles specific
     private String format; // mbtiles specific
     private int i_force_unique = 0;
-    private MbtilesDatabaseHandler mbtilesDatabase = null;
+    private volatile MbtilesDatabaseHandler mbtilesDatabase = null;
+    /**
+     * Number of downloaded tiles collected before they are written to the mbtiles database.
+     */
+    private static final int MBTILES_INSERT_BATCH_SIZE = 16;
+    /**
+     * Milliseconds after which collected tiles are written, also if the batch is not full.
+     */
+    private static final long MBTILES_INSERT_DELAY = 2000;
+    /**
+     * Maximum number of collected tiles kept while the mbtiles database can't be written.
+     */
+    private static final int MBTILES_MAX_PENDING = MBTILES_INSERT_BATCH_SIZE * 8;
+    /**
+     * Guards the collected tiles, it is never held while the mbtiles database is read or written.
+     */
+    private final Object mbtilesLock = new Object();
+    /**
+     * Lets one batch at a time be written and keeps {@link #cleanup()} from closing the database under it.
+     */
+    private final Object mbtilesWriteLock = new Object();
+    private List<TileRecord> pendingMbtilesTiles = new ArrayList<TileRecord>();
+    /**
+     * The batch being written, its tiles can still be looked up.
+     */
+    private List<TileRecord> writingMbtilesTiles = Collections.emptyList();
+    private Timer mbtilesInsertTimer = null;
     private int i_tile_server = 0; // if no 'SSS' is found, server logic will not be called
+    private final Object tileServerLock = new Object();
     private GeoPoint centerPoint = new GeoPoint(0, 0);
 
     private String tilePart = "";
     private boolean isFile = false;
     private TILESCHEMA type = TILESCHEMA.google;
-    private boolean isConnectedToInternet;
-    private boolean doScaleTiles;
+    private volatile boolean isConnectedToInternet;
+    private volatile boolean doScaleTiles;
 
     private SharedPreferences preferences;
 
@@ -751,8 +787,29 @@ public class CustomTileDownloader extends TileDownloader {
         return ""; //$NON-NLS-1$
     }
 
+    /**
+     * Creates a downloader for another MapWorker, which shares the configuration and the
+     * mbtiles database of this one and is cleaned up together with it.
+     */
+    @Override
+    public MapGenerator createWorkerInstance() {
+        return new WorkerInstance(this);
+    }
+
     @Override
     public boolean executeJob(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+        return executeJob(mapGeneratorJob, bitmap, this.pixels);
+    }
+
+    /**
+     * Generates a tile, thread-safe as long as every thread uses its own pixel buffer.
+     *
+     * @param mapGeneratorJob the job that should be executed.
+     * @param bitmap          the bitmap for the generated map tile.
+     * @param pixels          the pixel buffer of the calling MapGenerator.
+     * @return <code>true</code> if the job was executed successfully.
+     */
+    private boolean executeJob(MapGeneratorJob mapGeneratorJob, Bitmap bitmap, int[] pixels) {
         try {
             Tile tile = mapGeneratorJob.tile;
             int tileSize = Tile.TILE_SIZE;
@@ -760,26 +817,25 @@ public class CustomTileDownloader extends TileDownloader {
             int zoom = tile.zoomLevel;
             int tileX = (int) tile.tileX;
             int tileYOsm = (int) tile.tileY;
-            if (mbtilesDatabase != null) { // try to retrieve this tile from the active mbtiles.db
-                if (mbtilesDatabase.getBitmapTile(tileX, tileYOsm, zoom, tileSize, bitmap)) {
+            MbtilesDatabaseHandler database = mbtilesDatabase;
+            if (database != null) { // try to retrieve this tile from the active mbtiles.db
+                if (database.getBitmapTile(tileX, tileYOsm, zoom, tileSize, bitmap)) {
                     // tile was found and the bitmap filled, return
                     // GPLog.androidLog(-1,"CustomTileDownloader.executeJob: name["+getName()
                     // +"] mbtiles_db["+mbtiles_db.getFileName()+"] tilePath["+i_zoom+"/"+i_tile_x+"/"+i_tile_y_osm+"] ");
                     return true;
                 }
+                // the tile may have been downloaded, but not yet written
+                if (getPendingMbtilesTile(tileX, tileYOsm, zoom, tileSize, bitmap, pixels)) {
+                    return true;
+                }
             }
             StringBuilder sb = new StringBuilder();
             if (!isFile) {
                 sb.append(PROTOCOL);
                 sb.append("://");
             }
-            String s_host_name = HOST_NAME;
-            if (i_tile_server > 0) {
-                s_host_name = s_host_name.replaceFirst(SSS_STR, String.valueOf(i_tile_server++)); //$NON-NLS-1$
-                if (i_tile_server > 2)
-                    i_tile_server = 1;
-            }
-            sb.append(s_host_name);
+            sb.append(getNextHostName());
             sb.append(tilePath);
             Bitmap decodedBitmap = null;
 
@@ -810,14 +866,16 @@ public class CustomTileDownloader extends TileDownloader {
             }
             // check if the input stream could be decoded into a bitmap
             if (decodedBitmap != null) {
-                if (mbtilesDatabase != null) {
+                if (database != null) {
                     // we have a valid image, store this to the active mbtiles.db
                     // [this must be done before recycle() is called]
                     // decodedBitmap == ARGB_8888 ; bitmap == RGB_565
-                    mbtilesDatabase.insertBitmapTile(tileX, tileYOsm, zoom, decodedBitmap, i_force_unique);
+                    if (addPendingMbtilesTile(database.createTileRecord(tileX, tileYOsm, zoom, decodedBitmap))) {
+                        insertPendingMbtilesTiles();
+                    }
                 }
                 // copy all pixels from the decoded bitmap to the color array
-                decodedBitmap.getPixels(this.pixels, 0, tileSize, 0, 0, tileSize, tileSize);
+                decodedBitmap.getPixels(pixels, 0, tileSize, 0, 0, tileSize, tileSize);
                 // GPLog.androidLog(-1,"CustomTileDownloader.executeJob: retrieved["+i_zoom+"/"+i_tile_x+"/"+i_tile_y_osm+"] ");
                 decodedBitmap.recycle();
             } else {
@@ -826,7 +884,7 @@ public class CustomTileDownloader extends TileDownloader {
                 }
             }
             // copy all pixels from the color array to the tile bitmap
-            bitmap.setPixels(this.pixels, 0, tileSize, 0, 0, tileSize, tileSize);
+            bitmap.setPixels(pixels, 0, tileSize, 0, 0, tileSize, tileSize);
             return true;
         } catch (UnknownHostException e) {
             GPLog.error(this, null, e);
@@ -837,6 +895,21 @@ public class CustomTileDownloader extends TileDownloader {
         }
     }
 
+    /**
+     * @return the host name, with the next tile server if the host name contains 'SSS'.
+     */
+    private String getNextHostName() {
+        synchronized (tileServerLock) {
+            if (i_tile_server <= 0) {
+                return HOST_NAME;
+            }
+            String s_host_name = HOST_NAME.replaceFirst(SSS_STR, String.valueOf(i_tile_server++)); //$NON-NLS-1$
+            if (i_tile_server > 2)
+                i_tile_server = 1;
+            return s_host_name;
+        }
+    }
+
     private static Bitmap resize(Bitmap bitmap, final int rx, final int ry, final int zoomLevelDiff, int mTileSizePixels) {
         int px = rx % (2 * zoomLevelDiff);
         int py = ry % (2 * zoomLevelDiff);
@@ -849,11 +922,145 @@ public class CustomTileDownloader extends TileDownloader {
         return bitmapResized;
     }
 
+    /**
+     * Collects a downloaded tile, the tiles are written when the batch is full or
+     * after {@link #MBTILES_INSERT_DELAY}, whatever comes first.
+     *
+     * @param tileRecord the downloaded tile.
+     * @return <code>true</code> if the batch is full and should be written.
+     */
+    private boolean addPendingMbtilesTile(TileRecord tileRecord) {
+        synchronized (mbtilesLock) {
+            pendingMbtilesTiles.add(tileRecord);
+            if (pendingMbtilesTiles.size() >= MBTILES_INSERT_BATCH_SIZE) {
+                return true;
+            }
+            if (pendingMbtilesTiles.size() == 1) {
+                scheduleMbtilesInsert();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writes the collected tiles after {@link #MBTILES_INSERT_DELAY}.
+     * <p/>
+     * <p>Must be called holding {@link #mbtilesLock}.</p>
+     */
+    private void scheduleMbtilesInsert() {
+        if (mbtilesDatabase == null) {
+            // cleaned up
+            return;
+        }
+        if (mbtilesInsertTimer == null) {
+            mbtilesInsertTimer = new Timer("CustomTileDownloader-mbtiles", true); //$NON-NLS-1$
+        }
+        mbtilesInsertTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                insertPendingMbtilesTiles();
+            }
+        }, MBTILES_INSERT_DELAY);
+    }
+
+    /**
+     * Fills the bitmap from a downloaded tile that has not been written yet.
+     *
+     * @return <code>true</code> if the tile was collected and the bitmap filled.
+     */
+    private boolean getPendingMbtilesTile(int tileX, int tileYOsm, int zoom, int tileSize, Bitmap bitmap, int[] pixels) {
+        TileRecord tileRecord;
+        synchronized (mbtilesLock) {
+            tileRecord = findMbtilesTile(pendingMbtilesTiles, tileX, tileYOsm, zoom);
+            if (tileRecord == null) {
+                tileRecord = findMbtilesTile(writingMbtilesTiles, tileX, tileYOsm, zoom);
+            }
+        }
+        if (tileRecord == null) {
+            return false;
+        }
+        Bitmap decodedBitmap = BitmapFactory.decodeByteArray(tileRecord.ba_tile_data, 0, tileRecord.ba_tile_data.length);
+        if (decodedBitmap == null) {
+            return false;
+        }
+        decodedBitmap.getPixels(pixels, 0, tileSize, 0, 0, tileSize, tileSize);
+        decodedBitmap.recycle();
+        bitmap.setPixels(pixels, 0, tileSize, 0, 0, tileSize, tileSize);
+        return true;
+    }
+
+    private static TileRecord findMbtilesTile(List<TileRecord> tileRecords, int tileX, int tileYOsm, int zoom) {
+        for (int i = tileRecords.size() - 1; i >= 0; i--) {
+            TileRecord tileRecord = tileRecords.get(i);
+            if (tileRecord.i_x == tileX && tileRecord.i_y_osm == tileYOsm && tileRecord.i_z == zoom) {
+                return tileRecord;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the collected downloaded tiles to the mbtiles database in one transaction.
+     * <p/>
+     * <p>The collected tiles are swapped out under {@link #mbtilesLock} and written without it,
+     * so that tiles can be read and collected in the meantime. If the batch can't be written,
+     * it is collected again and retried later.</p>
+     */
+    private void insertPendingMbtilesTiles() {
+        synchronized (mbtilesWriteLock) {
+            MbtilesDatabaseHandler database;
+            List<TileRecord> batch;
+            synchronized (mbtilesLock) {
+                database = mbtilesDatabase;
+                if (database == null || pendingMbtilesTiles.isEmpty()) {
+                    return;
+                }
+                batch = pendingMbtilesTiles;
+                pendingMbtilesTiles = new ArrayList<TileRecord>();
+                writingMbtilesTiles = batch;
+            }
+            int rc = database.insertTiles(batch, i_force_unique);
+            synchronized (mbtilesLock) {
+                writingMbtilesTiles = Collections.emptyList();
+                if (rc == 0 || database != mbtilesDatabase) {
+                    return;
+                }
+                // keep the batch ahead of the tiles collected in the meantime
+                batch.addAll(pendingMbtilesTiles);
+                int dropCount = batch.size() - MBTILES_MAX_PENDING;
+                if (dropCount > 0) {
+                    GPLog.addLogEntry(this, "Could not write " + dropCount + " downloaded tiles to " + database.getFileName());
+                    batch.subList(0, dropCount).clear();
+                }
+                pendingMbtilesTiles = batch;
+                scheduleMbtilesInsert();
+            }
+        }
+    }
+
     public void cleanup() {
-        if (mbtilesDatabase != null) {
+        MbtilesDatabaseHandler database;
+        List<TileRecord> batch;
+        synchronized (mbtilesLock) {
+            if (mbtilesInsertTimer != null) {
+                mbtilesInsertTimer.cancel();
+                mbtilesInsertTimer = null;
+            }
+            database = mbtilesDatabase;
+            mbtilesDatabase = null;
+            batch = pendingMbtilesTiles;
+            pendingMbtilesTiles = new ArrayList<TileRecord>();
+        }
+        if (database == null) {
+            return;
+        }
+        // waits for a batch being written
+        synchronized (mbtilesWriteLock) {
+            if (!batch.isEmpty() && database.insertTiles(batch, i_force_unique) != 0) {
+                GPLog.addLogEntry(this, "Could not write " + batch.size() + " downloaded tiles to " + database.getFileName());
+            }
             try {
-                mbtilesDatabase.close();
-                mbtilesDatabase = null;
+                database.close();
             } catch (Exception e) {
                 GPLog.error(this, null, e);
             }
@@ -925,4 +1132,51 @@ public class CustomTileDownloader extends TileDownloader {
         return i_rc;
     }
 
+    /**
+     * Downloads tiles for another MapWorker through the downloader it was created from,
+     * using its own pixel buffer. Only the original downloader closes the mbtiles database.
+     */
+    private static class WorkerInstance extends TileDownloader {
+        private final CustomTileDownloader tileDownloader;
+
+        WorkerInstance(CustomTileDownloader tileDownloader) {
+            super();
+            this.tileDownloader = tileDownloader;
+        }
+
+        @Override
+        public boolean executeJob(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+            return tileDownloader.executeJob(mapGeneratorJob, bitmap, this.pixels);
+        }
+
+        @Override
+        public String getHostName() {
+            return tileDownloader.getHostName();
+        }
+
+        @Override
+        public String getProtocol() {
+            return tileDownloader.getProtocol();
+        }
+
+        @Override
+        public String getTilePath(Tile tile) {
+            return tileDownloader.getTilePath(tile);
+        }
+
+        @Override
+        public GeoPoint getStartPoint() {
+            return tileDownloader.getStartPoint();
+        }
+
+        @Override
+        public Byte getStartZoomLevel() {
+            return tileDownloader.getStartZoomLevel();
+        }
+
+        @Override
+        public byte getZoomLevelMax() {
+            return tileDownloader.getZoomLevelMax();
+        }
+    }
 }
@@ -125,6 +125,14 @@ public abstract class MapActivity extends AppCompatActivity {
 		editor.apply();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		for (int i = 0, n = this.mapViews.size(); i < n; ++i) {
+			this.mapViews.get(i).onTrimMemory(level);
+		}
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
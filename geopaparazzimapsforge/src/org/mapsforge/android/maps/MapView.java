@@ -20,6 +20,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -41,7 +42,8 @@ import org.mapsforge.android.maps.mapgenerator.JobTheme;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorFactory;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
-import org.mapsforge.android.maps.mapgenerator.MapWorker;
+import org.mapsforge.android.maps.mapgenerator.MapWorkerPool;
+import org.mapsforge.android.maps.mapgenerator.PackFileTileCache;
 import org.mapsforge.android.maps.mapgenerator.TileCache;
 import org.mapsforge.android.maps.mapgenerator.databaserenderer.DatabaseRenderer;
 import org.mapsforge.android.maps.mapgenerator.databaserenderer.ExternalRenderTheme;
@@ -49,6 +51,8 @@ import org.mapsforge.android.maps.mapgenerator.tiledownloader.TileDownloader;
 import org.mapsforge.android.maps.overlay.Overlay;
 import org.mapsforge.android.maps.overlay.OverlayList;
 import org.mapsforge.android.maps.rendertheme.InternalRenderTheme;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Coordinates;
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.MapPosition;
 import org.mapsforge.core.model.Tile;
@@ -82,13 +86,31 @@ public class MapView extends ViewGroup {
 
     private static final float DEFAULT_TEXT_SCALE = 1;
     private static final int DEFAULT_TILE_CACHE_SIZE_FILE_SYSTEM = 100;
-    private static final int DEFAULT_TILE_CACHE_SIZE_IN_MEMORY = 20;
+
+    private static boolean packFileTileCacheEnabled;
+
+    /**
+     * @return true if MapView instances which are created afterwards use a {@link PackFileTileCache}.
+     */
+    public static synchronized boolean isPackFileTileCacheEnabled() {
+        return packFileTileCacheEnabled;
+    }
+
+    /**
+     * Chooses the persistent tile cache of the MapView instances which are created afterwards.
+     *
+     * @param enabled true to keep the tiles in a single {@link PackFileTileCache}, false for one file per tile in a
+     *                {@link FileSystemTileCache}.
+     */
+    public static synchronized void setPackFileTileCacheEnabled(boolean enabled) {
+        packFileTileCacheEnabled = enabled;
+    }
 
     private DebugSettings debugSettings;
     private TileCache fileSystemTileCache;
     private final FpsCounter fpsCounter;
     private final FrameBuffer frameBuffer;
-    private TileCache inMemoryTileCache;
+    private final InMemoryTileCache inMemoryTileCache;
     private JobParameters jobParameters;
     private final JobQueue jobQueue;
     private final MapController mapController;
@@ -98,7 +120,7 @@ public class MapView extends ViewGroup {
     private final MapMover mapMover;
     private final MapScaleBar mapScaleBar;
     private final MapViewPosition mapViewPosition;
-    private final MapWorker mapWorker;
+    private final MapWorkerPool mapWorkerPool;
     private final MapZoomControls mapZoomControls;
     private final List<Overlay> overlays;
     private final Projection projection;
@@ -145,12 +167,17 @@ public class MapView extends ViewGroup {
 
         this.debugSettings = new DebugSettings(false, false, false);
         try {
-            this.fileSystemTileCache = new FileSystemTileCache(DEFAULT_TILE_CACHE_SIZE_FILE_SYSTEM,
-                    mapActivity.getMapViewId());
+            if (isPackFileTileCacheEnabled()) {
+                this.fileSystemTileCache = new PackFileTileCache(DEFAULT_TILE_CACHE_SIZE_FILE_SYSTEM,
+                        mapActivity.getMapViewId());
+            } else {
+                this.fileSystemTileCache = new FileSystemTileCache(DEFAULT_TILE_CACHE_SIZE_FILE_SYSTEM,
+                        mapActivity.getMapViewId());
+            }
         } catch (Exception e) {
             GPLog.error(this, "ERROR:", e);
         }
-        this.inMemoryTileCache = new InMemoryTileCache(DEFAULT_TILE_CACHE_SIZE_IN_MEMORY);
+        this.inMemoryTileCache = new InMemoryTileCache(InMemoryTileCache.getDefaultCapacityInBytes());
         this.fpsCounter = new FpsCounter();
         this.frameBuffer = new FrameBuffer(this);
         this.jobParameters = new JobParameters(DEFAULT_RENDER_THEME, DEFAULT_TEXT_SCALE);
@@ -164,8 +191,8 @@ public class MapView extends ViewGroup {
         this.projection = new MapViewProjection(this);
         this.touchEventHandler = TouchEventHandler.getInstance(mapActivity, this);
 
-        this.mapWorker = new MapWorker(this);
-        this.mapWorker.start();
+        this.mapWorkerPool = new MapWorkerPool(this, MapWorkerPool.getDefaultSize());
+        this.mapWorkerPool.start();
 
         this.mapMover = new MapMover(this);
         this.mapMover.start();
@@ -225,17 +252,39 @@ public class MapView extends ViewGroup {
     /**
      * @return the in-memory tile cache which is used in this MapView.
      */
-    public TileCache getInMemoryTileCache() {
+    public InMemoryTileCache getInMemoryTileCache() {
         return this.inMemoryTileCache;
     }
 
     /**
-     * @param capacity the in-memory tile cache capacity to use.
+     * @param capacity the in-memory tile cache capacity to use, in number of tiles.
      */
     public void setInMemoryTileCacheSize(int capacity) {
-        this.inMemoryTileCache.destroy();
-        this.inMemoryTileCache = null;
-        this.inMemoryTileCache = new InMemoryTileCache(capacity);
+        this.inMemoryTileCache.setCapacity(capacity);
+    }
+
+    /**
+     * Releases memory of the in-memory tile cache and of the map file index cache, as requested by the system.
+     *
+     * @param level the trim level as passed to {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void onTrimMemory(int level) {
+        int divisor;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            // the process is likely to be killed soon
+            divisor = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            divisor = 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            divisor = 2;
+        } else {
+            return;
+        }
+        long capacityInBytes = this.inMemoryTileCache.getCapacityInBytes();
+        this.inMemoryTileCache.trimMemory(divisor == 0 ? 0 : capacityInBytes / divisor);
+        long indexCacheSize = MapDatabase.getIndexCacheSize();
+        this.mapDatabase.trimIndexCache(divisor == 0 ? 0 : indexCacheSize / divisor);
     }
 
     /**
@@ -245,6 +294,13 @@ public class MapView extends ViewGroup {
         return this.jobQueue;
     }
 
+    /**
+     * @return the pool of MapWorkers which generate the map tiles of this MapView.
+     */
+    public MapWorkerPool getMapWorkerPool() {
+        return this.mapWorkerPool;
+    }
+
     /**
      * @return the map database which is used for reading map files.
      * @throws UnsupportedOperationException if the current MapGenerator works with an Internet connection.
@@ -429,9 +485,7 @@ public class MapView extends ViewGroup {
         invalidateOnUiThread();
 
         this.jobQueue.requestSchedule();
-        synchronized (this.mapWorker) {
-            this.mapWorker.notify();
-        }
+        this.mapWorkerPool.notifyWorkers();
     }
 
     /**
@@ -481,22 +535,23 @@ public class MapView extends ViewGroup {
         }
 
         this.zoomAnimator.pause();
-        this.mapWorker.pause();
+        this.mapWorkerPool.pause();
         this.mapMover.pause();
 
         this.zoomAnimator.awaitPausing();
         this.mapMover.awaitPausing();
-        this.mapWorker.awaitPausing();
+        this.mapWorkerPool.awaitPausing();
 
         this.mapMover.stopMove();
         this.jobQueue.clear();
 
+        this.mapDatabase.closeFile();
+        FileOpenResult fileOpenResult = this.mapDatabase.openFile(mapFile);
+
         this.zoomAnimator.proceed();
-        this.mapWorker.proceed();
+        this.mapWorkerPool.proceed();
         this.mapMover.proceed();
 
-        this.mapDatabase.closeFile();
-        FileOpenResult fileOpenResult = this.mapDatabase.openFile(mapFile);
         if (fileOpenResult.isSuccess()) {
             this.mapFile = mapFile;
 
@@ -595,6 +650,38 @@ public class MapView extends ViewGroup {
         return success;
     }
 
+    /**
+     * Lets the MapWorkers load the index of the map file around the given position, before the map is moved there,
+     * for example to a bookmark. Has no effect if no map file is opened.
+     *
+     * @param geoPoint  the future center of the map.
+     * @param zoomLevel the future zoom level of the map.
+     */
+    public void warmIndexCache(GeoPoint geoPoint, byte zoomLevel) {
+        if (this.mapGenerator.requiresInternetConnection() || !this.mapDatabase.hasOpenFile() || getWidth() <= 0
+                || getHeight() <= 0) {
+            return;
+        }
+
+        // the area which will be visible, limited to the map
+        long mapSize = (long) Tile.TILE_SIZE << zoomLevel;
+        double pixelX = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(), zoomLevel);
+        double pixelY = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), zoomLevel);
+        double pixelLeft = Math.max(pixelX - (getWidth() >> 1), 0);
+        double pixelTop = Math.max(pixelY - (getHeight() >> 1), 0);
+        double pixelRight = Math.min(pixelX + (getWidth() >> 1), mapSize);
+        double pixelBottom = Math.min(pixelY + (getHeight() >> 1), mapSize);
+
+        double minLatitude = MercatorProjection.pixelYToLatitude(pixelBottom, zoomLevel);
+        double minLongitude = MercatorProjection.pixelXToLongitude(pixelLeft, zoomLevel);
+        double maxLatitude = MercatorProjection.pixelYToLatitude(pixelTop, zoomLevel);
+        double maxLongitude = MercatorProjection.pixelXToLongitude(pixelRight, zoomLevel);
+        BoundingBox boundingBox = new BoundingBox(Coordinates.degreesToMicrodegrees(minLatitude),
+                Coordinates.degreesToMicrodegrees(minLongitude), Coordinates.degreesToMicrodegrees(maxLatitude),
+                Coordinates.degreesToMicrodegrees(maxLongitude));
+        this.mapWorkerPool.warmIndexCache(boundingBox, zoomLevel);
+    }
+
     /**
      * Zooms in or out by the given amount of zoom levels.
      *
@@ -638,7 +725,7 @@ public class MapView extends ViewGroup {
             ((DatabaseRenderer) mapGenerator).setMapDatabase(this.mapDatabase);
         }
         this.mapGenerator = mapGenerator;
-        this.mapWorker.setMapGenerator(this.mapGenerator);
+        this.mapWorkerPool.setMapGenerator(this.mapGenerator);
     }
 
     @Override
@@ -707,11 +794,10 @@ public class MapView extends ViewGroup {
         this.overlays.clear();
 
         this.mapMover.interrupt();
-        this.mapWorker.interrupt();
         this.zoomAnimator.interrupt();
 
         try {
-            this.mapWorker.join();
+            this.mapWorkerPool.destroy();
         } catch (InterruptedException e) {
             // restore the interrupted status
             Thread.currentThread().interrupt();
@@ -753,13 +839,13 @@ public class MapView extends ViewGroup {
     }
 
     void onPause() {
-        this.mapWorker.pause();
+        this.mapWorkerPool.pause();
         this.mapMover.pause();
         this.zoomAnimator.pause();
     }
 
     void onResume() {
-        this.mapWorker.proceed();
+        this.mapWorkerPool.proceed();
         this.mapMover.proceed();
         this.zoomAnimator.proceed();
     }
@@ -187,7 +187,7 @@ public class FileSystemTileCache implements TileCache {
 		}
 	}
 
-	private final Bitmap bitmapGet;
+	private Bitmap bitmapGet;
 	private final ByteBuffer byteBuffer;
 	private final File cacheDirectory;
 	private long cacheId;
@@ -204,11 +204,19 @@ public class FileSystemTileCache implements TileCache {
 	 *             if the capacity is negative.
 	 */
 	public FileSystemTileCache(int capacity, int mapViewId) {
-		this.capacity = getCapacity(capacity);
+		this(getCapacity(capacity), createDirectory(Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ CACHE_DIRECTORY + mapViewId));
+	}
 
-		String externalStorageDirectory = Environment.getExternalStorageDirectory().getAbsolutePath();
-		String cacheDirectoryPath = externalStorageDirectory + CACHE_DIRECTORY + mapViewId;
-		this.cacheDirectory = createDirectory(cacheDirectoryPath);
+	/**
+	 * @param capacity
+	 *            the maximum number of entries in this cache.
+	 * @param cacheDirectory
+	 *            the existing directory of the cache files.
+	 */
+	FileSystemTileCache(int capacity, File cacheDirectory) {
+		this.capacity = capacity;
+		this.cacheDirectory = cacheDirectory;
 
 		Map<MapGeneratorJob, File> deserializedMap = deserializeMap(this.cacheDirectory);
 		if (deserializedMap == null) {
@@ -217,7 +225,6 @@ public class FileSystemTileCache implements TileCache {
 			this.map = deserializedMap;
 		}
 		this.byteBuffer = ByteBuffer.allocate(Tile.TILE_SIZE_IN_BYTES);
-		this.bitmapGet = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
 	}
 
 	@Override
@@ -252,43 +259,16 @@ public class FileSystemTileCache implements TileCache {
 
 	@Override
 	public synchronized Bitmap get(MapGeneratorJob mapGeneratorJob) {
-		if (this.capacity == 0) {
+		if (this.capacity == 0 || !readTile(mapGeneratorJob)) {
 			return null;
 		}
 
-		FileInputStream fileInputStream = null;
-		try {
-			File inputFile = this.map.get(mapGeneratorJob);
-            if (inputFile !=null) {
-                fileInputStream = new FileInputStream(inputFile);
-                byte[] array = this.byteBuffer.array();
-                int bytesRead = fileInputStream.read(array);
-
-                if (bytesRead == array.length) {
-                    this.byteBuffer.rewind();
-                    this.bitmapGet.copyPixelsFromBuffer(this.byteBuffer);
-                    return this.bitmapGet;
-                }
-            }else{
-                this.map.remove(mapGeneratorJob);
-                return null;
-            }
-			return null;
-		} catch (FileNotFoundException e) {
-			this.map.remove(mapGeneratorJob);
-			return null;
-		} catch (IOException e) {
-			LOGGER.log(Level.SEVERE, null, e);
-			return null;
-		} finally {
-			try {
-				if (fileInputStream != null) {
-					fileInputStream.close();
-				}
-			} catch (IOException e) {
-				LOGGER.log(Level.SEVERE, null, e);
-			}
+		if (this.bitmapGet == null) {
+			this.bitmapGet = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
 		}
+		this.byteBuffer.rewind();
+		this.bitmapGet.copyPixelsFromBuffer(this.byteBuffer);
+		return this.bitmapGet;
 	}
 
 	@Override
@@ -307,6 +287,101 @@ public class FileSystemTileCache implements TileCache {
 			return;
 		}
 
+		this.byteBuffer.rewind();
+		bitmap.copyPixelsToBuffer(this.byteBuffer);
+		writeTile(mapGeneratorJob);
+	}
+
+	@Override
+	public synchronized void setCapacity(int capacity) {
+		if (this.capacity == capacity) {
+			return;
+		}
+
+		this.capacity = getCapacity(capacity);
+		Map<MapGeneratorJob, File> newMap = createMap(this.capacity);
+		newMap.putAll(this.map);
+		this.map = newMap;
+	}
+
+	@Override
+	public synchronized void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	/**
+	 * Like {@link #get(MapGeneratorJob)}, but copies the pixels of the tile image into an array.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the key of the tile image.
+	 * @param pixels
+	 *            the array for the {@link Tile#TILE_SIZE_IN_BYTES} bytes of the tile image.
+	 * @return true if this cache contains a tile image for the given key, false otherwise.
+	 */
+	synchronized boolean getPixels(MapGeneratorJob mapGeneratorJob, byte[] pixels) {
+		if (this.capacity == 0 || !readTile(mapGeneratorJob)) {
+			return false;
+		}
+		System.arraycopy(this.byteBuffer.array(), 0, pixels, 0, Tile.TILE_SIZE_IN_BYTES);
+		return true;
+	}
+
+	/**
+	 * Like {@link #put(MapGeneratorJob, Bitmap)}, but takes the pixels of the tile image from an array.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the key of the tile image.
+	 * @param pixels
+	 *            the {@link Tile#TILE_SIZE_IN_BYTES} bytes of the tile image.
+	 */
+	synchronized void putPixels(MapGeneratorJob mapGeneratorJob, byte[] pixels) {
+		if (this.capacity == 0) {
+			return;
+		}
+
+		this.byteBuffer.rewind();
+		this.byteBuffer.put(pixels, 0, Tile.TILE_SIZE_IN_BYTES);
+		writeTile(mapGeneratorJob);
+	}
+
+	/**
+	 * Reads the tile image of the given key into the byte buffer.
+	 * 
+	 * @return true if the byte buffer contains the tile image.
+	 */
+	private boolean readTile(MapGeneratorJob mapGeneratorJob) {
+		File inputFile = this.map.get(mapGeneratorJob);
+		if (inputFile == null) {
+			return false;
+		}
+
+		FileInputStream fileInputStream = null;
+		try {
+			fileInputStream = new FileInputStream(inputFile);
+			byte[] array = this.byteBuffer.array();
+			int bytesRead = fileInputStream.read(array);
+			return bytesRead == array.length;
+		} catch (FileNotFoundException e) {
+			this.map.remove(mapGeneratorJob);
+			return false;
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			return false;
+		} finally {
+			try {
+				if (fileInputStream != null) {
+					fileInputStream.close();
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.SEVERE, null, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the tile image in the byte buffer to a new file.
+	 */
+	private void writeTile(MapGeneratorJob mapGeneratorJob) {
 		FileOutputStream fileOutputStream = null;
 		try {
 			File outputFile;
@@ -315,8 +390,6 @@ public class FileSystemTileCache implements TileCache {
 				outputFile = new File(this.cacheDirectory, this.cacheId + IMAGE_FILE_NAME_EXTENSION);
 			} while (outputFile.exists());
 
-			this.byteBuffer.rewind();
-			bitmap.copyPixelsToBuffer(this.byteBuffer);
 			byte[] array = this.byteBuffer.array();
 
 			File parentFile = outputFile.getParentFile();
@@ -343,21 +416,4 @@ public class FileSystemTileCache implements TileCache {
 			}
 		}
 	}
-
-	@Override
-	public synchronized void setCapacity(int capacity) {
-		if (this.capacity == capacity) {
-			return;
-		}
-
-		this.capacity = getCapacity(capacity);
-		Map<MapGeneratorJob, File> newMap = createMap(this.capacity);
-		newMap.putAll(this.map);
-		this.map = newMap;
-	}
-
-	@Override
-	public synchronized void setPersistent(boolean persistent) {
-		this.persistent = persistent;
-	}
 }
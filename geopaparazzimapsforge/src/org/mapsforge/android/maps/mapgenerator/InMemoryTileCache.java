@@ -14,78 +14,87 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.mapsforge.core.model.Tile;
 
-//import sun.security.krb5.Config;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 
 /**
- * A thread-safe cache for tile images with a fixed size and LRU policy.
+ * A thread-safe cache for tile images with a memory budget and LRU policy.
+ * <p>
+ * Tile images can be handed over with {@link #swap(MapGeneratorJob, Bitmap)}, in which case the cache keeps the given
+ * bitmap and returns a replacement to draw the next tile into, so that no pixels are copied. Bitmaps removed from the
+ * cache are kept in small pools, one per bitmap configuration, and reused as replacements.
  */
 public class InMemoryTileCache implements TileCache {
 	/**
-	 * Load factor of the internal HashMap.
+	 * Share of the maximum heap size which is used by default.
 	 */
-	private static final float LOAD_FACTOR = 0.6f;
+	private static final int DEFAULT_HEAP_SHARE = 16;
 
-	private static List<Bitmap> createBitmapPool(int poolSize) {
-		List<Bitmap> bitmaps = new ArrayList<>();
+	/**
+	 * Maximum number of unused bitmaps kept per bitmap configuration.
+	 */
+	private static final int MAXIMUM_POOL_SIZE = 4;
 
-		for (int i = 0; i < poolSize; ++i) {
-			Bitmap bitmap = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
-			bitmaps.add(bitmap);
-		}
+	/**
+	 * Minimum number of RGB_565 tiles which fit in the default capacity.
+	 */
+	private static final int MINIMUM_DEFAULT_TILES = 20;
 
-		return bitmaps;
+	/**
+	 * @return a capacity in bytes derived from the memory available to the application.
+	 */
+	public static long getDefaultCapacityInBytes() {
+		long capacityInBytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_SHARE;
+		return Math.max(capacityInBytes, (long) MINIMUM_DEFAULT_TILES * Tile.TILE_SIZE_IN_BYTES);
 	}
 
-	private static Map<MapGeneratorJob, Bitmap> createMap(final int mapCapacity, final List<Bitmap> bitmapPool) {
-		int initialCapacity = (int) (mapCapacity / LOAD_FACTOR) + 2;
-
-		return new LinkedHashMap<MapGeneratorJob, Bitmap>(initialCapacity, LOAD_FACTOR, true) {
-			private static final long serialVersionUID = 1L;
-
-			@Override
-			protected boolean removeEldestEntry(Map.Entry<MapGeneratorJob, Bitmap> eldestEntry) {
-				if (size() > mapCapacity) {
-					remove(eldestEntry.getKey());
-					bitmapPool.add(eldestEntry.getValue());
-				}
-				return false;
-			}
-		};
+	private static int getSizeInBytes(Bitmap bitmap) {
+		return bitmap.getByteCount();
 	}
 
-	private static int getCapacity(int capacity) {
-		if (capacity < 0) {
-			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+	private static void recycle(List<Bitmap> bitmaps) {
+		for (Bitmap bitmap : bitmaps) {
+			bitmap.recycle();
 		}
-		return capacity;
+		bitmaps.clear();
 	}
 
-	private final List<Bitmap> bitmapPool;
-	private final ByteBuffer byteBuffer;
-	private final int capacity;
-	private final Map<MapGeneratorJob, Bitmap> map;
+	private final Canvas canvas;
+	private long capacityInBytes;
+	private final Paint copyPaint;
+	private final LinkedHashMap<MapGeneratorJob, Bitmap> map;
+	private final Map<Config, List<Bitmap>> pools;
+	private long sizeInBytes;
 
 	/**
-	 * @param capacity
-	 *            the maximum number of entries in this cache.
+	 * @param capacityInBytes
+	 *            the maximum memory used by the tile images in this cache.
 	 * @throws IllegalArgumentException
 	 *             if the capacity is negative.
 	 */
-	public InMemoryTileCache(int capacity) {
-		this.capacity = getCapacity(capacity);
-		this.bitmapPool = createBitmapPool(this.capacity + 1);
-		this.map = createMap(this.capacity, this.bitmapPool);
-		this.byteBuffer = ByteBuffer.allocate(Tile.TILE_SIZE_IN_BYTES);
+	public InMemoryTileCache(long capacityInBytes) {
+		if (capacityInBytes < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacityInBytes);
+		}
+		this.capacityInBytes = capacityInBytes;
+		this.map = new LinkedHashMap<>(16, 0.75f, true);
+		this.pools = new EnumMap<>(Config.class);
+		this.canvas = new Canvas();
+		this.copyPaint = new Paint();
+		this.copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
 	}
 
 	@Override
@@ -95,6 +104,9 @@ public class InMemoryTileCache implements TileCache {
 		}
 	}
 
+	/**
+	 * Removes and recycles all tile images. The cache can still be used afterwards.
+	 */
 	@Override
 	public void destroy() {
 		synchronized (this.map) {
@@ -102,11 +114,11 @@ public class InMemoryTileCache implements TileCache {
 				bitmap.recycle();
 			}
 			this.map.clear();
+			this.sizeInBytes = 0;
 
-			for (Bitmap bitmap : this.bitmapPool) {
-				bitmap.recycle();
+			for (List<Bitmap> pool : this.pools.values()) {
+				recycle(pool);
 			}
-			this.bitmapPool.clear();
 		}
 	}
 
@@ -117,9 +129,32 @@ public class InMemoryTileCache implements TileCache {
 		}
 	}
 
+	/**
+	 * @return the number of RGB_565 tiles which fit in the memory budget of this cache.
+	 */
 	@Override
 	public int getCapacity() {
-		return this.capacity;
+		synchronized (this.map) {
+			return (int) Math.min(Integer.MAX_VALUE, this.capacityInBytes / Tile.TILE_SIZE_IN_BYTES);
+		}
+	}
+
+	/**
+	 * @return the maximum memory used by the tile images in this cache.
+	 */
+	public long getCapacityInBytes() {
+		synchronized (this.map) {
+			return this.capacityInBytes;
+		}
+	}
+
+	/**
+	 * @return the memory currently used by the tile images in this cache, without the pooled bitmaps.
+	 */
+	public long getSizeInBytes() {
+		synchronized (this.map) {
+			return this.sizeInBytes;
+		}
 	}
 
 	@Override
@@ -127,35 +162,155 @@ public class InMemoryTileCache implements TileCache {
 		return false;
 	}
 
+	/**
+	 * Adds a copy of the tile image to this cache, the caller keeps the ownership of the given bitmap.
+	 */
 	@Override
 	public void put(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
-		if (this.capacity == 0) {
-			return;
-		}
-
 		synchronized (this.map) {
-			if (this.bitmapPool.isEmpty()) {
+			if (getSizeInBytes(bitmap) > this.capacityInBytes) {
 				return;
 			}
 
-			Bitmap pooledBitmap = this.bitmapPool.remove(this.bitmapPool.size() - 1);
-
-			this.byteBuffer.rewind();
-			bitmap.copyPixelsToBuffer(this.byteBuffer);
-			this.byteBuffer.rewind();
-			pooledBitmap.copyPixelsFromBuffer(this.byteBuffer);
+			// the configuration of some decoded bitmaps is unknown
+			Config config = bitmap.getConfig() == null ? Config.ARGB_8888 : bitmap.getConfig();
+			Bitmap copy = obtainBitmap(bitmap.getWidth(), bitmap.getHeight(), config);
+			this.canvas.setBitmap(copy);
+			this.canvas.drawBitmap(bitmap, 0, 0, this.copyPaint);
+			this.canvas.setBitmap(null);
 
-			this.map.put(mapGeneratorJob, pooledBitmap);
+			add(mapGeneratorJob, copy);
 		}
 	}
 
+	/**
+	 * Sets the memory budget to the given number of RGB_565 tiles.
+	 */
 	@Override
 	public void setCapacity(int capacity) {
-		throw new UnsupportedOperationException();
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		}
+		setCapacityInBytes((long) capacity * Tile.TILE_SIZE_IN_BYTES);
+	}
+
+	/**
+	 * Sets the memory budget of this cache. If the tile images in this cache need more memory, the least recently used
+	 * ones are discarded.
+	 *
+	 * @param capacityInBytes
+	 *            the maximum memory used by the tile images in this cache.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative.
+	 */
+	public void setCapacityInBytes(long capacityInBytes) {
+		if (capacityInBytes < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacityInBytes);
+		}
+		synchronized (this.map) {
+			this.capacityInBytes = capacityInBytes;
+			trimToSize(capacityInBytes);
+		}
 	}
 
 	@Override
 	public void setPersistent(boolean persistent) {
 		throw new UnsupportedOperationException();
 	}
+
+	/**
+	 * Adds the tile image to this cache and takes the ownership of it: the caller must not modify or recycle the given
+	 * bitmap anymore. In exchange the caller gets a bitmap with the same size and configuration, which is either a
+	 * pooled one or a new one, and whose content is undefined.
+	 *
+	 * @param mapGeneratorJob
+	 *            the key of the tile image.
+	 * @param bitmap
+	 *            the tile image.
+	 * @return the bitmap which the caller owns from now on, the given one if it could not be cached.
+	 */
+	public Bitmap swap(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+		synchronized (this.map) {
+			if (getSizeInBytes(bitmap) > this.capacityInBytes) {
+				return bitmap;
+			} else if (bitmap.getConfig() == null) {
+				// no replacement can be created
+				put(mapGeneratorJob, bitmap);
+				return bitmap;
+			}
+
+			add(mapGeneratorJob, bitmap);
+			return obtainBitmap(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		}
+	}
+
+	/**
+	 * Discards the least recently used tile images until the given memory is used at most and empties the pools. The
+	 * capacity stays the same, so the cache grows again when new tiles are added, as it is needed after
+	 * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+	 *
+	 * @param maximumSizeInBytes
+	 *            the maximum memory used by the remaining tile images.
+	 */
+	public void trimMemory(long maximumSizeInBytes) {
+		synchronized (this.map) {
+			trimToSize(maximumSizeInBytes);
+			for (List<Bitmap> pool : this.pools.values()) {
+				recycle(pool);
+			}
+		}
+	}
+
+	private void add(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+		Bitmap previous = this.map.put(mapGeneratorJob, bitmap);
+		this.sizeInBytes += getSizeInBytes(bitmap);
+		if (previous != null && previous != bitmap) {
+			this.sizeInBytes -= getSizeInBytes(previous);
+			release(previous);
+		}
+		trimToSize(this.capacityInBytes);
+	}
+
+	/**
+	 * @return a pooled bitmap with the given size and configuration or a new one if there is none.
+	 */
+	private Bitmap obtainBitmap(int width, int height, Config config) {
+		List<Bitmap> pool = this.pools.get(config);
+		if (pool != null) {
+			for (int i = pool.size() - 1; i >= 0; --i) {
+				Bitmap bitmap = pool.get(i);
+				if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+					return pool.remove(i);
+				}
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	private void release(Bitmap bitmap) {
+		if (bitmap.getConfig() == null) {
+			bitmap.recycle();
+			return;
+		}
+		List<Bitmap> pool = this.pools.get(bitmap.getConfig());
+		if (pool == null) {
+			pool = new ArrayList<>(MAXIMUM_POOL_SIZE);
+			this.pools.put(bitmap.getConfig(), pool);
+		}
+		if (pool.size() < MAXIMUM_POOL_SIZE) {
+			pool.add(bitmap);
+		} else {
+			bitmap.recycle();
+		}
+	}
+
+	private void trimToSize(long maximumSizeInBytes) {
+		Iterator<Bitmap> iterator = this.map.values().iterator();
+		while (this.sizeInBytes > maximumSizeInBytes && iterator.hasNext()) {
+			Bitmap eldest = iterator.next();
+			iterator.remove();
+			this.sizeInBytes -= getSizeInBytes(eldest);
+			release(eldest);
+		}
+	}
 }
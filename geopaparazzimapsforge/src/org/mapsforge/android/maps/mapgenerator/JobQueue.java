@@ -14,86 +14,246 @@
  */
 package org.mapsforge.android.maps.mapgenerator;
 
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.mapsforge.android.maps.MapView;
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.MapPosition;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
 
 /**
- * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them.
+ * A JobQueue keeps the list of pending jobs for a MapView and prioritizes them. It also keeps track of the jobs which
+ * are currently executed by a {@link MapWorker}, so that they are not scheduled twice.
+ * <p>
+ * The jobs are kept in a binary heap which stores the position of each job in the job itself, so that the priority of
+ * a queued job can be changed in O(log n). Jobs whose tiles are outside of the visible area plus a margin are not
+ * re-prioritized when the MapView moves but dropped when they reach the head of the queue.
  */
 public class JobQueue {
 	private static final int INITIAL_CAPACITY = 128;
 
+	/**
+	 * Number of tiles around the visible area whose jobs are kept when the MapView moves.
+	 */
+	private static final int VIEWPORT_MARGIN_TILES = 2;
+
 	private final MapView mapView;
-	private PriorityQueue<MapGeneratorJob> priorityQueue;
+	private MapGeneratorJob[] heap;
+	private int size;
+	private final Map<MapGeneratorJob, MapGeneratorJob> queuedJobs;
+	private final Set<MapGeneratorJob> runningJobs;
 	private boolean scheduleNeeded;
 
+	private boolean hasViewport;
+	private byte viewportZoomLevel;
+	private long viewportTileLeft;
+	private long viewportTileTop;
+	private long viewportTileRight;
+	private long viewportTileBottom;
+
 	/**
 	 * @param mapView
 	 *            the MapView whose jobs should be organized.
 	 */
 	public JobQueue(MapView mapView) {
 		this.mapView = mapView;
-		this.priorityQueue = new PriorityQueue<>(INITIAL_CAPACITY);
+		this.heap = new MapGeneratorJob[INITIAL_CAPACITY];
+		this.queuedJobs = new HashMap<>(INITIAL_CAPACITY);
+		this.runningJobs = new HashSet<>();
 	}
 
 	/**
-	 * Adds the given job to this queue. Does nothing if the given job is already in this queue.
+	 * Adds the given job to this queue. If the given job is already in this queue, its priority is updated. Does
+	 * nothing if the given job is currently executed.
 	 * 
 	 * @param mapGeneratorJob
 	 *            the job to be added to this queue.
 	 */
 	public synchronized void addJob(MapGeneratorJob mapGeneratorJob) {
-		if (!this.priorityQueue.contains(mapGeneratorJob)) {
-			this.priorityQueue.offer(mapGeneratorJob);
+		if (this.runningJobs.contains(mapGeneratorJob)) {
+			return;
 		}
+		double priority = TileScheduler.getPriority(mapGeneratorJob.tile, this.mapView);
+
+		MapGeneratorJob queuedJob = this.queuedJobs.get(mapGeneratorJob);
+		if (queuedJob != null) {
+			double oldPriority = queuedJob.getPriority();
+			queuedJob.setPriority(priority);
+			if (priority < oldPriority) {
+				siftUp(queuedJob.heapIndex);
+			} else if (priority > oldPriority) {
+				siftDown(queuedJob.heapIndex);
+			}
+			return;
+		}
+
+		mapGeneratorJob.setPriority(priority);
+		if (this.size == this.heap.length) {
+			this.heap = Arrays.copyOf(this.heap, this.size << 1);
+		}
+		this.heap[this.size] = mapGeneratorJob;
+		mapGeneratorJob.heapIndex = this.size;
+		++this.size;
+		siftUp(mapGeneratorJob.heapIndex);
+		this.queuedJobs.put(mapGeneratorJob, mapGeneratorJob);
 	}
 
 	/**
-	 * Removes all jobs from this queue.
+	 * Removes all jobs from this queue and cancels the jobs which are currently executed.
 	 */
 	public synchronized void clear() {
-		this.priorityQueue.clear();
+		for (int i = 0; i < this.size; ++i) {
+			this.heap[i].heapIndex = -1;
+			this.heap[i] = null;
+		}
+		this.size = 0;
+		this.queuedJobs.clear();
+		this.runningJobs.clear();
+	}
+
+	/**
+	 * Must be called by a {@link MapWorker} after a job returned by {@link #poll()} has been executed.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the executed job.
+	 */
+	public synchronized void finishJob(MapGeneratorJob mapGeneratorJob) {
+		this.runningJobs.remove(mapGeneratorJob);
+	}
+
+	/**
+	 * @param mapGeneratorJob
+	 *            a job returned by {@link #poll()}.
+	 * @return true if the job has been cancelled while it was executed and its result should be discarded.
+	 */
+	public synchronized boolean isCancelled(MapGeneratorJob mapGeneratorJob) {
+		return !this.runningJobs.contains(mapGeneratorJob);
 	}
 
 	/**
 	 * @return true if this queue contains no jobs, false otherwise.
 	 */
 	public synchronized boolean isEmpty() {
-		return this.priorityQueue.isEmpty();
+		return this.size == 0;
 	}
 
 	/**
+	 * Removes the most important job from this queue and marks it as running until {@link #finishJob} is called. Jobs
+	 * which are not near the visible area anymore are dropped.
+	 * 
 	 * @return the most important job from this queue or null, if empty.
 	 */
 	public synchronized MapGeneratorJob poll() {
 		if (this.scheduleNeeded) {
 			this.scheduleNeeded = false;
-			schedule();
+			updateViewport();
+		}
+		while (this.size > 0) {
+			MapGeneratorJob mapGeneratorJob = removeAt(0);
+			if (isNearViewport(mapGeneratorJob)) {
+				this.runningJobs.add(mapGeneratorJob);
+				return mapGeneratorJob;
+			}
 		}
-		return this.priorityQueue.poll();
+		return null;
 	}
 
 	/**
-	 * Request a scheduling of all jobs that are currently in this queue.
+	 * Request a scheduling of the jobs that are currently in this queue, as the visible area of the MapView changed.
 	 */
 	public synchronized void requestSchedule() {
 		this.scheduleNeeded = true;
 	}
 
+	private boolean isNearViewport(MapGeneratorJob mapGeneratorJob) {
+		if (!this.hasViewport) {
+			return true;
+		}
+		Tile tile = mapGeneratorJob.tile;
+		return tile.zoomLevel == this.viewportZoomLevel && tile.tileX >= this.viewportTileLeft
+				&& tile.tileX <= this.viewportTileRight && tile.tileY >= this.viewportTileTop
+				&& tile.tileY <= this.viewportTileBottom;
+	}
+
+	private MapGeneratorJob removeAt(int index) {
+		MapGeneratorJob removedJob = this.heap[index];
+		--this.size;
+		MapGeneratorJob lastJob = this.heap[this.size];
+		this.heap[this.size] = null;
+		if (index < this.size) {
+			this.heap[index] = lastJob;
+			lastJob.heapIndex = index;
+			siftDown(index);
+			if (this.heap[index] == lastJob) {
+				siftUp(index);
+			}
+		}
+		removedJob.heapIndex = -1;
+		this.queuedJobs.remove(removedJob);
+		return removedJob;
+	}
+
+	private void siftDown(int index) {
+		MapGeneratorJob mapGeneratorJob = this.heap[index];
+		int half = this.size >>> 1;
+		while (index < half) {
+			int child = (index << 1) + 1;
+			int right = child + 1;
+			if (right < this.size && this.heap[right].compareTo(this.heap[child]) < 0) {
+				child = right;
+			}
+			if (mapGeneratorJob.compareTo(this.heap[child]) <= 0) {
+				break;
+			}
+			this.heap[index] = this.heap[child];
+			this.heap[index].heapIndex = index;
+			index = child;
+		}
+		this.heap[index] = mapGeneratorJob;
+		mapGeneratorJob.heapIndex = index;
+	}
+
+	private void siftUp(int index) {
+		MapGeneratorJob mapGeneratorJob = this.heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >>> 1;
+			if (mapGeneratorJob.compareTo(this.heap[parent]) >= 0) {
+				break;
+			}
+			this.heap[index] = this.heap[parent];
+			this.heap[index].heapIndex = index;
+			index = parent;
+		}
+		this.heap[index] = mapGeneratorJob;
+		mapGeneratorJob.heapIndex = index;
+	}
+
 	/**
-	 * Schedules all jobs in this queue.
+	 * Stores the tile range of the visible area plus a margin, which is used to drop jobs lazily.
 	 */
-	private void schedule() {
-		PriorityQueue<MapGeneratorJob> tempJobQueue = new PriorityQueue<>(INITIAL_CAPACITY);
-
-		while (!this.priorityQueue.isEmpty()) {
-			MapGeneratorJob mapGeneratorJob = this.priorityQueue.poll();
-			double priority = TileScheduler.getPriority(mapGeneratorJob.tile, this.mapView);
-			mapGeneratorJob.setPriority(priority);
-			tempJobQueue.offer(mapGeneratorJob);
+	private void updateViewport() {
+		int width = this.mapView.getWidth();
+		int height = this.mapView.getHeight();
+		if (width <= 0 || height <= 0) {
+			this.hasViewport = false;
+			return;
 		}
+		MapPosition mapPosition = this.mapView.getMapPosition().getMapPosition();
+		GeoPoint geoPoint = mapPosition.geoPoint;
+		byte zoomLevel = mapPosition.zoomLevel;
+		double pixelLeft = MercatorProjection.longitudeToPixelX(geoPoint.getLongitude(), zoomLevel) - (width >> 1);
+		double pixelTop = MercatorProjection.latitudeToPixelY(geoPoint.getLatitude(), zoomLevel) - (height >> 1);
 
-		this.priorityQueue = tempJobQueue;
+		this.viewportZoomLevel = zoomLevel;
+		this.viewportTileLeft = MercatorProjection.pixelXToTileX(pixelLeft, zoomLevel) - VIEWPORT_MARGIN_TILES;
+		this.viewportTileTop = MercatorProjection.pixelYToTileY(pixelTop, zoomLevel) - VIEWPORT_MARGIN_TILES;
+		this.viewportTileRight = MercatorProjection.pixelXToTileX(pixelLeft + width, zoomLevel) + VIEWPORT_MARGIN_TILES;
+		this.viewportTileBottom = MercatorProjection.pixelYToTileY(pixelTop + height, zoomLevel) + VIEWPORT_MARGIN_TILES;
+		this.hasViewport = true;
 	}
 }
@@ -47,6 +47,11 @@ public class MapGeneratorJob implements Comparable<MapGeneratorJob>, Serializabl
 	private final Object mapGeneratorId;
 	private transient double priority;
 
+	/**
+	 * The position of this job in the heap of a {@link JobQueue} or -1, if it is not queued.
+	 */
+	transient int heapIndex = -1;
+
 	/**
 	 * Creates a new job for a MapGenerator with the given parameters.
 	 * 
@@ -139,6 +144,7 @@ public class MapGeneratorJob implements Comparable<MapGeneratorJob>, Serializabl
 	 */
 	private void calculateTransientValues() {
 		this.hashCodeValue = calculateHashCode();
+		this.heapIndex = -1;
 	}
 
 	private void readObject(ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException {
@@ -146,6 +152,14 @@ public class MapGeneratorJob implements Comparable<MapGeneratorJob>, Serializabl
 		calculateTransientValues();
 	}
 
+	Object getMapGeneratorId() {
+		return this.mapGeneratorId;
+	}
+
+	double getPriority() {
+		return this.priority;
+	}
+
 	void setPriority(double priority) {
 		this.priority = priority;
 	}
@@ -16,32 +16,67 @@ package org.mapsforge.android.maps.mapgenerator;
 
 import org.mapsforge.android.maps.MapView;
 import org.mapsforge.android.maps.PausableThread;
+import org.mapsforge.android.maps.mapgenerator.databaserenderer.DatabaseRenderer;
+import org.mapsforge.core.model.BoundingBox;
 import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.MapDatabase;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * A MapWorker uses a {@link MapGenerator} to generate map tiles. It runs in a separate thread to avoid blocking the UI
- * thread.
+ * thread. Several MapWorkers of a {@link MapWorkerPool} can share the same {@link JobQueue}.
  */
 public class MapWorker extends PausableThread {
 	private static final String THREAD_NAME = "MapWorker";
 
 	private TileCache fileSystemTileCache;
-	private TileCache inMemoryTileCache;
+	private InMemoryTileCache inMemoryTileCache;
 	private JobQueue jobQueue;
 	private MapGenerator mapGenerator;
 	private MapView mapView;
 	private Bitmap tileBitmap;
+	private final int workerIndex;
+
+	/**
+	 * The MapGenerator to switch to, applied on the thread of this MapWorker.
+	 */
+	private MapGenerator nextMapGenerator;
+	private boolean nextOwnsMapGenerator;
+	private volatile boolean configurationChanged;
+
+	private MapGenerator ownedMapGenerator;
+
+	/**
+	 * The area whose map file index should be loaded before the next job.
+	 */
+	private BoundingBox warmUpBoundingBox;
+	private byte warmUpZoomLevel;
+	private volatile boolean warmUpRequested;
+
+	private volatile long generatedTilesCount;
+	private volatile long generationNanos;
 
 	/**
 	 * @param mapView
 	 *            the MapView for which this MapWorker generates map tiles.
 	 */
 	public MapWorker(MapView mapView) {
+		this(mapView, 0);
+	}
+
+	/**
+	 * @param mapView
+	 *            the MapView for which this MapWorker generates map tiles.
+	 * @param workerIndex
+	 *            the index of this MapWorker in its pool.
+	 */
+	public MapWorker(MapView mapView, int workerIndex) {
 		super();
 		this.mapView = mapView;
+		this.workerIndex = workerIndex;
 		this.jobQueue = mapView.getJobQueue();
 		this.inMemoryTileCache = mapView.getInMemoryTileCache();
 		this.fileSystemTileCache = mapView.getFileSystemTileCache();
@@ -53,11 +88,70 @@ public class MapWorker extends PausableThread {
 	 *            the MapGenerator which this MapWorker should use.
 	 */
 	public void setMapGenerator(MapGenerator mapGenerator) {
-		this.mapGenerator = mapGenerator;
+		setMapGenerator(mapGenerator, false);
+	}
+
+	/**
+	 * Sets the MapGenerator which this MapWorker should use. The switch happens on the thread of this MapWorker before
+	 * the next job, so that a MapGenerator owned by this MapWorker is never cleaned up while it is generating a tile.
+	 * 
+	 * @param mapGenerator
+	 *            the MapGenerator which this MapWorker should use (may be null to make this MapWorker idle).
+	 * @param ownsMapGenerator
+	 *            true if the MapGenerator is used exclusively by this MapWorker and should be cleaned up by it.
+	 */
+	public synchronized void setMapGenerator(MapGenerator mapGenerator, boolean ownsMapGenerator) {
+		this.nextMapGenerator = mapGenerator;
+		this.nextOwnsMapGenerator = ownsMapGenerator;
+		this.configurationChanged = true;
+		notify();
+	}
+
+	/**
+	 * Loads the index of the given area of the map file into the index cache of the {@link MapDatabase} which this
+	 * MapWorker reads, on the thread of this MapWorker before the next job. Has no effect if no map file is read.
+	 * 
+	 * @param boundingBox
+	 *            the area to load.
+	 * @param zoomLevel
+	 *            the zoom level which will be read.
+	 */
+	public synchronized void warmIndexCache(BoundingBox boundingBox, byte zoomLevel) {
+		this.warmUpBoundingBox = boundingBox;
+		this.warmUpZoomLevel = zoomLevel;
+		this.warmUpRequested = true;
+		notify();
+	}
+
+	/**
+	 * @return the index of this MapWorker in its pool.
+	 */
+	public int getWorkerIndex() {
+		return this.workerIndex;
+	}
+
+	/**
+	 * @return the number of tiles generated by this MapWorker.
+	 */
+	public long getGeneratedTilesCount() {
+		return this.generatedTilesCount;
 	}
 
- 	@Override
- 	protected void afterRun() {
+	/**
+	 * @return the number of tiles this MapWorker generates per second while it is busy, 0 if no tile has been
+	 *         generated yet.
+	 */
+	public double getTilesPerSecond() {
+		long nanos = this.generationNanos;
+		if (nanos <= 0) {
+			return 0;
+		}
+		return this.generatedTilesCount * 1e9 / nanos;
+	}
+
+	@Override
+	protected void afterRun() {
+		applyConfiguration(null, false);
 		this.mapView = null;
 		this.mapGenerator = null;
 		this.fileSystemTileCache = null;
@@ -65,38 +159,77 @@ public class MapWorker extends PausableThread {
 		this.jobQueue = null;
 		this.tileBitmap.recycle();
 		this.tileBitmap = null;
- 	}
+	}
 
 	@Override
 	protected void doWork() {
-		MapGeneratorJob mapGeneratorJob = this.jobQueue.poll();
-
-		if (this.inMemoryTileCache.containsKey(mapGeneratorJob)) {
+		if (this.configurationChanged) {
+			MapGenerator generator;
+			boolean owns;
+			synchronized (this) {
+				this.configurationChanged = false;
+				generator = this.nextMapGenerator;
+				owns = this.nextOwnsMapGenerator;
+			}
+			applyConfiguration(generator, owns);
+		}
+		if (this.warmUpRequested) {
+			BoundingBox boundingBox;
+			byte zoomLevel;
+			synchronized (this) {
+				this.warmUpRequested = false;
+				boundingBox = this.warmUpBoundingBox;
+				zoomLevel = this.warmUpZoomLevel;
+			}
+			loadIndex(boundingBox, zoomLevel);
+		}
+		if (this.mapGenerator == null) {
 			return;
-		} else if (this.fileSystemTileCache.containsKey(mapGeneratorJob)) {
+		}
+
+		// another MapWorker may have taken the last job
+		MapGeneratorJob mapGeneratorJob = this.jobQueue.poll();
+		if (mapGeneratorJob == null) {
 			return;
 		}
 
-		boolean success;
 		try {
-			success = this.mapGenerator.executeJob(mapGeneratorJob, this.tileBitmap);
-		} catch (Exception e) {
-			Log.e(THREAD_NAME, "Error with tile: " + this.tileBitmap + ": " + e.getLocalizedMessage());
-			success = false;
-		}
+			if (this.inMemoryTileCache.containsKey(mapGeneratorJob)) {
+				return;
+			} else if (this.fileSystemTileCache.containsKey(mapGeneratorJob)) {
+				return;
+			}
+
+			long start = SystemClock.elapsedRealtimeNanos();
+			boolean success;
+			try {
+				success = this.mapGenerator.executeJob(mapGeneratorJob, this.tileBitmap);
+			} catch (Exception e) {
+				Log.e(THREAD_NAME, "Error with tile: " + this.tileBitmap + ": " + e.getLocalizedMessage());
+				success = false;
+			}
+			if (success) {
+				this.generationNanos += SystemClock.elapsedRealtimeNanos() - start;
+				this.generatedTilesCount++;
+			}
 
-		if (!isInterrupted() && success) {
-			if (this.mapView.getFrameBuffer().drawBitmap(mapGeneratorJob.tile, this.tileBitmap)) {
-				this.inMemoryTileCache.put(mapGeneratorJob, this.tileBitmap);
+			if (!isInterrupted() && success && !this.jobQueue.isCancelled(mapGeneratorJob)) {
+				boolean drawn = this.mapView.getFrameBuffer().drawBitmap(mapGeneratorJob.tile, this.tileBitmap);
+				this.mapView.postInvalidate();
+				this.fileSystemTileCache.put(mapGeneratorJob, this.tileBitmap);
+				if (drawn) {
+					// hand the tile over to the cache and render the next one into the bitmap given back
+					this.tileBitmap = this.inMemoryTileCache.swap(mapGeneratorJob, this.tileBitmap);
+				}
 			}
-			this.mapView.postInvalidate();
-			this.fileSystemTileCache.put(mapGeneratorJob, this.tileBitmap);
+		} finally {
+			this.jobQueue.finishJob(mapGeneratorJob);
 		}
 	}
 
 	@Override
 	protected String getThreadName() {
-		return THREAD_NAME;
+		return THREAD_NAME + "-" + this.workerIndex;
 	}
 
 	@Override
@@ -106,6 +239,26 @@ public class MapWorker extends PausableThread {
 
 	@Override
 	protected boolean hasWork() {
-		return !this.jobQueue.isEmpty();
+		return this.configurationChanged || this.warmUpRequested
+				|| (this.mapGenerator != null && !this.jobQueue.isEmpty());
+	}
+
+	private void loadIndex(BoundingBox boundingBox, byte zoomLevel) {
+		if (!(this.mapGenerator instanceof DatabaseRenderer)) {
+			return;
+		}
+		MapDatabase mapDatabase = ((DatabaseRenderer) this.mapGenerator).getMapDatabase();
+		if (mapDatabase == null || !mapDatabase.hasOpenFile()) {
+			return;
+		}
+		mapDatabase.warmIndexCache(boundingBox, zoomLevel);
+	}
+
+	private void applyConfiguration(MapGenerator generator, boolean owns) {
+		if (this.ownedMapGenerator != null && this.ownedMapGenerator != generator) {
+			this.ownedMapGenerator.cleanup();
+		}
+		this.ownedMapGenerator = owns ? generator : null;
+		this.mapGenerator = generator;
 	}
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator;
+
+import org.mapsforge.android.maps.MapView;
+import org.mapsforge.core.model.BoundingBox;
+
+/**
+ * A MapWorkerPool runs several {@link MapWorker} threads which share the {@link JobQueue} of a MapView.
+ * <p>
+ * The first MapWorker uses the MapGenerator of the MapView. The other MapWorkers only work if the MapGenerator
+ * implements {@link MultiWorkerMapGenerator}, each of them with its own copy.
+ */
+public class MapWorkerPool {
+	private static final int MAXIMUM_DEFAULT_SIZE = 4;
+
+	private static int defaultSize = Math.max(1,
+			Math.min(Runtime.getRuntime().availableProcessors(), MAXIMUM_DEFAULT_SIZE));
+
+	/**
+	 * @return the number of MapWorkers used by new MapView instances.
+	 */
+	public static synchronized int getDefaultSize() {
+		return defaultSize;
+	}
+
+	/**
+	 * Sets the number of MapWorkers used by MapView instances which are created afterwards.
+	 * 
+	 * @param size
+	 *            the number of MapWorkers, at least 1.
+	 * @throws IllegalArgumentException
+	 *             if the size is smaller than 1.
+	 */
+	public static synchronized void setDefaultSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1: " + size);
+		}
+		defaultSize = size;
+	}
+
+	private final MapWorker[] mapWorkers;
+
+	/**
+	 * @param mapView
+	 *            the MapView for which the MapWorkers generate map tiles.
+	 * @param size
+	 *            the number of MapWorkers.
+	 */
+	public MapWorkerPool(MapView mapView, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be at least 1: " + size);
+		}
+		this.mapWorkers = new MapWorker[size];
+		for (int i = 0; i < size; ++i) {
+			this.mapWorkers[i] = new MapWorker(mapView, i);
+		}
+	}
+
+	/**
+	 * Starts all MapWorkers.
+	 */
+	public void start() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.start();
+		}
+	}
+
+	/**
+	 * @param mapGenerator
+	 *            the MapGenerator which the MapWorkers should use.
+	 */
+	public void setMapGenerator(MapGenerator mapGenerator) {
+		this.mapWorkers[0].setMapGenerator(mapGenerator, false);
+		for (int i = 1; i < this.mapWorkers.length; ++i) {
+			if (mapGenerator instanceof MultiWorkerMapGenerator) {
+				MapGenerator workerInstance = ((MultiWorkerMapGenerator) mapGenerator).createWorkerInstance();
+				this.mapWorkers[i].setMapGenerator(workerInstance, true);
+			} else {
+				this.mapWorkers[i].setMapGenerator(null, false);
+			}
+		}
+	}
+
+	/**
+	 * Lets the first MapWorker load the index of the given area into the index cache of the map file, which is shared
+	 * by all MapWorkers.
+	 * 
+	 * @param boundingBox
+	 *            the area to load.
+	 * @param zoomLevel
+	 *            the zoom level which will be read.
+	 * @see MapWorker#warmIndexCache(BoundingBox, byte)
+	 */
+	public void warmIndexCache(BoundingBox boundingBox, byte zoomLevel) {
+		this.mapWorkers[0].warmIndexCache(boundingBox, zoomLevel);
+	}
+
+	/**
+	 * Wakes up all waiting MapWorkers to check the job queue.
+	 */
+	public void notifyWorkers() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			synchronized (mapWorker) {
+				mapWorker.notify();
+			}
+		}
+	}
+
+	/**
+	 * @see MapWorker#pause()
+	 */
+	public void pause() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.pause();
+		}
+	}
+
+	/**
+	 * @see MapWorker#awaitPausing()
+	 */
+	public void awaitPausing() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.awaitPausing();
+		}
+	}
+
+	/**
+	 * @see MapWorker#proceed()
+	 */
+	public void proceed() {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.proceed();
+		}
+	}
+
+	/**
+	 * Interrupts all MapWorkers and waits for them to finish.
+	 * 
+	 * @throws InterruptedException
+	 *             if the current thread has been interrupted while waiting.
+	 */
+	public void destroy() throws InterruptedException {
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.interrupt();
+		}
+		for (MapWorker mapWorker : this.mapWorkers) {
+			mapWorker.join();
+		}
+	}
+
+	/**
+	 * @return the number of MapWorkers in this pool.
+	 */
+	public int size() {
+		return this.mapWorkers.length;
+	}
+
+	/**
+	 * @param index
+	 *            the index of the MapWorker.
+	 * @return the number of tiles per second generated by the MapWorker while it is busy.
+	 */
+	public double getTilesPerSecond(int index) {
+		return this.mapWorkers[index].getTilesPerSecond();
+	}
+
+	/**
+	 * @param index
+	 *            the index of the MapWorker.
+	 * @return the number of tiles generated by the MapWorker.
+	 */
+	public long getGeneratedTilesCount(int index) {
+		return this.mapWorkers[index].getGeneratedTilesCount();
+	}
+}
@@ -12,16 +12,18 @@
  * You should have received a copy of the GNU Lesser General Public License along with
  * this program. If not, see <http://www.gnu.org/licenses/>.
  */
-package org.mapsforge.map.reader;
+package org.mapsforge.android.maps.mapgenerator;
 
-import java.util.List;
-
-class PoiWayBundle {
-	final List<PointOfInterest> pois;
-	final List<Way> ways;
-
-	PoiWayBundle(List<PointOfInterest> pois, List<Way> ways) {
-		this.pois = pois;
-		this.ways = ways;
-	}
+/**
+ * A MapGenerator which can create independent copies of itself, so that several {@link MapWorker} threads can
+ * generate map tiles at the same time. MapGenerators that do not implement this interface are only used by a single
+ * MapWorker.
+ */
+public interface MultiWorkerMapGenerator extends MapGenerator {
+	/**
+	 * Creates a new MapGenerator with the same configuration as this one but without shared mutable state.
+	 * 
+	 * @return the new MapGenerator, which will be used exclusively by one MapWorker.
+	 */
+	MapGenerator createWorkerInstance();
 }
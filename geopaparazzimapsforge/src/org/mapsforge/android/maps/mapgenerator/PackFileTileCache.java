@@ -0,0 +1,1079 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.mapsforge.android.AndroidUtils;
+import org.mapsforge.android.maps.DebugSettings;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.IOUtils;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Environment;
+
+/**
+ * A thread-safe cache for image files with a variable size and LRU policy, which keeps all tiles in a single pack
+ * file.
+ * <p>
+ * Tiles are appended to a data file, each record carrying its key and a CRC32 of the image. The index is an open
+ * addressing hash table in a memory mapped file, keyed by zoom level, tile coordinates and a hash of the map source and
+ * the rendering parameters, so that {@link #containsKey(MapGeneratorJob)} never touches the data file.
+ * <p>
+ * The index is only trusted if it was marked as clean, which happens when the cache has been idle for a while and
+ * when it is destroyed, otherwise it is rebuilt from the records of the data file, dropping everything after the first
+ * damaged record. Evicted tiles leave dead records in the data file, which is compacted once they outnumber the live
+ * ones.
+ * <p>
+ * Opening, rebuilding and compacting run on a background thread. Until the cache is open, all lookups are misses and
+ * new tiles are not stored.
+ */
+public class PackFileTileCache implements TileCache {
+	/**
+	 * Path to the caching folder on the external storage.
+	 */
+	private static final String CACHE_DIRECTORY = "/Android/data/org.mapsforge.android.maps/cache/";
+
+	private static final String COMPACTION_FILE_NAME = "tiles.pack.tmp";
+	static final String DATA_FILE_NAME = "tiles.pack";
+	static final String INDEX_FILE_NAME = "tiles.idx";
+
+	private static final int DATA_MAGIC = 0x47505054;
+	private static final int INDEX_MAGIC = 0x47505049;
+	private static final int INDEX_VERSION = 1;
+
+	/**
+	 * Record layout: magic, tile key, source key, image length, image CRC32, image.
+	 */
+	static final int RECORD_HEADER_SIZE = 4 + 8 + 8 + 4 + 4;
+	static final int RECORD_SIZE = RECORD_HEADER_SIZE + Tile.TILE_SIZE_IN_BYTES;
+
+	/**
+	 * Index header layout: magic, version, slot count, clean flag, data length, clock.
+	 */
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_SLOT_COUNT = 8;
+	static final int HEADER_CLEAN = 12;
+	private static final int HEADER_DATA_LENGTH = 16;
+	private static final int HEADER_CLOCK = 24;
+
+	/**
+	 * Slot layout: tile key, source key, record offset + 1, last access.
+	 */
+	private static final int SLOT_SIZE = 32;
+	private static final int SLOT_TILE_KEY = 0;
+	private static final int SLOT_SOURCE_KEY = 8;
+	private static final int SLOT_OFFSET = 16;
+	private static final int SLOT_ACCESS = 24;
+	private static final long SLOT_EMPTY = 0;
+	private static final long SLOT_DELETED = -1;
+
+	private static final int MINIMUM_SLOT_COUNT = 64;
+	private static final int MINIMUM_DEAD_RECORDS_FOR_COMPACTION = 16;
+
+	/**
+	 * Milliseconds without changes after which the index is marked as clean.
+	 */
+	private static final long CHECKPOINT_IDLE_TIME = 2000;
+
+	/**
+	 * Milliseconds after which a dirty index is marked as clean even if the cache is still being changed.
+	 */
+	private static final long CHECKPOINT_MAXIMUM_DELAY = 30000;
+
+	private static final ScheduledExecutorService EXECUTOR = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "PackFileTileCache");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private static final Logger LOGGER = Logger.getLogger(PackFileTileCache.class.getName());
+
+	/**
+	 * Waits until the background tasks which are due have finished.
+	 */
+	static void awaitPendingTasks() throws InterruptedException, ExecutionException {
+		EXECUTOR.submit(new Runnable() {
+			@Override
+			public void run() {
+				// tasks run in their order
+			}
+		}).get();
+	}
+
+	private static void copyRecord(FileChannel source, long from, FileChannel destination, long to)
+			throws IOException {
+		long transferred = 0;
+		while (transferred < RECORD_SIZE) {
+			destination.position(to + transferred);
+			long bytes = source.transferTo(from + transferred, RECORD_SIZE - transferred, destination);
+			if (bytes <= 0) {
+				throw new IOException("could not copy the tile record at: " + from);
+			}
+			transferred += bytes;
+		}
+	}
+
+	private static File createDirectory(String pathName) {
+		File file = new File(pathName);
+		if (!file.exists() && !file.mkdirs()) {
+			throw new IllegalArgumentException("could not create directory: " + file);
+		} else if (!file.isDirectory()) {
+			throw new IllegalArgumentException("not a directory: " + file);
+		} else if (!file.canRead()) {
+			throw new IllegalArgumentException("cannot read directory: " + file);
+		} else if (!file.canWrite()) {
+			throw new IllegalArgumentException("cannot write directory: " + file);
+		}
+		return file;
+	}
+
+	private static int getCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		} else if (AndroidUtils.applicationRunsOnAndroidEmulator()) {
+			return 0;
+		}
+		return capacity;
+	}
+
+	private static int getSlotCount(int entries) {
+		int slotCount = MINIMUM_SLOT_COUNT;
+		// keep the load factor below 0.5
+		while (slotCount < entries * 2) {
+			slotCount <<= 1;
+		}
+		return slotCount;
+	}
+
+	private static int getSlotHash(long tileKey, long sourceKey) {
+		long hash = tileKey * 0x9E3779B97F4A7C15L ^ sourceKey;
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		hash ^= hash >>> 33;
+		return (int) hash;
+	}
+
+	private static long getTileKey(Tile tile) {
+		return ((long) tile.zoomLevel << 56) | ((tile.tileX & 0xFFFFFFFL) << 28) | (tile.tileY & 0xFFFFFFFL);
+	}
+
+	private static long hashString(long hash, String string) {
+		for (int i = 0; i < string.length(); ++i) {
+			hash ^= string.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		// separator
+		hash ^= 0xFF;
+		hash *= 0x100000001B3L;
+		return hash;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer byteBuffer, long position) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			int read = channel.read(byteBuffer, position);
+			if (read < 0) {
+				throw new IOException("unexpected end of file at: " + position);
+			}
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer byteBuffer, long position) throws IOException {
+		while (byteBuffer.hasRemaining()) {
+			position += channel.write(byteBuffer, position);
+		}
+	}
+
+	private Bitmap bitmapGet;
+	private final File cacheDirectory;
+	private volatile int capacity;
+	private boolean checkpointScheduled;
+	private long clock;
+	private boolean compacting;
+	private final CRC32 crc32;
+	private FileChannel dataChannel;
+	private long dataLength;
+	private RandomAccessFile dataRandomAccessFile;
+	private int deletedCount;
+	private long dirtySince;
+	/**
+	 * Incremented by {@link #destroy()}, so that a pending or running open gives up.
+	 */
+	private final AtomicInteger generation;
+	private MappedByteBuffer index;
+	private RandomAccessFile indexRandomAccessFile;
+	private boolean indexDirty;
+	private long lastChange;
+	private DebugSettings lastDebugSettings;
+	private JobParameters lastJobParameters;
+	private Object lastMapGeneratorId;
+	private long lastSourceKey;
+	private int liveCount;
+	private final AtomicBoolean opening;
+	private volatile boolean persistent;
+	/**
+	 * True once the files are open, read without the monitor which is held while opening.
+	 */
+	private volatile boolean ready;
+	private final ByteBuffer recordHeader;
+	private int slotCount;
+	private final ByteBuffer tileBuffer;
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries in this cache.
+	 * @param mapViewId
+	 *            the ID of the MapView to separate caches for different MapViews.
+	 * @throws IllegalArgumentException
+	 *             if the capacity is negative or the cache directory cannot be used.
+	 */
+	public PackFileTileCache(int capacity, int mapViewId) {
+		this(getCapacity(capacity), createDirectory(Environment.getExternalStorageDirectory().getAbsolutePath()
+				+ CACHE_DIRECTORY + mapViewId));
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of entries in this cache.
+	 * @param cacheDirectory
+	 *            the existing directory of the cache files.
+	 */
+	PackFileTileCache(int capacity, File cacheDirectory) {
+		this.capacity = capacity;
+		this.cacheDirectory = cacheDirectory;
+
+		this.crc32 = new CRC32();
+		this.generation = new AtomicInteger();
+		this.opening = new AtomicBoolean();
+		this.recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		this.tileBuffer = ByteBuffer.allocate(Tile.TILE_SIZE_IN_BYTES);
+
+		if (this.capacity > 0) {
+			ensureOpen();
+		}
+	}
+
+	@Override
+	public boolean containsKey(MapGeneratorJob mapGeneratorJob) {
+		if (this.capacity == 0 || !ensureOpen()) {
+			return false;
+		}
+		synchronized (this) {
+			return this.dataChannel != null
+					&& findSlot(getTileKey(mapGeneratorJob.tile), getSourceKey(mapGeneratorJob)) >= 0;
+		}
+	}
+
+	@Override
+	public void destroy() {
+		// does not wait for a rebuild of the index
+		this.generation.incrementAndGet();
+		synchronized (this) {
+			this.ready = false;
+			if (this.dataChannel == null) {
+				if (!this.persistent) {
+					deleteFiles();
+				}
+				return;
+			}
+			if (this.persistent) {
+				try {
+					this.dataChannel.force(true);
+					markIndexClean();
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, null, e);
+				}
+				close();
+			} else {
+				close();
+				deleteFiles();
+			}
+		}
+	}
+
+	@Override
+	public Bitmap get(MapGeneratorJob mapGeneratorJob) {
+		if (this.capacity == 0 || !ensureOpen()) {
+			return null;
+		}
+		synchronized (this) {
+			if (this.dataChannel == null || !readTile(mapGeneratorJob)) {
+				return null;
+			}
+
+			if (this.bitmapGet == null) {
+				this.bitmapGet = Bitmap.createBitmap(Tile.TILE_SIZE, Tile.TILE_SIZE, Config.RGB_565);
+			}
+			this.tileBuffer.rewind();
+			this.bitmapGet.copyPixelsFromBuffer(this.tileBuffer);
+			return this.bitmapGet;
+		}
+	}
+
+	@Override
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return this.persistent;
+	}
+
+	@Override
+	public void put(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
+		if (this.capacity == 0 || !ensureOpen()) {
+			return;
+		}
+		synchronized (this) {
+			if (this.dataChannel == null) {
+				return;
+			}
+			this.tileBuffer.clear();
+			bitmap.copyPixelsToBuffer(this.tileBuffer);
+			writeTile(mapGeneratorJob);
+		}
+	}
+
+	@Override
+	public void setCapacity(int capacity) {
+		if (this.capacity == capacity) {
+			return;
+		}
+
+		this.capacity = getCapacity(capacity);
+		if (!this.ready) {
+			// trimmed by the open or by the next put
+			return;
+		}
+		synchronized (this) {
+			if (this.dataChannel != null && this.liveCount > this.capacity) {
+				evict();
+			}
+		}
+	}
+
+	@Override
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+	}
+
+	/**
+	 * Forces the data file to the disk and marks the index as clean, so that it is trusted when the cache is opened
+	 * again without a {@link #destroy()} in between. Tiles can be read and written while the data file is forced.
+	 * 
+	 * @return true if the index is clean, false if the cache is closed or has been changed meanwhile.
+	 */
+	boolean checkpoint() {
+		FileChannel channel;
+		long length;
+		synchronized (this) {
+			if (this.dataChannel == null) {
+				return false;
+			} else if (!this.indexDirty) {
+				return true;
+			}
+			channel = this.dataChannel;
+			length = this.dataLength;
+		}
+
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			return false;
+		}
+
+		synchronized (this) {
+			if (this.dataChannel != channel || this.dataLength != length) {
+				return false;
+			}
+			markIndexClean();
+			return true;
+		}
+	}
+
+	/**
+	 * Like {@link #get(MapGeneratorJob)}, but copies the pixels of the tile image into an array.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the key of the tile image.
+	 * @param pixels
+	 *            the array for the {@link Tile#TILE_SIZE_IN_BYTES} bytes of the tile image.
+	 * @return true if this cache contains a valid tile image for the given key, false otherwise.
+	 */
+	boolean getPixels(MapGeneratorJob mapGeneratorJob, byte[] pixels) {
+		if (this.capacity == 0 || !ensureOpen()) {
+			return false;
+		}
+		synchronized (this) {
+			if (this.dataChannel == null || !readTile(mapGeneratorJob)) {
+				return false;
+			}
+			System.arraycopy(this.tileBuffer.array(), 0, pixels, 0, Tile.TILE_SIZE_IN_BYTES);
+			return true;
+		}
+	}
+
+	/**
+	 * Like {@link #put(MapGeneratorJob, Bitmap)}, but takes the pixels of the tile image from an array.
+	 * 
+	 * @param mapGeneratorJob
+	 *            the key of the tile image.
+	 * @param pixels
+	 *            the {@link Tile#TILE_SIZE_IN_BYTES} bytes of the tile image.
+	 */
+	void putPixels(MapGeneratorJob mapGeneratorJob, byte[] pixels) {
+		if (this.capacity == 0 || !ensureOpen()) {
+			return;
+		}
+		synchronized (this) {
+			if (this.dataChannel == null) {
+				return;
+			}
+			this.tileBuffer.clear();
+			this.tileBuffer.put(pixels, 0, Tile.TILE_SIZE_IN_BYTES);
+			writeTile(mapGeneratorJob);
+		}
+	}
+
+	/**
+	 * Reads the tile image of the given key into the tile buffer, a damaged record is removed from the index.
+	 * 
+	 * @return true if the tile buffer contains the tile image.
+	 */
+	private boolean readTile(MapGeneratorJob mapGeneratorJob) {
+		long tileKey = getTileKey(mapGeneratorJob.tile);
+		long sourceKey = getSourceKey(mapGeneratorJob);
+		int slot = findSlot(tileKey, sourceKey);
+		if (slot < 0) {
+			return false;
+		}
+
+		int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+		long offset = this.index.getLong(slotPosition + SLOT_OFFSET) - 1;
+		try {
+			this.recordHeader.clear();
+			readFully(this.dataChannel, this.recordHeader, offset);
+			if (this.recordHeader.getInt(0) != DATA_MAGIC || this.recordHeader.getLong(4) != tileKey
+					|| this.recordHeader.getLong(12) != sourceKey
+					|| this.recordHeader.getInt(20) != Tile.TILE_SIZE_IN_BYTES) {
+				LOGGER.log(Level.SEVERE, "invalid tile record at: " + offset);
+				deleteSlot(slot);
+				return false;
+			}
+			this.tileBuffer.clear();
+			readFully(this.dataChannel, this.tileBuffer, offset + RECORD_HEADER_SIZE);
+			this.crc32.reset();
+			this.crc32.update(this.tileBuffer.array(), 0, Tile.TILE_SIZE_IN_BYTES);
+			if ((int) this.crc32.getValue() != this.recordHeader.getInt(24)) {
+				// a torn write since the index was marked as clean
+				LOGGER.log(Level.SEVERE, "invalid tile image at: " + offset);
+				deleteSlot(slot);
+				return false;
+			}
+			this.index.putLong(slotPosition + SLOT_ACCESS, ++this.clock);
+			return true;
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			deleteSlot(slot);
+			return false;
+		}
+	}
+
+	/**
+	 * Appends the tile image in the tile buffer to the data file and replaces the index entry of the given key.
+	 */
+	private void writeTile(MapGeneratorJob mapGeneratorJob) {
+		long tileKey = getTileKey(mapGeneratorJob.tile);
+		long sourceKey = getSourceKey(mapGeneratorJob);
+		try {
+			this.crc32.reset();
+			this.crc32.update(this.tileBuffer.array(), 0, Tile.TILE_SIZE_IN_BYTES);
+
+			this.recordHeader.clear();
+			this.recordHeader.putInt(DATA_MAGIC);
+			this.recordHeader.putLong(tileKey);
+			this.recordHeader.putLong(sourceKey);
+			this.recordHeader.putInt(Tile.TILE_SIZE_IN_BYTES);
+			this.recordHeader.putInt((int) this.crc32.getValue());
+			this.recordHeader.flip();
+			this.tileBuffer.rewind();
+
+			markIndexDirty();
+			long offset = this.dataLength;
+			writeFully(this.dataChannel, this.recordHeader, offset);
+			writeFully(this.dataChannel, this.tileBuffer, offset + RECORD_HEADER_SIZE);
+			this.dataLength += RECORD_SIZE;
+
+			int slot = findSlot(tileKey, sourceKey);
+			if (slot >= 0) {
+				// the old record becomes dead
+				deleteSlot(slot);
+			}
+			insert(tileKey, sourceKey, offset, ++this.clock);
+
+			if (this.liveCount > this.capacity) {
+				evict();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+		}
+	}
+
+	private void close() {
+		IOUtils.closeQuietly(this.dataRandomAccessFile);
+		IOUtils.closeQuietly(this.indexRandomAccessFile);
+		this.dataRandomAccessFile = null;
+		this.dataChannel = null;
+		this.indexRandomAccessFile = null;
+		this.index = null;
+		this.indexDirty = false;
+		this.ready = false;
+	}
+
+	/**
+	 * Rewrites the data file with the live records only. The records are copied without the monitor, the ones which
+	 * have been written meanwhile are appended before the new data file replaces the old one.
+	 * 
+	 * @param source
+	 *            the data file to compact, nothing happens if it has been closed meanwhile.
+	 */
+	private void compact(FileChannel source) {
+		File compactionFile = new File(this.cacheDirectory, COMPACTION_FILE_NAME);
+		RandomAccessFile compactionRandomAccessFile = null;
+		try {
+			long[] records;
+			int found = 0;
+			long snapshotLength;
+			synchronized (this) {
+				if (this.dataChannel != source) {
+					return;
+				}
+				snapshotLength = this.dataLength;
+				records = new long[this.liveCount];
+				for (int slot = 0; slot < this.slotCount; ++slot) {
+					long offset = this.index.getLong(HEADER_SIZE + slot * SLOT_SIZE + SLOT_OFFSET);
+					if (offset > 0) {
+						records[found++] = (offset - 1) / RECORD_SIZE;
+					}
+				}
+			}
+			Arrays.sort(records, 0, found);
+
+			compactionRandomAccessFile = new RandomAccessFile(compactionFile, "rw");
+			compactionRandomAccessFile.setLength(0);
+			FileChannel compactionChannel = compactionRandomAccessFile.getChannel();
+			for (int i = 0; i < found; ++i) {
+				copyRecord(source, records[i] * RECORD_SIZE, compactionChannel, (long) i * RECORD_SIZE);
+			}
+
+			synchronized (this) {
+				if (this.dataChannel != source) {
+					return;
+				}
+				markIndexDirty();
+				long[] newOffsets = new long[this.slotCount];
+				long newLength = (long) found * RECORD_SIZE;
+				for (int slot = 0; slot < this.slotCount; ++slot) {
+					long offset = this.index.getLong(HEADER_SIZE + slot * SLOT_SIZE + SLOT_OFFSET) - 1;
+					if (offset < 0) {
+						continue;
+					} else if (offset < snapshotLength) {
+						int record = Arrays.binarySearch(records, 0, found, offset / RECORD_SIZE);
+						if (record < 0) {
+							throw new IOException("missing tile record at: " + offset);
+						}
+						newOffsets[slot] = (long) record * RECORD_SIZE;
+					} else {
+						// written after the copy started
+						copyRecord(source, offset, compactionChannel, newLength);
+						newOffsets[slot] = newLength;
+						newLength += RECORD_SIZE;
+					}
+				}
+				compactionChannel.force(true);
+				IOUtils.closeQuietly(compactionRandomAccessFile);
+
+				File dataFile = new File(this.cacheDirectory, DATA_FILE_NAME);
+				IOUtils.closeQuietly(this.dataRandomAccessFile);
+				boolean renamed = compactionFile.renameTo(dataFile);
+				this.dataRandomAccessFile = new RandomAccessFile(dataFile, "rw");
+				this.dataChannel = this.dataRandomAccessFile.getChannel();
+				if (!renamed) {
+					// the old data and index are still valid
+					throw new IOException("could not replace the tile data file");
+				}
+				this.dataLength = newLength;
+				for (int slot = 0; slot < this.slotCount; ++slot) {
+					int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+					if (this.index.getLong(slotPosition + SLOT_OFFSET) > 0) {
+						this.index.putLong(slotPosition + SLOT_OFFSET, newOffsets[slot] + 1);
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+		} finally {
+			IOUtils.closeQuietly(compactionRandomAccessFile);
+			if (compactionFile.exists() && !compactionFile.delete()) {
+				compactionFile.deleteOnExit();
+			}
+			synchronized (this) {
+				this.compacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty index with the given number of slots, replacing the current one.
+	 */
+	private void createIndex(int newSlotCount) throws IOException {
+		IOUtils.closeQuietly(this.indexRandomAccessFile);
+		this.indexRandomAccessFile = new RandomAccessFile(new File(this.cacheDirectory, INDEX_FILE_NAME), "rw");
+		int length = HEADER_SIZE + newSlotCount * SLOT_SIZE;
+		this.indexRandomAccessFile.setLength(0);
+		this.indexRandomAccessFile.setLength(length);
+		this.index = this.indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		for (int position = 0; position < length; position += 8) {
+			this.index.putLong(position, 0);
+		}
+		this.index.putInt(HEADER_MAGIC, INDEX_MAGIC);
+		this.index.putInt(HEADER_VERSION, INDEX_VERSION);
+		this.index.putInt(HEADER_SLOT_COUNT, newSlotCount);
+		this.index.putInt(HEADER_CLEAN, 0);
+		this.index.putLong(HEADER_CLOCK, this.clock);
+		this.slotCount = newSlotCount;
+		this.liveCount = 0;
+		this.deletedCount = 0;
+		if (!this.indexDirty) {
+			this.indexDirty = true;
+			this.dirtySince = System.currentTimeMillis();
+		}
+	}
+
+	private void deleteFiles() {
+		String[] fileNames = { DATA_FILE_NAME, INDEX_FILE_NAME, COMPACTION_FILE_NAME };
+		for (String fileName : fileNames) {
+			File file = new File(this.cacheDirectory, fileName);
+			if (file.exists() && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+		if (!this.cacheDirectory.delete()) {
+			this.cacheDirectory.deleteOnExit();
+		}
+	}
+
+	private void deleteSlot(int slot) {
+		this.index.putLong(HEADER_SIZE + slot * SLOT_SIZE + SLOT_OFFSET, SLOT_DELETED);
+		--this.liveCount;
+		++this.deletedCount;
+	}
+
+	/**
+	 * Starts to open the files of the cache in the background if needed, the cache is usable again after
+	 * {@link #destroy()}.
+	 * 
+	 * @return true if the cache is open.
+	 */
+	private boolean ensureOpen() {
+		if (this.ready) {
+			return true;
+		} else if (this.opening.compareAndSet(false, true)) {
+			final int openGeneration = this.generation.get();
+			EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					open(openGeneration);
+				}
+			});
+		}
+		return false;
+	}
+
+	/**
+	 * Opens the files of the cache, rebuilding the index if it cannot be trusted.
+	 * 
+	 * @param openGeneration
+	 *            the generation when the open was requested, the open gives up if the cache is destroyed meanwhile.
+	 */
+	private synchronized void open(int openGeneration) {
+		try {
+			if (this.generation.get() != openGeneration || this.dataChannel != null) {
+				return;
+			}
+			if (!this.cacheDirectory.exists() && !this.cacheDirectory.mkdirs()) {
+				LOGGER.log(Level.SEVERE, "could not create directory: " + this.cacheDirectory);
+				return;
+			}
+			File compactionFile = new File(this.cacheDirectory, COMPACTION_FILE_NAME);
+			if (compactionFile.exists() && !compactionFile.delete()) {
+				compactionFile.deleteOnExit();
+			}
+			this.dataRandomAccessFile = new RandomAccessFile(new File(this.cacheDirectory, DATA_FILE_NAME), "rw");
+			this.dataChannel = this.dataRandomAccessFile.getChannel();
+			this.dataLength = this.dataChannel.size();
+			if (!openIndex() && !rebuildIndex(openGeneration)) {
+				close();
+				return;
+			}
+			if (this.liveCount > this.capacity) {
+				evict();
+			}
+			if (this.indexDirty) {
+				scheduleCheckpoint(CHECKPOINT_IDLE_TIME);
+			}
+			this.ready = true;
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, null, e);
+			close();
+		} finally {
+			this.opening.set(false);
+		}
+	}
+
+	/**
+	 * Removes the least recently used tiles, down to 7/8 of the capacity so that this does not happen on every put, and
+	 * starts a compaction once the dead records outnumber the live ones.
+	 */
+	private void evict() {
+		int target = this.capacity - Math.max(1, this.capacity / 8);
+		if (target < 0) {
+			target = 0;
+		}
+		int toRemove = this.liveCount - target;
+		if (toRemove <= 0) {
+			return;
+		}
+
+		long[] accesses = new long[this.liveCount];
+		int found = 0;
+		for (int slot = 0; slot < this.slotCount; ++slot) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			if (this.index.getLong(slotPosition + SLOT_OFFSET) > 0) {
+				accesses[found++] = this.index.getLong(slotPosition + SLOT_ACCESS);
+			}
+		}
+		Arrays.sort(accesses, 0, found);
+		long threshold = accesses[Math.min(toRemove, found) - 1];
+
+		markIndexDirty();
+		for (int slot = 0; slot < this.slotCount; ++slot) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			if (this.index.getLong(slotPosition + SLOT_OFFSET) > 0
+					&& this.index.getLong(slotPosition + SLOT_ACCESS) <= threshold) {
+				deleteSlot(slot);
+			}
+		}
+
+		long deadRecords = this.dataLength / RECORD_SIZE - this.liveCount;
+		if (deadRecords >= MINIMUM_DEAD_RECORDS_FOR_COMPACTION && deadRecords > this.liveCount && !this.compacting) {
+			this.compacting = true;
+			final FileChannel source = this.dataChannel;
+			EXECUTOR.execute(new Runnable() {
+				@Override
+				public void run() {
+					compact(source);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the slot of the key or -1 if the key is not in the index.
+	 */
+	private int findSlot(long tileKey, long sourceKey) {
+		int mask = this.slotCount - 1;
+		int slot = getSlotHash(tileKey, sourceKey) & mask;
+		for (int probes = 0; probes < this.slotCount; ++probes) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			long offset = this.index.getLong(slotPosition + SLOT_OFFSET);
+			if (offset == SLOT_EMPTY) {
+				return -1;
+			} else if (offset != SLOT_DELETED && this.index.getLong(slotPosition + SLOT_TILE_KEY) == tileKey
+					&& this.index.getLong(slotPosition + SLOT_SOURCE_KEY) == sourceKey) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a hash of the map source and rendering parameters which is stable across sessions.
+	 */
+	private long getSourceKey(MapGeneratorJob mapGeneratorJob) {
+		Object mapGeneratorId = mapGeneratorJob.getMapGeneratorId();
+		// the MapView reuses the same instances for all its jobs
+		if (mapGeneratorJob.jobParameters == this.lastJobParameters
+				&& mapGeneratorJob.debugSettings == this.lastDebugSettings
+				&& mapGeneratorId == this.lastMapGeneratorId) {
+			return this.lastSourceKey;
+		}
+
+		long hash = 0xCBF29CE484222325L;
+		hash = hashString(hash, String.valueOf(mapGeneratorId));
+		JobParameters jobParameters = mapGeneratorJob.jobParameters;
+		if (jobParameters != null) {
+			JobTheme jobTheme = jobParameters.jobTheme;
+			if (jobTheme instanceof Enum) {
+				hash = hashString(hash, jobTheme.getClass().getName() + ((Enum<?>) jobTheme).name());
+			} else if (jobTheme != null) {
+				// external themes hash their path and modification date
+				hash = hashString(hash, jobTheme.getClass().getName() + jobTheme.hashCode());
+			}
+			hash = hashString(hash, Integer.toString(Float.floatToIntBits(jobParameters.textScale)));
+		}
+		DebugSettings debugSettings = mapGeneratorJob.debugSettings;
+		if (debugSettings != null) {
+			hash = hashString(hash, "" + debugSettings.drawTileCoordinates + debugSettings.drawTileFrames
+					+ debugSettings.highlightWaterTiles);
+		}
+
+		this.lastJobParameters = mapGeneratorJob.jobParameters;
+		this.lastDebugSettings = mapGeneratorJob.debugSettings;
+		this.lastMapGeneratorId = mapGeneratorId;
+		this.lastSourceKey = hash;
+		return hash;
+	}
+
+	private void insert(long tileKey, long sourceKey, long offset, long access) throws IOException {
+		if ((this.liveCount + this.deletedCount + 1) * 2 > this.slotCount) {
+			resizeIndex(getSlotCount(this.liveCount + 1));
+		}
+		int mask = this.slotCount - 1;
+		int slot = getSlotHash(tileKey, sourceKey) & mask;
+		while (true) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			long slotOffset = this.index.getLong(slotPosition + SLOT_OFFSET);
+			if (slotOffset == SLOT_EMPTY || slotOffset == SLOT_DELETED) {
+				if (slotOffset == SLOT_DELETED) {
+					--this.deletedCount;
+				}
+				this.index.putLong(slotPosition + SLOT_TILE_KEY, tileKey);
+				this.index.putLong(slotPosition + SLOT_SOURCE_KEY, sourceKey);
+				this.index.putLong(slotPosition + SLOT_ACCESS, access);
+				this.index.putLong(slotPosition + SLOT_OFFSET, offset + 1);
+				++this.liveCount;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Stores the data length and marks the index as clean on disk, the data file must have been forced before.
+	 */
+	private void markIndexClean() {
+		this.index.putLong(HEADER_DATA_LENGTH, this.dataLength);
+		this.index.putLong(HEADER_CLOCK, this.clock);
+		// the slots reach the disk before the flag
+		this.index.force();
+		this.index.putInt(HEADER_CLEAN, 1);
+		this.index.force();
+		this.indexDirty = false;
+	}
+
+	/**
+	 * Marks the index as not clean on disk before its first change, so that a crash triggers a rebuild, and schedules
+	 * the checkpoint which marks it as clean again.
+	 */
+	private void markIndexDirty() {
+		this.lastChange = System.currentTimeMillis();
+		if (!this.indexDirty) {
+			this.index.putInt(HEADER_CLEAN, 0);
+			this.index.force();
+			this.indexDirty = true;
+			this.dirtySince = this.lastChange;
+			scheduleCheckpoint(CHECKPOINT_IDLE_TIME);
+		}
+	}
+
+	/**
+	 * @return true if the index file exists, matches the data file and was closed cleanly.
+	 */
+	private boolean openIndex() throws IOException {
+		File indexFile = new File(this.cacheDirectory, INDEX_FILE_NAME);
+		if (!indexFile.exists() || indexFile.length() < HEADER_SIZE + MINIMUM_SLOT_COUNT * SLOT_SIZE) {
+			return false;
+		}
+		this.indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+		long length = this.indexRandomAccessFile.length();
+		this.index = this.indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		int storedSlotCount = this.index.getInt(HEADER_SLOT_COUNT);
+		if (this.index.getInt(HEADER_MAGIC) != INDEX_MAGIC || this.index.getInt(HEADER_VERSION) != INDEX_VERSION
+				|| this.index.getInt(HEADER_CLEAN) != 1 || storedSlotCount < MINIMUM_SLOT_COUNT
+				|| Integer.bitCount(storedSlotCount) != 1 || length != HEADER_SIZE + (long) storedSlotCount * SLOT_SIZE
+				|| this.index.getLong(HEADER_DATA_LENGTH) != this.dataLength || this.dataLength % RECORD_SIZE != 0) {
+			return false;
+		}
+
+		this.slotCount = storedSlotCount;
+		this.clock = this.index.getLong(HEADER_CLOCK);
+		this.liveCount = 0;
+		this.deletedCount = 0;
+		for (int slot = 0; slot < this.slotCount; ++slot) {
+			long offset = this.index.getLong(HEADER_SIZE + slot * SLOT_SIZE + SLOT_OFFSET);
+			if (offset == SLOT_DELETED) {
+				++this.deletedCount;
+			} else if (offset != SLOT_EMPTY) {
+				++this.liveCount;
+			}
+		}
+		this.indexDirty = false;
+		return true;
+	}
+
+	/**
+	 * Rebuilds the index from the records of the data file, which is truncated at the first damaged record.
+	 * 
+	 * @param openGeneration
+	 *            the generation when the open was requested.
+	 * @return false if the cache has been destroyed meanwhile.
+	 */
+	private boolean rebuildIndex(int openGeneration) throws IOException {
+		LOGGER.log(Level.INFO, "rebuilding the tile cache index in: " + this.cacheDirectory);
+		this.clock = 0;
+		createIndex(getSlotCount((int) Math.min(Integer.MAX_VALUE / 4, this.dataLength / RECORD_SIZE)));
+
+		long offset = 0;
+		byte[] array = this.tileBuffer.array();
+		while (offset + RECORD_SIZE <= this.dataLength) {
+			if (this.generation.get() != openGeneration) {
+				return false;
+			}
+			this.recordHeader.clear();
+			readFully(this.dataChannel, this.recordHeader, offset);
+			if (this.recordHeader.getInt(0) != DATA_MAGIC || this.recordHeader.getInt(20) != Tile.TILE_SIZE_IN_BYTES) {
+				break;
+			}
+			this.tileBuffer.clear();
+			readFully(this.dataChannel, this.tileBuffer, offset + RECORD_HEADER_SIZE);
+			this.crc32.reset();
+			this.crc32.update(array, 0, Tile.TILE_SIZE_IN_BYTES);
+			if ((int) this.crc32.getValue() != this.recordHeader.getInt(24)) {
+				break;
+			}
+
+			long tileKey = this.recordHeader.getLong(4);
+			long sourceKey = this.recordHeader.getLong(12);
+			int slot = findSlot(tileKey, sourceKey);
+			if (slot >= 0) {
+				// a later record of the same tile wins
+				deleteSlot(slot);
+			}
+			insert(tileKey, sourceKey, offset, ++this.clock);
+			offset += RECORD_SIZE;
+		}
+
+		if (offset != this.dataLength) {
+			LOGGER.log(Level.INFO, "truncating the tile cache data at: " + offset);
+			this.dataChannel.truncate(offset);
+			this.dataLength = offset;
+		}
+		return true;
+	}
+
+	/**
+	 * Rehashes the live entries into an index with the given number of slots, dropping the deleted ones.
+	 */
+	private void resizeIndex(int newSlotCount) throws IOException {
+		int count = this.liveCount;
+		long[] tileKeys = new long[count];
+		long[] sourceKeys = new long[count];
+		long[] offsets = new long[count];
+		long[] accesses = new long[count];
+		int found = 0;
+		for (int slot = 0; slot < this.slotCount && found < count; ++slot) {
+			int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+			long offset = this.index.getLong(slotPosition + SLOT_OFFSET);
+			if (offset > 0) {
+				tileKeys[found] = this.index.getLong(slotPosition + SLOT_TILE_KEY);
+				sourceKeys[found] = this.index.getLong(slotPosition + SLOT_SOURCE_KEY);
+				offsets[found] = offset - 1;
+				accesses[found] = this.index.getLong(slotPosition + SLOT_ACCESS);
+				++found;
+			}
+		}
+
+		createIndex(newSlotCount);
+		for (int i = 0; i < found; ++i) {
+			insert(tileKeys[i], sourceKeys[i], offsets[i], accesses[i]);
+		}
+	}
+
+	/**
+	 * Marks the index as clean once the cache has been idle for a while, or after the maximum delay.
+	 */
+	private void runCheckpoint() {
+		synchronized (this) {
+			this.checkpointScheduled = false;
+			if (this.dataChannel == null || !this.indexDirty) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			long idleTime = now - this.lastChange;
+			if (idleTime < CHECKPOINT_IDLE_TIME && now - this.dirtySince < CHECKPOINT_MAXIMUM_DELAY) {
+				scheduleCheckpoint(CHECKPOINT_IDLE_TIME - idleTime);
+				return;
+			}
+		}
+
+		if (!checkpoint()) {
+			synchronized (this) {
+				if (this.dataChannel != null && this.indexDirty) {
+					scheduleCheckpoint(CHECKPOINT_IDLE_TIME);
+				}
+			}
+		}
+	}
+
+	private void scheduleCheckpoint(long delay) {
+		if (!this.checkpointScheduled) {
+			this.checkpointScheduled = true;
+			EXECUTOR.schedule(new Runnable() {
+				@Override
+				public void run() {
+					runCheckpoint();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+}
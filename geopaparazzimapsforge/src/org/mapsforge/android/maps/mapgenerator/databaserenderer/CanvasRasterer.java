@@ -145,13 +145,17 @@ class CanvasRasterer {
 
 						case WAY:
 							WayContainer wayContainer = (WayContainer) shapePaintContainer.shapeContainer;
-							float[][] coordinates = wayContainer.coordinates;
-							for (int j = 0; j < coordinates.length; ++j) {
+							float[] coordinates = wayContainer.coordinates;
+							int[] segmentOffsets = wayContainer.segmentOffsets;
+							int lastSegment = wayContainer.firstSegment + wayContainer.segmentCount;
+							for (int j = wayContainer.firstSegment; j < lastSegment; ++j) {
+								int start = segmentOffsets[j];
+								int end = segmentOffsets[j + 1];
 								// make sure that the coordinates sequence is not empty
-								if (coordinates[j].length > 2) {
-									this.path.moveTo(coordinates[j][0], coordinates[j][1]);
-									for (int i = 2; i < coordinates[j].length; i += 2) {
-										this.path.lineTo(coordinates[j][i], coordinates[j][i + 1]);
+								if (end - start > 2) {
+									this.path.moveTo(coordinates[start], coordinates[start + 1]);
+									for (int i = start + 2; i < end; i += 2) {
+										this.path.lineTo(coordinates[i], coordinates[i + 1]);
 									}
 								}
 							}
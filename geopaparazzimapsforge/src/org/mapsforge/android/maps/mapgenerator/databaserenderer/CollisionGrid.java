@@ -0,0 +1,156 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator.databaserenderer;
+
+import java.util.Arrays;
+
+import org.mapsforge.core.model.Tile;
+
+/**
+ * A uniform grid of rectangles which answers whether a rectangle intersects any of the added ones.
+ * <p>
+ * The grid covers the current tile and its eight neighbours, rectangles outside of this area are put in the border
+ * cells. All data is kept in primitive arrays which grow as needed and are reused after {@link #clear()}, so that one
+ * instance can serve all collision tests of a tile without allocations.
+ */
+class CollisionGrid {
+	private static final int CELL_SIZE_SHIFT = 5;
+	private static final int CELLS_PER_SIDE = 3 * Tile.TILE_SIZE >> CELL_SIZE_SHIFT;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int ORIGIN = -Tile.TILE_SIZE;
+
+	private static int getCell(int coordinate) {
+		int cell = (coordinate - ORIGIN) >> CELL_SIZE_SHIFT;
+		if (cell < 0) {
+			return 0;
+		} else if (cell >= CELLS_PER_SIDE) {
+			return CELLS_PER_SIDE - 1;
+		}
+		return cell;
+	}
+
+	/**
+	 * First entry of each cell or -1.
+	 */
+	private final int[] cellHeads;
+
+	/**
+	 * Rectangle and next entry of the same cell for each entry.
+	 */
+	private int[] entryNext;
+	private int[] entryRectangle;
+	private int entries;
+
+	private int[] bottoms;
+	private int[] lefts;
+	private int[] rights;
+	private int[] tops;
+	private int rectangles;
+
+	CollisionGrid() {
+		this.cellHeads = new int[CELLS_PER_SIDE * CELLS_PER_SIDE];
+		Arrays.fill(this.cellHeads, -1);
+		this.entryNext = new int[INITIAL_CAPACITY];
+		this.entryRectangle = new int[INITIAL_CAPACITY];
+		this.lefts = new int[INITIAL_CAPACITY];
+		this.tops = new int[INITIAL_CAPACITY];
+		this.rights = new int[INITIAL_CAPACITY];
+		this.bottoms = new int[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Adds a rectangle to this grid.
+	 */
+	void add(int left, int top, int right, int bottom) {
+		if (this.rectangles == this.lefts.length) {
+			int capacity = this.rectangles * 2;
+			this.lefts = Arrays.copyOf(this.lefts, capacity);
+			this.tops = Arrays.copyOf(this.tops, capacity);
+			this.rights = Arrays.copyOf(this.rights, capacity);
+			this.bottoms = Arrays.copyOf(this.bottoms, capacity);
+		}
+		int rectangle = this.rectangles++;
+		this.lefts[rectangle] = left;
+		this.tops[rectangle] = top;
+		this.rights[rectangle] = right;
+		this.bottoms[rectangle] = bottom;
+
+		// inverted rectangles can intersect as well
+		int fromColumn = getCell(Math.min(left, right));
+		int toColumn = getCell(Math.max(left, right));
+		int fromRow = getCell(Math.min(top, bottom));
+		int toRow = getCell(Math.max(top, bottom));
+		for (int row = fromRow; row <= toRow; ++row) {
+			for (int column = fromColumn; column <= toColumn; ++column) {
+				if (this.entries == this.entryNext.length) {
+					int capacity = this.entries * 2;
+					this.entryNext = Arrays.copyOf(this.entryNext, capacity);
+					this.entryRectangle = Arrays.copyOf(this.entryRectangle, capacity);
+				}
+				int cell = row * CELLS_PER_SIDE + column;
+				this.entryRectangle[this.entries] = rectangle;
+				this.entryNext[this.entries] = this.cellHeads[cell];
+				this.cellHeads[cell] = this.entries++;
+			}
+		}
+	}
+
+	/**
+	 * Removes all rectangles from this grid.
+	 */
+	void clear() {
+		if (this.entries > 0) {
+			Arrays.fill(this.cellHeads, -1);
+			this.entries = 0;
+		}
+		this.rectangles = 0;
+	}
+
+	/**
+	 * Tests the given rectangle with the same rules as {@link android.graphics.Rect#intersects(android.graphics.Rect,
+	 * android.graphics.Rect)}.
+	 *
+	 * @return true if the rectangle intersects at least one rectangle of this grid, false otherwise.
+	 */
+	boolean intersects(int left, int top, int right, int bottom) {
+		if (this.rectangles == 0) {
+			return false;
+		}
+
+		int fromColumn = getCell(Math.min(left, right));
+		int toColumn = getCell(Math.max(left, right));
+		int fromRow = getCell(Math.min(top, bottom));
+		int toRow = getCell(Math.max(top, bottom));
+		for (int row = fromRow; row <= toRow; ++row) {
+			for (int column = fromColumn; column <= toColumn; ++column) {
+				for (int entry = this.cellHeads[row * CELLS_PER_SIDE + column]; entry != -1; entry = this.entryNext[entry]) {
+					int rectangle = this.entryRectangle[entry];
+					if (this.lefts[rectangle] < right && left < this.rights[rectangle] && this.tops[rectangle] < bottom
+							&& top < this.bottoms[rectangle]) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if this grid contains no rectangle.
+	 */
+	boolean isEmpty() {
+		return this.rectangles == 0;
+	}
+}
@@ -27,6 +27,7 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.mapsforge.android.maps.mapgenerator.JobTheme;
 import org.mapsforge.android.maps.mapgenerator.MapGenerator;
 import org.mapsforge.android.maps.mapgenerator.MapGeneratorJob;
+import org.mapsforge.android.maps.mapgenerator.MultiWorkerMapGenerator;
 import org.mapsforge.android.maps.rendertheme.RenderCallback;
 import org.mapsforge.android.maps.rendertheme.RenderTheme;
 import org.mapsforge.android.maps.rendertheme.RenderThemeHandler;
@@ -34,10 +35,8 @@ import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.model.Tag;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.reader.MapDataBuffer;
 import org.mapsforge.map.reader.MapDatabase;
-import org.mapsforge.map.reader.MapReadResult;
-import org.mapsforge.map.reader.PointOfInterest;
-import org.mapsforge.map.reader.Way;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.xml.sax.SAXException;
 
@@ -48,7 +47,7 @@ import android.graphics.Paint;
 /**
  * A DatabaseRenderer renders map tiles by reading from a {@link MapDatabase}.
  */
-public class DatabaseRenderer implements MapGenerator, RenderCallback {
+public class DatabaseRenderer implements MultiWorkerMapGenerator, RenderCallback {
 	private static final Byte DEFAULT_START_ZOOM_LEVEL = Byte.valueOf((byte) 12);
 	private static final byte LAYERS = 11;
 	private static final Logger LOGGER = Logger.getLogger(DatabaseRenderer.class.getName());
@@ -56,8 +55,10 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	private static final double STROKE_INCREASE = 1.5;
 	private static final byte STROKE_MIN_ZOOM_LEVEL = 12;
 	private static final Tag TAG_NATURAL_WATER = new Tag("natural", "water");
-	private static final float[][] WATER_TILE_COORDINATES = new float[][] { { 0, 0, Tile.TILE_SIZE, 0, Tile.TILE_SIZE,
-			Tile.TILE_SIZE, 0, Tile.TILE_SIZE, 0, 0 } };
+	private static final float[] WATER_TILE_COORDINATES = new float[] { 0, 0, Tile.TILE_SIZE, 0, Tile.TILE_SIZE,
+			Tile.TILE_SIZE, 0, Tile.TILE_SIZE, 0, 0 };
+	private static final int[] WATER_TILE_SEGMENT_OFFSETS = new int[] { 0, WATER_TILE_COORDINATES.length };
+	private static final List<Tag> WATER_TILE_TAGS = Collections.singletonList(TAG_NATURAL_WATER);
 	private static final byte ZOOM_MAX = 22;
 
 	private static RenderTheme getRenderTheme(JobTheme jobTheme) {
@@ -81,11 +82,14 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	private final List<PointTextContainer> areaLabels;
 	private final CanvasRasterer canvasRasterer;
-	private float[][] coordinates;
+	private float[] coordinates;
+	private int coordinatesEnd;
+	private int coordinatesStart;
 	private Tile currentTile;
 	private List<List<ShapePaintContainer>> drawingLayers;
 	private final LabelPlacement labelPlacement;
 	private MapDatabase mapDatabase;
+	private final MapDataBuffer mapDataBuffer;
 	private List<PointTextContainer> nodes;
 	private final List<SymbolContainer> pointSymbols;
 	private float poiX;
@@ -95,6 +99,7 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	private byte previousZoomLevel;
 	private RenderTheme renderTheme;
 	private ShapeContainer shapeContainer;
+	private final List<Tag> tags;
 	private final List<WayTextContainer> wayNames;
 	private final List<List<List<ShapePaintContainer>>> ways;
 	private final List<SymbolContainer> waySymbols;
@@ -105,6 +110,8 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 	public DatabaseRenderer() {
 		this.canvasRasterer = new CanvasRasterer();
 		this.labelPlacement = new LabelPlacement();
+		this.mapDataBuffer = new MapDataBuffer();
+		this.tags = new ArrayList<>();
 
 		this.ways = new ArrayList<>(LAYERS);
 		this.wayNames = new ArrayList<>(64);
@@ -124,6 +131,17 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 		}
 	}
 
+	/**
+	 * Creates a new DatabaseRenderer which reads the same {@link MapDatabase} as this one. Reading map data from a
+	 * shared MapDatabase is thread-safe, and the MapView pauses all MapWorkers before it opens another map file.
+	 */
+	@Override
+	public MapGenerator createWorkerInstance() {
+		DatabaseRenderer databaseRenderer = new DatabaseRenderer();
+		databaseRenderer.setMapDatabase(this.mapDatabase);
+		return databaseRenderer;
+	}
+
 	@Override
 	public boolean executeJob(MapGeneratorJob mapGeneratorJob, Bitmap bitmap) {
 		this.currentTile = mapGeneratorJob.tile;
@@ -155,9 +173,8 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 			this.previousTextScale = textScale;
 		}
 
-		if (this.mapDatabase != null) {
-			MapReadResult mapReadResult = this.mapDatabase.readMapData(this.currentTile);
-			processReadMapData(mapReadResult);
+		if (this.mapDatabase != null && this.mapDatabase.readMapData(this.currentTile, this.mapDataBuffer)) {
+			processMapData();
 		}
 
 		this.nodes = this.labelPlacement.placeLabels(this.nodes, this.pointSymbols, this.areaLabels, this.currentTile);
@@ -222,13 +239,15 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	@Override
 	public void renderAreaCaption(String caption, float verticalOffset, Paint paint, Paint stroke) {
-		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates[0]);
+		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates,
+				this.coordinatesStart, this.coordinatesEnd);
 		this.areaLabels.add(new PointTextContainer(caption, centerPosition[0], centerPosition[1], paint, stroke));
 	}
 
 	@Override
 	public void renderAreaSymbol(Bitmap symbol) {
-		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates[0]);
+		float[] centerPosition = GeometryUtils.calculateCenterOfBoundingBox(this.coordinates,
+				this.coordinatesStart, this.coordinatesEnd);
 		this.pointSymbols.add(new SymbolContainer(symbol, centerPosition[0] - (symbol.getWidth() >> 1),
 				centerPosition[1] - (symbol.getHeight() >> 1)));
 	}
@@ -257,12 +276,14 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 
 	@Override
 	public void renderWaySymbol(Bitmap symbolBitmap, boolean alignCenter, boolean repeatSymbol) {
-		WayDecorator.renderSymbol(symbolBitmap, alignCenter, repeatSymbol, this.coordinates, this.waySymbols);
+		WayDecorator.renderSymbol(symbolBitmap, alignCenter, repeatSymbol, this.coordinates, this.coordinatesStart,
+				this.coordinatesEnd, this.waySymbols);
 	}
 
 	@Override
 	public void renderWayText(String textKey, Paint paint, Paint outline) {
-		WayDecorator.renderText(textKey, paint, outline, this.coordinates, this.wayNames);
+		WayDecorator.renderText(textKey, paint, outline, this.coordinates, this.coordinatesStart,
+				this.coordinatesEnd, this.wayNames);
 	}
 
 	@Override
@@ -270,6 +291,13 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 		return false;
 	}
 
+	/**
+	 * @return the MapDatabase from which the map data is read (may be null).
+	 */
+	public MapDatabase getMapDatabase() {
+		return this.mapDatabase;
+	}
+
 	/**
 	 * @param mapDatabase
 	 *            the MapDatabase from which the map data will be read.
@@ -306,55 +334,59 @@ public class DatabaseRenderer implements MapGenerator, RenderCallback {
 		}
 	}
 
-	private void processReadMapData(MapReadResult mapReadResult) {
-		if (mapReadResult == null) {
-			return;
+	private void processMapData() {
+		for (int poi = 0, n = this.mapDataBuffer.getPoiCount(); poi < n; ++poi) {
+			renderPointOfInterest(poi);
 		}
 
-		for (PointOfInterest pointOfInterest : mapReadResult.pointOfInterests) {
-			renderPointOfInterest(pointOfInterest);
-		}
-
-		for (Way way : mapReadResult.ways) {
+		for (int way = 0, n = this.mapDataBuffer.getWayCount(); way < n; ++way) {
 			renderWay(way);
 		}
 
-		if (mapReadResult.isWater) {
+		if (this.mapDataBuffer.isWater()) {
 			renderWaterBackground();
 		}
 	}
 
-	private void renderPointOfInterest(PointOfInterest pointOfInterest) {
-		this.drawingLayers = this.ways.get(getValidLayer(pointOfInterest.layer));
-		this.poiX = scaleLongitude(pointOfInterest.position.longitudeE6);
-		this.poiY = scaleLatitude(pointOfInterest.position.latitudeE6);
-		this.renderTheme.matchNode(this, pointOfInterest.tags, this.currentTile.zoomLevel);
+	private void renderPointOfInterest(int poi) {
+		this.drawingLayers = this.ways.get(getValidLayer(this.mapDataBuffer.getPoiLayer(poi)));
+		this.poiX = scaleLongitude(this.mapDataBuffer.getPoiLongitude(poi));
+		this.poiY = scaleLatitude(this.mapDataBuffer.getPoiLatitude(poi));
+		this.mapDataBuffer.getPoiTags(poi, this.tags);
+		this.renderTheme.matchNode(this, this.tags, this.currentTile.zoomLevel);
 	}
 
 	private void renderWaterBackground() {
 		this.drawingLayers = this.ways.get(0);
 		this.coordinates = WATER_TILE_COORDINATES;
-		this.shapeContainer = new WayContainer(this.coordinates);
-		this.renderTheme.matchClosedWay(this, Collections.singletonList(TAG_NATURAL_WATER), this.currentTile.zoomLevel);
+		this.coordinatesStart = 0;
+		this.coordinatesEnd = WATER_TILE_COORDINATES.length;
+		this.shapeContainer = new WayContainer(this.coordinates, WATER_TILE_SEGMENT_OFFSETS, 0, 1);
+		this.renderTheme.matchClosedWay(this, WATER_TILE_TAGS, this.currentTile.zoomLevel);
 	}
 
-	private void renderWay(Way way) {
-		this.drawingLayers = this.ways.get(getValidLayer(way.layer));
+	private void renderWay(int way) {
+		this.drawingLayers = this.ways.get(getValidLayer(this.mapDataBuffer.getWayLayer(way)));
 		// TODO what about the label position?
 
-		this.coordinates = way.wayNodes;
-		for (int i = 0; i < this.coordinates.length; ++i) {
-			for (int j = 0; j < this.coordinates[i].length; j += 2) {
-				this.coordinates[i][j] = scaleLongitude(this.coordinates[i][j]);
-				this.coordinates[i][j + 1] = scaleLatitude(this.coordinates[i][j + 1]);
-			}
+		// the way nodes are projected in place, the buffer is refilled for the next tile anyway
+		this.coordinates = this.mapDataBuffer.getCoordinates();
+		int[] segmentOffsets = this.mapDataBuffer.getSegmentOffsets();
+		int firstSegment = this.mapDataBuffer.getWayFirstSegment(way);
+		int segmentCount = this.mapDataBuffer.getWaySegmentCount(way);
+		for (int i = segmentOffsets[firstSegment], end = segmentOffsets[firstSegment + segmentCount]; i < end; i += 2) {
+			this.coordinates[i] = scaleLongitude(this.coordinates[i]);
+			this.coordinates[i + 1] = scaleLatitude(this.coordinates[i + 1]);
 		}
-		this.shapeContainer = new WayContainer(this.coordinates);
+		this.coordinatesStart = segmentOffsets[firstSegment];
+		this.coordinatesEnd = segmentOffsets[firstSegment + 1];
+		this.shapeContainer = new WayContainer(this.coordinates, segmentOffsets, firstSegment, segmentCount);
 
-		if (GeometryUtils.isClosedWay(this.coordinates[0])) {
-			this.renderTheme.matchClosedWay(this, way.tags, this.currentTile.zoomLevel);
+		this.mapDataBuffer.getWayTags(way, this.tags);
+		if (GeometryUtils.isClosedWay(this.coordinates, this.coordinatesStart, this.coordinatesEnd)) {
+			this.renderTheme.matchClosedWay(this, this.tags, this.currentTile.zoomLevel);
 		} else {
-			this.renderTheme.matchLinearWay(this, way.tags, this.currentTile.zoomLevel);
+			this.renderTheme.matchLinearWay(this, this.tags, this.currentTile.zoomLevel);
 		}
 	}
 
@@ -158,6 +158,7 @@ class DependencyCache {
 		}
 	}
 
+	private final CollisionGrid collisionGrid;
 	private DependencyOnTile currentDependencyOnTile;
 	private Tile currentTile;
 
@@ -166,18 +167,74 @@ class DependencyCache {
 	 */
 	final Map<Tile, DependencyOnTile> dependencyTable;
 	Dependency<DependencyText> depLabel;
-	Rect rect1;
-	Rect rect2;
 	SymbolContainer smb;
 	DependencyOnTile tmp;
 
 	/**
 	 * Constructor for this class, that creates a hashtable for the dependencies.
+	 * 
+	 * @param collisionGrid
+	 *            the collision index which is shared with the label placement.
 	 */
-	DependencyCache() {
+	DependencyCache(CollisionGrid collisionGrid) {
+		this.collisionGrid = collisionGrid;
 		this.dependencyTable = new Hashtable<>(60);
 	}
 
+	/**
+	 * Fills the collision grid with the labels of the current dependency entry.
+	 */
+	private void addDependencyLabelsToCollisionGrid(int dis) {
+		for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
+			this.depLabel = this.currentDependencyOnTile.labels.get(i);
+			this.collisionGrid.add((int) (this.depLabel.point.pointX) - dis,
+					(int) (this.depLabel.point.pointY - this.depLabel.value.boundary.height()) - dis,
+					(int) (this.depLabel.point.pointX + this.depLabel.value.boundary.width() + dis),
+					(int) (this.depLabel.point.pointY + dis));
+		}
+	}
+
+	/**
+	 * Fills the collision grid with the symbols of the current dependency entry.
+	 */
+	private void addDependencySymbolsToCollisionGrid(int dis) {
+		for (Dependency<DependencySymbol> depSmb : this.currentDependencyOnTile.symbols) {
+			this.collisionGrid.add((int) depSmb.point.pointX - dis, (int) depSmb.point.pointY - dis,
+					(int) depSmb.point.pointX + depSmb.value.symbol.getWidth() + dis, (int) depSmb.point.pointY
+							+ depSmb.value.symbol.getHeight() + dis);
+		}
+	}
+
+	/**
+	 * Removes the area labels which intersect the collision grid.
+	 */
+	private void removeAreaLabelsInCollisionGrid(List<PointTextContainer> areaLabels) {
+		int kept = 0;
+		for (int x = 0; x < areaLabels.size(); x++) {
+			PointTextContainer label = areaLabels.get(x);
+			if (!this.collisionGrid.intersects((int) label.x, (int) (label.y - label.boundary.height()),
+					(int) (label.x + label.boundary.width()), (int) label.y)) {
+				areaLabels.set(kept++, label);
+			}
+		}
+		areaLabels.subList(kept, areaLabels.size()).clear();
+	}
+
+	/**
+	 * Removes the symbols which intersect the collision grid.
+	 */
+	private void removeSymbolsInCollisionGrid(List<SymbolContainer> symbols) {
+		int kept = 0;
+		for (int x = 0; x < symbols.size(); x++) {
+			this.smb = symbols.get(x);
+			if (!this.collisionGrid.intersects((int) this.smb.x, (int) this.smb.y,
+					(int) this.smb.x + this.smb.symbol.getWidth(), (int) this.smb.y + this.smb.symbol.getHeight())) {
+				symbols.set(kept++, this.smb);
+			}
+		}
+		symbols.subList(kept, symbols.size()).clear();
+	}
+
 	private void addLabelsFromDependencyOnTile(List<PointTextContainer> labels) {
 		for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
 			this.depLabel = this.currentDependencyOnTile.labels.get(i);
@@ -591,50 +648,15 @@ class DependencyCache {
 	}
 
 	private void removeOverlappingAreaLabelsWithDependencyLabels(List<PointTextContainer> areaLabels) {
-		PointTextContainer pTC;
-
-		for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
-			this.depLabel = this.currentDependencyOnTile.labels.get(i);
-			this.rect1 = new android.graphics.Rect((int) (this.depLabel.point.pointX),
-					(int) (this.depLabel.point.pointY - this.depLabel.value.boundary.height()),
-					(int) (this.depLabel.point.pointX + this.depLabel.value.boundary.width()),
-					(int) (this.depLabel.point.pointY));
-
-			for (int x = 0; x < areaLabels.size(); x++) {
-				pTC = areaLabels.get(x);
-
-				this.rect2 = new android.graphics.Rect((int) pTC.x, (int) pTC.y - pTC.boundary.height(), (int) pTC.x
-						+ pTC.boundary.width(), (int) pTC.y);
-
-				if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-					areaLabels.remove(x);
-					x--;
-				}
-			}
-		}
+		this.collisionGrid.clear();
+		addDependencyLabelsToCollisionGrid(0);
+		removeAreaLabelsInCollisionGrid(areaLabels);
 	}
 
 	private void removeOverlappingAreaLabelsWithDependencySymbols(List<PointTextContainer> areaLabels) {
-		PointTextContainer label;
-
-		for (Dependency<DependencySymbol> depSmb : this.currentDependencyOnTile.symbols) {
-
-			this.rect1 = new android.graphics.Rect((int) depSmb.point.pointX, (int) depSmb.point.pointY,
-					(int) depSmb.point.pointX + depSmb.value.symbol.getWidth(), (int) depSmb.point.pointY
-							+ depSmb.value.symbol.getHeight());
-
-			for (int x = 0; x < areaLabels.size(); x++) {
-				label = areaLabels.get(x);
-
-				this.rect2 = new android.graphics.Rect((int) (label.x), (int) (label.y - label.boundary.height()),
-						(int) (label.x + label.boundary.width()), (int) (label.y));
-
-				if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-					areaLabels.remove(x);
-					x--;
-				}
-			}
-		}
+		this.collisionGrid.clear();
+		addDependencySymbolsToCollisionGrid(0);
+		removeAreaLabelsInCollisionGrid(areaLabels);
 	}
 
 	private void removeOverlappingLabelsWithDependencyLabels(List<PointTextContainer> labels) {
@@ -653,49 +675,15 @@ class DependencyCache {
 	}
 
 	private void removeOverlappingSymbolsWithDepencySymbols(List<SymbolContainer> symbols, int dis) {
-		SymbolContainer sym;
-		Dependency<DependencySymbol> sym2;
-
-		for (int x = 0; x < this.currentDependencyOnTile.symbols.size(); x++) {
-			sym2 = this.currentDependencyOnTile.symbols.get(x);
-			this.rect1 = new android.graphics.Rect((int) sym2.point.pointX - dis, (int) sym2.point.pointY - dis,
-					(int) sym2.point.pointX + sym2.value.symbol.getWidth() + dis, (int) sym2.point.pointY
-							+ sym2.value.symbol.getHeight() + dis);
-
-			for (int y = 0; y < symbols.size(); y++) {
-
-				sym = symbols.get(y);
-				this.rect2 = new android.graphics.Rect((int) sym.x, (int) sym.y, (int) sym.x + sym.symbol.getWidth(),
-						(int) sym.y + sym.symbol.getHeight());
-
-				if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-					symbols.remove(y);
-					y--;
-				}
-			}
-		}
+		this.collisionGrid.clear();
+		addDependencySymbolsToCollisionGrid(dis);
+		removeSymbolsInCollisionGrid(symbols);
 	}
 
 	private void removeOverlappingSymbolsWithDependencyLabels(List<SymbolContainer> symbols) {
-		for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
-			this.depLabel = this.currentDependencyOnTile.labels.get(i);
-			this.rect1 = new android.graphics.Rect((int) (this.depLabel.point.pointX),
-					(int) (this.depLabel.point.pointY - this.depLabel.value.boundary.height()),
-					(int) (this.depLabel.point.pointX + this.depLabel.value.boundary.width()),
-					(int) (this.depLabel.point.pointY));
-
-			for (int x = 0; x < symbols.size(); x++) {
-				this.smb = symbols.get(x);
-
-				this.rect2 = new android.graphics.Rect((int) this.smb.x, (int) this.smb.y, (int) this.smb.x
-						+ this.smb.symbol.getWidth(), (int) this.smb.y + this.smb.symbol.getHeight());
-
-				if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-					symbols.remove(x);
-					x--;
-				}
-			}
-		}
+		this.collisionGrid.clear();
+		addDependencyLabelsToCollisionGrid(0);
+		removeSymbolsInCollisionGrid(symbols);
 	}
 
 	/**
@@ -883,49 +871,23 @@ class DependencyCache {
 			}
 		}
 
-		// removes all Reverence Points that intersects with Labels from the Dependency Cache
+		// removes all Reverence Points that intersects with Labels or Symbols from the Dependency Cache
 
-		int dis = 2;
-		if (this.currentDependencyOnTile != null) {
+		if (this.currentDependencyOnTile != null
+				&& (this.currentDependencyOnTile.labels != null || this.currentDependencyOnTile.symbols != null)) {
+			this.collisionGrid.clear();
 			if (this.currentDependencyOnTile.labels != null) {
-				for (int i = 0; i < this.currentDependencyOnTile.labels.size(); i++) {
-					this.depLabel = this.currentDependencyOnTile.labels.get(i);
-					this.rect1 = new android.graphics.Rect((int) this.depLabel.point.pointX - dis,
-							(int) (this.depLabel.point.pointY - this.depLabel.value.boundary.height()) - dis,
-							(int) (this.depLabel.point.pointX + this.depLabel.value.boundary.width() + dis),
-							(int) (this.depLabel.point.pointY + dis));
-
-					for (int y = 0; y < refPos.length; y++) {
-						if (refPos[y] != null) {
-							this.rect2 = new android.graphics.Rect((int) refPos[y].x,
-									(int) (refPos[y].y - refPos[y].height), (int) (refPos[y].x + refPos[y].width),
-									(int) (refPos[y].y));
-
-							if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-								refPos[y] = null;
-							}
-						}
-					}
-				}
+				addDependencyLabelsToCollisionGrid(2);
 			}
 			if (this.currentDependencyOnTile.symbols != null) {
-				for (Dependency<DependencySymbol> symbols2 : this.currentDependencyOnTile.symbols) {
-
-					this.rect1 = new android.graphics.Rect((int) symbols2.point.pointX, (int) (symbols2.point.pointY),
-							(int) (symbols2.point.pointX + symbols2.value.symbol.getWidth()),
-							(int) (symbols2.point.pointY + symbols2.value.symbol.getHeight()));
-
-					for (int y = 0; y < refPos.length; y++) {
-						if (refPos[y] != null) {
-							this.rect2 = new android.graphics.Rect((int) refPos[y].x,
-									(int) (refPos[y].y - refPos[y].height), (int) (refPos[y].x + refPos[y].width),
-									(int) (refPos[y].y));
-
-							if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-								refPos[y] = null;
-							}
-						}
-					}
+				addDependencySymbolsToCollisionGrid(0);
+			}
+
+			for (int y = 0; y < refPos.length; y++) {
+				if (refPos[y] != null
+						&& this.collisionGrid.intersects((int) refPos[y].x, (int) (refPos[y].y - refPos[y].height),
+								(int) (refPos[y].x + refPos[y].width), (int) (refPos[y].y))) {
+					refPos[y] = null;
 				}
 			}
 		}
@@ -20,15 +20,19 @@ final class GeometryUtils {
 	 * 
 	 * @param coordinates
 	 *            the coordinates for which calculation should be done.
+	 * @param start
+	 *            the index of the first coordinate.
+	 * @param end
+	 *            the index after the last coordinate.
 	 * @return the center coordinates of the minimum bounding rectangle.
 	 */
-	static float[] calculateCenterOfBoundingBox(float[] coordinates) {
-		float longitudeMin = coordinates[0];
-		float longitudeMax = coordinates[0];
-		float latitudeMax = coordinates[1];
-		float latitudeMin = coordinates[1];
+	static float[] calculateCenterOfBoundingBox(float[] coordinates, int start, int end) {
+		float longitudeMin = coordinates[start];
+		float longitudeMax = coordinates[start];
+		float latitudeMax = coordinates[start + 1];
+		float latitudeMin = coordinates[start + 1];
 
-		for (int i = 2; i < coordinates.length; i += 2) {
+		for (int i = start + 2; i < end; i += 2) {
 			if (coordinates[i] < longitudeMin) {
 				longitudeMin = coordinates[i];
 			} else if (coordinates[i] > longitudeMax) {
@@ -46,12 +50,17 @@ final class GeometryUtils {
 	}
 
 	/**
-	 * @param way
+	 * @param coordinates
 	 *            the coordinates of the way.
+	 * @param start
+	 *            the index of the first coordinate.
+	 * @param end
+	 *            the index after the last coordinate.
 	 * @return true if the given way is closed, false otherwise.
 	 */
-	static boolean isClosedWay(float[] way) {
-		return Float.compare(way[0], way[way.length - 2]) == 0 && Float.compare(way[1], way[way.length - 1]) == 0;
+	static boolean isClosedWay(float[] coordinates, int start, int end) {
+		return Float.compare(coordinates[start], coordinates[end - 2]) == 0
+				&& Float.compare(coordinates[start + 1], coordinates[end - 1]) == 0;
 	}
 
 	private GeometryUtils() {
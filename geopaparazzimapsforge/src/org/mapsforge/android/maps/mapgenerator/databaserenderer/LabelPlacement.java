@@ -16,15 +16,12 @@ package org.mapsforge.android.maps.mapgenerator.databaserenderer;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import org.mapsforge.core.model.Tile;
 
-import android.graphics.Rect;
-
 /**
  * This class place the labels form POIs, area labels and normal labels. The main target is avoiding collisions of these
  * different labels.
@@ -51,27 +48,6 @@ class LabelPlacement {
 		}
 	}
 
-	static final class ReferencePositionHeightComparator implements Comparator<ReferencePosition>, Serializable {
-		private static final long serialVersionUID = 1L;
-		static final ReferencePositionHeightComparator INSTANCE = new ReferencePositionHeightComparator();
-
-		private ReferencePositionHeightComparator() {
-			// do nothing
-		}
-
-		@Override
-		public int compare(ReferencePosition x, ReferencePosition y) {
-			if (x.y - x.height < y.y - y.height) {
-				return -1;
-			}
-
-			if (x.y - x.height > y.y - y.height) {
-				return 1;
-			}
-			return 0;
-		}
-	}
-
 	static final class ReferencePositionWidthComparator implements Comparator<ReferencePosition>, Serializable {
 		private static final long serialVersionUID = 1L;
 		static final ReferencePositionWidthComparator INSTANCE = new ReferencePositionWidthComparator();
@@ -94,28 +70,6 @@ class LabelPlacement {
 		}
 	}
 
-	static final class ReferencePositionXComparator implements Comparator<ReferencePosition>, Serializable {
-		private static final long serialVersionUID = 1L;
-		static final ReferencePositionXComparator INSTANCE = new ReferencePositionXComparator();
-
-		private ReferencePositionXComparator() {
-			// do nothing
-		}
-
-		@Override
-		public int compare(ReferencePosition x, ReferencePosition y) {
-			if (x.x < y.x) {
-				return -1;
-			}
-
-			if (x.x > y.x) {
-				return 1;
-			}
-
-			return 0;
-		}
-	}
-
 	static final class ReferencePositionYComparator implements Comparator<ReferencePosition>, Serializable {
 		private static final long serialVersionUID = 1L;
 		static final ReferencePositionYComparator INSTANCE = new ReferencePositionYComparator();
@@ -147,15 +101,18 @@ class LabelPlacement {
 	private int startDistanceToSymbols = 4;
 	private int symbolDistanceToSymbol = 2;
 
+	/**
+	 * Collision index which is shared by all passes of the current tile.
+	 */
+	final CollisionGrid collisionGrid;
 	final DependencyCache dependencyCache;
 	PointTextContainer label;
-	Rect rect1;
-	Rect rect2;
 	ReferencePosition referencePosition;
 	SymbolContainer symbolContainer;
 
 	LabelPlacement() {
-		this.dependencyCache = new DependencyCache();
+		this.collisionGrid = new CollisionGrid();
+		this.dependencyCache = new DependencyCache(this.collisionGrid);
 	}
 
 	/**
@@ -193,12 +150,61 @@ class LabelPlacement {
 		this.dependencyCache.removeSymbolsFromDrawnAreas(symbols);
 	}
 
+	/**
+	 * Places the labels greedily: the reference positions are visited in the order given by the comparator and a
+	 * position is taken if its label has no position yet and it does not overlap any label placed before. The overlap
+	 * tests use the collision grid, so that each one only looks at the labels nearby.
+	 * 
+	 * @param labels
+	 *            label positions and text
+	 * @param refPos
+	 *            the valid reference positions, null for invalid ones; the array is reordered
+	 * @param comparator
+	 *            the order in which the reference positions are tried
+	 * @return list of labels without overlaps
+	 */
+	private List<PointTextContainer> placeGreedy(List<PointTextContainer> labels, ReferencePosition[] refPos,
+			Comparator<ReferencePosition> comparator) {
+		List<PointTextContainer> resolutionSet = new ArrayList<>();
+
+		int count = 0;
+		for (int i = 0; i < refPos.length; i++) {
+			if (refPos[i] != null) {
+				refPos[count++] = refPos[i];
+			}
+		}
+		Arrays.sort(refPos, 0, count, comparator);
+
+		boolean[] placed = new boolean[labels.size()];
+		this.collisionGrid.clear();
+		for (int i = 0; i < count; i++) {
+			this.referencePosition = refPos[i];
+			if (placed[this.referencePosition.nodeNumber]) {
+				continue;
+			}
+
+			int left = (int) this.referencePosition.x;
+			int top = (int) (this.referencePosition.y - this.referencePosition.height);
+			int right = (int) (this.referencePosition.x + this.referencePosition.width);
+			int bottom = (int) this.referencePosition.y;
+			if (this.collisionGrid.intersects(left, top, right, bottom)) {
+				continue;
+			}
+			this.collisionGrid.add(left, top, right, bottom);
+			placed[this.referencePosition.nodeNumber] = true;
+
+			this.label = labels.get(this.referencePosition.nodeNumber);
+			resolutionSet.add(new PointTextContainer(this.label.text, this.referencePosition.x,
+					this.referencePosition.y, this.label.paintFront, this.label.paintBack,
+					this.referencePosition.symbol));
+		}
+
+		return resolutionSet;
+	}
+
 	/**
 	 * This method uses an adapted greedy strategy for the fixed four position model, above, under left and right form
-	 * the point of interest. It uses no priority search tree, because it will not function with symbols only with
-	 * points. Instead it uses two minimum heaps. They work similar to a sweep line algorithm but have not a O(n log n
-	 * +k) runtime. To find the rectangle that has the top edge, I use also a minimum Heap. The rectangles are sorted by
-	 * their y coordinates.
+	 * the point of interest. The reference positions are tried from the top edge of the tile downwards.
 	 * 
 	 * @param labels
 	 *            label positions and text
@@ -210,18 +216,9 @@ class LabelPlacement {
 	 */
 	private List<PointTextContainer> processFourPointGreedy(List<PointTextContainer> labels,
 			List<SymbolContainer> symbols, List<PointTextContainer> areaLabels) {
-		List<PointTextContainer> resolutionSet = new ArrayList<>();
-
 		// Array for the generated reference positions around the points of interests
 		ReferencePosition[] refPos = new ReferencePosition[(labels.size()) * 4];
 
-		// lists that sorts the reference points after the minimum top edge y position
-		PriorityQueue<ReferencePosition> priorUp = new PriorityQueue<>(labels.size() * 4 * 2
-				+ labels.size() / 10 * 2, ReferencePositionYComparator.INSTANCE);
-		// lists that sorts the reference points after the minimum bottom edge y position
-		PriorityQueue<ReferencePosition> priorDown = new PriorityQueue<>(labels.size() * 4 * 2
-				+ labels.size() / 10 * 2, ReferencePositionHeightComparator.INSTANCE);
-
 		PointTextContainer tmp;
 		int dis = this.startDistanceToSymbols;
 
@@ -259,68 +256,12 @@ class LabelPlacement {
 
 		removeNonValidateReferencePosition(refPos, symbols, areaLabels);
 
-		// do while it gives reference positions
-		for (int i = 0; i < refPos.length; i++) {
-			this.referencePosition = refPos[i];
-			if (this.referencePosition != null) {
-				priorUp.add(this.referencePosition);
-				priorDown.add(this.referencePosition);
-			}
-		}
-
-		while (priorUp.size() != 0) {
-			this.referencePosition = priorUp.remove();
-
-			this.label = labels.get(this.referencePosition.nodeNumber);
-
-			resolutionSet.add(new PointTextContainer(this.label.text, this.referencePosition.x,
-					this.referencePosition.y, this.label.paintFront, this.label.paintBack, this.label.symbol));
-
-			if (priorUp.size() == 0) {
-				return resolutionSet;
-			}
-
-			priorUp.remove(refPos[this.referencePosition.nodeNumber * 4 + 0]);
-			priorUp.remove(refPos[this.referencePosition.nodeNumber * 4 + 1]);
-			priorUp.remove(refPos[this.referencePosition.nodeNumber * 4 + 2]);
-			priorUp.remove(refPos[this.referencePosition.nodeNumber * 4 + 3]);
-
-			priorDown.remove(refPos[this.referencePosition.nodeNumber * 4 + 0]);
-			priorDown.remove(refPos[this.referencePosition.nodeNumber * 4 + 1]);
-			priorDown.remove(refPos[this.referencePosition.nodeNumber * 4 + 2]);
-			priorDown.remove(refPos[this.referencePosition.nodeNumber * 4 + 3]);
-
-			LinkedList<ReferencePosition> linkedRef = new LinkedList<>();
-
-			while (priorDown.size() != 0) {
-				if (priorDown.peek().x < this.referencePosition.x + this.referencePosition.width) {
-					linkedRef.add(priorDown.remove());
-				} else {
-					break;
-				}
-			}
-			// brute Force collision test (faster then sweep line for a small amount of
-			// objects)
-			for (int i = 0; i < linkedRef.size(); i++) {
-				if ((linkedRef.get(i).x <= this.referencePosition.x + this.referencePosition.width)
-						&& (linkedRef.get(i).y >= this.referencePosition.y - linkedRef.get(i).height)
-						&& (linkedRef.get(i).y <= this.referencePosition.y + linkedRef.get(i).height)) {
-					priorUp.remove(linkedRef.get(i));
-					linkedRef.remove(i);
-					i--;
-				}
-			}
-			priorDown.addAll(linkedRef);
-		}
-
-		return resolutionSet;
+		return placeGreedy(labels, refPos, ReferencePositionYComparator.INSTANCE);
 	}
 
 	/**
-	 * This method uses an adapted greedy strategy for the fixed two position model, above and under. It uses no
-	 * priority search tree, because it will not function with symbols only with points. Instead it uses two minimum
-	 * heaps. They work similar to a sweep line algorithm but have not a O(n log n +k) runtime. To find the rectangle
-	 * that has the leftest edge, I use also a minimum Heap. The rectangles are sorted by their x coordinates.
+	 * This method uses an adapted greedy strategy for the fixed two position model, above and under. The
+	 * reference positions are tried by their right edge from the left of the tile to the right.
 	 * 
 	 * @param labels
 	 *            label positions and text
@@ -332,17 +273,9 @@ class LabelPlacement {
 	 */
 	private List<PointTextContainer> processTwoPointGreedy(List<PointTextContainer> labels,
 			List<SymbolContainer> symbols, List<PointTextContainer> areaLabels) {
-		List<PointTextContainer> resolutionSet = new ArrayList<>();
 		// Array for the generated reference positions around the points of interests
 		ReferencePosition[] refPos = new ReferencePosition[labels.size() * 2];
 
-		// lists that sorts the reference points after the minimum right edge x position
-		PriorityQueue<ReferencePosition> priorRight = new PriorityQueue<>(labels.size() * 2
-				+ labels.size() / 10 * 2, ReferencePositionWidthComparator.INSTANCE);
-		// lists that sorts the reference points after the minimum left edge x position
-		PriorityQueue<ReferencePosition> priorLeft = new PriorityQueue<>(labels.size() * 2
-				+ labels.size() / 10 * 2, ReferencePositionXComparator.INSTANCE);
-
 		// creates the reference positions
 		for (int z = 0; z < labels.size(); z++) {
 			this.label = labels.get(z);
@@ -364,61 +297,7 @@ class LabelPlacement {
 		// removes reference positions that overlaps with other symbols or dependency objects
 		removeNonValidateReferencePosition(refPos, symbols, areaLabels);
 
-		for (int i = 0; i < refPos.length; i++) {
-			this.referencePosition = refPos[i];
-			if (this.referencePosition != null) {
-				priorLeft.add(this.referencePosition);
-				priorRight.add(this.referencePosition);
-			}
-		}
-
-		while (priorRight.size() != 0) {
-			this.referencePosition = priorRight.remove();
-
-			this.label = labels.get(this.referencePosition.nodeNumber);
-
-			resolutionSet.add(new PointTextContainer(this.label.text, this.referencePosition.x,
-					this.referencePosition.y, this.label.paintFront, this.label.paintBack,
-					this.referencePosition.symbol));
-
-			// Removes the other position that is a possible position for the label of one point
-			// of interest
-
-			priorRight.remove(refPos[this.referencePosition.nodeNumber * 2 + 1]);
-
-			if (priorRight.size() == 0) {
-				return resolutionSet;
-			}
-
-			priorLeft.remove(this.referencePosition);
-			priorLeft.remove(refPos[this.referencePosition.nodeNumber * 2 + 1]);
-
-			// find overlapping labels and deletes the reference points and delete them
-			LinkedList<ReferencePosition> linkedRef = new LinkedList<>();
-
-			while (priorLeft.size() != 0) {
-				if (priorLeft.peek().x < this.referencePosition.x + this.referencePosition.width) {
-					linkedRef.add(priorLeft.remove());
-				} else {
-					break;
-				}
-			}
-
-			// brute Force collision test (faster then sweep line for a small amount of
-			// objects)
-			for (int i = 0; i < linkedRef.size(); i++) {
-				if ((linkedRef.get(i).x <= this.referencePosition.x + this.referencePosition.width)
-						&& (linkedRef.get(i).y >= this.referencePosition.y - linkedRef.get(i).height)
-						&& (linkedRef.get(i).y <= this.referencePosition.y + linkedRef.get(i).height)) {
-					priorRight.remove(linkedRef.get(i));
-					linkedRef.remove(i);
-					i--;
-				}
-			}
-			priorLeft.addAll(linkedRef);
-		}
-
-		return resolutionSet;
+		return placeGreedy(labels, refPos, ReferencePositionWidthComparator.INSTANCE);
 	}
 
 	private void removeEmptySymbolReferences(List<PointTextContainer> nodes, List<SymbolContainer> symbols) {
@@ -444,45 +323,27 @@ class LabelPlacement {
 	 */
 	private void removeNonValidateReferencePosition(ReferencePosition[] refPos, List<SymbolContainer> symbols,
 			List<PointTextContainer> areaLabels) {
-		int dis = this.labelDistanceToSymbol;
+		this.collisionGrid.clear();
 
+		int dis = this.labelDistanceToSymbol;
 		for (int i = 0; i < symbols.size(); i++) {
 			this.symbolContainer = symbols.get(i);
-			this.rect1 = new android.graphics.Rect((int) this.symbolContainer.x - dis, (int) this.symbolContainer.y
-					- dis, (int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth() + dis,
+			this.collisionGrid.add((int) this.symbolContainer.x - dis, (int) this.symbolContainer.y - dis,
+					(int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth() + dis,
 					(int) this.symbolContainer.y + this.symbolContainer.symbol.getHeight() + dis);
-
-			for (int y = 0; y < refPos.length; y++) {
-				if (refPos[y] != null) {
-
-					this.rect2 = new android.graphics.Rect((int) refPos[y].x, (int) (refPos[y].y - refPos[y].height),
-							(int) (refPos[y].x + refPos[y].width), (int) (refPos[y].y));
-
-					if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-						refPos[y] = null;
-					}
-				}
-			}
 		}
 
 		dis = this.labelDistanceToLabel;
-
 		for (PointTextContainer areaLabel : areaLabels) {
+			this.collisionGrid.add((int) areaLabel.x - dis, (int) areaLabel.y - areaLabel.boundary.height() - dis,
+					(int) areaLabel.x + areaLabel.boundary.width() + dis, (int) areaLabel.y + dis);
+		}
 
-			this.rect1 = new android.graphics.Rect((int) areaLabel.x - dis, (int) areaLabel.y
-					- areaLabel.boundary.height() - dis, (int) areaLabel.x + areaLabel.boundary.width() + dis,
-					(int) areaLabel.y + dis);
-
-			for (int y = 0; y < refPos.length; y++) {
-				if (refPos[y] != null) {
-
-					this.rect2 = new android.graphics.Rect((int) refPos[y].x, (int) (refPos[y].y - refPos[y].height),
-							(int) (refPos[y].x + refPos[y].width), (int) (refPos[y].y));
-
-					if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-						refPos[y] = null;
-					}
-				}
+		for (int y = 0; y < refPos.length; y++) {
+			if (refPos[y] != null
+					&& this.collisionGrid.intersects((int) refPos[y].x, (int) (refPos[y].y - refPos[y].height),
+							(int) (refPos[y].x + refPos[y].width), (int) (refPos[y].y))) {
+				refPos[y] = null;
 			}
 		}
 
@@ -580,27 +441,22 @@ class LabelPlacement {
 	private void removeOverlappingAreaLabels(List<PointTextContainer> areaLabels) {
 		int dis = this.labelDistanceToLabel;
 
+		// every label is tested against the labels kept before it
+		this.collisionGrid.clear();
+		int kept = 0;
 		for (int x = 0; x < areaLabels.size(); x++) {
 			this.label = areaLabels.get(x);
-			this.rect1 = new android.graphics.Rect((int) this.label.x - dis, (int) this.label.y - dis,
-					(int) (this.label.x + this.label.boundary.width()) + dis, (int) (this.label.y
-							+ this.label.boundary.height() + dis));
-
-			for (int y = x + 1; y < areaLabels.size(); y++) {
-				if (y != x) {
-					this.label = areaLabels.get(y);
-					this.rect2 = new android.graphics.Rect((int) this.label.x, (int) this.label.y,
-							(int) (this.label.x + this.label.boundary.width()),
-							(int) (this.label.y + this.label.boundary.height()));
-
-					if (android.graphics.Rect.intersects(this.rect1, this.rect2)) {
-						areaLabels.remove(y);
-
-						y--;
-					}
-				}
+			if (this.collisionGrid.intersects((int) this.label.x, (int) this.label.y,
+					(int) (this.label.x + this.label.boundary.width()),
+					(int) (this.label.y + this.label.boundary.height()))) {
+				continue;
 			}
+			this.collisionGrid.add((int) this.label.x - dis, (int) this.label.y - dis,
+					(int) (this.label.x + this.label.boundary.width()) + dis,
+					(int) (this.label.y + this.label.boundary.height() + dis));
+			areaLabels.set(kept++, this.label);
 		}
+		areaLabels.subList(kept, areaLabels.size()).clear();
 	}
 
 	/**
@@ -612,28 +468,28 @@ class LabelPlacement {
 	 *            list of labels
 	 */
 	private void removeOverlappingSymbolsWithAreaLabels(List<SymbolContainer> symbols, List<PointTextContainer> pTC) {
+		if (pTC.isEmpty()) {
+			return;
+		}
 		int dis = this.labelDistanceToSymbol;
 
+		this.collisionGrid.clear();
 		for (int x = 0; x < pTC.size(); x++) {
 			this.label = pTC.get(x);
+			this.collisionGrid.add((int) this.label.x - dis, (int) (this.label.y - this.label.boundary.height()) - dis,
+					(int) (this.label.x + this.label.boundary.width() + dis), (int) (this.label.y + dis));
+		}
 
-			this.rect1 = new android.graphics.Rect((int) this.label.x - dis,
-					(int) (this.label.y - this.label.boundary.height()) - dis, (int) (this.label.x
-							+ this.label.boundary.width() + dis), (int) (this.label.y + dis));
-
-			for (int y = 0; y < symbols.size(); y++) {
-				this.symbolContainer = symbols.get(y);
-
-				this.rect2 = new android.graphics.Rect((int) this.symbolContainer.x, (int) this.symbolContainer.y,
-						(int) (this.symbolContainer.x + this.symbolContainer.symbol.getWidth()),
-						(int) (this.symbolContainer.y + this.symbolContainer.symbol.getHeight()));
-
-				if (android.graphics.Rect.intersects(this.rect1, this.rect2)) {
-					symbols.remove(y);
-					y--;
-				}
+		int kept = 0;
+		for (int y = 0; y < symbols.size(); y++) {
+			this.symbolContainer = symbols.get(y);
+			if (!this.collisionGrid.intersects((int) this.symbolContainer.x, (int) this.symbolContainer.y,
+					(int) (this.symbolContainer.x + this.symbolContainer.symbol.getWidth()),
+					(int) (this.symbolContainer.y + this.symbolContainer.symbol.getHeight()))) {
+				symbols.set(kept++, this.symbolContainer);
 			}
 		}
+		symbols.subList(kept, symbols.size()).clear();
 	}
 
 	int getLabelDistanceToLabel() {
@@ -715,26 +571,22 @@ class LabelPlacement {
 	void removeOverlappingSymbols(List<SymbolContainer> symbols) {
 		int dis = this.symbolDistanceToSymbol;
 
+		// every symbol is tested against the symbols kept before it
+		this.collisionGrid.clear();
+		int kept = 0;
 		for (int x = 0; x < symbols.size(); x++) {
 			this.symbolContainer = symbols.get(x);
-			this.rect1 = new android.graphics.Rect((int) this.symbolContainer.x - dis, (int) this.symbolContainer.y
-					- dis, (int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth() + dis,
-					(int) this.symbolContainer.y + this.symbolContainer.symbol.getHeight() + dis);
-
-			for (int y = x + 1; y < symbols.size(); y++) {
-				if (y != x) {
-					this.symbolContainer = symbols.get(y);
-					this.rect2 = new android.graphics.Rect((int) this.symbolContainer.x, (int) this.symbolContainer.y,
-							(int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth(),
-							(int) this.symbolContainer.y + this.symbolContainer.symbol.getHeight());
-
-					if (android.graphics.Rect.intersects(this.rect2, this.rect1)) {
-						symbols.remove(y);
-						y--;
-					}
-				}
+			if (this.collisionGrid.intersects((int) this.symbolContainer.x, (int) this.symbolContainer.y,
+					(int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth(),
+					(int) this.symbolContainer.y + this.symbolContainer.symbol.getHeight())) {
+				continue;
 			}
+			this.collisionGrid.add((int) this.symbolContainer.x - dis, (int) this.symbolContainer.y - dis,
+					(int) this.symbolContainer.x + this.symbolContainer.symbol.getWidth() + dis,
+					(int) this.symbolContainer.y + this.symbolContainer.symbol.getHeight() + dis);
+			symbols.set(kept++, this.symbolContainer);
 		}
+		symbols.subList(kept, symbols.size()).clear();
 	}
 
 	void setLabelDistanceToLabel(int labelDistanceToLabel) {
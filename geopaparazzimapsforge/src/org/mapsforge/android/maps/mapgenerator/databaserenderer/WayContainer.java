@@ -15,10 +15,26 @@
 package org.mapsforge.android.maps.mapgenerator.databaserenderer;
 
 class WayContainer implements ShapeContainer {
-	final float[][] coordinates;
+	final float[] coordinates;
+	final int firstSegment;
+	final int segmentCount;
+	final int[] segmentOffsets;
 
-	WayContainer(float[][] coordinates) {
+	/**
+	 * @param coordinates
+	 *            the coordinate array which contains the way.
+	 * @param segmentOffsets
+	 *            the start offsets of the segments in the coordinate array, each followed by the end offset.
+	 * @param firstSegment
+	 *            the index of the outer segment of the way.
+	 * @param segmentCount
+	 *            the number of segments of the way.
+	 */
+	WayContainer(float[] coordinates, int[] segmentOffsets, int firstSegment, int segmentCount) {
 		this.coordinates = coordinates;
+		this.segmentOffsets = segmentOffsets;
+		this.firstSegment = firstSegment;
+		this.segmentCount = segmentCount;
 	}
 
 	@Override
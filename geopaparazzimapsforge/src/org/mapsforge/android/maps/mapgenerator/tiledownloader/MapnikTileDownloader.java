@@ -14,12 +14,14 @@
  */
 package org.mapsforge.android.maps.mapgenerator.tiledownloader;
 
+import org.mapsforge.android.maps.mapgenerator.MapGenerator;
+import org.mapsforge.android.maps.mapgenerator.MultiWorkerMapGenerator;
 import org.mapsforge.core.model.Tile;
 
 /**
  * A MapGenerator that downloads tiles from the Mapnik server at OpenStreetMap.
  */
-public class MapnikTileDownloader extends TileDownloader {
+public class MapnikTileDownloader extends TileDownloader implements MultiWorkerMapGenerator {
 	private static final String HOST_NAME = "tile.openstreetmap.org";
 	private static final String PROTOCOL = "http";
 	private static final byte ZOOM_MAX = 18;
@@ -34,6 +36,11 @@ public class MapnikTileDownloader extends TileDownloader {
 		this.stringBuilder = new StringBuilder();
 	}
 
+	@Override
+	public MapGenerator createWorkerInstance() {
+		return new MapnikTileDownloader();
+	}
+
 	@Override
 	public String getHostName() {
 		return HOST_NAME;
@@ -14,12 +14,14 @@
  */
 package org.mapsforge.android.maps.mapgenerator.tiledownloader;
 
+import org.mapsforge.android.maps.mapgenerator.MapGenerator;
+import org.mapsforge.android.maps.mapgenerator.MultiWorkerMapGenerator;
 import org.mapsforge.core.model.Tile;
 
 /**
  * A MapGenerator that downloads tiles from the OpenCycleMap server.
  */
-public class OpenCycleMapTileDownloader extends TileDownloader {
+public class OpenCycleMapTileDownloader extends TileDownloader implements MultiWorkerMapGenerator {
 	private static final String HOST_NAME = "tile.opencyclemap.org";
 	private static final String PROTOCOL = "http";
 	private static final byte ZOOM_MAX = 18;
@@ -34,6 +36,11 @@ public class OpenCycleMapTileDownloader extends TileDownloader {
 		this.stringBuilder = new StringBuilder();
 	}
 
+	@Override
+	public MapGenerator createWorkerInstance() {
+		return new OpenCycleMapTileDownloader();
+	}
+
 	@Override
 	public String getHostName() {
 		return HOST_NAME;
@@ -32,6 +32,11 @@ final class AnyMatcher implements ElementMatcher, AttributeMatcher, ClosedMatche
 		// do nothing
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		// nothing to resolve
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		return attributeMatcher == this;
@@ -61,4 +66,9 @@ final class AnyMatcher implements ElementMatcher, AttributeMatcher, ClosedMatche
 	public boolean matches(List<Tag> tags) {
 		return true;
 	}
+
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return true;
+	}
 }
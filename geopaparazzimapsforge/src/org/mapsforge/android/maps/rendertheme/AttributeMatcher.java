@@ -19,7 +19,15 @@ import java.util.List;
 import org.mapsforge.core.model.Tag;
 
 interface AttributeMatcher {
+	/**
+	 * Resolves the keys or values of this matcher to IDs of the given dictionary. Must be called before
+	 * {@link #matches(TagSet)}, a matcher which is shared by several rules may be compiled more than once.
+	 */
+	void compile(TagDictionary tagDictionary);
+
 	boolean isCoveredBy(AttributeMatcher attributeMatcher);
 
 	boolean matches(List<Tag> tags);
+
+	boolean matches(TagSet tagSet);
 }
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
+
+/**
+ * An entry of the matching cache of a {@link RenderTheme}. The bit sets of the tags are kept to detect fingerprint
+ * collisions.
+ */
+final class MatchingCacheEntry {
+	Closed closed;
+	long fingerprint;
+	long[] keys;
+	final List<RenderInstruction> renderInstructions;
+	long[] values;
+	byte zoomLevel;
+
+	MatchingCacheEntry() {
+		this.renderInstructions = new ArrayList<>();
+	}
+
+	boolean matches(long fingerprint, TagSet tagSet, byte zoomLevel, Closed closed) {
+		return this.fingerprint == fingerprint && this.zoomLevel == zoomLevel && this.closed == closed
+				&& Arrays.equals(this.keys, tagSet.keys) && Arrays.equals(this.values, tagSet.values);
+	}
+
+	void set(long fingerprint, TagSet tagSet, byte zoomLevel, Closed closed) {
+		this.fingerprint = fingerprint;
+		if (this.keys == null) {
+			this.keys = tagSet.keys.clone();
+			this.values = tagSet.values.clone();
+		} else {
+			// all tag sets of a render theme have the same size
+			System.arraycopy(tagSet.keys, 0, this.keys, 0, this.keys.length);
+			System.arraycopy(tagSet.values, 0, this.values, 0, this.values.length);
+		}
+		this.zoomLevel = zoomLevel;
+		this.closed = closed;
+		this.renderInstructions.clear();
+	}
+}
@@ -20,12 +20,18 @@ import java.util.List;
 import org.mapsforge.core.model.Tag;
 
 class MultiKeyMatcher implements AttributeMatcher {
+	private long[] keyMask;
 	private final List<String> keys;
 
 	MultiKeyMatcher(List<String> keys) {
 		this.keys = keys;
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		this.keyMask = tagDictionary.getKeyMask(this.keys);
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		if (attributeMatcher == this) {
@@ -48,4 +54,9 @@ class MultiKeyMatcher implements AttributeMatcher {
 		}
 		return false;
 	}
+
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return tagSet.intersectsKeys(this.keyMask);
+	}
 }
@@ -20,12 +20,18 @@ import java.util.List;
 import org.mapsforge.core.model.Tag;
 
 class MultiValueMatcher implements AttributeMatcher {
+	private long[] valueMask;
 	private final List<String> values;
 
 	MultiValueMatcher(List<String> values) {
 		this.values = values;
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		this.valueMask = tagDictionary.getValueMask(this.values);
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		if (attributeMatcher == this) {
@@ -48,4 +54,9 @@ class MultiValueMatcher implements AttributeMatcher {
 		}
 		return false;
 	}
+
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return tagSet.intersectsValues(this.valueMask);
+	}
 }
@@ -20,13 +20,21 @@ import org.mapsforge.core.model.Tag;
 
 class NegativeMatcher implements AttributeMatcher {
 	private final List<String> keyList;
+	private long[] keyMask;
 	private final List<String> valueList;
+	private long[] valueMask;
 
 	NegativeMatcher(List<String> keyList, List<String> valueList) {
 		this.keyList = keyList;
 		this.valueList = valueList;
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		this.keyMask = tagDictionary.getKeyMask(this.keyList);
+		this.valueMask = tagDictionary.getValueMask(this.valueList);
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		return false;
@@ -46,6 +54,11 @@ class NegativeMatcher implements AttributeMatcher {
 		return false;
 	}
 
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return !tagSet.intersectsKeys(this.keyMask) || tagSet.intersectsValues(this.valueMask);
+	}
+
 	private boolean keyListDoesNotContainKeys(List<Tag> tags) {
 		for (int i = 0, n = tags.size(); i < n; ++i) {
 			if (this.keyList.contains(tags.get(i).key)) {
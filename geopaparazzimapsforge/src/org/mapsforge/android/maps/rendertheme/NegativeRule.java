@@ -14,10 +14,6 @@
  */
 package org.mapsforge.android.maps.rendertheme;
 
-import java.util.List;
-
-import org.mapsforge.core.model.Tag;
-
 class NegativeRule extends Rule {
 	final AttributeMatcher attributeMatcher;
 
@@ -29,14 +25,19 @@ class NegativeRule extends Rule {
 	}
 
 	@Override
-	boolean matchesNode(List<Tag> tags, byte zoomLevel) {
+	void compile(TagDictionary tagDictionary) {
+		this.attributeMatcher.compile(tagDictionary);
+	}
+
+	@Override
+	boolean matchesNode(TagSet tagSet, byte zoomLevel) {
 		return this.zoomMin <= zoomLevel && this.zoomMax >= zoomLevel && this.elementMatcher.matches(Element.NODE)
-				&& this.attributeMatcher.matches(tags);
+				&& this.attributeMatcher.matches(tagSet);
 	}
 
 	@Override
-	boolean matchesWay(List<Tag> tags, byte zoomLevel, Closed closed) {
+	boolean matchesWay(TagSet tagSet, byte zoomLevel, Closed closed) {
 		return this.zoomMin <= zoomLevel && this.zoomMax >= zoomLevel && this.elementMatcher.matches(Element.WAY)
-				&& this.closedMatcher.matches(closed) && this.attributeMatcher.matches(tags);
+				&& this.closedMatcher.matches(closed) && this.attributeMatcher.matches(tagSet);
 	}
 }
@@ -14,10 +14,6 @@
  */
 package org.mapsforge.android.maps.rendertheme;
 
-import java.util.List;
-
-import org.mapsforge.core.model.Tag;
-
 class PositiveRule extends Rule {
 	final AttributeMatcher keyMatcher;
 	final AttributeMatcher valueMatcher;
@@ -31,15 +27,21 @@ class PositiveRule extends Rule {
 	}
 
 	@Override
-	boolean matchesNode(List<Tag> tags, byte zoomLevel) {
+	void compile(TagDictionary tagDictionary) {
+		this.keyMatcher.compile(tagDictionary);
+		this.valueMatcher.compile(tagDictionary);
+	}
+
+	@Override
+	boolean matchesNode(TagSet tagSet, byte zoomLevel) {
 		return this.zoomMin <= zoomLevel && this.zoomMax >= zoomLevel && this.elementMatcher.matches(Element.NODE)
-				&& this.keyMatcher.matches(tags) && this.valueMatcher.matches(tags);
+				&& this.keyMatcher.matches(tagSet) && this.valueMatcher.matches(tagSet);
 	}
 
 	@Override
-	boolean matchesWay(List<Tag> tags, byte zoomLevel, Closed closed) {
+	boolean matchesWay(TagSet tagSet, byte zoomLevel, Closed closed) {
 		return this.zoomMin <= zoomLevel && this.zoomMax >= zoomLevel && this.elementMatcher.matches(Element.WAY)
-				&& this.closedMatcher.matches(closed) && this.keyMatcher.matches(tags)
-				&& this.valueMatcher.matches(tags);
+				&& this.closedMatcher.matches(closed) && this.keyMatcher.matches(tagSet)
+				&& this.valueMatcher.matches(tagSet);
 	}
 }
@@ -15,20 +15,24 @@
 package org.mapsforge.android.maps.rendertheme;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
 import org.mapsforge.core.model.Tag;
-import org.mapsforge.core.util.LRUCache;
 import org.xml.sax.Attributes;
 
 import android.graphics.Color;
 
 /**
  * A RenderTheme defines how ways and nodes are drawn.
+ * <p>
+ * When the theme is complete, the keys and values of all rules are compiled into a {@link TagDictionary}, so that
+ * elements are matched with bit operations. The result of a match is cached in a direct-mapped table indexed by the
+ * fingerprint of the tags. A RenderTheme is not thread-safe.
  */
 public class RenderTheme {
-	private static final int MATCHING_CACHE_SIZE = 512;
+	private static final int MATCHING_CACHE_SIZE = 1024;
 	private static final int RENDER_THEME_VERSION = 1;
 
 	private static void validate(String elementName, Integer version, float baseStrokeWidth, float baseTextSize) {
@@ -76,22 +80,36 @@ public class RenderTheme {
 	private final float baseTextSize;
 	private int levels;
 	private final int mapBackground;
-	private final LRUCache<MatchingCacheKey, List<RenderInstruction>> matchingCache;
+	private final MatchingCacheEntry[] matchingCache;
 	private final ArrayList<Rule> rulesList;
+	private TagDictionary tagDictionary;
+	private TagSet tagSet;
 
 	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize) {
+		this(mapBackground, baseStrokeWidth, baseTextSize, MATCHING_CACHE_SIZE);
+	}
+
+	/**
+	 * @param matchingCacheSize
+	 *            the number of entries of the matching cache, a power of two or zero to match every element against
+	 *            the rules.
+	 */
+	RenderTheme(int mapBackground, float baseStrokeWidth, float baseTextSize, int matchingCacheSize) {
+		if (Integer.bitCount(matchingCacheSize) > 1) {
+			throw new IllegalArgumentException("matching cache size must be a power of two: " + matchingCacheSize);
+		}
 		this.mapBackground = mapBackground;
 		this.baseStrokeWidth = baseStrokeWidth;
 		this.baseTextSize = baseTextSize;
 		this.rulesList = new ArrayList<>();
-		this.matchingCache = new LRUCache<>(MATCHING_CACHE_SIZE);
+		this.matchingCache = new MatchingCacheEntry[matchingCacheSize];
 	}
 
 	/**
 	 * Must be called when this RenderTheme gets destroyed to clean up and free resources.
 	 */
 	public void destroy() {
-		this.matchingCache.clear();
+		Arrays.fill(this.matchingCache, null);
 		for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
 			this.rulesList.get(i).onDestroy();
 		}
@@ -151,9 +169,7 @@ public class RenderTheme {
 	 *            the zoom level at which the node should be matched.
 	 */
 	public void matchNode(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel) {
-		for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
-			this.rulesList.get(i).matchNode(renderCallback, tags, zoomLevel);
-		}
+		match(renderCallback, tags, zoomLevel, Closed.ANY, true);
 	}
 
 	/**
@@ -180,25 +196,60 @@ public class RenderTheme {
 		}
 	}
 
-	private void matchWay(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel, Closed closed) {
-		MatchingCacheKey matchingCacheKey = new MatchingCacheKey(tags, zoomLevel, closed);
+	private void match(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel, Closed closed, boolean node) {
+		this.tagSet.set(tags, this.tagDictionary);
+		if (this.matchingCache.length == 0) {
+			matchRules(renderCallback, tags, zoomLevel, closed, node, null);
+			return;
+		}
+
+		long fingerprint = this.tagSet.getFingerprint();
+		fingerprint = (fingerprint ^ (zoomLevel << 2 | closed.ordinal())) * 0x9E3779B97F4A7C15L;
+		int index = (int) (fingerprint ^ (fingerprint >>> 32)) & (this.matchingCache.length - 1);
 
-		List<RenderInstruction> matchingList = this.matchingCache.get(matchingCacheKey);
-		if (matchingList != null) {
+		MatchingCacheEntry matchingCacheEntry = this.matchingCache[index];
+		if (matchingCacheEntry != null && matchingCacheEntry.matches(fingerprint, this.tagSet, zoomLevel, closed)) {
 			// cache hit
-			for (int i = 0, n = matchingList.size(); i < n; ++i) {
-				matchingList.get(i).renderWay(renderCallback, tags);
+			List<RenderInstruction> renderInstructions = matchingCacheEntry.renderInstructions;
+			for (int i = 0, n = renderInstructions.size(); i < n; ++i) {
+				if (node) {
+					renderInstructions.get(i).renderNode(renderCallback, tags);
+				} else {
+					renderInstructions.get(i).renderWay(renderCallback, tags);
+				}
 			}
 			return;
 		}
 
-		// cache miss
-		matchingList = new ArrayList<>();
+		// cache miss, the entry is replaced
+		if (matchingCacheEntry == null) {
+			matchingCacheEntry = new MatchingCacheEntry();
+			this.matchingCache[index] = matchingCacheEntry;
+		}
+		matchingCacheEntry.set(fingerprint, this.tagSet, zoomLevel, closed);
+		matchRules(renderCallback, tags, zoomLevel, closed, node, matchingCacheEntry.renderInstructions);
+	}
+
+	/**
+	 * Matches the current tag set against all rules.
+	 * 
+	 * @param renderInstructions
+	 *            the list to which the matching render instructions are added, may be null.
+	 */
+	private void matchRules(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel, Closed closed,
+			boolean node, List<RenderInstruction> renderInstructions) {
 		for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
-			this.rulesList.get(i).matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
+			if (node) {
+				this.rulesList.get(i).matchNode(renderCallback, tags, this.tagSet, zoomLevel, renderInstructions);
+			} else {
+				this.rulesList.get(i).matchWay(renderCallback, tags, this.tagSet, zoomLevel, closed,
+						renderInstructions);
+			}
 		}
+	}
 
-		this.matchingCache.put(matchingCacheKey, matchingList);
+	private void matchWay(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel, Closed closed) {
+		match(renderCallback, tags, zoomLevel, closed, false);
 	}
 
 	void addRule(Rule rule) {
@@ -207,9 +258,11 @@ public class RenderTheme {
 
 	void complete() {
 		this.rulesList.trimToSize();
+		this.tagDictionary = new TagDictionary();
 		for (int i = 0, n = this.rulesList.size(); i < n; ++i) {
-			this.rulesList.get(i).onComplete();
+			this.rulesList.get(i).onComplete(this.tagDictionary);
 		}
+		this.tagSet = new TagSet(this.tagDictionary);
 	}
 
 	void setLevels(int levels) {
@@ -55,7 +55,8 @@ public final class RenderThemeHandler extends DefaultHandler {
 	/**
 	 * @param jobTheme
 	 *            the JobTheme to create a RenderTheme from.
-	 * @return a new RenderTheme which is created by parsing the XML data from the input stream.
+	 * @return a new RenderTheme which is created by parsing the XML data from the input stream. Calls are serialized,
+	 *         as the rule matchers are cached in static maps while parsing.
 	 * @throws SAXException
 	 *             if an error occurs while parsing the render theme XML.
 	 * @throws ParserConfigurationException
@@ -63,7 +64,7 @@ public final class RenderThemeHandler extends DefaultHandler {
 	 * @throws IOException
 	 *             if an I/O error occurs while reading from the input stream.
 	 */
-	public static RenderTheme getRenderTheme(JobTheme jobTheme) throws SAXException, ParserConfigurationException,
+	public static synchronized RenderTheme getRenderTheme(JobTheme jobTheme) throws SAXException, ParserConfigurationException,
 			IOException {
 		RenderThemeHandler renderThemeHandler = new RenderThemeHandler(jobTheme.getRelativePathPrefix());
 		XMLReader xmlReader = SAXParserFactory.newInstance().newSAXParser().getXMLReader();
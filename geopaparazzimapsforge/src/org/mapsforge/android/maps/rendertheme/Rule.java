@@ -195,42 +195,54 @@ abstract class Rule {
 		this.subRules.add(rule);
 	}
 
-	abstract boolean matchesNode(List<Tag> tags, byte zoomLevel);
+	/**
+	 * Compiles the attribute matchers of this rule with the given dictionary.
+	 */
+	abstract void compile(TagDictionary tagDictionary);
 
-	abstract boolean matchesWay(List<Tag> tags, byte zoomLevel, Closed closed);
+	abstract boolean matchesNode(TagSet tagSet, byte zoomLevel);
 
-	void matchNode(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel) {
-		if (matchesNode(tags, zoomLevel)) {
+	abstract boolean matchesWay(TagSet tagSet, byte zoomLevel, Closed closed);
+
+	void matchNode(RenderCallback renderCallback, List<Tag> tags, TagSet tagSet, byte zoomLevel,
+			List<RenderInstruction> matchingList) {
+		if (matchesNode(tagSet, zoomLevel)) {
 			for (int i = 0, n = this.renderInstructions.size(); i < n; ++i) {
 				this.renderInstructions.get(i).renderNode(renderCallback, tags);
+				if (matchingList != null) {
+					matchingList.add(this.renderInstructions.get(i));
+				}
 			}
 			for (int i = 0, n = this.subRules.size(); i < n; ++i) {
-				this.subRules.get(i).matchNode(renderCallback, tags, zoomLevel);
+				this.subRules.get(i).matchNode(renderCallback, tags, tagSet, zoomLevel, matchingList);
 			}
 		}
 	}
 
-	void matchWay(RenderCallback renderCallback, List<Tag> tags, byte zoomLevel, Closed closed,
+	void matchWay(RenderCallback renderCallback, List<Tag> tags, TagSet tagSet, byte zoomLevel, Closed closed,
 			List<RenderInstruction> matchingList) {
-		if (matchesWay(tags, zoomLevel, closed)) {
+		if (matchesWay(tagSet, zoomLevel, closed)) {
 			for (int i = 0, n = this.renderInstructions.size(); i < n; ++i) {
 				this.renderInstructions.get(i).renderWay(renderCallback, tags);
-				matchingList.add(this.renderInstructions.get(i));
+				if (matchingList != null) {
+					matchingList.add(this.renderInstructions.get(i));
+				}
 			}
 			for (int i = 0, n = this.subRules.size(); i < n; ++i) {
-				this.subRules.get(i).matchWay(renderCallback, tags, zoomLevel, closed, matchingList);
+				this.subRules.get(i).matchWay(renderCallback, tags, tagSet, zoomLevel, closed, matchingList);
 			}
 		}
 	}
 
-	void onComplete() {
+	void onComplete(TagDictionary tagDictionary) {
 		MATCHERS_CACHE_KEY.clear();
 		MATCHERS_CACHE_VALUE.clear();
 
+		compile(tagDictionary);
 		this.renderInstructions.trimToSize();
 		this.subRules.trimToSize();
 		for (int i = 0, n = this.subRules.size(); i < n; ++i) {
-			this.subRules.get(i).onComplete();
+			this.subRules.get(i).onComplete(tagDictionary);
 		}
 	}
 
@@ -22,11 +22,17 @@ import org.mapsforge.core.model.Tag;
 
 class SingleKeyMatcher implements AttributeMatcher {
 	private final String key;
+	private long[] keyMask;
 
 	SingleKeyMatcher(String key) {
 		this.key = key;
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		this.keyMask = tagDictionary.getKeyMask(Collections.singletonList(this.key));
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		return attributeMatcher == this || attributeMatcher.matches(Collections.singletonList(new Tag(this.key, null)));
@@ -41,4 +47,9 @@ class SingleKeyMatcher implements AttributeMatcher {
 		}
 		return false;
 	}
+
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return tagSet.intersectsKeys(this.keyMask);
+	}
 }
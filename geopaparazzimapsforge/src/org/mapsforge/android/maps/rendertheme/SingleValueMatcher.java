@@ -22,11 +22,17 @@ import org.mapsforge.core.model.Tag;
 
 class SingleValueMatcher implements AttributeMatcher {
 	private final String value;
+	private long[] valueMask;
 
 	SingleValueMatcher(String value) {
 		this.value = value;
 	}
 
+	@Override
+	public void compile(TagDictionary tagDictionary) {
+		this.valueMask = tagDictionary.getValueMask(Collections.singletonList(this.value));
+	}
+
 	@Override
 	public boolean isCoveredBy(AttributeMatcher attributeMatcher) {
 		return attributeMatcher == this || attributeMatcher.matches(Collections.singletonList(new Tag(null, this.value)));
@@ -41,4 +47,9 @@ class SingleValueMatcher implements AttributeMatcher {
 		}
 		return false;
 	}
+
+	@Override
+	public boolean matches(TagSet tagSet) {
+		return tagSet.intersectsValues(this.valueMask);
+	}
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns consecutive IDs to the keys and to the values which are used by the rules of a render theme, so that the
+ * attribute matchers can be evaluated with bit operations on a {@link TagSet}.
+ * <p>
+ * Keys and values are interned, the lookup of a string which has been interned as well, like the tags of a map file,
+ * therefore does not compare characters.
+ */
+final class TagDictionary {
+	private static long[] getMask(Map<String, Integer> ids, List<String> strings) {
+		int[] stringIds = new int[strings.size()];
+		int maximumId = 0;
+		for (int i = 0; i < stringIds.length; ++i) {
+			String string = strings.get(i).intern();
+			Integer id = ids.get(string);
+			if (id == null) {
+				id = Integer.valueOf(ids.size());
+				ids.put(string, id);
+			}
+			stringIds[i] = id.intValue();
+			maximumId = Math.max(maximumId, stringIds[i]);
+		}
+
+		long[] mask = new long[(maximumId >>> 6) + 1];
+		for (int id : stringIds) {
+			mask[id >>> 6] |= 1L << id;
+		}
+		return mask;
+	}
+
+	private final Map<String, Integer> keyIds;
+	private final Map<String, Integer> valueIds;
+
+	TagDictionary() {
+		this.keyIds = new HashMap<>();
+		this.valueIds = new HashMap<>();
+	}
+
+	/**
+	 * @return the number of distinct keys.
+	 */
+	int getKeyCount() {
+		return this.keyIds.size();
+	}
+
+	/**
+	 * @return the ID of the given key or -1 if no rule uses it.
+	 */
+	int getKeyId(String key) {
+		Integer id = this.keyIds.get(key);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Adds the given keys to this dictionary if necessary.
+	 * 
+	 * @return a bit set with the IDs of the given keys.
+	 */
+	long[] getKeyMask(List<String> keys) {
+		return getMask(this.keyIds, keys);
+	}
+
+	/**
+	 * @return the number of distinct values.
+	 */
+	int getValueCount() {
+		return this.valueIds.size();
+	}
+
+	/**
+	 * @return the ID of the given value or -1 if no rule uses it.
+	 */
+	int getValueId(String value) {
+		Integer id = this.valueIds.get(value);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Adds the given values to this dictionary if necessary.
+	 * 
+	 * @return a bit set with the IDs of the given values.
+	 */
+	long[] getValueMask(List<String> values) {
+		return getMask(this.valueIds, values);
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * The keys and the values of the tags of an element as bit sets over the IDs of a {@link TagDictionary}, plus a
+ * fingerprint of both bit sets. Keys and values which are not used by any rule are left out, so elements which only
+ * differ in their names get the same bit sets. One instance is reused for all elements.
+ */
+final class TagSet {
+	private static final long FINGERPRINT_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	private static long addToFingerprint(long fingerprint, long[] words) {
+		long result = fingerprint;
+		for (int i = 0; i < words.length; ++i) {
+			result = (result ^ words[i]) * FINGERPRINT_MULTIPLIER;
+			result ^= result >>> 29;
+		}
+		return result;
+	}
+
+	private static boolean intersects(long[] words, long[] mask) {
+		for (int i = 0; i < mask.length; ++i) {
+			if ((words[i] & mask[i]) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long fingerprint;
+	final long[] keys;
+	final long[] values;
+
+	TagSet(TagDictionary tagDictionary) {
+		this.keys = new long[(tagDictionary.getKeyCount() >>> 6) + 1];
+		this.values = new long[(tagDictionary.getValueCount() >>> 6) + 1];
+	}
+
+	/**
+	 * @return a 64-bit hash of the bit sets, equal bit sets have the same fingerprint.
+	 */
+	long getFingerprint() {
+		return this.fingerprint;
+	}
+
+	/**
+	 * @return true if at least one of the keys in the given bit set is contained, false otherwise.
+	 */
+	boolean intersectsKeys(long[] keyMask) {
+		return intersects(this.keys, keyMask);
+	}
+
+	/**
+	 * @return true if at least one of the values in the given bit set is contained, false otherwise.
+	 */
+	boolean intersectsValues(long[] valueMask) {
+		return intersects(this.values, valueMask);
+	}
+
+	/**
+	 * Replaces the content of this tag set with the given tags.
+	 */
+	void set(List<Tag> tags, TagDictionary tagDictionary) {
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.values, 0);
+
+		for (int i = 0, n = tags.size(); i < n; ++i) {
+			Tag tag = tags.get(i);
+			int keyId = tagDictionary.getKeyId(tag.key);
+			if (keyId >= 0) {
+				this.keys[keyId >>> 6] |= 1L << keyId;
+			}
+			int valueId = tagDictionary.getValueId(tag.value);
+			if (valueId >= 0) {
+				this.values[valueId >>> 6] |= 1L << valueId;
+			}
+		}
+
+		this.fingerprint = addToFingerprint(addToFingerprint(this.keys.length, this.keys), this.values);
+	}
+}
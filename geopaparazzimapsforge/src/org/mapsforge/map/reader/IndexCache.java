@@ -15,18 +15,29 @@
 package org.mapsforge.map.reader;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.mapsforge.core.util.LRUCache;
 import org.mapsforge.map.reader.header.SubFileParameter;
 
 /**
- * A cache for database index blocks with a fixed size and LRU policy.
+ * A thread-safe cache for database index blocks with a memory budget and LRU policy.
+ * <p>
+ * The cache is split into segments, each with its own lock, LRU order and share of the budget, so that concurrent
+ * readers rarely wait for each other. On a miss the index blocks of the neighbouring map blocks can be loaded as well:
+ * the index is stored row by row, so the blocks left and right are usually in the same index block and the blocks above
+ * and below are one row of map blocks away.
  */
 class IndexCache {
+	/**
+	 * Estimated memory used by one cached index block besides its data: key, map entry and array header.
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
 	/**
 	 * Number of index entries that one index block consists of.
 	 */
@@ -34,38 +45,85 @@ class IndexCache {
 
 	private static final Logger LOGGER = Logger.getLogger(IndexCache.class.getName());
 
+	/**
+	 * Number of independently locked segments, a power of two.
+	 */
+	private static final int SEGMENTS = 8;
+
 	/**
 	 * Maximum size in bytes of one index block.
 	 */
 	private static final int SIZE_OF_INDEX_BLOCK = INDEX_ENTRIES_PER_BLOCK * SubFileParameter.BYTES_PER_INDEX_ENTRY;
 
-	private final Map<IndexCacheEntryKey, byte[]> map;
-	private final RandomAccessFile randomAccessFile;
+	/**
+	 * The index blocks of one segment in access order, guarded by the segment itself.
+	 */
+	private static final class Segment extends LinkedHashMap<IndexCacheEntryKey, byte[]> {
+		private static final long serialVersionUID = 1L;
+
+		long sizeInBytes;
+
+		Segment() {
+			super(16, 0.75f, true);
+		}
+	}
+
+	private static int getEntrySize(byte[] indexBlock) {
+		return indexBlock.length + ENTRY_OVERHEAD;
+	}
+
+	private final long capacityInBytes;
+	private final AtomicLong evictions;
+	private final AtomicLong hits;
+	private final MappedMapFile mappedMapFile;
+	private final AtomicLong misses;
+	private final boolean prefetch;
+	private final long segmentCapacityInBytes;
+	private final Segment[] segments;
 
 	/**
-	 * @param randomAccessFile
+	 * @param mappedMapFile
 	 *            the map file from which the index should be read and cached.
-	 * @param capacity
-	 *            the maximum number of entries in the cache.
+	 * @param capacityInBytes
+	 *            the approximate maximum memory used by the cache.
+	 * @param prefetch
+	 *            true to load the index blocks of the neighbouring map blocks on a miss.
 	 * @throws IllegalArgumentException
 	 *             if the capacity is negative.
 	 */
-	IndexCache(RandomAccessFile randomAccessFile, int capacity) {
-		this.randomAccessFile = randomAccessFile;
-		this.map = new LRUCache<>(capacity);
+	IndexCache(MappedMapFile mappedMapFile, long capacityInBytes, boolean prefetch) {
+		if (capacityInBytes < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacityInBytes);
+		}
+		this.mappedMapFile = mappedMapFile;
+		this.capacityInBytes = capacityInBytes;
+		this.segmentCapacityInBytes = capacityInBytes / SEGMENTS;
+		this.prefetch = prefetch;
+		this.evictions = new AtomicLong();
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i) {
+			this.segments[i] = new Segment();
+		}
 	}
 
 	/**
 	 * Destroy the cache at the end of its lifetime.
 	 */
 	void destroy() {
-		this.map.clear();
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				segment.clear();
+				segment.sizeInBytes = 0;
+			}
+		}
 	}
 
 	/**
 	 * Returns the index entry of a block in the given map file. If the required index entry is not cached, it will be
 	 * read from the map file index and put in the cache.
-	 * 
+	 *
 	 * @param subFileParameter
 	 *            the parameters of the map file for which the index entry is needed.
 	 * @param blockNumber
@@ -73,47 +131,202 @@ class IndexCache {
 	 * @return the index entry or -1 if the block number is invalid.
 	 */
 	long getIndexEntry(SubFileParameter subFileParameter, long blockNumber) {
-		try {
-			// check if the block number is out of bounds
-			if (blockNumber >= subFileParameter.numberOfBlocks) {
-				return -1;
-			}
+		// check if the block number is out of bounds
+		if (blockNumber < 0 || blockNumber >= subFileParameter.numberOfBlocks) {
+			return -1;
+		}
 
-			// calculate the index block number
-			long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
+		// calculate the index block number
+		long indexBlockNumber = blockNumber / INDEX_ENTRIES_PER_BLOCK;
 
-			// create the cache entry key for this request
-			IndexCacheEntryKey indexCacheEntryKey = new IndexCacheEntryKey(subFileParameter, indexBlockNumber);
+		// create the cache entry key for this request
+		IndexCacheEntryKey indexCacheEntryKey = new IndexCacheEntryKey(subFileParameter, indexBlockNumber);
+		Segment segment = getSegment(indexCacheEntryKey);
 
-			// check for cached index block
-			byte[] indexBlock = this.map.get(indexCacheEntryKey);
+		// check for cached index block
+		byte[] indexBlock;
+		synchronized (segment) {
+			indexBlock = segment.get(indexCacheEntryKey);
+		}
+		if (indexBlock != null) {
+			this.hits.incrementAndGet();
+		} else {
+			this.misses.incrementAndGet();
+			indexBlock = load(subFileParameter, indexCacheEntryKey, segment);
 			if (indexBlock == null) {
-				// cache miss, seek to the correct index block in the file and read it
-				long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber * SIZE_OF_INDEX_BLOCK;
+				return -1;
+			}
+			if (this.prefetch) {
+				prefetchNeighbours(subFileParameter, blockNumber, indexBlockNumber);
+			}
+		}
+
+		// calculate the address of the index entry inside the index block
+		long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
+		int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
 
-				int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
-				int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
-				indexBlock = new byte[indexBlockSize];
+		// return the real index entry
+		return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
+	}
+
+	/**
+	 * @return the counters and the current size of this cache.
+	 */
+	IndexCacheStatistics getStatistics() {
+		long sizeInBytes = 0;
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				sizeInBytes += segment.sizeInBytes;
+			}
+		}
+		return new IndexCacheStatistics(this.hits.get(), this.misses.get(), this.evictions.get(), sizeInBytes,
+				this.capacityInBytes);
+	}
 
-				this.randomAccessFile.seek(indexBlockPosition);
-				if (this.randomAccessFile.read(indexBlock, 0, indexBlockSize) != indexBlockSize) {
-					LOGGER.warning("reading the current index block has failed");
-					return -1;
+	/**
+	 * Loads the index blocks of all map blocks in the given range, as long as they fit in the cache.
+	 *
+	 * @param subFileParameter
+	 *            the parameters of the map file.
+	 * @param fromBlockX
+	 *            the first block column.
+	 * @param fromBlockY
+	 *            the first block row.
+	 * @param toBlockX
+	 *            the last block column.
+	 * @param toBlockY
+	 *            the last block row.
+	 * @return the number of index blocks which have been loaded.
+	 */
+	int warm(SubFileParameter subFileParameter, long fromBlockX, long fromBlockY, long toBlockX, long toBlockY) {
+		int loaded = 0;
+		long loadedBytes = 0;
+		for (long row = fromBlockY; row <= toBlockY; ++row) {
+			// the next block is needed as well to know the size of the last one
+			long fromBlockNumber = row * subFileParameter.blocksWidth + fromBlockX;
+			long toBlockNumber = Math.min(row * subFileParameter.blocksWidth + toBlockX + 1,
+					subFileParameter.numberOfBlocks - 1);
+			for (long indexBlockNumber = fromBlockNumber / INDEX_ENTRIES_PER_BLOCK; indexBlockNumber <= toBlockNumber
+					/ INDEX_ENTRIES_PER_BLOCK; ++indexBlockNumber) {
+				if (loadedBytes + SIZE_OF_INDEX_BLOCK + ENTRY_OVERHEAD > this.capacityInBytes) {
+					return loaded;
 				}
+				if (loadIfAbsent(subFileParameter, indexBlockNumber)) {
+					++loaded;
+					loadedBytes += SIZE_OF_INDEX_BLOCK + ENTRY_OVERHEAD;
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Discards the least recently used index blocks until the given memory is used at most.
+	 *
+	 * @param maximumSizeInBytes
+	 *            the maximum memory used by the remaining index blocks.
+	 */
+	void trimMemory(long maximumSizeInBytes) {
+		long segmentSizeInBytes = Math.max(maximumSizeInBytes, 0) / SEGMENTS;
+		for (Segment segment : this.segments) {
+			synchronized (segment) {
+				trimToSize(segment, segmentSizeInBytes, 0);
+			}
+		}
+	}
+
+	private Segment getSegment(IndexCacheEntryKey indexCacheEntryKey) {
+		int hash = indexCacheEntryKey.hashCode();
+		return this.segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Reads an index block from the file, outside of any lock, and puts it in the cache.
+	 *
+	 * @return the index block or null if it could not be read.
+	 */
+	private byte[] load(SubFileParameter subFileParameter, IndexCacheEntryKey indexCacheEntryKey, Segment segment) {
+		byte[] indexBlock = readIndexBlock(subFileParameter, indexCacheEntryKey.getIndexBlockNumber());
+		if (indexBlock == null) {
+			return null;
+		}
+
+		synchronized (segment) {
+			byte[] previous = segment.put(indexCacheEntryKey, indexBlock);
+			if (previous != null) {
+				// another thread has loaded the same block in the meantime
+				segment.sizeInBytes -= getEntrySize(previous);
+			}
+			segment.sizeInBytes += getEntrySize(indexBlock);
+
+			// remove the least recently used blocks, but always keep the new one
+			trimToSize(segment, this.segmentCapacityInBytes, 1);
+		}
+		return indexBlock;
+	}
+
+	/**
+	 * @return true if the index block was not cached and has been loaded.
+	 */
+	private boolean loadIfAbsent(SubFileParameter subFileParameter, long indexBlockNumber) {
+		IndexCacheEntryKey indexCacheEntryKey = new IndexCacheEntryKey(subFileParameter, indexBlockNumber);
+		Segment segment = getSegment(indexCacheEntryKey);
+		synchronized (segment) {
+			// do not change the access order of cached blocks
+			if (segment.containsKey(indexCacheEntryKey)) {
+				return false;
+			}
+		}
+		return load(subFileParameter, indexCacheEntryKey, segment) != null;
+	}
 
-				// put the index block in the map
-				this.map.put(indexCacheEntryKey, indexBlock);
+	private void prefetchNeighbours(SubFileParameter subFileParameter, long blockNumber, long indexBlockNumber) {
+		long[] neighbours = { blockNumber - subFileParameter.blocksWidth, blockNumber + subFileParameter.blocksWidth,
+				blockNumber - 1, blockNumber + 1 };
+		for (long neighbour : neighbours) {
+			if (neighbour < 0 || neighbour >= subFileParameter.numberOfBlocks) {
+				continue;
+			}
+			long neighbourIndexBlockNumber = neighbour / INDEX_ENTRIES_PER_BLOCK;
+			if (neighbourIndexBlockNumber != indexBlockNumber) {
+				loadIfAbsent(subFileParameter, neighbourIndexBlockNumber);
 			}
+		}
+	}
 
-			// calculate the address of the index entry inside the index block
-			long indexEntryInBlock = blockNumber % INDEX_ENTRIES_PER_BLOCK;
-			int addressInIndexBlock = (int) (indexEntryInBlock * SubFileParameter.BYTES_PER_INDEX_ENTRY);
+	/**
+	 * Removes the least recently used blocks of the segment, which must be locked by the caller.
+	 */
+	private void trimToSize(Segment segment, long maximumSizeInBytes, int minimumBlocks) {
+		Iterator<Map.Entry<IndexCacheEntryKey, byte[]>> iterator = segment.entrySet().iterator();
+		while (segment.sizeInBytes > maximumSizeInBytes && segment.size() > minimumBlocks) {
+			Map.Entry<IndexCacheEntryKey, byte[]> eldest = iterator.next();
+			segment.sizeInBytes -= getEntrySize(eldest.getValue());
+			iterator.remove();
+			this.evictions.incrementAndGet();
+		}
+	}
+
+	private byte[] readIndexBlock(SubFileParameter subFileParameter, long indexBlockNumber) {
+		try {
+			long indexBlockPosition = subFileParameter.indexStartAddress + indexBlockNumber * SIZE_OF_INDEX_BLOCK;
+
+			int remainingIndexSize = (int) (subFileParameter.indexEndAddress - indexBlockPosition);
+			int indexBlockSize = Math.min(SIZE_OF_INDEX_BLOCK, remainingIndexSize);
+			if (indexBlockSize <= 0) {
+				LOGGER.warning("invalid index block: " + indexBlockNumber);
+				return null;
+			}
+			byte[] indexBlock = new byte[indexBlockSize];
 
-			// return the real index entry
-			return Deserializer.getFiveBytesLong(indexBlock, addressInIndexBlock);
+			if (!this.mappedMapFile.readFully(indexBlockPosition, indexBlock)) {
+				LOGGER.warning("reading the current index block has failed");
+				return null;
+			}
+			return indexBlock;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
-			return -1;
+			return null;
 		}
 	}
 }
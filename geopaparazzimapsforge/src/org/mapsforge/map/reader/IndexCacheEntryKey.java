@@ -61,6 +61,13 @@ class IndexCacheEntryKey {
 		return this.hashCodeValue;
 	}
 
+	/**
+	 * @return the number of the index block.
+	 */
+	long getIndexBlockNumber() {
+		return this.indexBlockNumber;
+	}
+
 	/**
 	 * @return the hash code of this object.
 	 */
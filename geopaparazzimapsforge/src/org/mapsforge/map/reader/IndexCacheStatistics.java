@@ -0,0 +1,70 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+/**
+ * An immutable snapshot of the counters of the index cache of a {@link MapDatabase}.
+ */
+public class IndexCacheStatistics {
+	/**
+	 * The approximate maximum memory used by the cache in bytes.
+	 */
+	public final long capacityInBytes;
+
+	/**
+	 * The number of index blocks removed to stay within the capacity.
+	 */
+	public final long evictions;
+
+	/**
+	 * The number of index lookups served from the cache.
+	 */
+	public final long hits;
+
+	/**
+	 * The number of index lookups which had to read from the file.
+	 */
+	public final long misses;
+
+	/**
+	 * The approximate memory currently used by the cache in bytes.
+	 */
+	public final long sizeInBytes;
+
+	IndexCacheStatistics(long hits, long misses, long evictions, long sizeInBytes, long capacityInBytes) {
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		this.sizeInBytes = sizeInBytes;
+		this.capacityInBytes = capacityInBytes;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("IndexCacheStatistics [hits=");
+		stringBuilder.append(this.hits);
+		stringBuilder.append(", misses=");
+		stringBuilder.append(this.misses);
+		stringBuilder.append(", evictions=");
+		stringBuilder.append(this.evictions);
+		stringBuilder.append(", sizeInBytes=");
+		stringBuilder.append(this.sizeInBytes);
+		stringBuilder.append(", capacityInBytes=");
+		stringBuilder.append(this.capacityInBytes);
+		stringBuilder.append("]");
+		return stringBuilder.toString();
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * A reusable container for the map data of one tile, filled by
+ * {@link MapDatabase#readMapData(org.mapsforge.core.model.Tile, MapDataBuffer)}.
+ * <p>
+ * All POIs and ways are kept in growable primitive arrays instead of one object per element: the way nodes of all ways
+ * share one coordinate array, tags are stored as IDs of the tag tables in the map file header, and the names, house
+ * numbers, references and elevations are taken from a pool which lives as long as this buffer. Once the arrays have
+ * grown to the size of the largest tile, reading a tile creates almost no objects.
+ * <p>
+ * The content is only valid until the next read. This class is not thread-safe, every thread needs its own instance.
+ */
+public class MapDataBuffer {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private float[] coordinates;
+	private int coordinatesLength;
+	private Tag[] featureTags;
+	private int featureTagsLength;
+	private boolean isWater;
+	private byte[] poiFeatureTagCounts;
+	private int[] poiFeatureTagStarts;
+	private int[] poiLatitudes;
+	private byte[] poiLayers;
+	private int[] poiLongitudes;
+	private int pois;
+	private byte[] poiTagIdCounts;
+	private int[] poiTagIdStarts;
+	private Tag[] poiTagTable;
+	private int[] segmentOffsets;
+	private int segments;
+	private int[] tagIds;
+	private int tagIdsLength;
+	private byte[] wayFeatureTagCounts;
+	private int[] wayFeatureTagStarts;
+	private int[] wayLabelLatitudes;
+	private int[] wayLabelLongitudes;
+	private boolean[] wayLabelPositions;
+	private byte[] wayLayers;
+	private int[] wayFirstSegments;
+	private int ways;
+	private int[] waySegmentCounts;
+	private byte[] wayTagIdCounts;
+	private int[] wayTagIdStarts;
+	private Tag[] wayTagTable;
+
+	final QueryParameters queryParameters;
+	final TagPool tagPool;
+
+	/**
+	 * Constructs an empty buffer.
+	 */
+	public MapDataBuffer() {
+		this.coordinates = new float[INITIAL_CAPACITY * 16];
+		this.featureTags = new Tag[INITIAL_CAPACITY];
+		this.tagIds = new int[INITIAL_CAPACITY * 2];
+		this.segmentOffsets = new int[INITIAL_CAPACITY + 1];
+
+		this.poiLayers = new byte[INITIAL_CAPACITY];
+		this.poiLatitudes = new int[INITIAL_CAPACITY];
+		this.poiLongitudes = new int[INITIAL_CAPACITY];
+		this.poiTagIdStarts = new int[INITIAL_CAPACITY];
+		this.poiTagIdCounts = new byte[INITIAL_CAPACITY];
+		this.poiFeatureTagStarts = new int[INITIAL_CAPACITY];
+		this.poiFeatureTagCounts = new byte[INITIAL_CAPACITY];
+
+		this.wayLayers = new byte[INITIAL_CAPACITY];
+		this.wayTagIdStarts = new int[INITIAL_CAPACITY];
+		this.wayTagIdCounts = new byte[INITIAL_CAPACITY];
+		this.wayFeatureTagStarts = new int[INITIAL_CAPACITY];
+		this.wayFeatureTagCounts = new byte[INITIAL_CAPACITY];
+		this.wayFirstSegments = new int[INITIAL_CAPACITY];
+		this.waySegmentCounts = new int[INITIAL_CAPACITY];
+		this.wayLabelPositions = new boolean[INITIAL_CAPACITY];
+		this.wayLabelLatitudes = new int[INITIAL_CAPACITY];
+		this.wayLabelLongitudes = new int[INITIAL_CAPACITY];
+
+		this.queryParameters = new QueryParameters();
+		this.queryParameters.readBuffer = new ReadBuffer();
+		this.tagPool = new TagPool();
+	}
+
+	/**
+	 * Returns the way nodes of all ways. The way nodes of segment {@code i} are stored from index
+	 * {@code getSegmentOffsets()[i]} inclusive to index {@code getSegmentOffsets()[i + 1]} exclusive as pairs of
+	 * longitude and latitude in microdegrees. The caller may modify the values, for example to project them in place.
+	 *
+	 * @return the coordinate array of this buffer, which may be longer than the stored way nodes.
+	 */
+	public float[] getCoordinates() {
+		return this.coordinates;
+	}
+
+	/**
+	 * @return the number of POIs.
+	 */
+	public int getPoiCount() {
+		return this.pois;
+	}
+
+	/**
+	 * @return the latitude of the given POI in microdegrees.
+	 */
+	public int getPoiLatitude(int poi) {
+		return this.poiLatitudes[poi];
+	}
+
+	/**
+	 * @return the layer of the given POI + 5 (to avoid negative values).
+	 */
+	public byte getPoiLayer(int poi) {
+		return this.poiLayers[poi];
+	}
+
+	/**
+	 * @return the longitude of the given POI in microdegrees.
+	 */
+	public int getPoiLongitude(int poi) {
+		return this.poiLongitudes[poi];
+	}
+
+	/**
+	 * Replaces the content of the given list with the tags of the given POI.
+	 *
+	 * @param poi
+	 *            the index of the POI.
+	 * @param tags
+	 *            the list to fill, which is typically reused for all POIs.
+	 */
+	public void getPoiTags(int poi, List<Tag> tags) {
+		tags.clear();
+		addTags(this.poiTagTable, this.poiTagIdStarts[poi], this.poiTagIdCounts[poi], this.poiFeatureTagStarts[poi],
+				this.poiFeatureTagCounts[poi], tags);
+	}
+
+	/**
+	 * @return the start offsets of all segments in the coordinate array, followed by the end offset of the last one.
+	 * @see #getCoordinates()
+	 */
+	public int[] getSegmentOffsets() {
+		return this.segmentOffsets;
+	}
+
+	/**
+	 * @return the number of ways.
+	 */
+	public int getWayCount() {
+		return this.ways;
+	}
+
+	/**
+	 * @return the index of the first segment of the given way, which is its outer line.
+	 */
+	public int getWayFirstSegment(int way) {
+		return this.wayFirstSegments[way];
+	}
+
+	/**
+	 * @return the latitude of the label position of the given way in microdegrees.
+	 * @see #hasWayLabelPosition(int)
+	 */
+	public int getWayLabelLatitude(int way) {
+		return this.wayLabelLatitudes[way];
+	}
+
+	/**
+	 * @return the longitude of the label position of the given way in microdegrees.
+	 * @see #hasWayLabelPosition(int)
+	 */
+	public int getWayLabelLongitude(int way) {
+		return this.wayLabelLongitudes[way];
+	}
+
+	/**
+	 * @return the layer of the given way + 5 (to avoid negative values).
+	 */
+	public byte getWayLayer(int way) {
+		return this.wayLayers[way];
+	}
+
+	/**
+	 * @return the number of segments of the given way, which are stored one after the other.
+	 */
+	public int getWaySegmentCount(int way) {
+		return this.waySegmentCounts[way];
+	}
+
+	/**
+	 * Replaces the content of the given list with the tags of the given way.
+	 *
+	 * @param way
+	 *            the index of the way.
+	 * @param tags
+	 *            the list to fill, which is typically reused for all ways.
+	 */
+	public void getWayTags(int way, List<Tag> tags) {
+		tags.clear();
+		addTags(this.wayTagTable, this.wayTagIdStarts[way], this.wayTagIdCounts[way], this.wayFeatureTagStarts[way],
+				this.wayFeatureTagCounts[way], tags);
+	}
+
+	/**
+	 * @return true if the given way has a label position, false otherwise.
+	 */
+	public boolean hasWayLabelPosition(int way) {
+		return this.wayLabelPositions[way];
+	}
+
+	/**
+	 * @return true if the read area is completely covered by water, false otherwise.
+	 */
+	public boolean isWater() {
+		return this.isWater;
+	}
+
+	private void addTags(Tag[] tagTable, int tagIdStart, int tagIdCount, int featureTagStart, int featureTagCount,
+			List<Tag> tags) {
+		for (int i = tagIdStart, n = tagIdStart + tagIdCount; i < n; ++i) {
+			tags.add(tagTable[this.tagIds[i]]);
+		}
+		for (int i = featureTagStart, n = featureTagStart + featureTagCount; i < n; ++i) {
+			tags.add(this.featureTags[i]);
+		}
+	}
+
+	private void ensureCoordinatesCapacity(int length) {
+		if (this.coordinatesLength + length > this.coordinates.length) {
+			this.coordinates = Arrays.copyOf(this.coordinates,
+					Math.max(this.coordinates.length * 2, this.coordinatesLength + length));
+		}
+	}
+
+	private void growPois() {
+		int capacity = this.poiLayers.length * 2;
+		this.poiLayers = Arrays.copyOf(this.poiLayers, capacity);
+		this.poiLatitudes = Arrays.copyOf(this.poiLatitudes, capacity);
+		this.poiLongitudes = Arrays.copyOf(this.poiLongitudes, capacity);
+		this.poiTagIdStarts = Arrays.copyOf(this.poiTagIdStarts, capacity);
+		this.poiTagIdCounts = Arrays.copyOf(this.poiTagIdCounts, capacity);
+		this.poiFeatureTagStarts = Arrays.copyOf(this.poiFeatureTagStarts, capacity);
+		this.poiFeatureTagCounts = Arrays.copyOf(this.poiFeatureTagCounts, capacity);
+	}
+
+	private void growWays() {
+		int capacity = this.wayLayers.length * 2;
+		this.wayLayers = Arrays.copyOf(this.wayLayers, capacity);
+		this.wayTagIdStarts = Arrays.copyOf(this.wayTagIdStarts, capacity);
+		this.wayTagIdCounts = Arrays.copyOf(this.wayTagIdCounts, capacity);
+		this.wayFeatureTagStarts = Arrays.copyOf(this.wayFeatureTagStarts, capacity);
+		this.wayFeatureTagCounts = Arrays.copyOf(this.wayFeatureTagCounts, capacity);
+		this.wayFirstSegments = Arrays.copyOf(this.wayFirstSegments, capacity);
+		this.waySegmentCounts = Arrays.copyOf(this.waySegmentCounts, capacity);
+		this.wayLabelPositions = Arrays.copyOf(this.wayLabelPositions, capacity);
+		this.wayLabelLatitudes = Arrays.copyOf(this.wayLabelLatitudes, capacity);
+		this.wayLabelLongitudes = Arrays.copyOf(this.wayLabelLongitudes, capacity);
+	}
+
+	void addFeatureTag(Tag tag) {
+		if (this.featureTagsLength == this.featureTags.length) {
+			this.featureTags = Arrays.copyOf(this.featureTags, this.featureTagsLength * 2);
+		}
+		this.featureTags[this.featureTagsLength++] = tag;
+	}
+
+	/**
+	 * Adds a POI whose tags have been added since the given offsets.
+	 */
+	void addPoi(byte layer, int latitude, int longitude, int tagIdStart, int featureTagStart) {
+		if (this.pois == this.poiLayers.length) {
+			growPois();
+		}
+		int poi = this.pois++;
+		this.poiLayers[poi] = layer;
+		this.poiLatitudes[poi] = latitude;
+		this.poiLongitudes[poi] = longitude;
+		this.poiTagIdStarts[poi] = tagIdStart;
+		this.poiTagIdCounts[poi] = (byte) (this.tagIdsLength - tagIdStart);
+		this.poiFeatureTagStarts[poi] = featureTagStart;
+		this.poiFeatureTagCounts[poi] = (byte) (this.featureTagsLength - featureTagStart);
+	}
+
+	/**
+	 * Prepares the coordinate array for a segment of the given length.
+	 *
+	 * @return the offset in {@link #getCoordinates()} at which the segment has to be stored.
+	 */
+	int addSegment(int length) {
+		ensureCoordinatesCapacity(length);
+		if (this.segments + 1 == this.segmentOffsets.length) {
+			this.segmentOffsets = Arrays.copyOf(this.segmentOffsets, this.segmentOffsets.length * 2);
+		}
+		int offset = this.coordinatesLength;
+		this.coordinatesLength += length;
+		this.segmentOffsets[++this.segments] = this.coordinatesLength;
+		return offset;
+	}
+
+	void addTagId(int tagId) {
+		if (this.tagIdsLength == this.tagIds.length) {
+			this.tagIds = Arrays.copyOf(this.tagIds, this.tagIdsLength * 2);
+		}
+		this.tagIds[this.tagIdsLength++] = tagId;
+	}
+
+	/**
+	 * Adds a way whose segments have been added since the given segment index.
+	 */
+	void addWay(byte layer, int tagIdStart, int tagIdCount, int featureTagStart, int featureTagCount,
+			int firstSegment, boolean hasLabelPosition, int labelLatitude, int labelLongitude) {
+		if (this.ways == this.wayLayers.length) {
+			growWays();
+		}
+		int way = this.ways++;
+		this.wayLayers[way] = layer;
+		this.wayTagIdStarts[way] = tagIdStart;
+		this.wayTagIdCounts[way] = (byte) tagIdCount;
+		this.wayFeatureTagStarts[way] = featureTagStart;
+		this.wayFeatureTagCounts[way] = (byte) featureTagCount;
+		this.wayFirstSegments[way] = firstSegment;
+		this.waySegmentCounts[way] = this.segments - firstSegment;
+		this.wayLabelPositions[way] = hasLabelPosition;
+		this.wayLabelLatitudes[way] = labelLatitude;
+		this.wayLabelLongitudes[way] = labelLongitude;
+	}
+
+	/**
+	 * Removes all elements and prepares this buffer for the tag tables of the given map file.
+	 */
+	void clear(Tag[] poiTagTable, Tag[] wayTagTable) {
+		this.poiTagTable = poiTagTable;
+		this.wayTagTable = wayTagTable;
+		this.isWater = false;
+		this.pois = 0;
+		this.ways = 0;
+		this.segments = 0;
+		this.coordinatesLength = 0;
+		this.tagIdsLength = 0;
+		Arrays.fill(this.featureTags, 0, this.featureTagsLength, null);
+		this.featureTagsLength = 0;
+	}
+
+	int getFeatureTagsLength() {
+		return this.featureTagsLength;
+	}
+
+	int getSegmentCount() {
+		return this.segments;
+	}
+
+	int getTagIdsLength() {
+		return this.tagIdsLength;
+	}
+
+	/**
+	 * Removes all elements which have been added after the given state, for example of an invalid block.
+	 */
+	void reset(int poiCount, int wayCount, int segmentCount, int tagIdsCount, int featureTagsCount) {
+		this.pois = poiCount;
+		this.ways = wayCount;
+		this.segments = segmentCount;
+		this.coordinatesLength = this.segmentOffsets[segmentCount];
+		this.tagIdsLength = tagIdsCount;
+		Arrays.fill(this.featureTags, featureTagsCount, this.featureTagsLength, null);
+		this.featureTagsLength = featureTagsCount;
+	}
+
+	void setWater(boolean isWater) {
+		this.isWater = isWater;
+	}
+}
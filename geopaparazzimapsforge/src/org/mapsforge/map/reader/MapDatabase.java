@@ -17,12 +17,11 @@ package org.mapsforge.map.reader;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.ArrayDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.BoundingBox;
 import org.mapsforge.core.model.Tag;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.core.util.MercatorProjection;
@@ -34,7 +33,12 @@ import org.mapsforge.map.reader.header.SubFileParameter;
 /**
  * A class for reading binary map files.
  * <p>
- * This class is not thread-safe. Each thread should use its own instance.
+ * Once a map file has been opened, {@link #readMapData(Tile)} can be called by several threads at the same time. The
+ * file is memory mapped and all decoding state is kept per call, only the header and the index cache are shared. The
+ * file must not be opened or closed while it is being read.
+ * <p>
+ * {@link #readMapData(Tile, MapDataBuffer)} decodes into a reusable {@link MapDataBuffer} instead, which keeps the
+ * decoding state as well, so that each thread needs its own buffer.
  * 
  * @see <a href="https://code.google.com/p/mapsforge/wiki/SpecificationBinaryMapFile">Specification</a>
  */
@@ -65,9 +69,19 @@ public class MapDatabase {
 	private static final String DEBUG_SIGNATURE_WAY = "way signature: ";
 
 	/**
-	 * Amount of cache blocks that the index cache should store.
+	 * Share of the maximum heap size which is used for the index cache.
 	 */
-	private static final int INDEX_CACHE_SIZE = 64;
+	private static final int INDEX_CACHE_HEAP_SHARE = 64;
+
+	/**
+	 * Maximum memory budget of the index cache in bytes.
+	 */
+	private static final long INDEX_CACHE_MAXIMUM_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Minimum memory budget of the index cache in bytes.
+	 */
+	private static final long INDEX_CACHE_MINIMUM_SIZE = 256 * 1024;
 
 	/**
 	 * Error message for an invalid first way offset.
@@ -201,13 +215,13 @@ public class MapDatabase {
 	private IndexCache databaseIndexCache;
 	private long fileSize;
 	private RandomAccessFile inputFile;
+
+	/**
+	 * The buffers of {@link #readMapData(Tile)} which are not in use, at most one per thread reading at the same time.
+	 */
+	private final ArrayDeque<MapDataBuffer> mapDataBuffers = new ArrayDeque<>();
 	private MapFileHeader mapFileHeader;
-	private ReadBuffer readBuffer;
-	private String signatureBlock;
-	private String signaturePoi;
-	private String signatureWay;
-	private int tileLatitude;
-	private int tileLongitude;
+	private MappedMapFile mappedMapFile;
 
 	/**
 	 * Closes the map file and destroys all internal caches. Has no effect if no map file is currently opened.
@@ -221,17 +235,42 @@ public class MapDatabase {
 				this.databaseIndexCache = null;
 			}
 
+			// the mapped segments stay valid until they are garbage collected
+			this.mappedMapFile = null;
+
+			synchronized (this.mapDataBuffers) {
+				this.mapDataBuffers.clear();
+			}
+
 			if (this.inputFile != null) {
 				this.inputFile.close();
 				this.inputFile = null;
 			}
-
-			this.readBuffer = null;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
 		}
 	}
 
+	/**
+	 * @return the hit, miss and eviction counters of the index cache of the current map file.
+	 * @throws IllegalStateException
+	 *             if no map is currently opened.
+	 */
+	public IndexCacheStatistics getIndexCacheStatistics() {
+		if (this.databaseIndexCache == null) {
+			throw new IllegalStateException("no map file is currently opened");
+		}
+		return this.databaseIndexCache.getStatistics();
+	}
+
+	/**
+	 * @return the memory budget of the index cache in bytes, derived from the memory available to the application.
+	 */
+	public static long getIndexCacheSize() {
+		long indexCacheSize = Runtime.getRuntime().maxMemory() / INDEX_CACHE_HEAP_SHARE;
+		return Math.min(Math.max(indexCacheSize, INDEX_CACHE_MINIMUM_SIZE), INDEX_CACHE_MAXIMUM_SIZE);
+	}
+
 	/**
 	 * @return the metadata for the current map file.
 	 * @throws IllegalStateException
@@ -282,14 +321,16 @@ public class MapDatabase {
 			this.inputFile = new RandomAccessFile(mapFile, READ_ONLY_MODE);
 			this.fileSize = this.inputFile.length();
 
-			this.readBuffer = new ReadBuffer(this.inputFile);
 			this.mapFileHeader = new MapFileHeader();
-			FileOpenResult fileOpenResult = this.mapFileHeader.readHeader(this.readBuffer, this.fileSize);
+			FileOpenResult fileOpenResult = this.mapFileHeader.readHeader(new ReadBuffer(this.inputFile), this.fileSize);
 			if (!fileOpenResult.isSuccess()) {
 				closeFile();
 				return fileOpenResult;
 			}
 
+			this.mappedMapFile = new MappedMapFile(this.inputFile.getChannel(), this.fileSize);
+			this.databaseIndexCache = new IndexCache(this.mappedMapFile, getIndexCacheSize(), true);
+
 			return FileOpenResult.SUCCESS;
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
@@ -301,54 +342,152 @@ public class MapDatabase {
 
 	/**
 	 * Reads all map data for the area covered by the given tile at the tile zoom level.
+	 * <p>
+	 * This method is thread-safe. It creates objects for every POI and way, callers which read many tiles should use
+	 * {@link #readMapData(Tile, MapDataBuffer)} instead. The tile is decoded into a buffer which is kept for the next
+	 * call, so that its arrays do not have to grow again for every tile.
 	 * 
 	 * @param tile
 	 *            defines area and zoom level of read map data.
 	 * @return the read map data.
 	 */
 	public MapReadResult readMapData(Tile tile) {
+		MapDataBuffer mapDataBuffer;
+		synchronized (this.mapDataBuffers) {
+			mapDataBuffer = this.mapDataBuffers.poll();
+		}
+		if (mapDataBuffer == null) {
+			mapDataBuffer = new MapDataBuffer();
+		}
+
+		try {
+			if (!readMapData(tile, mapDataBuffer)) {
+				return null;
+			}
+
+			MapReadResultBuilder mapReadResultBuilder = new MapReadResultBuilder();
+			mapReadResultBuilder.add(mapDataBuffer);
+			return mapReadResultBuilder.build();
+		} finally {
+			synchronized (this.mapDataBuffers) {
+				this.mapDataBuffers.push(mapDataBuffer);
+			}
+		}
+	}
+
+	/**
+	 * Reads all map data for the area covered by the given tile at the tile zoom level into the given buffer, which
+	 * replaces its previous content. The buffer can be reused for the next tile.
+	 * <p>
+	 * This method is thread-safe as long as every thread uses its own buffer.
+	 * 
+	 * @param tile
+	 *            defines area and zoom level of read map data.
+	 * @param mapDataBuffer
+	 *            the buffer to fill.
+	 * @return true if the map data could be read, false otherwise, in which case the buffer is empty.
+	 */
+	public boolean readMapData(Tile tile, MapDataBuffer mapDataBuffer) {
+		MapFileInfo mapFileInfo = this.mapFileHeader.getMapFileInfo();
+		mapDataBuffer.clear(mapFileInfo.poiTags, mapFileInfo.wayTags);
 		try {
-			prepareExecution();
-			QueryParameters queryParameters = new QueryParameters();
+			QueryParameters queryParameters = mapDataBuffer.queryParameters;
 			queryParameters.queryZoomLevel = this.mapFileHeader.getQueryZoomLevel(tile.zoomLevel);
 
 			// get and check the sub-file for the query zoom level
 			SubFileParameter subFileParameter = this.mapFileHeader.getSubFileParameter(queryParameters.queryZoomLevel);
 			if (subFileParameter == null) {
 				LOGGER.warning("no sub-file for zoom level: " + queryParameters.queryZoomLevel);
-				return null;
+				return false;
 			}
 
 			QueryCalculations.calculateBaseTiles(queryParameters, tile, subFileParameter);
 			QueryCalculations.calculateBlocks(queryParameters, subFileParameter);
 
-			return processBlocks(queryParameters, subFileParameter);
+			if (processBlocks(queryParameters, subFileParameter, mapDataBuffer)) {
+				return true;
+			}
 		} catch (IOException e) {
 			LOGGER.log(Level.SEVERE, null, e);
-			return null;
+		}
+		mapDataBuffer.clear(mapFileInfo.poiTags, mapFileInfo.wayTags);
+		return false;
+	}
+
+	/**
+	 * Loads the index of the given area into the index cache, for example before moving to a bookmarked place. Stops
+	 * when the cache is full. This method is thread-safe.
+	 * 
+	 * @param boundingBox
+	 *            the area to load.
+	 * @param zoomLevel
+	 *            the zoom level which will be read.
+	 * @return the number of index blocks which have been loaded.
+	 * @throws IllegalStateException
+	 *             if no map is currently opened.
+	 */
+	public int warmIndexCache(BoundingBox boundingBox, byte zoomLevel) {
+		if (this.mapFileHeader == null) {
+			throw new IllegalStateException("no map file is currently opened");
+		}
+
+		byte queryZoomLevel = this.mapFileHeader.getQueryZoomLevel(zoomLevel);
+		SubFileParameter subFileParameter = this.mapFileHeader.getSubFileParameter(queryZoomLevel);
+		if (subFileParameter == null) {
+			LOGGER.warning("no sub-file for zoom level: " + queryZoomLevel);
+			return 0;
+		}
+
+		byte baseZoomLevel = subFileParameter.baseZoomLevel;
+		long fromBlockX = Math.max(MercatorProjection.longitudeToTileX(boundingBox.getMinLongitude(), baseZoomLevel)
+				- subFileParameter.boundaryTileLeft, 0);
+		long fromBlockY = Math.max(MercatorProjection.latitudeToTileY(boundingBox.getMaxLatitude(), baseZoomLevel)
+				- subFileParameter.boundaryTileTop, 0);
+		long toBlockX = Math.min(MercatorProjection.longitudeToTileX(boundingBox.getMaxLongitude(), baseZoomLevel)
+				- subFileParameter.boundaryTileLeft, subFileParameter.blocksWidth - 1);
+		long toBlockY = Math.min(MercatorProjection.latitudeToTileY(boundingBox.getMinLatitude(), baseZoomLevel)
+				- subFileParameter.boundaryTileTop, subFileParameter.blocksHeight - 1);
+		if (fromBlockX > toBlockX || fromBlockY > toBlockY) {
+			return 0;
+		}
+		return this.databaseIndexCache.warm(subFileParameter, fromBlockX, fromBlockY, toBlockX, toBlockY);
+	}
+
+	/**
+	 * Discards the least recently used index blocks until the given memory is used at most. The capacity stays the
+	 * same, so the cache grows again when the map is read. Has no effect if no map file is currently opened.
+	 * 
+	 * @param maximumSizeInBytes
+	 *            the maximum memory used by the remaining index blocks.
+	 */
+	public void trimIndexCache(long maximumSizeInBytes) {
+		IndexCache indexCache = this.databaseIndexCache;
+		if (indexCache != null) {
+			indexCache.trimMemory(maximumSizeInBytes);
 		}
 	}
 
-	private void decodeWayNodesDoubleDelta(float[] waySegment) {
+	private static void decodeWayNodesDoubleDelta(QueryParameters queryParameters, float[] coordinates, int offset,
+			int length) {
 		// get the first way node latitude offset (VBE-S)
-		int wayNodeLatitude = this.tileLatitude + this.readBuffer.readSignedInt();
+		int wayNodeLatitude = queryParameters.tileLatitude + queryParameters.readBuffer.readSignedInt();
 
 		// get the first way node longitude offset (VBE-S)
-		int wayNodeLongitude = this.tileLongitude + this.readBuffer.readSignedInt();
+		int wayNodeLongitude = queryParameters.tileLongitude + queryParameters.readBuffer.readSignedInt();
 
 		// store the first way node
-		waySegment[1] = wayNodeLatitude;
-		waySegment[0] = wayNodeLongitude;
+		coordinates[offset + 1] = wayNodeLatitude;
+		coordinates[offset] = wayNodeLongitude;
 
 		int previousSingleDeltaLatitude = 0;
 		int previousSingleDeltaLongitude = 0;
 
-		for (int wayNodesIndex = 2; wayNodesIndex < waySegment.length; wayNodesIndex += 2) {
+		for (int wayNodesIndex = offset + 2, end = offset + length; wayNodesIndex < end; wayNodesIndex += 2) {
 			// get the way node latitude double-delta offset (VBE-S)
-			int doubleDeltaLatitude = this.readBuffer.readSignedInt();
+			int doubleDeltaLatitude = queryParameters.readBuffer.readSignedInt();
 
 			// get the way node longitude double-delta offset (VBE-S)
-			int doubleDeltaLongitude = this.readBuffer.readSignedInt();
+			int doubleDeltaLongitude = queryParameters.readBuffer.readSignedInt();
 
 			int singleDeltaLatitude = doubleDeltaLatitude + previousSingleDeltaLatitude;
 			int singleDeltaLongitude = doubleDeltaLongitude + previousSingleDeltaLongitude;
@@ -356,118 +495,151 @@ public class MapDatabase {
 			wayNodeLatitude = wayNodeLatitude + singleDeltaLatitude;
 			wayNodeLongitude = wayNodeLongitude + singleDeltaLongitude;
 
-			waySegment[wayNodesIndex + 1] = wayNodeLatitude;
-			waySegment[wayNodesIndex] = wayNodeLongitude;
+			coordinates[wayNodesIndex + 1] = wayNodeLatitude;
+			coordinates[wayNodesIndex] = wayNodeLongitude;
 
 			previousSingleDeltaLatitude = singleDeltaLatitude;
 			previousSingleDeltaLongitude = singleDeltaLongitude;
 		}
 	}
 
-	private void decodeWayNodesSingleDelta(float[] waySegment) {
+	private static void decodeWayNodesSingleDelta(QueryParameters queryParameters, float[] coordinates, int offset,
+			int length) {
 		// get the first way node latitude single-delta offset (VBE-S)
-		int wayNodeLatitude = this.tileLatitude + this.readBuffer.readSignedInt();
+		int wayNodeLatitude = queryParameters.tileLatitude + queryParameters.readBuffer.readSignedInt();
 
 		// get the first way node longitude single-delta offset (VBE-S)
-		int wayNodeLongitude = this.tileLongitude + this.readBuffer.readSignedInt();
+		int wayNodeLongitude = queryParameters.tileLongitude + queryParameters.readBuffer.readSignedInt();
 
 		// store the first way node
-		waySegment[1] = wayNodeLatitude;
-		waySegment[0] = wayNodeLongitude;
+		coordinates[offset + 1] = wayNodeLatitude;
+		coordinates[offset] = wayNodeLongitude;
 
-		for (int wayNodesIndex = 2; wayNodesIndex < waySegment.length; wayNodesIndex += 2) {
+		for (int wayNodesIndex = offset + 2, end = offset + length; wayNodesIndex < end; wayNodesIndex += 2) {
 			// get the way node latitude offset (VBE-S)
-			wayNodeLatitude = wayNodeLatitude + this.readBuffer.readSignedInt();
+			wayNodeLatitude = wayNodeLatitude + queryParameters.readBuffer.readSignedInt();
 
 			// get the way node longitude offset (VBE-S)
-			wayNodeLongitude = wayNodeLongitude + this.readBuffer.readSignedInt();
+			wayNodeLongitude = wayNodeLongitude + queryParameters.readBuffer.readSignedInt();
 
-			waySegment[wayNodesIndex + 1] = wayNodeLatitude;
-			waySegment[wayNodesIndex] = wayNodeLongitude;
+			coordinates[wayNodesIndex + 1] = wayNodeLatitude;
+			coordinates[wayNodesIndex] = wayNodeLongitude;
 		}
 	}
 
 	/**
-	 * Logs the debug signatures of the current way and block.
+	 * Reads an elevation, taking the tag from the pool if the same bytes have been read before.
 	 */
-	private void logDebugSignatures() {
-		if (this.mapFileHeader.getMapFileInfo().debugFile) {
-			LOGGER.warning(DEBUG_SIGNATURE_WAY + this.signatureWay);
-			LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+	private static Tag readElevationTag(QueryParameters queryParameters, TagPool tagPool) {
+		ReadBuffer readBuffer = queryParameters.readBuffer;
+		int position = readBuffer.getBufferPosition();
+		int elevation = readBuffer.readSignedInt();
+		int length = readBuffer.getBufferPosition() - position;
+
+		Tag tag = tagPool.get(TAG_KEY_ELE, readBuffer, position, length);
+		if (tag == null) {
+			tag = new Tag(TAG_KEY_ELE, Integer.toString(elevation));
+			tagPool.put(tag, readBuffer, position, length);
 		}
+		return tag;
 	}
 
-	private void prepareExecution() {
-		if (this.databaseIndexCache == null) {
-			this.databaseIndexCache = new IndexCache(this.inputFile, INDEX_CACHE_SIZE);
+	/**
+	 * Reads a string with the given key, taking the tag from the pool if the same bytes have been read before.
+	 */
+	private static Tag readStringTag(QueryParameters queryParameters, TagPool tagPool, String key) {
+		ReadBuffer readBuffer = queryParameters.readBuffer;
+		int stringLength = readBuffer.readUnsignedInt();
+		int position = readBuffer.getBufferPosition();
+		if (stringLength <= 0 || position + stringLength > readBuffer.getBufferSize()) {
+			// let the read buffer handle the invalid length
+			return new Tag(key, readBuffer.readUTF8EncodedString(stringLength));
+		}
+
+		Tag tag = tagPool.get(key, readBuffer, position, stringLength);
+		if (tag != null) {
+			readBuffer.skipBytes(stringLength);
+			return tag;
+		}
+		tag = new Tag(key, readBuffer.readUTF8EncodedString(stringLength));
+		tagPool.put(tag, readBuffer, position, stringLength);
+		return tag;
+	}
+
+	private static int readOptionalWayDataBlocksByte(QueryParameters queryParameters,
+			boolean featureWayDataBlocksByte) {
+		if (featureWayDataBlocksByte) {
+			// get and check the number of way data blocks (VBE-U)
+			return queryParameters.readBuffer.readUnsignedInt();
+		}
+		// only one way data block exists
+		return 1;
+	}
+
+	/**
+	 * Logs the debug signatures of the current way and block.
+	 */
+	private void logDebugSignatures(QueryParameters queryParameters) {
+		if (this.mapFileHeader.getMapFileInfo().debugFile) {
+			LOGGER.warning(DEBUG_SIGNATURE_WAY + queryParameters.signatureWay);
+			LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 		}
 	}
 
-	private PoiWayBundle processBlock(QueryParameters queryParameters, SubFileParameter subFileParameter) {
-		if (!processBlockSignature()) {
-			return null;
+	private boolean processBlock(QueryParameters queryParameters, SubFileParameter subFileParameter,
+			MapDataBuffer mapDataBuffer) {
+		if (!processBlockSignature(queryParameters)) {
+			return false;
 		}
 
-		int[][] zoomTable = readZoomTable(subFileParameter);
-		if (zoomTable == null) {
-			return null;
+		if (!readZoomTable(queryParameters, subFileParameter)) {
+			return false;
 		}
-		int zoomTableRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
-		int poisOnQueryZoomLevel = zoomTable[zoomTableRow][0];
-		int waysOnQueryZoomLevel = zoomTable[zoomTableRow][1];
 
 		// get the relative offset to the first stored way in the block
-		int firstWayOffset = this.readBuffer.readUnsignedInt();
+		int firstWayOffset = queryParameters.readBuffer.readUnsignedInt();
 		if (firstWayOffset < 0) {
 			LOGGER.warning(INVALID_FIRST_WAY_OFFSET + firstWayOffset);
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
-				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
 		// add the current buffer position to the relative first way offset
-		firstWayOffset += this.readBuffer.getBufferPosition();
-		if (firstWayOffset > this.readBuffer.getBufferSize()) {
+		firstWayOffset += queryParameters.readBuffer.getBufferPosition();
+		if (firstWayOffset > queryParameters.readBuffer.getBufferSize()) {
 			LOGGER.warning(INVALID_FIRST_WAY_OFFSET + firstWayOffset);
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
-				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
-		List<PointOfInterest> pois = processPOIs(poisOnQueryZoomLevel);
-		if (pois == null) {
-			return null;
+		if (!processPOIs(queryParameters, queryParameters.poisOnQueryZoomLevel, mapDataBuffer)) {
+			return false;
 		}
 
 		// finished reading POIs, check if the current buffer position is valid
-		if (this.readBuffer.getBufferPosition() > firstWayOffset) {
-			LOGGER.warning("invalid buffer position: " + this.readBuffer.getBufferPosition());
+		if (queryParameters.readBuffer.getBufferPosition() > firstWayOffset) {
+			LOGGER.warning("invalid buffer position: " + queryParameters.readBuffer.getBufferPosition());
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
-				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+				LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 			}
-			return null;
+			return false;
 		}
 
 		// move the pointer to the first way
-		this.readBuffer.setBufferPosition(firstWayOffset);
-
-		List<Way> ways = processWays(queryParameters, waysOnQueryZoomLevel);
-		if (ways == null) {
-			return null;
-		}
+		queryParameters.readBuffer.setBufferPosition(firstWayOffset);
 
-		return new PoiWayBundle(pois, ways);
+		return processWays(queryParameters, queryParameters.waysOnQueryZoomLevel, mapDataBuffer);
 	}
 
-	private MapReadResult processBlocks(QueryParameters queryParameters, SubFileParameter subFileParameter)
-			throws IOException {
+	private boolean processBlocks(QueryParameters queryParameters, SubFileParameter subFileParameter,
+			MapDataBuffer mapDataBuffer) throws IOException {
 		boolean queryIsWater = true;
 		boolean queryReadWaterInfo = false;
 
-		MapReadResultBuilder mapReadResultBuilder = new MapReadResultBuilder();
-
 		// read and process all blocks from top to bottom and from left to right
 		for (long row = queryParameters.fromBlockY; row <= queryParameters.toBlockY; ++row) {
 			for (long column = queryParameters.fromBlockX; column <= queryParameters.toBlockX; ++column) {
@@ -490,7 +662,7 @@ public class MapDatabase {
 				if (currentBlockPointer < 1 || currentBlockPointer > subFileParameter.subFileSize) {
 					LOGGER.warning("invalid current block pointer: " + currentBlockPointer);
 					LOGGER.warning("subFileSize: " + subFileParameter.subFileSize);
-					return null;
+					return false;
 				}
 
 				long nextBlockPointer;
@@ -505,7 +677,7 @@ public class MapDatabase {
 					if (nextBlockPointer < 1 || nextBlockPointer > subFileParameter.subFileSize) {
 						LOGGER.warning("invalid next block pointer: " + nextBlockPointer);
 						LOGGER.warning("sub-file size: " + subFileParameter.subFileSize);
-						return null;
+						return false;
 					}
 				}
 
@@ -513,7 +685,7 @@ public class MapDatabase {
 				int currentBlockSize = (int) (nextBlockPointer - currentBlockPointer);
 				if (currentBlockSize < 0) {
 					LOGGER.warning("current block size must not be negative: " + currentBlockSize);
-					return null;
+					return false;
 				} else if (currentBlockSize == 0) {
 					// the current block is empty, continue with the next block
 					continue;
@@ -523,17 +695,15 @@ public class MapDatabase {
 					continue;
 				} else if (currentBlockPointer + currentBlockSize > this.fileSize) {
 					LOGGER.warning("current block largher than file size: " + currentBlockSize);
-					return null;
+					return false;
 				}
 
-				// seek to the current block in the map file
-				this.inputFile.seek(subFileParameter.startAddress + currentBlockPointer);
-
-				// read the current block into the buffer
-				if (!this.readBuffer.readFromFile(currentBlockSize)) {
+				// map the current block into the buffer
+				if (!this.mappedMapFile.read(queryParameters.readBuffer, subFileParameter.startAddress
+						+ currentBlockPointer, currentBlockSize)) {
 					// skip the current block
 					LOGGER.warning("reading current block has failed: " + currentBlockSize);
-					return null;
+					return false;
 				}
 
 				// calculate the top-left coordinates of the underlying tile
@@ -541,24 +711,29 @@ public class MapDatabase {
 						subFileParameter.baseZoomLevel);
 				double tileLongitudeDeg = MercatorProjection.tileXToLongitude(subFileParameter.boundaryTileLeft
 						+ column, subFileParameter.baseZoomLevel);
-				this.tileLatitude = (int) (tileLatitudeDeg * 1000000);
-				this.tileLongitude = (int) (tileLongitudeDeg * 1000000);
-
+				queryParameters.tileLatitude = (int) (tileLatitudeDeg * 1000000);
+				queryParameters.tileLongitude = (int) (tileLongitudeDeg * 1000000);
+
+				// remember the state before the block, so that the elements of an invalid block can be dropped
+				int poiCount = mapDataBuffer.getPoiCount();
+				int wayCount = mapDataBuffer.getWayCount();
+				int segmentCount = mapDataBuffer.getSegmentCount();
+				int tagIdsLength = mapDataBuffer.getTagIdsLength();
+				int featureTagsLength = mapDataBuffer.getFeatureTagsLength();
 				try {
-					PoiWayBundle poiWayBundle = processBlock(queryParameters, subFileParameter);
-					mapReadResultBuilder.add(poiWayBundle);
-				} catch (ArrayIndexOutOfBoundsException e) {
+					if (!processBlock(queryParameters, subFileParameter, mapDataBuffer)) {
+						mapDataBuffer.reset(poiCount, wayCount, segmentCount, tagIdsLength, featureTagsLength);
+					}
+				} catch (IndexOutOfBoundsException e) {
 					LOGGER.log(Level.SEVERE, null, e);
+					mapDataBuffer.reset(poiCount, wayCount, segmentCount, tagIdsLength, featureTagsLength);
 				}
 			}
 		}
 
 		// the query is finished, was the water flag set for all blocks?
-		if (queryIsWater && queryReadWaterInfo) {
-			mapReadResultBuilder.isWater = true;
-		}
-
-		return mapReadResultBuilder.build();
+		mapDataBuffer.setWater(queryIsWater && queryReadWaterInfo);
+		return true;
 	}
 
 	/**
@@ -566,65 +741,65 @@ public class MapDatabase {
 	 * 
 	 * @return true if the block signature could be processed successfully, false otherwise.
 	 */
-	private boolean processBlockSignature() {
+	private boolean processBlockSignature(QueryParameters queryParameters) {
 		if (this.mapFileHeader.getMapFileInfo().debugFile) {
 			// get and check the block signature
-			this.signatureBlock = this.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_BLOCK);
-			if (!this.signatureBlock.startsWith("###TileStart")) {
-				LOGGER.warning("invalid block signature: " + this.signatureBlock);
+			queryParameters.signatureBlock = queryParameters.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_BLOCK);
+			if (!queryParameters.signatureBlock.startsWith("###TileStart")) {
+				LOGGER.warning("invalid block signature: " + queryParameters.signatureBlock);
 				return false;
 			}
 		}
 		return true;
 	}
 
-	private List<PointOfInterest> processPOIs(int numberOfPois) {
-		List<PointOfInterest> pois = new ArrayList<>();
+	private boolean processPOIs(QueryParameters queryParameters, int numberOfPois, MapDataBuffer mapDataBuffer) {
 		Tag[] poiTags = this.mapFileHeader.getMapFileInfo().poiTags;
 
 		for (int elementCounter = numberOfPois; elementCounter != 0; --elementCounter) {
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
 				// get and check the POI signature
-				this.signaturePoi = this.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_POI);
-				if (!this.signaturePoi.startsWith("***POIStart")) {
-					LOGGER.warning("invalid POI signature: " + this.signaturePoi);
-					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
-					return null;
+				queryParameters.signaturePoi = queryParameters.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_POI);
+				if (!queryParameters.signaturePoi.startsWith("***POIStart")) {
+					LOGGER.warning("invalid POI signature: " + queryParameters.signaturePoi);
+					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
+					return false;
 				}
 			}
 
 			// get the POI latitude offset (VBE-S)
-			int latitude = this.tileLatitude + this.readBuffer.readSignedInt();
+			int latitude = queryParameters.tileLatitude + queryParameters.readBuffer.readSignedInt();
 
 			// get the POI longitude offset (VBE-S)
-			int longitude = this.tileLongitude + this.readBuffer.readSignedInt();
+			int longitude = queryParameters.tileLongitude + queryParameters.readBuffer.readSignedInt();
 
 			// get the special byte which encodes multiple flags
-			byte specialByte = this.readBuffer.readByte();
+			byte specialByte = queryParameters.readBuffer.readByte();
 
 			// bit 1-4 represent the layer
 			byte layer = (byte) ((specialByte & POI_LAYER_BITMASK) >>> POI_LAYER_SHIFT);
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & POI_NUMBER_OF_TAGS_BITMASK);
 
-			List<Tag> tags = new ArrayList<>();
+			int tagIdStart = mapDataBuffer.getTagIdsLength();
+			int featureTagStart = mapDataBuffer.getFeatureTagsLength();
 
 			// get the tag IDs (VBE-U)
 			for (byte tagIndex = numberOfTags; tagIndex != 0; --tagIndex) {
-				int tagId = this.readBuffer.readUnsignedInt();
+				int tagId = queryParameters.readBuffer.readUnsignedInt();
 				if (tagId < 0 || tagId >= poiTags.length) {
 					LOGGER.warning("invalid POI tag ID: " + tagId);
 					if (this.mapFileHeader.getMapFileInfo().debugFile) {
-						LOGGER.warning(DEBUG_SIGNATURE_POI + this.signaturePoi);
-						LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+						LOGGER.warning(DEBUG_SIGNATURE_POI + queryParameters.signaturePoi);
+						LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 					}
-					return null;
+					return false;
 				}
-				tags.add(poiTags[tagId]);
+				mapDataBuffer.addTagId(tagId);
 			}
 
 			// get the feature bitmask (1 byte)
-			byte featureByte = this.readBuffer.readByte();
+			byte featureByte = queryParameters.readBuffer.readByte();
 
 			// bit 1-3 enable optional features
 			boolean featureName = (featureByte & POI_FEATURE_NAME) != 0;
@@ -633,126 +808,125 @@ public class MapDatabase {
 
 			// check if the POI has a name
 			if (featureName) {
-				tags.add(new Tag(TAG_KEY_NAME, this.readBuffer.readUTF8EncodedString()));
+				mapDataBuffer.addFeatureTag(readStringTag(queryParameters, mapDataBuffer.tagPool, TAG_KEY_NAME));
 			}
 
 			// check if the POI has a house number
 			if (featureHouseNumber) {
-				tags.add(new Tag(TAG_KEY_HOUSE_NUMBER, this.readBuffer.readUTF8EncodedString()));
+				mapDataBuffer.addFeatureTag(readStringTag(queryParameters, mapDataBuffer.tagPool,
+						TAG_KEY_HOUSE_NUMBER));
 			}
 
 			// check if the POI has an elevation
 			if (featureElevation) {
-				tags.add(new Tag(TAG_KEY_ELE, Integer.toString(this.readBuffer.readSignedInt())));
+				mapDataBuffer.addFeatureTag(readElevationTag(queryParameters, mapDataBuffer.tagPool));
 			}
 
-			pois.add(new PointOfInterest(layer, tags, new GeoPoint(latitude, longitude)));
+			mapDataBuffer.addPoi(layer, latitude, longitude, tagIdStart, featureTagStart);
 		}
 
-		return pois;
+		return true;
 	}
 
-	private float[][] processWayDataBlock(boolean doubleDeltaEncoding) {
+	private boolean processWayDataBlock(QueryParameters queryParameters, boolean doubleDeltaEncoding,
+			MapDataBuffer mapDataBuffer) {
 		// get and check the number of way coordinate blocks (VBE-U)
-		int numberOfWayCoordinateBlocks = this.readBuffer.readUnsignedInt();
+		int numberOfWayCoordinateBlocks = queryParameters.readBuffer.readUnsignedInt();
 		if (numberOfWayCoordinateBlocks < 1 || numberOfWayCoordinateBlocks > Short.MAX_VALUE) {
 			LOGGER.warning("invalid number of way coordinate blocks: " + numberOfWayCoordinateBlocks);
-			logDebugSignatures();
-			return null;
+			logDebugSignatures(queryParameters);
+			return false;
 		}
 
-		// create the array which will store the different way coordinate blocks
-		float[][] wayCoordinates = new float[numberOfWayCoordinateBlocks][];
-
 		// read the way coordinate blocks
 		for (int coordinateBlock = 0; coordinateBlock < numberOfWayCoordinateBlocks; ++coordinateBlock) {
 			// get and check the number of way nodes (VBE-U)
-			int numberOfWayNodes = this.readBuffer.readUnsignedInt();
+			int numberOfWayNodes = queryParameters.readBuffer.readUnsignedInt();
 			if (numberOfWayNodes < 2 || numberOfWayNodes > MAXIMUM_WAY_NODES_SEQUENCE_LENGTH) {
 				LOGGER.warning("invalid number of way nodes: " + numberOfWayNodes);
-				logDebugSignatures();
-				return null;
+				logDebugSignatures(queryParameters);
+				return false;
 			}
 
 			// each way node consists of latitude and longitude
 			int wayNodesSequenceLength = numberOfWayNodes * 2;
 
-			// create the array which will store the current way segment
-			float[] waySegment = new float[wayNodesSequenceLength];
+			// reserve the space for the current way segment
+			int offset = mapDataBuffer.addSegment(wayNodesSequenceLength);
 
 			if (doubleDeltaEncoding) {
-				decodeWayNodesDoubleDelta(waySegment);
+				decodeWayNodesDoubleDelta(queryParameters, mapDataBuffer.getCoordinates(), offset,
+						wayNodesSequenceLength);
 			} else {
-				decodeWayNodesSingleDelta(waySegment);
+				decodeWayNodesSingleDelta(queryParameters, mapDataBuffer.getCoordinates(), offset,
+						wayNodesSequenceLength);
 			}
-
-			wayCoordinates[coordinateBlock] = waySegment;
 		}
 
-		return wayCoordinates;
+		return true;
 	}
 
-	private List<Way> processWays(QueryParameters queryParameters, int numberOfWays) {
-		List<Way> ways = new ArrayList<>();
+	private boolean processWays(QueryParameters queryParameters, int numberOfWays, MapDataBuffer mapDataBuffer) {
 		Tag[] wayTags = this.mapFileHeader.getMapFileInfo().wayTags;
 
 		for (int elementCounter = numberOfWays; elementCounter != 0; --elementCounter) {
 			if (this.mapFileHeader.getMapFileInfo().debugFile) {
 				// get and check the way signature
-				this.signatureWay = this.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_WAY);
-				if (!this.signatureWay.startsWith("---WayStart")) {
-					LOGGER.warning("invalid way signature: " + this.signatureWay);
-					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
-					return null;
+				queryParameters.signatureWay = queryParameters.readBuffer.readUTF8EncodedString(SIGNATURE_LENGTH_WAY);
+				if (!queryParameters.signatureWay.startsWith("---WayStart")) {
+					LOGGER.warning("invalid way signature: " + queryParameters.signatureWay);
+					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
+					return false;
 				}
 			}
 
 			// get the size of the way (VBE-U)
-			int wayDataSize = this.readBuffer.readUnsignedInt();
+			int wayDataSize = queryParameters.readBuffer.readUnsignedInt();
 			if (wayDataSize < 0) {
 				LOGGER.warning("invalid way data size: " + wayDataSize);
 				if (this.mapFileHeader.getMapFileInfo().debugFile) {
-					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 				}
-				return null;
+				return false;
 			}
 
 			if (queryParameters.useTileBitmask) {
 				// get the way tile bitmask (2 bytes)
-				int tileBitmask = this.readBuffer.readShort();
+				int tileBitmask = queryParameters.readBuffer.readShort();
 				// check if the way is inside the requested tile
 				if ((queryParameters.queryTileBitmask & tileBitmask) == 0) {
 					// skip the rest of the way and continue with the next way
-					this.readBuffer.skipBytes(wayDataSize - 2);
+					queryParameters.readBuffer.skipBytes(wayDataSize - 2);
 					continue;
 				}
 			} else {
 				// ignore the way tile bitmask (2 bytes)
-				this.readBuffer.skipBytes(2);
+				queryParameters.readBuffer.skipBytes(2);
 			}
 
 			// get the special byte which encodes multiple flags
-			byte specialByte = this.readBuffer.readByte();
+			byte specialByte = queryParameters.readBuffer.readByte();
 
 			// bit 1-4 represent the layer
 			byte layer = (byte) ((specialByte & WAY_LAYER_BITMASK) >>> WAY_LAYER_SHIFT);
 			// bit 5-8 represent the number of tag IDs
 			byte numberOfTags = (byte) (specialByte & WAY_NUMBER_OF_TAGS_BITMASK);
 
-			List<Tag> tags = new ArrayList<>();
+			int tagIdStart = mapDataBuffer.getTagIdsLength();
+			int featureTagStart = mapDataBuffer.getFeatureTagsLength();
 
 			for (byte tagIndex = numberOfTags; tagIndex != 0; --tagIndex) {
-				int tagId = this.readBuffer.readUnsignedInt();
+				int tagId = queryParameters.readBuffer.readUnsignedInt();
 				if (tagId < 0 || tagId >= wayTags.length) {
 					LOGGER.warning("invalid way tag ID: " + tagId);
-					logDebugSignatures();
-					return null;
+					logDebugSignatures(queryParameters);
+					return false;
 				}
-				tags.add(wayTags[tagId]);
+				mapDataBuffer.addTagId(tagId);
 			}
 
 			// get the feature bitmask (1 byte)
-			byte featureByte = this.readBuffer.readByte();
+			byte featureByte = queryParameters.readBuffer.readByte();
 
 			// bit 1-6 enable optional features
 			boolean featureName = (featureByte & WAY_FEATURE_NAME) != 0;
@@ -764,97 +938,93 @@ public class MapDatabase {
 
 			// check if the way has a name
 			if (featureName) {
-				tags.add(new Tag(TAG_KEY_NAME, this.readBuffer.readUTF8EncodedString()));
+				mapDataBuffer.addFeatureTag(readStringTag(queryParameters, mapDataBuffer.tagPool, TAG_KEY_NAME));
 			}
 
 			// check if the way has a house number
 			if (featureHouseNumber) {
-				tags.add(new Tag(TAG_KEY_HOUSE_NUMBER, this.readBuffer.readUTF8EncodedString()));
+				mapDataBuffer.addFeatureTag(readStringTag(queryParameters, mapDataBuffer.tagPool,
+						TAG_KEY_HOUSE_NUMBER));
 			}
 
 			// check if the way has a reference
 			if (featureRef) {
-				tags.add(new Tag(TAG_KEY_REF, this.readBuffer.readUTF8EncodedString()));
+				mapDataBuffer.addFeatureTag(readStringTag(queryParameters, mapDataBuffer.tagPool, TAG_KEY_REF));
 			}
 
-			GeoPoint labelPosition = readOptionalLabelPosition(featureLabelPosition);
+			// all data blocks of the way share its tags
+			int tagIdCount = mapDataBuffer.getTagIdsLength() - tagIdStart;
+			int featureTagCount = mapDataBuffer.getFeatureTagsLength() - featureTagStart;
 
-			int wayDataBlocks = readOptionalWayDataBlocksByte(featureWayDataBlocksByte);
+			int labelLatitude = 0;
+			int labelLongitude = 0;
+			if (featureLabelPosition) {
+				// get the label position latitude offset (VBE-S)
+				labelLatitude = queryParameters.tileLatitude + queryParameters.readBuffer.readSignedInt();
+
+				// get the label position longitude offset (VBE-S)
+				labelLongitude = queryParameters.tileLongitude + queryParameters.readBuffer.readSignedInt();
+			}
+
+			int wayDataBlocks = readOptionalWayDataBlocksByte(queryParameters, featureWayDataBlocksByte);
 			if (wayDataBlocks < 1) {
 				LOGGER.warning("invalid number of way data blocks: " + wayDataBlocks);
-				logDebugSignatures();
-				return null;
+				logDebugSignatures(queryParameters);
+				return false;
 			}
 
 			for (int wayDataBlock = 0; wayDataBlock < wayDataBlocks; ++wayDataBlock) {
-				float[][] wayNodes = processWayDataBlock(featureWayDoubleDeltaEncoding);
-				if (wayNodes == null) {
-					return null;
+				int firstSegment = mapDataBuffer.getSegmentCount();
+				if (!processWayDataBlock(queryParameters, featureWayDoubleDeltaEncoding, mapDataBuffer)) {
+					return false;
 				}
 
-				ways.add(new Way(layer, tags, wayNodes, labelPosition));
+				mapDataBuffer.addWay(layer, tagIdStart, tagIdCount, featureTagStart, featureTagCount, firstSegment,
+						featureLabelPosition, labelLatitude, labelLongitude);
 			}
 		}
 
-		return ways;
-	}
-
-	private GeoPoint readOptionalLabelPosition(boolean featureLabelPosition) {
-		if (featureLabelPosition) {
-			// get the label position latitude offset (VBE-S)
-			float latitude = this.tileLatitude + this.readBuffer.readSignedInt();
-
-			// get the label position longitude offset (VBE-S)
-			float longitude = this.tileLongitude + this.readBuffer.readSignedInt();
-
-			try {
-				return new GeoPoint(latitude, longitude);
-			}catch (Exception e){
-				return null;
-			}
-		}
-
-		return null;
-	}
-
-	private int readOptionalWayDataBlocksByte(boolean featureWayDataBlocksByte) {
-		if (featureWayDataBlocksByte) {
-			// get and check the number of way data blocks (VBE-U)
-			return this.readBuffer.readUnsignedInt();
-		}
-		// only one way data block exists
-		return 1;
+		return true;
 	}
 
-	private int[][] readZoomTable(SubFileParameter subFileParameter) {
+	/**
+	 * Reads the zoom table of the current block and stores the number of POIs and ways on the query zoom level.
+	 * 
+	 * @return true if the zoom table is valid, false otherwise.
+	 */
+	private boolean readZoomTable(QueryParameters queryParameters, SubFileParameter subFileParameter) {
 		int rows = subFileParameter.zoomLevelMax - subFileParameter.zoomLevelMin + 1;
-		int[][] zoomTable = new int[rows][2];
+		int queryRow = queryParameters.queryZoomLevel - subFileParameter.zoomLevelMin;
 
 		int cumulatedNumberOfPois = 0;
 		int cumulatedNumberOfWays = 0;
+		queryParameters.poisOnQueryZoomLevel = 0;
+		queryParameters.waysOnQueryZoomLevel = 0;
 
 		for (int row = 0; row < rows; ++row) {
-			cumulatedNumberOfPois += this.readBuffer.readUnsignedInt();
-			cumulatedNumberOfWays += this.readBuffer.readUnsignedInt();
+			cumulatedNumberOfPois += queryParameters.readBuffer.readUnsignedInt();
+			cumulatedNumberOfWays += queryParameters.readBuffer.readUnsignedInt();
 
 			if (cumulatedNumberOfPois < 0 || cumulatedNumberOfPois > MAXIMUM_ZOOM_TABLE_OBJECTS) {
 				LOGGER.warning("invalid cumulated number of POIs in row " + row + ' ' + cumulatedNumberOfPois);
 				if (this.mapFileHeader.getMapFileInfo().debugFile) {
-					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 				}
-				return null;
+				return false;
 			} else if (cumulatedNumberOfWays < 0 || cumulatedNumberOfWays > MAXIMUM_ZOOM_TABLE_OBJECTS) {
 				LOGGER.warning("invalid cumulated number of ways in row " + row + ' ' + cumulatedNumberOfWays);
 				if (this.mapFileHeader.getMapFileInfo().debugFile) {
-					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + this.signatureBlock);
+					LOGGER.warning(DEBUG_SIGNATURE_BLOCK + queryParameters.signatureBlock);
 				}
-				return null;
+				return false;
 			}
 
-			zoomTable[row][0] = cumulatedNumberOfPois;
-			zoomTable[row][1] = cumulatedNumberOfWays;
+			if (row == queryRow) {
+				queryParameters.poisOnQueryZoomLevel = cumulatedNumberOfPois;
+				queryParameters.waysOnQueryZoomLevel = cumulatedNumberOfWays;
+			}
 		}
 
-		return zoomTable;
+		return true;
 	}
 }
@@ -15,8 +15,12 @@
 package org.mapsforge.map.reader;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import org.mapsforge.core.model.GeoPoint;
+import org.mapsforge.core.model.Tag;
+
 class MapReadResultBuilder {
 	boolean isWater;
 	final List<PointOfInterest> pointOfInterests;
@@ -27,9 +31,42 @@ class MapReadResultBuilder {
 		this.ways = new ArrayList<>();
 	}
 
-	void add(PoiWayBundle poiWayBundle) {
-		this.pointOfInterests.addAll(poiWayBundle.pois);
-		this.ways.addAll(poiWayBundle.ways);
+	/**
+	 * Creates the POIs and ways for the content of the given buffer.
+	 */
+	void add(MapDataBuffer mapDataBuffer) {
+		for (int poi = 0, n = mapDataBuffer.getPoiCount(); poi < n; ++poi) {
+			List<Tag> tags = new ArrayList<>();
+			mapDataBuffer.getPoiTags(poi, tags);
+			GeoPoint position = new GeoPoint(mapDataBuffer.getPoiLatitude(poi), mapDataBuffer.getPoiLongitude(poi));
+			this.pointOfInterests.add(new PointOfInterest(mapDataBuffer.getPoiLayer(poi), tags, position));
+		}
+
+		float[] coordinates = mapDataBuffer.getCoordinates();
+		int[] segmentOffsets = mapDataBuffer.getSegmentOffsets();
+		for (int way = 0, n = mapDataBuffer.getWayCount(); way < n; ++way) {
+			List<Tag> tags = new ArrayList<>();
+			mapDataBuffer.getWayTags(way, tags);
+
+			float[][] wayNodes = new float[mapDataBuffer.getWaySegmentCount(way)][];
+			for (int i = 0, segment = mapDataBuffer.getWayFirstSegment(way); i < wayNodes.length; ++i, ++segment) {
+				wayNodes[i] = Arrays.copyOfRange(coordinates, segmentOffsets[segment], segmentOffsets[segment + 1]);
+			}
+
+			GeoPoint labelPosition = null;
+			if (mapDataBuffer.hasWayLabelPosition(way)) {
+				try {
+					labelPosition = new GeoPoint(mapDataBuffer.getWayLabelLatitude(way),
+							mapDataBuffer.getWayLabelLongitude(way));
+				} catch (IllegalArgumentException e) {
+					// ignore an invalid label position
+				}
+			}
+
+			this.ways.add(new Way(mapDataBuffer.getWayLayer(way), tags, wayNodes, labelPosition));
+		}
+
+		this.isWater = mapDataBuffer.isWater();
 	}
 
 	MapReadResult build() {
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read-only view of a map file which can be shared by concurrent readers.
+ * <p>
+ * The file is memory mapped in segments which are created on first use. Consecutive segments overlap by the maximum
+ * block size, so that every block lies within one segment and can be decoded in place. If a segment cannot be mapped,
+ * for example because the address space of the process is exhausted, the data is read with positional reads instead.
+ */
+final class MappedMapFile {
+	private static final Logger LOGGER = Logger.getLogger(MappedMapFile.class.getName());
+
+	/**
+	 * Overlap of consecutive segments, at least as large as the largest read.
+	 */
+	private static final int SEGMENT_OVERLAP = ReadBuffer.MAXIMUM_BUFFER_SIZE;
+
+	/**
+	 * Distance between the start of consecutive segments.
+	 */
+	private static final int SEGMENT_SIZE = 1 << 26;
+
+	private final FileChannel fileChannel;
+	private final long fileSize;
+	private volatile boolean mappingFailed;
+	private final AtomicReferenceArray<ByteBuffer> segments;
+
+	/**
+	 * @param fileChannel
+	 *            the channel of the map file, which must stay open while this object is used.
+	 * @param fileSize
+	 *            the size of the map file in bytes.
+	 */
+	MappedMapFile(FileChannel fileChannel, long fileSize) {
+		this.fileChannel = fileChannel;
+		this.fileSize = fileSize;
+		this.segments = new AtomicReferenceArray<>((int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE));
+	}
+
+	/**
+	 * Lets the read buffer decode the given part of the file. This method is thread-safe.
+	 *
+	 * @param readBuffer
+	 *            the read buffer of the caller.
+	 * @param position
+	 *            the position in the file.
+	 * @param length
+	 *            the amount of bytes, at most {@link ReadBuffer#MAXIMUM_BUFFER_SIZE}.
+	 * @return true if the whole data could be read, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	boolean read(ReadBuffer readBuffer, long position, int length) throws IOException {
+		if (position < 0 || length < 0 || length > SEGMENT_OVERLAP || position + length > this.fileSize) {
+			LOGGER.warning("invalid read: " + position + ", " + length);
+			return false;
+		}
+
+		ByteBuffer segment = getSegment((int) (position / SEGMENT_SIZE));
+		if (segment != null) {
+			readBuffer.setBuffer(segment, (int) (position % SEGMENT_SIZE), length);
+			return true;
+		}
+		return readBuffer.readFromChannel(this.fileChannel, position, length);
+	}
+
+	/**
+	 * Copies the given part of the file into the array. This method is thread-safe.
+	 *
+	 * @param position
+	 *            the position in the file.
+	 * @param destination
+	 *            the array to fill, at most {@link ReadBuffer#MAXIMUM_BUFFER_SIZE} bytes long.
+	 * @return true if the whole array could be filled, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	boolean readFully(long position, byte[] destination) throws IOException {
+		int length = destination.length;
+		if (position < 0 || length > SEGMENT_OVERLAP || position + length > this.fileSize) {
+			LOGGER.warning("invalid read: " + position + ", " + length);
+			return false;
+		}
+
+		ByteBuffer segment = getSegment((int) (position / SEGMENT_SIZE));
+		if (segment != null) {
+			int offset = (int) (position % SEGMENT_SIZE);
+			for (int i = 0; i < length; ++i) {
+				destination[i] = segment.get(offset + i);
+			}
+			return true;
+		}
+
+		ByteBuffer target = ByteBuffer.wrap(destination);
+		while (target.hasRemaining()) {
+			if (this.fileChannel.read(target, position + target.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the mapped segment or null if it could not be mapped.
+	 */
+	private ByteBuffer getSegment(int index) {
+		ByteBuffer segment = this.segments.get(index);
+		if (segment != null || this.mappingFailed) {
+			return segment;
+		}
+
+		long start = (long) index * SEGMENT_SIZE;
+		long size = Math.min(SEGMENT_SIZE + (long) SEGMENT_OVERLAP, this.fileSize - start);
+		try {
+			segment = this.fileChannel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "could not map the file, falling back to file reads", e);
+			this.mappingFailed = true;
+			return null;
+		}
+
+		// another thread might have mapped the same segment in the meantime
+		this.segments.compareAndSet(index, null, segment);
+		return this.segments.get(index);
+	}
+}
@@ -27,6 +27,18 @@ class QueryParameters {
 	long toBlockY;
 	boolean useTileBitmask;
 
+	/*
+	 * the decoding state of the query, kept here so that queries can run concurrently
+	 */
+	int poisOnQueryZoomLevel;
+	ReadBuffer readBuffer;
+	String signatureBlock;
+	String signaturePoi;
+	String signatureWay;
+	int tileLatitude;
+	int tileLongitude;
+	int waysOnQueryZoomLevel;
+
 	@Override
 	public String toString() {
 		StringBuilder stringBuilder = new StringBuilder();
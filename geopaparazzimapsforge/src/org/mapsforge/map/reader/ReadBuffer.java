@@ -17,10 +17,12 @@ package org.mapsforge.map.reader;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
 /**
- * Reads from a {@link RandomAccessFile} into a buffer and decodes the data.
+ * Reads from a {@link RandomAccessFile} into a buffer, or wraps a part of a memory mapped file, and decodes the data.
  */
 public class ReadBuffer {
 	private static final String CHARSET_UTF8 = "UTF-8";
@@ -31,21 +33,33 @@ public class ReadBuffer {
 	 */
 	static final int MAXIMUM_BUFFER_SIZE = 2500000;
 
+	private ByteBuffer buffer;
 	private byte[] bufferData;
+	private int bufferLength;
+	private int bufferOffset;
 	private int bufferPosition;
 	private final RandomAccessFile inputFile;
+	private byte[] stringData;
 
 	ReadBuffer(RandomAccessFile inputFile) {
 		this.inputFile = inputFile;
 	}
 
+	/**
+	 * Creates a read buffer which is only filled by {@link #setBuffer(ByteBuffer, int, int)} and
+	 * {@link #readFromChannel(FileChannel, long, int)}.
+	 */
+	ReadBuffer() {
+		this(null);
+	}
+
 	/**
 	 * Returns one signed byte from the read buffer.
 	 * 
 	 * @return the byte value.
 	 */
 	public byte readByte() {
-		return this.bufferData[this.bufferPosition++];
+		return this.buffer.get(advance(1));
 	}
 
 	/**
@@ -59,18 +73,11 @@ public class ReadBuffer {
 	 *             if an error occurs while reading the file.
 	 */
 	public boolean readFromFile(int length) throws IOException {
-		// ensure that the read buffer is large enough
-		if (this.bufferData == null || this.bufferData.length < length) {
-			// ensure that the read buffer is not too large
-			if (length > MAXIMUM_BUFFER_SIZE) {
-				LOGGER.warning("invalid read length: " + length);
-				return false;
-			}
-			this.bufferData = new byte[length];
+		if (!prepareBufferData(length)) {
+			return false;
 		}
 
-		// reset the buffer position and read the data into the buffer
-		this.bufferPosition = 0;
+		// read the data into the buffer
 		return this.inputFile.read(this.bufferData, 0, length) == length;
 	}
 
@@ -82,8 +89,7 @@ public class ReadBuffer {
 	 * @return the int value.
 	 */
 	public int readInt() {
-		this.bufferPosition += 4;
-		return Deserializer.getInt(this.bufferData, this.bufferPosition - 4);
+		return this.buffer.getInt(advance(4));
 	}
 
 	/**
@@ -94,8 +100,7 @@ public class ReadBuffer {
 	 * @return the long value.
 	 */
 	public long readLong() {
-		this.bufferPosition += 8;
-		return Deserializer.getLong(this.bufferData, this.bufferPosition - 8);
+		return this.buffer.getLong(advance(8));
 	}
 
 	/**
@@ -106,8 +111,7 @@ public class ReadBuffer {
 	 * @return the int value.
 	 */
 	public int readShort() {
-		this.bufferPosition += 2;
-		return Deserializer.getShort(this.bufferData, this.bufferPosition - 2);
+		return this.buffer.getShort(advance(2));
 	}
 
 	/**
@@ -121,20 +125,28 @@ public class ReadBuffer {
 	public int readSignedInt() {
 		int variableByteDecode = 0;
 		byte variableByteShift = 0;
+		int index = advance(1);
+		int end = this.bufferOffset + this.bufferLength;
+		byte currentByte = this.buffer.get(index++);
 
 		// check if the continuation bit is set
-		while ((this.bufferData[this.bufferPosition] & 0x80) != 0) {
-			variableByteDecode |= (this.bufferData[this.bufferPosition++] & 0x7f) << variableByteShift;
+		while ((currentByte & 0x80) != 0) {
+			variableByteDecode |= (currentByte & 0x7f) << variableByteShift;
 			variableByteShift += 7;
+			if (index >= end) {
+				throw outOfBounds(index - this.bufferOffset, 1);
+			}
+			currentByte = this.buffer.get(index++);
 		}
+		this.bufferPosition = index - this.bufferOffset;
 
 		// read the six data bits from the last byte
-		if ((this.bufferData[this.bufferPosition] & 0x40) != 0) {
+		if ((currentByte & 0x40) != 0) {
 			// negative
-			return -(variableByteDecode | ((this.bufferData[this.bufferPosition++] & 0x3f) << variableByteShift));
+			return -(variableByteDecode | ((currentByte & 0x3f) << variableByteShift));
 		}
 		// positive
-		return variableByteDecode | ((this.bufferData[this.bufferPosition++] & 0x3f) << variableByteShift);
+		return variableByteDecode | ((currentByte & 0x3f) << variableByteShift);
 	}
 
 	/**
@@ -147,15 +159,23 @@ public class ReadBuffer {
 	public int readUnsignedInt() {
 		int variableByteDecode = 0;
 		byte variableByteShift = 0;
+		int index = advance(1);
+		int end = this.bufferOffset + this.bufferLength;
+		byte currentByte = this.buffer.get(index++);
 
 		// check if the continuation bit is set
-		while ((this.bufferData[this.bufferPosition] & 0x80) != 0) {
-			variableByteDecode |= (this.bufferData[this.bufferPosition++] & 0x7f) << variableByteShift;
+		while ((currentByte & 0x80) != 0) {
+			variableByteDecode |= (currentByte & 0x7f) << variableByteShift;
 			variableByteShift += 7;
+			if (index >= end) {
+				throw outOfBounds(index - this.bufferOffset, 1);
+			}
+			currentByte = this.buffer.get(index++);
 		}
+		this.bufferPosition = index - this.bufferOffset;
 
 		// read the seven data bits from the last byte
-		return variableByteDecode | (this.bufferData[this.bufferPosition++] << variableByteShift);
+		return variableByteDecode | (currentByte << variableByteShift);
 	}
 
 	/**
@@ -175,10 +195,21 @@ public class ReadBuffer {
 	 * @return the UTF-8 decoded string (may be null).
 	 */
 	public String readUTF8EncodedString(int stringLength) {
-		if (stringLength > 0 && this.bufferPosition + stringLength <= this.bufferData.length) {
+		if (stringLength > 0 && this.bufferPosition + stringLength <= this.bufferLength) {
+			int index = this.bufferOffset + this.bufferPosition;
 			this.bufferPosition += stringLength;
 			try {
-				return new String(this.bufferData, this.bufferPosition - stringLength, stringLength, CHARSET_UTF8);
+				if (this.buffer.hasArray()) {
+					return new String(this.buffer.array(), this.buffer.arrayOffset() + index, stringLength, CHARSET_UTF8);
+				}
+				// a mapped buffer has no backing array
+				if (this.stringData == null || this.stringData.length < stringLength) {
+					this.stringData = new byte[stringLength];
+				}
+				for (int i = 0; i < stringLength; ++i) {
+					this.stringData[i] = this.buffer.get(index + i);
+				}
+				return new String(this.stringData, 0, stringLength, CHARSET_UTF8);
 			} catch (UnsupportedEncodingException e) {
 				throw new IllegalStateException(e);
 			}
@@ -187,6 +218,133 @@ public class ReadBuffer {
 		return null;
 	}
 
+	/**
+	 * Reads the given amount of bytes from the channel at the given position into the read buffer and resets the
+	 * internal buffer position. The position of the channel is not changed.
+	 * 
+	 * @param fileChannel
+	 *            the channel to read from.
+	 * @param position
+	 *            the position in the file.
+	 * @param length
+	 *            the amount of bytes to read from the file.
+	 * @return true if the whole data was read successfully, false otherwise.
+	 * @throws IOException
+	 *             if an error occurs while reading the file.
+	 */
+	boolean readFromChannel(FileChannel fileChannel, long position, int length) throws IOException {
+		if (!prepareBufferData(length)) {
+			return false;
+		}
+
+		ByteBuffer target = ByteBuffer.wrap(this.bufferData, 0, length);
+		while (target.hasRemaining()) {
+			if (fileChannel.read(target, position + target.position()) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Lets this read buffer decode a part of the given buffer, without copying it, and resets the internal buffer
+	 * position. Only absolute reads are done, so the same buffer can be shared by several read buffers.
+	 * 
+	 * @param byteBuffer
+	 *            the buffer, in big-endian byte order.
+	 * @param offset
+	 *            the offset of the data in the buffer.
+	 * @param length
+	 *            the amount of bytes of the data.
+	 */
+	void setBuffer(ByteBuffer byteBuffer, int offset, int length) {
+		this.buffer = byteBuffer;
+		this.bufferOffset = offset;
+		this.bufferLength = length;
+		this.bufferPosition = 0;
+	}
+
+	/**
+	 * Copies the given bytes of the read buffer into the array. The buffer position is not changed.
+	 *
+	 * @param position
+	 *            the position of the first byte, in the same units as {@link #getBufferPosition()}.
+	 * @param length
+	 *            the amount of bytes to copy.
+	 * @param destination
+	 *            the array to fill.
+	 * @param destinationOffset
+	 *            the offset of the first byte in the array.
+	 */
+	void copyBytes(int position, int length, byte[] destination, int destinationOffset) {
+		int index = checkRange(position, length);
+		for (int i = 0; i < length; ++i) {
+			destination[destinationOffset + i] = this.buffer.get(index + i);
+		}
+	}
+
+	/**
+	 * Compares the given bytes of the read buffer with a part of the array. The buffer position is not changed.
+	 *
+	 * @return true if all bytes are equal, false otherwise.
+	 */
+	boolean equalsBytes(int position, int length, byte[] array, int arrayOffset) {
+		int index = checkRange(position, length);
+		for (int i = 0; i < length; ++i) {
+			if (this.buffer.get(index + i) != array[arrayOffset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates a hash code of the given bytes of the read buffer. The buffer position is not changed.
+	 *
+	 * @return the same value as {@link java.util.Arrays#hashCode(byte[])} for an array with these bytes.
+	 */
+	int hashBytes(int position, int length) {
+		int index = checkRange(position, length);
+		int result = 1;
+		for (int i = 0; i < length; ++i) {
+			result = 31 * result + this.buffer.get(index + i);
+		}
+		return result;
+	}
+
+	/**
+	 * Moves the buffer position past the given amount of bytes.
+	 * 
+	 * @return the index of the first of these bytes in the underlying buffer.
+	 * @throws IndexOutOfBoundsException
+	 *             if the bytes are not within the data of this read buffer.
+	 */
+	private int advance(int bytes) {
+		int index = checkRange(this.bufferPosition, bytes);
+		this.bufferPosition += bytes;
+		return index;
+	}
+
+	/**
+	 * Checks that the given bytes are within the data of this read buffer, a mapped buffer also holds the data of the
+	 * following blocks.
+	 * 
+	 * @return the index of the first byte in the underlying buffer.
+	 * @throws IndexOutOfBoundsException
+	 *             if the bytes are not within the data of this read buffer.
+	 */
+	private int checkRange(int position, int length) {
+		if (position < 0 || length < 0 || position > this.bufferLength - length) {
+			throw outOfBounds(position, length);
+		}
+		return this.bufferOffset + position;
+	}
+
+	private IndexOutOfBoundsException outOfBounds(int position, int length) {
+		return new IndexOutOfBoundsException("cannot read " + length + " bytes at position " + position
+				+ ", buffer length: " + this.bufferLength);
+	}
+
 	/**
 	 * @return the current buffer position.
 	 */
@@ -198,7 +356,31 @@ public class ReadBuffer {
 	 * @return the current size of the read buffer.
 	 */
 	int getBufferSize() {
-		return this.bufferData.length;
+		return this.bufferLength;
+	}
+
+	/**
+	 * Makes the own byte array of this read buffer the current buffer, large enough for the given amount of bytes.
+	 * 
+	 * @return false if the length is invalid.
+	 */
+	private boolean prepareBufferData(int length) {
+		// ensure that the read buffer is large enough
+		if (this.bufferData == null || this.bufferData.length < length) {
+			// ensure that the read buffer is not too large
+			if (length < 0 || length > MAXIMUM_BUFFER_SIZE) {
+				LOGGER.warning("invalid read length: " + length);
+				return false;
+			}
+			this.bufferData = new byte[length];
+		}
+		if (this.buffer == null || !this.buffer.hasArray() || this.buffer.array() != this.bufferData) {
+			this.buffer = ByteBuffer.wrap(this.bufferData);
+		}
+
+		// reset the buffer position
+		setBuffer(this.buffer, 0, length);
+		return true;
 	}
 
 	/**
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.util.Arrays;
+
+import org.mapsforge.core.model.Tag;
+
+/**
+ * A pool of tags whose values are stored in the map file, such as names and house numbers, keyed by the tag key and the
+ * encoded bytes of the value.
+ * <p>
+ * Repeated values are found without decoding them, so that neither a string nor a tag has to be created. The pool is
+ * emptied when it is full. It is not thread-safe.
+ */
+final class TagPool {
+	private static final int INITIAL_CAPACITY = 256;
+	private static final int INITIAL_DATA_SIZE = 4096;
+	private static final int MAXIMUM_ENTRIES = 4096;
+
+	private static int getSlot(int hash, int mask) {
+		int mixed = hash * 0x9E3779B9;
+		return (mixed ^ (mixed >>> 16)) & mask;
+	}
+
+	private byte[] data;
+	private int dataLength;
+	private int entries;
+	private int[] entryHashes;
+	private int[] entryLengths;
+	private int[] entryOffsets;
+	private Tag[] entryTags;
+
+	/**
+	 * Entry + 1 of each slot or 0, twice as many slots as possible entries.
+	 */
+	private int[] slots;
+
+	TagPool() {
+		this.data = new byte[INITIAL_DATA_SIZE];
+		this.entryHashes = new int[INITIAL_CAPACITY];
+		this.entryLengths = new int[INITIAL_CAPACITY];
+		this.entryOffsets = new int[INITIAL_CAPACITY];
+		this.entryTags = new Tag[INITIAL_CAPACITY];
+		this.slots = new int[INITIAL_CAPACITY * 2];
+	}
+
+	/**
+	 * Removes all tags from this pool.
+	 */
+	void clear() {
+		if (this.entries > 0) {
+			Arrays.fill(this.slots, 0);
+			Arrays.fill(this.entryTags, 0, this.entries, null);
+			this.entries = 0;
+			this.dataLength = 0;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key of the tag, one of the constants of {@link MapDatabase}.
+	 * @param readBuffer
+	 *            the read buffer which contains the encoded value.
+	 * @param position
+	 *            the position of the encoded value in the read buffer.
+	 * @param length
+	 *            the length of the encoded value in bytes.
+	 * @return the pooled tag or null if this pool does not contain it.
+	 */
+	Tag get(String key, ReadBuffer readBuffer, int position, int length) {
+		int hash = 31 * key.hashCode() + readBuffer.hashBytes(position, length);
+		int mask = this.slots.length - 1;
+		for (int slot = getSlot(hash, mask); this.slots[slot] != 0; slot = (slot + 1) & mask) {
+			int entry = this.slots[slot] - 1;
+			if (this.entryHashes[entry] == hash && this.entryLengths[entry] == length
+					&& key.equals(this.entryTags[entry].key)
+					&& readBuffer.equalsBytes(position, length, this.data, this.entryOffsets[entry])) {
+				return this.entryTags[entry];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the tag with the given encoded value to this pool, which must not contain it yet.
+	 */
+	void put(Tag tag, ReadBuffer readBuffer, int position, int length) {
+		if (this.entries == MAXIMUM_ENTRIES) {
+			clear();
+		} else if (this.entries == this.entryTags.length) {
+			grow();
+		}
+
+		if (this.dataLength + length > this.data.length) {
+			this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.dataLength + length));
+		}
+		readBuffer.copyBytes(position, length, this.data, this.dataLength);
+
+		int entry = this.entries++;
+		int hash = 31 * tag.key.hashCode() + readBuffer.hashBytes(position, length);
+		this.entryHashes[entry] = hash;
+		this.entryLengths[entry] = length;
+		this.entryOffsets[entry] = this.dataLength;
+		this.entryTags[entry] = tag;
+		this.dataLength += length;
+
+		addSlot(entry);
+	}
+
+	private void addSlot(int entry) {
+		int mask = this.slots.length - 1;
+		int slot = getSlot(this.entryHashes[entry], mask);
+		while (this.slots[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.slots[slot] = entry + 1;
+	}
+
+	private void grow() {
+		int capacity = this.entryTags.length * 2;
+		this.entryHashes = Arrays.copyOf(this.entryHashes, capacity);
+		this.entryLengths = Arrays.copyOf(this.entryLengths, capacity);
+		this.entryOffsets = Arrays.copyOf(this.entryOffsets, capacity);
+		this.entryTags = Arrays.copyOf(this.entryTags, capacity);
+		this.slots = new int[capacity * 2];
+		for (int entry = 0; entry < this.entries; ++entry) {
+			addSlot(entry);
+		}
+	}
+}
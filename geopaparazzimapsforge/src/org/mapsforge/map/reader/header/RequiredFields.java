@@ -72,6 +72,14 @@ final class RequiredFields {
 	 */
 	static final int LONGITUDE_MIN = -180000000;
 
+	/**
+	 * Interns key and value of the tag, so that the render theme can look them up by reference.
+	 */
+	private static Tag createInternedTag(String tag) {
+		Tag parsedTag = new Tag(tag);
+		return new Tag(parsedTag.key.intern(), parsedTag.value.intern());
+	}
+
 	static FileOpenResult readBoundingBox(ReadBuffer readBuffer, MapFileInfoBuilder mapFileInfoBuilder) {
 		// get and check the minimum latitude (4 bytes)
 		int minLatitude = readBuffer.readInt();
@@ -168,7 +176,7 @@ final class RequiredFields {
 			if (tag == null) {
 				return new FileOpenResult("POI tag must not be null: " + currentTagId);
 			}
-			poiTags[currentTagId] = new Tag(tag);
+			poiTags[currentTagId] = createInternedTag(tag);
 		}
 		mapFileInfoBuilder.poiTags = poiTags;
 		return FileOpenResult.SUCCESS;
@@ -223,7 +231,7 @@ final class RequiredFields {
 			if (tag == null) {
 				return new FileOpenResult("way tag must not be null: " + currentTagId);
 			}
-			wayTags[currentTagId] = new Tag(tag);
+			wayTags[currentTagId] = createInternedTag(tag);
 		}
 		mapFileInfoBuilder.wayTags = wayTags;
 		return FileOpenResult.SUCCESS;
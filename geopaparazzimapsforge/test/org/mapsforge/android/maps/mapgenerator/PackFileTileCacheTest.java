@@ -0,0 +1,376 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.android.maps.DebugSettings;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Tests the {@link PackFileTileCache}, in particular its recovery from damaged data and index files.
+ * <p>
+ * The caches are opened in the background, the tests wait for it.
+ */
+public class PackFileTileCacheTest {
+	private static final int TILES = 10;
+
+	static MapGeneratorJob createJob(int tileX, int tileY) {
+		return new MapGeneratorJob(new Tile(tileX, tileY, (byte) 14), "map", new JobParameters(null, 1),
+				new DebugSettings(false, false, false));
+	}
+
+	static byte[] createPixels(int seed) {
+		byte[] pixels = new byte[Tile.TILE_SIZE_IN_BYTES];
+		int value = seed * 0x9E3779B9 + 1;
+		for (int i = 0; i < pixels.length; ++i) {
+			value ^= value << 13;
+			value ^= value >>> 17;
+			value ^= value << 5;
+			pixels[i] = (byte) value;
+		}
+		return pixels;
+	}
+
+	static File createDirectory() throws IOException {
+		File directory = File.createTempFile("tilecache", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+		return directory;
+	}
+
+	static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				assertTrue(file.delete());
+			}
+		}
+		if (directory.exists()) {
+			assertTrue(directory.delete());
+		}
+	}
+
+	private File cacheDirectory;
+	private final byte[] pixels = new byte[Tile.TILE_SIZE_IN_BYTES];
+
+	@Before
+	public void setUp() throws IOException {
+		this.cacheDirectory = createDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		deleteDirectory(this.cacheDirectory);
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		assertTiles(cache, 0, TILES);
+		assertFalse(cache.containsKey(createJob(TILES, 0)));
+		assertFalse(cache.getPixels(createJob(TILES, 0), this.pixels));
+
+		// the key includes the map source and the rendering parameters
+		MapGeneratorJob otherSource = new MapGeneratorJob(new Tile(0, 0, (byte) 14), "other map", new JobParameters(
+				null, 1), new DebugSettings(false, false, false));
+		MapGeneratorJob otherTextScale = new MapGeneratorJob(new Tile(0, 0, (byte) 14), "map", new JobParameters(null,
+				2), new DebugSettings(false, false, false));
+		assertFalse(cache.containsKey(otherSource));
+		assertFalse(cache.containsKey(otherTextScale));
+		cache.destroy();
+	}
+
+	@Test
+	public void testReopenCleanIndex() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.setPersistent(true);
+		cache.destroy();
+		long dataLength = getDataFile().length();
+		assertEquals(TILES * PackFileTileCache.RECORD_SIZE, dataLength);
+
+		cache = open(100);
+		cache.setPersistent(true);
+		assertTiles(cache, 0, TILES);
+		cache.destroy();
+		assertEquals(dataLength, getDataFile().length());
+	}
+
+	@Test
+	public void testRecoveryAfterDamagedRecord() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.setPersistent(true);
+		cache.destroy();
+
+		// a flipped bit in the image of the seventh record, found by its crc after a crash
+		int damaged = 6;
+		flipImageBit(damaged);
+		setIndexClean(false);
+
+		cache = open(100);
+		cache.setPersistent(true);
+		assertTiles(cache, 0, damaged);
+		for (int i = damaged; i < TILES; ++i) {
+			assertFalse(cache.containsKey(createJob(i, 0)));
+		}
+		assertEquals((long) damaged * PackFileTileCache.RECORD_SIZE, getDataFile().length());
+
+		// the cache is usable after the recovery
+		fill(cache, damaged, TILES);
+		cache.destroy();
+		cache = open(100);
+		assertTiles(cache, 0, TILES);
+		cache.destroy();
+	}
+
+	@Test
+	public void testDamagedRecordWithCleanIndex() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.setPersistent(true);
+		cache.destroy();
+
+		// the clean index is trusted, the damaged header is only noticed when the tile is read
+		RandomAccessFile data = new RandomAccessFile(getDataFile(), "rw");
+		try {
+			data.seek(2L * PackFileTileCache.RECORD_SIZE);
+			data.writeInt(0);
+		} finally {
+			data.close();
+		}
+
+		cache = open(100);
+		assertTrue(cache.containsKey(createJob(2, 0)));
+		assertFalse(cache.getPixels(createJob(2, 0), this.pixels));
+		assertFalse(cache.containsKey(createJob(2, 0)));
+		assertTiles(cache, 0, 2);
+		assertTiles(cache, 3, TILES);
+		cache.destroy();
+	}
+
+	@Test
+	public void testDamagedImageWithCleanIndex() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.setPersistent(true);
+		cache.destroy();
+
+		// a torn write after the index was marked as clean, found by the crc of the image
+		flipImageBit(4);
+		cache = open(100);
+		assertTrue(cache.containsKey(createJob(4, 0)));
+		assertFalse(cache.getPixels(createJob(4, 0), this.pixels));
+		assertFalse(cache.containsKey(createJob(4, 0)));
+		assertTiles(cache, 0, 4);
+		assertTiles(cache, 5, TILES);
+		cache.destroy();
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		assertFalse(isIndexClean());
+		assertTrue(cache.checkpoint());
+		assertTrue(isIndexClean());
+
+		// the next put marks the index as dirty again
+		fill(cache, TILES, TILES + 1);
+		assertFalse(isIndexClean());
+		assertTrue(cache.checkpoint());
+		assertTrue(isIndexClean());
+
+		// the process is killed without destroy(), the checkpointed index is trusted instead of being rebuilt, which
+		// would drop everything from the damaged record on
+		flipImageBit(2);
+		PackFileTileCache reopened = open(100);
+		assertTrue(reopened.containsKey(createJob(2, 0)));
+		assertTiles(reopened, 3, TILES + 1);
+		reopened.destroy();
+		cache.destroy();
+	}
+
+	@Test
+	public void testRecoveryAfterDirtyIndex() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		// a newer image of a tile replaces the older record
+		cache.putPixels(createJob(3, 0), createPixels(1000));
+		cache.setPersistent(true);
+		cache.destroy();
+
+		// a crash in the middle of a put leaves a dirty index and a partial record
+		setIndexClean(false);
+		RandomAccessFile data = new RandomAccessFile(getDataFile(), "rw");
+		try {
+			data.setLength(data.length() + PackFileTileCache.RECORD_SIZE / 2);
+		} finally {
+			data.close();
+		}
+
+		cache = open(100);
+		cache.setPersistent(true);
+		assertTiles(cache, 0, 3);
+		assertTrue(cache.getPixels(createJob(3, 0), this.pixels));
+		assertArrayEquals(createPixels(1000), this.pixels);
+		assertTiles(cache, 4, TILES);
+		assertEquals((TILES + 1L) * PackFileTileCache.RECORD_SIZE, getDataFile().length());
+		cache.destroy();
+
+		// the rebuilt index is clean again
+		cache = open(100);
+		assertTiles(cache, 4, TILES);
+		cache.destroy();
+	}
+
+	@Test
+	public void testRecoveryAfterStaleIndex() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.setPersistent(true);
+		cache.destroy();
+
+		// the data file does not match the clean index anymore
+		RandomAccessFile data = new RandomAccessFile(getDataFile(), "rw");
+		try {
+			data.setLength(5L * PackFileTileCache.RECORD_SIZE);
+		} finally {
+			data.close();
+		}
+
+		cache = open(100);
+		assertTiles(cache, 0, 5);
+		assertFalse(cache.containsKey(createJob(5, 0)));
+		cache.destroy();
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() throws Exception {
+		PackFileTileCache cache = open(16);
+		fill(cache, 0, 16);
+		assertTrue(cache.getPixels(createJob(0, 0), this.pixels));
+
+		// evicts down to 14 tiles, the least recently used ones first
+		fill(cache, 16, 17);
+		assertTiles(cache, 0, 1);
+		for (int i = 1; i < 4; ++i) {
+			assertFalse(cache.containsKey(createJob(i, 0)));
+		}
+		assertTiles(cache, 4, 17);
+		cache.destroy();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		PackFileTileCache cache = open(16);
+		for (int i = 0; i < 200; ++i) {
+			// the tiles can be read while the data file is compacted in the background
+			fill(cache, i, i + 1);
+			assertTiles(cache, Math.max(0, i - 10), i + 1);
+		}
+		PackFileTileCache.awaitPendingTasks();
+		// the dead records never outnumber the live ones by much
+		assertTrue(getDataFile().length() <= 2L * (16 + 16) * PackFileTileCache.RECORD_SIZE);
+		assertTiles(cache, 190, 200);
+		cache.setPersistent(true);
+		cache.destroy();
+
+		cache = open(16);
+		assertTiles(cache, 199, 200);
+		cache.destroy();
+	}
+
+	@Test
+	public void testDestroyNotPersistent() throws Exception {
+		PackFileTileCache cache = open(100);
+		fill(cache, 0, TILES);
+		cache.destroy();
+		assertFalse(this.cacheDirectory.exists());
+	}
+
+	private void assertTiles(PackFileTileCache cache, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			MapGeneratorJob job = createJob(i, 0);
+			assertTrue("tile " + i, cache.containsKey(job));
+			assertTrue("tile " + i, cache.getPixels(job, this.pixels));
+			assertArrayEquals("tile " + i, createPixels(i), this.pixels);
+		}
+	}
+
+	private static void fill(PackFileTileCache cache, int from, int to) {
+		for (int i = from; i < to; ++i) {
+			cache.putPixels(createJob(i, 0), createPixels(i));
+		}
+	}
+
+	private void flipImageBit(int record) throws IOException {
+		long position = (long) record * PackFileTileCache.RECORD_SIZE + PackFileTileCache.RECORD_HEADER_SIZE + 100;
+		RandomAccessFile data = new RandomAccessFile(getDataFile(), "rw");
+		try {
+			data.seek(position);
+			int value = data.read();
+			data.seek(position);
+			data.write(value ^ 1);
+		} finally {
+			data.close();
+		}
+	}
+
+	private File getDataFile() {
+		return new File(this.cacheDirectory, PackFileTileCache.DATA_FILE_NAME);
+	}
+
+	private boolean isIndexClean() throws IOException {
+		RandomAccessFile index = new RandomAccessFile(new File(this.cacheDirectory, PackFileTileCache.INDEX_FILE_NAME),
+				"r");
+		try {
+			index.seek(PackFileTileCache.HEADER_CLEAN);
+			return index.readInt() == 1;
+		} finally {
+			index.close();
+		}
+	}
+
+	private PackFileTileCache open(int capacity) throws InterruptedException, ExecutionException {
+		PackFileTileCache cache = new PackFileTileCache(capacity, this.cacheDirectory);
+		PackFileTileCache.awaitPendingTasks();
+		return cache;
+	}
+
+	private void setIndexClean(boolean clean) throws IOException {
+		RandomAccessFile index = new RandomAccessFile(new File(this.cacheDirectory, PackFileTileCache.INDEX_FILE_NAME),
+				"rw");
+		try {
+			index.seek(PackFileTileCache.HEADER_CLEAN);
+			index.writeInt(clean ? 1 : 0);
+		} finally {
+			index.close();
+		}
+	}
+}
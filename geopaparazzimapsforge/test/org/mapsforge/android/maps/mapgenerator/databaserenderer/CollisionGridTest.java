@@ -0,0 +1,161 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.mapgenerator.databaserenderer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mapsforge.core.model.Tile;
+
+/**
+ * Tests the {@link CollisionGrid} against a brute force test of all rectangles.
+ */
+public class CollisionGridTest {
+	/**
+	 * The rectangles of a brute force test, in the order left, top, right, bottom.
+	 */
+	static class RectangleList {
+		int[] coordinates = new int[256];
+		int size;
+
+		void add(int left, int top, int right, int bottom) {
+			if (this.size + 4 > this.coordinates.length) {
+				this.coordinates = Arrays.copyOf(this.coordinates, this.coordinates.length * 2);
+			}
+			this.coordinates[this.size++] = left;
+			this.coordinates[this.size++] = top;
+			this.coordinates[this.size++] = right;
+			this.coordinates[this.size++] = bottom;
+		}
+
+		void clear() {
+			this.size = 0;
+		}
+
+		/**
+		 * Tests every rectangle with the rules of {@link android.graphics.Rect#intersects(android.graphics.Rect,
+		 * android.graphics.Rect)}.
+		 */
+		boolean intersects(int left, int top, int right, int bottom) {
+			for (int i = 0; i < this.size; i += 4) {
+				if (this.coordinates[i] < right && left < this.coordinates[i + 2] && this.coordinates[i + 1] < bottom
+						&& top < this.coordinates[i + 3]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@Test
+	public void testEmptyGrid() {
+		CollisionGrid grid = new CollisionGrid();
+		assertTrue(grid.isEmpty());
+		assertFalse(grid.intersects(0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE));
+
+		grid.add(10, 10, 20, 20);
+		assertFalse(grid.isEmpty());
+		assertTrue(grid.intersects(15, 15, 16, 16));
+
+		grid.clear();
+		assertTrue(grid.isEmpty());
+		assertFalse(grid.intersects(15, 15, 16, 16));
+	}
+
+	@Test
+	public void testEdges() {
+		CollisionGrid grid = new CollisionGrid();
+		grid.add(10, 10, 20, 20);
+
+		// rectangles sharing an edge do not intersect
+		assertFalse(grid.intersects(20, 10, 30, 20));
+		assertFalse(grid.intersects(0, 10, 10, 20));
+		assertFalse(grid.intersects(10, 20, 20, 30));
+		assertFalse(grid.intersects(10, 0, 20, 10));
+		assertTrue(grid.intersects(19, 19, 30, 30));
+		assertTrue(grid.intersects(0, 0, 11, 11));
+		// containment both ways
+		assertTrue(grid.intersects(12, 12, 14, 14));
+		assertTrue(grid.intersects(-100, -100, 100, 100));
+	}
+
+	@Test
+	public void testOutsideOfTheNeighbourTiles() {
+		CollisionGrid grid = new CollisionGrid();
+		// the border cells hold everything outside of the tile and its neighbours
+		grid.add(-1000, -1000, -990, -990);
+		grid.add(5000, 100, 5010, 110);
+		grid.add(-2000, 3000, 4000, 3010);
+
+		assertTrue(grid.intersects(-995, -995, -980, -980));
+		assertFalse(grid.intersects(-989, -995, -980, -980));
+		assertTrue(grid.intersects(5005, 105, 5006, 106));
+		assertFalse(grid.intersects(4000, 105, 5000, 106));
+		assertTrue(grid.intersects(0, 3005, 1, 3006));
+		assertFalse(grid.intersects(0, 0, Tile.TILE_SIZE, Tile.TILE_SIZE));
+	}
+
+	@Test
+	public void testInvertedRectangles() {
+		CollisionGrid grid = new CollisionGrid();
+		RectangleList list = new RectangleList();
+		// left greater than right, as the int rounding of labels wider than their position can produce
+		grid.add(100, 10, 40, 20);
+		list.add(100, 10, 40, 20);
+
+		int[][] queries = { { 50, 12, 60, 18 }, { 30, 12, 60, 18 }, { 90, 15, 95, 16 }, { 150, 0, 160, 30 },
+				{ 60, 12, 50, 18 } };
+		for (int[] query : queries) {
+			assertEquals(list.intersects(query[0], query[1], query[2], query[3]),
+					grid.intersects(query[0], query[1], query[2], query[3]));
+		}
+	}
+
+	@Test
+	public void testRandomRectangles() {
+		Random random = new Random(21);
+		CollisionGrid grid = new CollisionGrid();
+		RectangleList list = new RectangleList();
+		// the grid is reused like for the passes of a tile, the second round grows it beyond its initial capacity
+		int[] sizes = { 10, 500, 0, 50, 2000 };
+		for (int size : sizes) {
+			grid.clear();
+			list.clear();
+			for (int i = 0; i < size; ++i) {
+				int left = random.nextInt(4 * Tile.TILE_SIZE) - 2 * Tile.TILE_SIZE;
+				int top = random.nextInt(4 * Tile.TILE_SIZE) - 2 * Tile.TILE_SIZE;
+				// a few huge and inverted ones
+				int width = random.nextInt(10) == 0 ? random.nextInt(600) - 100 : random.nextInt(40);
+				int height = random.nextInt(10) == 0 ? random.nextInt(600) - 100 : random.nextInt(20);
+				grid.add(left, top, left + width, top + height);
+				list.add(left, top, left + width, top + height);
+			}
+			assertEquals(size == 0, grid.isEmpty());
+
+			for (int i = 0; i < 5000; ++i) {
+				int left = random.nextInt(4 * Tile.TILE_SIZE) - 2 * Tile.TILE_SIZE;
+				int top = random.nextInt(4 * Tile.TILE_SIZE) - 2 * Tile.TILE_SIZE;
+				int right = left + random.nextInt(60) - 5;
+				int bottom = top + random.nextInt(30) - 5;
+				assertEquals(list.intersects(left, top, right, bottom), grid.intersects(left, top, right, bottom));
+			}
+		}
+	}
+}
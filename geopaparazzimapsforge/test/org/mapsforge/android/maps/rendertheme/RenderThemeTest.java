@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.android.maps.rendertheme;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Stack;
+
+import org.junit.Test;
+import org.mapsforge.android.maps.rendertheme.renderinstruction.RenderInstruction;
+import org.mapsforge.core.model.Tag;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Checks the rules of small {@link RenderTheme}s with and without the matching cache.
+ */
+public class RenderThemeTest {
+	private static final int[] MATCHING_CACHE_SIZES = { 0, 1, 16, 1024 };
+
+	/**
+	 * A render instruction which adds its ID to a list whenever it is rendered, negated for ways.
+	 */
+	private static class RecordingInstruction implements RenderInstruction {
+		private final int id;
+		private final List<Integer> renderedIds;
+
+		RecordingInstruction(int id, List<Integer> renderedIds) {
+			this.id = id;
+			this.renderedIds = renderedIds;
+		}
+
+		@Override
+		public void destroy() {
+			// do nothing
+		}
+
+		@Override
+		public void renderNode(RenderCallback renderCallback, List<Tag> tags) {
+			this.renderedIds.add(Integer.valueOf(this.id));
+		}
+
+		@Override
+		public void renderWay(RenderCallback renderCallback, List<Tag> tags) {
+			this.renderedIds.add(Integer.valueOf(-this.id));
+		}
+
+		@Override
+		public void scaleStrokeWidth(float scaleFactor) {
+			// do nothing
+		}
+
+		@Override
+		public void scaleTextSize(float scaleFactor) {
+			// do nothing
+		}
+	}
+
+	private final List<Integer> renderedIds = new ArrayList<>();
+	private final Stack<Rule> ruleStack = new Stack<>();
+
+	/**
+	 * @param attributes
+	 *            the attribute names and values of the rule.
+	 */
+	private Rule rule(int instructionId, String... attributes) {
+		AttributesImpl attributesImpl = new AttributesImpl();
+		for (int i = 0; i < attributes.length; i += 2) {
+			attributesImpl.addAttribute("", attributes[i], attributes[i], "CDATA", attributes[i + 1]);
+		}
+		Rule rule = Rule.create("rule", attributesImpl, this.ruleStack);
+		rule.addRenderingInstruction(new RecordingInstruction(instructionId, this.renderedIds));
+		return rule;
+	}
+
+	/**
+	 * Creates a sub rule with the parent on the rule stack, as the theme handler does.
+	 */
+	private Rule subRule(Rule parent, int instructionId, String... attributes) {
+		this.ruleStack.push(parent);
+		Rule rule = rule(instructionId, attributes);
+		this.ruleStack.pop();
+		parent.addSubRule(rule);
+		return rule;
+	}
+
+	/**
+	 * A theme with a rule for every kind of matcher.
+	 */
+	private RenderTheme createTheme(int matchingCacheSize) {
+		RenderTheme renderTheme = new RenderTheme(0, 1, 1, matchingCacheSize);
+		Rule highway = rule(1, "e", "way", "k", "highway", "v", "primary|secondary");
+		// not in a tunnel
+		subRule(highway, 5, "e", "any", "k", "tunnel", "v", "~|no");
+		renderTheme.addRule(highway);
+		renderTheme.addRule(rule(2, "e", "node", "k", "amenity", "v", "*"));
+		Rule building = rule(3, "e", "way", "k", "building", "v", "*", "closed", "yes");
+		subRule(building, 4, "e", "any", "k", "building", "v", "yes");
+		renderTheme.addRule(building);
+		renderTheme.addRule(rule(6, "e", "any", "k", "highway|railway", "v", "secondary|rail", "zoom-min", "14"));
+		renderTheme.complete();
+		return renderTheme;
+	}
+
+	private static List<Tag> tags(String... keysAndValues) {
+		List<Tag> tags = new ArrayList<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			tags.add(new Tag(keysAndValues[i], keysAndValues[i + 1]));
+		}
+		return tags;
+	}
+
+	private static List<Integer> ids(Integer... ids) {
+		return Arrays.asList(ids);
+	}
+
+	/**
+	 * @param closed
+	 *            whether the way is closed, null for a node.
+	 */
+	private List<Integer> match(RenderTheme renderTheme, List<Tag> tags, int zoomLevel, Closed closed) {
+		this.renderedIds.clear();
+		if (closed == null) {
+			renderTheme.matchNode(null, tags, (byte) zoomLevel);
+		} else if (closed == Closed.YES) {
+			renderTheme.matchClosedWay(null, tags, (byte) zoomLevel);
+		} else {
+			renderTheme.matchLinearWay(null, tags, (byte) zoomLevel);
+		}
+		return new ArrayList<>(this.renderedIds);
+	}
+
+	/**
+	 * Matches an element several times, with the tags in another order and with a name, so that the cache has hits.
+	 */
+	private void assertMatch(List<Integer> expected, RenderTheme renderTheme, List<Tag> tags, int zoomLevel,
+			Closed closed) {
+		Random random = new Random(tags.hashCode());
+		for (int i = 0; i < 3; ++i) {
+			List<Tag> shuffledTags = new ArrayList<>(tags);
+			Collections.shuffle(shuffledTags, random);
+			if (i > 0) {
+				shuffledTags.add(new Tag("name", "Name " + i));
+			}
+			assertEquals(shuffledTags + " at " + zoomLevel + " " + closed, expected,
+					match(renderTheme, shuffledTags, zoomLevel, closed));
+		}
+	}
+
+	@Test
+	public void matchingTest() {
+		for (int matchingCacheSize : MATCHING_CACHE_SIZES) {
+			RenderTheme renderTheme = createTheme(matchingCacheSize);
+
+			assertMatch(ids(-1, -5), renderTheme, tags("highway", "primary"), 12, Closed.NO);
+			assertMatch(ids(), renderTheme, tags("highway", "primary"), 12, null);
+			assertMatch(ids(), renderTheme, tags("highway", "tertiary"), 12, Closed.NO);
+			// the negation matches a missing key or one of its values
+			assertMatch(ids(-1), renderTheme, tags("highway", "primary", "tunnel", "yes"), 12, Closed.NO);
+			assertMatch(ids(-1, -5), renderTheme, tags("highway", "primary", "tunnel", "no"), 12, Closed.NO);
+
+			assertMatch(ids(2), renderTheme, tags("amenity", "bench"), 12, null);
+			assertMatch(ids(), renderTheme, tags("amenity", "bench"), 12, Closed.YES);
+
+			assertMatch(ids(-3, -4), renderTheme, tags("building", "yes"), 12, Closed.YES);
+			assertMatch(ids(-3), renderTheme, tags("building", "house"), 12, Closed.YES);
+			assertMatch(ids(), renderTheme, tags("building", "yes"), 12, Closed.NO);
+
+			// the same tags at other zoom levels
+			assertMatch(ids(-1, -5), renderTheme, tags("highway", "secondary"), 13, Closed.NO);
+			assertMatch(ids(-1, -5, -6), renderTheme, tags("highway", "secondary"), 14, Closed.NO);
+			assertMatch(ids(-1, -5), renderTheme, tags("highway", "secondary"), 13, Closed.NO);
+			// any key with any value of a multi key rule
+			assertMatch(ids(6), renderTheme, tags("railway", "secondary"), 14, null);
+			assertMatch(ids(-6), renderTheme, tags("railway", "rail"), 15, Closed.YES);
+			assertMatch(ids(), renderTheme, tags("rail", "railway"), 15, Closed.YES);
+
+			assertMatch(ids(), renderTheme, tags(), 14, null);
+			renderTheme.destroy();
+		}
+	}
+
+	@Test
+	public void manyKeysTest() {
+		// more than 64 keys and values, the bit sets have several words
+		for (int matchingCacheSize : MATCHING_CACHE_SIZES) {
+			RenderTheme renderTheme = new RenderTheme(0, 1, 1, matchingCacheSize);
+			for (int i = 0; i < 130; ++i) {
+				renderTheme.addRule(rule(i + 1, "e", "any", "k", "k" + i, "v", "v" + i + "|v" + (i + 70)));
+			}
+			renderTheme.complete();
+
+			assertMatch(ids(1), renderTheme, tags("k0", "v0"), 12, null);
+			assertMatch(ids(1, 130), renderTheme, tags("k0", "v70", "k129", "v129"), 12, null);
+			assertMatch(ids(-65, -66), renderTheme, tags("k64", "v134", "k65", "v65"), 12, Closed.NO);
+			assertMatch(ids(), renderTheme, tags("k64", "v63", "k130", "v130"), 12, Closed.NO);
+			renderTheme.destroy();
+		}
+	}
+
+	@Test
+	public void fingerprintCollisionTest() {
+		TagDictionary tagDictionary = new TagDictionary();
+		tagDictionary.getKeyMask(Arrays.asList("highway", "building"));
+		tagDictionary.getValueMask(Arrays.asList("primary", "yes"));
+		TagSet tagSet = new TagSet(tagDictionary);
+
+		tagSet.set(Arrays.asList(new Tag("highway", "primary"), new Tag("name", "Via Roma")), tagDictionary);
+		long fingerprint = tagSet.getFingerprint();
+		MatchingCacheEntry matchingCacheEntry = new MatchingCacheEntry();
+		matchingCacheEntry.set(fingerprint, tagSet, (byte) 14, Closed.NO);
+		assertTrue(matchingCacheEntry.matches(fingerprint, tagSet, (byte) 14, Closed.NO));
+		assertFalse(matchingCacheEntry.matches(fingerprint, tagSet, (byte) 15, Closed.NO));
+		assertFalse(matchingCacheEntry.matches(fingerprint, tagSet, (byte) 14, Closed.YES));
+
+		// other tags with the same fingerprint must not hit the entry
+		tagSet.set(Arrays.asList(new Tag("building", "yes")), tagDictionary);
+		assertFalse(matchingCacheEntry.matches(fingerprint, tagSet, (byte) 14, Closed.NO));
+
+		// tags which are not used by any rule are left out
+		tagSet.set(Arrays.asList(new Tag("name", "Lago"), new Tag("highway", "primary")), tagDictionary);
+		assertEquals(fingerprint, tagSet.getFingerprint());
+		assertTrue(matchingCacheEntry.matches(fingerprint, tagSet, (byte) 14, Closed.NO));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidMatchingCacheSizeTest() {
+		new RenderTheme(0, 1, 1, 1000);
+	}
+
+	@Test
+	public void tagSetTest() {
+		TagDictionary tagDictionary = new TagDictionary();
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; i < 130; ++i) {
+			keys.add("k" + i);
+		}
+		long[] keyMask = tagDictionary.getKeyMask(keys);
+		assertEquals(3, keyMask.length);
+		assertEquals(130, tagDictionary.getKeyCount());
+		assertEquals(129, tagDictionary.getKeyId(new String("k129")));
+		assertEquals(-1, tagDictionary.getKeyId("k130"));
+
+		TagSet tagSet = new TagSet(tagDictionary);
+		tagSet.set(Arrays.asList(new Tag("k129", "v"), new Tag("k130", "v")), tagDictionary);
+		assertTrue(tagSet.intersectsKeys(keyMask));
+		assertTrue(tagSet.intersectsKeys(tagDictionary.getKeyMask(Collections.singletonList("k129"))));
+		assertFalse(tagSet.intersectsKeys(tagDictionary.getKeyMask(Collections.singletonList("k64"))));
+	}
+}
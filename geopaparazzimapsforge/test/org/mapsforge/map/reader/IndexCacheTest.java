@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Coordinates;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * Checks that {@link MapDatabase#warmIndexCache(BoundingBox, byte)} loads the index blocks which are read afterwards.
+ */
+public class IndexCacheTest {
+	// three index blocks of 128 entries
+	private static final int BLOCKS_HEIGHT = 2;
+	private static final int BLOCKS_WIDTH = 160;
+	private static final long TILE_LEFT = MercatorProjection.longitudeToTileX(11.1, TestMapFile.BASE_ZOOM_LEVEL);
+	private static final long TILE_TOP = MercatorProjection.latitudeToTileY(46.1, TestMapFile.BASE_ZOOM_LEVEL);
+
+	private MapDatabase mapDatabase;
+	private File mapFile;
+
+	@Before
+	public void setUp() throws Exception {
+		this.mapFile = File.createTempFile("indexcache", ".map");
+		this.mapDatabase = new MapDatabase();
+		// only the index matters, the blocks stay empty
+		new TestMapFile(TILE_LEFT, TILE_TOP, BLOCKS_WIDTH, BLOCKS_HEIGHT).write(this.mapFile);
+		assertTrue(this.mapDatabase.openFile(this.mapFile).isSuccess());
+	}
+
+	@After
+	public void tearDown() {
+		this.mapDatabase.closeFile();
+		assertTrue(this.mapFile.delete());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closedFileTest() {
+		BoundingBox boundingBox = this.mapDatabase.getMapFileInfo().boundingBox;
+		this.mapDatabase.closeFile();
+		this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL);
+	}
+
+	@Test
+	public void warmAreaTest() {
+		// the first ten blocks of the second row, block numbers 160 to 170 with the next one
+		double margin = 0.0001;
+		double minLatitude = MercatorProjection.tileYToLatitude(TILE_TOP + 2, TestMapFile.BASE_ZOOM_LEVEL) + margin;
+		double minLongitude = MercatorProjection.tileXToLongitude(TILE_LEFT, TestMapFile.BASE_ZOOM_LEVEL) + margin;
+		double maxLatitude = MercatorProjection.tileYToLatitude(TILE_TOP + 1, TestMapFile.BASE_ZOOM_LEVEL) - margin;
+		double maxLongitude = MercatorProjection.tileXToLongitude(TILE_LEFT + 10, TestMapFile.BASE_ZOOM_LEVEL)
+				- margin;
+		BoundingBox boundingBox = new BoundingBox(Coordinates.degreesToMicrodegrees(minLatitude),
+				Coordinates.degreesToMicrodegrees(minLongitude), Coordinates.degreesToMicrodegrees(maxLatitude),
+				Coordinates.degreesToMicrodegrees(maxLongitude));
+		assertEquals(1, this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL));
+
+		for (long tileX = TILE_LEFT; tileX < TILE_LEFT + 10; ++tileX) {
+			assertNotNull(this.mapDatabase.readMapData(new Tile(tileX, TILE_TOP + 1, TestMapFile.BASE_ZOOM_LEVEL)));
+		}
+		IndexCacheStatistics indexCacheStatistics = this.mapDatabase.getIndexCacheStatistics();
+		assertEquals(0, indexCacheStatistics.misses);
+		assertTrue(indexCacheStatistics.hits >= 10);
+	}
+
+	@Test
+	public void warmMapTest() {
+		BoundingBox boundingBox = this.mapDatabase.getMapFileInfo().boundingBox;
+		assertEquals(3, this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL));
+		// already loaded
+		assertEquals(0, this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL));
+
+		for (long tileY = TILE_TOP; tileY < TILE_TOP + BLOCKS_HEIGHT; ++tileY) {
+			for (long tileX = TILE_LEFT; tileX < TILE_LEFT + BLOCKS_WIDTH; ++tileX) {
+				assertNotNull(this.mapDatabase.readMapData(new Tile(tileX, tileY, TestMapFile.BASE_ZOOM_LEVEL)));
+			}
+		}
+		IndexCacheStatistics indexCacheStatistics = this.mapDatabase.getIndexCacheStatistics();
+		assertEquals(0, indexCacheStatistics.misses);
+		assertEquals(0, indexCacheStatistics.evictions);
+		assertTrue(indexCacheStatistics.hits >= BLOCKS_WIDTH * BLOCKS_HEIGHT);
+	}
+
+	@Test
+	public void trimTest() {
+		BoundingBox boundingBox = this.mapDatabase.getMapFileInfo().boundingBox;
+		assertEquals(3, this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL));
+
+		this.mapDatabase.trimIndexCache(0);
+		IndexCacheStatistics indexCacheStatistics = this.mapDatabase.getIndexCacheStatistics();
+		assertEquals(0, indexCacheStatistics.sizeInBytes);
+		assertEquals(3, indexCacheStatistics.evictions);
+		assertEquals(MapDatabase.getIndexCacheSize(), indexCacheStatistics.capacityInBytes);
+
+		// the capacity is kept, so the cache grows again
+		assertEquals(3, this.mapDatabase.warmIndexCache(boundingBox, TestMapFile.BASE_ZOOM_LEVEL));
+	}
+}
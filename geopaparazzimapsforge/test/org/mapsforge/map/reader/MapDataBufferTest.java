@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapsforge.core.model.Tag;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.reader.header.FileOpenResult;
+
+/**
+ * Checks {@link MapDatabase#readMapData(Tile, MapDataBuffer)} against the content of a small map file and against
+ * {@link MapDatabase#readMapData(Tile)}.
+ */
+public class MapDataBufferTest {
+	private static final int[] NO_TAGS = {};
+	// the first block is the upper left one of a tile at the minimum zoom level
+	private static final long TILE_LEFT = MercatorProjection.longitudeToTileX(11.1, TestMapFile.BASE_ZOOM_LEVEL) & ~3L;
+	private static final long TILE_TOP = MercatorProjection.latitudeToTileY(46.1, TestMapFile.BASE_ZOOM_LEVEL) & ~3L;
+	private static final int NORTH = TestMapFile.tileLatitude(TILE_TOP);
+	private static final int WEST = TestMapFile.tileLongitude(TILE_LEFT);
+
+	private static void addTags(StringBuilder stringBuilder, List<Tag> tags) {
+		stringBuilder.append(" [");
+		for (Tag tag : tags) {
+			stringBuilder.append(tag.key).append('=').append(tag.value).append(", ");
+		}
+		stringBuilder.append(']');
+	}
+
+	/**
+	 * Describes the content of a buffer, one line per POI and way.
+	 */
+	private static List<String> describe(MapDataBuffer mapDataBuffer) {
+		List<String> lines = new ArrayList<>();
+		List<Tag> tags = new ArrayList<>();
+		for (int poi = 0; poi < mapDataBuffer.getPoiCount(); ++poi) {
+			StringBuilder stringBuilder = new StringBuilder();
+			stringBuilder.append("poi ").append(mapDataBuffer.getPoiLayer(poi)).append(' ')
+					.append(mapDataBuffer.getPoiLatitude(poi)).append(' ').append(mapDataBuffer.getPoiLongitude(poi));
+			mapDataBuffer.getPoiTags(poi, tags);
+			addTags(stringBuilder, tags);
+			lines.add(stringBuilder.toString());
+		}
+
+		float[] coordinates = mapDataBuffer.getCoordinates();
+		int[] segmentOffsets = mapDataBuffer.getSegmentOffsets();
+		for (int way = 0; way < mapDataBuffer.getWayCount(); ++way) {
+			StringBuilder stringBuilder = new StringBuilder();
+			stringBuilder.append("way ").append(mapDataBuffer.getWayLayer(way));
+			mapDataBuffer.getWayTags(way, tags);
+			addTags(stringBuilder, tags);
+			if (mapDataBuffer.hasWayLabelPosition(way)) {
+				stringBuilder.append(" label ").append(mapDataBuffer.getWayLabelLatitude(way)).append(' ')
+						.append(mapDataBuffer.getWayLabelLongitude(way));
+			}
+			for (int i = 0, segment = mapDataBuffer.getWayFirstSegment(way); i < mapDataBuffer
+					.getWaySegmentCount(way); ++i, ++segment) {
+				stringBuilder.append(' ').append(
+						Arrays.toString(Arrays.copyOfRange(coordinates, segmentOffsets[segment],
+								segmentOffsets[segment + 1])));
+			}
+			lines.add(stringBuilder.toString());
+		}
+		lines.add("water " + mapDataBuffer.isWater());
+		return lines;
+	}
+
+	/**
+	 * Describes the content of a read result like {@link #describe(MapDataBuffer)}.
+	 */
+	private static List<String> describe(MapReadResult mapReadResult) {
+		List<String> lines = new ArrayList<>();
+		for (PointOfInterest pointOfInterest : mapReadResult.pointOfInterests) {
+			StringBuilder stringBuilder = new StringBuilder();
+			stringBuilder.append("poi ").append(pointOfInterest.layer).append(' ')
+					.append(pointOfInterest.position.latitudeE6).append(' ')
+					.append(pointOfInterest.position.longitudeE6);
+			addTags(stringBuilder, pointOfInterest.tags);
+			lines.add(stringBuilder.toString());
+		}
+		for (Way way : mapReadResult.ways) {
+			StringBuilder stringBuilder = new StringBuilder();
+			stringBuilder.append("way ").append(way.layer);
+			addTags(stringBuilder, way.tags);
+			if (way.labelPosition != null) {
+				stringBuilder.append(" label ").append(way.labelPosition.latitudeE6).append(' ')
+						.append(way.labelPosition.longitudeE6);
+			}
+			for (float[] wayNodes : way.wayNodes) {
+				stringBuilder.append(' ').append(Arrays.toString(wayNodes));
+			}
+			lines.add(stringBuilder.toString());
+		}
+		lines.add("water " + mapReadResult.isWater);
+		return lines;
+	}
+
+	/**
+	 * @return the longitude and latitude pairs of the buffer from the given segment on.
+	 */
+	private static float[] getSegment(MapDataBuffer mapDataBuffer, int way, int segment) {
+		int[] segmentOffsets = mapDataBuffer.getSegmentOffsets();
+		int index = mapDataBuffer.getWayFirstSegment(way) + segment;
+		return Arrays.copyOfRange(mapDataBuffer.getCoordinates(), segmentOffsets[index], segmentOffsets[index + 1]);
+	}
+
+	private static List<String> getTags(MapDataBuffer mapDataBuffer, boolean poi, int index) {
+		List<Tag> tags = new ArrayList<>();
+		if (poi) {
+			mapDataBuffer.getPoiTags(index, tags);
+		} else {
+			mapDataBuffer.getWayTags(index, tags);
+		}
+		List<String> strings = new ArrayList<>();
+		for (Tag tag : tags) {
+			strings.add(tag.key + '=' + tag.value);
+		}
+		return strings;
+	}
+
+	private final MapDataBuffer mapDataBuffer = new MapDataBuffer();
+	private File file;
+	private MapDatabase mapDatabase;
+
+	@Before
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("mapdatabuffer", ".map");
+		this.mapDatabase = new MapDatabase();
+	}
+
+	@After
+	public void tearDown() {
+		this.mapDatabase.closeFile();
+		assertTrue(this.file.delete());
+	}
+
+	@Test
+	public void invalidBlockTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 1, 1);
+		// the second POI has a tag ID beyond the tag table of the header
+		testMapFile.block(0, 0).poi(12, 0, NORTH - 1000, WEST + 1000, new int[] { 0 }, "Rifugio", null, null)
+				.poi(14, 0, NORTH - 2000, WEST + 2000, new int[] { 7 }, null, null, null);
+		open(testMapFile);
+
+		// the whole block is dropped, also the POI which was read before the invalid one
+		Tile tile = new Tile(TILE_LEFT, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(0, this.mapDataBuffer.getPoiCount());
+		assertEquals(0, this.mapDataBuffer.getWayCount());
+		assertRead(tile);
+
+		// below the zoom level of the invalid POI the block is fine
+		tile = new Tile(TILE_LEFT >>> 1, TILE_TOP >>> 1, (byte) 13);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(1, this.mapDataBuffer.getPoiCount());
+		assertRead(tile);
+	}
+
+	@Test
+	public void poiTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 1, 1);
+		testMapFile.block(0, 0)
+				.poi(12, 5, NORTH - 1000, WEST + 2000, new int[] { 1 }, "Monte", null, Integer.valueOf(2100))
+				.poi(15, 3, NORTH - 3000, WEST + 4000, new int[] { 0, 1 }, null, "12", null)
+				.poi(16, 0, NORTH - 5000, WEST + 6000, NO_TAGS, "Rifugio", null, Integer.valueOf(-20));
+		open(testMapFile);
+
+		Tile tile = new Tile(TILE_LEFT, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(1, this.mapDataBuffer.getPoiCount());
+		assertEquals(5, this.mapDataBuffer.getPoiLayer(0));
+		assertEquals(NORTH - 1000, this.mapDataBuffer.getPoiLatitude(0));
+		assertEquals(WEST + 2000, this.mapDataBuffer.getPoiLongitude(0));
+		assertEquals(Arrays.asList("natural=peak", "name=Monte", "ele=2100"), getTags(this.mapDataBuffer, true, 0));
+		assertRead(tile);
+
+		// the POIs of the higher zoom levels come after the ones of the lower zoom levels
+		tile = new Tile(TILE_LEFT << 2, TILE_TOP << 2, TestMapFile.ZOOM_LEVEL_MAX);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(3, this.mapDataBuffer.getPoiCount());
+		assertEquals(Arrays.asList("amenity=bench", "natural=peak", "addr:housenumber=12"),
+				getTags(this.mapDataBuffer, true, 1));
+		assertEquals(Arrays.asList("name=Rifugio", "ele=-20"), getTags(this.mapDataBuffer, true, 2));
+		assertRead(tile);
+	}
+
+	@Test
+	public void tagPoolTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 2, 1);
+		testMapFile.block(0, 0).poi(12, 0, NORTH - 1000, WEST + 1000, new int[] { 0 }, "Rifugio", null, null);
+		testMapFile.block(1, 0).poi(12, 0, NORTH - 1000, WEST + 30000, new int[] { 0 }, "Rifugio", null, null)
+				.poi(12, 0, NORTH - 2000, WEST + 31000, NO_TAGS, "Rifugio 2", null, null);
+		open(testMapFile);
+
+		// equal names are the same tag, as long as the buffer lives
+		assertTrue(this.mapDatabase.readMapData(new Tile(TILE_LEFT, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL),
+				this.mapDataBuffer));
+		List<Tag> tags = new ArrayList<>();
+		this.mapDataBuffer.getPoiTags(0, tags);
+		Tag headerTag = tags.get(0);
+		Tag name = tags.get(1);
+		assertTrue(this.mapDatabase.readMapData(new Tile(TILE_LEFT + 1, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL),
+				this.mapDataBuffer));
+		this.mapDataBuffer.getPoiTags(0, tags);
+		assertSame(name, tags.get(1));
+		this.mapDataBuffer.getPoiTags(1, tags);
+		assertNotSame(name, tags.get(0));
+
+		// the tags of the map file header are shared by both read methods
+		MapReadResult mapReadResult = this.mapDatabase.readMapData(new Tile(TILE_LEFT, TILE_TOP,
+				TestMapFile.BASE_ZOOM_LEVEL));
+		assertSame(headerTag, mapReadResult.pointOfInterests.get(0).tags.get(0));
+	}
+
+	@Test
+	public void tileBitmaskTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 1, 1);
+		int[] wayNodes = { NORTH - 1000, WEST + 1000, NORTH - 2000, WEST + 2000 };
+		// a way in the upper left sub-tile of the upper left quadrant
+		testMapFile.block(0, 0).way(12, 0, 0x8000, new int[] { 0 }, null, null, null, false,
+				new int[][] { wayNodes });
+		open(testMapFile);
+
+		Tile tile = new Tile(TILE_LEFT << 2, TILE_TOP << 2, TestMapFile.ZOOM_LEVEL_MAX);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(1, this.mapDataBuffer.getWayCount());
+		assertRead(tile);
+
+		tile = new Tile((TILE_LEFT << 2) + 3, (TILE_TOP << 2) + 3, TestMapFile.ZOOM_LEVEL_MAX);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(0, this.mapDataBuffer.getWayCount());
+		assertRead(tile);
+	}
+
+	@Test
+	public void waterTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 2, 1);
+		testMapFile.block(0, 0).isWater = true;
+		testMapFile.block(1, 0).poi(12, 0, NORTH - 1000, WEST + 30000, new int[] { 0 }, null, null, null);
+		open(testMapFile);
+
+		Tile tile = new Tile(TILE_LEFT, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertTrue(this.mapDataBuffer.isWater());
+		assertRead(tile);
+
+		tile = new Tile(TILE_LEFT + 1, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertFalse(this.mapDataBuffer.isWater());
+		assertRead(tile);
+
+		// a tile of a lower zoom level is water only if all of its blocks are
+		tile = new Tile(TILE_LEFT >>> 1, TILE_TOP >>> 1, (byte) 13);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertFalse(this.mapDataBuffer.isWater());
+		assertRead(tile);
+	}
+
+	@Test
+	public void wayTest() throws Exception {
+		TestMapFile testMapFile = new TestMapFile(TILE_LEFT, TILE_TOP, 1, 1);
+		int[] line = { NORTH - 1000, WEST + 1000, NORTH - 1500, WEST + 3000, NORTH - 4000, WEST + 3500 };
+		int[] outer = { NORTH - 5000, WEST + 5000, NORTH - 5000, WEST + 9000, NORTH - 9000, WEST + 9000,
+				NORTH - 5000, WEST + 5000 };
+		int[] inner = { NORTH - 6000, WEST + 6000, NORTH - 6000, WEST + 7000, NORTH - 7000, WEST + 7000,
+				NORTH - 6000, WEST + 6000 };
+		testMapFile.block(0, 0)
+				.way(12, 7, 0xffff, new int[] { 0 }, "Via Roma", "SS12",
+						new int[] { NORTH - 1200, WEST + 2000 }, false, new int[][] { line })
+				.way(14, 2, 0xffff, new int[] { 1 }, null, null, null, true, new int[][] { outer, inner },
+						new int[][] { line });
+		open(testMapFile);
+
+		Tile tile = new Tile(TILE_LEFT >>> 1, TILE_TOP >>> 1, (byte) 13);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(1, this.mapDataBuffer.getWayCount());
+		assertEquals(7, this.mapDataBuffer.getWayLayer(0));
+		assertEquals(Arrays.asList("highway=primary", "name=Via Roma", "ref=SS12"),
+				getTags(this.mapDataBuffer, false, 0));
+		assertTrue(this.mapDataBuffer.hasWayLabelPosition(0));
+		assertEquals(NORTH - 1200, this.mapDataBuffer.getWayLabelLatitude(0));
+		assertEquals(WEST + 2000, this.mapDataBuffer.getWayLabelLongitude(0));
+		assertEquals(1, this.mapDataBuffer.getWaySegmentCount(0));
+		assertArrayEquals(toCoordinates(line), getSegment(this.mapDataBuffer, 0, 0), 0);
+		assertRead(tile);
+
+		// every data block becomes a way of its own, inner lines follow their outer line
+		tile = new Tile(TILE_LEFT, TILE_TOP, TestMapFile.BASE_ZOOM_LEVEL);
+		assertTrue(this.mapDatabase.readMapData(tile, this.mapDataBuffer));
+		assertEquals(3, this.mapDataBuffer.getWayCount());
+		assertFalse(this.mapDataBuffer.hasWayLabelPosition(1));
+		assertEquals(Arrays.asList("building=yes"), getTags(this.mapDataBuffer, false, 1));
+		assertEquals(2, this.mapDataBuffer.getWaySegmentCount(1));
+		assertArrayEquals(toCoordinates(outer), getSegment(this.mapDataBuffer, 1, 0), 0);
+		assertArrayEquals(toCoordinates(inner), getSegment(this.mapDataBuffer, 1, 1), 0);
+		assertEquals(1, this.mapDataBuffer.getWaySegmentCount(2));
+		assertArrayEquals(toCoordinates(line), getSegment(this.mapDataBuffer, 2, 0), 0);
+		assertRead(tile);
+	}
+
+	/**
+	 * Checks that both read methods return the same content for a tile, with the buffer of the last read.
+	 */
+	private void assertRead(Tile tile) {
+		assertEquals(tile.toString(), describe(this.mapDatabase.readMapData(tile)), describe(this.mapDataBuffer));
+	}
+
+	private void open(TestMapFile testMapFile) throws Exception {
+		testMapFile.write(this.file);
+		FileOpenResult fileOpenResult = this.mapDatabase.openFile(this.file);
+		assertTrue(fileOpenResult.getErrorMessage(), fileOpenResult.isSuccess());
+	}
+
+	/**
+	 * @return the longitude and latitude pairs of latitude and longitude pairs.
+	 */
+	private static float[] toCoordinates(int[] wayNodes) {
+		float[] coordinates = new float[wayNodes.length];
+		for (int i = 0; i < wayNodes.length; i += 2) {
+			coordinates[i] = wayNodes[i + 1];
+			coordinates[i + 1] = wayNodes[i];
+		}
+		return coordinates;
+	}
+}
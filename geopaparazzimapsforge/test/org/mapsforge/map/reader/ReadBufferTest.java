@@ -0,0 +1,76 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Checks that a {@link ReadBuffer} on a part of a mapped buffer does not read the data of the following block.
+ */
+public class ReadBufferTest {
+	private static ReadBuffer createReadBuffer(int offset, int length) {
+		ByteBuffer byteBuffer = ByteBuffer.allocate(32);
+		for (int i = 0; i < byteBuffer.capacity(); ++i) {
+			byteBuffer.put(i, (byte) 0x81);
+		}
+		ReadBuffer readBuffer = new ReadBuffer();
+		readBuffer.setBuffer(byteBuffer, offset, length);
+		return readBuffer;
+	}
+
+	@Test
+	public void testReadWithinBlock() {
+		ReadBuffer readBuffer = createReadBuffer(4, 14);
+		assertEquals(0x81818181, readBuffer.readInt());
+		assertEquals(0x8181818181818181L, readBuffer.readLong());
+		assertEquals((short) 0x8181, readBuffer.readShort());
+		assertEquals(14, readBuffer.getBufferPosition());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testReadIntPastBlock() {
+		ReadBuffer readBuffer = createReadBuffer(4, 6);
+		readBuffer.readShort();
+		readBuffer.readInt();
+		readBuffer.readByte();
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testReadLongPastBlock() {
+		createReadBuffer(0, 7).readLong();
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testReadShortPastBlock() {
+		ReadBuffer readBuffer = createReadBuffer(8, 3);
+		readBuffer.skipBytes(2);
+		readBuffer.readShort();
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testReadVariableIntPastBlock() {
+		// every byte has the continuation bit set
+		createReadBuffer(2, 3).readUnsignedInt();
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testCopyBytesPastBlock() {
+		createReadBuffer(2, 3).copyBytes(1, 3, new byte[3], 0);
+	}
+}
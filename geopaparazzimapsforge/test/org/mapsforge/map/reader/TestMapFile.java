@@ -0,0 +1,299 @@
+/*
+ * Copyright 2010, 2011, 2012 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * Writes small binary map files of version 3 with a single sub-file and no debug signatures.
+ * <p>
+ * Every block covers one tile at the base zoom level, its elements are added in the order of their zoom levels with
+ * coordinates in microdegrees.
+ */
+class TestMapFile {
+	static final byte BASE_ZOOM_LEVEL = 14;
+	static final String[] POI_TAGS = { "amenity=bench", "natural=peak" };
+	static final String[] WAY_TAGS = { "highway=primary", "building=yes" };
+	static final byte ZOOM_LEVEL_MAX = 16;
+	static final byte ZOOM_LEVEL_MIN = 12;
+
+	private static final long BITMASK_INDEX_WATER = 0x8000000000L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	class Block {
+		boolean isWater;
+		final int tileLatitude;
+		final int tileLongitude;
+		private final int[] poiCounts = new int[ZOOM_LEVEL_MAX + 1];
+		private final ByteArrayOutputStream pois = new ByteArrayOutputStream();
+		private final int[] wayCounts = new int[ZOOM_LEVEL_MAX + 1];
+		private final ByteArrayOutputStream ways = new ByteArrayOutputStream();
+
+		Block(long tileX, long tileY) {
+			this.tileLatitude = tileLatitude(tileY);
+			this.tileLongitude = tileLongitude(tileX);
+		}
+
+		/**
+		 * @param elevation
+		 *            the elevation or null.
+		 */
+		Block poi(int zoomLevel, int layer, int latitude, int longitude, int[] tagIds, String name,
+				String houseNumber, Integer elevation) throws IOException {
+			++this.poiCounts[zoomLevel];
+			writeSignedInt(this.pois, latitude - this.tileLatitude);
+			writeSignedInt(this.pois, longitude - this.tileLongitude);
+			this.pois.write((layer << 4) | tagIds.length);
+			for (int tagId : tagIds) {
+				writeUnsignedInt(this.pois, tagId);
+			}
+			this.pois.write((name != null ? 0x80 : 0) | (houseNumber != null ? 0x40 : 0)
+					| (elevation != null ? 0x20 : 0));
+			if (name != null) {
+				writeString(this.pois, name);
+			}
+			if (houseNumber != null) {
+				writeString(this.pois, houseNumber);
+			}
+			if (elevation != null) {
+				writeSignedInt(this.pois, elevation.intValue());
+			}
+			return this;
+		}
+
+		/**
+		 * @param labelPosition
+		 *            the latitude and longitude of the label or null.
+		 * @param dataBlocks
+		 *            the coordinate blocks of each data block, as latitude and longitude pairs.
+		 */
+		Block way(int zoomLevel, int layer, int tileBitmask, int[] tagIds, String name, String ref, int[] labelPosition,
+				boolean doubleDeltaEncoding, int[][]... dataBlocks) throws IOException {
+			++this.wayCounts[zoomLevel];
+			ByteArrayOutputStream wayData = new ByteArrayOutputStream();
+			wayData.write(tileBitmask >>> 8);
+			wayData.write(tileBitmask);
+			wayData.write((layer << 4) | tagIds.length);
+			for (int tagId : tagIds) {
+				writeUnsignedInt(wayData, tagId);
+			}
+			wayData.write((name != null ? 0x80 : 0) | (ref != null ? 0x20 : 0) | (labelPosition != null ? 0x10 : 0)
+					| (dataBlocks.length > 1 ? 0x08 : 0) | (doubleDeltaEncoding ? 0x04 : 0));
+			if (name != null) {
+				writeString(wayData, name);
+			}
+			if (ref != null) {
+				writeString(wayData, ref);
+			}
+			if (labelPosition != null) {
+				writeSignedInt(wayData, labelPosition[0] - this.tileLatitude);
+				writeSignedInt(wayData, labelPosition[1] - this.tileLongitude);
+			}
+			if (dataBlocks.length > 1) {
+				writeUnsignedInt(wayData, dataBlocks.length);
+			}
+			for (int[][] dataBlock : dataBlocks) {
+				writeUnsignedInt(wayData, dataBlock.length);
+				for (int[] wayNodes : dataBlock) {
+					writeWayNodes(wayData, wayNodes, doubleDeltaEncoding);
+				}
+			}
+			writeUnsignedInt(this.ways, wayData.size());
+			wayData.writeTo(this.ways);
+			return this;
+		}
+
+		byte[] toByteArray() throws IOException {
+			if (this.pois.size() == 0 && this.ways.size() == 0) {
+				return new byte[0];
+			}
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			for (int zoomLevel = ZOOM_LEVEL_MIN; zoomLevel <= ZOOM_LEVEL_MAX; ++zoomLevel) {
+				writeUnsignedInt(outputStream, this.poiCounts[zoomLevel]);
+				writeUnsignedInt(outputStream, this.wayCounts[zoomLevel]);
+			}
+			writeUnsignedInt(outputStream, this.pois.size());
+			this.pois.writeTo(outputStream);
+			this.ways.writeTo(outputStream);
+			return outputStream.toByteArray();
+		}
+
+		private void writeWayNodes(OutputStream outputStream, int[] wayNodes, boolean doubleDeltaEncoding)
+				throws IOException {
+			writeUnsignedInt(outputStream, wayNodes.length / 2);
+			writeSignedInt(outputStream, wayNodes[0] - this.tileLatitude);
+			writeSignedInt(outputStream, wayNodes[1] - this.tileLongitude);
+			int previousDeltaLatitude = 0;
+			int previousDeltaLongitude = 0;
+			for (int i = 2; i < wayNodes.length; i += 2) {
+				int deltaLatitude = wayNodes[i] - wayNodes[i - 2];
+				int deltaLongitude = wayNodes[i + 1] - wayNodes[i - 1];
+				if (doubleDeltaEncoding) {
+					writeSignedInt(outputStream, deltaLatitude - previousDeltaLatitude);
+					writeSignedInt(outputStream, deltaLongitude - previousDeltaLongitude);
+				} else {
+					writeSignedInt(outputStream, deltaLatitude);
+					writeSignedInt(outputStream, deltaLongitude);
+				}
+				previousDeltaLatitude = deltaLatitude;
+				previousDeltaLongitude = deltaLongitude;
+			}
+		}
+	}
+
+	/**
+	 * @return the latitude in microdegrees of the top of a tile at the base zoom level.
+	 */
+	static int tileLatitude(long tileY) {
+		return (int) (MercatorProjection.tileYToLatitude(tileY, BASE_ZOOM_LEVEL) * 1000000);
+	}
+
+	/**
+	 * @return the longitude in microdegrees of the left side of a tile at the base zoom level.
+	 */
+	static int tileLongitude(long tileX) {
+		return (int) (MercatorProjection.tileXToLongitude(tileX, BASE_ZOOM_LEVEL) * 1000000);
+	}
+
+	private static void writeSignedInt(OutputStream outputStream, int value) throws IOException {
+		int remaining = Math.abs(value);
+		while (remaining > 0x3f) {
+			outputStream.write((remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		outputStream.write(value < 0 ? remaining | 0x40 : remaining);
+	}
+
+	private static void writeString(OutputStream outputStream, String string) throws IOException {
+		byte[] bytes = string.getBytes(UTF8);
+		writeUnsignedInt(outputStream, bytes.length);
+		outputStream.write(bytes);
+	}
+
+	private static void writeUnsignedInt(OutputStream outputStream, int value) throws IOException {
+		int remaining = value;
+		while (remaining > 0x7f) {
+			outputStream.write((remaining & 0x7f) | 0x80);
+			remaining >>>= 7;
+		}
+		outputStream.write(remaining);
+	}
+
+	/**
+	 * The blocks from top to bottom and from left to right.
+	 */
+	private final Block[] blocks;
+	private final int blocksWidth;
+	final long tileLeft;
+	final long tileTop;
+
+	/**
+	 * @param tileLeft
+	 *            the X number of the left tile at the base zoom level.
+	 * @param tileTop
+	 *            the Y number of the top tile at the base zoom level.
+	 */
+	TestMapFile(long tileLeft, long tileTop, int blocksWidth, int blocksHeight) {
+		this.tileLeft = tileLeft;
+		this.tileTop = tileTop;
+		this.blocksWidth = blocksWidth;
+		this.blocks = new Block[blocksWidth * blocksHeight];
+		for (int i = 0; i < this.blocks.length; ++i) {
+			this.blocks[i] = new Block(tileLeft + i % blocksWidth, tileTop + i / blocksWidth);
+		}
+	}
+
+	Block block(int column, int row) {
+		return this.blocks[row * this.blocksWidth + column];
+	}
+
+	void write(File file) throws IOException {
+		byte[][] blockData = new byte[this.blocks.length][];
+		for (int i = 0; i < this.blocks.length; ++i) {
+			blockData[i] = this.blocks[i].toByteArray();
+		}
+		ByteArrayOutputStream subFile = new ByteArrayOutputStream();
+		// the index entries, 5 bytes with the water flag and the block pointer relative to the sub-file
+		long blockPointer = 5L * this.blocks.length;
+		for (int i = 0; i < this.blocks.length; ++i) {
+			long indexEntry = blockPointer | (this.blocks[i].isWater ? BITMASK_INDEX_WATER : 0);
+			for (int shift = 32; shift >= 0; shift -= 8) {
+				subFile.write((int) (indexEntry >>> shift));
+			}
+			blockPointer += blockData[i].length;
+		}
+		for (byte[] data : blockData) {
+			subFile.write(data);
+		}
+
+		int blocksHeight = this.blocks.length / this.blocksWidth;
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(byteArrayOutputStream);
+		header.writeInt(3);
+		// the file size, set below
+		header.writeLong(0);
+		header.writeLong(1335830400000L);
+		// the bounding box, slightly inside of the tiles of the blocks
+		header.writeInt(tileLatitude(this.tileTop + blocksHeight) + 10);
+		header.writeInt(tileLongitude(this.tileLeft) + 10);
+		header.writeInt(tileLatitude(this.tileTop) - 10);
+		header.writeInt(tileLongitude(this.tileLeft + this.blocksWidth) - 10);
+		header.writeShort(256);
+		writeString(header, "Mercator");
+		// no optional fields
+		header.writeByte(0);
+		header.writeShort(POI_TAGS.length);
+		for (String tag : POI_TAGS) {
+			writeString(header, tag);
+		}
+		header.writeShort(WAY_TAGS.length);
+		for (String tag : WAY_TAGS) {
+			writeString(header, tag);
+		}
+		header.writeByte(1);
+		header.writeByte(BASE_ZOOM_LEVEL);
+		header.writeByte(ZOOM_LEVEL_MIN);
+		header.writeByte(ZOOM_LEVEL_MAX);
+		// the start address, set below
+		header.writeLong(0);
+		header.writeLong(subFile.size());
+		header.close();
+
+		byte[] remainingHeader = byteArrayOutputStream.toByteArray();
+		byte[] magicByte = "mapsforge binary OSM".getBytes(UTF8);
+		long startAddress = magicByte.length + 4 + remainingHeader.length;
+		ByteBuffer.wrap(remainingHeader).putLong(4, startAddress + subFile.size());
+		ByteBuffer.wrap(remainingHeader).putLong(remainingHeader.length - 16, startAddress);
+
+		DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(file));
+		try {
+			outputStream.write(magicByte);
+			outputStream.writeInt(remainingHeader.length);
+			outputStream.write(remainingHeader);
+			subFile.writeTo(outputStream);
+		} finally {
+			outputStream.close();
+		}
+	}
+}
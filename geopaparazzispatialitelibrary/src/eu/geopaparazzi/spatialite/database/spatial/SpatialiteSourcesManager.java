@@ -45,6 +45,7 @@ import eu.geopaparazzi.library.util.types.ESpatialDataSources;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.VectorLayerQueryModes;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTable;
 import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTable;
+import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteCatalog;
 import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteLibraryConstants;
 import jsqlite.Exception;
 
@@ -80,6 +81,7 @@ public enum SpatialiteSourcesManager {
                 editor.putBoolean(SpatialiteLibraryConstants.PREFS_KEY_SPATIALITE_RECOVERY_MODE, false);
                 editor.apply();
             }
+            SpatialiteCatalog.INSTANCE.removeMissingEntries();
         } catch (java.lang.Exception e) {
             GPLog.error(this, null, e);
         }
@@ -113,6 +115,8 @@ public enum SpatialiteSourcesManager {
 
     /**
      * Reads the maps from preferences and extracts the tables necessary.
+     * <p/>
+     * <p>The tables of cataloged databases are read from the catalog, without connecting to the databases.</p>
      *
      * @throws java.lang.Exception
      */
@@ -326,7 +330,10 @@ public enum SpatialiteSourcesManager {
     }
 
     /**
-     * Create a vector handler for the given file by connecting to the database.
+     * Create a vector handler for the given file.
+     * <p/>
+     * <p>If the tables of the database are cataloged, they are taken from the
+     * {@link SpatialiteCatalog} and the database is connected to when it is first drawn.</p>
      *
      * @param file the file.
      * @return the handler or null if the file is not supported.
@@ -340,7 +347,7 @@ public enum SpatialiteSourcesManager {
                 }
                 String extension = spatialiteType.getExtension();
                 if (name.endsWith(extension)) {
-                    SpatialiteDatabaseHandler sdb = new SpatialiteDatabaseHandler(file.getAbsolutePath());
+                    SpatialiteDatabaseHandler sdb = new SpatialiteDatabaseHandler(file.getAbsolutePath(), true);
                     if (sdb.isValid()) {
                         return sdb;
                     }
@@ -216,6 +216,10 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
 
         String updateQuery = sbIn.toString();
         database.exec(updateQuery, null);
+
+        SpatialVectorTable table = SpatialiteSourcesManager.INSTANCE.getTableFromFeature(firstFeature);
+        if (table != null)
+            table.notifyModified();
     }
 
     /**
@@ -304,6 +308,7 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         String insertQuery = sbIn.toString();
 
         database.exec(insertQuery, null);
+        spatialVectorTable.notifyModified();
     }
 
     protected static void createImageField(SpatialVectorTable table) {
@@ -389,6 +394,11 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         String updateQuery = sbIn.toString();
         database.exec(updateQuery, null);
 
+        // labels may have changed
+        SpatialVectorTable table = SpatialiteSourcesManager.INSTANCE.getTableFromFeature(feature);
+        if (table != null)
+            table.notifyModified();
+
         //SpatialVectorTable table = SpatialiteSourcesManager.INSTANCE.getTableFromFeature(feature);
         //createImageField(table);
     }
@@ -455,6 +465,7 @@ public class DaoSpatialite implements ISpatialiteTableAndFieldsNames {
         sbIn.append(id);
         String insertQuery = sbIn.toString();
         database.exec(insertQuery, null);
+        spatialVectorTable.notifyModified();
     }
 
     /**
@@ -23,6 +23,7 @@ import android.os.AsyncTask;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -36,6 +37,7 @@ import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialVectorTabl
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBTilesDroidSpitter;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MBtilesAsync;
 import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.MbTilesMetadata;
+import eu.geopaparazzi.spatialite.database.spatial.core.mbtiles.TileRecord;
 import eu.geopaparazzi.library.util.types.ESpatialDataSources;
 import jsqlite.Exception;
 
@@ -264,6 +266,37 @@ public class MbtilesDatabaseHandler extends AbstractSpatialDatabaseHandler {
         }
     }
 
+    /**
+     * Create a tile record from a Tile Bitmap, to be inserted with {@link #insertTiles(Collection, int)}.
+     *
+     * @param i_x         the value for tile_column field.
+     * @param i_y_osm     the value for tile_row field in osm notation.
+     * @param i_z         the value for zoom_level field.
+     * @param tile_bitmap the Bitmap to extract image-data extracted from.
+     * @return the tile record.
+     */
+    public TileRecord createTileRecord(int i_x, int i_y_osm, int i_z, Bitmap tile_bitmap) {
+        return mbtilesSplitter.createTileRecord(i_x, i_y_osm, i_z, tile_bitmap);
+    }
+
+    /**
+     * Function to insert a collection of tiles to the mbtiles Database in one transaction.
+     * <p/>
+     * <p>Bounds and min/max zoom levels of the metadata are updated once at the end.</p>
+     *
+     * @param tileRecords the tiles to insert.
+     * @param forceUnique if 1, it check if image is unique in Database.
+     * @return 0: correct, otherwise error
+     */
+    public int insertTiles(Collection<TileRecord> tileRecords, int forceUnique) {
+        try {
+            return mbtilesSplitter.insertTiles(tileRecords, forceUnique);
+        } catch (IOException e) {
+            GPLog.error(this, null, e);
+            return 1;
+        }
+    }
+
     public void open() {
         if (mbtilesSplitter.getmbtiles() == null) {
             mbtilesSplitter.open(true, ""); // "" : default value will be used '1.1'
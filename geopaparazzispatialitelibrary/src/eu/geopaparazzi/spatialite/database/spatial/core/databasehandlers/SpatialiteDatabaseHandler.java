@@ -22,10 +22,15 @@ import android.graphics.Paint;
 import android.graphics.Paint.Cap;
 import android.graphics.Paint.Join;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -44,6 +49,7 @@ import eu.geopaparazzi.spatialite.database.spatial.core.daos.DatabaseCreationAnd
 import eu.geopaparazzi.spatialite.database.spatial.core.daos.GeopaparazziDatabaseProperties;
 import eu.geopaparazzi.spatialite.database.spatial.util.comparators.OrderComparator;
 import eu.geopaparazzi.spatialite.database.spatial.core.enums.SpatialiteDatabaseType;
+import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteCatalog;
 import eu.geopaparazzi.spatialite.database.spatial.util.SpatialiteUtilities;
 import eu.geopaparazzi.library.style.Style;
 import jsqlite.Database;
@@ -51,6 +57,24 @@ import jsqlite.Exception;
 import jsqlite.Stmt;
 
 import static eu.geopaparazzi.spatialite.database.spatial.core.daos.DaoSpatialite.PROPERTIESTABLE;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.DASH;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.DECIMATION;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.ENABLED;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.FILLALPHA;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.FILLCOLOR;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.ID;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.LABELFIELD;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.LABELSIZE;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.LABELVISIBLE;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.MAXZOOM;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.MINZOOM;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.NAME;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.ORDER;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.SHAPE;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.SIZE;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.STROKEALPHA;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.STROKECOLOR;
+import static eu.geopaparazzi.spatialite.database.spatial.core.daos.ISpatialiteTableAndFieldsNames.WIDTH;
 import static eu.geopaparazzi.spatialite.database.spatial.core.daos.GeopaparazziDatabaseProperties.createDefaultPropertiesForTable;
 import static eu.geopaparazzi.spatialite.database.spatial.core.daos.GeopaparazziDatabaseProperties.createPropertiesTable;
 import static eu.geopaparazzi.spatialite.database.spatial.core.daos.GeopaparazziDatabaseProperties.deleteStyleTable;
@@ -84,7 +108,23 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
     // List of all SpatialView of Database [view_name,view_data] - that have errors
     private HashMap<String, String> spatialVectorMapErrors = new HashMap<String, String>();
 
+    private static final String GEOMETRY_COLUMN = "geometryColumn";
+    private static final String GEOMETRY_TYPE = "geometryType";
+    private static final String LAYER_TYPE = "layerType";
+    private static final String FIELDS = "fields";
+    private static final String ROWID_PK = "rowidPk";
+    private static final String VIEW_READ_ONLY = "viewReadOnly";
+    private static final String STYLE = "style";
+
     private volatile boolean isOpen = false;
+    // true once closed, a closed handler does not connect on use
+    private volatile boolean isClosed = false;
+
+    // true if the views list was taken from the catalog
+    private boolean isCataloged = false;
+
+    // the catalog entries of the collected vector tables, without style
+    private Map<SpatialVectorTable, JSONObject> vectorTablesJson = new IdentityHashMap<>();
 
     /**
      * Constructor.
@@ -93,8 +133,23 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      * @throws IOException if something goes wrong.
      */
     public SpatialiteDatabaseHandler(String dbPath) throws IOException {
+        this(dbPath, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dbPath           the path to the database this handler connects to.
+     * @param connectOnFirstUse if <code>true</code> and the tables of the database are cataloged,
+     *                          they are taken from the {@link SpatialiteCatalog} and the database
+     *                          is only connected to when it is first queried.
+     * @throws IOException if something goes wrong.
+     */
+    public SpatialiteDatabaseHandler(String dbPath, boolean connectOnFirstUse) throws IOException {
         super(dbPath);
-        open();
+        if (!connectOnFirstUse || !openFromCatalog()) {
+            open();
+        }
     }
 
     @Override
@@ -102,9 +157,18 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
         return isOpen;
     }
 
+    /**
+     * @return <code>true</code> if the handler has been closed. A handler created from the catalog
+     * is not open before its first use, but is not closed either.
+     */
+    public boolean isClosed() {
+        return isClosed;
+    }
+
     @Override
     public void open() {
         try {
+            isClosed = false;
             uniqueDbName4DataProperties = databasePath;
             dbJava = new jsqlite.Database();
             try {
@@ -118,9 +182,13 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                 GPLog.androidLog(4, "SpatialiteDatabaseHandler[" + databaseFile.getAbsolutePath() + "].open has failed", e);
             }
             if (isValid()) {
-                // check database and collect the views list
+                // check database and collect the views list, unless the catalog knows it
                 try {
-                    databaseType = DatabaseCreationAndProperties.checkDatabaseTypeAndValidity(dbJava, spatialVectorMap, spatialVectorMapErrors);
+                    databaseType = SpatialiteCatalog.INSTANCE.getEntry(databaseFile, spatialVectorMap, spatialVectorMapErrors);
+                    isCataloged = databaseType != null;
+                    if (!isCataloged) {
+                        databaseType = DatabaseCreationAndProperties.checkDatabaseTypeAndValidity(dbJava, spatialVectorMap, spatialVectorMapErrors);
+                    }
                 } catch (Exception e) {
                     GPLog.error(this, null, e);
                     isDatabaseValid = false;
@@ -148,11 +216,91 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
             } else { // avoid call for invalid databases [SpatialiteDatabaseType.UNKNOWN]
                 checkAndUpdatePropertiesUniqueNames();
             }
+            if (databaseType != null && !isCataloged) {
+                // after the last change to the file, which is part of the catalog key
+                SpatialiteCatalog.INSTANCE.putEntry(databaseFile, databaseType, spatialVectorMap, spatialVectorMapErrors,
+                        null, null);
+            }
         } catch (Exception e) {
             GPLog.error(this, "SpatialiteDatabaseHandler[" + databaseFile.getAbsolutePath() + "]", e);
         }
     }
 
+    /**
+     * Set up the handler from the cataloged tables, without connecting to the database.
+     *
+     * @return <code>false</code> if the tables are not cataloged and the database needs to be opened.
+     */
+    private boolean openFromCatalog() {
+        SpatialiteCatalog catalog = SpatialiteCatalog.INSTANCE;
+        databaseType = catalog.getEntry(databaseFile, spatialVectorMap, spatialVectorMapErrors);
+        JSONArray vectorTables = catalog.getTables(databaseFile, SpatialiteCatalog.VECTOR_TABLES);
+        JSONArray rasterTables = catalog.getTables(databaseFile, SpatialiteCatalog.RASTER_TABLES);
+        if (databaseType == null || vectorTables == null || rasterTables == null) {
+            return false;
+        }
+        switch (databaseType) {
+            case GEOPACKAGE:
+            case SPATIALITE3:
+            case SPATIALITE4:
+                break;
+            default:
+                return false;
+        }
+        try {
+            vectorTableList = new ArrayList<SpatialVectorTable>();
+            for (int i = 0; i < vectorTables.length(); i++) {
+                JSONObject tableJson = vectorTables.getJSONObject(i);
+                SpatialVectorTable table = vectorTableFromJson(tableJson);
+                vectorTableList.add(table);
+                vectorTablesJson.put(table, tableJson);
+                checkAndAdaptDatabaseBounds(new double[]{table.getMinLongitude(), table.getMinLatitude(),
+                        table.getMaxLongitude(), table.getMaxLatitude()}, null);
+            }
+            rasterTableList = new ArrayList<SpatialRasterTable>();
+            for (int i = 0; i < rasterTables.length(); i++) {
+                SpatialRasterTable table = SpatialiteCatalog.rasterTableFromJson(databasePath, rasterTables.getJSONObject(i));
+                rasterTableList.add(table);
+                checkAndAdaptDatabaseBounds(new double[]{table.getMinLongitude(), table.getMinLatitude(),
+                        table.getMaxLongitude(), table.getMaxLatitude()}, null);
+            }
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "Ignoring catalog tables of: " + databasePath, e);
+            vectorTableList = null;
+            rasterTableList = null;
+            vectorTablesJson.clear();
+            return false;
+        }
+        uniqueDbName4DataProperties = databasePath;
+        dbJava = new jsqlite.Database();
+        isCataloged = true;
+        isDatabaseValid = true;
+        return true;
+    }
+
+    /**
+     * Get the connection to the database, connecting on first use if the handler was set up from the catalog.
+     *
+     * @return the database.
+     */
+    private Database connect() {
+        if (!isOpen && !isClosed) {
+            synchronized (this) {
+                if (!isOpen && !isClosed) {
+                    try {
+                        dbJava.open(databasePath, jsqlite.Constants.SQLITE_OPEN_READWRITE | jsqlite.Constants.SQLITE_OPEN_CREATE);
+                        isOpen = true;
+                    } catch (Exception e) {
+                        GPLog.error(this, "Database marked as invalid: " + databasePath, e);
+                        isDatabaseValid = false;
+                        isClosed = true;
+                    }
+                }
+            }
+        }
+        return dbJava;
+    }
+
     /**
      * Is the database file considered valid?
      * <p/>
@@ -321,7 +469,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
         List<byte[]> list = new ArrayList<byte[]>();
         String query = SpatialiteUtilities.buildGeometriesInBoundsQuery(destSrid, false, table, n, s, e, w);
         try {
-            Stmt stmt = dbJava.prepare(query);
+            Stmt stmt = connect().prepare(query);
             try {
                 while (stmt.step()) {
                     list.add(stmt.column_bytes(0));
@@ -339,7 +487,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
     @Override
     public byte[] getRasterTile(String query) {
         try {
-            Stmt stmt = dbJava.prepare(query);
+            Stmt stmt = connect().prepare(query);
             try {
                 if (stmt.step()) {
                     return stmt.column_bytes(0);
@@ -368,10 +516,29 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                                                         double w) {
         String query = SpatialiteUtilities.buildGeometriesInBoundsQuery(destSrid, false, table, n, s, e, w);
         // GPLog.androidLog(-1,"GeopaparazziOverlay.getGeometryIteratorInBounds query["+query+"]");
-        return new GeometryIterator(dbJava, query);
+        return new GeometryIterator(connect(), query);
+    }
+
+    /**
+     * Get the {@link GeometryIterator} of a table in a given bound.
+     *
+     * @param destSrid  the srid to which to transform to.
+     * @param table     the table to use.
+     * @param n         north bound.
+     * @param s         south bound.
+     * @param e         east bound.
+     * @param w         west bound.
+     * @param withRowId if <code>true</code>, the row id of each geometry is available through {@link GeometryIterator#getRowId()}.
+     * @return the geometries iterator.
+     */
+    public GeometryIterator getGeometryIteratorInBounds(String destSrid, SpatialVectorTable table, double n, double s, double e,
+                                                        double w, boolean withRowId) {
+        String query = SpatialiteUtilities.buildGeometriesInBoundsQuery(destSrid, withRowId, table, n, s, e, w);
+        return new GeometryIterator(connect(), query, withRowId);
     }
 
     public void close() throws Exception {
+        isClosed = true;
         if (isOpen) {
             isOpen = false;
             if (dbJava != null) {
@@ -396,7 +563,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
     public void intersectionToStringBBOX(String boundsSrid, SpatialVectorTable spatialTable, double n, double s, double e,
                                          double w, StringBuilder resultStringBuilder, String indentStr) throws Exception {
         String query = getIntersectionQueryBBOX(boundsSrid, spatialTable, n, s, e, w);
-        Stmt stmt = dbJava.prepare(query);
+        Stmt stmt = connect().prepare(query);
         try {
             while (stmt.step()) {
                 int column_count = stmt.column_count();
@@ -644,6 +811,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                                     // this table
                                     fields_list = DaoSpatialite.collectTableFields(dbJava, table_name);
                                     table.setFieldsList(fields_list, "ROWID", i_view_read_only);
+                                    vectorTablesJson.put(table, vectorTableToJson(table, fields_list, "ROWID", i_view_read_only));
                                     if (vectorTableList == null)
                                         vectorTableList = new ArrayList<SpatialVectorTable>();
                                     vectorTableList.add(table);
@@ -756,6 +924,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                                 // this table
                                 fields_list = DaoSpatialite.collectTableFields(dbJava, table_name);
                                 table.setFieldsList(fields_list, s_ROWID_PK, i_view_read_only);
+                                vectorTablesJson.put(table, vectorTableToJson(table, fields_list, s_ROWID_PK, i_view_read_only));
                                 if (vectorTableList == null)
                                     vectorTableList = new ArrayList<SpatialVectorTable>();
                                 vectorTableList.add(table);
@@ -817,6 +986,8 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      * </ul>
      */
     private void checkAndCollectTables() throws Exception {
+        connect();
+        vectorTablesJson.clear();
         switch (databaseType) {
             case GEOPACKAGE: {
                 // GeoPackage Files [gpkg]
@@ -855,9 +1026,110 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
                 OrderComparator orderComparator = new OrderComparator();
                 Collections.sort(vectorTableList, orderComparator);
             }
+            // after the last change to the file, which is part of the catalog key
+            catalogTables();
         }
     }
 
+    /**
+     * Store the tables with their styles in the catalog, along with the database check.
+     */
+    private void catalogTables() {
+        try {
+            JSONArray vectorTables = new JSONArray();
+            if (vectorTableList != null) {
+                for (SpatialVectorTable spatialTable : vectorTableList) {
+                    JSONObject tableJson = vectorTablesJson.get(spatialTable);
+                    if (tableJson == null) {
+                        return;
+                    }
+                    tableJson.put(STYLE, styleToJson(spatialTable.getStyle()));
+                    vectorTables.put(tableJson);
+                }
+            }
+            JSONArray rasterTables = new JSONArray();
+            if (rasterTableList != null) {
+                for (SpatialRasterTable rasterTable : rasterTableList) {
+                    rasterTables.put(SpatialiteCatalog.tableToJson(rasterTable, rasterTable.getTileQuery()));
+                }
+            }
+            SpatialiteCatalog.INSTANCE.putEntry(databaseFile, databaseType, spatialVectorMap, spatialVectorMapErrors,
+                    vectorTables, rasterTables);
+        } catch (JSONException e) {
+            GPLog.error(this, null, e);
+        }
+    }
+
+    private static JSONObject vectorTableToJson(SpatialVectorTable table, HashMap<String, String> fieldName2TypeMap,
+                                                String rowidPk, int viewReadOnly) throws JSONException {
+        JSONObject json = SpatialiteCatalog.tableToJson(table, null);
+        json.put(GEOMETRY_COLUMN, table.getGeomName());
+        json.put(GEOMETRY_TYPE, table.getGeomType());
+        json.put(LAYER_TYPE, table.getTableTypeDescription());
+        json.put(FIELDS, new JSONObject(fieldName2TypeMap));
+        json.put(ROWID_PK, rowidPk);
+        json.put(VIEW_READ_ONLY, viewReadOnly);
+        return json;
+    }
+
+    private SpatialVectorTable vectorTableFromJson(JSONObject json) throws JSONException {
+        double[] center = {json.getDouble(SpatialiteCatalog.CENTER_X), json.getDouble(SpatialiteCatalog.CENTER_Y)};
+        SpatialVectorTable table = new SpatialVectorTable(databasePath, json.getString(SpatialiteCatalog.TABLE_NAME),
+                json.getString(GEOMETRY_COLUMN), json.getInt(GEOMETRY_TYPE), json.getString(SpatialiteCatalog.SRID), center,
+                SpatialiteCatalog.boundsFromJson(json), json.getString(LAYER_TYPE));
+        HashMap<String, String> fieldName2TypeMap = new HashMap<String, String>();
+        SpatialiteCatalog.fromJson(json.getJSONObject(FIELDS), fieldName2TypeMap);
+        table.setFieldsList(fieldName2TypeMap, json.getString(ROWID_PK), json.getInt(VIEW_READ_ONLY));
+        table.setStyle(styleFromJson(json.getJSONObject(STYLE)));
+        return table;
+    }
+
+    private static JSONObject styleToJson(Style style) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(ID, style.id);
+        json.put(NAME, style.name);
+        json.put(SIZE, style.size);
+        json.put(FILLCOLOR, style.fillcolor);
+        json.put(STROKECOLOR, style.strokecolor);
+        json.put(FILLALPHA, style.fillalpha);
+        json.put(STROKEALPHA, style.strokealpha);
+        json.put(SHAPE, style.shape);
+        json.put(WIDTH, style.width);
+        json.put(LABELSIZE, style.labelsize);
+        json.put(LABELFIELD, style.labelfield);
+        json.put(LABELVISIBLE, style.labelvisible);
+        json.put(ENABLED, style.enabled);
+        json.put(ORDER, style.order);
+        json.put(DASH, style.dashPattern);
+        json.put(MINZOOM, style.minZoom);
+        json.put(MAXZOOM, style.maxZoom);
+        json.put(DECIMATION, style.decimationFactor);
+        return json;
+    }
+
+    private static Style styleFromJson(JSONObject json) throws JSONException {
+        Style style = new Style();
+        style.id = json.getLong(ID);
+        style.name = json.optString(NAME, null);
+        style.size = (float) json.getDouble(SIZE);
+        style.fillcolor = json.optString(FILLCOLOR, null);
+        style.strokecolor = json.optString(STROKECOLOR, null);
+        style.fillalpha = (float) json.getDouble(FILLALPHA);
+        style.strokealpha = (float) json.getDouble(STROKEALPHA);
+        style.shape = json.optString(SHAPE, null);
+        style.width = (float) json.getDouble(WIDTH);
+        style.labelsize = (float) json.getDouble(LABELSIZE);
+        style.labelfield = json.optString(LABELFIELD, null);
+        style.labelvisible = json.getInt(LABELVISIBLE);
+        style.enabled = json.getInt(ENABLED);
+        style.order = json.getInt(ORDER);
+        style.dashPattern = json.optString(DASH, null);
+        style.minZoom = json.getInt(MINZOOM);
+        style.maxZoom = json.getInt(MAXZOOM);
+        style.decimationFactor = (float) json.getDouble(DECIMATION);
+        return style;
+    }
+
     /**
      * Update a style definiton in the db.
      *
@@ -865,7 +1137,9 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      * @throws Exception if something goes wrong.
      */
     public void updateStyle(Style style) throws Exception {
-        GeopaparazziDatabaseProperties.updateStyle(dbJava, style);
+        GeopaparazziDatabaseProperties.updateStyle(connect(), style);
+        // keep the cataloged styles in line with the database
+        catalogTables();
     }
 
     /**
@@ -874,7 +1148,8 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      * @throws Exception if something goes wrong.
      */
     public void resetStyleTable() throws Exception {
-        deleteStyleTable(dbJava);
+        SpatialiteCatalog.INSTANCE.removeEntry(databaseFile);
+        deleteStyleTable(connect());
         createPropertiesTable(dbJava);
         for (SpatialVectorTable spatialTable : vectorTableList) {
             createDefaultPropertiesForTable(dbJava, spatialTable.getUniqueNameBasedOnDbFilePath(),
@@ -888,7 +1163,7 @@ public class SpatialiteDatabaseHandler extends AbstractSpatialDatabaseHandler {
      * @return the spatialite database reference.
      */
     public Database getDatabase() {
-        return dbJava;
+        return connect();
     }
 
 }
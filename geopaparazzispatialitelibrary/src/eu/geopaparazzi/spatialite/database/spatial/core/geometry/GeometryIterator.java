@@ -38,6 +38,9 @@ public class GeometryIterator implements Iterator<Geometry> {
     private WKBReader wkbReader = new WKBReader();
     private Stmt stmt;
     private String labelText = "";
+    // column of the geometry, 1 if the first column is the row id
+    private int geometryColumn = 0;
+    private long rowId = -1;
     /**
      * Returns Label String (if any)
      *
@@ -50,23 +53,32 @@ public class GeometryIterator implements Iterator<Geometry> {
     public String getLabelText() {
         return labelText;
     }
+
+    /**
+     * Returns the row id of the current geometry.
+     *
+     * @return the row id or -1 if the iterator was not created with row ids.
+     */
+    public long getRowId() {
+        return rowId;
+    }
     /**
      * Builds Label String (if any)
      *
      *  <p>
-     * - assumes that column 0 is ALWAYS a Geometry<br>
-     * - if any label is being supported, will build s_label from column 1 to end<br>
+     * - assumes that column 0 is ALWAYS a Geometry, column 1 if the row id was requested<br>
+     * - if any label is being supported, will build s_label from the column after the geometry to end<br>
      * -- each column (after 1) will have a ', ' inserted<br>
      * -- s_label will be set to blank before filling<br>
      * @param stmt statement being executed
      */
     private void setLabelText( Stmt stmt ) {
         labelText = "";
-        int i = 1;
+        int i = geometryColumn + 1;
         int columnCount = 0;
         try {
-            if ((stmt != null) && (columnCount = stmt.column_count()) > 1) {
-                for( i = 1; i < columnCount; i++ ) {
+            if ((stmt != null) && (columnCount = stmt.column_count()) > geometryColumn + 1) {
+                for( i = geometryColumn + 1; i < columnCount; i++ ) {
                     if (!labelText.equals("")) {
                         labelText += ", ";
                     }
@@ -93,6 +105,12 @@ public class GeometryIterator implements Iterator<Geometry> {
             GPLog.error(this, "GeometryIterator.setLabelText column_count[" + columnCount + "] column[" + i + "]", e);
         }
     }
+    /**
+     * Constructor for iterators over other sources, which override the iteration methods.
+     */
+    protected GeometryIterator() {
+    }
+
     /**
      * Constructor.
      *
@@ -100,6 +118,20 @@ public class GeometryIterator implements Iterator<Geometry> {
      * @param query the query to use.
      */
     public GeometryIterator( Database database, String query ) {
+        this(database, query, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param database the database to use.
+     * @param query the query to use.
+     * @param withRowId if <code>true</code>, the first column of the query is the row id, followed by the geometry.
+     */
+    public GeometryIterator( Database database, String query, boolean withRowId ) {
+        if (withRowId) {
+            geometryColumn = 1;
+        }
         try {
             stmt = database.prepare(query);
         } catch (Exception e) {
@@ -122,17 +154,41 @@ public class GeometryIterator implements Iterator<Geometry> {
 
     @Override
     public Geometry next() {
+        byte[] geomBytes = nextWkb();
+        if (geomBytes == null) {
+            return null;
+        }
+        try {
+            return wkbReader.read(geomBytes);
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, "GeometryIterator.next()[wkbReader.read() failed]", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the current geometry as WKB, without building the JTS geometry.
+     *
+     * <p>
+     * - to be used with a {@link WkbPathDecoder}<br>
+     * - the row id and label of the geometry are available as with {@link #next()}<br>
+     *
+     * @return the WKB bytes or <code>null</code>.
+     */
+    public byte[] nextWkb() {
         if (stmt == null) {
             GPLog.androidLog(4, "GeometryIterator.next() [stmt=null]");
             return null;
         }
         try {
-            byte[] geomBytes = stmt.column_bytes(0);
-            Geometry geometry = wkbReader.read(geomBytes);
+            if (geometryColumn > 0) {
+                rowId = stmt.column_long(0);
+            }
+            byte[] geomBytes = stmt.column_bytes(geometryColumn);
             setLabelText(stmt);
-            return geometry;
+            return geomBytes;
         } catch (java.lang.Exception e) {
-            GPLog.error(this, "GeometryIterator.next()[wkbReader.read() failed]", e);
+            GPLog.error(this, "GeometryIterator.nextWkb()[stmt.column_bytes() failed]", e);
         }
         return null;
     }
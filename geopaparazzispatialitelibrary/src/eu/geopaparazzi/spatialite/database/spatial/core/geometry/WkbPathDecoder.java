@@ -0,0 +1,605 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.geopaparazzi.spatialite.database.spatial.core.geometry;
+
+import android.graphics.Path;
+
+import java.util.Arrays;
+
+/**
+ * Decodes WKB geometries in lat/long straight into screen {@link Path}s.
+ * <p/>
+ * <p>The coordinates are read from the WKB bytes and projected to the
+ * mercator pixels of a zoom level with primitive math, without building
+ * JTS geometries or any other per vertex object.</p>
+ * <p/>
+ * <ul>
+ * <li>polygons are added to the area path, lines to the line path, any
+ * {@link PathSink} can take the place of the paths</li>
+ * <li>points are collected in {@link #getPoints()}, to be drawn as markers</li>
+ * <li>decimation and duplicate removal work as in the JTS ShapeWriter: the
+ * decimation distance is in lat/long units, duplicates are compared in pixels</li>
+ * </ul>
+ * <p/>
+ * <p>The decoder is not thread safe, it is meant to be reused by one thread.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+@SuppressWarnings("nls")
+public class WkbPathDecoder {
+    /**
+     * Flag of decoded geometries containing points.
+     */
+    public static final int KIND_POINT = 1;
+    /**
+     * Flag of decoded geometries containing lines.
+     */
+    public static final int KIND_LINE = 2;
+    /**
+     * Flag of decoded geometries containing polygons.
+     */
+    public static final int KIND_AREA = 4;
+
+    private static final int TILE_SIZE = 256;
+    private static final double LATITUDE_MAX = 85.05112877980659;
+
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+    private static final int WKB_GEOMETRYCOLLECTION = 7;
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    /**
+     * Receives the contours of the decoded geometries.
+     */
+    public interface PathSink {
+        /**
+         * Remove the contours of the previous geometry.
+         */
+        void reset();
+
+        /**
+         * Start a new contour.
+         *
+         * @param x the x relative to the origin.
+         * @param y the y relative to the origin.
+         */
+        void moveTo(float x, float y);
+
+        /**
+         * Add a line to the current contour.
+         *
+         * @param x the x relative to the origin.
+         * @param y the y relative to the origin.
+         */
+        void lineTo(float x, float y);
+
+        /**
+         * Close the current contour.
+         */
+        void close();
+    }
+
+    /**
+     * Adds the contours to an android {@link Path}.
+     */
+    private static class AndroidPathSink implements PathSink {
+        private final boolean evenOdd;
+        Path path;
+
+        AndroidPathSink(boolean evenOdd) {
+            this.evenOdd = evenOdd;
+        }
+
+        @Override
+        public void reset() {
+            path.rewind();
+            if (evenOdd)
+                path.setFillType(Path.FillType.EVEN_ODD);
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            path.moveTo(x, y);
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            path.lineTo(x, y);
+        }
+
+        @Override
+        public void close() {
+            path.close();
+        }
+    }
+
+    private final AndroidPathSink areaPathSink = new AndroidPathSink(true);
+    private final AndroidPathSink linePathSink = new AndroidPathSink(false);
+
+    private double mapSize = TILE_SIZE;
+    private double decimation = 0;
+    private boolean removeDuplicatePoints = false;
+    private boolean originAtFirstVertex = false;
+    private double originX = 0;
+    private double originY = 0;
+
+    /*
+     * state of the current decoding
+     */
+    private byte[] wkb;
+    private int position;
+    private boolean littleEndian;
+    private int dimension;
+    private int kinds;
+    private boolean originSet;
+    private int vertexCount;
+
+    /*
+     * results
+     */
+    private double minLon;
+    private double minLat;
+    private double maxLon;
+    private double maxLat;
+    private float[] points = new float[16];
+    private int pointsCount;
+    private double areaSum;
+    private double areaCentroidX;
+    private double areaCentroidY;
+    private float firstX;
+    private float firstY;
+    private float projectedX;
+    private float projectedY;
+
+    /**
+     * Set the zoom level to project to.
+     *
+     * @param zoom the zoom level.
+     */
+    public void setZoom(byte zoom) {
+        mapSize = (double) ((long) TILE_SIZE << zoom);
+    }
+
+    /**
+     * Set the decimation distance.
+     *
+     * @param decimation the distance in lat/long units below which consecutive vertices are skipped,
+     *                   0 disables the decimation.
+     */
+    public void setDecimation(double decimation) {
+        this.decimation = decimation;
+    }
+
+    /**
+     * Set whether consecutive vertices falling on the same pixel position are skipped.
+     *
+     * @param removeDuplicatePoints <code>true</code> to skip the duplicates.
+     */
+    public void setRemoveDuplicatePoints(boolean removeDuplicatePoints) {
+        this.removeDuplicatePoints = removeDuplicatePoints;
+    }
+
+    /**
+     * Set the pixel position the decoded coordinates are relative to.
+     *
+     * @param originX the x in world pixels.
+     * @param originY the y in world pixels.
+     */
+    public void setOrigin(double originX, double originY) {
+        this.originX = originX;
+        this.originY = originY;
+        originAtFirstVertex = false;
+    }
+
+    /**
+     * Make the decoded coordinates relative to the pixel of the first vertex of each geometry.
+     * <p/>
+     * <p>Keeps the float precision of the paths at high zoom levels, the used origin
+     * is available through {@link #getOriginX()} and {@link #getOriginY()}.</p>
+     */
+    public void setOriginAtFirstVertex() {
+        originAtFirstVertex = true;
+    }
+
+    /**
+     * Decode a WKB geometry.
+     * <p/>
+     * <p>The paths are rewound before adding the decoded geometry.</p>
+     *
+     * @param wkb      the WKB bytes, as returned by <code>ST_AsBinary</code>.
+     * @param areaPath the path to add the polygons to.
+     * @param linePath the path to add the lines to.
+     * @return the {@link #KIND_POINT}, {@link #KIND_LINE} and {@link #KIND_AREA} flags of the decoded parts,
+     * 0 if the geometry is empty.
+     * @throws IllegalArgumentException if the WKB is not valid.
+     */
+    public int decode(byte[] wkb, Path areaPath, Path linePath) {
+        areaPathSink.path = areaPath;
+        linePathSink.path = linePath;
+        try {
+            return decode(wkb, areaPathSink, linePathSink);
+        } finally {
+            areaPathSink.path = null;
+            linePathSink.path = null;
+        }
+    }
+
+    /**
+     * Decode a WKB geometry into path sinks.
+     * <p/>
+     * <p>The sinks are reset before adding the decoded geometry.</p>
+     *
+     * @param wkb      the WKB bytes, as returned by <code>ST_AsBinary</code>.
+     * @param areaPath the sink of the polygons, filled with the even-odd rule.
+     * @param linePath the sink of the lines.
+     * @return the {@link #KIND_POINT}, {@link #KIND_LINE} and {@link #KIND_AREA} flags of the decoded parts,
+     * 0 if the geometry is empty.
+     * @throws IllegalArgumentException if the WKB is not valid.
+     */
+    public int decode(byte[] wkb, PathSink areaPath, PathSink linePath) {
+        this.wkb = wkb;
+        position = 0;
+        kinds = 0;
+        vertexCount = 0;
+        pointsCount = 0;
+        areaSum = 0;
+        areaCentroidX = 0;
+        areaCentroidY = 0;
+        originSet = !originAtFirstVertex;
+        minLon = Double.POSITIVE_INFINITY;
+        minLat = Double.POSITIVE_INFINITY;
+        maxLon = Double.NEGATIVE_INFINITY;
+        maxLat = Double.NEGATIVE_INFINITY;
+        areaPath.reset();
+        linePath.reset();
+        try {
+            readGeometry(areaPath, linePath);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated WKB geometry of " + wkb.length + " bytes.", e);
+        } finally {
+            this.wkb = null;
+        }
+        return kinds;
+    }
+
+    private void readGeometry(PathSink areaPath, PathSink linePath) {
+        littleEndian = wkb[position++] == 1;
+        int type = readInt();
+        if ((type & EWKB_SRID) != 0) {
+            position += 4;
+        }
+        dimension = 2;
+        if ((type & EWKB_Z) != 0)
+            dimension++;
+        if ((type & EWKB_M) != 0)
+            dimension++;
+        type &= 0x0FFFFFFF;
+        // ISO types: 1000 Z, 2000 M, 3000 ZM
+        int isoDimensions = type / 1000;
+        if (isoDimensions == 1 || isoDimensions == 2) {
+            dimension = 3;
+        } else if (isoDimensions == 3) {
+            dimension = 4;
+        }
+        type = type % 1000;
+
+        switch (type) {
+            case WKB_POINT:
+                readPoint();
+                break;
+            case WKB_LINESTRING:
+                readLine(linePath);
+                break;
+            case WKB_POLYGON:
+                readPolygon(areaPath);
+                break;
+            case WKB_MULTIPOINT:
+            case WKB_MULTILINESTRING:
+            case WKB_MULTIPOLYGON:
+            case WKB_GEOMETRYCOLLECTION: {
+                int count = readInt();
+                for (int i = 0; i < count; i++) {
+                    // every part has its own byte order and type
+                    readGeometry(areaPath, linePath);
+                }
+            }
+            break;
+            default:
+                throw new IllegalArgumentException("Unsupported WKB geometry type: " + type);
+        }
+    }
+
+    private void readPoint() {
+        double lon = readDouble();
+        double lat = readDouble();
+        position += (dimension - 2) * 8;
+        if (Double.isNaN(lon) || Double.isNaN(lat)) {
+            // empty point
+            return;
+        }
+        kinds |= KIND_POINT;
+        if (pointsCount * 2 == points.length) {
+            points = Arrays.copyOf(points, points.length * 2);
+        }
+        project(lon, lat);
+        points[pointsCount * 2] = projectedX;
+        points[pointsCount * 2 + 1] = projectedY;
+        pointsCount++;
+        vertexCount++;
+    }
+
+    private void readLine(PathSink linePath) {
+        int count = readInt();
+        if (count == 0) {
+            return;
+        }
+        kinds |= KIND_LINE;
+        emitVertices(linePath, count, false, false);
+    }
+
+    private void readPolygon(PathSink areaPath) {
+        int ringsCount = readInt();
+        for (int r = 0; r < ringsCount; r++) {
+            int count = readInt();
+            if (count == 0) {
+                continue;
+            }
+            kinds |= KIND_AREA;
+            emitVertices(areaPath, count, true, r > 0);
+        }
+    }
+
+    /**
+     * Reads count vertices and adds them to the path as a new contour.
+     */
+    private void emitVertices(PathSink path, int count, boolean isRing, boolean isHole) {
+        int skip = (dimension - 2) * 8;
+        // the closing point of rings is replaced by closing the path
+        int last = isRing ? count - 2 : count - 1;
+        double prevLon = 0;
+        double prevLat = 0;
+        float prevX = Float.NaN;
+        float prevY = Float.NaN;
+        double ringArea = 0;
+        double ringCx = 0;
+        double ringCy = 0;
+        float startX = 0;
+        float startY = 0;
+        for (int i = 0; i < count; i++) {
+            double lon = readDouble();
+            double lat = readDouble();
+            position += skip;
+            if (i > last) {
+                continue;
+            }
+            if (decimation > 0 && i > 0 && i < last && Math.abs(lon - prevLon) < decimation
+                    && Math.abs(lat - prevLat) < decimation) {
+                continue;
+            }
+            prevLon = lon;
+            prevLat = lat;
+
+            project(lon, lat);
+            float x = projectedX;
+            float y = projectedY;
+            if (removeDuplicatePoints && i > 0 && i < last && x == prevX && y == prevY) {
+                continue;
+            }
+            if (i == 0) {
+                path.moveTo(x, y);
+                startX = x;
+                startY = y;
+            } else {
+                path.lineTo(x, y);
+                if (isRing) {
+                    // shoelace terms relative to the ring start, to keep the precision
+                    double ax = prevX - startX;
+                    double ay = prevY - startY;
+                    double bx = x - startX;
+                    double by = y - startY;
+                    double cross = ax * by - bx * ay;
+                    ringArea += cross;
+                    ringCx += (ax + bx) * cross;
+                    ringCy += (ay + by) * cross;
+                }
+            }
+            prevX = x;
+            prevY = y;
+            vertexCount++;
+        }
+        if (isRing) {
+            path.close();
+            if (ringArea != 0) {
+                // shells add to the centroid, holes subtract from it, whatever their orientation
+                double area = Math.abs(ringArea) / 2.0;
+                if (isHole) {
+                    area = -area;
+                }
+                double cx = ringCx / (3.0 * ringArea) + startX;
+                double cy = ringCy / (3.0 * ringArea) + startY;
+                areaSum += area;
+                areaCentroidX += cx * area;
+                areaCentroidY += cy * area;
+            }
+        }
+    }
+
+    /**
+     * Projects a vertex to {@link #projectedX} and {@link #projectedY}, updating the envelope.
+     */
+    private void project(double lon, double lat) {
+        if (lon < minLon)
+            minLon = lon;
+        if (lon > maxLon)
+            maxLon = lon;
+        if (lat < minLat)
+            minLat = lat;
+        if (lat > maxLat)
+            maxLat = lat;
+        double pixelX = longitudeToPixelX(lon);
+        double pixelY = latitudeToPixelY(lat);
+        if (!originSet) {
+            originX = Math.floor(pixelX);
+            originY = Math.floor(pixelY);
+            originSet = true;
+        }
+        projectedX = (float) (pixelX - originX);
+        projectedY = (float) (pixelY - originY);
+        if (vertexCount == 0) {
+            firstX = projectedX;
+            firstY = projectedY;
+        }
+    }
+
+    private double longitudeToPixelX(double lon) {
+        return (lon + 180) / 360 * mapSize;
+    }
+
+    private double latitudeToPixelY(double lat) {
+        if (lat > LATITUDE_MAX) {
+            lat = LATITUDE_MAX;
+        } else if (lat < -LATITUDE_MAX) {
+            lat = -LATITUDE_MAX;
+        }
+        double sinLatitude = Math.sin(lat * (Math.PI / 180));
+        return (0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI)) * mapSize;
+    }
+
+    private int readInt() {
+        byte[] b = wkb;
+        int p = position;
+        position += 4;
+        if (littleEndian) {
+            return (b[p] & 0xFF) | (b[p + 1] & 0xFF) << 8 | (b[p + 2] & 0xFF) << 16 | (b[p + 3] & 0xFF) << 24;
+        }
+        return (b[p] & 0xFF) << 24 | (b[p + 1] & 0xFF) << 16 | (b[p + 2] & 0xFF) << 8 | (b[p + 3] & 0xFF);
+    }
+
+    private double readDouble() {
+        byte[] b = wkb;
+        int p = position;
+        position += 8;
+        long bits;
+        if (littleEndian) {
+            bits = (b[p] & 0xFFL) | (b[p + 1] & 0xFFL) << 8 | (b[p + 2] & 0xFFL) << 16 | (b[p + 3] & 0xFFL) << 24
+                    | (b[p + 4] & 0xFFL) << 32 | (b[p + 5] & 0xFFL) << 40 | (b[p + 6] & 0xFFL) << 48
+                    | (b[p + 7] & 0xFFL) << 56;
+        } else {
+            bits = (b[p] & 0xFFL) << 56 | (b[p + 1] & 0xFFL) << 48 | (b[p + 2] & 0xFFL) << 40
+                    | (b[p + 3] & 0xFFL) << 32 | (b[p + 4] & 0xFFL) << 24 | (b[p + 5] & 0xFFL) << 16
+                    | (b[p + 6] & 0xFFL) << 8 | (b[p + 7] & 0xFFL);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * @return the x of the origin, in world pixels, the coordinates of the last geometry are relative to.
+     */
+    public double getOriginX() {
+        return originX;
+    }
+
+    /**
+     * @return the y of the origin, in world pixels, the coordinates of the last geometry are relative to.
+     */
+    public double getOriginY() {
+        return originY;
+    }
+
+    /**
+     * @return the decoded points as x/y pairs. The array is reused by the next decoding.
+     */
+    public float[] getPoints() {
+        return points;
+    }
+
+    /**
+     * @return the number of decoded points.
+     */
+    public int getPointsCount() {
+        return pointsCount;
+    }
+
+    /**
+     * @return the number of vertices added to the paths and points.
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * @return the min longitude of the last geometry.
+     */
+    public double getMinLon() {
+        return minLon;
+    }
+
+    /**
+     * @return the max longitude of the last geometry.
+     */
+    public double getMaxLon() {
+        return maxLon;
+    }
+
+    /**
+     * @return the min latitude of the last geometry.
+     */
+    public double getMinLat() {
+        return minLat;
+    }
+
+    /**
+     * @return the max latitude of the last geometry.
+     */
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    /**
+     * Get the label position of the last geometry.
+     * <p/>
+     * <p>The area weighted centroid for polygons, the mean of the points for points
+     * and the first vertex for lines.</p>
+     *
+     * @param xy the array to put the position in.
+     */
+    public void getLabelPosition(float[] xy) {
+        if ((kinds & KIND_AREA) != 0 && areaSum != 0) {
+            xy[0] = (float) (areaCentroidX / areaSum);
+            xy[1] = (float) (areaCentroidY / areaSum);
+        } else if (kinds == KIND_POINT && pointsCount > 0) {
+            double sumX = 0;
+            double sumY = 0;
+            for (int i = 0; i < pointsCount; i++) {
+                sumX += points[i * 2];
+                sumY += points[i * 2 + 1];
+            }
+            xy[0] = (float) (sumX / pointsCount);
+            xy[1] = (float) (sumY / pointsCount);
+        } else {
+            xy[0] = firstX;
+            xy[1] = firstY;
+        }
+    }
+}
@@ -7,6 +7,8 @@ package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
@@ -16,8 +18,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Formatter;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -48,6 +52,13 @@ public class MBTilesDroidSpitter {
     public static final int i_request_url_count_insert = 4;
     public static final int i_request_url_count_delete = 5;
     private boolean b_mbtiles_valid = false;
+    private int i_images_digest = -1; // -1: not checked ; 0: 'images_digest' table does not exist ; 1: exists
+    private int i_images_digest_failures = 0; // failed attempts to create the 'images_digest' table, retried once
+    // statements of the 'images_digest' lookups, compiled once per connection [closed in close_digest_statements()]
+    private SQLiteStatement insert_digest_stmt = null;
+    private SQLiteStatement search_image_stmt = null;
+    private boolean b_search_image_digest = false; // search_image_stmt uses the 'images_digest' table
+    private final Object digest_stmt_lock = new Object(); // readers share db_lock, but not the statements
     private HashMap<String, String> mbtiles_metadata = null;
     HashMap<String, String> bounds_lat_long = null;
     // avoid SpatialiteLockException's - multiple read/writes will be queued
@@ -103,6 +114,7 @@ public class MBTilesDroidSpitter {
     public void open(boolean fetchMetadata, String metadataVersion) {
         if (!metadataVersion.equals(""))
             this.s_metadataVersion = metadataVersion;
+        close_digest_statements(); // they belong to the previous connection
         try {
             db_mbtiles = SQLiteDatabase.openOrCreateDatabase(file_mbtiles, null);
         } catch (Exception e) {
@@ -127,6 +139,7 @@ public class MBTilesDroidSpitter {
      * @return void
      */
     public void close() {
+        close_digest_statements();
         if (db_mbtiles != null)
             db_mbtiles.close();
     }
@@ -313,6 +326,174 @@ public class MBTilesDroidSpitter {
     }
     // -----------------------------------------------
 
+    /**
+     * Function to create a TileRecord from a Tile Bitmap [for insertTiles]
+     * - checking will be done to determin if the Bitmap is blank [i.e. all pixels have the same RGB]
+     *
+     * @param i_x         the value for tile_column field
+     * @param i_y_osm     the value for tile_row field in osm notation
+     * @param i_z         the value for zoom_level field
+     * @param tile_bitmap the Bitmap to extract image-data extracted from. [Will be converted to JPG or PNG depending on metdata setting]
+     * @return the TileRecord with the compressed image-data
+     */
+    public TileRecord createTileRecord(int i_x, int i_y_osm, int i_z, Bitmap tile_bitmap) {
+        // i_parm=1: 'ff-ee-dd.rgb' [to be used as tile_id], blank if image is not Blank (all pixels
+        // use one RGB value)
+        String s_tile_id = get_pixel_rgb_toString(tile_bitmap, 1);
+        ByteArrayOutputStream ba_stream = new ByteArrayOutputStream();
+        if (this.mbtiles_metadata.get("format") == "png") { // 'png' should be avoided, can
+            // create very big databases
+            tile_bitmap.compress(Bitmap.CompressFormat.PNG, 100, ba_stream);
+        } else { // 'jpg' should be used where possible
+            tile_bitmap.compress(Bitmap.CompressFormat.JPEG, 75, ba_stream);
+        }
+        return new TileRecord(i_x, i_y_osm, i_z, s_tile_id, ba_stream.toByteArray());
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to insert a collection of Tiles to the mbtiles Database
+     * - all tiles are written in one transaction with prepared statements
+     * - bounds and min/max zoom are collected in memory and the metadata is updated once at the end
+     * - tiles that already exist are skipped [not considered an error]
+     * - blank images [all pixels have the same RGB] are stored once in the 'images' table and referenced in the 'map' table
+     *
+     * @param tile_records   the tiles to insert
+     * @param i_force_unique 1=check if image is unique in Database [through the 'images_digest' table]
+     * @return 0: correct, 100: invalid mbtiles, otherwise error
+     * @throws IOException if something goes wrong.
+     */
+    public int insertTiles(Collection<TileRecord> tile_records, int i_force_unique) throws IOException {
+        int i_rc = 0;
+        if (!isValid()) { // this mbtiles file is invalid
+            return 100; // invalid mbtiles
+        }
+        if (tile_records.isEmpty()) {
+            return i_rc;
+        }
+        if (!db_mbtiles.isOpen()) { // '(conn# x): already closed'
+            return 1;
+        }
+        if (i_force_unique != 1)
+            i_force_unique = 0;
+        if (i_force_unique == 1) { // may create the 'images_digest' table, must be done outside of the transaction
+            check_images_digest();
+        }
+        String s_sql_insert_images = "INSERT OR IGNORE INTO images (tile_data,tile_id) VALUES (?,?)";
+        String s_sql_insert_map;
+        if (b_grid_id)
+            s_sql_insert_map = "INSERT OR IGNORE INTO map (zoom_level,tile_column,tile_row,tile_id,grid_id) VALUES (?,?,?,?,'')";
+        else
+            s_sql_insert_map = "INSERT OR IGNORE INTO map (zoom_level,tile_column,tile_row,tile_id) VALUES (?,?,?,?)";
+        String s_sql_insert_tiles = "INSERT OR IGNORE INTO tiles (zoom_level,tile_column,tile_row,tile_data) VALUES (?,?,?,?)";
+        // bounds of the inserted tiles: west,south,east,north
+        double[] inserted_bounds = new double[]{180.0, 90.0, -180.0, -90.0};
+        int i_zoom_min = 22;
+        int i_zoom_max = 0;
+        int i_count_inserted = 0;
+        // blank images inserted in this transaction [search_blank_image only knows committed ones]
+        HashSet<String> blank_tile_ids = new HashSet<String>();
+        SQLiteStatement images_stmt = null;
+        SQLiteStatement map_stmt = null;
+        SQLiteStatement tiles_stmt = null;
+        db_lock.writeLock().lock();
+        db_mbtiles.beginTransaction();
+        try {
+            if (i_type_tiles == 1) {
+                images_stmt = db_mbtiles.compileStatement(s_sql_insert_images);
+                map_stmt = db_mbtiles.compileStatement(s_sql_insert_map);
+            } else {
+                tiles_stmt = db_mbtiles.compileStatement(s_sql_insert_tiles);
+            }
+            for (TileRecord tile_record : tile_records) {
+                int i_y = tile_record.i_y_osm;
+                if (s_tile_row_type.equals("tms")) {
+                    int[] tmsTileXY = MBTilesDroidSpitter.googleTile2TmsTile(tile_record.i_x, tile_record.i_y_osm, tile_record.i_z);
+                    i_y = tmsTileXY[1];
+                }
+                long l_row_id;
+                if (i_type_tiles == 1) { // 'tiles' is a view
+                    String s_tile_id = tile_record.s_tile_id;
+                    boolean b_unique = true;
+                    if (s_tile_id.equals("")) {
+                        s_tile_id = get_tile_id_from_zxy(tile_record.i_z, tile_record.i_x, tile_record.i_y_osm);
+                        if (i_force_unique == 1) {
+                            String s_tile_id_query = search_tile_image(tile_record.ba_tile_data);
+                            if (!s_tile_id_query.equals("")) { // We have this image, do not add again
+                                b_unique = false;
+                                s_tile_id = s_tile_id_query;
+                            }
+                        }
+                    } else { // This should be a 'Blank' Image :'ff-ee-dd.rgb'
+                        b_unique = !blank_tile_ids.contains(s_tile_id) && search_blank_image(s_tile_id);
+                    }
+                    map_stmt.bindLong(1, tile_record.i_z);
+                    map_stmt.bindLong(2, tile_record.i_x);
+                    map_stmt.bindLong(3, i_y);
+                    map_stmt.bindString(4, s_tile_id);
+                    l_row_id = map_stmt.executeInsert();
+                    if ((l_row_id != -1) && (b_unique)) { // a new tile with an image we do not have, add it
+                        images_stmt.bindBlob(1, tile_record.ba_tile_data);
+                        images_stmt.bindString(2, s_tile_id);
+                        if (images_stmt.executeInsert() != -1) {
+                            if (!tile_record.s_tile_id.equals(""))
+                                blank_tile_ids.add(s_tile_id);
+                            if (i_images_digest == 1) { // keep the digest index in sync with 'images'
+                                insert_image_digest(s_tile_id, tile_record.ba_tile_data);
+                            }
+                        }
+                    }
+                } else { // 'tiles' is a table
+                    tiles_stmt.bindLong(1, tile_record.i_z);
+                    tiles_stmt.bindLong(2, tile_record.i_x);
+                    tiles_stmt.bindLong(3, i_y);
+                    tiles_stmt.bindBlob(4, tile_record.ba_tile_data);
+                    l_row_id = tiles_stmt.executeInsert();
+                }
+                if (l_row_id == -1) { // When the tile allready exists: not to be considered an error
+                    continue;
+                }
+                i_count_inserted++;
+                // minx, miny, maxx, maxy
+                double[] tile_bounds = tileLatLonBounds(tile_record.i_x, tile_record.i_y_osm, tile_record.i_z, 256);
+                inserted_bounds[0] = Math.min(inserted_bounds[0], tile_bounds[0]);
+                inserted_bounds[1] = Math.min(inserted_bounds[1], tile_bounds[1]);
+                inserted_bounds[2] = Math.max(inserted_bounds[2], tile_bounds[2]);
+                inserted_bounds[3] = Math.max(inserted_bounds[3], tile_bounds[3]);
+                i_zoom_min = Math.min(i_zoom_min, tile_record.i_z);
+                i_zoom_max = Math.max(i_zoom_max, tile_record.i_z);
+            }
+            db_mbtiles.setTransactionSuccessful();
+        } catch (Exception e) {
+            throw new IOException("MBTilesDroidSpitter:insertTiles error[" + e.getLocalizedMessage() + "]");
+        } finally {
+            if (images_stmt != null)
+                images_stmt.close();
+            if (map_stmt != null)
+                map_stmt.close();
+            if (tiles_stmt != null)
+                tiles_stmt.close();
+            db_mbtiles.endTransaction();
+            db_lock.writeLock().unlock();
+        }
+        if (i_count_inserted > 0) { // if the bounds or min/max zoom have changed, update changed values and reload metadata
+            HashMap<String, String> update_metadata = this.metadata.checkTileLocation(inserted_bounds, i_zoom_max);
+            String s_minzoom = this.metadata.checkTileLocation(inserted_bounds, i_zoom_min).get("minzoom");
+            if (s_minzoom != null)
+                update_metadata.put("minzoom", s_minzoom);
+            if (update_metadata.size() > 0) {
+                try {
+                    update_mbtiles_metadata(db_mbtiles, update_metadata, 1);
+                } catch (Exception e) {
+                    GPLog.error(this, "MBTilesDroidSpitter[" + file_mbtiles.getAbsolutePath() + "]", e);
+                    i_rc = 1;
+                }
+            }
+        }
+        return i_rc;
+    }
+    // -----------------------------------------------
+
     /**
      * Function to insert a new Tile byte-data to the mbtiles Database
      * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
@@ -394,6 +575,9 @@ public class MBTilesDroidSpitter {
                         image_values.put(s_mbtiles_field_tile_data, ba_tile_data);
                         image_values.put(s_mbtiles_field_tile_id, s_tile_id);
                         db_mbtiles.insertOrThrow(s_images_tablename, null, image_values);
+                        if (i_images_digest == 1) { // keep the digest index in sync with 'images'
+                            insert_image_digest(s_tile_id, ba_tile_data);
+                        }
                     }
                 }
                 if (i_type_tiles == 1) { // 'tiles' is a view
@@ -516,33 +700,41 @@ public class MBTilesDroidSpitter {
     /**
      * Function to check if image exists in the image-table
      * - avoids duplicate images
+     * - the lookup goes through the indexed 'images_digest' table [64-bit digest + length]
+     * -- the blob is compared only for the candidates with the same digest
+     * -- the 'images_digest' table is created and filled on first use [check_images_digest()]
+     * -- if the table is not available, the blobs of the 'images' table are compared [slow]
      *
      * @param ba_tile_data the image-data extracted from the Bitmap.
      * @return tile_id of found image or blank
      */
-    private String search_tile_image(byte[] ba_tile_data) throws IOException { // The use of
-        // 'i_force_unique
-        // == 1' will
-        // probely slow
-        // things down to a
-        // craw
+    private String search_tile_image(byte[] ba_tile_data) throws IOException {
         String s_tile_id = "";
         if (i_type_tiles != 1) { // there will be no 'images' table, return
             return s_tile_id;
         }
-        String s_tile_data = get_hex(ba_tile_data);
-        String s_sql_query = "SELECT tile_id FROM images WHERE (hex(tile_data) = '" + s_tile_data + "')";
+        boolean b_digest = (check_images_digest() == 1);
         db_lock.readLock().lock();
-        try { // ?? another way to query for binary data in java ??
-            final Cursor c = db_mbtiles.rawQuery(s_sql_query, null);
-            if (c != null) {
-                if (c.moveToFirst()) { // TODO: do something if multiple results are returned
-                    s_tile_id = c.getString(c.getColumnIndex("tile_id"));
+        try {
+            synchronized (digest_stmt_lock) {
+                SQLiteStatement search_stmt = get_search_image_statement(b_digest);
+                if (b_digest) {
+                    search_stmt.bindLong(1, MbTilesImageDigest.digest(ba_tile_data));
+                    search_stmt.bindLong(2, ba_tile_data.length);
+                    search_stmt.bindBlob(3, ba_tile_data);
+                } else {
+                    search_stmt.bindBlob(1, ba_tile_data);
+                }
+                try {
+                    s_tile_id = search_stmt.simpleQueryForString();
+                } finally {
+                    search_stmt.clearBindings();
                 }
-                c.close();
             }
+        } catch (SQLiteDoneException e) { // no image with this content
+            s_tile_id = "";
         } catch (Exception e) {
-            throw new IOException("MBTilesDroidSpitter:search_tile_image query[" + s_sql_query + "] error["
+            throw new IOException("MBTilesDroidSpitter:search_tile_image digest[" + b_digest + "] error["
                     + e.getLocalizedMessage() + "] ");
         } finally {
             db_lock.readLock().unlock();
@@ -557,6 +749,156 @@ public class MBTilesDroidSpitter {
     }
     // -----------------------------------------------
 
+    /**
+     * Function to insert the digest of a newly inserted image
+     * - must be called inside the transaction that inserts the image [holding the write lock]
+     * - the statement is compiled once per connection and rebound for every image
+     *
+     * @param s_tile_id    the image tile_id
+     * @param ba_tile_data the image-data
+     */
+    private void insert_image_digest(String s_tile_id, byte[] ba_tile_data) {
+        synchronized (digest_stmt_lock) {
+            if (insert_digest_stmt == null) {
+                String s_sql_insert = "INSERT OR REPLACE INTO " + MbTilesImageDigest.TABLE_IMAGES_DIGEST + " ("
+                        + MbTilesImageDigest.COL_DIGEST_TILE_ID + "," + MbTilesImageDigest.COL_DIGEST_DIGEST + ","
+                        + MbTilesImageDigest.COL_DIGEST_LENGTH + ") VALUES (?,?,?)";
+                insert_digest_stmt = db_mbtiles.compileStatement(s_sql_insert);
+            }
+            insert_digest_stmt.bindString(1, s_tile_id);
+            insert_digest_stmt.bindLong(2, MbTilesImageDigest.digest(ba_tile_data));
+            insert_digest_stmt.bindLong(3, ba_tile_data.length);
+            try {
+                insert_digest_stmt.executeInsert();
+            } finally {
+                insert_digest_stmt.clearBindings();
+            }
+        }
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to retrieve the statement searching an image by its content
+     * - compiled on first use and kept until the connection is closed
+     * - compiled again if the 'images_digest' table became available in the meantime
+     * - must be called holding digest_stmt_lock, until the statement has been used
+     *
+     * @param b_digest true to search through the 'images_digest' table
+     * @return the statement [with 3 parameters: digest, length, tile_data ; otherwise 1: tile_data]
+     */
+    private SQLiteStatement get_search_image_statement(boolean b_digest) {
+        if ((search_image_stmt != null) && (b_search_image_digest != b_digest)) {
+            search_image_stmt.close();
+            search_image_stmt = null;
+        }
+        if (search_image_stmt == null) {
+            String s_sql_query;
+            if (b_digest) {
+                s_sql_query = "SELECT d." + MbTilesImageDigest.COL_DIGEST_TILE_ID + " FROM "
+                        + MbTilesImageDigest.TABLE_IMAGES_DIGEST + " d JOIN images i ON i.tile_id = d."
+                        + MbTilesImageDigest.COL_DIGEST_TILE_ID + " WHERE d." + MbTilesImageDigest.COL_DIGEST_DIGEST + " = ? AND d."
+                        + MbTilesImageDigest.COL_DIGEST_LENGTH + " = ? AND i.tile_data = ? LIMIT 1";
+            } else {
+                s_sql_query = "SELECT tile_id FROM images WHERE tile_data = ? LIMIT 1";
+            }
+            search_image_stmt = db_mbtiles.compileStatement(s_sql_query);
+            b_search_image_digest = b_digest;
+        }
+        return search_image_stmt;
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to close the statements of the 'images_digest' lookups
+     * - must be called before the connection is closed or replaced
+     */
+    private void close_digest_statements() {
+        synchronized (digest_stmt_lock) {
+            if (insert_digest_stmt != null) {
+                insert_digest_stmt.close();
+                insert_digest_stmt = null;
+            }
+            if (search_image_stmt != null) {
+                search_image_stmt.close();
+                search_image_stmt = null;
+            }
+        }
+    }
+    // -----------------------------------------------
+
+    /**
+     * Function to check if the 'images_digest' table exists, creating and filling it if not
+     * - migration for mbtiles files created before the table existed [or by other tools]
+     * -- the digest of every image in 'images' without one is calculated, in one transaction
+     * - only used when 'tiles' is a view [i_type_tiles == 1]
+     * - if the table can't be created, this is retried once on the next call
+     * -- after that search_tile_image() compares the blobs of the 'images' table
+     *
+     * @return 1: the table exists and can be used ; 0: not available [yet]
+     */
+    public int check_images_digest() {
+        if (i_images_digest >= 0) {
+            return i_images_digest;
+        }
+        if ((i_type_tiles != 1) || (!db_mbtiles.isOpen()) || (db_mbtiles.isReadOnly())) {
+            i_images_digest = 0;
+            return i_images_digest;
+        }
+        String s_sql_create = "CREATE TABLE IF NOT EXISTS " + MbTilesImageDigest.TABLE_IMAGES_DIGEST + " ("
+                + MbTilesImageDigest.COL_DIGEST_TILE_ID + " TEXT PRIMARY KEY," + MbTilesImageDigest.COL_DIGEST_DIGEST
+                + " INTEGER NOT NULL," + MbTilesImageDigest.COL_DIGEST_LENGTH + " INTEGER NOT NULL)";
+        String s_sql_create_index = "CREATE INDEX IF NOT EXISTS " + MbTilesImageDigest.TABLE_IMAGES_DIGEST + "_lookup ON "
+                + MbTilesImageDigest.TABLE_IMAGES_DIGEST + " (" + MbTilesImageDigest.COL_DIGEST_DIGEST + ","
+                + MbTilesImageDigest.COL_DIGEST_LENGTH + ")";
+        String s_sql_backfill = "SELECT i.tile_id,i.tile_data FROM images i WHERE NOT EXISTS (SELECT 1 FROM "
+                + MbTilesImageDigest.TABLE_IMAGES_DIGEST + " d WHERE d." + MbTilesImageDigest.COL_DIGEST_TILE_ID
+                + " = i.tile_id)";
+        int i_backfill_count = 0;
+        db_lock.writeLock().lock();
+        db_mbtiles.beginTransaction();
+        try {
+            db_mbtiles.execSQL(s_sql_create);
+            db_mbtiles.execSQL(s_sql_create_index);
+            // backfill the digests of images inserted without one [older files, other tools]
+            Cursor c = db_mbtiles.rawQuery(s_sql_backfill, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        byte[] ba_tile_data = c.getBlob(1);
+                        if (ba_tile_data != null) {
+                            insert_image_digest(c.getString(0), ba_tile_data);
+                            i_backfill_count++;
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            db_mbtiles.setTransactionSuccessful();
+            i_images_digest = 1;
+        } catch (Exception e) {
+            GPLog.error(this, "MBTilesDroidSpitter:check_images_digest[" + file_mbtiles.getAbsolutePath() + "]", e);
+            i_images_digest_failures++;
+            if (i_images_digest_failures < 2) {
+                i_images_digest = -1; // try once more on the next call
+            } else {
+                i_images_digest = 0;
+            }
+            GPLog.addLogEntry("MBTilesDroidSpitter", "MBTilesDroidSpitter:check_images_digest[" + file_mbtiles.getAbsolutePath()
+                    + "] WARNING: 'images_digest' not available" + (i_images_digest < 0 ? ", will be retried" : "")
+                    + ", unique images are searched by comparing the image-data [slow]");
+            return 0;
+        } finally {
+            db_mbtiles.endTransaction();
+            db_lock.writeLock().unlock();
+        }
+        if ((i_backfill_count > 0) && (GPLog.LOG_HEAVY))
+            GPLog.addLogEntry("MBTilesDroidSpitter", "MBTilesDroidSpitter:check_images_digest[" + file_mbtiles.getAbsolutePath()
+                    + "] digests created[" + i_backfill_count + "]");
+        return i_images_digest;
+    }
+    // -----------------------------------------------
+
     /**
      * Function to check if inserted tile is outside known bounds and min/max zoom, update metadata if desired
      * - i_y_osm must be in is Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]
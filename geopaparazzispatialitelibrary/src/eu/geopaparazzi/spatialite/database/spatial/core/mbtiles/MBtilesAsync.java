@@ -56,6 +56,9 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
     private int i_http_bad_requests = 0;
     private String s_http_message = "";
     private String s_http_result = "";
+    // downloaded tiles waiting to be inserted with one transaction [on_insert_pending_tiles]
+    private List<TileRecord> pending_tiles = new ArrayList<TileRecord>();
+    private List<String> pending_tile_ids = new ArrayList<String>();
     // -----------------------------------------------
     /**
       * Constructor
@@ -286,6 +289,7 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
                     s_message = "-W-> on_request_url[" + s_http_result + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
                             + i_count_tiles_total + "] rc=" + i_rc;
                     publishProgress(s_message);
+                    on_insert_pending_tiles();
                     return i_rc;
                 }
                 if (!networkAvailable) {
@@ -294,12 +298,14 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
                     s_message = "-W-> on_request_url[" + s_http_result + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
                             + i_count_tiles_total + "] rc=" + i_rc;
                     publishProgress(s_message);
+                    on_insert_pending_tiles();
                     return i_rc;
                 }
                 if (isCancelled()) {
                     i_rc = 3777;
                     s_message = "-W-> on_request_url[" + s_request_type + "][" + db_mbtiles.getName() + "]: mbtiles_request_url["
                             + i_count_tiles_total + "] rc=" + i_rc;
+                    on_insert_pending_tiles();
                     return i_rc;
                 }
                 String s_tile_id = request_url.getKey();
@@ -340,6 +346,8 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
                     publishProgress(s_message);
                 }
             }
+            // store the retrieved tiles of this block and remove their requests
+            on_insert_pending_tiles();
             int i_count_tiles_test = db_mbtiles.getRequestUrlCount(1);
             if (i_count_tiles_test != i_count_tiles_total) {
                 // retrieve the next amount, avoiding excesive memory usage
@@ -363,8 +371,7 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
     // -----------------------------------------------
     /**
       * will retrieve  requested tile-image [on_download_tile]
-      * - will store each retieved bitmap in the mbtiles-file [db_mbtiles.insertBitmapTile]
-      * - will remove the request [db_mbtiles.delete_request_url]
+      * - will collect each retieved bitmap for the mbtiles-file [stored with on_insert_pending_tiles]
       * @param s_tile_id tile_id to use
       * @param s_tile_url full url to retrieve tile with
       * @return i_rc [ 0: image retrieved and stored; 101=image not retrieved ; 100=invalid mbtiles ; otherwise some storing error]
@@ -384,11 +391,10 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
                     // GPLog.androidLog(-1, "mbtiles_Async on_request_tile_id_url[" +
                     // db_mbtiles.getName() + "][" + s_tile_id + "] ["+ s_tile_url +
                     // "] i_tile_y_tms=" + i_tile_y_tms);
-                    i_rc = db_mbtiles.insertBitmapTile(i_tile_x, i_tile_y_osm, i_zoom, tile_bitmap, 0);
-                    if (i_rc == 0) {
-                        i_http_bad_requests = 0;
-                        db_mbtiles.deleteRequestUrl(s_tile_id);
-                    }
+                    // stored with the next on_insert_pending_tiles
+                    pending_tiles.add(db_mbtiles.createTileRecord(i_tile_x, i_tile_y_osm, i_zoom, tile_bitmap));
+                    pending_tile_ids.add(s_tile_id);
+                    i_http_bad_requests = 0;
                 } else {
                     if ((i_http_bad_requests > 10) && (i_http_not_usable == 0)) {
                         // provider is not // sending // anything
@@ -416,6 +422,26 @@ public class MBtilesAsync extends AsyncTask<MbtilesDatabaseHandler.AsyncTasks, S
         return i_rc;
     }
     // -----------------------------------------------
+    /**
+      * will store the collected tile-images in one transaction [db_mbtiles.insertTiles]
+      * - bounds and min/max zoom of the metadata are updated once for all tiles
+      * - will remove the requests of the stored tiles [db_mbtiles.deleteRequestUrl]
+      * @return i_rc [ 0: images stored ; otherwise some storing error]
+     */
+    private int on_insert_pending_tiles() {
+        if (pending_tiles.size() == 0)
+            return 0;
+        int i_rc = db_mbtiles.insertTiles(pending_tiles, 0);
+        if (i_rc == 0) {
+            for( String s_tile_id : pending_tile_ids ) {
+                db_mbtiles.deleteRequestUrl(s_tile_id);
+            }
+        }
+        pending_tiles.clear();
+        pending_tile_ids.clear();
+        return i_rc;
+    }
+    // -----------------------------------------------
     /**
       * will retrieve  requested tile-image [s_tile_url]
       * - goal is to determin whether we have a fake connection or a non-publich server
@@ -0,0 +1,124 @@
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+/**
+ * Content digest of mbtiles images, used to find duplicate images without
+ * comparing the image blobs.
+ * <p/>
+ * <ul>
+ * <li>the digest is a 64-bit xxHash (XXH64) of the image bytes</li>
+ * <li>digest and length are stored in the 'images_digest' table, indexed together</li>
+ * <li>a match is confirmed by comparing the blobs, so hash collisions can not merge different images</li>
+ * </ul>
+ */
+public class MbTilesImageDigest {
+    public final static String TABLE_IMAGES_DIGEST = "images_digest";
+    public final static String COL_DIGEST_TILE_ID = "tile_id";
+    public final static String COL_DIGEST_DIGEST = "digest";
+    public final static String COL_DIGEST_LENGTH = "length";
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private MbTilesImageDigest() {
+    }
+
+    /**
+     * Create the digest of an image.
+     *
+     * @param ba_data the image-data.
+     * @return the 64-bit digest.
+     */
+    public static long digest(byte[] ba_data) {
+        return xxHash64(ba_data, 0, ba_data.length, 0);
+    }
+
+    /**
+     * XXH64 of a byte range.
+     *
+     * @param ba_data  the data.
+     * @param i_offset the start of the range.
+     * @param i_length the length of the range.
+     * @param l_seed   the seed.
+     * @return the hash.
+     */
+    public static long xxHash64(byte[] ba_data, int i_offset, int i_length, long l_seed) {
+        int i_pos = i_offset;
+        int i_end = i_offset + i_length;
+        long l_hash;
+        if (i_length >= 32) {
+            int i_limit = i_end - 32;
+            long v1 = l_seed + PRIME64_1 + PRIME64_2;
+            long v2 = l_seed + PRIME64_2;
+            long v3 = l_seed;
+            long v4 = l_seed - PRIME64_1;
+            do {
+                v1 = round(v1, getLong(ba_data, i_pos));
+                v2 = round(v2, getLong(ba_data, i_pos + 8));
+                v3 = round(v3, getLong(ba_data, i_pos + 16));
+                v4 = round(v4, getLong(ba_data, i_pos + 24));
+                i_pos += 32;
+            } while (i_pos <= i_limit);
+            l_hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            l_hash = mergeRound(l_hash, v1);
+            l_hash = mergeRound(l_hash, v2);
+            l_hash = mergeRound(l_hash, v3);
+            l_hash = mergeRound(l_hash, v4);
+        } else {
+            l_hash = l_seed + PRIME64_5;
+        }
+        l_hash += i_length;
+        while (i_pos + 8 <= i_end) {
+            l_hash ^= round(0, getLong(ba_data, i_pos));
+            l_hash = Long.rotateLeft(l_hash, 27) * PRIME64_1 + PRIME64_4;
+            i_pos += 8;
+        }
+        if (i_pos + 4 <= i_end) {
+            l_hash ^= (getInt(ba_data, i_pos) & 0xFFFFFFFFL) * PRIME64_1;
+            l_hash = Long.rotateLeft(l_hash, 23) * PRIME64_2 + PRIME64_3;
+            i_pos += 4;
+        }
+        while (i_pos < i_end) {
+            l_hash ^= (ba_data[i_pos] & 0xFF) * PRIME64_5;
+            l_hash = Long.rotateLeft(l_hash, 11) * PRIME64_1;
+            i_pos++;
+        }
+        l_hash ^= l_hash >>> 33;
+        l_hash *= PRIME64_2;
+        l_hash ^= l_hash >>> 29;
+        l_hash *= PRIME64_3;
+        l_hash ^= l_hash >>> 32;
+        return l_hash;
+    }
+
+    private static long round(long l_acc, long l_input) {
+        l_acc += l_input * PRIME64_2;
+        l_acc = Long.rotateLeft(l_acc, 31);
+        return l_acc * PRIME64_1;
+    }
+
+    private static long mergeRound(long l_acc, long l_val) {
+        l_acc ^= round(0, l_val);
+        return l_acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long getLong(byte[] ba_data, int i_pos) { // little endian
+        return (ba_data[i_pos] & 0xFFL) //
+                | (ba_data[i_pos + 1] & 0xFFL) << 8 //
+                | (ba_data[i_pos + 2] & 0xFFL) << 16 //
+                | (ba_data[i_pos + 3] & 0xFFL) << 24 //
+                | (ba_data[i_pos + 4] & 0xFFL) << 32 //
+                | (ba_data[i_pos + 5] & 0xFFL) << 40 //
+                | (ba_data[i_pos + 6] & 0xFFL) << 48 //
+                | (ba_data[i_pos + 7] & 0xFFL) << 56;
+    }
+
+    private static int getInt(byte[] ba_data, int i_pos) { // little endian
+        return (ba_data[i_pos] & 0xFF) //
+                | (ba_data[i_pos + 1] & 0xFF) << 8 //
+                | (ba_data[i_pos + 2] & 0xFF) << 16 //
+                | (ba_data[i_pos + 3] & 0xFF) << 24;
+    }
+}
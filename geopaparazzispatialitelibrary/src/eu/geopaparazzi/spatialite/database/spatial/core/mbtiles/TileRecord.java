@@ -0,0 +1,34 @@
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+/**
+ * A tile ready to be stored in a mbtiles database [see MBTilesDroidSpitter.insertTiles]
+ * <p/>
+ * <ul>
+ * <li>i_y_osm is in Open-Street-Map 'Slippy Map' notation [will be converted to 'tms' notation if needed]</li>
+ * <li>s_tile_id is only filled for blank images [all pixels have the same RGB: 'ff-ee-dd.rgb'], otherwise blank</li>
+ * </ul>
+ */
+public class TileRecord {
+    public final int i_x;
+    public final int i_y_osm;
+    public final int i_z;
+    public final String s_tile_id;
+    public final byte[] ba_tile_data;
+
+    /**
+     * Constructor
+     *
+     * @param i_x          the value for tile_column field
+     * @param i_y_osm      the value for tile_row field in osm notation
+     * @param i_z          the value for zoom_level field
+     * @param s_tile_id    'ff-ee-dd.rgb' for blank images, otherwise blank
+     * @param ba_tile_data the compressed image-data
+     */
+    public TileRecord(int i_x, int i_y_osm, int i_z, String s_tile_id, byte[] ba_tile_data) {
+        this.i_x = i_x;
+        this.i_y_osm = i_y_osm;
+        this.i_z = i_z;
+        this.s_tile_id = s_tile_id == null ? "" : s_tile_id;
+        this.ba_tile_data = ba_tile_data;
+    }
+}
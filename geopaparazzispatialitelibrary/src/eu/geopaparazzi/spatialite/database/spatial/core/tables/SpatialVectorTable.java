@@ -75,6 +75,8 @@ public class SpatialVectorTable extends AbstractSpatialTable implements Serializ
 
     private boolean isReadonly = false;
     private String uniqueNameBasedOnDbFilePath = "";
+    // incremented at every edit, used to invalidate cached geometries
+    private transient volatile int modificationCount = 0;
 
     /**
      * Constructor.
@@ -156,6 +158,26 @@ public class SpatialVectorTable extends AbstractSpatialTable implements Serializ
         return uniqueNameBasedOnDbFilePath;
     }
 
+    /**
+     * Marks the data of the table as changed.
+     * <p/>
+     * <p>- called after features are added, updated or deleted
+     */
+    public void notifyModified() {
+        modificationCount++;
+    }
+
+    /**
+     * Returns the number of edits done on the table since it was loaded.
+     * <p/>
+     * <p>- a change of the value means that cached geometries are no longer valid
+     *
+     * @return the modification count.
+     */
+    public int getModificationCount() {
+        return modificationCount;
+    }
+
 
     /**
      * @return the geometry type.
@@ -0,0 +1,337 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.spatialite.database.spatial.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+
+import eu.geopaparazzi.library.GPApplication;
+import eu.geopaparazzi.library.database.GPLog;
+import eu.geopaparazzi.spatialite.database.spatial.core.daos.SPL_Vectors;
+import eu.geopaparazzi.spatialite.database.spatial.core.enums.SpatialiteDatabaseType;
+import eu.geopaparazzi.spatialite.database.spatial.core.enums.VectorLayerQueryModes;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.AbstractSpatialTable;
+import eu.geopaparazzi.spatialite.database.spatial.core.tables.SpatialRasterTable;
+
+/**
+ * A persistent catalog of the database checks and tables, so that the tables, srids, bounds,
+ * zoom ranges and styles of known databases are not read again at every startup.
+ * <p/>
+ * <p>Entries are keyed by the database path and are only used as long as the size and the
+ * modification time of the file are unchanged, so a database changed by any writer is
+ * scanned again the next time it is opened.</p>
+ * <p/>
+ * <p>The tables are stored as json objects, with the common table fields written by
+ * {@link #tableToJson(AbstractSpatialTable, String)}.</p>
+ *
+ * @author Andrea Antonello (www.hydrologis.com)
+ */
+public enum SpatialiteCatalog {
+    INSTANCE;
+
+    private static final String CATALOG_PREFS_NAME = "SPATIALITE_CATALOG"; //$NON-NLS-1$
+
+    private static final String SIZE = "size"; //$NON-NLS-1$
+    private static final String LAST_MODIFIED = "lastModified"; //$NON-NLS-1$
+    private static final String DATABASE_TYPE = "databaseType"; //$NON-NLS-1$
+    private static final String VECTORS = "vectors"; //$NON-NLS-1$
+    private static final String ERRORS = "errors"; //$NON-NLS-1$
+
+    /**
+     * Key of the cataloged vector tables of a file.
+     */
+    public static final String VECTOR_TABLES = "vectorTables"; //$NON-NLS-1$
+    /**
+     * Key of the cataloged raster tables of a file.
+     */
+    public static final String RASTER_TABLES = "rasterTables"; //$NON-NLS-1$
+
+    public static final String TABLE_NAME = "tableName"; //$NON-NLS-1$
+    public static final String MAP_TYPE = "mapType"; //$NON-NLS-1$
+    public static final String TITLE = "title"; //$NON-NLS-1$
+    public static final String DESCRIPTION = "description"; //$NON-NLS-1$
+    public static final String SRID = "srid"; //$NON-NLS-1$
+    public static final String MIN_ZOOM = "minZoom"; //$NON-NLS-1$
+    public static final String MAX_ZOOM = "maxZoom"; //$NON-NLS-1$
+    public static final String DEFAULT_ZOOM = "defaultZoom"; //$NON-NLS-1$
+    public static final String CENTER_X = "centerX"; //$NON-NLS-1$
+    public static final String CENTER_Y = "centerY"; //$NON-NLS-1$
+    public static final String BOUNDS = "bounds"; //$NON-NLS-1$
+    public static final String TILE_QUERY = "tileQuery"; //$NON-NLS-1$
+
+    private SharedPreferences mPreferences;
+
+    SpatialiteCatalog() {
+        try {
+            GPApplication gpApplication = GPApplication.getInstance();
+            mPreferences = gpApplication.getSharedPreferences(CATALOG_PREFS_NAME, Context.MODE_PRIVATE);
+        } catch (java.lang.Exception e) {
+            GPLog.error(this, null, e);
+        }
+    }
+
+    /**
+     * Get the cataloged check of a database.
+     *
+     * @param databaseFile           the database file.
+     * @param spatialVectorMap       the map of database views data to clear and fill.
+     * @param spatialVectorMapErrors the map of database views with errors to clear and fill.
+     * @return the type of the database or <code>null</code>, if the database needs to be checked.
+     */
+    public synchronized SpatialiteDatabaseType getEntry(File databaseFile, Map<String, String> spatialVectorMap,
+                                                        Map<String, String> spatialVectorMapErrors) {
+        if (SPL_Vectors.VECTORLAYER_QUERYMODE != VectorLayerQueryModes.STRICT) {
+            // the recovery modes need to correct the database
+            return null;
+        }
+        JSONObject entry = getCurrentEntry(databaseFile);
+        if (entry == null || !entry.has(DATABASE_TYPE)) {
+            return null;
+        }
+        try {
+            SpatialiteDatabaseType databaseType = SpatialiteDatabaseType.valueOf(entry.getString(DATABASE_TYPE));
+            spatialVectorMap.clear();
+            spatialVectorMapErrors.clear();
+            fromJson(entry.getJSONObject(VECTORS), spatialVectorMap);
+            fromJson(entry.getJSONObject(ERRORS), spatialVectorMapErrors);
+            return databaseType;
+        } catch (java.lang.Exception e) {
+            // unreadable entry, check the database again
+            GPLog.error(this, "Ignoring catalog entry of: " + databaseFile, e); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    /**
+     * Get the cataloged tables of a file.
+     *
+     * @param databaseFile the database file.
+     * @param tablesKey    {@link #VECTOR_TABLES} or {@link #RASTER_TABLES}.
+     * @return the tables as json objects or <code>null</code>, if the file needs to be read.
+     */
+    public synchronized JSONArray getTables(File databaseFile, String tablesKey) {
+        JSONObject entry = getCurrentEntry(databaseFile);
+        if (entry == null) {
+            return null;
+        }
+        return entry.optJSONArray(tablesKey);
+    }
+
+    /**
+     * Add or replace the catalog entry of a database.
+     * <p/>
+     * <p>This needs to be called after the last change to the database during its check,
+     * since the current size and modification time of the file are stored.</p>
+     *
+     * @param databaseFile           the database file.
+     * @param databaseType           the type of the database.
+     * @param spatialVectorMap       the map of database views data.
+     * @param spatialVectorMapErrors the map of database views with errors.
+     * @param vectorTables           the vector tables or <code>null</code>, if they have not been read.
+     * @param rasterTables           the raster tables or <code>null</code>, if they have not been read.
+     */
+    public synchronized void putEntry(File databaseFile, SpatialiteDatabaseType databaseType, Map<String, String> spatialVectorMap,
+                                      Map<String, String> spatialVectorMapErrors, JSONArray vectorTables, JSONArray rasterTables) {
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(DATABASE_TYPE, databaseType.name());
+            entry.put(VECTORS, new JSONObject(spatialVectorMap));
+            entry.put(ERRORS, new JSONObject(spatialVectorMapErrors));
+            if (vectorTables != null && rasterTables != null) {
+                entry.put(VECTOR_TABLES, vectorTables);
+                entry.put(RASTER_TABLES, rasterTables);
+            }
+            putEntry(databaseFile, entry);
+        } catch (JSONException e) {
+            GPLog.error(this, null, e);
+        }
+    }
+
+    /**
+     * Add or replace the catalog entry of a file that only contains raster tables.
+     * <p/>
+     * <p>This needs to be called after the file has been read, since the current size and
+     * modification time of the file are stored.</p>
+     *
+     * @param databaseFile the database file.
+     * @param rasterTables the raster tables.
+     */
+    public synchronized void putRasterTables(File databaseFile, JSONArray rasterTables) {
+        try {
+            JSONObject entry = new JSONObject();
+            entry.put(RASTER_TABLES, rasterTables);
+            putEntry(databaseFile, entry);
+        } catch (JSONException e) {
+            GPLog.error(this, null, e);
+        }
+    }
+
+    /**
+     * Remove the catalog entry of a database.
+     *
+     * @param databaseFile the database file.
+     */
+    public synchronized void removeEntry(File databaseFile) {
+        if (mPreferences == null) {
+            return;
+        }
+        Editor editor = mPreferences.edit();
+        editor.remove(databaseFile.getAbsolutePath());
+        editor.apply();
+    }
+
+    /**
+     * Remove the entries of databases that do not exist anymore.
+     */
+    public synchronized void removeMissingEntries() {
+        if (mPreferences == null) {
+            return;
+        }
+        Editor editor = mPreferences.edit();
+        for (String databasePath : mPreferences.getAll().keySet()) {
+            if (!new File(databasePath).exists()) {
+                editor.remove(databasePath);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Get the entry of a file, if it has not been changed since it was cataloged.
+     */
+    private JSONObject getCurrentEntry(File databaseFile) {
+        if (mPreferences == null) {
+            return null;
+        }
+        String entryJson = mPreferences.getString(databaseFile.getAbsolutePath(), null);
+        if (entryJson == null) {
+            return null;
+        }
+        try {
+            JSONObject entry = new JSONObject(entryJson);
+            if (entry.getLong(SIZE) != databaseFile.length() || entry.getLong(LAST_MODIFIED) != databaseFile.lastModified()) {
+                return null;
+            }
+            return entry;
+        } catch (JSONException e) {
+            // unreadable entry, read the file again
+            GPLog.error(this, "Ignoring catalog entry of: " + databaseFile, e); //$NON-NLS-1$
+            return null;
+        }
+    }
+
+    private void putEntry(File databaseFile, JSONObject entry) throws JSONException {
+        if (mPreferences == null) {
+            return;
+        }
+        entry.put(SIZE, databaseFile.length());
+        entry.put(LAST_MODIFIED, databaseFile.lastModified());
+
+        Editor editor = mPreferences.edit();
+        editor.putString(databaseFile.getAbsolutePath(), entry.toString());
+        editor.apply();
+    }
+
+    /**
+     * Write the fields shared by all tables.
+     *
+     * @param table     the table to catalog.
+     * @param tileQuery the tile query of raster tables, <code>null</code> for vector tables.
+     * @return the json object of the table.
+     * @throws JSONException if something goes wrong.
+     */
+    public static JSONObject tableToJson(AbstractSpatialTable table, String tileQuery) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(TABLE_NAME, table.getTableName());
+        json.put(MAP_TYPE, table.getMapType());
+        json.put(TITLE, table.getTitle());
+        json.put(DESCRIPTION, table.getDescription());
+        json.put(SRID, table.getSrid());
+        json.put(MIN_ZOOM, table.getMinZoom());
+        json.put(MAX_ZOOM, table.getMaxZoom());
+        json.put(DEFAULT_ZOOM, table.getDefaultZoom());
+        json.put(CENTER_X, table.getCenterX());
+        json.put(CENTER_Y, table.getCenterY());
+        JSONArray bounds = new JSONArray();
+        bounds.put(table.getMinLongitude());
+        bounds.put(table.getMinLatitude());
+        bounds.put(table.getMaxLongitude());
+        bounds.put(table.getMaxLatitude());
+        json.put(BOUNDS, bounds);
+        if (tileQuery != null) {
+            json.put(TILE_QUERY, tileQuery);
+        }
+        return json;
+    }
+
+    /**
+     * Read the bounds written by {@link #tableToJson(AbstractSpatialTable, String)}.
+     *
+     * @param json the json object of the table.
+     * @return the bounds as [w,s,e,n].
+     * @throws JSONException if something goes wrong.
+     */
+    public static double[] boundsFromJson(JSONObject json) throws JSONException {
+        JSONArray bounds = json.getJSONArray(BOUNDS);
+        return new double[]{bounds.getDouble(0), bounds.getDouble(1), bounds.getDouble(2), bounds.getDouble(3)};
+    }
+
+    /**
+     * Create a raster table from its json object.
+     *
+     * @param databasePath the path of the database of the table.
+     * @param json         the json object written by {@link #tableToJson(AbstractSpatialTable, String)}.
+     * @return the table.
+     * @throws JSONException if something goes wrong.
+     */
+    public static SpatialRasterTable rasterTableFromJson(String databasePath, JSONObject json) throws JSONException {
+        SpatialRasterTable table = new SpatialRasterTable(databasePath, json.getString(TABLE_NAME), json.getString(SRID),
+                json.getInt(MIN_ZOOM), json.getInt(MAX_ZOOM), json.getDouble(CENTER_X), json.getDouble(CENTER_Y),
+                json.getString(TILE_QUERY), boundsFromJson(json));
+        table.setMapType(json.getString(MAP_TYPE));
+        table.setTitle(json.getString(TITLE));
+        table.setDescription(json.getString(DESCRIPTION));
+        table.setDefaultZoom(json.getInt(DEFAULT_ZOOM));
+        return table;
+    }
+
+    /**
+     * Fill a map from a json object of strings.
+     *
+     * @param jsonObject the json object.
+     * @param map        the map to fill.
+     * @throws JSONException if something goes wrong.
+     */
+    public static void fromJson(JSONObject jsonObject, Map<String, String> map) throws JSONException {
+        Iterator<String> keys = jsonObject.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            map.put(key, jsonObject.getString(key));
+        }
+    }
+}
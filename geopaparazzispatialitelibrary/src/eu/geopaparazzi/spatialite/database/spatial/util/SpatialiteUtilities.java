@@ -116,7 +116,7 @@ public class SpatialiteUtilities {
      * Build a query to retrieve geometries from a table in a given bound.
      *
      * @param destSrid the destination srid.
-     * @param withRowId if <code>true</code>, the ROWID is added in position 0 of the query.
+     * @param withRowId if <code>true</code>, the row id of the table is added in position 0 of the query.
      * @param table the table to use.
      * @param n north bound.
      * @param s south bound.
@@ -152,7 +152,8 @@ public class SpatialiteUtilities {
         StringBuilder qSb = new StringBuilder();
         qSb.append("SELECT ");
         if (withRowId) {
-            qSb.append(SPATIALTABLE_ID_FIELD).append(",");
+            // the same id the spatial index is queried with, valid also for views
+            qSb.append(table.getROWID()).append(",");
         }
         qSb.append("ST_AsBinary(CastToXY(");
         if (doTransform)
@@ -0,0 +1,448 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package eu.geopaparazzi.spatialite.database.spatial.core.geometry;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LinearRing;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link WkbPathDecoder} with the WKB flavours written by spatialite and other tools.
+ */
+public class WkbPathDecoderTest {
+    private static final byte ZOOM = 14;
+    private static final double[][] LINE = {{11.30, 46.50}, {11.31, 46.52}, {11.33, 46.51}, {11.34, 46.53}};
+    private static final double DELTA = 1e-3;
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    /**
+     * Records the contours, as <code>M x y</code>, <code>L x y</code> and <code>Z</code>.
+     */
+    private static class RecordingSink implements WkbPathDecoder.PathSink {
+        final List<String> operations = new ArrayList<>();
+        final List<float[]> vertices = new ArrayList<>();
+
+        @Override
+        public void reset() {
+            operations.clear();
+            vertices.clear();
+        }
+
+        @Override
+        public void moveTo(float x, float y) {
+            operations.add("M " + x + " " + y);
+            vertices.add(new float[]{x, y});
+        }
+
+        @Override
+        public void lineTo(float x, float y) {
+            operations.add("L " + x + " " + y);
+            vertices.add(new float[]{x, y});
+        }
+
+        @Override
+        public void close() {
+            operations.add("Z");
+        }
+    }
+
+    /**
+     * Writes WKB by hand, every geometry header takes the current byte order.
+     */
+    private static class Wkb {
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+
+        Wkb order(ByteOrder byteOrder) {
+            this.byteOrder = byteOrder;
+            return this;
+        }
+
+        Wkb geometry(int type) {
+            buffer.order(byteOrder);
+            buffer.put((byte) (byteOrder == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+            buffer.putInt(type);
+            return this;
+        }
+
+        Wkb integer(int value) {
+            buffer.putInt(value);
+            return this;
+        }
+
+        Wkb coordinate(double... ordinates) {
+            for (double ordinate : ordinates) {
+                buffer.putDouble(ordinate);
+            }
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer.array(), buffer.position());
+        }
+    }
+
+    private final WkbPathDecoder decoder = new WkbPathDecoder();
+    private final RecordingSink areaPath = new RecordingSink();
+    private final RecordingSink linePath = new RecordingSink();
+    private double originX;
+    private double originY;
+
+    /**
+     * The spherical mercator pixel x of a longitude.
+     */
+    private static double pixelX(double lon, byte zoom) {
+        return (lon + 180) / 360 * ((long) 256 << zoom);
+    }
+
+    /**
+     * The spherical mercator pixel y of a latitude.
+     */
+    private static double pixelY(double lat, byte zoom) {
+        double sinLatitude = Math.sin(Math.toRadians(lat));
+        return (0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI)) * ((long) 256 << zoom);
+    }
+
+    @Before
+    public void setUp() {
+        originX = Math.floor(pixelX(11.3, ZOOM));
+        originY = Math.floor(pixelY(46.55, ZOOM));
+        decoder.setZoom(ZOOM);
+        decoder.setOrigin(originX, originY);
+    }
+
+    /**
+     * Writes a geometry with the given ordinates per vertex, the extra ordinates are garbage.
+     */
+    private static void writeCoordinates(Wkb builder, double[][] coordinates, int dimension) {
+        builder.integer(coordinates.length);
+        for (double[] coordinate : coordinates) {
+            double[] ordinates = Arrays.copyOf(coordinate, dimension);
+            for (int i = 2; i < dimension; i++) {
+                ordinates[i] = 1000 + i;
+            }
+            builder.coordinate(ordinates);
+        }
+    }
+
+    private static byte[] line(ByteOrder order, int type, int dimension, double[][] coordinates) {
+        Wkb builder = new Wkb().order(order).geometry(type);
+        writeCoordinates(builder, coordinates, dimension);
+        return builder.toByteArray();
+    }
+
+    private static double[][] square(double lon, double lat, double size) {
+        return new double[][]{{lon, lat}, {lon + size, lat}, {lon + size, lat + size}, {lon, lat + size}, {lon, lat}};
+    }
+
+    private List<String> decodeLine(byte[] wkb) {
+        assertEquals(WkbPathDecoder.KIND_LINE, decoder.decode(wkb, areaPath, linePath));
+        assertTrue(areaPath.operations.isEmpty());
+        return linePath.operations;
+    }
+
+    private float projectX(double lon) {
+        return (float) (pixelX(lon, ZOOM) - originX);
+    }
+
+    private float projectY(double lat) {
+        return (float) (pixelY(lat, ZOOM) - originY);
+    }
+
+    @Test
+    public void testProjection() {
+        byte[] wkb = new Wkb().geometry(1).coordinate(11.32, 46.51).toByteArray();
+        assertEquals(WkbPathDecoder.KIND_POINT, decoder.decode(wkb, areaPath, linePath));
+        assertEquals(1, decoder.getPointsCount());
+        assertEquals(projectX(11.32), decoder.getPoints()[0], DELTA);
+        assertEquals(projectY(46.51), decoder.getPoints()[1], DELTA);
+
+        decoder.decode(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE), areaPath, linePath);
+        for (int i = 0; i < LINE.length; i++) {
+            float[] vertex = linePath.vertices.get(i);
+            assertEquals(projectX(LINE[i][0]), vertex[0], DELTA);
+            assertEquals(projectY(LINE[i][1]), vertex[1], DELTA);
+        }
+        assertEquals(LINE.length, decoder.getVertexCount());
+    }
+
+    @Test
+    public void testByteOrders() {
+        List<String> expected = new ArrayList<>(decodeLine(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE)));
+        assertEquals(LINE.length, expected.size());
+        assertEquals(expected, decodeLine(line(ByteOrder.BIG_ENDIAN, 2, 2, LINE)));
+        // the same as written by jts
+        byte[] jtsWkb = new WKBWriter(2, 2).write(new GeometryFactory().createLineString(toCoordinates(LINE)));
+        assertEquals(expected, decodeLine(jtsWkb));
+    }
+
+    @Test
+    public void testEwkbDimensions() {
+        List<String> expected = new ArrayList<>(decodeLine(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.LITTLE_ENDIAN, 2 | EWKB_Z, 3, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.BIG_ENDIAN, 2 | EWKB_M, 3, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.LITTLE_ENDIAN, 2 | EWKB_Z | EWKB_M, 4, LINE)));
+
+        // the srid follows the type
+        Wkb builder = new Wkb().geometry(2 | EWKB_Z | EWKB_SRID).integer(4326);
+        writeCoordinates(builder, LINE, 3);
+        assertEquals(expected, decodeLine(builder.toByteArray()));
+
+        // as written by jts
+        Coordinate[] coordinates = toCoordinates(LINE);
+        for (Coordinate coordinate : coordinates) {
+            coordinate.z = 250;
+        }
+        byte[] jtsWkb = new WKBWriter(3, 1, true).write(new GeometryFactory().createLineString(coordinates));
+        assertEquals(expected, decodeLine(jtsWkb));
+    }
+
+    @Test
+    public void testIsoDimensions() {
+        List<String> expected = new ArrayList<>(decodeLine(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.LITTLE_ENDIAN, 1002, 3, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.BIG_ENDIAN, 2002, 3, LINE)));
+        assertEquals(expected, decodeLine(line(ByteOrder.LITTLE_ENDIAN, 3002, 4, LINE)));
+
+        // every part of a collection has its own dimension and byte order
+        Wkb builder = new Wkb().geometry(3005).integer(2);
+        builder.order(ByteOrder.BIG_ENDIAN).geometry(3002);
+        writeCoordinates(builder, LINE, 4);
+        builder.order(ByteOrder.LITTLE_ENDIAN).geometry(2 | EWKB_Z);
+        writeCoordinates(builder, LINE, 3);
+        List<String> operations = decodeLine(builder.toByteArray());
+        assertEquals(expected, operations.subList(0, LINE.length));
+        assertEquals(expected, operations.subList(LINE.length, 2 * LINE.length));
+    }
+
+    @Test
+    public void testPolygonRings() {
+        double[][] shell = square(11.30, 46.50, 0.04);
+        Wkb builder = new Wkb().geometry(1003).integer(1);
+        writeCoordinates(builder, shell, 3);
+        assertEquals(WkbPathDecoder.KIND_AREA, decoder.decode(builder.toByteArray(), areaPath, linePath));
+        // the closing vertex is replaced by closing the contour
+        assertEquals(Arrays.asList("M", "L", "L", "L", "Z"), firstLetters(areaPath.operations));
+        assertEquals(shell.length - 1, decoder.getVertexCount());
+        assertTrue(linePath.operations.isEmpty());
+    }
+
+    @Test
+    public void testPolygonCentroid() {
+        // a hole with the same orientation as the shell, as some writers produce
+        double[][] shell = square(11.30, 46.50, 0.04);
+        double[][] hole = square(11.31, 46.51, 0.02);
+        Wkb builder = new Wkb().geometry(3).integer(2);
+        writeCoordinates(builder, shell, 2);
+        writeCoordinates(builder, hole, 2);
+        assertCentroid(builder.toByteArray());
+
+        // an area weighted centroid of several polygons, with z values
+        builder = new Wkb().geometry(6 | EWKB_Z).integer(2);
+        builder.geometry(3 | EWKB_Z).integer(1);
+        writeCoordinates(builder, square(11.30, 46.50, 0.04), 3);
+        builder.geometry(3 | EWKB_Z).integer(1);
+        writeCoordinates(builder, reverse(square(11.40, 46.52, 0.01)), 3);
+        assertCentroid(builder.toByteArray());
+    }
+
+    @Test
+    public void testLabelPositions() {
+        float[] xy = new float[2];
+        byte[] wkb = new Wkb().geometry(4).integer(2).geometry(1).coordinate(11.30, 46.50).geometry(1)
+                .coordinate(11.32, 46.52).toByteArray();
+        assertEquals(WkbPathDecoder.KIND_POINT, decoder.decode(wkb, areaPath, linePath));
+        decoder.getLabelPosition(xy);
+        assertEquals((projectX(11.30) + projectX(11.32)) / 2, xy[0], DELTA);
+        assertEquals((projectY(46.50) + projectY(46.52)) / 2, xy[1], DELTA);
+
+        decoder.decode(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE), areaPath, linePath);
+        decoder.getLabelPosition(xy);
+        assertEquals(projectX(LINE[0][0]), xy[0], DELTA);
+        assertEquals(projectY(LINE[0][1]), xy[1], DELTA);
+    }
+
+    @Test
+    public void testMixedCollection() {
+        Wkb builder = new Wkb().geometry(7).integer(3);
+        builder.geometry(1).coordinate(11.36, 46.49);
+        builder.geometry(2);
+        writeCoordinates(builder, LINE, 2);
+        builder.geometry(3).integer(1);
+        writeCoordinates(builder, square(11.30, 46.50, 0.01), 2);
+        int kinds = decoder.decode(builder.toByteArray(), areaPath, linePath);
+        assertEquals(WkbPathDecoder.KIND_POINT | WkbPathDecoder.KIND_LINE | WkbPathDecoder.KIND_AREA, kinds);
+        assertEquals(1 + LINE.length + 4, decoder.getVertexCount());
+        assertEquals(LINE.length, linePath.vertices.size());
+        assertEquals(4, areaPath.vertices.size());
+
+        assertEquals(11.30, decoder.getMinLon(), 0);
+        assertEquals(11.36, decoder.getMaxLon(), 0);
+        assertEquals(46.49, decoder.getMinLat(), 0);
+        assertEquals(46.53, decoder.getMaxLat(), 0);
+    }
+
+    @Test
+    public void testOriginAtFirstVertex() {
+        decoder.setZoom((byte) 20);
+        decoder.setOriginAtFirstVertex();
+        decoder.decode(line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE), areaPath, linePath);
+        assertEquals(Math.floor(pixelX(LINE[0][0], (byte) 20)), decoder.getOriginX(), 0);
+        assertEquals(Math.floor(pixelY(LINE[0][1], (byte) 20)), decoder.getOriginY(), 0);
+        float[] first = linePath.vertices.get(0);
+        assertTrue(first[0] >= 0 && first[0] < 1);
+        assertTrue(first[1] >= 0 && first[1] < 1);
+        // the following vertices keep their sub pixel precision
+        float[] last = linePath.vertices.get(LINE.length - 1);
+        double expectedX = pixelX(LINE[LINE.length - 1][0], (byte) 20) - decoder.getOriginX();
+        assertEquals(expectedX, last[0], 0.01);
+    }
+
+    @Test
+    public void testDuplicatesAndDecimation() {
+        double[][] coordinates = {{11.30, 46.50}, {11.30, 46.50}, {11.31, 46.51}, {11.32, 46.52}, {11.32, 46.52}};
+        decoder.setRemoveDuplicatePoints(true);
+        decoder.decode(line(ByteOrder.LITTLE_ENDIAN, 2, 2, coordinates), areaPath, linePath);
+        // the last vertex is always kept
+        assertEquals(4, linePath.vertices.size());
+
+        coordinates = new double[][]{{11.30, 46.50}, {11.301, 46.501}, {11.302, 46.502}, {11.32, 46.52}, {11.321, 46.521}};
+        decoder.setRemoveDuplicatePoints(false);
+        decoder.setDecimation(0.01);
+        decoder.decode(line(ByteOrder.LITTLE_ENDIAN, 2, 2, coordinates), areaPath, linePath);
+        assertEquals(3, linePath.vertices.size());
+        assertEquals(projectX(11.321), linePath.vertices.get(2)[0], DELTA);
+    }
+
+    @Test
+    public void testEmptyGeometries() {
+        byte[] emptyPoint = new Wkb().geometry(1).coordinate(Double.NaN, Double.NaN).toByteArray();
+        assertEquals(0, decoder.decode(emptyPoint, areaPath, linePath));
+        byte[] emptyLine = new Wkb().geometry(2).integer(0).toByteArray();
+        assertEquals(0, decoder.decode(emptyLine, areaPath, linePath));
+        byte[] emptyPolygon = new Wkb().geometry(3).integer(0).toByteArray();
+        assertEquals(0, decoder.decode(emptyPolygon, areaPath, linePath));
+        byte[] emptyCollection = new Wkb().geometry(7).integer(0).toByteArray();
+        assertEquals(0, decoder.decode(emptyCollection, areaPath, linePath));
+        assertEquals(0, decoder.getVertexCount());
+    }
+
+    @Test
+    public void testInvalidGeometries() {
+        byte[] wkb = line(ByteOrder.LITTLE_ENDIAN, 2, 2, LINE);
+        try {
+            decoder.decode(Arrays.copyOf(wkb, wkb.length - 3), areaPath, linePath);
+            fail("truncated geometry");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            decoder.decode(new Wkb().geometry(17).integer(0).toByteArray(), areaPath, linePath);
+            fail("unsupported geometry type");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Compares the label position of a polygon with the jts centroid of its projected vertices.
+     */
+    private void assertCentroid(byte[] wkb) {
+        assertEquals(WkbPathDecoder.KIND_AREA, decoder.decode(wkb, areaPath, linePath));
+        Geometry geometry = toProjectedGeometry(areaPath.operations);
+        float[] xy = new float[2];
+        decoder.getLabelPosition(xy);
+        Coordinate centroid = geometry.getCentroid().getCoordinate();
+        assertEquals(centroid.x, xy[0], 0.01);
+        assertEquals(centroid.y, xy[1], 0.01);
+    }
+
+    /**
+     * Rebuilds the polygons from the recorded contours, holes are the rings inside the previous shell.
+     */
+    private static Geometry toProjectedGeometry(List<String> operations) {
+        GeometryFactory factory = new GeometryFactory();
+        ArrayList<Coordinate> ring = new ArrayList<>();
+        ArrayList<LinearRing> rings = new ArrayList<>();
+        ArrayList<Polygon> polygons = new ArrayList<>();
+        for (String operation : operations) {
+            String[] parts = operation.split(" ");
+            if (parts[0].equals("Z")) {
+                ring.add(new Coordinate(ring.get(0)));
+                LinearRing linearRing = factory.createLinearRing(ring.toArray(new Coordinate[ring.size()]));
+                if (!rings.isEmpty() && !factory.createPolygon(rings.get(0), null).contains(linearRing)) {
+                    polygons.add(createPolygon(factory, rings));
+                    rings.clear();
+                }
+                rings.add(linearRing);
+                ring.clear();
+            } else {
+                ring.add(new Coordinate(Float.parseFloat(parts[1]), Float.parseFloat(parts[2])));
+            }
+        }
+        polygons.add(createPolygon(factory, rings));
+        return factory.createMultiPolygon(polygons.toArray(new Polygon[polygons.size()]));
+    }
+
+    private static Polygon createPolygon(GeometryFactory factory, List<LinearRing> rings) {
+        LinearRing[] holes = rings.subList(1, rings.size()).toArray(new LinearRing[rings.size() - 1]);
+        return factory.createPolygon(rings.get(0), holes);
+    }
+
+    private static Coordinate[] toCoordinates(double[][] coordinates) {
+        Coordinate[] result = new Coordinate[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            result[i] = new Coordinate(coordinates[i][0], coordinates[i][1]);
+        }
+        return result;
+    }
+
+    private static double[][] reverse(double[][] coordinates) {
+        double[][] result = new double[coordinates.length][];
+        for (int i = 0; i < coordinates.length; i++) {
+            result[i] = coordinates[coordinates.length - 1 - i];
+        }
+        return result;
+    }
+
+    private static List<String> firstLetters(List<String> operations) {
+        ArrayList<String> letters = new ArrayList<>();
+        for (String operation : operations) {
+            letters.add(operation.substring(0, 1));
+        }
+        return letters;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Geopaparazzi - Digital field mapping on Android based devices
+ * Copyright (C) 2016  HydroloGIS (www.hydrologis.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package eu.geopaparazzi.spatialite.database.spatial.core.mbtiles;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link MbTilesImageDigest} against the published XXH64 test vectors.
+ */
+public class MbTilesImageDigestTest {
+    private static final long PRIME32 = 2654435761L;
+    private static final long PRIME64 = 0x9E3779B185EBCA8DL;
+
+    /**
+     * The sanity buffer of the xxhsum self test.
+     */
+    private static byte[] createSanityBuffer(int length) {
+        byte[] buffer = new byte[length];
+        long byteGen = PRIME32;
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte) (byteGen >>> 56);
+            byteGen *= PRIME64;
+        }
+        return buffer;
+    }
+
+    @Test
+    public void testSanityVectors() {
+        byte[] buffer = createSanityBuffer(2367);
+        assertEquals(0xEF46DB3751D8E999L, MbTilesImageDigest.xxHash64(buffer, 0, 0, 0));
+        assertEquals(0xAC75FDA2929B17EFL, MbTilesImageDigest.xxHash64(buffer, 0, 0, PRIME32));
+        assertEquals(0xE934A84ADB052768L, MbTilesImageDigest.xxHash64(buffer, 0, 1, 0));
+        assertEquals(0x5014607643A9B4C3L, MbTilesImageDigest.xxHash64(buffer, 0, 1, PRIME32));
+        assertEquals(0x9136A0DCA57457EEL, MbTilesImageDigest.xxHash64(buffer, 0, 4, 0));
+        assertEquals(0x8282DCC4994E35C8L, MbTilesImageDigest.xxHash64(buffer, 0, 14, 0));
+        assertEquals(0xC3BD6BF63DEB6DF0L, MbTilesImageDigest.xxHash64(buffer, 0, 14, PRIME32));
+        assertEquals(0xB641AE8CB691C174L, MbTilesImageDigest.xxHash64(buffer, 0, 222, 0));
+        assertEquals(0x20CB8AB7AE10C14AL, MbTilesImageDigest.xxHash64(buffer, 0, 222, PRIME32));
+    }
+
+    @Test
+    public void testStringVectors() throws Exception {
+        assertEquals(0xEF46DB3751D8E999L, MbTilesImageDigest.digest(new byte[0]));
+        assertEquals(0xD24EC4F1A98C6E5BL, MbTilesImageDigest.digest("a".getBytes("UTF-8")));
+        assertEquals(0x44BC2CF5AD770999L, MbTilesImageDigest.digest("abc".getBytes("UTF-8")));
+        assertEquals(0xFBCEA83C8A378BF1L, MbTilesImageDigest.digest("Nobody inspects the spammish repetition".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testOffset() {
+        byte[] buffer = createSanityBuffer(2367);
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            int offset = random.nextInt(1000);
+            int length = random.nextInt(buffer.length - offset);
+            byte[] range = Arrays.copyOfRange(buffer, offset, offset + length);
+            assertEquals(MbTilesImageDigest.digest(range), MbTilesImageDigest.xxHash64(buffer, offset, length, 0));
+        }
+    }
+
+    @Test
+    public void testDifferentImages() {
+        byte[] image = createSanityBuffer(16384);
+        long digest = MbTilesImageDigest.digest(image);
+        for (int i = 0; i < image.length; i += 97) {
+            image[i] ^= 1;
+            assertTrue(digest != MbTilesImageDigest.digest(image));
+            image[i] ^= 1;
+        }
+        assertEquals(digest, MbTilesImageDigest.digest(image.clone()));
+    }
+}